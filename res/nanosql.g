@@ -39,12 +39,14 @@ tokens {
   BETWEEN     = "between";
   BY          = "by";
   CASCADE     = "cascade";
+  CHECKPOINT  = "checkpoint";
   COLUMN      = "column";
   COMMIT      = "commit";
   CONSTRAINT  = "constraint";
   CRASH       = "crash";
   CREATE      = "create";
   CROSS       = "cross";
+  DEALLOCATE  = "deallocate";
   DEFAULT     = "default";
   DELETE      = "delete";
   DESC        = "desc";
@@ -52,6 +54,7 @@ tokens {
   DROP        = "drop";
   DUMP        = "dump";
   EXCEPT      = "except";
+  EXECUTE     = "execute";
   EXISTS      = "exists";
   EXIT        = "exit";
   EXPLAIN     = "explain";
@@ -87,6 +90,7 @@ tokens {
   OR          = "or";
   ORDER       = "order";
   OUTER       = "outer";
+  PREPARE     = "prepare";
   PRIMARY     = "primary";
   PROPERTIES  = "properties";
   QUIT        = "quit";
@@ -159,6 +163,15 @@ tokens {
   PERIOD;
 }
 
+{
+  /**
+   * The <tt>?</tt> parameters of the command currently being parsed, in the
+   * order that they appear in the command.
+   */
+  private ArrayList<ParameterValue> parameters =
+    new ArrayList<ParameterValue>();
+}
+
 /* A list of one or more statements, separated by semicolons.  Multiple
  * semicolons without statements are fine, as is a single statement with
  * a semicolon and no subsequent statement.
@@ -179,15 +192,31 @@ command_semicolon returns [Command c] { c = null; } : c=command SEMICOLON ;
  * this command is not followed by a semicolon, which allows it to be used in the
  * "commands" rule.
  */
-command returns [Command c] { c = null; } :
+command returns [Command c]
+  {
+    c = null;
+    parameters = new ArrayList<ParameterValue>();
+  }
+  :
   ( c=create_stmt /* | alter_stmt */ | c=drop_stmt                 // DDL
   | c=select_stmt | c=insert_stmt | c=update_stmt | c=delete_stmt  // DML
   | c=begin_txn_stmt | c=commit_txn_stmt | c=rollback_txn_stmt     // Transactions
+  | c=prepare_stmt | c=execute_stmt | c=deallocate_stmt            // Prepared statements
   | c=analyze_stmt | c=explain_stmt | c=exit_stmt | c=crash_stmt   // Utility
   | c=dump_table_stmt // | c=dump_index_stmt                          // Utility
-  | c=flush_stmt | c=verify_stmt | c=optimize_stmt                 // Utility
+  | c=flush_stmt | c=checkpoint_stmt                              // Utility
+  | c=verify_stmt | c=optimize_stmt                                // Utility
   | c=showvars_stmt | c=setvar_stmt                                // Utility
   )
+  {
+    if (!parameters.isEmpty()) {
+      if (!(c instanceof QueryCommand)) {
+        throw new SemanticException("Parameters can only be used in " +
+          "SELECT, INSERT, UPDATE and DELETE statements.");
+      }
+      ((QueryCommand) c).setParameters(parameters);
+    }
+  }
   ;
 
 
@@ -434,8 +463,10 @@ create_index returns [CreateIndexCommand c]
   CREATE ( UNIQUE { unique = true; } )? INDEX ( idxName=dbobj_ident )?
   ON tblName=dbobj_ident
   { c = new CreateIndexCommand(idxName, tblName, unique); }
+  ( USING idxType=dbobj_ident { c.setIndexType(idxType); } )?
   LPAREN colName=dbobj_ident { c.addColumn(colName); }
          ( COMMA colName=dbobj_ident { c.addColumn(colName); } )* RPAREN
+  ( USING idxType=dbobj_ident { c.setIndexType(idxType); } )?
   ( p=cmd_properties { c.setProperties(p); } )?
   ;
 
@@ -722,6 +753,47 @@ rollback_txn_stmt returns [RollbackTransactionCommand c] { c = null; } :
   ;
 
 
+/* PREPARE, EXECUTE and DEALLOCATE Statements */
+
+/**
+ * The statement to prepare is given as a string, so that it can be cached
+ * on its text.  The statement may contain <tt>?</tt> parameters, which are
+ * given values by the <tt>USING</tt> clause of <tt>EXECUTE</tt>.  String
+ * literals inside the statement are written with doubled single-quotes, as
+ * in <tt>PREPARE s FROM 'SELECT a FROM t WHERE b = ''x'' AND c = ?'</tt>.
+ */
+prepare_stmt returns [PrepareCommand c]
+  {
+    c = null;
+    String name = null;
+  } :
+  PREPARE name=dbobj_ident FROM s:STRING_LITERAL
+  { c = new PrepareCommand(name, s.getText()); }
+  ;
+
+
+execute_stmt returns [ExecuteCommand c]
+  {
+    c = null;
+    String name = null;
+    Expression e = null;
+  } :
+  EXECUTE name=dbobj_ident { c = new ExecuteCommand(name); }
+  ( USING e=expression { c.addParameterValue(e); }
+    ( COMMA e=expression { c.addParameterValue(e); } )* )?
+  ;
+
+
+deallocate_stmt returns [DeallocateCommand c]
+  {
+    c = null;
+    String name = null;
+  } :
+  DEALLOCATE ( PREPARE )? name=dbobj_ident
+  { c = new DeallocateCommand(name); }
+  ;
+
+
 /* ANALYZE Statements */
 
 analyze_stmt returns [AnalyzeCommand c]
@@ -824,6 +896,14 @@ flush_stmt returns [FlushCommand c]
   ;
 
 
+/* CHECKPOINT Statements */
+
+checkpoint_stmt returns [CheckpointCommand c]
+  { c = null; } :
+  CHECKPOINT { c = new CheckpointCommand(); }
+  ;
+
+
 /* Statements for showing and setting system properties. */
 
 showvars_stmt returns [ShowVariablesCommand c]
@@ -1060,6 +1140,12 @@ base_expr returns [Expression e]
   }
   :
     e=literal_expr
+  | QUESTION
+    {
+      ParameterValue p = new ParameterValue(parameters.size());
+      parameters.add(p);
+      e = p;
+    }
   | cn=column_name { e = new ColumnValue(cn); }
   | e=function_call
   | LPAREN
@@ -1170,6 +1256,7 @@ SEMICOLON : ';' ;
 STAR      : '*' ;
 SLASH     : '/' ;
 PERCENT   : '%' ;
+QUESTION  : '?' ;
 PLUS      : '+' ;
 MINUS     : '-' ;
 
@@ -1237,4 +1324,15 @@ NUM_LITERAL_OR_SYMBOL :
       )?
   ;
 
-STRING_LITERAL : '\''! ( ~( '\'' | '\r' | '\n' ))* '\''! ;
+/**
+ * String literals are enclosed in single quotes.  A single quote inside a
+ * string literal is written as two single quotes, as in standard SQL, and a
+ * string literal may span several lines.
+ */
+STRING_LITERAL :
+  '\''!
+  ( ~( '\'' | '\n' )
+  | '\'' '\''!
+  | '\n' { newline(); }
+  )*
+  '\''! ;
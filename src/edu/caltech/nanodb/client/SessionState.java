@@ -2,6 +2,7 @@ package edu.caltech.nanodb.client;
 
 
 import java.io.PrintStream;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.caltech.nanodb.transactions.TransactionState;
@@ -77,9 +78,17 @@ public class SessionState {
     private TransactionState txnState;
 
 
+    /**
+     * The statements that this session has prepared, as a mapping from the
+     * names of the statements to their normalized text.
+     */
+    private HashMap<String, String> preparedStatements;
+
+
     private SessionState(int sessionID) {
         this.sessionID = sessionID;
         txnState = new TransactionState();
+        preparedStatements = new HashMap<String, String>();
 
         // By default, we'll use the standard output stream for the session's
         // output stream, but this will be overridden when clients connect over
@@ -116,6 +125,39 @@ public class SessionState {
     }
 
 
+    /**
+     * Records a statement prepared by this session, replacing any previous
+     * statement of the same name.
+     *
+     * @param name the name of the prepared statement
+     * @param sql the normalized text of the prepared statement
+     */
+    public void addPreparedStatement(String name, String sql) {
+        preparedStatements.put(name, sql);
+    }
+
+
+    /**
+     * Returns the normalized text of the statement prepared by this session
+     * with the specified name, or {@code null} if there is no such statement.
+     */
+    public String getPreparedStatement(String name) {
+        return preparedStatements.get(name);
+    }
+
+
+    /**
+     * Removes the statement prepared by this session with the specified
+     * name.
+     *
+     * @return {@code true} if the session had prepared a statement with the
+     *         specified name
+     */
+    public boolean removePreparedStatement(String name) {
+        return preparedStatements.remove(name) != null;
+    }
+
+
     @Override
     public int hashCode() {
         return sessionID;
@@ -1,6 +1,10 @@
 package edu.caltech.nanodb.client;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -14,27 +18,73 @@ import java.util.concurrent.Semaphore;
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.commands.Command;
+import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.qeval.PrettyTuplePrinter;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.server.CommandState;
 import edu.caltech.nanodb.server.SharedServer;
+import edu.caltech.nanodb.server.WireProtocol;
 
 
 /**
  * This class implements a client to the NanoDB
- * {@link edu.caltech.nanodb.server.SharedServer}.
+ * {@link edu.caltech.nanodb.server.SharedServer}.  By default the client
+ * talks to the server with the {@link WireProtocol binary protocol}, but it
+ * can be made to use Java serialization instead by setting the
+ * {@link #PROP_PROTOCOL} property to {@link #PROTOCOL_SERIALIZED}.
  */
 public class SharedServerClient extends InteractiveClient {
     private static Logger logger = Logger.getLogger(SharedServerClient.class);
 
 
+    /**
+     * This property specifies the protocol that the client uses to talk to
+     * the server, either {@link #PROTOCOL_BINARY} or
+     * {@link #PROTOCOL_SERIALIZED}.
+     */
+    public static final String PROP_PROTOCOL = "nanodb.client.protocol";
+
+
+    /** The name of the binary protocol defined by {@link WireProtocol}. */
+    public static final String PROTOCOL_BINARY = "binary";
+
+
+    /** The name of the older protocol that uses Java serialization. */
+    public static final String PROTOCOL_SERIALIZED = "serialized";
+
+
+    /** The default protocol that the client uses to talk to the server. */
+    public static final String DEFAULT_PROTOCOL = PROTOCOL_BINARY;
+
+
+    /**
+     * This property specifies whether the client asks the server to compress
+     * the query results that it sends, when the binary protocol is used.
+     */
+    public static final String PROP_COMPRESS = "nanodb.client.compress";
+
+
     private Socket socket;
 
 
     private ObjectInputStream objectInput;
 
 
+    /**
+     * This stream is used to receive results from the server, if the client
+     * uses the binary protocol.
+     */
+    private DataInputStream wireInput;
+
+
+    /**
+     * This stream is used to send commands to the server, if the client uses
+     * the binary protocol.
+     */
+    private DataOutputStream wireOutput;
+
+
     private Receiver receiver;
 
 
@@ -68,9 +118,17 @@ public class SharedServerClient extends InteractiveClient {
 
 
         public void run() {
+            done = false;
+            if (wireInput != null)
+                receiveBinary();
+            else
+                receiveObjects();
+        }
+
+
+        private void receiveObjects() {
             PrettyTuplePrinter tuplePrinter = null;
 
-            done = false;
             while (true) {
                 try {
                     Object obj = objectInput.readObject();
@@ -126,6 +184,72 @@ public class SharedServerClient extends InteractiveClient {
         }
 
 
+        private void receiveBinary() {
+            PrettyTuplePrinter tuplePrinter = null;
+
+            while (true) {
+                try {
+                    byte msgType = wireInput.readByte();
+                    switch (msgType) {
+                    case WireProtocol.MSG_TEXT:
+                        // Just print strings to the console
+                        System.out.print(WireProtocol.readString(wireInput));
+                        break;
+
+                    case WireProtocol.MSG_SCHEMA:
+                        tuplePrinter = new PrettyTuplePrinter(out);
+                        tuplePrinter.setSchema(
+                            WireProtocol.readSchema(wireInput));
+                        break;
+
+                    case WireProtocol.MSG_ROWS:
+                        for (TupleLiteral tuple : WireProtocol.readRows(wireInput))
+                            tuplePrinter.process(tuple);
+                        break;
+
+                    case WireProtocol.MSG_ERROR:
+                        System.out.print(WireProtocol.readString(wireInput));
+                        break;
+
+                    case WireProtocol.MSG_COMMAND_COMPLETED:
+                        if (tuplePrinter != null) {
+                            tuplePrinter.finish();
+                            tuplePrinter = null;
+                        }
+
+                        // Signal that the command is completed.
+                        semCommandDone.release();
+                        break;
+
+                    default:
+                        // The rest of the stream can't be understood.
+                        System.out.println("Unrecognized message type " +
+                            msgType + " from the server.");
+                        return;
+                    }
+                }
+                catch (EOFException e) {
+                    System.out.println("Connection was closed by the server.");
+                    break;
+                }
+                catch (SocketException e) {
+                    System.out.println("Connection was closed by the server.");
+                    break;
+                }
+                catch (ClosedByInterruptException e) {
+                    System.out.println("Thread was interrupted during an IO operation.");
+                    break;
+                }
+                catch (IOException e) {
+                    // The position in the stream is unknown, so stop.
+                    System.out.println("Exception occurred:");
+                    e.printStackTrace(System.out);
+                    break;
+                }
+            }
+        }
+
+
         public void shutdown() {
             done = true;
         }
@@ -136,8 +260,33 @@ public class SharedServerClient extends InteractiveClient {
     public SharedServerClient(String hostname, int port) throws IOException {
         // Try to establish a connection to the shared database server.
         socket = new Socket(hostname, port);
-        objectOutput = new ObjectOutputStream(socket.getOutputStream());
-        objectInput = new ObjectInputStream(socket.getInputStream());
+
+        String protocol =
+            System.getProperty(PROP_PROTOCOL, DEFAULT_PROTOCOL).trim();
+        if (PROTOCOL_BINARY.equalsIgnoreCase(protocol)) {
+            wireOutput = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+            wireInput = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+
+            byte flags = 0;
+            if (Boolean.parseBoolean(System.getProperty(PROP_COMPRESS, "false").trim()))
+                flags |= WireProtocol.FLAG_COMPRESS;
+
+            WireProtocol.writeHandshake(wireOutput, flags);
+            flags = WireProtocol.readHandshake(wireInput);
+            logger.debug(String.format(
+                "Connected with the binary protocol, flags 0x%02X", flags));
+        }
+        else if (PROTOCOL_SERIALIZED.equalsIgnoreCase(protocol)) {
+            objectOutput = new ObjectOutputStream(socket.getOutputStream());
+            objectInput = new ObjectInputStream(socket.getInputStream());
+        }
+        else {
+            socket.close();
+            throw new IllegalArgumentException(
+                "Unrecognized client protocol " + protocol);
+        }
 
         semCommandDone = new Semaphore(0);
     }
@@ -157,7 +306,10 @@ public class SharedServerClient extends InteractiveClient {
         // command.  We want to send that string, since the Command object
         // itself is too complicated to send across the wire.
         String commandString = typedBytes.toString();
-        objectOutput.writeObject(commandString);
+        if (wireOutput != null)
+            WireProtocol.writeCommand(wireOutput, commandString);
+        else
+            objectOutput.writeObject(commandString);
 
         // Wait for the command to be completed.
         semCommandDone.acquire();
@@ -168,8 +320,14 @@ public class SharedServerClient extends InteractiveClient {
         receiver.shutdown();
         receiverThread.interrupt();
 
-        objectInput.close();
-        objectOutput.close();
+        if (wireOutput != null) {
+            wireInput.close();
+            wireOutput.close();
+        }
+        else {
+            objectInput.close();
+            objectOutput.close();
+        }
         socket.close();
     }
 
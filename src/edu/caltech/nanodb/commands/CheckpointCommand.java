@@ -0,0 +1,54 @@
+package edu.caltech.nanodb.commands;
+
+
+import java.io.IOException;
+
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This command takes a checkpoint of the write-ahead log, so that recovery
+ * doesn't have to start as far back, and old WAL files can be deleted.  The
+ * command is only available when transaction processing is enabled.
+ */
+public class CheckpointCommand extends Command {
+    /**
+     * Construct a new <tt>CHECKPOINT</tt> command.
+     */
+    public CheckpointCommand() {
+        super(Command.Type.UTILITY);
+    }
+
+
+    @Override
+    public void execute(StorageManager storageManager)
+        throws ExecutionException {
+
+        TransactionManager txnMgr = storageManager.getTransactionManager();
+        if (txnMgr == null) {
+            throw new ExecutionException(
+                "Checkpoints require transaction processing to be enabled.");
+        }
+
+        try {
+            LogSequenceNumber lsn = txnMgr.checkpoint();
+            out.println("Checkpoint written at LSN " + lsn + ".");
+        }
+        catch (IOException e) {
+            throw new ExecutionException("IO error during checkpoint!", e);
+        }
+    }
+
+
+    /**
+     * Prints a simple representation of the checkpoint command.
+     *
+     * @return a string representing this checkpoint command
+     */
+    @Override
+    public String toString() {
+        return "Checkpoint";
+    }
+}
@@ -63,6 +63,31 @@ public abstract class Command {
     }
 
 
+    /**
+     * Returns the general category of this command.
+     *
+     * @return the general category of this command
+     */
+    public Type getType() {
+        return cmdType;
+    }
+
+
+    /**
+     * Sets the output stream that the command's output goes to.  This is
+     * only needed when a command is executed by a different session than the
+     * one that created it, such as a cached prepared statement.
+     *
+     * @param out the output stream of the session executing the command
+     */
+    public void setOutputStream(PrintStream out) {
+        if (out == null)
+            throw new IllegalArgumentException("out cannot be null");
+
+        this.out = out;
+    }
+
+
     /**
      * Actually performs the command.
      *
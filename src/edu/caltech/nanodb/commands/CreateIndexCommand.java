@@ -10,6 +10,7 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.indexes.IndexType;
 
 import edu.caltech.nanodb.relations.ColumnRefs;
 import edu.caltech.nanodb.relations.KeyColumnRefs;
@@ -42,6 +43,14 @@ public class CreateIndexCommand extends Command {
     private String tableName;
 
 
+    /**
+     * The kind of index specified with <tt>USING</tt>, such as
+     * <tt>HASH</tt> or <tt>BTREE</tt>, or {@code null} if no kind was
+     * specified.
+     */
+    private String indexType;
+
+
     /**
      * The list of column-names that the index is built against.  The order of
      * these values is important; for ordered indexes, the index records must be
@@ -72,6 +81,16 @@ public class CreateIndexCommand extends Command {
     }
 
 
+    public String getIndexType() {
+        return indexType;
+    }
+
+
+    public void setIndexType(String indexType) {
+        this.indexType = indexType;
+    }
+
+
     public void setProperties(CommandProperties properties) {
         this.properties = properties;
     }
@@ -98,6 +117,19 @@ public class CreateIndexCommand extends Command {
         TableManager tableManager = storageManager.getTableManager();
         IndexManager indexManager = storageManager.getIndexManager();
 
+        // Ordered indexes are the default, since they support both equality
+        // and range lookups.
+        IndexType type = IndexType.ORDERED_INDEX;
+        if (indexType != null) {
+            if ("HASH".equalsIgnoreCase(indexType)) {
+                type = IndexType.HASHED_INDEX;
+            }
+            else if (!"BTREE".equalsIgnoreCase(indexType)) {
+                throw new ExecutionException(
+                    "Unrecognized index type " + indexType);
+            }
+        }
+
         // Open the table and get the schema for the table.
         logger.debug(String.format("Opening table %s to retrieve schema",
             tableName));
@@ -124,7 +156,7 @@ public class CreateIndexCommand extends Command {
                 colRefs = new ColumnRefs(indexName, cols);
             }
 
-            indexManager.addIndexToTable(tableInfo, colRefs);
+            indexManager.addIndexToTable(tableInfo, colRefs, type);
         }
         catch (IOException e) {
             throw new ExecutionException(String.format(
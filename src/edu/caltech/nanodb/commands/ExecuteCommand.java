@@ -0,0 +1,123 @@
+package edu.caltech.nanodb.commands;
+
+
+import java.util.ArrayList;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionException;
+import edu.caltech.nanodb.qeval.PlanCache;
+import edu.caltech.nanodb.qeval.TupleProcessor;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This command executes a statement prepared by the <tt>PREPARE</tt>
+ * command, binding the values in its <tt>USING</tt> clause to the
+ * statement's <tt>?</tt> parameters.  The statement is taken from the
+ * {@link PlanCache} if it is there, so that it doesn't have to be parsed or
+ * planned again.
+ */
+public class ExecuteCommand extends Command {
+
+    /** The name of the prepared statement to execute. */
+    private String name;
+
+
+    /** The values of the statement's parameters, in order. */
+    private ArrayList<Expression> paramValues = new ArrayList<Expression>();
+
+
+    /**
+     * The tuple processor to hand the results to, if the prepared statement
+     * is a <tt>SELECT</tt> statement.  If this is {@code null} then the
+     * results are printed.
+     */
+    private TupleProcessor tupleProcessor;
+
+
+    public ExecuteCommand(String name) {
+        super(Command.Type.UTILITY);
+
+        if (name == null)
+            throw new IllegalArgumentException("name cannot be null");
+
+        this.name = name;
+    }
+
+
+    public void addParameterValue(Expression value) {
+        paramValues.add(value);
+    }
+
+
+    public void setTupleProcessor(TupleProcessor tupleProcessor) {
+        this.tupleProcessor = tupleProcessor;
+    }
+
+
+    @Override
+    public void execute(StorageManager storageManager)
+        throws ExecutionException {
+
+        String key = SessionState.get().getPreparedStatement(name);
+        if (key == null) {
+            throw new ExecutionException(
+                "There is no prepared statement named " + name + ".");
+        }
+
+        ArrayList<Object> values = new ArrayList<Object>();
+        for (Expression expr : paramValues) {
+            if (expr.hasSymbols()) {
+                throw new ExecutionException(
+                    "Parameter values cannot contain symbols!");
+            }
+
+            try {
+                values.add(expr.evaluate());
+            }
+            catch (ExpressionException e) {
+                throw new ExecutionException(
+                    "Couldn't evaluate a parameter value.", e);
+            }
+        }
+
+        PlanCache planCache = PlanCache.getInstance();
+        long generation = planCache.getGeneration();
+        QueryCommand command = planCache.checkOut(key);
+        if (command == null)
+            command = PrepareCommand.parseStatement(key);
+
+        int numParams = command.getParameters().size();
+        if (values.size() != numParams) {
+            planCache.checkIn(key, command, generation);
+            throw new ExecutionException(String.format(
+                "Prepared statement %s takes %d parameters, but %d values " +
+                "were given.", name, numParams, values.size()));
+        }
+
+        // The command may have been created by another session, so direct
+        // its output to this session.
+        command.bindParameters(values);
+        command.setOutputStream(out);
+        if (command instanceof SelectCommand)
+            ((SelectCommand) command).setTupleProcessor(tupleProcessor);
+
+        command.execute(storageManager);
+
+        // Only put the command back into the cache if it executed
+        // successfully, since a failure may have left its plan in an unknown
+        // state.  The cached command mustn't keep this session's tuple
+        // processor.
+        if (command instanceof SelectCommand)
+            ((SelectCommand) command).setTupleProcessor(null);
+
+        planCache.checkIn(key, command, generation);
+    }
+
+
+    @Override
+    public String toString() {
+        return "ExecuteCommand[" + name + ", values = " + paramValues + "]";
+    }
+}
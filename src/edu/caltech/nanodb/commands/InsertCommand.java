@@ -164,6 +164,7 @@ public class InsertCommand extends QueryCommand {
 
         if (values != null) {
             // Inserting a single row.
+            checkParameters();
             if (!explain)
                 insertSingleRow(storageManager);
             else
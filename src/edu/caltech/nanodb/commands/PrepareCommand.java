@@ -0,0 +1,142 @@
+package edu.caltech.nanodb.commands;
+
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import antlr.RecognitionException;
+import antlr.Token;
+import antlr.TokenStreamException;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.qeval.PlanCache;
+import edu.caltech.nanodb.sqlparse.NanoSqlLexer;
+import edu.caltech.nanodb.sqlparse.NanoSqlParser;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This command prepares a statement so that it can be executed many times
+ * with the <tt>EXECUTE</tt> command.  The statement is given as a string,
+ * and may contain <tt>?</tt> parameters whose values are given when the
+ * statement is executed.  Prepared statements belong to the session that
+ * prepared them, but the parsed and planned statements are shared between
+ * sessions through the {@link PlanCache}.
+ */
+public class PrepareCommand extends Command {
+
+    /** The name of the prepared statement. */
+    private String name;
+
+
+    /** The text of the statement to prepare. */
+    private String sql;
+
+
+    public PrepareCommand(String name, String sql) {
+        super(Command.Type.UTILITY);
+
+        if (name == null)
+            throw new IllegalArgumentException("name cannot be null");
+
+        if (sql == null)
+            throw new IllegalArgumentException("sql cannot be null");
+
+        this.name = name;
+        this.sql = sql;
+    }
+
+
+    /**
+     * Parses the statement so that any errors in it are reported right away,
+     * and puts the parsed statement into the plan cache.  The statement is
+     * planned when it is first executed.
+     */
+    @Override
+    public void execute(StorageManager storageManager)
+        throws ExecutionException {
+
+        String key = PlanCache.normalize(sql);
+
+        PlanCache planCache = PlanCache.getInstance();
+        long generation = planCache.getGeneration();
+        QueryCommand command = planCache.checkOut(key);
+        if (command == null)
+            command = parseStatement(key);
+
+        planCache.checkIn(key, command, generation);
+
+        SessionState.get().addPreparedStatement(name, key);
+        out.printf("Prepared statement %s with %d parameters.%n", name,
+            command.getParameters().size());
+    }
+
+
+    /**
+     * Parses the text of a statement to prepare.
+     *
+     * @param sql the text of the statement
+     *
+     * @return the parsed statement, marked as a prepared statement
+     *
+     * @throws ExecutionException if the text isn't a single <tt>SELECT</tt>,
+     *         <tt>INSERT</tt>, <tt>UPDATE</tt> or <tt>DELETE</tt> statement
+     */
+    static QueryCommand parseStatement(String sql) throws ExecutionException {
+        StringReader strReader = new StringReader(sql);
+        NanoSqlLexer lexer = new NanoSqlLexer(strReader);
+
+        // The parser recovers from some syntax errors after reporting them,
+        // but a statement with any errors shouldn't be prepared.
+        final ArrayList<RecognitionException> errors =
+            new ArrayList<RecognitionException>();
+        NanoSqlParser parser = new NanoSqlParser(lexer) {
+            @Override
+            public void reportError(RecognitionException e) {
+                errors.add(e);
+            }
+        };
+
+        List<Command> commands;
+        try {
+            commands = parser.commands();
+            if (!errors.isEmpty())
+                throw errors.get(0);
+
+            if (parser.LA(1) != Token.EOF_TYPE) {
+                throw new ExecutionException(
+                    "Unexpected text at the end of the prepared statement.");
+            }
+        }
+        catch (RecognitionException e) {
+            throw new ExecutionException(
+                "Couldn't parse the prepared statement.", e);
+        }
+        catch (TokenStreamException e) {
+            throw new ExecutionException(
+                "Couldn't parse the prepared statement.", e);
+        }
+
+        if (commands.size() != 1) {
+            throw new ExecutionException(
+                "A prepared statement must be a single statement.");
+        }
+
+        Command command = commands.get(0);
+        if (!(command instanceof QueryCommand)) {
+            throw new ExecutionException("Only SELECT, INSERT, UPDATE and " +
+                "DELETE statements can be prepared.");
+        }
+
+        QueryCommand queryCommand = (QueryCommand) command;
+        queryCommand.setPrepared(true);
+        return queryCommand;
+    }
+
+
+    @Override
+    public String toString() {
+        return "PrepareCommand[" + name + " = \"" + sql + "\"]";
+    }
+}
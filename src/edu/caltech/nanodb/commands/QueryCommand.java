@@ -2,10 +2,13 @@ package edu.caltech.nanodb.commands;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import edu.caltech.nanodb.qeval.PlanCost;
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ParameterValue;
 import edu.caltech.nanodb.plans.PlanNode;
 import edu.caltech.nanodb.qeval.EvalStats;
 import edu.caltech.nanodb.qeval.QueryEvaluator;
@@ -62,6 +65,22 @@ public abstract class QueryCommand extends Command {
     protected boolean explain = false;
 
 
+    /**
+     * The <tt>?</tt> parameters of the command, in the order that they appear
+     * in the command.
+     */
+    private List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+
+
+    /**
+     * If this flag is true then the command is a prepared statement.  The
+     * plan of a prepared statement is kept after the statement is executed,
+     * and is reused by later executions instead of planning the statement
+     * again.
+     */
+    private boolean prepared = false;
+
+
     /**
      * Initializes a new query-command object.
      *
@@ -78,6 +97,66 @@ public abstract class QueryCommand extends Command {
     }
 
 
+    public void setParameters(List<ParameterValue> parameters) {
+        if (parameters == null)
+            throw new IllegalArgumentException("parameters cannot be null");
+
+        this.parameters = parameters;
+    }
+
+
+    public List<ParameterValue> getParameters() {
+        return parameters;
+    }
+
+
+    /**
+     * Binds values to the command's <tt>?</tt> parameters, for the next time
+     * that the command is executed.
+     *
+     * @param values the values of the parameters, in the order that the
+     *        parameters appear in the command
+     *
+     * @throws IllegalArgumentException if the number of values doesn't match
+     *         the number of parameters
+     */
+    public void bindParameters(List<Object> values) {
+        if (values.size() != parameters.size()) {
+            throw new IllegalArgumentException(String.format(
+                "Expected %d parameter values; got %d", parameters.size(),
+                values.size()));
+        }
+
+        for (int i = 0; i < values.size(); i++)
+            parameters.get(i).setValue(values.get(i));
+    }
+
+
+    /**
+     * Checks that the command only has <tt>?</tt> parameters if it is a
+     * prepared statement, since otherwise nothing binds values to them.
+     *
+     * @throws ExecutionException if the command has parameters but is not a
+     *         prepared statement
+     */
+    protected void checkParameters() throws ExecutionException {
+        if (!prepared && !parameters.isEmpty()) {
+            throw new ExecutionException(
+                "Parameters can only be used in prepared statements.");
+        }
+    }
+
+
+    public void setPrepared(boolean f) {
+        prepared = f;
+    }
+
+
+    public boolean isPrepared() {
+        return prepared;
+    }
+
+
     @Override
     public void execute(StorageManager storageManager)
         throws ExecutionException {
@@ -85,8 +164,15 @@ public abstract class QueryCommand extends Command {
         if (storageManager == null)
             throw new IllegalArgumentException("storageManager cannot be null");
 
+        checkParameters();
+
         try {
-            prepareQueryPlan(storageManager);
+            long planningTimeNanos = 0;
+            if (plan == null || !prepared) {
+                long planStartTime = System.nanoTime();
+                prepareQueryPlan(storageManager);
+                planningTimeNanos = System.nanoTime() - planStartTime;
+            }
 
             if (!explain) {
                 // Debug:  print out the plan and its costing details.
@@ -106,12 +192,18 @@ public abstract class QueryCommand extends Command {
 
                 // Execute the query plan, then print out the evaluation stats.
 
+                // Only SELECT results can be produced in batches, since the
+                // other commands need the tuples from the table files.
+
                 TupleProcessor processor = getTupleProcessor();
-                EvalStats stats = QueryEvaluator.executePlan(plan, processor);
+                EvalStats stats = QueryEvaluator.executePlan(plan, processor,
+                    queryType == Type.SELECT);
+                stats.setPlanningTimeNanos(planningTimeNanos);
 
                 // Print out the evaluation statistics.
 
-                out.printf("%s took %f sec to evaluate.%n", queryType,
+                out.printf("%s took %f sec to plan and %f sec to evaluate.%n",
+                    queryType, stats.getPlanningTimeSecs(),
                     stats.getElapsedTimeSecs());
 
                 String desc;
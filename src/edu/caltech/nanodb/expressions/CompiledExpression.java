@@ -0,0 +1,141 @@
+package edu.caltech.nanodb.expressions;
+
+
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * An expression that has been compiled by the {@link ExpressionCompiler}
+ * for tuples of a particular schema.  The compiled code reads column values
+ * straight from the tuple by index, and computes with primitive values
+ * wherever the column types allow it.
+ * <p>
+ * The compiled code trusts the column types of the schema it was compiled
+ * for.  If a tuple turns out to hold a value of some other type, the
+ * compiled expression permanently falls back to interpreting the original
+ * expression, so the results are always the same as the interpreter's.
+ */
+public class CompiledExpression {
+
+    /** The expression that was compiled. */
+    private Expression expr;
+
+
+    /** The schema of the tuples that the expression is evaluated against. */
+    private Schema schema;
+
+
+    /**
+     * The compiled form of the expression as a predicate, or {@code null} if
+     * the expression was compiled to produce a value.
+     */
+    private ExpressionCompiler.Predicate predicate;
+
+
+    /**
+     * The compiled form of the expression as a value, or {@code null} if the
+     * expression was compiled as a predicate.
+     */
+    private ExpressionCompiler.Value value;
+
+
+    /**
+     * True if a tuple didn't match the types that the expression was
+     * compiled for, so the expression is now interpreted.
+     */
+    private boolean interpreted;
+
+
+    /** The environment used to interpret the expression. */
+    private Environment environment;
+
+
+    CompiledExpression(Expression expr, Schema schema,
+                       ExpressionCompiler.Predicate predicate,
+                       ExpressionCompiler.Value value) {
+        this.expr = expr;
+        this.schema = schema;
+        this.predicate = predicate;
+        this.value = value;
+    }
+
+
+    public Expression getExpression() {
+        return expr;
+    }
+
+
+    /** Returns true if the expression was compiled as a predicate. */
+    public boolean isPredicate() {
+        return (predicate != null);
+    }
+
+
+    /**
+     * Evaluates the expression against a tuple, and returns its value.  The
+     * expression must not have been compiled as a predicate.
+     *
+     * @param tuple the tuple to evaluate the expression against
+     *
+     * @return the value of the expression, which is the same object that
+     *         {@link Expression#evaluate} would produce
+     */
+    public Object evaluate(Tuple tuple) {
+        if (value == null)
+            throw new IllegalStateException("Expression was compiled as a predicate");
+
+        if (!interpreted) {
+            try {
+                return value.getObject(tuple);
+            }
+            catch (ExpressionCompiler.TypeMismatchException e) {
+                interpreted = true;
+            }
+        }
+
+        return expr.evaluate(getEnvironment(tuple));
+    }
+
+
+    /**
+     * Evaluates the expression as a predicate against a tuple.  The
+     * expression must have been compiled as a predicate.
+     *
+     * @param tuple the tuple to evaluate the expression against
+     *
+     * @return the same result that {@link Expression#evaluatePredicate}
+     *         would produce
+     */
+    public boolean evaluatePredicate(Tuple tuple) {
+        if (predicate == null)
+            throw new IllegalStateException("Expression was not compiled as a predicate");
+
+        if (!interpreted) {
+            try {
+                return predicate.test(tuple);
+            }
+            catch (ExpressionCompiler.TypeMismatchException e) {
+                interpreted = true;
+            }
+        }
+
+        return expr.evaluatePredicate(getEnvironment(tuple));
+    }
+
+
+    private Environment getEnvironment(Tuple tuple) {
+        if (environment == null)
+            environment = new Environment();
+
+        environment.clear();
+        environment.addTuple(schema, tuple);
+        return environment;
+    }
+
+
+    @Override
+    public String toString() {
+        return "Compiled[" + expr + "]";
+    }
+}
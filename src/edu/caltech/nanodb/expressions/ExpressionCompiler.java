@@ -0,0 +1,835 @@
+package edu.caltech.nanodb.expressions;
+
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.PageTuple;
+
+
+/**
+ * This class compiles expressions into trees of small evaluator objects
+ * that are specialized to the types of the values they compute, so that
+ * the expressions can be evaluated against tuples without looking up
+ * columns by name, coercing values, or boxing intermediate results.  Each
+ * evaluator reads column values straight from the tuple by index, using the
+ * primitive accessors of {@link PageTuple} when it can.
+ * <p>
+ * Only a subset of expressions can be compiled:  column references and
+ * literals of the types <tt>INTEGER</tt>, <tt>BIGINT</tt>, <tt>DOUBLE</tt>,
+ * <tt>CHAR</tt> and <tt>VARCHAR</tt>, the <tt>+</tt>, <tt>-</tt>,
+ * <tt>*</tt>, <tt>/</tt> and <tt>%</tt> operators, comparisons, <tt>AND</tt>,
+ * <tt>OR</tt>, <tt>NOT</tt>, and <tt>IS [NOT] NULL</tt>.  The compile
+ * methods return {@code null} for any other expression, and the caller is
+ * expected to interpret the expression instead.
+ * <p>
+ * The compiled code follows the interpreter's semantics exactly; for
+ * example, dividing two integers produces a <tt>double</tt>, and a
+ * comparison against <tt>NULL</tt> is false in a predicate.
+ *
+ * @design (The evaluators are ordinary classes shared by all compiled
+ *         expressions, rather than classes generated for each expression.
+ *         Generated code, including trees of method handles, runs slowly
+ *         until the JVM has warmed it up, which takes longer than most
+ *         queries run for.  The shared classes stay warm from one query to
+ *         the next.)
+ */
+public class ExpressionCompiler {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ExpressionCompiler.class);
+
+
+    /**
+     * This exception is thrown by compiled code when a tuple holds a value
+     * whose type doesn't match the type of its column in the schema the
+     * expression was compiled against.  This can happen for computed
+     * columns; for example, <tt>AVG()</tt> of an <tt>INTEGER</tt> column
+     * reports an <tt>INTEGER</tt> type but produces <tt>Double</tt> values.
+     * A single instance is reused, so it carries no stack trace.
+     */
+    static class TypeMismatchException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TypeMismatchException() {
+            super("Value doesn't match its column type");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+
+    /** The exception thrown by compiled code on a type mismatch. */
+    private static final TypeMismatchException TYPE_MISMATCH =
+        new TypeMismatchException();
+
+
+    /** The types of the values that compiled code computes. */
+    private enum ValueType {
+        INT,
+        LONG,
+        DOUBLE,
+        STRING,
+
+        /** A column value of any type, which is only passed through. */
+        OBJECT
+    }
+
+
+    /**
+     * This class only provides static methods, so it cannot be instantiated.
+     */
+    private ExpressionCompiler() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Compiles an expression that produces a value.  The compiled expression
+     * produces the same objects that {@link Expression#evaluate} would.
+     *
+     * @param expr the expression to compile
+     *
+     * @param schema the schema of the tuples that the expression will be
+     *        evaluated against
+     *
+     * @return the compiled expression, or {@code null} if the expression
+     *         can't be compiled, or expression compilation is disabled
+     */
+    public static CompiledExpression compile(Expression expr, Schema schema) {
+        if (!QueryEvaluator.isExpressionCompilationEnabled())
+            return null;
+
+        // A plain column reference produces whatever object the tuple holds,
+        // whatever its type.
+        Value value;
+        int colIndex = getColumnIndex(expr, schema);
+        if (colIndex != -1)
+            value = new ObjectColumn(colIndex);
+        else
+            value = compileValue(expr, schema);
+
+        if (value == null) {
+            logger.debug("Can't compile expression " + expr);
+            return null;
+        }
+
+        logger.debug("Compiled expression " + expr);
+        PerformanceCounters.inc(PerformanceCounters.EXEC_COMPILED_EXPRESSIONS);
+        return new CompiledExpression(expr, schema, null, value);
+    }
+
+
+    /**
+     * Compiles an expression that is used as a predicate.  The compiled
+     * expression produces the same results that
+     * {@link Expression#evaluatePredicate} would.
+     *
+     * @param expr the predicate to compile
+     *
+     * @param schema the schema of the tuples that the predicate will be
+     *        evaluated against
+     *
+     * @return the compiled predicate, or {@code null} if the predicate
+     *         can't be compiled, or expression compilation is disabled
+     */
+    public static CompiledExpression compilePredicate(Expression expr,
+                                                      Schema schema) {
+        if (!QueryEvaluator.isExpressionCompilationEnabled())
+            return null;
+
+        Predicate predicate = compileBoolean(expr, schema);
+        if (predicate == null) {
+            logger.debug("Can't compile predicate " + expr);
+            return null;
+        }
+
+        logger.debug("Compiled predicate " + expr);
+        PerformanceCounters.inc(PerformanceCounters.EXEC_COMPILED_EXPRESSIONS);
+        return new CompiledExpression(expr, schema, predicate, null);
+    }
+
+
+    /**
+     * Compiles an expression into a predicate, where <tt>NULL</tt> results
+     * are reported as false.
+     *
+     * @return the compiled predicate, or {@code null} if the expression
+     *         can't be compiled
+     */
+    private static Predicate compileBoolean(Expression expr, Schema schema) {
+        if (expr instanceof BooleanOperator) {
+            BooleanOperator boolOp = (BooleanOperator) expr;
+            int numTerms = boolOp.getNumTerms();
+            if (numTerms == 0)
+                return null;
+
+            Predicate[] terms = new Predicate[numTerms];
+            for (int i = 0; i < numTerms; i++) {
+                terms[i] = compileBoolean(boolOp.getTerm(i), schema);
+                if (terms[i] == null)
+                    return null;
+            }
+
+            switch (boolOp.getType()) {
+            case AND_EXPR:
+                return new And(terms);
+
+            case OR_EXPR:
+                return new Or(terms);
+
+            case NOT_EXPR:
+                // A NULL term counts as false, so NOT of it is true, which
+                // is also what the interpreter does.
+                if (numTerms == 1)
+                    return new Not(terms[0]);
+
+                return null;
+
+            default:
+                return null;
+            }
+        }
+        else if (expr instanceof CompareOperator) {
+            CompareOperator cmpOp = (CompareOperator) expr;
+            Value lhs = compileValue(cmpOp.getLeftExpression(), schema);
+            Value rhs = compileValue(cmpOp.getRightExpression(), schema);
+            if (lhs == null || rhs == null)
+                return null;
+
+            // Work out the type to compare the values as, following the
+            // coercion rules of TypeConverter.coerceComparison().
+            ValueType type;
+            if (lhs.type == ValueType.STRING && rhs.type == ValueType.STRING)
+                type = ValueType.STRING;
+            else if (lhs.type != ValueType.STRING && rhs.type != ValueType.STRING)
+                type = getArithmeticType(lhs.type, rhs.type);
+            else
+                return null;
+
+            return new Comparison(cmpOp.getType(), type, lhs, rhs);
+        }
+        else if (expr instanceof IsNullOperator) {
+            IsNullOperator isNullOp = (IsNullOperator) expr;
+            Expression operand = isNullOp.getExpression();
+
+            // Any column can be tested for NULL, whatever its type.
+            Value value;
+            int colIndex = getColumnIndex(operand, schema);
+            if (colIndex != -1)
+                value = new ObjectColumn(colIndex);
+            else
+                value = compileValue(operand, schema);
+
+            if (value == null)
+                return null;
+
+            return new NullTest(value, isNullOp.isInverted());
+        }
+        else if (expr instanceof LiteralValue) {
+            Object value = expr.evaluate(null);
+            if (value instanceof Boolean)
+                return new ConstantPredicate((Boolean) value);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Compiles an expression that produces a numeric or string value.
+     *
+     * @return the compiled value, or {@code null} if the expression can't be
+     *         compiled
+     */
+    private static Value compileValue(Expression expr, Schema schema) {
+        if (expr instanceof ColumnValue) {
+            int colIndex = getColumnIndex(expr, schema);
+            if (colIndex == -1)
+                return null;
+
+            switch (schema.getColumnInfo(colIndex).getType().getBaseType()) {
+            case INTEGER:
+                return new IntColumn(colIndex);
+
+            case BIGINT:
+                return new LongColumn(colIndex);
+
+            case DOUBLE:
+                return new DoubleColumn(colIndex);
+
+            case CHAR:
+            case VARCHAR:
+                return new StringColumn(colIndex);
+
+            default:
+                return null;
+            }
+        }
+        else if (expr instanceof LiteralValue) {
+            Object value = expr.evaluate(null);
+            if (value instanceof Integer || value instanceof Long ||
+                value instanceof Double || value instanceof String) {
+                return new Constant(value);
+            }
+        }
+        else if (expr instanceof ArithmeticOperator) {
+            ArithmeticOperator arithOp = (ArithmeticOperator) expr;
+            Value lhs = compileValue(arithOp.leftExpr, schema);
+            Value rhs = compileValue(arithOp.rightExpr, schema);
+            if (lhs == null || rhs == null ||
+                lhs.type == ValueType.STRING || rhs.type == ValueType.STRING) {
+                return null;
+            }
+
+            // Follow the coercion rules of ArithmeticOperator.evalObjects().
+            ValueType type = getArithmeticType(lhs.type, rhs.type);
+            switch (arithOp.type) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case REMAINDER:
+                return new Arithmetic(arithOp.type, type, lhs, rhs);
+
+            case DIVIDE:
+                // Division always produces a double, even for integers.
+                return new Arithmetic(arithOp.type, ValueType.DOUBLE, lhs, rhs);
+
+            default:
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Returns the type that two numeric values are coerced to before they are
+     * combined or compared.
+     */
+    private static ValueType getArithmeticType(ValueType type1,
+                                               ValueType type2) {
+        if (type1 == ValueType.DOUBLE || type2 == ValueType.DOUBLE)
+            return ValueType.DOUBLE;
+        else if (type1 == ValueType.LONG || type2 == ValueType.LONG)
+            return ValueType.LONG;
+        else
+            return ValueType.INT;
+    }
+
+
+    /**
+     * Returns the index of the column that an expression refers to, or -1
+     * if the expression isn't a column reference, or the column isn't in
+     * the schema or is ambiguous.  The interpreter reports ambiguous columns
+     * as errors, and looks for missing columns in enclosing environments.
+     */
+    private static int getColumnIndex(Expression expr, Schema schema) {
+        if (!(expr instanceof ColumnValue))
+            return -1;
+
+        ColumnName colName = ((ColumnValue) expr).getColumnName();
+        if (colName.isColumnWildcard())
+            return -1;
+
+        try {
+            return schema.getColumnIndex(colName);
+        }
+        catch (SchemaNameException e) {
+            return -1;
+        }
+    }
+
+
+    /*========================================================================
+     * The classes below make up compiled expressions.
+     */
+
+
+    /** A compiled expression that is evaluated as a predicate. */
+    abstract static class Predicate {
+        abstract boolean test(Tuple tuple);
+    }
+
+
+    /**
+     * A compiled expression that produces a value.  Only the accessor for
+     * the value's own type may be called, or an accessor for a wider
+     * numeric type, and only when the value isn't <tt>NULL</tt>.
+     */
+    abstract static class Value {
+        final ValueType type;
+
+        Value(ValueType type) {
+            this.type = type;
+        }
+
+        boolean isNull(Tuple tuple) {
+            return false;
+        }
+
+        int getInt(Tuple tuple) {
+            throw new IllegalStateException("Not an int value");
+        }
+
+        long getLong(Tuple tuple) {
+            return getInt(tuple);
+        }
+
+        double getDouble(Tuple tuple) {
+            if (type == ValueType.LONG)
+                return getLong(tuple);
+
+            return getInt(tuple);
+        }
+
+        String getString(Tuple tuple) {
+            throw new IllegalStateException("Not a string value");
+        }
+
+        /**
+         * Returns the value as the object that the interpreter would
+         * produce, or {@code null} if the value is <tt>NULL</tt>.
+         */
+        Object getObject(Tuple tuple) {
+            if (isNull(tuple))
+                return null;
+
+            switch (type) {
+            case INT:
+                return Integer.valueOf(getInt(tuple));
+
+            case LONG:
+                return Long.valueOf(getLong(tuple));
+
+            case DOUBLE:
+                return Double.valueOf(getDouble(tuple));
+
+            default:
+                return getString(tuple);
+            }
+        }
+    }
+
+
+    /** The base class of values read from a column of the tuple. */
+    private abstract static class ColumnRef extends Value {
+        final int colIndex;
+
+        ColumnRef(ValueType type, int colIndex) {
+            super(type);
+            this.colIndex = colIndex;
+        }
+
+        @Override
+        boolean isNull(Tuple tuple) {
+            return tuple.isNullValue(colIndex);
+        }
+    }
+
+
+    /** A column value of any type, which is passed through unchanged. */
+    private static class ObjectColumn extends ColumnRef {
+        ObjectColumn(int colIndex) {
+            super(ValueType.OBJECT, colIndex);
+        }
+
+        @Override
+        Object getObject(Tuple tuple) {
+            return tuple.getColumnValue(colIndex);
+        }
+    }
+
+
+    private static class IntColumn extends ColumnRef {
+        IntColumn(int colIndex) {
+            super(ValueType.INT, colIndex);
+        }
+
+        @Override
+        int getInt(Tuple tuple) {
+            if (tuple instanceof PageTuple) {
+                try {
+                    return ((PageTuple) tuple).getIntColumnValue(colIndex);
+                }
+                catch (IllegalArgumentException e) {
+                    throw TYPE_MISMATCH;
+                }
+            }
+
+            Object value = tuple.getColumnValue(colIndex);
+            if (value instanceof Integer)
+                return (Integer) value;
+
+            throw TYPE_MISMATCH;
+        }
+    }
+
+
+    private static class LongColumn extends ColumnRef {
+        LongColumn(int colIndex) {
+            super(ValueType.LONG, colIndex);
+        }
+
+        @Override
+        long getLong(Tuple tuple) {
+            if (tuple instanceof PageTuple) {
+                try {
+                    return ((PageTuple) tuple).getLongColumnValue(colIndex);
+                }
+                catch (IllegalArgumentException e) {
+                    throw TYPE_MISMATCH;
+                }
+            }
+
+            Object value = tuple.getColumnValue(colIndex);
+            if (value instanceof Long)
+                return (Long) value;
+
+            throw TYPE_MISMATCH;
+        }
+    }
+
+
+    private static class DoubleColumn extends ColumnRef {
+        DoubleColumn(int colIndex) {
+            super(ValueType.DOUBLE, colIndex);
+        }
+
+        @Override
+        double getDouble(Tuple tuple) {
+            if (tuple instanceof PageTuple) {
+                try {
+                    return ((PageTuple) tuple).getDoubleColumnValue(colIndex);
+                }
+                catch (IllegalArgumentException e) {
+                    throw TYPE_MISMATCH;
+                }
+            }
+
+            Object value = tuple.getColumnValue(colIndex);
+            if (value instanceof Double)
+                return (Double) value;
+
+            throw TYPE_MISMATCH;
+        }
+    }
+
+
+    private static class StringColumn extends ColumnRef {
+        StringColumn(int colIndex) {
+            super(ValueType.STRING, colIndex);
+        }
+
+        @Override
+        String getString(Tuple tuple) {
+            Object value = tuple.getColumnValue(colIndex);
+            if (value instanceof String)
+                return (String) value;
+
+            throw TYPE_MISMATCH;
+        }
+    }
+
+
+    /** A literal value, which is never <tt>NULL</tt>. */
+    private static class Constant extends Value {
+        final Object value;
+
+        int intValue;
+
+        long longValue;
+
+        double doubleValue;
+
+        Constant(Object value) {
+            super(value instanceof Integer ? ValueType.INT :
+                  value instanceof Long ? ValueType.LONG :
+                  value instanceof Double ? ValueType.DOUBLE :
+                  ValueType.STRING);
+
+            this.value = value;
+            if (value instanceof Number) {
+                Number num = (Number) value;
+                intValue = num.intValue();
+                longValue = num.longValue();
+                doubleValue = num.doubleValue();
+            }
+        }
+
+        @Override
+        int getInt(Tuple tuple) {
+            return intValue;
+        }
+
+        @Override
+        long getLong(Tuple tuple) {
+            return longValue;
+        }
+
+        @Override
+        double getDouble(Tuple tuple) {
+            return doubleValue;
+        }
+
+        @Override
+        String getString(Tuple tuple) {
+            return (String) value;
+        }
+
+        @Override
+        Object getObject(Tuple tuple) {
+            return value;
+        }
+    }
+
+
+    /**
+     * An arithmetic operation on two numeric values, which are coerced to
+     * the operation's type.  The result is <tt>NULL</tt> if either operand
+     * is.
+     */
+    private static class Arithmetic extends Value {
+        final ArithmeticOperator.Type op;
+
+        final Value lhs;
+
+        final Value rhs;
+
+        Arithmetic(ArithmeticOperator.Type op, ValueType type, Value lhs,
+                   Value rhs) {
+            super(type);
+            this.op = op;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        boolean isNull(Tuple tuple) {
+            return lhs.isNull(tuple) || rhs.isNull(tuple);
+        }
+
+        @Override
+        int getInt(Tuple tuple) {
+            int a = lhs.getInt(tuple);
+            int b = rhs.getInt(tuple);
+
+            switch (op) {
+            case ADD:
+                return a + b;
+            case SUBTRACT:
+                return a - b;
+            case MULTIPLY:
+                return a * b;
+            case REMAINDER:
+                return a % b;
+            default:
+                throw new IllegalStateException("Unexpected operation " + op);
+            }
+        }
+
+        @Override
+        long getLong(Tuple tuple) {
+            // Integer results are computed as integers, and then widened.
+            if (type == ValueType.INT)
+                return getInt(tuple);
+
+            long a = lhs.getLong(tuple);
+            long b = rhs.getLong(tuple);
+
+            switch (op) {
+            case ADD:
+                return a + b;
+            case SUBTRACT:
+                return a - b;
+            case MULTIPLY:
+                return a * b;
+            case REMAINDER:
+                return a % b;
+            default:
+                throw new IllegalStateException("Unexpected operation " + op);
+            }
+        }
+
+        @Override
+        double getDouble(Tuple tuple) {
+            if (type == ValueType.INT)
+                return getInt(tuple);
+            else if (type == ValueType.LONG)
+                return getLong(tuple);
+
+            double a = lhs.getDouble(tuple);
+            double b = rhs.getDouble(tuple);
+
+            switch (op) {
+            case ADD:
+                return a + b;
+            case SUBTRACT:
+                return a - b;
+            case MULTIPLY:
+                return a * b;
+            case DIVIDE:
+                return a / b;
+            case REMAINDER:
+                return a % b;
+            default:
+                throw new IllegalStateException("Unexpected operation " + op);
+            }
+        }
+    }
+
+
+    /**
+     * A comparison between two values, which are coerced to the comparison's
+     * type.  The comparison is false if either value is <tt>NULL</tt>.
+     */
+    private static class Comparison extends Predicate {
+        final CompareOperator.Type op;
+
+        final ValueType type;
+
+        final Value lhs;
+
+        final Value rhs;
+
+        Comparison(CompareOperator.Type op, ValueType type, Value lhs,
+                   Value rhs) {
+            this.op = op;
+            this.type = type;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        boolean test(Tuple tuple) {
+            if (lhs.isNull(tuple) || rhs.isNull(tuple))
+                return false;
+
+            int result;
+            switch (type) {
+            case INT:
+                result = Integer.compare(lhs.getInt(tuple), rhs.getInt(tuple));
+                break;
+
+            case LONG:
+                result = Long.compare(lhs.getLong(tuple), rhs.getLong(tuple));
+                break;
+
+            case DOUBLE:
+                result = Double.compare(lhs.getDouble(tuple),
+                                        rhs.getDouble(tuple));
+                break;
+
+            default:
+                result = lhs.getString(tuple).compareTo(rhs.getString(tuple));
+            }
+
+            switch (op) {
+            case EQUALS:
+                return result == 0;
+            case NOT_EQUALS:
+                return result != 0;
+            case LESS_THAN:
+                return result < 0;
+            case GREATER_THAN:
+                return result > 0;
+            case LESS_OR_EQUAL:
+                return result <= 0;
+            case GREATER_OR_EQUAL:
+                return result >= 0;
+            default:
+                throw new IllegalStateException("Unexpected comparison " + op);
+            }
+        }
+    }
+
+
+    private static class And extends Predicate {
+        final Predicate[] terms;
+
+        And(Predicate[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        boolean test(Tuple tuple) {
+            for (Predicate term : terms) {
+                if (!term.test(tuple))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+
+    private static class Or extends Predicate {
+        final Predicate[] terms;
+
+        Or(Predicate[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        boolean test(Tuple tuple) {
+            for (Predicate term : terms) {
+                if (term.test(tuple))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+
+    private static class Not extends Predicate {
+        final Predicate term;
+
+        Not(Predicate term) {
+            this.term = term;
+        }
+
+        @Override
+        boolean test(Tuple tuple) {
+            return !term.test(tuple);
+        }
+    }
+
+
+    /** Implements <tt>IS NULL</tt> and <tt>IS NOT NULL</tt>. */
+    private static class NullTest extends Predicate {
+        final Value value;
+
+        final boolean invert;
+
+        NullTest(Value value, boolean invert) {
+            this.value = value;
+            this.invert = invert;
+        }
+
+        @Override
+        boolean test(Tuple tuple) {
+            return value.isNull(tuple) != invert;
+        }
+    }
+
+
+    private static class ConstantPredicate extends Predicate {
+        final boolean value;
+
+        ConstantPredicate(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean test(Tuple tuple) {
+            return value;
+        }
+    }
+}
@@ -25,6 +25,17 @@ public class IsNullOperator extends Expression {
     }
 
 
+    public Expression getExpression() {
+        return expr;
+    }
+
+
+    /** Returns true if the operator computes <tt>IS NOT NULL</tt>. */
+    public boolean isInverted() {
+        return invert;
+    }
+
+
     @Override
     public ColumnInfo getColumnInfo(Schema schema) throws SchemaNameException {
         // This operator always returns Boolean values, so just pass a Boolean
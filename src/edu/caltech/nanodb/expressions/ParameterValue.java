@@ -0,0 +1,113 @@
+package edu.caltech.nanodb.expressions;
+
+
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+
+
+/**
+ * This expression class represents a <tt>?</tt> parameter of a prepared
+ * statement.  The parameter's value is bound each time the statement is
+ * executed, so that the statement can be parsed and planned once and then
+ * evaluated many times with different values.
+ * <p>
+ * Unlike other expressions, a parameter is not copied by
+ * {@link #duplicate}, since the planner may copy the expressions of a
+ * statement into the plan, and the copies must still see the values that
+ * are bound to the statement's parameters.
+ */
+public class ParameterValue extends Expression {
+
+    /**
+     * The position of this parameter in its statement, starting at 0 for
+     * the leftmost parameter.
+     */
+    private int index;
+
+
+    /** The value currently bound to this parameter. */
+    private Object value;
+
+
+    public ParameterValue(int index) {
+        if (index < 0)
+            throw new IllegalArgumentException("index must be nonnegative");
+
+        this.index = index;
+    }
+
+
+    public int getIndex() {
+        return index;
+    }
+
+
+    /**
+     * Binds a value to this parameter, for the next time its statement is
+     * executed.
+     *
+     * @param value the value of the parameter, which may be {@code null}
+     */
+    public void setValue(Object value) {
+        this.value = value;
+    }
+
+
+    public Object getValue() {
+        return value;
+    }
+
+
+    public ColumnInfo getColumnInfo(Schema schema) throws SchemaNameException {
+        ColumnType colType = new ColumnType(TypeConverter.getSQLType(value));
+        return new ColumnInfo(toString(), colType);
+    }
+
+
+    /** Parameters evaluate to the value that is currently bound to them. */
+    public Object evaluate(Environment env) {
+        return value;
+    }
+
+
+    @Override
+    public Expression traverse(ExpressionProcessor p) {
+        p.enter(this);
+        return p.leave(this);
+    }
+
+
+    @Override
+    public String toString() {
+        return "?" + (index + 1);
+    }
+
+
+    /** Parameters are equal if they are at the same position. */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof ParameterValue) {
+            ParameterValue other = (ParameterValue) obj;
+            return index == other.index;
+        }
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        return 31 * 11 + index;
+    }
+
+
+    /**
+     * Returns this parameter itself, so that every copy of an expression
+     * sees the value bound to the parameter.
+     */
+    @Override
+    public Expression duplicate() {
+        return this;
+    }
+}
@@ -0,0 +1,686 @@
+package edu.caltech.nanodb.expressions;
+
+
+import edu.caltech.nanodb.relations.ColumnVector;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+import edu.caltech.nanodb.relations.TupleBatch;
+
+
+/**
+ * This class evaluates an expression against the selected rows of a
+ * {@link TupleBatch}, a column at a time.  Column references, numeric
+ * literals, the <tt>+</tt>, <tt>-</tt>, <tt>*</tt>, <tt>/</tt> and
+ * <tt>%</tt> operators and comparisons between numeric values are computed
+ * with tight loops over primitive arrays, and <tt>AND</tt> and <tt>OR</tt>
+ * predicates are computed by narrowing the batch's selection vector.  Any other expression is
+ * evaluated a row at a time with {@link Expression#evaluate}, so every
+ * expression can be evaluated against a batch, even if it doesn't benefit.
+ * <p>
+ * The results are always the same as evaluating the expression against each
+ * row separately.  In particular, arithmetic produces values of the same
+ * types that {@link ArithmeticOperator#evalObjects} produces.
+ */
+public class VectorEvaluator {
+
+    /** The schema of the batches that the expression is evaluated against. */
+    private Schema schema;
+
+
+    /** The root of the tree of vectorized operations. */
+    private Node root;
+
+
+    /** The environment used to evaluate expressions a row at a time. */
+    private Environment environment;
+
+
+    /**
+     * The batch currently being evaluated against, so that rows can be
+     * evaluated one at a time.
+     */
+    private TupleBatch currentBatch;
+
+
+    /** A tuple that views the current row of {@link #currentBatch}. */
+    private TupleBatch.RowTuple rowTuple;
+
+
+    /** Holds the rows being filtered by {@link #filter}. */
+    private int[] selection;
+
+
+    /**
+     * Creates an evaluator for an expression.
+     *
+     * @param expr the expression to evaluate
+     *
+     * @param schema the schema of the batches to evaluate the expression
+     *        against
+     */
+    public VectorEvaluator(Expression expr, Schema schema) {
+        this.schema = schema;
+        root = makeNode(expr);
+    }
+
+
+    /**
+     * Returns the SQL type of the values that {@link #evaluate} produces, or
+     * {@code null} if the values are produced a row at a time and their type
+     * isn't known in advance.
+     */
+    public SQLDataType getResultType() {
+        return root.resultType;
+    }
+
+
+    /**
+     * Returns true if the expression is evaluated with vectorized operations,
+     * or false if it is evaluated a row at a time.
+     */
+    public boolean isVectorized() {
+        return !root.getClass().equals(Node.class);
+    }
+
+
+    /**
+     * Evaluates the expression against the selected rows of a batch.
+     *
+     * @param batch the batch to evaluate the expression against
+     *
+     * @param env the environment to use when part of the expression must be
+     *        evaluated a row at a time
+     *
+     * @return a vector holding the expression's value for each selected row
+     *         of the batch.  The values of other rows are undefined.  The
+     *         vector may be one of the batch's columns, or may be reused by
+     *         the next call to this method.
+     */
+    public ColumnVector evaluate(TupleBatch batch, Environment env) {
+        setBatch(batch, env);
+
+        int n = batch.getNumSelected();
+        int[] rows = getSelectedRows(batch);
+
+        try {
+            return root.evaluate(batch, rows, n);
+        }
+        finally {
+            currentBatch = null;
+        }
+    }
+
+
+    /**
+     * Narrows the selection vector of a batch to the selected rows that
+     * satisfy the expression, treating <tt>NULL</tt> as false.
+     *
+     * @param batch the batch to filter
+     *
+     * @param env the environment to use when part of the expression must be
+     *        evaluated a row at a time
+     *
+     * @return the number of rows still selected in the batch
+     */
+    public int filter(TupleBatch batch, Environment env) {
+        setBatch(batch, env);
+
+        int n = batch.getNumSelected();
+        int[] rows = getSelectedRows(batch);
+
+        // The filtered rows are written back into the same array, which is
+        // safe because the i-th output row is always written after the i-th
+        // input row has been read.
+        int[] result = ensureSelection(batch.getCapacity());
+        if (rows != result)
+            System.arraycopy(rows, 0, result, 0, n);
+
+        try {
+            n = root.filter(batch, result, n, result);
+        }
+        finally {
+            currentBatch = null;
+        }
+
+        batch.setSelection(result, n);
+        return n;
+    }
+
+
+    private void setBatch(TupleBatch batch, Environment env) {
+        if (batch != currentBatch || rowTuple == null) {
+            currentBatch = batch;
+            rowTuple = batch.getRowTuple();
+        }
+
+        environment = env;
+        environment.clear();
+        environment.addTuple(schema, rowTuple);
+    }
+
+
+    /**
+     * Returns an array holding the indexes of the selected rows of a batch.
+     * The array must not be modified.
+     */
+    private int[] getSelectedRows(TupleBatch batch) {
+        if (batch.getSelection() != null)
+            return batch.getSelection();
+
+        int n = batch.getNumSelected();
+        int[] rows = ensureSelection(batch.getCapacity());
+        for (int i = 0; i < n; i++)
+            rows[i] = i;
+
+        return rows;
+    }
+
+
+    private int[] ensureSelection(int capacity) {
+        if (selection == null || selection.length < capacity)
+            selection = new int[capacity];
+
+        return selection;
+    }
+
+
+    /**
+     * Returns a vector of the specified type with at least the specified
+     * capacity, reusing the existing vector if possible.
+     */
+    private static ColumnVector ensureVector(ColumnVector vector,
+        SQLDataType baseType, int capacity) {
+
+        if (vector == null || vector.getCapacity() < capacity ||
+            vector.getBaseType() != baseType) {
+            vector = new ColumnVector(baseType, capacity);
+        }
+
+        return vector;
+    }
+
+
+    /**
+     * Returns the SQL type of a literal value if it can be stored in a
+     * primitive array, or {@code null} otherwise.
+     */
+    private static SQLDataType getPrimitiveType(Object value) {
+        if (value instanceof Integer)
+            return SQLDataType.INTEGER;
+        else if (value instanceof Short)
+            return SQLDataType.SMALLINT;
+        else if (value instanceof Byte)
+            return SQLDataType.TINYINT;
+        else if (value instanceof Long)
+            return SQLDataType.BIGINT;
+        else if (value instanceof Double)
+            return SQLDataType.DOUBLE;
+
+        return null;
+    }
+
+
+    /** Returns true if values of the type are stored in primitive arrays. */
+    private static boolean isPrimitive(SQLDataType baseType) {
+        return ColumnVector.getStorage(baseType) != ColumnVector.Storage.OBJECT;
+    }
+
+
+    private Node makeNode(Expression expr) {
+        if (expr instanceof ColumnValue) {
+            ColumnName colName = ((ColumnValue) expr).getColumnName();
+            if (!colName.isColumnWildcard()) {
+                try {
+                    int colIndex = schema.getColumnIndex(colName);
+                    if (colIndex != -1)
+                        return new ColumnNode(expr, colIndex);
+                }
+                catch (SchemaNameException e) {
+                    // The column name is ambiguous, so let the row-at-a-time
+                    // evaluation report it.
+                }
+            }
+        }
+        else if (expr instanceof LiteralValue) {
+            Object value = expr.evaluate(null);
+            if (getPrimitiveType(value) != null)
+                return new ConstantNode(expr, value);
+        }
+        else if (expr instanceof ArithmeticOperator) {
+            ArithmeticOperator arithOp = (ArithmeticOperator) expr;
+            switch (arithOp.type) {
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case REMAINDER:
+                return new ArithmeticNode(arithOp, makeNode(arithOp.leftExpr),
+                    makeNode(arithOp.rightExpr));
+
+            default:
+                // Fall through to row-at-a-time evaluation.
+            }
+        }
+        else if (expr instanceof CompareOperator) {
+            CompareOperator cmpOp = (CompareOperator) expr;
+            return new CompareNode(cmpOp, makeNode(cmpOp.getLeftExpression()),
+                makeNode(cmpOp.getRightExpression()));
+        }
+        else if (expr instanceof BooleanOperator) {
+            BooleanOperator boolOp = (BooleanOperator) expr;
+            if (boolOp.getType() != BooleanOperator.Type.NOT_EXPR &&
+                boolOp.getNumTerms() > 0) {
+                Node[] terms = new Node[boolOp.getNumTerms()];
+                for (int i = 0; i < terms.length; i++)
+                    terms[i] = makeNode(boolOp.getTerm(i));
+
+                return new BooleanNode(boolOp, terms);
+            }
+        }
+
+        return new Node(expr, null);
+    }
+
+
+    /**
+     * A node in the tree of vectorized operations.  The base class evaluates
+     * its expression a row at a time; subclasses override {@link #evaluate}
+     * and {@link #filter} with vectorized implementations.
+     */
+    private class Node {
+        /** The expression that this node computes. */
+        protected Expression expr;
+
+        /**
+         * The SQL type of the values this node produces, or {@code null}
+         * if the values are produced as objects of an unknown type.
+         */
+        protected SQLDataType resultType;
+
+        private ColumnVector results;
+
+        Node(Expression expr, SQLDataType resultType) {
+            this.expr = expr;
+            this.resultType = resultType;
+        }
+
+        /**
+         * Evaluates the node's expression for the specified rows of the
+         * batch.
+         *
+         * @param batch the batch to evaluate the expression against
+         * @param rows the indexes of the rows to evaluate
+         * @param n the number of rows in <tt>rows</tt>
+         *
+         * @return a vector holding the expression's value for each row
+         */
+        ColumnVector evaluate(TupleBatch batch, int[] rows, int n) {
+            results = ensureVector(results, null, batch.getCapacity());
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                rowTuple.setRow(row);
+                results.setValue(row, expr.evaluate(environment));
+            }
+
+            return results;
+        }
+
+        /**
+         * Writes the rows that satisfy the node's expression into
+         * <tt>out</tt>, which may be the same array as <tt>rows</tt>.
+         *
+         * @param batch the batch to evaluate the expression against
+         * @param rows the indexes of the rows to evaluate
+         * @param n the number of rows in <tt>rows</tt>
+         * @param out the array to write the satisfying rows into
+         *
+         * @return the number of rows written into <tt>out</tt>
+         */
+        int filter(TupleBatch batch, int[] rows, int n, int[] out) {
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                rowTuple.setRow(row);
+                if (expr.evaluatePredicate(environment))
+                    out[k++] = row;
+            }
+
+            return k;
+        }
+    }
+
+
+    /** A reference to one of the batch's columns. */
+    private class ColumnNode extends Node {
+        private int colIndex;
+
+        ColumnNode(Expression expr, int colIndex) {
+            super(expr, schema.getColumnInfo(colIndex).getType().getBaseType());
+            this.colIndex = colIndex;
+        }
+
+        @Override
+        ColumnVector evaluate(TupleBatch batch, int[] rows, int n) {
+            return batch.getColumn(colIndex);
+        }
+    }
+
+
+    /** A numeric literal value. */
+    private class ConstantNode extends Node {
+        private Object value;
+
+        private ColumnVector results;
+
+        ConstantNode(Expression expr, Object value) {
+            super(expr, getPrimitiveType(value));
+            this.value = value;
+        }
+
+        @Override
+        ColumnVector evaluate(TupleBatch batch, int[] rows, int n) {
+            // Since the value never changes, every row of the vector is
+            // filled in once, when the vector is created.
+            int capacity = batch.getCapacity();
+            if (results == null || results.getCapacity() < capacity) {
+                results = new ColumnVector(resultType, capacity);
+                for (int row = 0; row < capacity; row++)
+                    results.setValue(row, value);
+            }
+
+            return results;
+        }
+    }
+
+
+    /** The <tt>+</tt>, <tt>-</tt>, <tt>*</tt>, <tt>/</tt> and <tt>%</tt> operators. */
+    private class ArithmeticNode extends Node {
+        private ArithmeticOperator.Type type;
+
+        private Node left;
+
+        private Node right;
+
+        private ColumnVector results;
+
+        ArithmeticNode(ArithmeticOperator expr, Node left, Node right) {
+            super(expr, getArithmeticType(expr.type, left.resultType,
+                                          right.resultType));
+            type = expr.type;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        ColumnVector evaluate(TupleBatch batch, int[] rows, int n) {
+            ColumnVector lhs = left.evaluate(batch, rows, n);
+            ColumnVector rhs = right.evaluate(batch, rows, n);
+
+            // The vectors may not have the types that the schema suggests,
+            // in which case the values are combined as objects.
+            SQLDataType vectorType = getArithmeticType(type,
+                lhs.getBaseType(), rhs.getBaseType());
+
+            results = ensureVector(results, vectorType, batch.getCapacity());
+
+            if (vectorType == null) {
+                for (int i = 0; i < n; i++) {
+                    int row = rows[i];
+                    Object a = lhs.getValue(row);
+                    Object b = rhs.getValue(row);
+                    if (a == null || b == null)
+                        results.setNull(row);
+                    else
+                        results.setValue(row, ArithmeticOperator.evalObjects(type, a, b));
+                }
+            }
+            else if (vectorType == SQLDataType.DOUBLE) {
+                for (int i = 0; i < n; i++) {
+                    int row = rows[i];
+                    if (lhs.isNull(row) || rhs.isNull(row)) {
+                        results.setNull(row);
+                        continue;
+                    }
+
+                    double a = lhs.getAsDouble(row);
+                    double b = rhs.getAsDouble(row);
+                    double result;
+                    switch (type) {
+                    case ADD:
+                        result = a + b;
+                        break;
+                    case SUBTRACT:
+                        result = a - b;
+                        break;
+                    case MULTIPLY:
+                        result = a * b;
+                        break;
+                    case DIVIDE:
+                        result = a / b;
+                        break;
+                    default:
+                        result = a % b;
+                    }
+                    results.setDouble(row, result);
+                }
+            }
+            else {
+                // Integer results are computed with longs, and then wrap
+                // around in the same way that int arithmetic does.
+                boolean isInt = (vectorType == SQLDataType.INTEGER);
+                for (int i = 0; i < n; i++) {
+                    int row = rows[i];
+                    if (lhs.isNull(row) || rhs.isNull(row)) {
+                        results.setNull(row);
+                        continue;
+                    }
+
+                    long a = lhs.getAsLong(row);
+                    long b = rhs.getAsLong(row);
+                    long result;
+                    switch (type) {
+                    case ADD:
+                        result = a + b;
+                        break;
+                    case SUBTRACT:
+                        result = a - b;
+                        break;
+                    case MULTIPLY:
+                        result = a * b;
+                        break;
+                    default:
+                        result = a % b;
+                    }
+
+                    if (isInt)
+                        results.setInt(row, (int) result);
+                    else
+                        results.setLong(row, result);
+                }
+            }
+
+            return results;
+        }
+    }
+
+
+    /**
+     * Returns the type of the result of an arithmetic operation on values of
+     * the specified types, if the operation can be computed on primitive
+     * values, or {@code null} otherwise.
+     */
+    private static SQLDataType getArithmeticType(ArithmeticOperator.Type type,
+        SQLDataType lhsType, SQLDataType rhsType) {
+
+        if (!isPrimitive(lhsType) || !isPrimitive(rhsType))
+            return null;
+
+        if (type == ArithmeticOperator.Type.DIVIDE ||
+            lhsType == SQLDataType.DOUBLE || rhsType == SQLDataType.DOUBLE) {
+            return SQLDataType.DOUBLE;
+        }
+
+        if (lhsType == SQLDataType.BIGINT || rhsType == SQLDataType.BIGINT)
+            return SQLDataType.BIGINT;
+
+        return SQLDataType.INTEGER;
+    }
+
+
+    /** A comparison between two values. */
+    private class CompareNode extends Node {
+        private CompareOperator.Type type;
+
+        private Node left;
+
+        private Node right;
+
+        CompareNode(CompareOperator expr, Node left, Node right) {
+            super(expr, null);
+            type = expr.getType();
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int filter(TupleBatch batch, int[] rows, int n, int[] out) {
+            if (!isPrimitive(left.resultType) || !isPrimitive(right.resultType))
+                return super.filter(batch, rows, n, out);
+
+            ColumnVector lhs = left.evaluate(batch, rows, n);
+            ColumnVector rhs = right.evaluate(batch, rows, n);
+
+            if (!isPrimitive(lhs.getBaseType()) ||
+                !isPrimitive(rhs.getBaseType())) {
+                return super.filter(batch, rows, n, out);
+            }
+
+            boolean useDoubles = (lhs.getStorage() == ColumnVector.Storage.DOUBLE ||
+                                  rhs.getStorage() == ColumnVector.Storage.DOUBLE);
+
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                if (lhs.isNull(row) || rhs.isNull(row))
+                    continue;
+
+                int compResult;
+                if (useDoubles) {
+                    compResult = Double.compare(lhs.getAsDouble(row),
+                                                rhs.getAsDouble(row));
+                }
+                else {
+                    long a = lhs.getAsLong(row);
+                    long b = rhs.getAsLong(row);
+                    compResult = (a < b ? -1 : (a == b ? 0 : 1));
+                }
+
+                boolean result;
+                switch (type) {
+                case EQUALS:
+                    result = (compResult == 0);
+                    break;
+                case NOT_EQUALS:
+                    result = (compResult != 0);
+                    break;
+                case LESS_THAN:
+                    result = (compResult < 0);
+                    break;
+                case GREATER_THAN:
+                    result = (compResult > 0);
+                    break;
+                case LESS_OR_EQUAL:
+                    result = (compResult <= 0);
+                    break;
+                default:
+                    result = (compResult >= 0);
+                }
+
+                if (result)
+                    out[k++] = row;
+            }
+
+            return k;
+        }
+    }
+
+
+    /** An <tt>AND</tt> or <tt>OR</tt> of several terms. */
+    private class BooleanNode extends Node {
+        private boolean isAnd;
+
+        private Node[] terms;
+
+        /** The rows that haven't satisfied any term of an <tt>OR</tt> yet. */
+        private int[] remaining;
+
+        /** The rows that satisfy the current term of an <tt>OR</tt>. */
+        private int[] passed;
+
+        /** Marks the rows that have satisfied a term of an <tt>OR</tt>. */
+        private boolean[] selected;
+
+        BooleanNode(BooleanOperator expr, Node[] terms) {
+            super(expr, null);
+            isAnd = (expr.getType() == BooleanOperator.Type.AND_EXPR);
+            this.terms = terms;
+        }
+
+        @Override
+        int filter(TupleBatch batch, int[] rows, int n, int[] out) {
+            if (isAnd) {
+                // Each term only needs to look at the rows that satisfied
+                // the previous terms.
+                for (Node term : terms) {
+                    n = term.filter(batch, rows, n, out);
+                    rows = out;
+                }
+
+                if (rows != out)
+                    System.arraycopy(rows, 0, out, 0, n);
+
+                return n;
+            }
+
+            // Each term of an OR only needs to look at the rows that haven't
+            // satisfied an earlier term.
+            int capacity = batch.getCapacity();
+            if (remaining == null || remaining.length < capacity) {
+                remaining = new int[capacity];
+                passed = new int[capacity];
+                selected = new boolean[capacity];
+            }
+
+            System.arraycopy(rows, 0, remaining, 0, n);
+            int numRemaining = n;
+            for (Node term : terms) {
+                int numPassed = term.filter(batch, remaining, numRemaining, passed);
+                if (numPassed == 0)
+                    continue;
+
+                for (int i = 0; i < numPassed; i++)
+                    selected[passed[i]] = true;
+
+                int k = 0;
+                for (int i = 0; i < numRemaining; i++) {
+                    if (!selected[remaining[i]])
+                        remaining[k++] = remaining[i];
+                }
+                numRemaining = k;
+            }
+
+            // Output the selected rows in their original order.
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                if (selected[row]) {
+                    selected[row] = false;
+                    out[k++] = row;
+                }
+            }
+
+            return k;
+        }
+    }
+}
@@ -118,4 +118,17 @@ public class CountAggregate extends AggregateFunction {
         // When counting, the resulting aggregate column is always an integer
         return new ColumnType(SQLDataType.INTEGER);
     }
+
+
+    /**
+     * Creates a copy of the aggregate function, with its own set of distinct
+     * values.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object clone() throws CloneNotSupportedException {
+        CountAggregate fn = (CountAggregate) super.clone();
+        fn.valuesSeen = (HashSet<Object>) valuesSeen.clone();
+        return fn;
+    }
 }
@@ -114,4 +114,19 @@ public class SumAvgAggregate extends AggregateFunction {
         // same type as the values of the column.
         return args.get(0).getColumnInfo(schema).getType();
     }
+
+
+    /**
+     * Creates a copy of the aggregate function, with its own set of distinct
+     * values.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object clone() throws CloneNotSupportedException {
+        SumAvgAggregate fn = (SumAvgAggregate) super.clone();
+        if (set != null)
+            fn.set = (HashSet<Object>) set.clone();
+
+        return fn;
+    }
 }
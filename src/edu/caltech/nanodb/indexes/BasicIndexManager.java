@@ -9,6 +9,7 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.SortNode;
 import edu.caltech.nanodb.relations.ColumnRefs;
 import edu.caltech.nanodb.relations.KeyColumnRefs;
 import edu.caltech.nanodb.relations.TableConstraintType;
@@ -23,6 +24,8 @@ import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.btreefile.BTreeBulkLoader;
+import edu.caltech.nanodb.storage.btreefile.BTreeTupleFile;
 
 
 public class BasicIndexManager implements IndexManager {
@@ -86,6 +89,15 @@ public class BasicIndexManager implements IndexManager {
     public IndexInfo addIndexToTable(TableInfo tableInfo,
         ColumnRefs indexColRefs) throws IOException {
 
+        return addIndexToTable(tableInfo, indexColRefs,
+            IndexType.ORDERED_INDEX);
+    }
+
+
+    @Override
+    public IndexInfo addIndexToTable(TableInfo tableInfo,
+        ColumnRefs indexColRefs, IndexType indexType) throws IOException {
+
         if (tableInfo == null)
             throw new IllegalArgumentException("tableInfo cannot be null");
 
@@ -120,6 +132,7 @@ public class BasicIndexManager implements IndexManager {
             indexName != null ? indexName : "[unnamed]", tableName));
 
         IndexInfo indexInfo = new IndexInfo(tableInfo, indexColRefs);
+        indexInfo.setIndexType(indexType);
         if (indexName == null) {
             // This is an unnamed index.
             logger.debug("Creating the new unnamed index on disk.");
@@ -167,6 +180,25 @@ public class BasicIndexManager implements IndexManager {
         TupleFile tableTupleFile = srcTableInfo.getTupleFile();
         TupleFile indexTupleFile = newIndexInfo.getTupleFile();
 
+        if (indexTupleFile instanceof BTreeTupleFile) {
+            // Sort the index's tuples and build the tree bottom-up, instead
+            // of inserting the tuples one at a time.
+            BTreeBulkLoader loader = ((BTreeTupleFile) indexTupleFile)
+                .createBulkLoader(SortNode.getMemoryBudget());
+            if (unique)
+                loader.setUniqueColumns(columnRefs.size());
+
+            PageTuple curTuple = (PageTuple) tableTupleFile.getFirstTuple();
+            while (curTuple != null) {
+                loader.addTuple(IndexUtils.makeSearchKeyValue(columnRefs,
+                    curTuple, /* findExactTuple */ true));
+                curTuple = (PageTuple) tableTupleFile.getNextTuple(curTuple);
+            }
+
+            loader.finish();
+            return;
+        }
+
         // Traverse the tuples in the table, so we can populate the index.
         PageTuple curTuple = (PageTuple) tableTupleFile.getFirstTuple();
         while (curTuple != null) {
@@ -221,10 +253,13 @@ public class BasicIndexManager implements IndexManager {
 
         String idxFileName = getIndexFileName(indexInfo.getTableName(), indexName);
 
-        // TODO:  the file type and page size should be specified in the
-        //        IndexInfo object
+        // TODO:  the page size should be specified in the IndexInfo object
         int pageSize = StorageManager.getCurrentPageSize();
-        DBFileType type = DBFileType.BTREE_TUPLE_FILE;
+        DBFileType type;
+        if (indexInfo.getIndexType() == IndexType.HASHED_INDEX)
+            type = DBFileType.HASH_TUPLE_FILE;
+        else
+            type = DBFileType.BTREE_TUPLE_FILE;
         TupleFileManager tupleFileManager = storageManager.getTupleFileManager(type);
 
         // First, create a new DBFile that the tuple file will go into.
@@ -244,7 +279,10 @@ public class BasicIndexManager implements IndexManager {
         indexInfo.setTupleFile(tupleFile);
 
         // Cache this index since it's now considered "open".
-        openIndexes.put(indexInfo.getTableName(), indexInfo);
+        synchronized (this) {
+            openIndexes.put(indexInfo.getTableName() + "." + indexName,
+                indexInfo);
+        }
     }
 
 
@@ -315,7 +353,8 @@ public class BasicIndexManager implements IndexManager {
      *         index.
      */
     @Override
-    public IndexInfo openIndex(TableInfo tableInfo, String indexName)
+    public synchronized IndexInfo openIndex(TableInfo tableInfo,
+                                            String indexName)
         throws IOException {
 
         IndexInfo indexInfo;
@@ -407,7 +446,9 @@ public class BasicIndexManager implements IndexManager {
      *         table's schema and other details.
      */
     public void loadIndexInfo(IndexInfo idxFileInfo) throws IOException {
-        // For now, we don't need to do anything in this method.
+        // The kind of index follows from the type of its tuple file.
+        if (idxFileInfo.getTupleFile() instanceof HashedTupleFile)
+            idxFileInfo.setIndexType(IndexType.HASHED_INDEX);
     }
 
 
@@ -32,6 +32,13 @@ public class IndexInfo {
     private TupleFile tupleFile;
 
 
+    /**
+     * The kind of index, which determines the type of tuple file that
+     * stores the index's data.
+     */
+    private IndexType indexType = IndexType.ORDERED_INDEX;
+
+
     public IndexInfo(TableInfo tableInfo, ColumnRefs indexColRefs,
                      TupleFile tupleFile) {
         // tupleFile may be null!
@@ -107,6 +114,24 @@ public class IndexInfo {
     }
 
 
+    /**
+     * Returns the kind of the index.
+     *
+     * @return the kind of the index
+     */
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+
+    public void setIndexType(IndexType indexType) {
+        if (indexType == null)
+            throw new IllegalArgumentException("indexType cannot be null");
+
+        this.indexType = indexType;
+    }
+
+
     public Schema getSchema() {
         return tupleFile.getSchema();
     }
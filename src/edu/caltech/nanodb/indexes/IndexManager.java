@@ -35,6 +35,22 @@ public interface IndexManager {
         throws IOException;
 
 
+    /**
+     * Creates an index of the specified kind on a table, and populates it
+     * from the table's tuples.
+     *
+     * @param tableInfo the table to create the index on
+     * @param indexColRefs the columns of the table that the index is on
+     * @param indexType the kind of index to create
+     *
+     * @return the details of the new index
+     *
+     * @throws IOException if the index file can't be created or populated
+     */
+    IndexInfo addIndexToTable(TableInfo tableInfo, ColumnRefs indexColRefs,
+                              IndexType indexType) throws IOException;
+
+
     void createIndex(IndexInfo indexInfo, String indexName) throws IOException;
 
 
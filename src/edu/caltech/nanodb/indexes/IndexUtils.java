@@ -283,6 +283,10 @@ public class IndexUtils {
         HashSet<FilePointer> indexTuples = new HashSet<FilePointer>();
         Tuple tup;
 
+        // Check the structure of the index file itself, such as the order of
+        // the keys in a B+ tree index.
+        errors.addAll(indexTupleFile.verify());
+
         // Scan through all tuples in the table file, and record the file
         // pointer to each one.
         tup = tableTupleFile.getFirstTuple();
@@ -0,0 +1,306 @@
+package edu.caltech.nanodb.plans;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.ArrayDeque;
+
+import java.util.concurrent.ForkJoinPool;
+
+import edu.caltech.nanodb.relations.TupleBatch;
+
+
+/**
+ * A bounded queue that passes batches of tuples from worker threads to the
+ * thread executing a query.  Each worker puts its batches into the exchange,
+ * and then reports that it is done or that it has failed; the consumer takes
+ * batches out until all workers are done.  When the queue is full, the
+ * workers wait for the consumer to catch up, so that a fast scan can't use
+ * up an unbounded amount of memory.
+ * <p>
+ * The batches put into the exchange must not refer to pinned pages, since
+ * pages must be unpinned by the thread that pinned them.
+ * <p>
+ * A worker of a {@link ForkJoinPool} that waits for room in the queue, or
+ * for a batch to take, tells the pool that it is blocked, so that the pool
+ * can start another thread if all of its threads are waiting.  This matters
+ * for an {@link ExchangeNode}, whose consumers may themselves be workers.
+ */
+class BatchExchange {
+
+    /** The maximum number of batches that may be waiting in the queue. */
+    private int capacity;
+
+
+    /** The batches that the consumer hasn't taken yet. */
+    private ArrayDeque<TupleBatch> queue;
+
+
+    /** The number of workers that haven't finished yet. */
+    private int activeProducers;
+
+
+    /**
+     * True if the consumer has stopped taking batches, so the workers should
+     * stop producing them.
+     */
+    private boolean cancelled;
+
+
+    /** The first error reported by a worker, or {@code null}. */
+    private Throwable failure;
+
+
+    /**
+     * Creates an exchange between the specified number of workers and one
+     * consumer.
+     *
+     * @param capacity the maximum number of batches waiting in the queue
+     *
+     * @param numProducers the number of workers that will put batches into
+     *        the exchange, each of which must call {@link #producerDone} or
+     *        {@link #producerFailed} when it finishes
+     */
+    BatchExchange(int capacity, int numProducers) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.capacity = capacity;
+        queue = new ArrayDeque<TupleBatch>(capacity);
+        activeProducers = numProducers;
+    }
+
+
+    /**
+     * Returns true if the workers should stop producing batches, because
+     * the consumer has cancelled the exchange or a worker has failed.
+     */
+    synchronized boolean isCancelled() {
+        return cancelled || failure != null;
+    }
+
+
+    /**
+     * Puts a batch into the queue, waiting for room if the queue is full.
+     *
+     * @param batch the batch to pass to the consumer
+     *
+     * @return true if the batch was queued, or false if the exchange was
+     *         cancelled and the worker should stop
+     *
+     * @throws InterruptedIOException if the worker was interrupted while
+     *         waiting for room in the queue
+     */
+    boolean put(TupleBatch batch) throws InterruptedIOException {
+        BatchPutter putter = new BatchPutter(batch);
+        try {
+            ForkJoinPool.managedBlock(putter);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting to pass a batch to the consumer");
+        }
+
+        return putter.queued;
+    }
+
+
+    /**
+     * Puts a batch into the queue once there is room, so that a worker of a
+     * {@link ForkJoinPool} can wait for the consumer with
+     * {@link ForkJoinPool#managedBlock}.
+     */
+    private class BatchPutter implements ForkJoinPool.ManagedBlocker {
+        private TupleBatch batch;
+
+        /** True once the batch has been put into the queue. */
+        private boolean queued;
+
+        /** True once the batch has been queued or the exchange cancelled. */
+        private boolean finished;
+
+        BatchPutter(TupleBatch batch) {
+            this.batch = batch;
+        }
+
+        public boolean isReleasable() {
+            synchronized (BatchExchange.this) {
+                if (!finished) {
+                    if (isCancelled()) {
+                        finished = true;
+                    }
+                    else if (queue.size() < capacity) {
+                        queue.add(batch);
+                        BatchExchange.this.notifyAll();
+                        queued = true;
+                        finished = true;
+                    }
+                }
+
+                return finished;
+            }
+        }
+
+        public boolean block() throws InterruptedException {
+            synchronized (BatchExchange.this) {
+                while (!isReleasable())
+                    BatchExchange.this.wait();
+            }
+            return true;
+        }
+    }
+
+
+    /** Reports that a worker has put all of its batches into the queue. */
+    synchronized void producerDone() {
+        activeProducers--;
+        notifyAll();
+    }
+
+
+    /**
+     * Reports that a worker has failed.  The other workers are stopped, and
+     * the error is thrown to the consumer.
+     *
+     * @param t the error that the worker failed with
+     */
+    synchronized void producerFailed(Throwable t) {
+        if (failure == null)
+            failure = t;
+
+        activeProducers--;
+        queue.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Takes the next batch out of the queue, waiting for a worker to produce
+     * one if necessary.  A consumer that is itself a worker of a
+     * {@link ForkJoinPool} tells the pool that it is blocked while it waits.
+     *
+     * @return the next batch, or {@code null} if all workers are done and
+     *         all of their batches have been taken
+     *
+     * @throws IOException if a worker failed, or if the consumer was
+     *         interrupted while waiting
+     */
+    TupleBatch take() throws IOException {
+        BatchTaker taker = new BatchTaker();
+        try {
+            ForkJoinPool.managedBlock(taker);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting for a batch from the workers");
+        }
+
+        synchronized (this) {
+            if (taker.failed)
+                rethrowFailure();
+        }
+
+        return taker.batch;
+    }
+
+
+    /**
+     * Takes a batch out of the queue once there is one, or once the workers
+     * are done, so that a consumer can wait with
+     * {@link ForkJoinPool#managedBlock}.
+     */
+    private class BatchTaker implements ForkJoinPool.ManagedBlocker {
+        /** The batch that was taken, or {@code null} at the end. */
+        private TupleBatch batch;
+
+        /** True if a worker failed, so the consumer must see the error. */
+        private boolean failed;
+
+        /** True once a batch has been taken or there are none left. */
+        private boolean finished;
+
+        public boolean isReleasable() {
+            synchronized (BatchExchange.this) {
+                if (!finished) {
+                    if (failure != null) {
+                        failed = true;
+                        finished = true;
+                    }
+                    else if (!queue.isEmpty()) {
+                        batch = queue.poll();
+
+                        // A worker may be waiting for room in the queue.
+                        BatchExchange.this.notifyAll();
+                        finished = true;
+                    }
+                    else if (activeProducers == 0 || cancelled) {
+                        finished = true;
+                    }
+                }
+
+                return finished;
+            }
+        }
+
+        public boolean block() throws InterruptedException {
+            synchronized (BatchExchange.this) {
+                while (!isReleasable())
+                    BatchExchange.this.wait();
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     * Tells the workers to stop, and discards any batches that haven't been
+     * taken, without waiting for the workers to finish.  Batches that the
+     * workers put into the exchange afterwards are discarded too.
+     */
+    synchronized void requestCancel() {
+        cancelled = true;
+        queue.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Stops the workers and discards any batches that haven't been taken,
+     * and then waits for all of the workers to finish.  The workers aren't
+     * interrupted, since interrupting a thread that is reading a file
+     * closes the file.
+     */
+    synchronized void cancel() {
+        requestCancel();
+
+        boolean interrupted = false;
+        while (activeProducers > 0) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                // Keep waiting, since the workers may still be using pages
+                // that the caller is about to release.
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+
+    /** Throws a worker's error to the consumer. */
+    private void rethrowFailure() throws IOException {
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+
+        if (failure instanceof Error)
+            throw (Error) failure;
+
+        throw new IOException("A parallel worker failed", failure);
+    }
+}
@@ -0,0 +1,907 @@
+package edu.caltech.nanodb.plans;
+
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.qeval.PlanCost;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.relations.ColumnVector;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * <p>
+ * A plan node that runs a <em>fragment</em> of a plan on several worker
+ * threads, and passes the fragment's results between the threads in batches
+ * of tuples.  The child of the exchange is the fragment; each worker, or
+ * <em>producer</em>, runs its own copy of the fragment, made with
+ * {@link PlanNode#duplicate}.  The number of producers is the fragment's
+ * degree of parallelism, and is shown by {@link #toString}, so that
+ * <tt>EXPLAIN</tt> reports it for every fragment of the plan.
+ * </p>
+ * <p>
+ * The copies of a fragment must each produce a different part of the
+ * fragment's results.  Either the file scans at the bottom of the copies'
+ * leftmost paths share one set of {@link FileScanNode.PageChunks}, so that
+ * each copy reads different pages of the file, or the fragment reads from
+ * exchanges that split their own results between the copies.  There are
+ * three types of exchange:
+ * </p>
+ * <ul>
+ *   <li>A <b>gather</b> exchange collects the results of all copies of its
+ *       fragment, for the plan node above it.</li>
+ *   <li>A <b>repartition</b> exchange is itself part of a fragment that
+ *       another exchange runs in parallel.  It hashes each result of its
+ *       own fragment on a list of key expressions, and passes the result to
+ *       the copy of the enclosing fragment that the hash selects.  The two
+ *       inputs of a join can be repartitioned on their join keys, so that
+ *       matching tuples meet in the same copy of the join.</li>
+ *   <li>A <b>broadcast</b> exchange is also part of a fragment that runs in
+ *       parallel, and passes every result of its own fragment to every copy
+ *       of the enclosing fragment.  This suits the smaller input of a join
+ *       whose larger input is partitioned some other way.</li>
+ * </ul>
+ * <p>
+ * Each consumer of an exchange receives batches through its own bounded
+ * {@link BatchExchange}, so producers wait when a consumer falls behind.
+ * The batches are copied before they are passed on, since plan nodes reuse
+ * their batches.  A producer initializes, runs and cleans up its copy of the
+ * fragment on its own thread, and then releases any pages that are still
+ * pinned by the thread, since pages must be unpinned by the thread that
+ * pinned them.
+ * </p>
+ * <p>
+ * An exchange's consumers stop its producers when they are cleaned up.  A
+ * consumer inside another fragment doesn't wait for the producers, since they
+ * may be waiting for other consumers in the same fragment; instead, the
+ * exchange at the top of the plan waits for its own producers, and then for
+ * the producers of every exchange inside its fragment, so all of the workers
+ * of a plan have finished by the time the plan has been cleaned up.
+ * </p>
+ */
+public class ExchangeNode extends PlanNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ExchangeNode.class);
+
+
+    /** The ways that an exchange can pass results to its consumers. */
+    public enum Type {
+        /** All results are passed to a single consumer. */
+        GATHER,
+
+        /** Each result is passed to the consumer selected by its key. */
+        REPARTITION,
+
+        /** Every result is passed to every consumer. */
+        BROADCAST
+    }
+
+
+    /**
+     * The number of batches per producer that may wait for each consumer
+     * before the producers must wait for the consumer to catch up.
+     */
+    private static final int BATCHES_PER_PRODUCER = 2;
+
+
+    /** The way that this exchange passes results to its consumers. */
+    private Type type;
+
+
+    /**
+     * The number of copies of the fragment that are run in parallel, which
+     * is the fragment's degree of parallelism.
+     */
+    private int numProducers;
+
+
+    /**
+     * The number of consumers that the results are passed to.  This is 1
+     * for a gather exchange, and otherwise the number of copies of the
+     * enclosing fragment.
+     */
+    private int numConsumers;
+
+
+    /**
+     * The expressions that a repartition exchange hashes its results on, or
+     * {@code null} for other types of exchange.
+     */
+    private ArrayList<Expression> keys;
+
+
+    /** The storage manager is used to release the producers' pinned pages. */
+    private StorageManager storageManager;
+
+
+    /**
+     * True if this exchange is part of a fragment that another exchange
+     * runs in parallel.  The copies of such an exchange share the
+     * {@link #run} that the enclosing exchange sets up for them.
+     */
+    private boolean inFragment;
+
+
+    /**
+     * The producers and queues of the current execution of the fragment, or
+     * {@code null} if the fragment isn't being run.
+     */
+    private FragmentRun run;
+
+
+    /** The consumer of the {@link #run} that this node is. */
+    private int consumerIndex;
+
+
+    /**
+     * The batch that {@link #getNextTuple} is returning the rows of, or
+     * {@code null} if a batch must be retrieved.
+     */
+    private TupleBatch currentBatch;
+
+
+    /** The next selected row of {@link #currentBatch} to return. */
+    private int currentRow;
+
+
+    /** True once all of the results have been returned. */
+    private boolean done;
+
+
+    /**
+     * Constructs an exchange that runs several copies of a fragment and
+     * gathers their results.
+     *
+     * @param fragment the fragment to run, which must be partitioned so
+     *        that each copy produces different results
+     *
+     * @param numProducers the number of copies of the fragment to run
+     *
+     * @param storageManager the storage manager
+     */
+    public ExchangeNode(PlanNode fragment, int numProducers,
+                        StorageManager storageManager) {
+        this(Type.GATHER, fragment, numProducers, 1, null, storageManager);
+    }
+
+
+    /**
+     * Constructs an exchange of the specified type.
+     *
+     * @param type the way that the results are passed to the consumers
+     *
+     * @param fragment the fragment to run; if there is more than one
+     *        producer, the fragment must be partitioned so that each copy
+     *        produces different results
+     *
+     * @param numProducers the number of copies of the fragment to run
+     *
+     * @param numConsumers the number of consumers, which must be 1 for a
+     *        gather exchange
+     *
+     * @param keys the expressions to hash the results on for a repartition
+     *        exchange, or {@code null} for other types of exchange
+     *
+     * @param storageManager the storage manager
+     */
+    public ExchangeNode(Type type, PlanNode fragment, int numProducers,
+                        int numConsumers, List<Expression> keys,
+                        StorageManager storageManager) {
+        super(OperationType.EXCHANGE, fragment);
+
+        if (type == null)
+            throw new IllegalArgumentException("type cannot be null");
+
+        if (numProducers < 1 || numConsumers < 1) {
+            throw new IllegalArgumentException(
+                "An exchange needs at least one producer and one consumer");
+        }
+
+        if (type == Type.GATHER && numConsumers != 1) {
+            throw new IllegalArgumentException(
+                "A gather exchange has exactly one consumer");
+        }
+
+        if (type == Type.REPARTITION && (keys == null || keys.isEmpty())) {
+            throw new IllegalArgumentException(
+                "A repartition exchange needs keys to hash on");
+        }
+
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        this.type = type;
+        this.numProducers = numProducers;
+        this.numConsumers = numConsumers;
+        this.storageManager = storageManager;
+
+        if (keys != null) {
+            this.keys = new ArrayList<Expression>();
+            for (Expression key : keys)
+                this.keys.add(key.duplicate());
+        }
+    }
+
+
+    public Type getType() {
+        return type;
+    }
+
+
+    /** Returns the degree of parallelism of the exchange's fragment. */
+    public int getNumProducers() {
+        return numProducers;
+    }
+
+
+    public int getNumConsumers() {
+        return numConsumers;
+    }
+
+
+    /**
+     * An exchange with several producers doesn't produce its results in any
+     * particular order, since the producers run at different speeds.  The
+     * results of a single producer stay in order.
+     */
+    public List<OrderByExpression> resultsOrderedBy() {
+        if (numProducers == 1)
+            return leftChild.resultsOrderedBy();
+
+        return null;
+    }
+
+
+    /** Exchanges pass their results on in batches. */
+    @Override
+    public boolean supportsBatchExecution() {
+        return true;
+    }
+
+
+    /** Exchanges don't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** Exchanges don't require their child to support marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** Exchanges have no right child. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    public void prepare() {
+        leftChild.prepare();
+
+        schema = leftChild.getSchema();
+        stats = leftChild.getStats();
+
+        // The fragment's work is split between the producers, but every
+        // result is copied into a batch that is passed between threads.
+        PlanCost childCost = leftChild.getCost();
+        cost = new PlanCost(childCost.numTuples, childCost.tupleSize,
+            childCost.cpuCost / numProducers + childCost.numTuples,
+            childCost.numBlockIOs);
+    }
+
+
+    /**
+     * Initializes the exchange.  The fragment isn't initialized here, since
+     * each producer initializes its own copy of the fragment.  The producers
+     * of an exchange that isn't part of another fragment are started when
+     * the first results are requested; the producers of any previous
+     * execution are stopped first.
+     */
+    public void initialize() {
+        super.initialize();
+
+        if (!inFragment)
+            stopRun();
+
+        currentBatch = null;
+        currentRow = 0;
+        done = false;
+    }
+
+
+    /**
+     * Gets the next batch passed to this consumer by the producers.  Every
+     * consumer receives its own batch object, so that consumers can filter
+     * the rows of a broadcast batch independently.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        if (done)
+            return null;
+
+        if (run == null) {
+            if (inFragment) {
+                throw new IllegalStateException(
+                    "Exchange is part of a fragment that isn't running");
+            }
+
+            run = new FragmentRun(this);
+        }
+
+        TupleBatch batch = run.take(consumerIndex);
+        if (batch == null) {
+            done = true;
+            return null;
+        }
+
+        return batch.share();
+    }
+
+
+    public Tuple getNextTuple() throws IOException {
+        while (currentBatch == null ||
+               currentRow == currentBatch.getNumSelected()) {
+            currentBatch = getNextBatch();
+            currentRow = 0;
+
+            if (currentBatch == null)
+                return null;
+        }
+
+        Tuple tuple =
+            currentBatch.getTuple(currentBatch.getSelectedRow(currentRow));
+        currentRow++;
+
+        return tuple;
+    }
+
+
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Exchange doesn't support marking");
+    }
+
+
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Exchange doesn't support marking");
+    }
+
+
+    /**
+     * Stops this consumer's part of the exchange.  If the exchange isn't
+     * part of another fragment, this waits for all of the producers of the
+     * plan below it to finish.  The fragment itself is cleaned up by the
+     * producers.
+     */
+    public void cleanUp() {
+        currentBatch = null;
+
+        if (inFragment) {
+            if (run != null)
+                run.close(consumerIndex);
+        }
+        else {
+            stopRun();
+        }
+    }
+
+
+    /** Stops the producers of this exchange's own run, if there is one. */
+    private void stopRun() {
+        if (run != null) {
+            run.close(consumerIndex);
+            run = null;
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("Exchange[");
+        buf.append(type.toString().toLowerCase());
+
+        if (type != Type.GATHER)
+            buf.append(" to ").append(numConsumers);
+
+        if (type == Type.REPARTITION)
+            buf.append(" on ").append(keys);
+
+        buf.append(", dop=").append(numProducers).append(']');
+
+        return buf.toString();
+    }
+
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof ExchangeNode) {
+            ExchangeNode other = (ExchangeNode) obj;
+
+            return type == other.type &&
+                numProducers == other.numProducers &&
+                numConsumers == other.numConsumers &&
+                (keys == null ? other.keys == null : keys.equals(other.keys)) &&
+                leftChild.equals(other.leftChild);
+        }
+
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + type.hashCode();
+        hash = 31 * hash + numProducers;
+        hash = 31 * hash + numConsumers;
+        hash = 31 * hash + (keys != null ? keys.hashCode() : 0);
+        hash = 31 * hash + leftChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Creates a copy of this exchange and its fragment.  A copy of an
+     * exchange that is part of a running fragment shares the fragment's
+     * run, so that it can consume its part of the results.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        ExchangeNode node = (ExchangeNode) super.clone();
+
+        if (keys != null) {
+            node.keys = new ArrayList<Expression>();
+            for (Expression key : keys)
+                node.keys.add(key.duplicate());
+        }
+
+        if (!inFragment)
+            node.run = null;
+
+        node.currentBatch = null;
+
+        return node;
+    }
+
+
+    /**
+     * Returns the file scan at the bottom of a fragment's leftmost path,
+     * whose copies can split the file between them, or {@code null} if the
+     * leftmost path ends at an exchange or some other kind of node.
+     */
+    private static FileScanNode findChunkedScan(PlanNode plan) {
+        while (plan != null && !(plan instanceof ExchangeNode)) {
+            if (plan instanceof FileScanNode) {
+                FileScanNode scan = (FileScanNode) plan;
+                return scan.canScanInChunks() ? scan : null;
+            }
+
+            plan = plan.leftChild;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Finds the exchanges that are part of a fragment, without looking
+     * inside their own fragments.
+     */
+    private static void findExchanges(PlanNode plan,
+                                      List<ExchangeNode> exchanges) {
+        if (plan == null)
+            return;
+
+        if (plan instanceof ExchangeNode) {
+            exchanges.add((ExchangeNode) plan);
+        }
+        else {
+            findExchanges(plan.leftChild, exchanges);
+            findExchanges(plan.rightChild, exchanges);
+        }
+    }
+
+
+    /**
+     * One execution of an exchange's fragment:  the producers running the
+     * copies of the fragment, and a queue of batches for each consumer.  The
+     * producers are started when a consumer first asks for a batch.
+     */
+    private static class FragmentRun {
+        /** The exchange whose fragment is being run. */
+        private ExchangeNode exchange;
+
+        /** The queue of batches for each consumer. */
+        private BatchExchange[] queues;
+
+        /** True once the producers have been started. */
+        private boolean started;
+
+        /** True for each consumer that has been closed. */
+        private boolean[] closed;
+
+        /** The runs of the exchanges inside the fragment. */
+        private ArrayList<FragmentRun> innerRuns =
+            new ArrayList<FragmentRun>();
+
+        FragmentRun(ExchangeNode exchange) {
+            this.exchange = exchange;
+
+            int numConsumers = exchange.numConsumers;
+            int capacity = exchange.numProducers * BATCHES_PER_PRODUCER;
+
+            queues = new BatchExchange[numConsumers];
+            for (int i = 0; i < numConsumers; i++)
+                queues[i] = new BatchExchange(capacity, exchange.numProducers);
+
+            closed = new boolean[numConsumers];
+        }
+
+        /**
+         * Takes the next batch for a consumer, starting the producers first
+         * if necessary.
+         */
+        TupleBatch take(int consumer) throws IOException {
+            start();
+            return queues[consumer].take();
+        }
+
+        /**
+         * Starts the producers, unless they have already been started.
+         */
+        private synchronized void start() throws IOException {
+            if (started)
+                return;
+
+            started = true;
+
+            try {
+                startProducers();
+            }
+            catch (IOException | RuntimeException e) {
+                // None of the producers will report that they are done.
+                for (BatchExchange queue : queues) {
+                    for (int i = 0; i < exchange.numProducers; i++)
+                        queue.producerFailed(e);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Makes the copies of the fragment, and starts a producer for each
+         * of them.  The exchanges inside the fragment get new runs first, so
+         * that the copies of each of them share one run.
+         */
+        private void startProducers() throws IOException {
+            PlanNode fragment = exchange.leftChild;
+            int numProducers = exchange.numProducers;
+
+            ArrayList<ExchangeNode> inner = new ArrayList<ExchangeNode>();
+            findExchanges(fragment, inner);
+            for (ExchangeNode node : inner) {
+                if (node.numConsumers != numProducers) {
+                    throw new IllegalStateException(String.format(
+                        "%s has %d consumers, but its fragment is run by " +
+                        "%d producers", node, node.numConsumers,
+                        numProducers));
+                }
+
+                node.inFragment = true;
+                node.run = new FragmentRun(node);
+                innerRuns.add(node.run);
+            }
+
+            FileScanNode.PageChunks chunks = null;
+            FileScanNode scan = findChunkedScan(fragment);
+            if (scan != null && numProducers > 1)
+                chunks = scan.makePageChunks(numProducers);
+
+            Producer[] producers = new Producer[numProducers];
+            for (int i = 0; i < numProducers; i++) {
+                PlanNode copy = fragment.duplicate();
+
+                // Each copy works out its own state from its own copies of
+                // the expressions.
+                copy.prepare();
+
+                ArrayList<ExchangeNode> copyInner = new ArrayList<ExchangeNode>();
+                findExchanges(copy, copyInner);
+                for (ExchangeNode node : copyInner)
+                    node.consumerIndex = i;
+
+                if (chunks != null)
+                    findChunkedScan(copy).setPageChunks(chunks);
+
+                producers[i] = new Producer(copy);
+            }
+
+            logger.debug(String.format("Running %d copies of the fragment " +
+                "below %s", numProducers, exchange));
+
+            PerformanceCounters.inc(PerformanceCounters.EXEC_PARALLEL_FRAGMENTS);
+
+            ForkJoinPool pool = QueryEvaluator.getWorkerPool(numProducers);
+            for (Producer producer : producers)
+                pool.execute(producer);
+        }
+
+        /**
+         * Stops passing batches to a consumer.  If the exchange isn't part of
+         * another fragment and the producers have been started, this waits
+         * for them to finish, and then for the producers of the exchanges
+         * inside the fragment, since they may still be using resources that
+         * the caller is about to release.
+         * <p>
+         * The consumers of an exchange inside a fragment don't wait, since
+         * its producers may be waiting for room in the queue of another
+         * consumer, which may itself be waiting for a batch from a different
+         * exchange that this consumer would have closed next.
+         */
+        void close(int consumer) {
+            synchronized (this) {
+                if (closed[consumer])
+                    return;
+
+                closed[consumer] = true;
+
+                if (!started || exchange.inFragment) {
+                    // The producers will skip this consumer if another
+                    // consumer starts them.
+                    queues[consumer].requestCancel();
+                    return;
+                }
+            }
+
+            queues[consumer].cancel();
+            for (FragmentRun inner : innerRuns)
+                inner.finish();
+        }
+
+        /**
+         * Stops the producers of an exchange inside a fragment whose own
+         * producers have all finished, and waits for them to finish too.
+         * The run can't be started afterwards.
+         */
+        private void finish() {
+            synchronized (this) {
+                if (!started) {
+                    started = true;
+                    for (BatchExchange queue : queues)
+                        queue.requestCancel();
+
+                    return;
+                }
+            }
+
+            for (BatchExchange queue : queues)
+                queue.cancel();
+
+            for (FragmentRun inner : innerRuns)
+                inner.finish();
+        }
+
+        /** One producer, which runs a copy of the fragment. */
+        private class Producer implements Runnable {
+            private PlanNode copy;
+
+            /** True for each consumer that no longer accepts batches. */
+            private boolean[] cancelled;
+
+            /** The number of consumers that still accept batches. */
+            private int numActive;
+
+            Producer(PlanNode copy) {
+                this.copy = copy;
+                cancelled = new boolean[queues.length];
+                numActive = queues.length;
+            }
+
+            public void run() {
+                Throwable failure = null;
+                try {
+                    copy.initialize();
+
+                    if (exchange.type == Type.REPARTITION)
+                        repartition();
+                    else
+                        passBatches();
+                }
+                catch (Throwable t) {
+                    failure = t;
+                }
+                finally {
+                    try {
+                        copy.cleanUp();
+                    }
+                    catch (Throwable t) {
+                        if (failure == null)
+                            failure = t;
+                    }
+
+                    exchange.storageManager.getBufferManager()
+                        .unpinAllSessionPages();
+
+                    for (BatchExchange queue : queues) {
+                        if (failure == null)
+                            queue.producerDone();
+                        else
+                            queue.producerFailed(failure);
+                    }
+                }
+            }
+
+            /**
+             * Passes a copy of each batch to the consumer of a gather
+             * exchange, or to every consumer of a broadcast exchange.
+             */
+            private void passBatches() throws IOException {
+                while (numActive > 0) {
+                    TupleBatch batch = copy.getNextBatch();
+                    if (batch == null)
+                        break;
+
+                    TupleBatch rows = batch.copySelectedRows();
+                    for (int i = 0; i < queues.length; i++)
+                        put(i, rows);
+                }
+            }
+
+            /**
+             * Hashes each result on the exchange's keys, and collects the
+             * results for each consumer into batches of their own.
+             */
+            private void repartition() throws IOException {
+                Schema schema = copy.getSchema();
+                Environment env = new Environment();
+
+                ArrayList<Expression> keys = new ArrayList<Expression>();
+                for (Expression key : exchange.keys)
+                    keys.add(key.duplicate());
+
+                int capacity = TupleBatch.DEFAULT_CAPACITY;
+                TupleBatch[] pending = new TupleBatch[queues.length];
+                int[] numPending = new int[queues.length];
+
+                while (numActive > 0) {
+                    TupleBatch batch = copy.getNextBatch();
+                    if (batch == null)
+                        break;
+
+                    // A pending batch must have the same column types as the
+                    // rows that are copied into it.
+                    for (int i = 0; i < pending.length; i++) {
+                        if (pending[i] != null &&
+                            !sameColumnTypes(pending[i], batch)) {
+                            flush(i, pending[i], numPending[i]);
+                            pending[i] = null;
+                        }
+                    }
+
+                    TupleBatch.RowTuple rowTuple = batch.getRowTuple();
+                    int numSelected = batch.getNumSelected();
+                    for (int j = 0; j < numSelected; j++) {
+                        int row = batch.getSelectedRow(j);
+
+                        rowTuple.setRow(row);
+                        env.clear();
+                        env.addTuple(schema, rowTuple);
+                        int i = getConsumer(keys, env);
+                        if (cancelled[i])
+                            continue;
+
+                        if (pending[i] == null) {
+                            pending[i] = makeBatch(batch, capacity);
+                            numPending[i] = 0;
+                        }
+
+                        for (int col = 0; col < batch.getColumnCount(); col++) {
+                            pending[i].getColumn(col).copyValue(numPending[i],
+                                batch.getColumn(col), row);
+                        }
+
+                        numPending[i]++;
+                        if (numPending[i] == capacity) {
+                            flush(i, pending[i], capacity);
+                            pending[i] = null;
+                        }
+                    }
+                }
+
+                for (int i = 0; i < pending.length; i++) {
+                    if (pending[i] != null)
+                        flush(i, pending[i], numPending[i]);
+                }
+            }
+
+            /**
+             * Returns the consumer that a result is passed to, from the hash
+             * of its keys.  The keys are canonicalized the same way as a
+             * hash join's keys, so that the two inputs of a join send
+             * matching tuples to the same consumer.  Results with a
+             * <tt>NULL</tt> key can't match anything, but an outer join
+             * still needs them, so they all go to the first consumer.
+             */
+            private int getConsumer(List<Expression> keys, Environment env) {
+                int hash = 0;
+                for (Expression key : keys) {
+                    Object value = key.evaluate(env);
+                    if (value == null)
+                        return 0;
+
+                    hash = 31 * hash + HashJoinNode.canonicalize(value).hashCode();
+                }
+
+                // A hash join splits its input with the low bits of the
+                // hash, so the consumer is chosen with the high bits of a
+                // different mix of the hash.
+                long mixed = (hash * 0x9e3779b9L) & 0xffffffffL;
+                return (int) ((mixed * queues.length) >>> 32);
+            }
+
+            /** Passes the first rows of a pending batch to a consumer. */
+            private void flush(int consumer, TupleBatch batch, int numRows)
+                throws IOException {
+                if (numRows > 0) {
+                    batch.setNumRows(numRows);
+                    put(consumer, batch);
+                }
+            }
+
+            /** Passes a batch to a consumer, unless it has been cancelled. */
+            private void put(int consumer, TupleBatch batch)
+                throws IOException {
+                if (!cancelled[consumer] && !queues[consumer].put(batch)) {
+                    cancelled[consumer] = true;
+                    numActive--;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Creates an empty batch whose column vectors have the same types as
+     * another batch's.
+     */
+    private static TupleBatch makeBatch(TupleBatch like, int capacity) {
+        ColumnVector[] columns = new ColumnVector[like.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ColumnVector(
+                like.getColumn(i).getBaseType(), capacity);
+        }
+
+        return new TupleBatch(columns, 0);
+    }
+
+
+    /** Returns true if two batches' column vectors have the same types. */
+    private static boolean sameColumnTypes(TupleBatch b1, TupleBatch b2) {
+        for (int i = 0; i < b1.getColumnCount(); i++) {
+            if (b1.getColumn(i).getBaseType() != b2.getColumn(i).getBaseType())
+                return false;
+        }
+
+        return true;
+    }
+}
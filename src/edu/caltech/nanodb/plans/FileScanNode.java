@@ -5,19 +5,32 @@ import java.io.IOException;
 
 import java.util.List;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.indexes.IndexInfo;
 import edu.caltech.nanodb.qeval.PlanCost;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
 import edu.caltech.nanodb.qeval.SelectivityEstimator;
 import edu.caltech.nanodb.qeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnVector;
 import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 
+import edu.caltech.nanodb.expressions.Environment;
 import edu.caltech.nanodb.expressions.Expression;
 import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.VectorEvaluator;
 
 
 /**
@@ -33,6 +46,26 @@ import edu.caltech.nanodb.expressions.OrderByExpression;
  * ability to look up tuples based on various values, the {@link IndexScanNode}
  * should be used instead.
  * </p>
+ * <p>
+ * When the <tt>nanodb.parallelism</tt> property allows more than one worker
+ * thread, and the node is producing batches, a large heap file is scanned
+ * in parallel.  The file's data pages are split into chunks, and workers
+ * from the query worker pool repeatedly claim the next chunk, read its
+ * tuples into batches and filter them with their own copy of the predicate.
+ * The selected rows are copied out of the data pages and passed to the
+ * session's thread through a bounded {@link BatchExchange}.  Since the
+ * workers finish their chunks at different times, a parallel scan doesn't
+ * produce the tuples in file order.  A parent node can also run its own code
+ * on the workers with {@link #scanInParallel}; the
+ * {@link HashedGroupAggregateNode} uses this to pre-aggregate each worker's
+ * batches.
+ * </p>
+ * <p>
+ * Several copies of a file scan can also share one set of {@link PageChunks},
+ * so that each copy only reads the chunks it claims.  An
+ * {@link ExchangeNode} does this to partition the fragment of a plan that it
+ * runs on several workers.
+ * </p>
  */
 public class FileScanNode extends SelectNode {
 
@@ -40,6 +73,46 @@ public class FileScanNode extends SelectNode {
     private static Logger logger = Logger.getLogger(FileScanNode.class);
 
 
+    /** A heap file must have this many data pages to be scanned in parallel. */
+    public static final int MIN_PARALLEL_PAGES = 16;
+
+
+    /** The maximum number of data pages that a worker claims at once. */
+    public static final int MAX_CHUNK_PAGES = 64;
+
+
+    /**
+     * The number of chunks per worker that a parallel scan aims for, so
+     * that workers that finish early can pick up some of the remaining work.
+     */
+    private static final int CHUNKS_PER_WORKER = 4;
+
+
+    /**
+     * The number of batches per worker that may wait in the exchange before
+     * the workers must wait for the session's thread to catch up.
+     */
+    private static final int EXCHANGE_BATCHES_PER_WORKER = 2;
+
+
+    /**
+     * Receives the filtered batches that one worker of a parallel scan
+     * reads.  The consumer is called on the worker's thread.
+     */
+    interface BatchConsumer {
+        /**
+         * Consumes a batch of tuples.  The batch's columns are read from
+         * data pages that are only pinned until this method returns.
+         *
+         * @param batch the batch, with only the rows that satisfy the scan's
+         *        predicate selected
+         *
+         * @throws IOException if the consumer can't process the batch
+         */
+        void consume(TupleBatch batch) throws IOException;
+    }
+
+
     /**
      * The table-info for the table being scanned, or {@code null} if the node
      * is performing a scan over an index.
@@ -58,6 +131,30 @@ public class FileScanNode extends SelectNode {
     private TupleFile tupleFile;
 
 
+    /** The batch that {@link #advanceCurrentBatch} fills with tuples. */
+    private TupleBatch scanBatch;
+
+
+    /**
+     * The tuples in {@link #scanBatch}.  Columns are only read from the
+     * tuples when they are first used, so the tuples stay pinned until the
+     * next batch is read.
+     */
+    private Tuple[] batchTuples;
+
+
+    /** The number of tuples in {@link #batchTuples}. */
+    private int numBatchTuples;
+
+
+    /** Loads the columns of {@link #scanBatch} from {@link #batchTuples}. */
+    private ScanColumnLoader columnLoader;
+
+
+    /** True if the end of the file was reached while reading batches. */
+    private boolean batchScanDone;
+
+
     /**
      * This field allows the file-scan node to mark a particular tuple in the
      * tuple-stream and then rewind to that point in the tuple-stream.
@@ -68,6 +165,31 @@ public class FileScanNode extends SelectNode {
     private boolean jumpToMarkedTuple;
 
 
+    /**
+     * True once {@link #getNextBatch} has decided whether to scan the file
+     * in parallel.
+     */
+    private boolean parallelScanChecked;
+
+
+    /**
+     * The exchange that the workers of a parallel scan pass their batches
+     * through, or {@code null} if the file isn't being scanned in parallel.
+     */
+    private BatchExchange exchange;
+
+
+    /**
+     * The chunks of pages shared with other copies of this node, or
+     * {@code null} if the node scans the whole file.
+     */
+    private PageChunks pageChunks;
+
+
+    /** The page after the last page of the chunk being scanned. */
+    private int chunkEndPageNo;
+
+
     /**
      * Construct a file scan node that traverses a table file.
      *
@@ -156,6 +278,15 @@ public class FileScanNode extends SelectNode {
         // The tuple file doesn't need to be copied since it's immutable.
         node.tupleFile = tupleFile;
 
+        node.scanBatch = null;
+        node.batchTuples = null;
+        node.numBatchTuples = 0;
+        node.columnLoader = null;
+
+        node.parallelScanChecked = false;
+        node.exchange = null;
+        node.pageChunks = null;
+
         return node;
     }
 
@@ -187,22 +318,36 @@ public class FileScanNode extends SelectNode {
 
 
     /**
-     * Currently we will always say that the file-scan node produces unsorted
-     * results.  In actuality, a file scan's results will be sorted if the table
-     * file uses a sequential format, but currently we don't have any sequential
-     * file formats.
+     * A file scan's results are sorted if the table file uses a sequential
+     * format, such as a B<sup>+</sup> tree file; otherwise the results are
+     * unsorted.  Filtering the tuples with the predicate doesn't change
+     * their order.
      */
     public List<OrderByExpression> resultsOrderedBy() {
+        if (tupleFile instanceof SequentialTupleFile)
+            return ((SequentialTupleFile) tupleFile).getOrderSpec();
+
         return null;
     }
 
 
-    /** This node supports marking. */
-    public boolean supportsMarking() {
+    /** File scans can read their tuples in batches. */
+    @Override
+    public boolean supportsBatchExecution() {
         return true;
     }
 
 
+    /**
+     * This node supports marking, unless it shares chunks of the file with
+     * other nodes, since the chunks claimed after the mark would be skipped
+     * when the scan resets to the mark.
+     */
+    public boolean supportsMarking() {
+        return pageChunks == null;
+    }
+
+
     /** This node has no children so of course it doesn't require marking. */
     public boolean requiresLeftMarking() {
         return false;
@@ -230,10 +375,17 @@ public class FileScanNode extends SelectNode {
         TableStats tableStats = tupleFile.getStats();
         stats = tableStats.getAllColumnStats();
 
+        // Every tuple in the file is read and checked against the predicate,
+        // but only the ones that satisfy it are produced.
+        float cpuCost = tableStats.numTuples;
         float numTuples = tableStats.numTuples;
+        if (predicate != null) {
+            numTuples *= SelectivityEstimator.estimateSelectivity(predicate,
+                schema, stats);
+        }
+
         long numBlockIOs = tableStats.numDataPages;
         float tupleSize = tableStats.avgTupleSize;
-        float cpuCost = numTuples;
         cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
 
         // TODO:  We should also update the table statistics based on the
@@ -248,11 +400,18 @@ public class FileScanNode extends SelectNode {
         // Reset our marking state.
         markedTuple = null;
         jumpToMarkedTuple = false;
+
+        batchScanDone = false;
+        numBatchTuples = 0;
+
+        stopParallelScan();
+        parallelScanChecked = false;
     }
 
 
     public void cleanUp() {
-        // Nothing to do!
+        // A parallel scan's workers must stop before the query finishes.
+        stopParallelScan();
     }
 
 
@@ -278,13 +437,496 @@ public class FileScanNode extends SelectNode {
             return;
         }
 
-        if (currentTuple == null)
+        if (pageChunks != null)
+            advanceCurrentChunkTuple();
+        else if (currentTuple == null)
             currentTuple = tupleFile.getFirstTuple();
         else
             currentTuple = tupleFile.getNextTuple(currentTuple);
     }
 
 
+    /**
+     * Advances the current tuple within the chunk being scanned, claiming
+     * the next chunk from the shared {@link #pageChunks} when the current
+     * chunk is finished.
+     */
+    private void advanceCurrentChunkTuple() throws IOException {
+        HeapTupleFile heapFile = (HeapTupleFile) tupleFile;
+
+        if (currentTuple != null) {
+            currentTuple =
+                heapFile.getNextTupleInRange(currentTuple, chunkEndPageNo);
+        }
+
+        while (currentTuple == null) {
+            int startPageNo = pageChunks.claimChunk();
+            if (startPageNo == -1)
+                break;
+
+            chunkEndPageNo = pageChunks.getChunkEnd(startPageNo);
+            currentTuple =
+                heapFile.getFirstTupleInRange(startPageNo, chunkEndPageNo);
+        }
+    }
+
+
+    /**
+     * Reads the next run of tuples in the file into a batch.  The batch's
+     * columns are only read from the tuples when they are first used, and
+     * integer, <tt>BIGINT</tt> and <tt>DOUBLE</tt> columns are read straight
+     * from the data pages into primitive arrays.
+     */
+    @Override
+    protected TupleBatch advanceCurrentBatch() throws IOException {
+        releaseBatchTuples();
+
+        if (batchScanDone)
+            return null;
+
+        if (scanBatch == null) {
+            scanBatch = new TupleBatch(schema, TupleBatch.DEFAULT_CAPACITY);
+            batchTuples = new Tuple[scanBatch.getCapacity()];
+            columnLoader = new ScanColumnLoader(batchTuples);
+        }
+
+        while (numBatchTuples < batchTuples.length) {
+            Tuple oldTuple = currentTuple;
+            advanceCurrentTuple();
+
+            // The previous batch's last tuple is no longer needed, unpin it.
+            if (oldTuple != null && numBatchTuples == 0)
+                PageTuple.unpinPage(oldTuple);
+
+            if (currentTuple == null) {
+                batchScanDone = true;
+                break;
+            }
+
+            batchTuples[numBatchTuples] = currentTuple;
+            numBatchTuples++;
+        }
+
+        if (numBatchTuples == 0)
+            return null;
+
+        columnLoader.numTuples = numBatchTuples;
+        scanBatch.setNumRows(numBatchTuples);
+        scanBatch.setColumnLoader(columnLoader);
+        return scanBatch;
+    }
+
+
+    /**
+     * Releases the pins that the current batch's tuples hold on their pages,
+     * except for the current tuple, which the scan continues from.
+     * {@link Tuple#unpin} doesn't release a page tuple's page, so this uses
+     * {@link PageTuple#unpinPage} instead.
+     */
+    private void releaseBatchTuples() {
+        for (int i = 0; i < numBatchTuples; i++) {
+            if (batchTuples[i] != currentTuple)
+                PageTuple.unpinPage(batchTuples[i]);
+        }
+        numBatchTuples = 0;
+    }
+
+
+    /** Copies a column's values from the batch's tuples into its vector. */
+    private static class ScanColumnLoader implements TupleBatch.ColumnLoader {
+        /** The tuples that the batch's rows are read from. */
+        private Tuple[] tuples;
+
+        /** The number of tuples in the batch. */
+        private int numTuples;
+
+        ScanColumnLoader(Tuple[] tuples) {
+            this.tuples = tuples;
+        }
+
+        public void loadColumn(TupleBatch batch, int colIndex) {
+            ColumnVector column = batch.getUnloadedColumn(colIndex);
+            for (int row = 0; row < numTuples; row++)
+                column.setValue(row, tuples[row], colIndex);
+        }
+    }
+
+
+    /**
+     * Gets the next batch of tuples.  The first time this is called after
+     * the node is initialized, it decides whether to scan the file in
+     * parallel.  The batches from a parallel scan have already been filtered
+     * by the workers.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IllegalStateException, IOException {
+        if (!parallelScanChecked) {
+            parallelScanChecked = true;
+
+            int numWorkers = getScanParallelism();
+            if (numWorkers > 1) {
+                exchange = new BatchExchange(
+                    numWorkers * EXCHANGE_BATCHES_PER_WORKER, numWorkers);
+                startWorkers(new ScanWorker[numWorkers], null);
+            }
+        }
+
+        if (exchange == null)
+            return super.getNextBatch();
+
+        return exchange.take();
+    }
+
+
+    /**
+     * Returns the number of workers that a parallel scan of the tuple file
+     * would use.  Only heap files with at least {@link #MIN_PARALLEL_PAGES}
+     * data pages are scanned in parallel.
+     *
+     * @return the number of workers, or 1 if the file should be scanned by
+     *         the session's thread alone
+     *
+     * @throws IOException if the size of the file can't be determined
+     */
+    int getScanParallelism() throws IOException {
+        if (!canScanInChunks() || pageChunks != null)
+            return 1;
+
+        int parallelism = QueryEvaluator.getParallelism();
+        if (parallelism <= 1)
+            return 1;
+
+        // Page 0 is the heap file's header page.
+        int numDataPages = tupleFile.getDBFile().getNumPages() - 1;
+        if (numDataPages < MIN_PARALLEL_PAGES)
+            return 1;
+
+        return Math.min(parallelism, numDataPages);
+    }
+
+
+    /**
+     * Returns true if the tuple file can be split into chunks of pages that
+     * are scanned separately, which is only the case for heap files.
+     */
+    boolean canScanInChunks() {
+        return tupleFile instanceof HeapTupleFile;
+    }
+
+
+    /**
+     * Splits the data pages of the heap file into chunks, for the specified
+     * number of workers to claim.
+     *
+     * @param numWorkers the number of workers that will scan the chunks
+     *
+     * @return the chunks of the file's data pages
+     *
+     * @throws IOException if the size of the file can't be determined
+     */
+    PageChunks makePageChunks(int numWorkers) throws IOException {
+        // Page 0 is the heap file's header page.
+        int endPageNo = tupleFile.getDBFile().getNumPages();
+        int chunkPages = (endPageNo - 1) / (CHUNKS_PER_WORKER * numWorkers);
+        chunkPages = Math.max(1, Math.min(MAX_CHUNK_PAGES, chunkPages));
+
+        logger.debug(String.format("Scanning %d pages of %s with %d " +
+            "workers, %d pages at a time", endPageNo - 1, tupleFile,
+            numWorkers, chunkPages));
+
+        return new PageChunks(endPageNo, chunkPages);
+    }
+
+
+    /**
+     * Makes this node only scan the chunks of the file that it claims from
+     * the specified chunks, which are shared with other copies of the node.
+     * Parallel scans are disabled, since the copies are already being run
+     * in parallel.
+     *
+     * @param pageChunks the chunks of the file's data pages
+     */
+    void setPageChunks(PageChunks pageChunks) {
+        if (!canScanInChunks())
+            throw new IllegalStateException("Only heap files can be scanned in chunks");
+
+        this.pageChunks = pageChunks;
+    }
+
+
+    /**
+     * The data pages of a heap file that remain to be scanned.  The workers
+     * of a parallel scan, or the copies of a scan node, repeatedly claim the
+     * next chunk of pages until there are none left.
+     */
+    static class PageChunks {
+        /** The first page of the next chunk that hasn't been claimed. */
+        private AtomicInteger nextPageNo = new AtomicInteger(1);
+
+        /** The page after the last data page to scan. */
+        private int endPageNo;
+
+        private int chunkPages;
+
+        PageChunks(int endPageNo, int chunkPages) {
+            this.endPageNo = endPageNo;
+            this.chunkPages = chunkPages;
+        }
+
+        /**
+         * Claims the next chunk of pages.
+         *
+         * @return the first page of the chunk, or -1 if all chunks have
+         *         been claimed
+         */
+        int claimChunk() {
+            int startPageNo = nextPageNo.getAndAdd(chunkPages);
+            return (startPageNo < endPageNo ? startPageNo : -1);
+        }
+
+        /** Returns the page after the last page of a chunk. */
+        int getChunkEnd(int startPageNo) {
+            return Math.min(startPageNo + chunkPages, endPageNo);
+        }
+    }
+
+
+    /**
+     * Scans the tuple file in parallel, and passes each worker's filtered
+     * batches to its own consumer on the worker's thread.  This method
+     * returns once all of the workers are done.  The file must be a heap
+     * file, and the node must have been initialized.
+     *
+     * @param consumers the consumer of each worker's batches
+     *
+     * @throws IOException if a worker fails
+     */
+    void scanInParallel(BatchConsumer[] consumers) throws IOException {
+        stopParallelScan();
+
+        exchange = new BatchExchange(1, consumers.length);
+        try {
+            startWorkers(new ScanWorker[consumers.length], consumers);
+
+            // The workers don't put any batches into the exchange, so this
+            // just waits for them to finish.
+            exchange.take();
+        }
+        finally {
+            stopParallelScan();
+        }
+    }
+
+
+    /**
+     * Starts the workers of a parallel scan in the query worker pool.  The
+     * {@link #exchange} must already have been created for them.
+     *
+     * @param workers an array to hold the workers, which determines how many
+     *        workers are started
+     *
+     * @param consumers the consumer of each worker's batches, or
+     *        {@code null} if the workers should put their batches into the
+     *        exchange
+     *
+     * @throws IOException if the size of the file can't be determined
+     */
+    private void startWorkers(ScanWorker[] workers, BatchConsumer[] consumers)
+        throws IOException {
+
+        PageChunks chunks = makePageChunks(workers.length);
+
+        PerformanceCounters.inc(PerformanceCounters.EXEC_PARALLEL_SCANS);
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new ScanWorker(exchange, chunks,
+                (consumers != null ? consumers[i] : null));
+        }
+
+        ForkJoinPool pool = QueryEvaluator.getWorkerPool(workers.length);
+        for (ScanWorker worker : workers)
+            pool.execute(worker);
+    }
+
+
+    /**
+     * Stops the workers of a parallel scan, if there are any, and waits for
+     * them to finish.
+     */
+    private void stopParallelScan() {
+        if (exchange != null) {
+            exchange.cancel();
+            exchange = null;
+        }
+    }
+
+
+    /**
+     * One worker of a parallel scan.  The worker claims chunks of the heap
+     * file's data pages until there are none left, reads the tuples of each
+     * chunk into batches, and filters the batches with its own copy of the
+     * predicate.  Pages must be unpinned by the thread that pinned them, so
+     * the worker releases each batch's tuples itself once the batch has been
+     * consumed or copied.
+     */
+    private class ScanWorker implements Runnable {
+        private BatchExchange exchange;
+
+        private PageChunks chunks;
+
+        /**
+         * The consumer of the worker's batches, or {@code null} if the
+         * selected rows are copied into the exchange.
+         */
+        private BatchConsumer consumer;
+
+        private VectorEvaluator predicateEvaluator;
+
+        private Environment environment = new Environment();
+
+        private TupleBatch batch;
+
+        private ScanColumnLoader loader;
+
+        ScanWorker(BatchExchange exchange, PageChunks chunks,
+                   BatchConsumer consumer) {
+            this.exchange = exchange;
+            this.chunks = chunks;
+            this.consumer = consumer;
+
+            // Expressions may keep some scratch state while they are being
+            // evaluated, so each worker needs its own copy.
+            if (predicate != null) {
+                predicateEvaluator =
+                    new VectorEvaluator(predicate.duplicate(), schema);
+            }
+        }
+
+        public void run() {
+            try {
+                scanChunks();
+                exchange.producerDone();
+            }
+            catch (Throwable t) {
+                // The error is thrown to the session's thread.
+                exchange.producerFailed(t);
+            }
+        }
+
+        private void scanChunks() throws IOException {
+            HeapTupleFile heapFile = (HeapTupleFile) tupleFile;
+
+            batch = new TupleBatch(schema, TupleBatch.DEFAULT_CAPACITY);
+            loader = new ScanColumnLoader(new Tuple[batch.getCapacity()]);
+            Tuple[] tuples = loader.tuples;
+
+            while (!exchange.isCancelled()) {
+                int startPageNo = chunks.claimChunk();
+                if (startPageNo == -1)
+                    break;
+
+                int chunkEndPageNo = chunks.getChunkEnd(startPageNo);
+
+                int numTuples = 0;
+                Tuple tuple = heapFile.getFirstTupleInRange(startPageNo,
+                    chunkEndPageNo);
+                try {
+                    while (tuple != null) {
+                        tuples[numTuples] = tuple;
+                        numTuples++;
+
+                        if (numTuples == tuples.length) {
+                            // The scan continues from the last tuple, whose
+                            // page stays pinned by the scan itself.
+                            boolean more = processBatch(numTuples);
+                            numTuples = 0;
+                            if (!more)
+                                break;
+                        }
+
+                        tuple = heapFile.getNextTupleInRange(tuple,
+                            chunkEndPageNo);
+                    }
+
+                    if (tuple == null && numTuples > 0)
+                        processBatch(numTuples);
+                }
+                finally {
+                    releaseTuples(numTuples);
+
+                    // If the chunk wasn't finished, release the scan's pin
+                    // on the current page.
+                    if (tuple != null)
+                        PageTuple.unpinPage(tuple);
+                }
+            }
+        }
+
+        /**
+         * Filters the tuples that have been read into the batch, passes
+         * the selected rows on, and releases the tuples.
+         *
+         * @return true if the worker should keep scanning, or false if the
+         *         exchange has been cancelled
+         */
+        private boolean processBatch(int numTuples) throws IOException {
+            try {
+                loader.numTuples = numTuples;
+                batch.setNumRows(numTuples);
+                batch.setColumnLoader(loader);
+
+                int numSelected = numTuples;
+                if (predicateEvaluator != null)
+                    numSelected = predicateEvaluator.filter(batch, environment);
+
+                if (numSelected > 0) {
+                    if (consumer != null)
+                        consumer.consume(batch);
+                    else if (!exchange.put(copySelectedRows(numSelected)))
+                        return false;
+                }
+            }
+            finally {
+                releaseTuples(numTuples);
+            }
+
+            return !exchange.isCancelled();
+        }
+
+        /**
+         * Copies the batch's selected rows into a new batch that doesn't
+         * refer to the data pages.
+         */
+        private TupleBatch copySelectedRows(int numSelected) {
+            TupleBatch copy = new TupleBatch(schema, numSelected);
+            for (int col = 0; col < schema.numColumns(); col++) {
+                ColumnVector column = copy.getColumn(col);
+                for (int i = 0; i < numSelected; i++) {
+                    int row = batch.getSelectedRow(i);
+                    column.setValue(i, loader.tuples[row], col);
+                }
+            }
+
+            copy.setNumRows(numSelected);
+            return copy;
+        }
+
+        /**
+         * Releases the pins that the tuples read into the batch hold on their
+         * pages.
+         */
+        private void releaseTuples(int numTuples) {
+            Tuple[] tuples = loader.tuples;
+            for (int i = 0; i < numTuples; i++) {
+                if (tuples[i] != null) {
+                    PageTuple.unpinPage(tuples[i]);
+                    tuples[i] = null;
+                }
+            }
+        }
+    }
+
+
     public void markCurrentPosition() {
         if (currentTuple == null)
             throw new IllegalStateException("There is no current tuple!");
@@ -0,0 +1,1120 @@
+package edu.caltech.nanodb.plans;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.PredicateUtils;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.qeval.ColumnStats;
+import edu.caltech.nanodb.qeval.PlanCost;
+import edu.caltech.nanodb.qeval.SelectivityEstimator;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+
+/**
+ * This plan node implements a hash join, which can only be used when the join
+ * predicate includes at least one equality condition between an expression
+ * on the left child and an expression on the right child.  Inner joins,
+ * left-outer joins, semijoins and antijoins are supported.
+ * <p>
+ * The join reads all tuples from the "build" child into an in-memory hash
+ * table keyed on the equi-join expressions, and then looks up each tuple from
+ * the "probe" child in the hash table.  The full join predicate is evaluated
+ * against every candidate pair, so the predicate may include other
+ * conditions besides the equalities.  For inner joins the smaller child is
+ * used as the build side; for the other join types the right child is
+ * always the build side, since the left child's tuples must each be
+ * considered exactly once.
+ * <p>
+ * If the hash table grows past the memory budget specified by the
+ * <tt>nanodb.hashjoin.memory</tt> property, the join switches to hybrid hash
+ * join:  both children are split into partitions by hashing the join key,
+ * the first partition stays in memory, and the other partitions are written
+ * out to temporary files.  Once the probe child is exhausted, each spilled
+ * partition is joined in turn.  Partitions are not recursively repartitioned,
+ * so a spilled partition that is still larger than the budget is loaded
+ * anyway.
+ */
+public class HashJoinNode extends ThetaJoinNode {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(HashJoinNode.class);
+
+
+    /**
+     * The system property that can be used to specify how many bytes of
+     * tuple data a hash join may keep in its in-memory hash table before it
+     * spills partitions to temporary files.
+     */
+    public static final String PROP_HASHJOIN_MEMORY = "nanodb.hashjoin.memory";
+
+
+    /** The default hash-join memory budget is 4MB. */
+    public static final long DEFAULT_HASHJOIN_MEMORY = 4 * 1024 * 1024;
+
+
+    /** The largest number of partitions that a hash join will spill into. */
+    public static final int MAX_PARTITIONS = 64;
+
+
+    /**
+     * Returns the number of bytes of tuple data that a hash join may keep in
+     * memory, from the <tt>nanodb.hashjoin.memory</tt> property.
+     *
+     * @return the hash-join memory budget in bytes
+     */
+    public static long getMemoryBudget() {
+        long budget = DEFAULT_HASHJOIN_MEMORY;
+
+        String str = System.getProperty(PROP_HASHJOIN_MEMORY);
+        if (str != null) {
+            try {
+                budget = Long.parseLong(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse hash-join memory value \"%s\"; " +
+                    "using default value of %d", str, DEFAULT_HASHJOIN_MEMORY));
+            }
+
+            if (budget <= 0) {
+                logger.error(String.format(
+                    "Hash-join memory %d is not positive; using default " +
+                    "value of %d", budget, DEFAULT_HASHJOIN_MEMORY));
+
+                budget = DEFAULT_HASHJOIN_MEMORY;
+            }
+        }
+
+        return budget;
+    }
+
+
+    /** The storage manager is used to create temporary partition files. */
+    private StorageManager storageManager;
+
+
+    /** The equi-join expressions that are evaluated against left tuples. */
+    private ArrayList<Expression> leftKeys;
+
+
+    /**
+     * The equi-join expressions that are evaluated against right tuples.
+     * Each entry corresponds to the entry in {@link #leftKeys} with the same
+     * index.
+     */
+    private ArrayList<Expression> rightKeys;
+
+
+    /**
+     * True if the hash table is built from the left child, and the right
+     * child is probed.  This is only ever true for inner joins.
+     */
+    private boolean buildOnLeft;
+
+
+    /** The memory budget in effect while the join is being evaluated. */
+    private long memoryBudget;
+
+
+    /**
+     * The hash table mapping join keys to the build-side tuples with that
+     * key, or {@code null} if the build phase hasn't run yet.
+     */
+    private HashMap<TupleLiteral, ArrayList<TupleLiteral>> hashTable;
+
+
+    /** The estimated number of bytes of tuple data in the hash table. */
+    private long hashTableSize;
+
+
+    /**
+     * The number of partitions the join has been split into, or 0 if the
+     * build side fits in memory.
+     */
+    private int numPartitions;
+
+
+    /**
+     * The partition that is joined in memory during the probe phase, or -1 if
+     * every partition has been spilled to disk.
+     */
+    private int inMemoryPartition;
+
+
+    /** The temporary files holding spilled build-side partitions. */
+    private TupleFile[] buildFiles;
+
+
+    /** The temporary files holding spilled probe-side partitions. */
+    private TupleFile[] probeFiles;
+
+
+    /**
+     * The spilled partition that is currently being joined, or -1 if tuples
+     * are still being read from the probe child.
+     */
+    private int currentPartition;
+
+
+    /** The tuple most recently read from a probe-side partition file. */
+    private Tuple probeFileTuple;
+
+
+    /** The probe-side tuple currently being joined. */
+    private TupleLiteral probeTuple;
+
+
+    /**
+     * The build-side tuples whose key matches the current probe tuple, or
+     * {@code null} if there are none.
+     */
+    private ArrayList<TupleLiteral> matches;
+
+
+    /** The index of the next entry of {@link #matches} to consider. */
+    private int matchIndex;
+
+
+    /** True if the current probe tuple has joined with any build tuple. */
+    private boolean matched;
+
+
+    /** Set to true when we have exhausted all tuples from our subplans. */
+    private boolean done;
+
+
+    public HashJoinNode(PlanNode leftChild, PlanNode rightChild,
+                        JoinType joinType, Expression predicate,
+                        StorageManager storageManager) {
+
+        super(leftChild, rightChild, joinType, predicate);
+
+        // A hash join needs equality conditions to hash on.  Cross products
+        // are better handled by a nested-loop join.
+        if (predicate == null) {
+            throw new IllegalArgumentException("predicate cannot be null on" +
+                " a hash join");
+        }
+
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        this.storageManager = storageManager;
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but
+     * not necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+
+        if (obj instanceof HashJoinNode) {
+            HashJoinNode other = (HashJoinNode) obj;
+
+            return joinType == other.joinType &&
+                predicate.equals(other.predicate) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the hash-join plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + joinType.hashCode();
+        hash = 31 * hash + predicate.hashCode();
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this hash join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("HashJoin[");
+        if (joinType != JoinType.INNER)
+            buf.append(joinType).append(", ");
+
+        buf.append("pred:  ").append(predicate);
+        buf.append(buildOnLeft ? ", build left" : ", build right");
+
+        if (schemaSwapped)
+            buf.append(" (schema swapped)");
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        HashJoinNode node = (HashJoinNode) super.clone();
+
+        // Clone the predicate.
+        node.predicate = predicate.duplicate();
+
+        // The copy must have its own join state.
+        node.hashTable = null;
+        node.buildFiles = null;
+        node.probeFiles = null;
+
+        return node;
+    }
+
+
+    /** The hash join doesn't produce its results in any particular order. */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** The hash join doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** The hash join doesn't require its left child to support marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** The hash join doesn't require its right child to support marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    @Override
+    protected boolean supportsJoinType(JoinType joinType) {
+        return joinType == JoinType.INNER ||
+               joinType == JoinType.LEFT_OUTER ||
+               joinType == JoinType.SEMIJOIN ||
+               joinType == JoinType.ANTIJOIN;
+    }
+
+
+    /**
+     * Returns true if the join predicate contains at least one equality
+     * condition that the hash join can hash on.  This is only valid after
+     * {@link #prepare} has been called; if it returns false then the node
+     * cannot be evaluated.
+     *
+     * @return true if the join predicate contains at least one usable
+     *         equi-join condition
+     */
+    public boolean hasJoinKeys() {
+        return leftKeys != null && !leftKeys.isEmpty();
+    }
+
+
+    /**
+     * Returns the equi-join expressions that are evaluated against left
+     * tuples.  This is only valid after {@link #prepare} has been called.
+     */
+    List<Expression> getLeftKeys() {
+        return leftKeys;
+    }
+
+
+    /**
+     * Returns the equi-join expressions that are evaluated against right
+     * tuples, in the same order as {@link #getLeftKeys}.  This is only valid
+     * after {@link #prepare} has been called.
+     */
+    List<Expression> getRightKeys() {
+        return rightKeys;
+    }
+
+
+    @Override
+    public void prepareJoin() {
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        findJoinKeys();
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float leftBytes = leftCost.numTuples * leftCost.tupleSize;
+        float rightBytes = rightCost.numTuples * rightCost.tupleSize;
+
+        buildOnLeft = (joinType == JoinType.INNER && leftBytes < rightBytes);
+
+        PlanCost buildCost = buildOnLeft ? leftCost : rightCost;
+        PlanCost probeCost = buildOnLeft ? rightCost : leftCost;
+        float buildBytes = buildOnLeft ? leftBytes : rightBytes;
+        float probeBytes = buildOnLeft ? rightBytes : leftBytes;
+
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+        float numTuples = leftCost.numTuples * rightCost.numTuples *
+            SelectivityEstimator.estimateSelectivity(predicate, schema, stats);
+
+        switch (joinType) {
+            case LEFT_OUTER:
+                numTuples = Math.max(numTuples, leftCost.numTuples);
+                break;
+
+            case SEMIJOIN:
+            case ANTIJOIN:
+                // Semijoins and antijoins only produce left tuples.
+                numTuples = leftCost.numTuples;
+                tupleSize = leftCost.tupleSize;
+
+                schema = new Schema(leftSchema);
+                stats = new ArrayList<ColumnStats>(leftStats);
+                break;
+        }
+
+        // Each input tuple is hashed once, and each result is produced once.
+        float cpuCost = leftCost.cpuCost + rightCost.cpuCost +
+            buildCost.numTuples + probeCost.numTuples + numTuples;
+        long numBlockIOs = leftCost.numBlockIOs + rightCost.numBlockIOs;
+
+        // If the build side won't fit in memory, the part that doesn't fit
+        // is written out and read back in, along with the corresponding part
+        // of the probe side.
+        long budget = getMemoryBudget();
+        if (buildBytes > budget) {
+            float spilled = 1.0f - budget / buildBytes;
+            cpuCost += 2 * spilled * (buildCost.numTuples + probeCost.numTuples);
+            numBlockIOs += (long) Math.ceil(2 * spilled *
+                (buildBytes + probeBytes) / StorageManager.getCurrentPageSize());
+        }
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
+
+
+    /**
+     * This helper finds the conjuncts of the join predicate that compare an
+     * expression on the left child's columns to an expression on the right
+     * child's columns for equality, and records them as the join keys.
+     * Conditions are only used as keys if the two sides hash consistently
+     * with how they compare, so mixed-type comparisons such as numbers
+     * against strings are left to the full predicate.
+     */
+    private void findJoinKeys() {
+        leftKeys = new ArrayList<Expression>();
+        rightKeys = new ArrayList<Expression>();
+
+        ArrayList<Expression> conjuncts = new ArrayList<Expression>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        for (Expression conjunct : conjuncts) {
+            if (!(conjunct instanceof CompareOperator))
+                continue;
+
+            CompareOperator cmp = (CompareOperator) conjunct;
+            if (cmp.getType() != CompareOperator.Type.EQUALS)
+                continue;
+
+            Expression lhs = cmp.getLeftExpression();
+            Expression rhs = cmp.getRightExpression();
+            if (!usesOnlySchema(lhs, leftSchema, rightSchema) ||
+                !usesOnlySchema(rhs, rightSchema, leftSchema)) {
+                // Try the condition the other way around.
+                Expression tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+
+                if (!usesOnlySchema(lhs, leftSchema, rightSchema) ||
+                    !usesOnlySchema(rhs, rightSchema, leftSchema)) {
+                    continue;
+                }
+            }
+
+            try {
+                SQLDataType leftType =
+                    lhs.getColumnInfo(leftSchema).getType().getBaseType();
+                SQLDataType rightType =
+                    rhs.getColumnInfo(rightSchema).getType().getBaseType();
+
+                if (!canHashTogether(leftType, rightType))
+                    continue;
+            }
+            catch (SchemaNameException e) {
+                continue;
+            }
+
+            leftKeys.add(lhs);
+            rightKeys.add(rhs);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Hash join keys:  left %s, right %s",
+                leftKeys, rightKeys));
+        }
+    }
+
+
+    /**
+     * Returns true if the expression refers to at least one column, and all
+     * of its columns are in the specified schema and not in the other
+     * schema.
+     */
+    private static boolean usesOnlySchema(Expression expr, Schema schema,
+                                          Schema otherSchema) {
+        ArrayList<ColumnName> symbols = new ArrayList<ColumnName>();
+        expr.getAllSymbols(symbols);
+        if (symbols.isEmpty())
+            return false;
+
+        try {
+            for (ColumnName colName : symbols) {
+                if (schema.getColumnIndex(colName) == -1 ||
+                    otherSchema.getColumnIndex(colName) != -1) {
+                    return false;
+                }
+            }
+        }
+        catch (SchemaNameException e) {
+            // The column name is ambiguous.
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns true if values of the two types that compare as equal will
+     * also have equal join keys, once the values are canonicalized by
+     * {@link #canonicalize}.
+     */
+    private static boolean canHashTogether(SQLDataType type1,
+                                           SQLDataType type2) {
+        // NUMERIC values compare by value, but hash by value and scale.
+        if (type1 == SQLDataType.NUMERIC || type2 == SQLDataType.NUMERIC)
+            return false;
+
+        if (SQLDataType.isNumber(type1) && SQLDataType.isNumber(type2))
+            return true;
+
+        if (SQLDataType.isString(type1) && SQLDataType.isString(type2))
+            return true;
+
+        return type1 == type2;
+    }
+
+
+    /**
+     * Converts a key value into a canonical form, so that numbers of
+     * different Java types that compare as equal also hash the same.
+     * Integral values are converted to {@code Long}, and other numbers are
+     * converted to {@code Double} unless they have an integral value.
+     */
+    static Object canonicalize(Object value) {
+        if (value instanceof Byte || value instanceof Short ||
+            value instanceof Integer || value instanceof Long) {
+            return ((Number) value).longValue();
+        }
+        else if (value instanceof Float || value instanceof Double) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && d >= Long.MIN_VALUE &&
+                d <= Long.MAX_VALUE) {
+                return (long) d;
+            }
+            return d;
+        }
+
+        return value;
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        if (!hasJoinKeys()) {
+            throw new IllegalStateException(
+                "Hash join requires an equi-join condition");
+        }
+
+        deleteTempFiles();
+
+        memoryBudget = getMemoryBudget();
+        hashTable = null;
+        hashTableSize = 0;
+        numPartitions = 0;
+        inMemoryPartition = -1;
+        currentPartition = -1;
+        probeFileTuple = null;
+        probeTuple = null;
+        matches = null;
+        done = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (done)
+            return null;
+
+        if (hashTable == null)
+            buildHashTable();
+
+        while (true) {
+            if (probeTuple == null) {
+                if (!getNextProbeTuple()) {
+                    done = true;
+                    deleteTempFiles();
+                    return null;
+                }
+            }
+
+            Tuple result = getNextResult();
+            if (result != null)
+                return result;
+
+            // We are done with this probe tuple.
+            probeTuple = null;
+        }
+    }
+
+
+    /**
+     * This helper produces the next result for the current probe tuple, or
+     * returns {@code null} if the probe tuple has no more results.
+     */
+    private Tuple getNextResult() {
+        switch (joinType) {
+            case INNER:
+            case LEFT_OUTER:
+                while (matches != null && matchIndex < matches.size()) {
+                    TupleLiteral buildTuple = matches.get(matchIndex);
+                    matchIndex++;
+
+                    if (canJoinTuples(buildTuple)) {
+                        matched = true;
+                        if (buildOnLeft)
+                            return joinTuples(buildTuple, probeTuple);
+                        else
+                            return joinTuples(probeTuple, buildTuple);
+                    }
+                }
+
+                if (joinType == JoinType.LEFT_OUTER && !matched) {
+                    matched = true;
+                    return joinTuples(probeTuple,
+                        new TupleLiteral(rightSchema.numColumns()));
+                }
+                break;
+
+            case SEMIJOIN:
+            case ANTIJOIN:
+                while (matches != null && matchIndex < matches.size()) {
+                    TupleLiteral buildTuple = matches.get(matchIndex);
+                    matchIndex++;
+
+                    if (canJoinTuples(buildTuple)) {
+                        matchIndex = matches.size();
+                        if (joinType == JoinType.SEMIJOIN)
+                            return probeTuple;
+
+                        matched = true;
+                    }
+                }
+
+                if (joinType == JoinType.ANTIJOIN && !matched) {
+                    matched = true;
+                    return probeTuple;
+                }
+                break;
+
+            default:
+                throw new IllegalStateException(
+                    "Unsupported join type " + joinType);
+        }
+
+        return null;
+    }
+
+
+    private boolean canJoinTuples(TupleLiteral buildTuple) {
+        environment.clear();
+        if (buildOnLeft) {
+            environment.addTuple(leftSchema, buildTuple);
+            environment.addTuple(rightSchema, probeTuple);
+        }
+        else {
+            environment.addTuple(leftSchema, probeTuple);
+            environment.addTuple(rightSchema, buildTuple);
+        }
+
+        return predicate.evaluatePredicate(environment);
+    }
+
+
+    private PlanNode getBuildChild() {
+        return buildOnLeft ? leftChild : rightChild;
+    }
+
+
+    private Schema getBuildSchema() {
+        return buildOnLeft ? leftSchema : rightSchema;
+    }
+
+
+    private List<Expression> getBuildKeys() {
+        return buildOnLeft ? leftKeys : rightKeys;
+    }
+
+
+    private PlanNode getProbeChild() {
+        return buildOnLeft ? rightChild : leftChild;
+    }
+
+
+    private Schema getProbeSchema() {
+        return buildOnLeft ? rightSchema : leftSchema;
+    }
+
+
+    private List<Expression> getProbeKeys() {
+        return buildOnLeft ? rightKeys : leftKeys;
+    }
+
+
+    /**
+     * Evaluates the join key of a tuple.  If any part of the key is
+     * <tt>NULL</tt> then the tuple cannot join with anything, and
+     * {@code null} is returned.
+     */
+    private TupleLiteral evaluateKey(List<Expression> keys, Schema schema,
+                                     Tuple tuple) {
+        environment.clear();
+        environment.addTuple(schema, tuple);
+
+        TupleLiteral key = new TupleLiteral();
+        for (Expression keyExpr : keys) {
+            Object value = keyExpr.evaluate(environment);
+            if (value == null)
+                return null;
+
+            key.addValue(canonicalize(value));
+        }
+
+        return key;
+    }
+
+
+    /**
+     * Returns the partition that a join key falls into.  The key's hash code
+     * is mixed first, since the in-memory hash table also uses the low bits
+     * of the same hash code.
+     */
+    private int getPartition(TupleLiteral key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % numPartitions;
+    }
+
+
+    private void addToHashTable(TupleLiteral key, TupleLiteral tuple) {
+        ArrayList<TupleLiteral> tuples = hashTable.get(key);
+        if (tuples == null) {
+            tuples = new ArrayList<TupleLiteral>();
+            hashTable.put(key, tuples);
+        }
+        tuples.add(tuple);
+
+        hashTableSize += PageTuple.getTupleStorageSize(getBuildSchema(), tuple);
+    }
+
+
+    /**
+     * This helper reads the entire build child into the hash table, spilling
+     * partitions to temporary files if the hash table grows too large.
+     */
+    private void buildHashTable() throws IOException {
+        hashTable = new HashMap<TupleLiteral, ArrayList<TupleLiteral>>();
+        hashTableSize = 0;
+
+        PlanNode buildChild = getBuildChild();
+        Schema buildSchema = getBuildSchema();
+        List<Expression> buildKeys = getBuildKeys();
+
+        while (true) {
+            Tuple tuple = buildChild.getNextTuple();
+            if (tuple == null)
+                break;
+
+            // Tuples with a NULL key can't join with anything, and the build
+            // side is never preserved, so they can be dropped.
+            TupleLiteral key = evaluateKey(buildKeys, buildSchema, tuple);
+            if (key == null)
+                continue;
+
+            if (numPartitions > 0) {
+                int partition = getPartition(key);
+                if (partition != inMemoryPartition) {
+                    buildFiles[partition] =
+                        writeTuple(buildFiles[partition], buildSchema, tuple);
+                    continue;
+                }
+            }
+
+            addToHashTable(key, new TupleLiteral(tuple));
+
+            if (hashTableSize > memoryBudget) {
+                if (numPartitions == 0)
+                    startPartitioning();
+                else if (inMemoryPartition != -1)
+                    spillInMemoryPartition();
+            }
+        }
+
+        logger.debug(String.format("Built hash table with %d keys (%d " +
+            "bytes), %d partitions", hashTable.size(), hashTableSize,
+            numPartitions));
+    }
+
+
+    /**
+     * This helper switches the join to partitioned evaluation when the hash
+     * table first exceeds the memory budget.  The number of partitions is
+     * chosen from the estimated size of the build side, so that each
+     * partition should fit within the budget; every partition except the
+     * first is written out to a temporary file.
+     */
+    private void startPartitioning() throws IOException {
+        PlanCost buildCost = getBuildChild().getCost();
+        double estimate = Math.max(buildCost.numTuples * buildCost.tupleSize,
+            2.0 * hashTableSize);
+
+        numPartitions = (int) Math.ceil(estimate / memoryBudget) + 1;
+        numPartitions = Math.max(2, Math.min(MAX_PARTITIONS, numPartitions));
+        inMemoryPartition = 0;
+
+        buildFiles = new TupleFile[numPartitions];
+        probeFiles = new TupleFile[numPartitions];
+
+        logger.debug(String.format("Hash table exceeds %d bytes; spilling " +
+            "to %d partitions", memoryBudget, numPartitions));
+
+        Schema buildSchema = getBuildSchema();
+        Iterator<Map.Entry<TupleLiteral, ArrayList<TupleLiteral>>> entries =
+            hashTable.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            Map.Entry<TupleLiteral, ArrayList<TupleLiteral>> entry =
+                entries.next();
+
+            int partition = getPartition(entry.getKey());
+            if (partition == inMemoryPartition)
+                continue;
+
+            for (TupleLiteral tuple : entry.getValue()) {
+                buildFiles[partition] =
+                    writeTuple(buildFiles[partition], buildSchema, tuple);
+                hashTableSize -=
+                    PageTuple.getTupleStorageSize(buildSchema, tuple);
+            }
+            entries.remove();
+        }
+    }
+
+
+    /**
+     * This helper writes out the in-memory partition as well, when it alone
+     * exceeds the memory budget.
+     */
+    private void spillInMemoryPartition() throws IOException {
+        logger.debug("In-memory partition exceeds memory budget; spilling " +
+            "partition " + inMemoryPartition);
+
+        Schema buildSchema = getBuildSchema();
+        for (ArrayList<TupleLiteral> tuples : hashTable.values()) {
+            for (TupleLiteral tuple : tuples) {
+                buildFiles[inMemoryPartition] = writeTuple(
+                    buildFiles[inMemoryPartition], buildSchema, tuple);
+            }
+        }
+
+        hashTable.clear();
+        hashTableSize = 0;
+        inMemoryPartition = -1;
+    }
+
+
+    /**
+     * Writes a tuple to a partition file, creating the file if it doesn't
+     * exist yet.
+     *
+     * @return the partition file
+     */
+    private TupleFile writeTuple(TupleFile file, Schema schema, Tuple tuple)
+        throws IOException {
+
+        if (file == null) {
+            file = storageManager.createTempTupleFile(schema);
+            PerformanceCounters.inc(
+                PerformanceCounters.JOIN_HASH_PARTITIONS_SPILLED);
+        }
+
+        Tuple stored = file.addTuple(tuple);
+        PageTuple.unpinPage(stored);
+
+        return file;
+    }
+
+
+    /**
+     * Reads the next tuple of a partition file.  The previous tuple is
+     * released once the next one has been found.
+     *
+     * @param file the partition file to read
+     *
+     * @param prevTuple the previous tuple from the file, or {@code null} to
+     *        read the first tuple
+     *
+     * @return the next tuple, or {@code null} if the file has no more tuples
+     */
+    private Tuple readTuple(TupleFile file, Tuple prevTuple)
+        throws IOException {
+
+        Tuple tuple;
+        if (prevTuple == null) {
+            tuple = file.getFirstTuple();
+        }
+        else {
+            tuple = file.getNextTuple(prevTuple);
+            PageTuple.unpinPage(prevTuple);
+        }
+
+        return tuple;
+    }
+
+
+    /**
+     * This helper advances to the next probe tuple to join, and looks up its
+     * matches in the hash table.  Probe tuples that fall into a spilled
+     * partition are written out to that partition's file along the way.
+     *
+     * @return true if there is another probe tuple, or false if the join is
+     *         finished
+     */
+    private boolean getNextProbeTuple() throws IOException {
+        Schema probeSchema = getProbeSchema();
+        List<Expression> probeKeys = getProbeKeys();
+
+        while (true) {
+            Tuple tuple;
+            if (currentPartition == -1) {
+                tuple = getProbeChild().getNextTuple();
+                if (tuple == null) {
+                    if (!startNextPartition())
+                        return false;
+
+                    continue;
+                }
+            }
+            else {
+                probeFileTuple = readTuple(probeFiles[currentPartition],
+                    probeFileTuple);
+
+                tuple = probeFileTuple;
+                if (tuple == null) {
+                    if (!startNextPartition())
+                        return false;
+
+                    continue;
+                }
+            }
+
+            TupleLiteral key = evaluateKey(probeKeys, probeSchema, tuple);
+
+            // Tuples with a NULL key never match, so they are joined right
+            // away instead of being spilled.
+            if (currentPartition == -1 && key != null && numPartitions > 0) {
+                int partition = getPartition(key);
+                if (partition != inMemoryPartition) {
+                    // An inner join or semijoin can skip tuples that have
+                    // nothing to join against.
+                    if (buildFiles[partition] != null ||
+                        joinType == JoinType.LEFT_OUTER ||
+                        joinType == JoinType.ANTIJOIN) {
+                        probeFiles[partition] = writeTuple(
+                            probeFiles[partition], probeSchema, tuple);
+                    }
+                    continue;
+                }
+            }
+
+            probeTuple = new TupleLiteral(tuple);
+            matches = (key != null ? hashTable.get(key) : null);
+            matchIndex = 0;
+            matched = false;
+
+            return true;
+        }
+    }
+
+
+    /**
+     * This helper moves on to the next spilled partition that has probe
+     * tuples, loading its build tuples into the hash table.  Partition files
+     * are deleted once they have been joined.
+     *
+     * @return true if there is another partition to join, or false if all
+     *         partitions have been joined
+     */
+    private boolean startNextPartition() throws IOException {
+        if (currentPartition != -1)
+            deletePartitionFiles(currentPartition);
+
+        hashTable.clear();
+        hashTableSize = 0;
+        probeFileTuple = null;
+
+        for (currentPartition++; currentPartition < numPartitions;
+             currentPartition++) {
+
+            if (currentPartition == inMemoryPartition)
+                continue;
+
+            if (probeFiles[currentPartition] == null) {
+                // No probe tuples fell into this partition, so it produces
+                // no results.
+                deletePartitionFiles(currentPartition);
+                continue;
+            }
+
+            TupleFile buildFile = buildFiles[currentPartition];
+            if (buildFile != null) {
+                Schema buildSchema = getBuildSchema();
+                List<Expression> buildKeys = getBuildKeys();
+
+                Tuple tuple = null;
+                while (true) {
+                    tuple = readTuple(buildFile, tuple);
+                    if (tuple == null)
+                        break;
+
+                    TupleLiteral copy = new TupleLiteral(tuple);
+                    addToHashTable(evaluateKey(buildKeys, buildSchema, copy),
+                        copy);
+                }
+
+                if (hashTableSize > memoryBudget) {
+                    logger.warn(String.format("Hash join partition %d " +
+                        "has %d bytes, exceeding memory budget of %d bytes",
+                        currentPartition, hashTableSize, memoryBudget));
+                }
+            }
+
+            logger.debug(String.format("Joining partition %d; %d keys",
+                currentPartition, hashTable.size()));
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    private void deletePartitionFiles(int partition) throws IOException {
+        if (buildFiles[partition] != null) {
+            storageManager.deleteTempTupleFile(buildFiles[partition]);
+            buildFiles[partition] = null;
+        }
+
+        if (probeFiles[partition] != null) {
+            storageManager.deleteTempTupleFile(probeFiles[partition]);
+            probeFiles[partition] = null;
+        }
+    }
+
+
+    /**
+     * Deletes any partition files that are still around, for example if the
+     * join was not run to completion.
+     */
+    private void deleteTempFiles() {
+        if (buildFiles == null)
+            return;
+
+        try {
+            for (int i = 0; i < buildFiles.length; i++)
+                deletePartitionFiles(i);
+        }
+        catch (IOException e) {
+            logger.error("Couldn't delete hash join partition files", e);
+        }
+
+        buildFiles = null;
+        probeFiles = null;
+    }
+
+
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Hash join doesn't support marking");
+    }
+
+
+    public void resetToLastMark() throws IllegalStateException {
+        throw new UnsupportedOperationException(
+            "Hash join doesn't support marking");
+    }
+
+
+    public void cleanUp() {
+        deleteTempFiles();
+        hashTable = null;
+
+        leftChild.cleanUp();
+        rightChild.cleanUp();
+    }
+}
@@ -3,25 +3,74 @@ package edu.caltech.nanodb.plans;
 
 import java.io.IOException;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ArithmeticOperator;
+import edu.caltech.nanodb.expressions.Environment;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionException;
 import edu.caltech.nanodb.expressions.FunctionCall;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.TupleLiteral;
-
+import edu.caltech.nanodb.expressions.VectorEvaluator;
+
+import edu.caltech.nanodb.functions.AggregateFunction;
+import edu.caltech.nanodb.functions.Avg;
+import edu.caltech.nanodb.functions.Count;
+import edu.caltech.nanodb.functions.CountStar;
+import edu.caltech.nanodb.functions.Max;
+import edu.caltech.nanodb.functions.Min;
+import edu.caltech.nanodb.functions.Sum;
 import edu.caltech.nanodb.qeval.PlanCost;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.relations.ColumnVector;
+import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFile;
 
 
 /**
  * Implements grouping and aggregation by using hashing as a method to
  * identify groups.
+ * <p>
+ * The groups are kept in an open-addressing hash table that stores the group
+ * keys and the aggregate state in flat arrays, rather than in one object per
+ * group.  <tt>COUNT</tt>, <tt>COUNT(*)</tt>, <tt>SUM</tt>, <tt>AVG</tt>,
+ * <tt>MIN</tt> and <tt>MAX</tt> keep their state directly in arrays; other
+ * aggregates, such as the <tt>DISTINCT</tt> variants, fall back to a copy of
+ * the aggregate function for each group.
+ * <p>
+ * If the table grows past the memory budget specified by the
+ * <tt>nanodb.aggregate.memory</tt> property, the groups already in the table
+ * keep aggregating their input, but input tuples for new groups are
+ * partitioned by hashing their group key and written out to temporary files.
+ * Once the in-memory groups have been output, each partition is
+ * re-aggregated in the same way, so a partition that is still too large is
+ * split up again, up to {@link #MAX_SPILL_LEVELS} times.
+ * <p>
+ * If the subplan supports batch execution, and batch execution hasn't been
+ * disabled with the <tt>nanodb.exec.batches</tt> property, its tuples are
+ * consumed a batch at a time:  the group-by expressions and aggregate arguments are computed
+ * for a whole batch with {@link VectorEvaluator}s, and the common aggregates
+ * are updated from primitive arrays when their arguments are numeric.
+ * <p>
+ * If the subplan is a {@link FileScanNode} that would scan its file in
+ * parallel, and all of the aggregates are ones whose state can be combined,
+ * the aggregation is done in parallel too:  each worker of the scan
+ * aggregates its own batches into a partial table, and the partial tables
+ * are merged once the scan is done.  Every partial table may end up holding
+ * every group, and partial tables can't be spilled, so this is only done
+ * when the estimated number of groups fits in the memory budget that many
+ * times over.
  */
 public class HashedGroupAggregateNode extends GroupAggregateNode {
 
@@ -29,9 +78,105 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     private static Logger logger = Logger.getLogger(HashedGroupAggregateNode.class);
 
 
-    private LinkedHashMap<TupleLiteral, Map<String, FunctionCall>> computedAggregates;
+    /**
+     * The system property that can be used to specify how many bytes of
+     * group data the hash table may hold before input tuples for new groups
+     * are written out to partition files.
+     */
+    public static final String PROP_AGGREGATE_MEMORY = "nanodb.aggregate.memory";
+
+
+    /** The default aggregation memory budget is 4MB. */
+    public static final long DEFAULT_AGGREGATE_MEMORY = 4 * 1024 * 1024;
+
+
+    /** The number of partitions that spilled input tuples are split into. */
+    public static final int SPILL_PARTITIONS = 16;
+
+
+    /**
+     * The number of times the input can be repartitioned.  A partition at
+     * this level is aggregated entirely in memory.
+     */
+    public static final int MAX_SPILL_LEVELS = 4;
+
+
+    /**
+     * Returns the number of bytes of group data that a hashed aggregation
+     * may keep in memory, from the <tt>nanodb.aggregate.memory</tt> property.
+     *
+     * @return the aggregation memory budget in bytes
+     */
+    public static long getMemoryBudget() {
+        long budget = DEFAULT_AGGREGATE_MEMORY;
+
+        String str = System.getProperty(PROP_AGGREGATE_MEMORY);
+        if (str != null) {
+            try {
+                budget = Long.parseLong(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse aggregate memory value \"%s\"; " +
+                    "using default value of %d", str, DEFAULT_AGGREGATE_MEMORY));
+            }
+
+            if (budget <= 0) {
+                logger.error(String.format(
+                    "Aggregate memory %d is not positive; using default " +
+                    "value of %d", budget, DEFAULT_AGGREGATE_MEMORY));
+
+                budget = DEFAULT_AGGREGATE_MEMORY;
+            }
+        }
+
+        return budget;
+    }
+
+
+    /**
+     * The storage manager used to create partition files, or {@code null}
+     * if the aggregation must be performed entirely in memory.
+     */
+    private StorageManager storageManager;
+
+
+    /** The memory budget in effect while the node is being evaluated. */
+    private long memoryBudget;
+
 
-    private Iterator<TupleLiteral> groupIterator;
+    /** The table of groups currently being output. */
+    private AggregationTable table;
+
+
+    /** The index of the next group in {@link #table} to output. */
+    private int nextGroup;
+
+
+    /**
+     * The partition files that input tuples for new groups are being written
+     * to, or {@code null} if the aggregation hasn't run out of memory.
+     */
+    private TupleFile[] spillFiles;
+
+
+    /**
+     * True if the subplan's tuples are consumed a batch at a time.  This is
+     * decided when the node is initialized.
+     */
+    private boolean useBatches;
+
+
+    /** The batch that {@link #getNextBatch} fills with groups. */
+    private TupleBatch outputBatch;
+
+
+    /** Partition files that still need to be aggregated. */
+    private ArrayList<TupleFile> pendingFiles;
+
+
+    /** The spill level of each file in {@link #pendingFiles}. */
+    private ArrayList<Integer> pendingLevels;
 
 
     private boolean done;
@@ -39,7 +184,26 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
 
     public HashedGroupAggregateNode(PlanNode subplan,
         List<Expression> groupByExprs, Map<String, FunctionCall> aggregates) {
+        this(subplan, groupByExprs, aggregates, null);
+    }
+
+
+    /**
+     * Constructs a hashed grouping/aggregate node that can spill partitions
+     * of its input to temporary files when its groups don't fit in memory.
+     *
+     * @param subplan the subplan that produces the tuples to aggregate
+     * @param groupByExprs the expressions to group the tuples by
+     * @param aggregates the aggregate functions to compute for each group
+     * @param storageManager the storage manager to create temporary files
+     *        with, or {@code null} if the aggregation must be done in memory
+     */
+    public HashedGroupAggregateNode(PlanNode subplan,
+        List<Expression> groupByExprs, Map<String, FunctionCall> aggregates,
+        StorageManager storageManager) {
         super(subplan, groupByExprs, aggregates);
+
+        this.storageManager = storageManager;
     }
 
 
@@ -74,6 +238,24 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     }
 
 
+    /**
+     * Creates a copy of this plan node and its subtree.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        HashedGroupAggregateNode node = (HashedGroupAggregateNode) super.clone();
+
+        // The copy must have its own aggregation state.
+        node.table = null;
+        node.pendingFiles = null;
+        node.pendingLevels = null;
+        node.spillFiles = null;
+        node.outputBatch = null;
+
+        return node;
+    }
+
+
     /**
      * The hashed grouping/aggregate operation does not order its results in
      * any way.
@@ -92,6 +274,16 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     }
 
 
+    /**
+     * The hashed grouping/aggregate operation can produce batches of groups
+     * if its subplan produces batches of input.
+     */
+    @Override
+    public boolean supportsBatchExecution() {
+        return leftChild.supportsBatchExecution();
+    }
+
+
     /**
      * The hashed grouping/aggregate operation does not require marking.
      */
@@ -121,78 +313,520 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
      * @throws IllegalStateException if a plan node is not properly initialized
      */
     public Tuple getNextTuple() throws IllegalStateException, IOException {
-        if (done)
+        if (!advanceToNextGroup())
             return null;
 
-        TupleLiteral result = null;
+        // Construct the result tuple from the group, and from the computed
+        // aggregate values.
+        TupleLiteral result = table.generateOutputTuple(nextGroup);
+        nextGroup++;
+
+        return result;
+    }
+
+
+    /**
+     * Gets the next batch of groups, writing the group values and the
+     * computed aggregate values straight into the batch's column vectors.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IllegalStateException, IOException {
+        if (!supportsBatchExecution())
+            return super.getNextBatch();
+
+        if (outputBatch == null) {
+            ColumnVector[] columns = new ColumnVector[schema.numColumns()];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = new ColumnVector(null, TupleBatch.DEFAULT_CAPACITY);
 
-        if (computedAggregates == null) {
-            computeAggregates();
-            groupIterator = computedAggregates.keySet().iterator();
+            outputBatch = new TupleBatch(columns, 0);
         }
 
-        if (groupIterator.hasNext()) {
-            // Construct the result tuple from the group, and from the
-            // computed aggregate values.
+        int numRows = 0;
+        while (numRows < TupleBatch.DEFAULT_CAPACITY && advanceToNextGroup()) {
+            table.writeOutputRow(nextGroup, outputBatch, numRows);
+            nextGroup++;
+            numRows++;
+        }
+
+        if (numRows == 0)
+            return null;
+
+        outputBatch.setNumRows(numRows);
+        return outputBatch;
+    }
+
+
+    /**
+     * Makes sure that {@link #nextGroup} refers to a group in {@link #table}
+     * that hasn't been output yet, computing the aggregates and aggregating
+     * any spilled partitions as necessary.
+     *
+     * @return true if there is another group to output, or false if all
+     *         groups have been output
+     *
+     * @throws IOException if the input or the partition files can't be
+     *         read or written
+     */
+    private boolean advanceToNextGroup() throws IOException {
+        if (done)
+            return false;
 
-            TupleLiteral group = groupIterator.next();
-            Map<String, FunctionCall> groupAggregates = computedAggregates.get(group);
-            result = generateOutputTuple(group, groupAggregates);
+        if (table == null) {
+            pendingFiles = new ArrayList<TupleFile>();
+            pendingLevels = new ArrayList<Integer>();
+            computeAggregates(null, 0);
         }
-        else {
-            // No more groups.
-            done = true;
+
+        while (nextGroup == table.getNumGroups()) {
+            if (pendingFiles.isEmpty()) {
+                // No more groups.
+                done = true;
+                table = null;
+                return false;
+            }
+
+            // Aggregate the next partition that was spilled to disk.
+            TupleFile file = pendingFiles.remove(0);
+            int level = pendingLevels.remove(0);
+
+            computeAggregates(file, level);
+            storageManager.deleteTempTupleFile(file);
         }
 
-        return result;
+        return true;
     }
 
 
     /**
-     * This helper function iterates through <u>all</u> tuples generated by
-     * the subplan, using an internal hash table to compute the grouping and
-     * aggregate results that this plan-node will output.
+     * This helper function iterates through <u>all</u> tuples from the
+     * subplan or from a partition file, using the hash table to compute the
+     * grouping and aggregate results that this plan-node will output.  Once
+     * the table exceeds the memory budget, tuples for groups that aren't
+     * already in the table are written out to partition files, which are
+     * added to the list of pending files.
+     *
+     * @param file the partition file to read, or {@code null} to read the
+     *        tuples from the subplan
+     *
+     * @param level how many times the tuples have been partitioned already
      *
-     * @throws IOException
+     * @throws IOException if the input or the partition files can't be
+     *         read or written
+     */
+    private void computeAggregates(TupleFile file, int level)
+        throws IOException {
+
+        nextGroup = 0;
+        spillFiles = null;
+
+        if (file == null && useBatches) {
+            int numWorkers = getPartialAggregationWorkers();
+            if (numWorkers > 1)
+                aggregateInParallel(numWorkers);
+            else
+                aggregateBatches();
+        }
+        else {
+            aggregateTuples(file, level);
+        }
+
+        if (spillFiles != null) {
+            for (TupleFile spillFile : spillFiles) {
+                if (spillFile != null) {
+                    pendingFiles.add(spillFile);
+                    pendingLevels.add(level + 1);
+                }
+            }
+            spillFiles = null;
+        }
+    }
+
+
+    /**
+     * Aggregates the tuples from the subplan or from a partition file, one
+     * tuple at a time.
      */
-    private void computeAggregates() throws IOException {
-        Tuple input;
+    private void aggregateTuples(TupleFile file, int level)
+        throws IOException {
 
-        computedAggregates = new LinkedHashMap<TupleLiteral, Map<String, FunctionCall>>();
+        table = new AggregationTable(null);
+
+        Tuple input = null;
+        while (true) {
+            // Pull tuples from the left child or the file until we run out.
+            if (file == null) {
+                input = leftChild.getNextTuple();
+            }
+            else {
+                Tuple prevTuple = input;
+                if (prevTuple == null) {
+                    input = file.getFirstTuple();
+                }
+                else {
+                    input = file.getNextTuple(prevTuple);
+                    PageTuple.unpinPage(prevTuple);
+                }
+            }
+
+            if (input == null)
+                break;
 
-        // Pull tuples from the left child until we run out.
-        while ((input = leftChild.getNextTuple()) != null) {
             environment.clear();
             environment.addTuple(inputSchema, input);
 
             // Get the group values for the current row.
             TupleLiteral groupValues = evaluateGroupByExprs();
+            if (groupValues == null)
+                groupValues = new TupleLiteral();
+
+            int hash = groupValues.hashCode();
+
+            // Look up the group, or create one if it doesn't already exist.
+            int group = table.findGroup(groupValues, hash);
+            if (group == -1) {
+                if (spillFiles != null) {
+                    // The table is full, so the tuple goes out to disk.
+                    spillTuple(input, hash, level);
+                    continue;
+                }
+
+                group = table.addGroup(groupValues, hash);
+                checkMemoryBudget(level);
+            }
+
+            // Now that we know the group, update each aggregate with the
+            // tuple's current value.
+            table.update(group);
+        }
+    }
+
+
+    /**
+     * Aggregates the tuples from the subplan a batch at a time.  This is
+     * only used for the subplan's tuples, since spilled partitions are
+     * stored in tuple files.
+     */
+    private void aggregateBatches() throws IOException {
+        BatchAggregator aggregator = new BatchAggregator(environment, false);
+        table = aggregator.table;
 
-            // logger.debug("Group values = " + groupValues);
+        while (true) {
+            TupleBatch batch = leftChild.getNextBatch();
+            if (batch == null)
+                break;
 
-            // Look up the collection of aggregate functions for this group,
-            // or create one if it doesn't already exist.
-            Map<String, FunctionCall> groupAggregates = computedAggregates.get(groupValues);
-            if (groupAggregates == null) {
-                groupAggregates = new LinkedHashMap<String, FunctionCall>();
+            aggregator.consume(batch);
+        }
+    }
+
+
+    /**
+     * Returns the number of workers that should aggregate the subplan's
+     * batches in parallel.  This is only possible if the subplan is a file
+     * scan that would run in parallel, every aggregate's state can be
+     * merged, and the estimated groups fit in memory once for each worker
+     * and once more for the merged table.
+     *
+     * @return the number of workers, or 1 if the batches should be
+     *         aggregated by the session's thread
+     *
+     * @throws IOException if the size of the scanned file can't be
+     *         determined
+     */
+    private int getPartialAggregationWorkers() throws IOException {
+        if (!(leftChild instanceof FileScanNode))
+            return 1;
+
+        for (FunctionCall call : aggregates.values()) {
+            Class<?> fnClass = call.getFunction().getClass();
+            if (fnClass != CountStar.class && fnClass != Count.class &&
+                fnClass != Sum.class && fnClass != Avg.class &&
+                fnClass != Min.class && fnClass != Max.class) {
+                return 1;
+            }
+        }
+
+        int numWorkers = ((FileScanNode) leftChild).getScanParallelism();
+        if (numWorkers > 1 && storageManager != null && !groupByExprs.isEmpty()) {
+            // Assume 16 bytes for each key value and aggregate, plus the
+            // group's hash and slots.
+            long groupSize = 16 * (groupByExprs.size() + aggregates.size()) + 12;
+            if ((numWorkers + 1) * groupSize * estimatedNumTuples > memoryBudget) {
+                logger.debug("Estimated groups are too large to aggregate " +
+                    "in parallel; aggregating serially so groups can spill");
+                return 1;
+            }
+        }
+
+        return numWorkers;
+    }
+
+
+    /**
+     * Aggregates the subplan's batches on the workers of a parallel file
+     * scan.  Each worker aggregates its batches into its own table, and the
+     * tables are merged into {@link #table} once all workers are done.
+     */
+    private void aggregateInParallel(int numWorkers) throws IOException {
+        BatchAggregator[] workers = new BatchAggregator[numWorkers];
+        for (int i = 0; i < numWorkers; i++)
+            workers[i] = new BatchAggregator(new Environment(), true);
+
+        ((FileScanNode) leftChild).scanInParallel(workers);
+
+        table = new AggregationTable(workers[0].argTypes);
+        for (BatchAggregator worker : workers)
+            table.merge(worker.table);
+
+        PerformanceCounters.add(PerformanceCounters.AGG_PARTIAL_TABLES,
+            numWorkers);
+    }
+
+
+    /**
+     * Aggregates batches of input into an aggregation table, computing the
+     * group-by expressions and aggregate arguments with
+     * {@link VectorEvaluator}s.  An aggregator that isn't a partial one
+     * spills the rows of new groups to partition files once the table grows
+     * past the memory budget.
+     */
+    private class BatchAggregator implements FileScanNode.BatchConsumer {
+        /** Evaluates the group-by expressions against batches of input. */
+        private VectorEvaluator[] groupByEvaluators;
+
+        /**
+         * Evaluates the aggregate arguments against batches of input.  The
+         * evaluator is {@code null} for <tt>COUNT(*)</tt>, which doesn't need
+         * its argument.
+         */
+        private VectorEvaluator[] argumentEvaluators;
+
+        /** The types of the aggregate arguments' column vectors. */
+        private SQLDataType[] argTypes;
+
+        private Environment environment;
+
+        /**
+         * True if the aggregator runs on a worker of a parallel scan, and
+         * must not spill.
+         */
+        private boolean partial;
+
+        private AggregationTable table;
+
+        private ColumnVector[] keys;
+
+        private ColumnVector[] args;
+
+        private int[] rows = new int[TupleBatch.DEFAULT_CAPACITY];
+
+        private int[] groups = new int[TupleBatch.DEFAULT_CAPACITY];
+
+        /**
+         * Creates an aggregator with its own aggregation table.
+         *
+         * @param environment the environment to evaluate expressions with
+         *
+         * @param partial true if the aggregator will run on a worker thread,
+         *        in which case it uses its own copies of the expressions
+         */
+        BatchAggregator(Environment environment, boolean partial) {
+            this.environment = environment;
+            this.partial = partial;
+
+            // Expressions may keep some scratch state while they are being
+            // evaluated, so workers need their own copies.
+            groupByEvaluators = new VectorEvaluator[groupByExprs.size()];
+            for (int i = 0; i < groupByEvaluators.length; i++) {
+                Expression expr = groupByExprs.get(i);
+                if (partial)
+                    expr = expr.duplicate();
+
+                groupByEvaluators[i] = new VectorEvaluator(expr, inputSchema);
+            }
+
+            argumentEvaluators = new VectorEvaluator[aggregates.size()];
+            argTypes = new SQLDataType[argumentEvaluators.length];
+            int i = 0;
+            for (FunctionCall call : aggregates.values()) {
+                if (call.getFunction().getClass() != CountStar.class &&
+                    call.getArguments().size() == 1) {
+                    Expression expr = call.getArguments().get(0);
+                    if (partial)
+                        expr = expr.duplicate();
+
+                    argumentEvaluators[i] =
+                        new VectorEvaluator(expr, inputSchema);
+                    argTypes[i] = argumentEvaluators[i].getResultType();
+                }
+                i++;
+            }
+
+            table = new AggregationTable(argTypes);
 
-                // logger.debug(" * Creating new computed aggregates for this group");
+            keys = new ColumnVector[groupByEvaluators.length];
+            args = new ColumnVector[argumentEvaluators.length];
+        }
+
+        public void consume(TupleBatch batch) throws IOException {
+            int numSelected = batch.getNumSelected();
+            if (rows.length < numSelected) {
+                rows = new int[numSelected];
+                groups = new int[numSelected];
+            }
+
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = groupByEvaluators[i].evaluate(batch, environment);
 
-                // Clone each aggregate function, since aggregates keep some
-                // internal scratch space for computation.
-                for (String name : aggregates.keySet()) {
-                    FunctionCall fnCall = aggregates.get(name);
-                    groupAggregates.put(name, (FunctionCall) fnCall.duplicate());
+            for (int i = 0; i < args.length; i++) {
+                if (argumentEvaluators[i] != null)
+                    args[i] = argumentEvaluators[i].evaluate(batch, environment);
+            }
+
+            // Find the group of each selected row.  The rows whose groups
+            // are in memory are collected, so that the aggregates can be
+            // updated a column at a time.
+            TupleBatch.RowTuple rowTuple = null;
+            int numRows = 0;
+            for (int i = 0; i < numSelected; i++) {
+                int row = batch.getSelectedRow(i);
+
+                int hash = 1;
+                for (ColumnVector key : keys)
+                    hash = 31 * hash + key.hashValue(row);
+
+                int group = table.findGroup(keys, row, hash);
+                if (group == -1) {
+                    if (!partial && spillFiles != null) {
+                        // The table is full, so the row goes out to disk.
+                        if (rowTuple == null)
+                            rowTuple = batch.getRowTuple();
+
+                        rowTuple.setRow(row);
+                        spillTuple(rowTuple, hash, 0);
+                        continue;
+                    }
+
+                    group = table.addGroup(keys, row, hash);
+                    if (!partial)
+                        checkMemoryBudget(0);
                 }
 
-                computedAggregates.put(groupValues, groupAggregates);
+                rows[numRows] = row;
+                groups[numRows] = group;
+                numRows++;
             }
 
-            // Now that we know the group, and we have aggregate functions to
-            // do the computation, update each aggregate with the tuple's
-            // current value.
-            updateAggregates(groupAggregates);
+            table.update(groups, rows, numRows, args);
+        }
+    }
+
+
+    /**
+     * Starts spilling input tuples for new groups to partition files if the
+     * table has grown past the memory budget, and spilling is possible.
+     */
+    private void checkMemoryBudget(int level) {
+        if (spillFiles == null && table.getSize() > memoryBudget &&
+            storageManager != null && !groupByExprs.isEmpty() &&
+            level < MAX_SPILL_LEVELS) {
+
+            logger.debug(String.format("Aggregation table exceeds " +
+                "%d bytes with %d groups; spilling new groups to %d " +
+                "partitions", memoryBudget, table.getNumGroups(),
+                SPILL_PARTITIONS));
+
+            spillFiles = new TupleFile[SPILL_PARTITIONS];
+        }
+    }
+
+
+    /** Writes an input tuple to the partition for its group's hash code. */
+    private void spillTuple(Tuple tuple, int hash, int level)
+        throws IOException {
+
+        int partition = getPartition(hash, level);
+        spillFiles[partition] = writeTuple(spillFiles[partition], tuple);
+    }
+
+
+    /**
+     * Returns the partition that a group with the specified hash code is
+     * spilled to.  The hash code is mixed with the spill level first, so
+     * that a partition is split differently each time it is repartitioned,
+     * and differently from how the in-memory table uses the hash code.
+     */
+    private static int getPartition(int hash, int level) {
+        int h = hash + level * 0x9e3779b9;
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % SPILL_PARTITIONS;
+    }
+
+
+    /**
+     * Writes an input tuple to a partition file, creating the file if it
+     * doesn't exist yet.
+     *
+     * @return the partition file
+     */
+    private TupleFile writeTuple(TupleFile file, Tuple tuple)
+        throws IOException {
+
+        if (file == null) {
+            file = storageManager.createTempTupleFile(inputSchema);
+            PerformanceCounters.inc(
+                PerformanceCounters.AGG_PARTITIONS_SPILLED);
+        }
+
+        Tuple stored = file.addTuple(tuple);
+        PageTuple.unpinPage(stored);
+
+        return file;
+    }
+
+
+    /** Deletes any partition files that haven't been aggregated yet. */
+    private void deletePendingFiles() {
+        if (pendingFiles == null)
+            return;
+
+        try {
+            for (TupleFile file : pendingFiles)
+                storageManager.deleteTempTupleFile(file);
+        }
+        catch (IOException e) {
+            logger.error("Couldn't delete aggregation partition files", e);
+        }
+
+        pendingFiles = null;
+        pendingLevels = null;
+    }
+
+
+    /**
+     * Deletes the partition files that were being written when the
+     * aggregation was interrupted, for example by an error.
+     */
+    private void deleteSpillFiles() {
+        if (spillFiles == null)
+            return;
+
+        try {
+            for (TupleFile file : spillFiles) {
+                if (file != null)
+                    storageManager.deleteTempTupleFile(file);
+            }
+        }
+        catch (IOException e) {
+            logger.error("Couldn't delete aggregation partition files", e);
         }
+
+        spillFiles = null;
     }
 
 
@@ -238,11 +872,20 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     public void initialize() {
         super.initialize();
 
+        deletePendingFiles();
+        deleteSpillFiles();
+
         // Clear our state.
-        computedAggregates = null;
-        groupIterator = null;
+        table = null;
+        nextGroup = 0;
+        memoryBudget = getMemoryBudget();
         done = false;
 
+        useBatches = QueryEvaluator.isBatchExecutionEnabled() &&
+            leftChild.supportsBatchExecution();
+        if (useBatches)
+            PerformanceCounters.inc(PerformanceCounters.EXEC_BATCH_PLANS);
+
         leftChild.initialize();
     }
 
@@ -275,8 +918,939 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
      */
     public void cleanUp() {
         // Clear our state.
-        computedAggregates = null;
-        groupIterator = null;
+        table = null;
+        deletePendingFiles();
+        deleteSpillFiles();
         leftChild.cleanUp();
     }
+
+
+    /**
+     * Returns a rough estimate of how many bytes a value takes up in memory.
+     */
+    private static long estimateValueSize(Object value) {
+        if (value instanceof String)
+            return 40 + 2 * ((String) value).length();
+
+        return 16;
+    }
+
+
+    /**
+     * An open-addressing hash table of groups.  Group <em>g</em>'s key values
+     * are stored at indexes <em>g</em> &times; <em>k</em> through
+     * <em>g</em> &times; <em>k</em> + <em>k</em> - 1 of a flat array, where
+     * <em>k</em> is the number of group-by expressions, and each aggregate
+     * keeps its state for group <em>g</em> at index <em>g</em> of its own
+     * arrays.  Groups are numbered in the order they were added, which is
+     * also the order they are output in.
+     */
+    private class AggregationTable {
+        /** The number of values in each group key. */
+        private int keySize;
+
+        private int numGroups;
+
+        private Object[] keyValues;
+
+        private int[] groupHashes;
+
+        /**
+         * The hash table's slots, each holding a group index plus one, or 0
+         * if the slot is empty.  The length is always a power of two.
+         */
+        private int[] slots;
+
+        private Accumulator[] accumulators;
+
+        /** The aggregate arguments, in the same order as the accumulators. */
+        private Expression[] arguments;
+
+        /** The estimated size of the table's contents in bytes. */
+        private long size;
+
+
+        /**
+         * Creates an empty table.
+         *
+         * @param argTypes the types of the aggregate arguments' column
+         *        vectors, if the table will be updated from batches, or
+         *        {@code null} if it will be updated a tuple at a time
+         */
+        AggregationTable(SQLDataType[] argTypes) {
+            keySize = groupByExprs.size();
+
+            int capacity = 16;
+            keyValues = new Object[capacity * keySize];
+            groupHashes = new int[capacity];
+            slots = new int[2 * capacity];
+
+            accumulators = new Accumulator[aggregates.size()];
+            arguments = new Expression[aggregates.size()];
+
+            int i = 0;
+            for (FunctionCall call : aggregates.values()) {
+                List<Expression> args = call.getArguments();
+                if (args.size() != 1) {
+                    throw new ExpressionException("Aggregate functions " +
+                        "currently require exactly one argument.");
+                }
+
+                accumulators[i] = makeAccumulator(call, capacity,
+                    argTypes != null ? argTypes[i] : null);
+                arguments[i] = args.get(0);
+                i++;
+            }
+        }
+
+
+        int getNumGroups() {
+            return numGroups;
+        }
+
+
+        long getSize() {
+            return size;
+        }
+
+
+        /**
+         * Returns the index of the group with the specified key, or -1 if the
+         * table doesn't contain the group.
+         */
+        int findGroup(TupleLiteral key, int hash) {
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; slots[slot] != 0;
+                 slot = (slot + 1) & mask) {
+
+                int group = slots[slot] - 1;
+                if (groupHashes[group] == hash && keyEquals(group, key))
+                    return group;
+            }
+
+            return -1;
+        }
+
+
+        /**
+         * Returns the index of the group whose key is in the specified row
+         * of the key vectors, or -1 if the table doesn't contain the group.
+         */
+        int findGroup(ColumnVector[] keys, int row, int hash) {
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; slots[slot] != 0;
+                 slot = (slot + 1) & mask) {
+
+                int group = slots[slot] - 1;
+                if (groupHashes[group] == hash && keyEquals(group, keys, row))
+                    return group;
+            }
+
+            return -1;
+        }
+
+
+        /**
+         * Returns the index of the group whose key starts at the specified
+         * index of an array of key values, or -1 if the table doesn't contain
+         * the group.
+         */
+        int findGroup(Object[] keys, int start, int hash) {
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; slots[slot] != 0;
+                 slot = (slot + 1) & mask) {
+
+                int group = slots[slot] - 1;
+                if (groupHashes[group] == hash && keyEquals(group, keys, start))
+                    return group;
+            }
+
+            return -1;
+        }
+
+
+        private boolean keyEquals(int group, ColumnVector[] keys, int row) {
+            int start = group * keySize;
+            for (int i = 0; i < keySize; i++) {
+                if (!keys[i].valueEquals(row, keyValues[start + i]))
+                    return false;
+            }
+
+            return true;
+        }
+
+
+        private boolean keyEquals(int group, Object[] keys, int start) {
+            int groupStart = group * keySize;
+            for (int i = 0; i < keySize; i++) {
+                Object value = keyValues[groupStart + i];
+                Object other = keys[start + i];
+
+                if (value == null ? other != null : !value.equals(other))
+                    return false;
+            }
+
+            return true;
+        }
+
+
+        private boolean keyEquals(int group, TupleLiteral key) {
+            int start = group * keySize;
+            for (int i = 0; i < keySize; i++) {
+                Object value = keyValues[start + i];
+                Object other = key.getColumnValue(i);
+
+                if (value == null ? other != null : !value.equals(other))
+                    return false;
+            }
+
+            return true;
+        }
+
+
+        /**
+         * Adds a new group with the specified key to the table.
+         *
+         * @return the index of the new group
+         */
+        int addGroup(TupleLiteral key, int hash) {
+            int group = newGroup(hash);
+
+            int start = group * keySize;
+            for (int i = 0; i < keySize; i++) {
+                Object value = key.getColumnValue(i);
+                keyValues[start + i] = value;
+                size += estimateValueSize(value);
+            }
+
+            return group;
+        }
+
+
+        /**
+         * Adds a new group whose key is in the specified row of the key
+         * vectors to the table.
+         *
+         * @return the index of the new group
+         */
+        int addGroup(ColumnVector[] keys, int row, int hash) {
+            int group = newGroup(hash);
+
+            int start = group * keySize;
+            for (int i = 0; i < keySize; i++) {
+                Object value = keys[i].getValue(row);
+                keyValues[start + i] = value;
+                size += estimateValueSize(value);
+            }
+
+            return group;
+        }
+
+
+        /**
+         * Adds a new group whose key starts at the specified index of an
+         * array of key values to the table.
+         *
+         * @return the index of the new group
+         */
+        int addGroup(Object[] keys, int start, int hash) {
+            int group = newGroup(hash);
+
+            int groupStart = group * keySize;
+            for (int i = 0; i < keySize; i++) {
+                Object value = keys[start + i];
+                keyValues[groupStart + i] = value;
+                size += estimateValueSize(value);
+            }
+
+            return group;
+        }
+
+
+        /**
+         * Allocates a new group with the specified hash code, and clears its
+         * aggregates.  The caller must fill in the group's key values.
+         */
+        private int newGroup(int hash) {
+            if (numGroups == groupHashes.length)
+                grow();
+
+            int group = numGroups;
+            numGroups++;
+
+            groupHashes[group] = hash;
+
+            for (Accumulator acc : accumulators) {
+                acc.clear(group);
+                size += acc.getGroupSize();
+            }
+
+            insertSlot(group);
+
+            // Account for the hash and the slots of the group.
+            size += 12;
+
+            return group;
+        }
+
+
+        private void insertSlot(int group) {
+            int mask = slots.length - 1;
+            int slot = groupHashes[group] & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            slots[slot] = group + 1;
+        }
+
+
+        /** Doubles the capacity of the table, and rehashes the groups. */
+        private void grow() {
+            int capacity = 2 * groupHashes.length;
+
+            keyValues = Arrays.copyOf(keyValues, capacity * keySize);
+            groupHashes = Arrays.copyOf(groupHashes, capacity);
+            for (Accumulator acc : accumulators)
+                acc.resize(capacity);
+
+            slots = new int[2 * capacity];
+            for (int group = 0; group < numGroups; group++)
+                insertSlot(group);
+        }
+
+
+        /**
+         * Updates the group's aggregates with the arguments evaluated
+         * against the plan node's current environment.
+         */
+        void update(int group) {
+            for (int i = 0; i < accumulators.length; i++) {
+                Object value = arguments[i].evaluate(environment);
+                accumulators[i].addValue(group, value);
+            }
+        }
+
+
+        /**
+         * Updates the aggregates of many groups from vectors of argument
+         * values.
+         *
+         * @param groups the group of each row to aggregate
+         * @param rows the rows of the argument vectors to aggregate
+         * @param numRows the number of entries in {@code groups} and
+         *        {@code rows}
+         * @param argVectors the argument values of each aggregate, with a
+         *        {@code null} vector for <tt>COUNT(*)</tt>
+         */
+        void update(int[] groups, int[] rows, int numRows,
+                    ColumnVector[] argVectors) {
+            for (int i = 0; i < accumulators.length; i++)
+                accumulators[i].addVector(groups, rows, numRows, argVectors[i]);
+        }
+
+
+        /**
+         * Merges the groups of a partial table into this table.  Both tables
+         * must have been filled from batches, so that their groups' hash
+         * codes are computed in the same way.
+         *
+         * @param other the partial table to merge
+         */
+        void merge(AggregationTable other) {
+            for (int otherGroup = 0; otherGroup < other.numGroups; otherGroup++) {
+                int start = otherGroup * keySize;
+                int hash = other.groupHashes[otherGroup];
+
+                int group = findGroup(other.keyValues, start, hash);
+                if (group == -1)
+                    group = addGroup(other.keyValues, start, hash);
+
+                for (int i = 0; i < accumulators.length; i++) {
+                    accumulators[i].merge(group, other.accumulators[i],
+                        otherGroup);
+                }
+            }
+        }
+
+
+        /** Writes a group's values and aggregates into a row of a batch. */
+        void writeOutputRow(int group, TupleBatch batch, int row) {
+            int start = group * keySize;
+            for (int i = 0; i < keySize; i++)
+                batch.getColumn(i).setValue(row, keyValues[start + i]);
+
+            for (int i = 0; i < accumulators.length; i++) {
+                batch.getColumn(keySize + i).setValue(row,
+                    accumulators[i].getResult(group));
+            }
+        }
+
+
+        TupleLiteral generateOutputTuple(int group) {
+            TupleLiteral result = new TupleLiteral();
+
+            int start = group * keySize;
+            for (int i = 0; i < keySize; i++)
+                result.addValue(keyValues[start + i]);
+
+            for (Accumulator acc : accumulators)
+                result.addValue(acc.getResult(group));
+
+            return result;
+        }
+    }
+
+
+    /**
+     * Creates an accumulator for an aggregate function call.  The common
+     * aggregates have accumulators that store their state in arrays; any
+     * other aggregate uses a copy of its aggregate function for each group.
+     *
+     * @param call the aggregate function call
+     * @param capacity the initial number of groups
+     * @param argType the type of the argument's column vectors, if the
+     *        accumulator will be updated from batches, or {@code null}
+     */
+    private static Accumulator makeAccumulator(FunctionCall call,
+        int capacity, SQLDataType argType) {
+
+        AggregateFunction aggFn = (AggregateFunction) call.getFunction();
+
+        Class<?> fnClass = aggFn.getClass();
+        if (fnClass == CountStar.class)
+            return new CountAccumulator(capacity, true);
+        else if (fnClass == Count.class)
+            return new CountAccumulator(capacity, false);
+        else if (fnClass == Sum.class)
+            return new SumAvgAccumulator(capacity, false, argType);
+        else if (fnClass == Avg.class)
+            return new SumAvgAccumulator(capacity, true, argType);
+        else if (fnClass == Min.class)
+            return new MinMaxAccumulator(capacity, true, argType);
+        else if (fnClass == Max.class)
+            return new MinMaxAccumulator(capacity, false, argType);
+
+        return new FunctionAccumulator(capacity, call);
+    }
+
+
+    /**
+     * Returns the argument type that an accumulator can keep in primitive
+     * arrays, or {@code null} if the argument's values must be kept as
+     * objects.  Other integer types are left to
+     * {@link ArithmeticOperator#evalObjects}, which widens them.
+     */
+    private static SQLDataType getPrimitiveType(SQLDataType argType) {
+        if (argType == SQLDataType.INTEGER || argType == SQLDataType.BIGINT ||
+            argType == SQLDataType.DOUBLE) {
+            return argType;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Computes one aggregate for every group in an aggregation table.  The
+     * results must match those of the corresponding
+     * {@link AggregateFunction}.
+     */
+    private static abstract class Accumulator {
+        /** Changes the number of groups the accumulator can hold. */
+        abstract void resize(int capacity);
+
+        /** Resets the state of a group. */
+        abstract void clear(int group);
+
+        abstract void addValue(int group, Object value);
+
+        /**
+         * Adds values from a column vector to many groups.  By default each
+         * value is boxed and passed to {@link #addValue}.
+         *
+         * @param groups the group of each value
+         * @param rows the row of each value in the vector
+         * @param numRows the number of values to add
+         * @param vector the values, or {@code null} for <tt>COUNT(*)</tt>
+         */
+        void addVector(int[] groups, int[] rows, int numRows,
+                       ColumnVector vector) {
+            for (int i = 0; i < numRows; i++) {
+                Object value = (vector == null ? null : vector.getValue(rows[i]));
+                addValue(groups[i], value);
+            }
+        }
+
+        /**
+         * Combines the state of a group in another accumulator of the same
+         * kind into a group of this accumulator.  By default, accumulators
+         * can't be merged.
+         *
+         * @param group the group to merge into
+         * @param other the accumulator to merge from
+         * @param otherGroup the group to merge from
+         */
+        void merge(int group, Accumulator other, int otherGroup) {
+            throw new UnsupportedOperationException(
+                getClass().getSimpleName() + " can't be merged");
+        }
+
+        abstract Object getResult(int group);
+
+        /** Returns the estimated number of bytes of state for each group. */
+        abstract long getGroupSize();
+    }
+
+
+    /** Computes <tt>COUNT</tt> and <tt>COUNT(*)</tt>. */
+    private static class CountAccumulator extends Accumulator {
+        /** True to count every value, including <tt>NULL</tt>s. */
+        private boolean countStar;
+
+        /** The count for each group. */
+        private int[] counts;
+
+        CountAccumulator(int capacity, boolean countStar) {
+            this.countStar = countStar;
+            counts = new int[capacity];
+        }
+
+        void resize(int capacity) {
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        void clear(int group) {
+            counts[group] = 0;
+        }
+
+        void addValue(int group, Object value) {
+            if (countStar || value != null)
+                counts[group]++;
+        }
+
+        @Override
+        void addVector(int[] groups, int[] rows, int numRows,
+                       ColumnVector vector) {
+            for (int i = 0; i < numRows; i++) {
+                if (countStar || !vector.isNull(rows[i]))
+                    counts[groups[i]]++;
+            }
+        }
+
+        @Override
+        void merge(int group, Accumulator other, int otherGroup) {
+            counts[group] += ((CountAccumulator) other).counts[otherGroup];
+        }
+
+        Object getResult(int group) {
+            return Integer.valueOf(counts[group]);
+        }
+
+        long getGroupSize() {
+            return 4;
+        }
+    }
+
+
+    /**
+     * Computes <tt>SUM</tt> and <tt>AVG</tt>.  Sums of <tt>INTEGER</tt>,
+     * <tt>BIGINT</tt> and <tt>DOUBLE</tt> vectors are kept in primitive
+     * arrays; if values of any other type turn up, the sums are boxed and
+     * computed with {@link ArithmeticOperator#evalObjects} from then on.
+     */
+    private static class SumAvgAccumulator extends Accumulator {
+        private boolean computeAverage;
+
+        /**
+         * The type of the values summed into {@link #longSums} or
+         * {@link #doubleSums}, or {@code null} if {@link #sums} is used.
+         */
+        private SQLDataType primitiveType;
+
+        private Object[] sums;
+
+        private long[] longSums;
+
+        private double[] doubleSums;
+
+        private int[] counts;
+
+        SumAvgAccumulator(int capacity, boolean computeAverage,
+                          SQLDataType argType) {
+            this.computeAverage = computeAverage;
+            primitiveType = getPrimitiveType(argType);
+
+            if (primitiveType == SQLDataType.DOUBLE)
+                doubleSums = new double[capacity];
+            else if (primitiveType != null)
+                longSums = new long[capacity];
+            else
+                sums = new Object[capacity];
+
+            counts = new int[capacity];
+        }
+
+        void resize(int capacity) {
+            if (sums != null)
+                sums = Arrays.copyOf(sums, capacity);
+            if (longSums != null)
+                longSums = Arrays.copyOf(longSums, capacity);
+            if (doubleSums != null)
+                doubleSums = Arrays.copyOf(doubleSums, capacity);
+
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        void clear(int group) {
+            if (sums != null)
+                sums[group] = null;
+            if (longSums != null)
+                longSums[group] = 0;
+            if (doubleSums != null)
+                doubleSums[group] = 0;
+
+            counts[group] = 0;
+        }
+
+        void addValue(int group, Object value) {
+            if (value == null)
+                return;
+
+            if (primitiveType != null)
+                makeGeneric();
+
+            if (sums[group] == null) {
+                sums[group] = value;
+            }
+            else {
+                sums[group] = ArithmeticOperator.evalObjects(
+                    ArithmeticOperator.Type.ADD, sums[group], value);
+            }
+
+            counts[group]++;
+        }
+
+        @Override
+        void addVector(int[] groups, int[] rows, int numRows,
+                       ColumnVector vector) {
+            if (primitiveType == null || vector.getBaseType() != primitiveType) {
+                super.addVector(groups, rows, numRows, vector);
+                return;
+            }
+
+            for (int i = 0; i < numRows; i++) {
+                int row = rows[i];
+                if (vector.isNull(row))
+                    continue;
+
+                int group = groups[i];
+                if (primitiveType == SQLDataType.INTEGER) {
+                    // Integer sums overflow the same way as evalObjects().
+                    longSums[group] = (int) (longSums[group] + vector.getInt(row));
+                }
+                else if (primitiveType == SQLDataType.BIGINT) {
+                    longSums[group] += vector.getLong(row);
+                }
+                else if (counts[group] == 0) {
+                    doubleSums[group] = vector.getDouble(row);
+                }
+                else {
+                    doubleSums[group] += vector.getDouble(row);
+                }
+
+                counts[group]++;
+            }
+        }
+
+        @Override
+        void merge(int group, Accumulator acc, int otherGroup) {
+            SumAvgAccumulator other = (SumAvgAccumulator) acc;
+            if (other.counts[otherGroup] == 0)
+                return;
+
+            if (primitiveType != null && primitiveType == other.primitiveType) {
+                if (primitiveType == SQLDataType.INTEGER) {
+                    longSums[group] = (int) (longSums[group] +
+                        other.longSums[otherGroup]);
+                }
+                else if (primitiveType == SQLDataType.BIGINT) {
+                    longSums[group] += other.longSums[otherGroup];
+                }
+                else if (counts[group] == 0) {
+                    doubleSums[group] = other.doubleSums[otherGroup];
+                }
+                else {
+                    doubleSums[group] += other.doubleSums[otherGroup];
+                }
+            }
+            else {
+                if (primitiveType != null)
+                    makeGeneric();
+
+                Object sum = other.getSum(otherGroup);
+                if (sums[group] == null) {
+                    sums[group] = sum;
+                }
+                else {
+                    sums[group] = ArithmeticOperator.evalObjects(
+                        ArithmeticOperator.Type.ADD, sums[group], sum);
+                }
+            }
+
+            counts[group] += other.counts[otherGroup];
+        }
+
+        /** Returns a group's sum as an object. */
+        private Object getSum(int group) {
+            if (counts[group] == 0)
+                return null;
+
+            if (primitiveType == SQLDataType.INTEGER)
+                return Integer.valueOf((int) longSums[group]);
+            else if (primitiveType == SQLDataType.BIGINT)
+                return Long.valueOf(longSums[group]);
+            else if (primitiveType == SQLDataType.DOUBLE)
+                return Double.valueOf(doubleSums[group]);
+            else
+                return sums[group];
+        }
+
+        /** Moves the sums out of the primitive arrays and into objects. */
+        private void makeGeneric() {
+            sums = new Object[counts.length];
+            for (int group = 0; group < counts.length; group++)
+                sums[group] = getSum(group);
+
+            primitiveType = null;
+            longSums = null;
+            doubleSums = null;
+        }
+
+        Object getResult(int group) {
+            Object sum = getSum(group);
+            if (sum == null) {
+                return null;
+            }
+            else if (computeAverage) {
+                return ArithmeticOperator.evalObjects(
+                    ArithmeticOperator.Type.DIVIDE, sum,
+                    Integer.valueOf(counts[group]));
+            }
+            else {
+                return sum;
+            }
+        }
+
+        long getGroupSize() {
+            return 28;
+        }
+    }
+
+
+    /**
+     * Computes <tt>MIN</tt> and <tt>MAX</tt>.  Like the
+     * {@link SumAvgAccumulator}, the results for <tt>INTEGER</tt>,
+     * <tt>BIGINT</tt> and <tt>DOUBLE</tt> vectors are kept in primitive
+     * arrays until values of some other type turn up.
+     */
+    private static class MinMaxAccumulator extends Accumulator {
+        /** 1 to compute the minimum, or -1 to compute the maximum. */
+        private int minimumSwitch;
+
+        /**
+         * The type of the values in {@link #longResults} or
+         * {@link #doubleResults}, or {@code null} if {@link #results} is used.
+         */
+        private SQLDataType primitiveType;
+
+        private Object[] results;
+
+        private long[] longResults;
+
+        private double[] doubleResults;
+
+        /** True for each group with a primitive result. */
+        private boolean[] hasResult;
+
+        MinMaxAccumulator(int capacity, boolean minimum, SQLDataType argType) {
+            minimumSwitch = (minimum ? 1 : -1);
+            primitiveType = getPrimitiveType(argType);
+
+            if (primitiveType == null) {
+                results = new Object[capacity];
+            }
+            else {
+                if (primitiveType == SQLDataType.DOUBLE)
+                    doubleResults = new double[capacity];
+                else
+                    longResults = new long[capacity];
+
+                hasResult = new boolean[capacity];
+            }
+        }
+
+        void resize(int capacity) {
+            if (results != null)
+                results = Arrays.copyOf(results, capacity);
+            if (longResults != null)
+                longResults = Arrays.copyOf(longResults, capacity);
+            if (doubleResults != null)
+                doubleResults = Arrays.copyOf(doubleResults, capacity);
+            if (hasResult != null)
+                hasResult = Arrays.copyOf(hasResult, capacity);
+        }
+
+        void clear(int group) {
+            if (results != null)
+                results[group] = null;
+            if (hasResult != null)
+                hasResult[group] = false;
+        }
+
+        void addValue(int group, Object value) {
+            if (value == null)
+                return;
+
+            if (primitiveType != null)
+                makeGeneric();
+
+            @SuppressWarnings("unchecked")
+            Comparable<Object> result = (Comparable<Object>) results[group];
+            if (result == null || minimumSwitch * result.compareTo(value) > 0)
+                results[group] = value;
+        }
+
+        @Override
+        void addVector(int[] groups, int[] rows, int numRows,
+                       ColumnVector vector) {
+            if (primitiveType == null || vector.getBaseType() != primitiveType) {
+                super.addVector(groups, rows, numRows, vector);
+                return;
+            }
+
+            for (int i = 0; i < numRows; i++) {
+                int row = rows[i];
+                if (vector.isNull(row))
+                    continue;
+
+                int group = groups[i];
+                if (primitiveType == SQLDataType.DOUBLE) {
+                    double value = vector.getDouble(row);
+                    if (!hasResult[group] || minimumSwitch *
+                        Double.compare(doubleResults[group], value) > 0) {
+                        doubleResults[group] = value;
+                    }
+                }
+                else {
+                    long value = vector.getAsLong(row);
+                    if (!hasResult[group] || minimumSwitch *
+                        Long.compare(longResults[group], value) > 0) {
+                        longResults[group] = value;
+                    }
+                }
+
+                hasResult[group] = true;
+            }
+        }
+
+        @Override
+        void merge(int group, Accumulator acc, int otherGroup) {
+            MinMaxAccumulator other = (MinMaxAccumulator) acc;
+            if (primitiveType == null || primitiveType != other.primitiveType) {
+                addValue(group, other.getResult(otherGroup));
+                return;
+            }
+
+            if (!other.hasResult[otherGroup])
+                return;
+
+            if (primitiveType == SQLDataType.DOUBLE) {
+                double value = other.doubleResults[otherGroup];
+                if (!hasResult[group] || minimumSwitch *
+                    Double.compare(doubleResults[group], value) > 0) {
+                    doubleResults[group] = value;
+                }
+            }
+            else {
+                long value = other.longResults[otherGroup];
+                if (!hasResult[group] || minimumSwitch *
+                    Long.compare(longResults[group], value) > 0) {
+                    longResults[group] = value;
+                }
+            }
+
+            hasResult[group] = true;
+        }
+
+        /** Moves the results out of the primitive arrays and into objects. */
+        private void makeGeneric() {
+            results = new Object[hasResult.length];
+            for (int group = 0; group < hasResult.length; group++)
+                results[group] = getResult(group);
+
+            primitiveType = null;
+            longResults = null;
+            doubleResults = null;
+            hasResult = null;
+        }
+
+        Object getResult(int group) {
+            if (primitiveType == null)
+                return results[group];
+
+            if (!hasResult[group])
+                return null;
+
+            if (primitiveType == SQLDataType.INTEGER)
+                return Integer.valueOf((int) longResults[group]);
+            else if (primitiveType == SQLDataType.BIGINT)
+                return Long.valueOf(longResults[group]);
+            else
+                return Double.valueOf(doubleResults[group]);
+        }
+
+        long getGroupSize() {
+            return 24;
+        }
+    }
+
+
+    /**
+     * Computes any other aggregate, using a separate copy of the aggregate
+     * function for each group.
+     */
+    private static class FunctionAccumulator extends Accumulator {
+        private FunctionCall call;
+
+        private AggregateFunction[] functions;
+
+        FunctionAccumulator(int capacity, FunctionCall call) {
+            this.call = call;
+            functions = new AggregateFunction[capacity];
+        }
+
+        void resize(int capacity) {
+            functions = Arrays.copyOf(functions, capacity);
+        }
+
+        void clear(int group) {
+            // Copy the aggregate function, since aggregates keep some
+            // internal scratch space for computation.
+            FunctionCall copy = (FunctionCall) call.duplicate();
+            functions[group] = (AggregateFunction) copy.getFunction();
+            functions[group].clearResult();
+        }
+
+        void addValue(int group, Object value) {
+            functions[group].addValue(value);
+        }
+
+        Object getResult(int group) {
+            return functions[group].getResult();
+        }
+
+        long getGroupSize() {
+            return 128;
+        }
+    }
 }
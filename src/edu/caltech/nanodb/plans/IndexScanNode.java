@@ -13,10 +13,14 @@ import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.indexes.IndexInfo;
 import edu.caltech.nanodb.indexes.IndexManager;
 import edu.caltech.nanodb.indexes.IndexUtils;
+import edu.caltech.nanodb.qeval.PlanCost;
+import edu.caltech.nanodb.qeval.SelectivityEstimator;
 import edu.caltech.nanodb.qeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnRefs;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.HashedTupleFile;
 import edu.caltech.nanodb.storage.InvalidFilePointerException;
 import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.TupleFile;
@@ -307,8 +311,31 @@ public class IndexScanNode extends PlanNode {
         TableStats tableStats = tableTupleFile.getStats();
         stats = tableStats.getAllColumnStats();
 
-        // TODO:  Cost the plan node
-        cost = null;
+        // An equality lookup produces the tuples with one value of each key
+        // column, assuming that the values are evenly distributed.  Range
+        // scans get the default selectivity.
+        float numTuples = tableStats.numTuples;
+        if (scanType == ScanType.EQUALITY) {
+            ColumnRefs colRefs = indexInfo.getTableColumnRefs();
+            for (int i = 0; i < value1.getColumnCount(); i++) {
+                int numUnique =
+                    stats.get(colRefs.getCol(i)).getNumUniqueValues();
+                if (numUnique > 0)
+                    numTuples /= numUnique;
+                else
+                    numTuples *= SelectivityEstimator.DEFAULT_SELECTIVITY;
+            }
+        }
+        else {
+            numTuples *= SelectivityEstimator.DEFAULT_SELECTIVITY;
+        }
+
+        // Reading the index entries takes about one page, and then each
+        // tuple may be on a different page of the table.
+        long numBlockIOs = 1 + (long) Math.min(Math.ceil(numTuples),
+            tableStats.numDataPages);
+        cost = new PlanCost(numTuples, tableStats.avgTupleSize, numTuples,
+            numBlockIOs);
     }
 
 
@@ -349,8 +376,11 @@ public class IndexScanNode extends PlanNode {
         else {
             // Go ahead and navigate to the next tuple.
             currentIndexTuple = findNextTuple(currentIndexTuple);
-            if (currentIndexTuple == null)
-                done = true;
+        }
+
+        if (currentIndexTuple == null) {
+            done = true;
+            return null;
         }
 
         // Now, look up the table tuple based on the index tuple's
@@ -393,6 +423,14 @@ public class IndexScanNode extends PlanNode {
 
 
     private Tuple findNextTuple(Tuple tuple) throws IOException {
+        if (scanType == ScanType.EQUALITY &&
+            indexTupleFile instanceof HashedTupleFile) {
+            // Hashed files aren't in key order, so the file has to find the
+            // next tuple with the same key.
+            HashedTupleFile hashTupleFile = (HashedTupleFile) indexTupleFile;
+            return hashTupleFile.findNextTupleEquals(tuple);
+        }
+
         Tuple nextTuple = indexTupleFile.getNextTuple(tuple);
         if (nextTuple != null) {
             if (scanType == ScanType.EQUALITY) {
@@ -6,6 +6,7 @@ import java.util.List;
 
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 import org.apache.log4j.Logger;
 
 
@@ -67,6 +68,8 @@ public class LimitNode extends PlanNode {
         done = false;
         currentTuple = null;
         tuplesTraversed = 0;
+
+        child.initialize();
     }
 
 
@@ -112,6 +115,46 @@ public class LimitNode extends PlanNode {
         return null;
     }
     
+
+    /**
+     * Gets the next batch from the child, with its selection cut short if
+     * the batch would take the output past the limit.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IllegalStateException, IOException {
+        if (!supportsBatchExecution())
+            return super.getNextBatch();
+
+        if (done || isLimitReached()) {
+            done = true;
+            return null;
+        }
+
+        TupleBatch batch = child.getNextBatch();
+        if (batch == null) {
+            done = true;
+            return null;
+        }
+
+        int numSelected = batch.getNumSelected();
+        int remaining = limit - tuplesTraversed;
+        if (numSelected > remaining) {
+            if (batch.getSelection() == null) {
+                // All rows are selected, so just keep the first ones.
+                batch.setNumRows(remaining);
+            }
+            else {
+                batch.setSelection(batch.getSelection(), remaining);
+            }
+
+            numSelected = remaining;
+        }
+
+        tuplesTraversed += numSelected;
+        return batch;
+    }
+
+
     protected boolean isLimitReached() {
     	return tuplesTraversed == limit;
     }
@@ -123,6 +166,12 @@ public class LimitNode extends PlanNode {
 	}
 
 
+	@Override
+	public boolean supportsBatchExecution() {
+        return child.supportsBatchExecution();
+	}
+
+
 	@Override
 	public boolean supportsMarking() {
         return child.supportsMarking();
@@ -161,12 +161,7 @@ public class NestedLoopsJoinNode extends ThetaJoinNode {
 
 
     @Override
-    public void prepare() {
-        // Need to prepare the left and right child-nodes before we can do
-        // our own work.
-        leftChild.prepare();
-        rightChild.prepare();
-
+    public void prepareJoin() {
         // Use the parent class' helper-function to prepare the schema.
         prepareSchemaStats();
 
@@ -174,8 +169,6 @@ public class NestedLoopsJoinNode extends ThetaJoinNode {
         float numTuples = rightChild.getCost().numTuples * leftChild.getCost().numTuples;
         numTuples *= SelectivityEstimator.estimateSelectivity(predicate, schema, stats);
 
-        logger.debug(String.format("Join type is %s", super.joinType));
-
         switch (super.joinType) {
             case INNER:
                 break;
@@ -15,8 +15,10 @@ import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.qeval.ColumnStats;
 import edu.caltech.nanodb.qeval.PlanCost;
 
+import edu.caltech.nanodb.relations.ColumnVector;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 
 import edu.caltech.nanodb.storage.DBPage;
 
@@ -51,7 +53,10 @@ public abstract class PlanNode implements Cloneable {
         MATERIALIZE,
         
         /** A limit plan-node. */
-        LIMIT
+        LIMIT,
+
+        /** An exchange between plan fragments that run in parallel. */
+        EXCHANGE
     }
 
 
@@ -109,6 +114,20 @@ public abstract class PlanNode implements Cloneable {
     protected Environment environment;
 
 
+    /**
+     * The batch that {@link #getNextBatch} fills with tuples from
+     * {@link #getNextTuple}, for nodes that don't produce batches directly.
+     */
+    private TupleBatch rowBatch;
+
+
+    /**
+     * Set to true once {@link #getNextTuple} has reported the end of the
+     * tuple-stream to {@link #getNextBatch}.
+     */
+    private boolean rowBatchesDone;
+
+
     /**
      * Constructs a PlanNode with a given operation type.  This method will be
      * called by subclass constructors.
@@ -202,6 +221,21 @@ public abstract class PlanNode implements Cloneable {
     }
 
 
+    /**
+     * This method reports whether this plan node produces its results a batch
+     * at a time in {@link #getNextBatch}, without building the batches from
+     * individual tuples.  Nodes that process batches generally only report
+     * {@code true} if their children do too, since a plan is only faster
+     * when evaluated in batches if its leaves produce batches.
+     *
+     * @return {@code true} if the plan node natively supports batch
+     *         execution, or {@code false} otherwise.
+     */
+    public boolean supportsBatchExecution() {
+        return false;
+    }
+
+
     /**
      * This method reports whether this plan node supports marking a certain
      * point in the tuple-stream so that processing can return to that point
@@ -296,6 +330,8 @@ public abstract class PlanNode implements Cloneable {
     public void initialize() {
         if (environment == null)
             environment = new Environment();
+
+        rowBatchesDone = false;
     }
 
 
@@ -315,6 +351,64 @@ public abstract class PlanNode implements Cloneable {
         throws IllegalStateException, IOException;
 
 
+    /**
+     * Gets the next batch of tuples produced by this plan node.  A node's
+     * results must be retrieved either entirely with this method, or
+     * entirely with {@link #getNextTuple}; the two cannot be mixed.
+     * <p>
+     * The batch and its column vectors may be reused by the node, so their
+     * contents are only valid until this method is called again.  The type
+     * of each column vector describes the values actually stored in it, and
+     * may differ from the column's type in the node's schema.
+     * <p>
+     * This default implementation fills a batch with tuples retrieved from
+     * {@link #getNextTuple}, storing each value as an object, so that every
+     * plan node can be used by a node that consumes batches.  Nodes that
+     * can produce batches directly override this method, and report it from
+     * {@link #supportsBatchExecution}.
+     *
+     * @return the next batch of tuples, or <tt>null</tt> if the plan has
+     *         finished generating tuples.  A batch always has at least one
+     *         selected row.
+     *
+     * @throws IOException if table data cannot be read from the filesystem
+     * @throws IllegalStateException if a plan node is not properly initialized
+     */
+    public TupleBatch getNextBatch() throws IllegalStateException, IOException {
+        if (rowBatchesDone)
+            return null;
+
+        int numCols = schema.numColumns();
+        if (rowBatch == null) {
+            ColumnVector[] columns = new ColumnVector[numCols];
+            for (int i = 0; i < numCols; i++)
+                columns[i] = new ColumnVector(null, TupleBatch.DEFAULT_CAPACITY);
+
+            rowBatch = new TupleBatch(columns, 0);
+        }
+
+        int numRows = 0;
+        while (numRows < TupleBatch.DEFAULT_CAPACITY) {
+            Tuple tuple = getNextTuple();
+            if (tuple == null) {
+                rowBatchesDone = true;
+                break;
+            }
+
+            for (int i = 0; i < numCols; i++)
+                rowBatch.getColumn(i).setValue(numRows, tuple.getColumnValue(i));
+
+            numRows++;
+        }
+
+        if (numRows == 0)
+            return null;
+
+        rowBatch.setNumRows(numRows);
+        return rowBatch;
+    }
+
+
     /**
      * Marks the current tuple in the tuple-stream produced by this node.  The
      * {@link #resetToLastMark} method can be used to return to this tuple.
@@ -496,6 +590,7 @@ public abstract class PlanNode implements Cloneable {
 
         // Environment is used for execution.
         node.environment = null;
+        node.rowBatch = null;
 
         // Copy the children if applicable.
         if (this.leftChild != null)
@@ -1,8 +1,13 @@
 package edu.caltech.nanodb.plans;
 
 
+import java.util.List;
+
 import edu.caltech.nanodb.expressions.BooleanOperator;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.qeval.PlanCost;
+import edu.caltech.nanodb.storage.StorageManager;
+
 
 /**
  * A collection of helpful utilities that can be used for generating,
@@ -89,4 +94,145 @@ public class PlanUtils {
 
         return plan;
     }
-}
\ No newline at end of file
+
+
+    /**
+     * This helper function adds {@link ExchangeNode}s to a plan, so that the
+     * parts of the plan whose estimated CPU cost is at least the specified
+     * minimum are run on several worker threads.
+     * <p>
+     * A plan can be run in parallel as a whole if it is made up of file
+     * scans of heap files, hash joins, and nodes that process each tuple on
+     * its own, such as renames, filters and projects.  The copies of the
+     * plan share the chunks of the heap file at the bottom of its leftmost
+     * path.  The right child of each hash join is broadcast to every copy of
+     * the join if all of the copies can hold it in memory; otherwise both
+     * children of the join are repartitioned on the join keys, and are run
+     * in parallel themselves if they are costly enough.  A gather exchange
+     * then collects the results of the copies.
+     * <p>
+     * If a nested-loop join can't be run in parallel as a whole, its left
+     * child may still be.  Plans without joins are left alone, since a file
+     * scan already scans its file in parallel.  Other plans, such as sort-merge joins whose
+     * inputs must stay in order, are left alone.
+     *
+     * @param plan the prepared plan to add exchanges to
+     *
+     * @param dop the number of copies to run of each parallel fragment
+     *
+     * @param minCost the smallest estimated CPU cost of a fragment that is
+     *        worth running in parallel
+     *
+     * @param storageManager the storage manager
+     *
+     * @return the (possibly new) top plan-node for the prepared plan
+     */
+    public static PlanNode addExchanges(PlanNode plan, int dop,
+                                        float minCost,
+                                        StorageManager storageManager) {
+        if (dop <= 1 || plan.getCost().cpuCost < minCost)
+            return plan;
+
+        // A file scan already scans its file in parallel by itself, so there
+        // is nothing to gain from running a plan without joins in parallel.
+        if (isScanOnly(plan))
+            return plan;
+
+        if (partitionPlan(plan, dop, minCost, storageManager)) {
+            plan = new ExchangeNode(plan, dop, storageManager);
+        }
+        else if (plan instanceof NestedLoopsJoinNode) {
+            plan.leftChild = addExchanges(plan.leftChild, dop, minCost,
+                storageManager);
+        }
+
+        plan.prepare();
+        return plan;
+    }
+
+
+    /**
+     * Returns true if a plan is a file scan, possibly below renames, filters
+     * and projects.
+     */
+    private static boolean isScanOnly(PlanNode plan) {
+        while (plan instanceof RenameNode || plan instanceof SimpleFilterNode ||
+               plan instanceof ProjectNode) {
+            if (plan.leftChild == null)
+                return false;
+
+            plan = plan.leftChild;
+        }
+
+        return plan instanceof FileScanNode;
+    }
+
+
+    /**
+     * Changes a plan so that several copies of it can be run in parallel,
+     * each producing a different part of its results, if this is possible.
+     * The plan is only changed if this method returns true.
+     *
+     * @return true if the plan can be run in parallel
+     */
+    private static boolean partitionPlan(PlanNode plan, int dop,
+        float minCost, StorageManager storageManager) {
+
+        if (plan instanceof FileScanNode)
+            return ((FileScanNode) plan).canScanInChunks();
+
+        if (plan instanceof RenameNode || plan instanceof SimpleFilterNode ||
+            plan instanceof ProjectNode) {
+            return plan.leftChild != null &&
+                partitionPlan(plan.leftChild, dop, minCost, storageManager);
+        }
+
+        if (!(plan instanceof HashJoinNode))
+            return false;
+
+        HashJoinNode join = (HashJoinNode) plan;
+        if (!join.hasJoinKeys())
+            return false;
+
+        // Every copy of the join builds its own hash table, so only broadcast
+        // the right child if all of the copies can keep it in memory.
+        PlanCost rightCost = join.rightChild.getCost();
+        float rightBytes = rightCost.numTuples * rightCost.tupleSize;
+        if (rightBytes * dop <= HashJoinNode.getMemoryBudget() &&
+            partitionPlan(join.leftChild, dop, minCost, storageManager)) {
+            join.rightChild = makeExchange(ExchangeNode.Type.BROADCAST,
+                join.rightChild, null, dop, minCost, storageManager);
+        }
+        else {
+            join.leftChild = makeExchange(ExchangeNode.Type.REPARTITION,
+                join.leftChild, join.getLeftKeys(), dop, minCost,
+                storageManager);
+            join.rightChild = makeExchange(ExchangeNode.Type.REPARTITION,
+                join.rightChild, join.getRightKeys(), dop, minCost,
+                storageManager);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Puts an exchange above one input of a parallel join.  The input is run
+     * in parallel too if it is costly enough and can be partitioned.
+     */
+    private static ExchangeNode makeExchange(ExchangeNode.Type type,
+        PlanNode input, List<Expression> keys, int dop, float minCost,
+        StorageManager storageManager) {
+
+        int numProducers = 1;
+        if (input.getCost().cpuCost >= minCost &&
+            partitionPlan(input, dop, minCost, storageManager)) {
+            numProducers = dop;
+        }
+
+        ExchangeNode exchange = new ExchangeNode(type, input, numProducers,
+            dop, keys, storageManager);
+        exchange.prepare();
+        return exchange;
+    }
+}
@@ -10,6 +10,8 @@ import edu.caltech.nanodb.qeval.PlanCost;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnVector;
+import edu.caltech.nanodb.relations.TupleBatch;
 
 import edu.caltech.nanodb.commands.SelectValue;
 import org.apache.log4j.Logger;
@@ -60,6 +62,37 @@ public class ProjectNode extends PlanNode {
     private boolean done;
 
 
+    /**
+     * Evaluates each select-value's expression against batches of input, or
+     * {@code null} for select-values that are wildcards.
+     */
+    private VectorEvaluator[] evaluators;
+
+
+    /** The batch that {@link #getNextBatch} returns projected rows in. */
+    private TupleBatch projectedBatch;
+
+
+    /**
+     * The compiled form of each select-value's expression, or {@code null}
+     * for select-values that are wildcards or that must be interpreted.
+     */
+    private CompiledExpression[] compiledValues;
+
+
+    /**
+     * The input schema that the select-values were last compiled against, or
+     * {@code null} if they haven't been compiled yet.  The compiled values
+     * are kept across calls to {@link #initialize}, since the inner child of
+     * a nested-loop join is reinitialized for every outer tuple.
+     */
+    private Schema compiledSchema;
+
+
+    /** True if some select-value's expression must be interpreted. */
+    private boolean interpretValues;
+
+
     /**
      * Constructs a ProjectNode that pulls tuples from a child node.
      *
@@ -252,6 +285,13 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /** This node can project batches if its subplan produces them. */
+    @Override
+    public boolean supportsBatchExecution() {
+        return leftChild != null && leftChild.supportsBatchExecution();
+    }
+
+
     /**
      * Gets the next tuple and projects it.
      *
@@ -288,6 +328,77 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /**
+     * Gets the next batch from the subplan and projects it.  The projected
+     * batch shares the input batch's selection vector, and the column vectors
+     * of any wildcard columns and simple column references.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        if (!supportsBatchExecution())
+            return super.getNextBatch();
+
+        if (done)
+            return null;
+
+        TupleBatch input = leftChild.getNextBatch();
+        if (input == null) {
+            done = true;
+            return null;
+        }
+
+        if (isTrivial())
+            return input;
+
+        if (evaluators == null) {
+            evaluators = new VectorEvaluator[projectionSpec.size()];
+            for (int i = 0; i < evaluators.length; i++) {
+                SelectValue selVal = projectionSpec.get(i);
+                if (selVal.isExpression()) {
+                    evaluators[i] = new VectorEvaluator(
+                        selVal.getExpression(), inputSchema);
+                }
+                else if (selVal.isScalarSubquery()) {
+                    throw new UnsupportedOperationException(
+                        "Scalar subquery support is currently incomplete");
+                }
+            }
+
+            projectedBatch = new TupleBatch(
+                new ColumnVector[schema.numColumns()], 0);
+        }
+
+        int iCol = 0;
+        for (int i = 0; i < evaluators.length; i++) {
+            SelectValue selVal = projectionSpec.get(i);
+            if (selVal.isWildcard()) {
+                ColumnName wildcard = selVal.getWildcard();
+                if (wildcard.isTableSpecified()) {
+                    SortedMap<Integer, ColumnInfo> matchCols =
+                        inputSchema.findColumns(wildcard);
+
+                    for (int iInput : matchCols.keySet())
+                        projectedBatch.setColumn(iCol++, input.getColumn(iInput));
+                }
+                else {
+                    for (int iInput = 0; iInput < input.getColumnCount(); iInput++)
+                        projectedBatch.setColumn(iCol++, input.getColumn(iInput));
+                }
+            }
+            else {
+                projectedBatch.setColumn(iCol++,
+                    evaluators[i].evaluate(input, environment));
+            }
+        }
+
+        projectedBatch.setNumRows(input.getNumRows());
+        if (input.getSelection() != null)
+            projectedBatch.setSelection(input.getSelection(), input.getNumSelected());
+
+        return projectedBatch;
+    }
+
+
     /** Helper function that advances the current tuple reference in the node.
      *
      * @throws java.lang.IllegalStateException if this is a node no child.
@@ -315,8 +426,13 @@ public class ProjectNode extends PlanNode {
 
         // The projection is *not* trivial, so we need to do some evaluatin'.
 
-        environment.clear();
-        environment.addTuple(inputSchema, tuple);
+        if (compiledSchema != inputSchema)
+            compileValues();
+
+        if (interpretValues) {
+            environment.clear();
+            environment.addTuple(inputSchema, tuple);
+        }
 
         // Create an empty tuple to add values to.
         TupleLiteral newTuple = new TupleLiteral();
@@ -326,7 +442,8 @@ public class ProjectNode extends PlanNode {
         Iterator<ColumnInfo> iterNonWildcardCols =
             nonWildcardColumnInfos.iterator();
 
-        for (SelectValue selVal : projectionSpec) {
+        for (int i = 0; i < compiledValues.length; i++) {
+            SelectValue selVal = projectionSpec.get(i);
             if (selVal.isWildcard()) {
                 // This value is a wildcard.  Find the columns that match the
                 // wildcard, then add their values one by one.
@@ -357,7 +474,12 @@ public class ProjectNode extends PlanNode {
 
                 // Get the result of the projection for this value.
 
-                Object result = expr.evaluate(environment);
+                Object result;
+                if (compiledValues[i] != null)
+                    result = compiledValues[i].evaluate(tuple);
+                else
+                    result = expr.evaluate(environment);
+
                 ColumnInfo colInfo = iterNonWildcardCols.next();
 
                 logger.debug(String.format(
@@ -390,6 +512,29 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /**
+     * Compiles the expression of each select-value against the input
+     * schema, noting whether any of them must still be interpreted.
+     */
+    private void compileValues() {
+        compiledValues = new CompiledExpression[projectionSpec.size()];
+        interpretValues = false;
+
+        for (int i = 0; i < compiledValues.length; i++) {
+            SelectValue selVal = projectionSpec.get(i);
+            if (selVal.isExpression()) {
+                compiledValues[i] = ExpressionCompiler.compile(
+                    selVal.getExpression(), inputSchema);
+
+                if (compiledValues[i] == null)
+                    interpretValues = true;
+            }
+        }
+
+        compiledSchema = inputSchema;
+    }
+
+
     /** Do initialization for the select operation.  Resets state variables. */
     public void initialize() {
         super.initialize();
@@ -397,6 +542,10 @@ public class ProjectNode extends PlanNode {
         done = false;
         currentTuple = null;
 
+        // The evaluators are recreated in case the node has been re-prepared.
+        evaluators = null;
+        projectedBatch = null;
+
         if (leftChild != null)
             leftChild.initialize();
     }
@@ -481,6 +630,11 @@ public class ProjectNode extends PlanNode {
         }
         node.projectionSpec = newList;
 
+        node.evaluators = null;
+        node.projectedBatch = null;
+        node.compiledValues = null;
+        node.compiledSchema = null;
+
         return node;
     }
 
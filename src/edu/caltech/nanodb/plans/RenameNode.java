@@ -12,6 +12,7 @@ import edu.caltech.nanodb.expressions.OrderByExpression;
 
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 import java.util.ArrayList;
 import org.apache.log4j.Logger;
 
@@ -41,18 +42,23 @@ public class RenameNode extends PlanNode {
 
     @Override
     public List<OrderByExpression> resultsOrderedBy() {
+        List<OrderByExpression> childOrder = leftChild.resultsOrderedBy();
+        if (childOrder == null)
+            return null;
+
         List<OrderByExpression> resultsOrderedBy = new ArrayList<OrderByExpression>();
         
         logger.debug("Renaming table name in ORDER BY expression");
         
-        for (OrderByExpression orderByExpr : leftChild.resultsOrderedBy()) {
+        for (OrderByExpression orderByExpr : childOrder) {
             Expression expr = orderByExpr.getExpression().duplicate();
             
             ((ColumnValue) expr).setColumnName(new ColumnName(
                     resultTableName,
                     expr.getColumnInfo(leftChild.getSchema()).getName()));
             
-            resultsOrderedBy.add(new OrderByExpression(expr));
+            resultsOrderedBy.add(
+                new OrderByExpression(expr, orderByExpr.isAscending()));
         }
         
         return resultsOrderedBy;
@@ -98,6 +104,21 @@ public class RenameNode extends PlanNode {
         return leftChild.getNextTuple();
     }
 
+    /** A rename node can pass on batches if its subplan produces them. */
+    @Override
+    public boolean supportsBatchExecution() {
+        return leftChild.supportsBatchExecution();
+    }
+
+    /** Renaming doesn't change the rows, so the child's batches are used. */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        if (!supportsBatchExecution())
+            return super.getNextBatch();
+
+        return leftChild.getNextBatch();
+    }
+
     @Override
     public void markCurrentPosition() throws UnsupportedOperationException {
         leftChild.markCurrentPosition();
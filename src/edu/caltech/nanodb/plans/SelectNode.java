@@ -3,9 +3,14 @@ package edu.caltech.nanodb.plans;
 
 import java.io.IOException;
 
+import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 
+import edu.caltech.nanodb.expressions.CompiledExpression;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionCompiler;
+import edu.caltech.nanodb.expressions.VectorEvaluator;
 
 
 /**
@@ -26,6 +31,26 @@ public abstract class SelectNode extends PlanNode {
     private boolean done;
 
 
+    /** Evaluates the predicate against batches of tuples. */
+    private VectorEvaluator predicateEvaluator;
+
+
+    /**
+     * The compiled form of the predicate, or {@code null} if the predicate
+     * couldn't be compiled and must be interpreted.
+     */
+    private CompiledExpression compiledPredicate;
+
+
+    /**
+     * The schema that the predicate was last compiled against, or
+     * {@code null} if it hasn't been compiled yet.  The compiled predicate is
+     * kept across calls to {@link #initialize}, since the inner child of a
+     * nested-loop join is reinitialized for every outer tuple.
+     */
+    private Schema compiledSchema;
+
+
     /**
      * Constructs a SelectNode that scans a file for tuples.
      *
@@ -57,6 +82,10 @@ public abstract class SelectNode extends PlanNode {
         else
             node.predicate = null;
 
+        node.predicateEvaluator = null;
+        node.compiledPredicate = null;
+        node.compiledSchema = null;
+
         return node;
     }
 
@@ -68,6 +97,7 @@ public abstract class SelectNode extends PlanNode {
 
         done = false;
         currentTuple = null;
+        predicateEvaluator = null;
     }
 
 
@@ -114,6 +144,56 @@ public abstract class SelectNode extends PlanNode {
     }
 
 
+    /**
+     * Gets the next batch of tuples, with the rows that don't satisfy the
+     * predicate removed from the batch's selection vector.  Batches whose
+     * rows are all filtered out are skipped.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IllegalStateException, IOException {
+        if (!supportsBatchExecution())
+            return super.getNextBatch();
+
+        if (done)
+            return null;
+
+        if (predicate != null && predicateEvaluator == null)
+            predicateEvaluator = new VectorEvaluator(predicate, schema);
+
+        while (true) {
+            TupleBatch batch = advanceCurrentBatch();
+            if (batch == null) {
+                done = true;
+                return null;
+            }
+
+            int numSelected = batch.getNumSelected();
+            if (predicateEvaluator != null)
+                numSelected = predicateEvaluator.filter(batch, environment);
+
+            if (numSelected > 0)
+                return batch;
+        }
+    }
+
+
+    /**
+     * Helper function that retrieves the next batch of tuples for the node to
+     * filter.  Subclasses that support batch execution must override this
+     * method.
+     *
+     * @return the next batch of tuples, or {@code null} if there are no more
+     *         tuples
+     *
+     * @throws java.io.IOException if a db file failed to open at some point
+     */
+    protected TupleBatch advanceCurrentBatch()
+        throws IllegalStateException, IOException {
+        throw new UnsupportedOperationException(
+            "This select node doesn't support batch execution");
+    }
+
+
     /** Helper function that advances the current tuple reference in the node.
      *
      * @throws java.lang.IllegalStateException if this is a node with no
@@ -129,6 +209,15 @@ public abstract class SelectNode extends PlanNode {
         if (predicate == null)
             return true;
 
+        if (compiledSchema != schema) {
+            compiledPredicate =
+                ExpressionCompiler.compilePredicate(predicate, schema);
+            compiledSchema = schema;
+        }
+
+        if (compiledPredicate != null)
+            return compiledPredicate.evaluatePredicate(tuple);
+
         // Set up the environment and then evaluate the predicate!
 
         environment.clear();
@@ -11,6 +11,7 @@ import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.qeval.ColumnStats;
 import edu.caltech.nanodb.qeval.PlanCost;
 import edu.caltech.nanodb.qeval.SelectivityEstimator;
+import edu.caltech.nanodb.relations.TupleBatch;
 
 
 /**
@@ -145,6 +146,19 @@ public class SimpleFilterNode extends SelectNode {
     }
 
 
+    /** The simple filter node can filter batches if its subplan produces them. */
+    @Override
+    public boolean supportsBatchExecution() {
+        return leftChild.supportsBatchExecution();
+    }
+
+
+    @Override
+    protected TupleBatch advanceCurrentBatch() throws IOException {
+        return leftChild.getNextBatch();
+    }
+
+
     /**
      * The simple filter node relies on marking/reset support in its subplan.
      */
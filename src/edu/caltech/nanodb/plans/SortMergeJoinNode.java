@@ -2,15 +2,26 @@ package edu.caltech.nanodb.plans;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
 import edu.caltech.nanodb.expressions.Expression;
 import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.PredicateUtils;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.qeval.PlanCost;
+import edu.caltech.nanodb.qeval.SelectivityEstimator;
 import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.StorageManager;
 
 
 /**
@@ -18,6 +29,17 @@ import edu.caltech.nanodb.relations.Tuple;
  * evaluation.  This join node is only useful for equijoins, but it has the
  * benefit that it can compute full outer joins easily, where the nested-loops
  * join algorithm is unable to do so.
+ * <p>
+ * Both children must already produce their results ordered on the join
+ * columns.  The join keys are the longest prefix of the children's orderings
+ * where the <em>i</em><sup>th</sup> left and right order-by columns are
+ * compared for equality by the join predicate.  Both inputs are read once,
+ * in order; the only tuples buffered are the current run of right tuples
+ * that share the same join key, so the children don't need to support
+ * marking.  The full join predicate is evaluated against every candidate
+ * pair, so the predicate may include other conditions besides the
+ * equalities.  Inner, left-outer, right-outer and full-outer joins are
+ * supported.
  */
 public class SortMergeJoinNode extends ThetaJoinNode {
 
@@ -25,14 +47,103 @@ public class SortMergeJoinNode extends ThetaJoinNode {
     private static Logger logger = Logger.getLogger(SortMergeJoinNode.class);
 
 
+    /**
+     * The join-key expressions evaluated against the left child's tuples,
+     * or {@code null} if {@link #prepare} hasn't been called.
+     */
+    private ArrayList<Expression> leftKeys;
+
+
+    /**
+     * The join-key expressions evaluated against the right child's tuples.
+     * Each expression is compared for equality with the left key at the same
+     * index.
+     */
+    private ArrayList<Expression> rightKeys;
+
+
+    /** Whether each join key is ordered ascending or descending. */
+    private ArrayList<Boolean> keysAscending;
+
+
     /** Most recently retrieved tuple of the left relation. */
     private Tuple leftTuple;
 
 
-    /** Most recently retrieved tuple of the right relation. */
+    /**
+     * The join key of {@link #leftTuple}, or {@code null} if part of the key
+     * is <tt>NULL</tt>.
+     */
+    private TupleLiteral leftKey;
+
+
+    /** True if the right run has been positioned for {@link #leftTuple}. */
+    private boolean leftPositioned;
+
+
+    /** True if {@link #leftTuple} has joined with at least one tuple. */
+    private boolean leftMatched;
+
+
+    /** True once the left child has run out of tuples. */
+    private boolean leftDone;
+
+
+    /**
+     * Most recently retrieved tuple of the right relation, which is not part
+     * of the current run yet.
+     */
     private Tuple rightTuple;
 
 
+    /**
+     * The join key of {@link #rightTuple}, or {@code null} if part of the key
+     * is <tt>NULL</tt>.
+     */
+    private TupleLiteral rightKey;
+
+
+    /** True once the first right tuple has been retrieved. */
+    private boolean rightStarted;
+
+
+    /**
+     * The run of consecutive right tuples that all have the join key
+     * {@link #runKey}, or {@code null} if there is no current run.
+     */
+    private ArrayList<Tuple> rightRun;
+
+
+    /** The join key shared by all tuples in {@link #rightRun}. */
+    private TupleLiteral runKey;
+
+
+    /**
+     * For right- and full-outer joins, records which tuples in the current
+     * run have joined with at least one left tuple.
+     */
+    private boolean[] runMatched;
+
+
+    /** The index of the next run tuple to join with {@link #leftTuple}. */
+    private int runIndex;
+
+
+    /**
+     * For right- and full-outer joins, a run that the left input has moved
+     * past, whose unmatched tuples still need to be output.
+     */
+    private ArrayList<Tuple> retiredRun;
+
+
+    /** Records which tuples in {@link #retiredRun} were joined. */
+    private boolean[] retiredMatched;
+
+
+    /** The index of the next tuple in {@link #retiredRun} to consider. */
+    private int retiredIndex;
+
+
     /** Set to true when we have exhausted all tuples from our subplans. */
     private boolean done;
 
@@ -65,7 +176,8 @@ public class SortMergeJoinNode extends ThetaJoinNode {
         if (obj instanceof SortMergeJoinNode) {
             SortMergeJoinNode other = (SortMergeJoinNode) obj;
 
-            return predicate.equals(other.predicate) &&
+            return joinType == other.joinType &&
+                predicate.equals(other.predicate) &&
                 leftChild.equals(other.leftChild) &&
                 rightChild.equals(other.rightChild);
         }
@@ -78,6 +190,7 @@ public class SortMergeJoinNode extends ThetaJoinNode {
     @Override
     public int hashCode() {
         int hash = 7;
+        hash = 31 * hash + joinType.hashCode();
         hash = 31 * hash + predicate.hashCode();
         hash = 31 * hash + leftChild.hashCode();
         hash = 31 * hash + rightChild.hashCode();
@@ -95,6 +208,8 @@ public class SortMergeJoinNode extends ThetaJoinNode {
         StringBuilder buf = new StringBuilder();
 
         buf.append("SortMergeJoin[");
+        if (joinType != JoinType.INNER)
+            buf.append(joinType).append(", ");
 
         // The predicate is expected to be non-null.
         buf.append("pred:  ").append(predicate);
@@ -116,18 +231,27 @@ public class SortMergeJoinNode extends ThetaJoinNode {
         // Clone the predicate.
         node.predicate = predicate.duplicate();
 
+        // The copy must have its own join state.
+        node.rightRun = null;
+        node.retiredRun = null;
+
         return node;
     }
 
 
     /**
-     * Sort-merge join produces results in the same order as the children.
-     * (That's kinda the point.)
+     * Sort-merge join produces results in the same order as the left child,
+     * unless unmatched right tuples are also output, since those have
+     * <tt>NULL</tt> values for the left child's columns.
      *
-     * @return true always
+     * @return the left child's ordering, or {@code null} for right- and
+     *         full-outer joins
      */
     @Override
     public List<OrderByExpression> resultsOrderedBy() {
+        if (preservesRight())
+            return null;
+
         return leftChild.resultsOrderedBy();
     }
 
@@ -146,46 +270,257 @@ public class SortMergeJoinNode extends ThetaJoinNode {
     }
 
 
-    /** This plan-node requires marking on the right child-plan. */
+    /**
+     * This plan-node buffers runs of equal right tuples itself, so it does
+     * not require marking on the right child-plan.
+     */
     @Override
     public boolean requiresRightMarking() {
-        return true;
+        return false;
     }
 
 
+    /**
+     * The sort-merge join supports inner joins and all kinds of outer joins.
+     */
     @Override
-    public void prepare() {
+    protected boolean supportsJoinType(JoinType joinType) {
+        return joinType == JoinType.INNER ||
+               joinType == JoinType.LEFT_OUTER ||
+               joinType == JoinType.RIGHT_OUTER ||
+               joinType == JoinType.FULL_OUTER;
+    }
+
+
+    /**
+     * Returns true if the children are ordered on at least one of the join
+     * predicate's equality conditions, so that the merge join can be used.
+     * This is only valid after {@link #prepare} has been called; if it
+     * returns false then the node cannot be evaluated.
+     *
+     * @return true if the children's orderings and the join predicate have
+     *         at least one join key in common
+     */
+    public boolean hasJoinKeys() {
+        return leftKeys != null && !leftKeys.isEmpty();
+    }
+
+
+    /**
+     * Wraps each child in a {@link SortNode} that orders it on the columns
+     * that the join predicate compares for equality, so that the join can
+     * be evaluated even if the children aren't already ordered.  If the
+     * predicate has no such conditions then the children are left as they
+     * are.
+     *
+     * @param storageManager the storage manager that the sorts may use for
+     *        temporary files
+     */
+    public void sortInputs(StorageManager storageManager) {
         leftChild.prepare();
         rightChild.prepare();
 
-        if (!rightChild.supportsMarking()) {
-            throw new IllegalStateException("Sort-merge join requires the " +
-                "right child-plan to support marking.");
+        ArrayList<ColumnValue> leftCols = new ArrayList<ColumnValue>();
+        ArrayList<ColumnValue> rightCols = new ArrayList<ColumnValue>();
+        findEquijoinColumns(leftChild.getSchema(), rightChild.getSchema(),
+            leftCols, rightCols);
+
+        if (leftCols.isEmpty())
+            return;
+
+        ArrayList<OrderByExpression> leftOrder =
+            new ArrayList<OrderByExpression>();
+        ArrayList<OrderByExpression> rightOrder =
+            new ArrayList<OrderByExpression>();
+
+        for (int i = 0; i < leftCols.size(); i++) {
+            leftOrder.add(new OrderByExpression(leftCols.get(i)));
+            rightOrder.add(new OrderByExpression(rightCols.get(i)));
         }
 
-        // Get the schemas and the result-orderings so that we can analyze the
-        // join-expressions.
+        leftChild = new SortNode(leftChild, leftOrder, storageManager);
+        rightChild = new SortNode(rightChild, rightOrder, storageManager);
+    }
+
+
+    @Override
+    public void prepareJoin() {
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        findJoinKeys();
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+        float numTuples = leftCost.numTuples * rightCost.numTuples *
+            SelectivityEstimator.estimateSelectivity(predicate, schema, stats);
+
+        if (preservesLeft())
+            numTuples = Math.max(numTuples, leftCost.numTuples);
+
+        if (preservesRight())
+            numTuples = Math.max(numTuples, rightCost.numTuples);
+
+        // Each input tuple is read once, and each result is produced once.
+        float cpuCost = leftCost.cpuCost + rightCost.cpuCost +
+            leftCost.numTuples + rightCost.numTuples + numTuples;
+        long numBlockIOs = leftCost.numBlockIOs + rightCost.numBlockIOs;
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
 
-        Schema leftSchema = leftChild.getSchema();
-        List<OrderByExpression> leftOrder = leftChild.resultsOrderedBy();
 
-        Schema rightSchema = rightChild.getSchema();
+    /**
+     * This helper analyzes the predicate and the result ordering of the
+     * child plans to find the join keys.  The <em>i</em><sup>th</sup> key is
+     * the <em>i</em><sup>th</sup> order-by column of each child, as long as
+     * both columns are sorted in the same direction, and the predicate
+     * compares them for equality.  The search stops at the first order-by
+     * position that doesn't satisfy these constraints.
+     */
+    private void findJoinKeys() {
+        leftKeys = new ArrayList<Expression>();
+        rightKeys = new ArrayList<Expression>();
+        keysAscending = new ArrayList<Boolean>();
+
+        List<OrderByExpression> leftOrder = leftChild.resultsOrderedBy();
         List<OrderByExpression> rightOrder = rightChild.resultsOrderedBy();
+        if (leftOrder == null || rightOrder == null)
+            return;
+
+        ArrayList<ColumnValue> leftCols = new ArrayList<ColumnValue>();
+        ArrayList<ColumnValue> rightCols = new ArrayList<ColumnValue>();
+        findEquijoinColumns(leftSchema, rightSchema, leftCols, rightCols);
+
+        int numKeys = Math.min(leftOrder.size(), rightOrder.size());
+        for (int i = 0; i < numKeys; i++) {
+            OrderByExpression leftEntry = leftOrder.get(i);
+            OrderByExpression rightEntry = rightOrder.get(i);
+
+            if (leftEntry.isAscending() != rightEntry.isAscending())
+                break;
+
+            int leftIndex = getColumnIndex(leftEntry.getExpression(),
+                leftSchema);
+            int rightIndex = getColumnIndex(rightEntry.getExpression(),
+                rightSchema);
+            if (leftIndex == -1 || rightIndex == -1)
+                break;
+
+            boolean found = false;
+            for (int j = 0; j < leftCols.size(); j++) {
+                if (getColumnIndex(leftCols.get(j), leftSchema) == leftIndex &&
+                    getColumnIndex(rightCols.get(j), rightSchema) == rightIndex) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found)
+                break;
+
+            leftKeys.add(leftEntry.getExpression());
+            rightKeys.add(rightEntry.getExpression());
+            keysAscending.add(leftEntry.isAscending());
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Sort-merge join keys:  left %s, right %s",
+                leftKeys, rightKeys));
+        }
+    }
+
+
+    /**
+     * This helper finds the conjuncts of the join predicate that compare a
+     * column of the left schema to a column of the right schema for
+     * equality, and whose types can be compared with each other.  The
+     * columns of each condition are added to the two lists at the same
+     * index.
+     */
+    private void findEquijoinColumns(Schema leftSchema, Schema rightSchema,
+                                     List<ColumnValue> leftCols,
+                                     List<ColumnValue> rightCols) {
+
+        ArrayList<Expression> conjuncts = new ArrayList<Expression>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        for (Expression conjunct : conjuncts) {
+            if (!(conjunct instanceof CompareOperator))
+                continue;
+
+            CompareOperator cmp = (CompareOperator) conjunct;
+            if (cmp.getType() != CompareOperator.Type.EQUALS)
+                continue;
+
+            Expression lhs = cmp.getLeftExpression();
+            Expression rhs = cmp.getRightExpression();
+            if (getColumnIndex(lhs, leftSchema) == -1 ||
+                getColumnIndex(rhs, rightSchema) == -1) {
+                // Try the condition the other way around.
+                Expression tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+
+                if (getColumnIndex(lhs, leftSchema) == -1 ||
+                    getColumnIndex(rhs, rightSchema) == -1) {
+                    continue;
+                }
+            }
+
+            // A column that appears in both schemas is ambiguous.
+            if (getColumnIndex(lhs, rightSchema) != -1 ||
+                getColumnIndex(rhs, leftSchema) != -1) {
+                continue;
+            }
+
+            SQLDataType leftType =
+                lhs.getColumnInfo(leftSchema).getType().getBaseType();
+            SQLDataType rightType =
+                rhs.getColumnInfo(rightSchema).getType().getBaseType();
+
+            if (!canCompare(leftType, rightType))
+                continue;
+
+            leftCols.add((ColumnValue) lhs);
+            rightCols.add((ColumnValue) rhs);
+        }
+    }
+
+
+    /**
+     * Returns the index of the column that the expression refers to in the
+     * schema, or -1 if the expression is not a simple column reference to a
+     * single column of the schema.
+     */
+    private static int getColumnIndex(Expression expr, Schema schema) {
+        if (!(expr instanceof ColumnValue))
+            return -1;
+
+        try {
+            return schema.getColumnIndex(((ColumnValue) expr).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            // The column name is ambiguous.
+            return -1;
+        }
+    }
+
+
+    /**
+     * Returns true if values of the two types are ordered consistently with
+     * how they compare for equality.
+     */
+    private static boolean canCompare(SQLDataType type1, SQLDataType type2) {
+        if (SQLDataType.isNumber(type1) && SQLDataType.isNumber(type2))
+            return true;
 
-        /* TODO:  Analyze the predicate and the result ordering of the child
-         *        plans.  The constraints are as follows:
-         *
-         *        1)  The predicate must be a series of ANDed equality
-         *            conditions.
-         *
-         *        2)  The columns in the predicate that reference the left
-         *            child should be a prefix of the left child's order-by
-         *            expression.  The same should hold for the right child.
-         *            Further, each pair of values compared <c1> == <c2>
-         *            should appear at the same index in the order-by lists.
-         */
+        if (SQLDataType.isString(type1) && SQLDataType.isString(type2))
+            return true;
 
-        throw new UnsupportedOperationException("Not yet implemented!");
+        return type1 == type2;
     }
 
 
@@ -193,16 +528,264 @@ public class SortMergeJoinNode extends ThetaJoinNode {
     public void initialize() {
         super.initialize();
 
+        if (!hasJoinKeys()) {
+            throw new IllegalStateException("Sort-merge join requires the " +
+                "child plans to be ordered on an equi-join condition");
+        }
+
         done = false;
         leftTuple = null;
+        leftKey = null;
+        leftDone = false;
         rightTuple = null;
+        rightKey = null;
+        rightStarted = false;
+        rightRun = null;
+        runKey = null;
+        retiredRun = null;
     }
 
 
     @Override
     public Tuple getNextTuple() throws IllegalStateException, IOException {
-        // TODO:  Implement
-        return null;
+        if (done)
+            return null;
+
+        if (!rightStarted) {
+            advanceRight();
+            rightStarted = true;
+        }
+
+        while (true) {
+            // Output the unmatched tuples of a run that the left input has
+            // moved past.
+            if (retiredRun != null) {
+                while (retiredIndex < retiredRun.size()) {
+                    int i = retiredIndex;
+                    retiredIndex++;
+
+                    if (!retiredMatched[i])
+                        return joinTuples(makeNullLeft(), retiredRun.get(i));
+                }
+                retiredRun = null;
+            }
+
+            if (leftTuple == null) {
+                if (!leftDone) {
+                    Tuple tuple = leftChild.getNextTuple();
+                    if (tuple != null) {
+                        leftTuple = new TupleLiteral(tuple);
+                        leftKey = evaluateKey(leftKeys, leftSchema, leftTuple);
+                        leftPositioned = false;
+                        leftMatched = false;
+                        runIndex = 0;
+                        continue;
+                    }
+
+                    leftDone = true;
+                }
+
+                // The left input is exhausted.  Output any right tuples that
+                // remain, if the join preserves them.
+                if (rightRun != null) {
+                    retireRun();
+                    continue;
+                }
+
+                if (preservesRight() && rightTuple != null) {
+                    Tuple right = rightTuple;
+                    advanceRight();
+                    return joinTuples(makeNullLeft(), right);
+                }
+
+                done = true;
+                return null;
+            }
+
+            if (!leftPositioned) {
+                // A left tuple with a NULL key can't match anything, so the
+                // right input doesn't need to move.
+                if (leftKey != null) {
+                    if (rightRun != null && compareKeys(runKey, leftKey) < 0) {
+                        retireRun();
+                        continue;
+                    }
+
+                    if (rightRun == null) {
+                        // Skip right tuples with smaller keys; they can't
+                        // match this or any later left tuple.
+                        while (rightTuple != null && (rightKey == null ||
+                               compareKeys(rightKey, leftKey) < 0)) {
+                            Tuple right = rightTuple;
+                            advanceRight();
+
+                            if (preservesRight())
+                                return joinTuples(makeNullLeft(), right);
+                        }
+
+                        if (rightTuple != null &&
+                            compareKeys(rightKey, leftKey) == 0) {
+                            loadRun();
+                        }
+                    }
+                }
+
+                leftPositioned = true;
+            }
+
+            // Join the left tuple with the run of right tuples that have the
+            // same key.
+            if (leftKey != null && rightRun != null &&
+                compareKeys(runKey, leftKey) == 0) {
+
+                while (runIndex < rightRun.size()) {
+                    int i = runIndex;
+                    runIndex++;
+
+                    Tuple right = rightRun.get(i);
+                    if (canJoinTuples(leftTuple, right)) {
+                        leftMatched = true;
+                        runMatched[i] = true;
+                        return joinTuples(leftTuple, right);
+                    }
+                }
+            }
+
+            // We are done with this left tuple.
+            Tuple left = leftTuple;
+            leftTuple = null;
+
+            if (!leftMatched && preservesLeft())
+                return joinTuples(left, makeNullRight());
+        }
+    }
+
+
+    /** Returns true if unmatched left tuples are included in the results. */
+    private boolean preservesLeft() {
+        return joinType == JoinType.LEFT_OUTER ||
+               joinType == JoinType.FULL_OUTER;
+    }
+
+
+    /** Returns true if unmatched right tuples are included in the results. */
+    private boolean preservesRight() {
+        return joinType == JoinType.RIGHT_OUTER ||
+               joinType == JoinType.FULL_OUTER;
+    }
+
+
+    private Tuple makeNullLeft() {
+        return new TupleLiteral(leftSchema.numColumns());
+    }
+
+
+    private Tuple makeNullRight() {
+        return new TupleLiteral(rightSchema.numColumns());
+    }
+
+
+    /** Retrieves the next tuple from the right child, along with its key. */
+    private void advanceRight() throws IOException {
+        Tuple tuple = rightChild.getNextTuple();
+        if (tuple != null) {
+            rightTuple = new TupleLiteral(tuple);
+            rightKey = evaluateKey(rightKeys, rightSchema, rightTuple);
+        }
+        else {
+            rightTuple = null;
+            rightKey = null;
+        }
+    }
+
+
+    /**
+     * Reads all right tuples with the same key as {@link #rightTuple} into a
+     * new run.
+     */
+    private void loadRun() throws IOException {
+        runKey = rightKey;
+        rightRun = new ArrayList<Tuple>();
+
+        while (rightTuple != null && rightKey != null &&
+               compareKeys(rightKey, runKey) == 0) {
+            rightRun.add(rightTuple);
+            advanceRight();
+        }
+
+        runMatched = new boolean[rightRun.size()];
+    }
+
+
+    /**
+     * Discards the current run, first arranging for its unmatched tuples to
+     * be output if the join preserves right tuples.
+     */
+    private void retireRun() {
+        if (preservesRight()) {
+            retiredRun = rightRun;
+            retiredMatched = runMatched;
+            retiredIndex = 0;
+        }
+
+        rightRun = null;
+        runKey = null;
+        runMatched = null;
+    }
+
+
+    private boolean canJoinTuples(Tuple left, Tuple right) {
+        environment.clear();
+        environment.addTuple(leftSchema, left);
+        environment.addTuple(rightSchema, right);
+
+        return predicate.evaluatePredicate(environment);
+    }
+
+
+    /**
+     * Evaluates the join key of a tuple.  If any part of the key is
+     * <tt>NULL</tt> then the tuple cannot join with anything, and
+     * {@code null} is returned.
+     */
+    private TupleLiteral evaluateKey(List<Expression> keys, Schema schema,
+                                     Tuple tuple) {
+        environment.clear();
+        environment.addTuple(schema, tuple);
+
+        TupleLiteral key = new TupleLiteral();
+        for (Expression keyExpr : keys) {
+            Object value = keyExpr.evaluate(environment);
+            if (value == null)
+                return null;
+
+            key.addValue(value);
+        }
+
+        return key;
+    }
+
+
+    /**
+     * Compares two non-<tt>NULL</tt> join keys in the order that the
+     * children produce them.
+     *
+     * @return a negative, zero, or positive value, corresponding to whether
+     *         {@code key1} comes before, is equal to, or comes after
+     *         {@code key2}
+     */
+    @SuppressWarnings("unchecked")
+    private int compareKeys(TupleLiteral key1, TupleLiteral key2) {
+        for (int i = 0; i < key1.getColumnCount(); i++) {
+            TypeConverter.Pair p = TypeConverter.coerceComparison(
+                key1.getColumnValue(i), key2.getColumnValue(i));
+
+            int result = ((Comparable) p.value1).compareTo(p.value2);
+            if (result != 0)
+                return keysAscending.get(i) ? result : -result;
+        }
+
+        return 0;
     }
 
 
@@ -222,6 +805,9 @@ public class SortMergeJoinNode extends ThetaJoinNode {
 
     @Override
     public void cleanUp() {
+        rightRun = null;
+        retiredRun = null;
+
         leftChild.cleanUp();
         rightChild.cleanUp();
     }
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.log4j.Logger;
 
@@ -16,22 +17,83 @@ import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.qeval.PlanCost;
 
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.ExternalSorter;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
 
 
 /**
- * This plan node provides a simple in-memory sort operation for use in
- * ORDER BY clauses.
+ * This plan node provides a sort operation for use in ORDER BY clauses.
+ * <p>
+ * If the results fit within the memory budget specified by the
+ * <tt>nanodb.sort.memory</tt> property, they are simply sorted in memory.
+ * Otherwise, the node performs an external merge sort with an
+ * {@link ExternalSorter}:  the input is split into sorted runs that each fit
+ * within the budget, the runs are written to temporary files, and then the
+ * runs are merged together.
+ * <p>
+ * When only the first <em>N</em> results are needed, for example because a
+ * {@link LimitNode} sits directly above the sort, {@link #setLimit} switches
+ * the node to a "top-N" mode that only keeps the best <em>N</em> tuples in a
+ * heap, instead of sorting the entire input.
  */
 public class SortNode extends PlanNode {
     /** A logging object for reporting anything interesting that happens. */
     private static Logger logger = Logger.getLogger(SortNode.class);
 
+
+    /**
+     * The system property that can be used to specify how many bytes of
+     * tuple data a sort may keep in memory before it writes sorted runs to
+     * temporary files.
+     */
+    public static final String PROP_SORT_MEMORY = "nanodb.sort.memory";
+
+
+    /** The default sort memory budget is 4MB. */
+    public static final long DEFAULT_SORT_MEMORY = 4 * 1024 * 1024;
+
+
+    /**
+     * Returns the number of bytes of tuple data that a sort may keep in
+     * memory, from the <tt>nanodb.sort.memory</tt> property.
+     *
+     * @return the sort memory budget in bytes
+     */
+    public static long getMemoryBudget() {
+        long budget = DEFAULT_SORT_MEMORY;
+
+        String str = System.getProperty(PROP_SORT_MEMORY);
+        if (str != null) {
+            try {
+                budget = Long.parseLong(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse sort memory value \"%s\"; " +
+                    "using default value of %d", str, DEFAULT_SORT_MEMORY));
+            }
+
+            if (budget <= 0) {
+                logger.error(String.format(
+                    "Sort memory %d is not positive; using default " +
+                    "value of %d", budget, DEFAULT_SORT_MEMORY));
+
+                budget = DEFAULT_SORT_MEMORY;
+            }
+        }
+
+        return budget;
+    }
+
+
     /** A specification of the ordering of the results of this plan node. */
     private List<OrderByExpression> orderByExprs;
 
     /**
-     * This array receives all tuples from the child plan node, and then they
-     * are sorted and passed along to the parent from this array.
+     * In top-N mode, this array receives the best tuples from the child plan
+     * node, and then they are sorted and passed along to the parent from
+     * this array.
      */
     private ArrayList<Tuple> sortedResults;
 
@@ -49,6 +111,31 @@ public class SortNode extends PlanNode {
     private boolean done;
 
 
+    /**
+     * The storage manager used to create temporary files for sorted runs, or
+     * {@code null} if the sort must be performed entirely in memory.
+     */
+    private StorageManager storageManager;
+
+
+    /**
+     * If positive, only this many tuples of the sorted results are needed,
+     * so the node can keep just the top <em>N</em> tuples.
+     */
+    private int limit;
+
+
+    /** The memory budget in effect while the sort is being evaluated. */
+    private long memoryBudget;
+
+
+    /**
+     * The sorter that produces the sorted results, or {@code null} if the
+     * top-N results were kept in memory.
+     */
+    private ExternalSorter sorter;
+
+
     /**
      * Constructs a PlanNode with a given operation type.  This method will be
      * called by subclass constructors.
@@ -57,6 +144,21 @@ public class SortNode extends PlanNode {
      * @param orderByExprs a specification of how the results should be ordered
      */
     public SortNode(PlanNode subplan, List<OrderByExpression> orderByExprs) {
+        this(subplan, orderByExprs, null);
+    }
+
+
+    /**
+     * Constructs a sort node that can write sorted runs to temporary files
+     * when its input doesn't fit in memory.
+     *
+     * @param subplan the subplan that produces the results to sort
+     * @param orderByExprs a specification of how the results should be ordered
+     * @param storageManager the storage manager to create temporary files
+     *        with, or {@code null} if the sort must be done in memory
+     */
+    public SortNode(PlanNode subplan, List<OrderByExpression> orderByExprs,
+                    StorageManager storageManager) {
         super(PlanNode.OperationType.SORT, subplan);
 
         if (orderByExprs == null)
@@ -68,6 +170,36 @@ public class SortNode extends PlanNode {
         }
 
         this.orderByExprs = orderByExprs;
+        this.storageManager = storageManager;
+    }
+
+
+    /**
+     * Specifies that only the first <em>limit</em> tuples of the sorted
+     * results will be consumed, so that the sort can keep just the best
+     * tuples instead of sorting its entire input.  A value of 0 means that
+     * all results are needed.
+     *
+     * @param limit the number of sorted tuples that are needed, or 0 for all
+     *        tuples
+     */
+    public void setLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit cannot be negative");
+
+        this.limit = limit;
+    }
+
+
+    /**
+     * Returns the number of sorted tuples that are needed, or 0 if all
+     * tuples are needed.
+     *
+     * @return the number of sorted tuples that are needed, or 0 for all
+     *         tuples
+     */
+    public int getLimit() {
+        return limit;
     }
 
 
@@ -117,8 +249,31 @@ public class SortNode extends PlanNode {
         if (childCost != null) {
             cost = new PlanCost(childCost);
 
-            // Sorting in memory is an N*log(N) operation.
-            cost.cpuCost += cost.numTuples * (float) Math.log(cost.numTuples);
+            if (limit > 0 && limit < cost.numTuples) {
+                // A top-N sort is an N*log(limit) operation, and only
+                // produces the first tuples.
+                cost.cpuCost += cost.numTuples * (float) Math.log(limit + 1);
+                cost.numTuples = limit;
+            }
+            else {
+                // Sorting in memory is an N*log(N) operation.
+                cost.cpuCost += cost.numTuples * (float) Math.log(cost.numTuples);
+
+                // If the input doesn't fit in memory, every merge pass
+                // writes out and reads back the entire input.
+                float bytes = cost.numTuples * cost.tupleSize;
+                long budget = getMemoryBudget();
+                if (storageManager != null && bytes > budget) {
+                    double numRuns = Math.ceil(bytes / budget);
+                    int passes = (int) Math.ceil(Math.log(numRuns) /
+                        Math.log(ExternalSorter.getMergeFanIn(budget)));
+                    passes = Math.max(1, passes);
+
+                    cost.cpuCost += cost.numTuples * passes;
+                    cost.numBlockIOs += 2 * passes * (long) Math.ceil(
+                        bytes / StorageManager.getCurrentPageSize());
+                }
+            }
         }
         else {
             logger.info(
@@ -139,7 +294,10 @@ public class SortNode extends PlanNode {
     public void initialize() {
         super.initialize();
 
+        closeSorter();
+
         sortedResults = null;
+        memoryBudget = getMemoryBudget();
         done = false;
 
         leftChild.initialize();
@@ -162,11 +320,22 @@ public class SortNode extends PlanNode {
         if (done)
             return null;
 
-        if (sortedResults == null)
-            prepareSortedResults();
+        if (sortedResults == null && sorter == null) {
+            if (limit > 0)
+                prepareTopResults();
+            else
+                prepareSortedResults();
+        }
 
         Tuple tup = null;
-        if (currentTupleIndex < sortedResults.size()) {
+        if (sorter != null) {
+            tup = sorter.getNextTuple();
+            if (tup == null) {
+                done = true;
+                closeSorter();
+            }
+        }
+        else if (currentTupleIndex < sortedResults.size()) {
             tup = sortedResults.get(currentTupleIndex);
             currentTupleIndex++;
         }
@@ -179,7 +348,24 @@ public class SortNode extends PlanNode {
 
 
     private void prepareSortedResults() throws IOException {
-        sortedResults = new ArrayList<Tuple>();
+        prepareSortedResults(new ArrayList<Tuple>());
+    }
+
+
+    /**
+     * This helper reads the rest of the child's tuples and sorts them.  If
+     * the tuples don't fit within the memory budget, the sorter writes them
+     * out to sorted runs, and then merges the runs.
+     *
+     * @param tuples any tuples that have already been read from the child
+     */
+    private void prepareSortedResults(List<Tuple> tuples) throws IOException {
+        sorter = new ExternalSorter(storageManager, schema, comparator,
+                                    memoryBudget);
+
+        for (Tuple tup : tuples)
+            sorter.addTuple(tup);
+
         while (true) {
             // Get the next tuple.  If it's not cacheable then make a copy of it
             // before storing it away.
@@ -191,15 +377,81 @@ public class SortNode extends PlanNode {
             if (!tup.isDiskBacked())
                 tup = new TupleLiteral(tup);
 
-            sortedResults.add(tup);
+            sorter.addTuple(tup);
         }
 
-        Collections.sort(sortedResults, comparator);
+        sorter.finish();
+    }
 
+
+    /**
+     * This helper keeps only the first {@link #limit} tuples of the sorted
+     * results, using a heap whose root is the "worst" tuple kept so far.
+     * If the kept tuples don't fit within the memory budget, the node falls
+     * back to a full external sort.
+     */
+    private void prepareTopResults() throws IOException {
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(
+            Math.min(limit, 1024), Collections.reverseOrder(comparator));
+        long heapSize = 0;
+
+        while (true) {
+            Tuple tup = leftChild.getNextTuple();
+            if (tup == null)
+                break;
+
+            if (heap.size() == limit) {
+                // Only keep the tuple if it sorts before the worst tuple
+                // kept so far.
+                if (comparator.compare(tup, heap.peek()) >= 0)
+                    continue;
+
+                Tuple removed = heap.poll();
+                if (storageManager != null)
+                    heapSize -= PageTuple.getTupleStorageSize(schema, removed);
+            }
+
+            if (!tup.isDiskBacked())
+                tup = new TupleLiteral(tup);
+
+            heap.add(tup);
+
+            if (storageManager != null) {
+                heapSize += PageTuple.getTupleStorageSize(schema, tup);
+                if (heapSize > memoryBudget) {
+                    logger.debug("Top-" + limit + " tuples exceed the sort " +
+                        "memory budget; switching to an external sort");
+                    prepareSortedResults(new ArrayList<Tuple>(heap));
+                    return;
+                }
+            }
+        }
+
+        sortedResults = new ArrayList<Tuple>(heap);
+        Collections.sort(sortedResults, comparator);
         currentTupleIndex = 0;
     }
 
 
+    /**
+     * Deletes any run files that are still around, for example if the sort
+     * was not run to completion.
+     */
+    private void closeSorter() {
+        if (sorter == null)
+            return;
+
+        try {
+            sorter.close();
+        }
+        catch (IOException e) {
+            logger.error("Couldn't delete sort run files", e);
+        }
+
+        sorter = null;
+    }
+
+
     /** The sort plan-node doesn't support marking. */
     public void markCurrentPosition() {
         throw new UnsupportedOperationException(
@@ -218,6 +470,7 @@ public class SortNode extends PlanNode {
     public void cleanUp() {
         // Allow this collection to be garbage-collected.
         sortedResults = null;
+        closeSorter();
 
         leftChild.cleanUp();
     }
@@ -225,6 +478,9 @@ public class SortNode extends PlanNode {
 
     @Override
     public String toString() {
+        if (limit > 0)
+            return "Sort[" + orderByExprs + ", top " + limit + "]";
+
         return "Sort[" + orderByExprs + "]";
     }
 
@@ -243,6 +499,7 @@ public class SortNode extends PlanNode {
             SortNode other = (SortNode) obj;
 
             return orderByExprs.equals(other.orderByExprs) &&
+                   limit == other.limit &&
                    leftChild.equals(other.leftChild);
         }
         return false;
@@ -260,6 +517,7 @@ public class SortNode extends PlanNode {
     public int hashCode() {
         int hash = 17;
         hash = 31 * hash + orderByExprs.hashCode();
+        hash = 31 * hash + limit;
         hash = 31 * hash + leftChild.hashCode();
         return hash;
     }
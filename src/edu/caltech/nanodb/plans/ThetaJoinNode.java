@@ -112,6 +112,22 @@ public abstract class ThetaJoinNode extends PlanNode {
     }
 
 
+    /**
+     * Returns true if this join node can evaluate joins of the specified
+     * type.  Subclasses that support other kinds of joins can override this
+     * method.
+     *
+     * @param joinType the join type to check
+     *
+     * @return true if this join node supports the join type
+     */
+    protected boolean supportsJoinType(JoinType joinType) {
+        return joinType == JoinType.LEFT_OUTER ||
+               joinType == JoinType.CROSS ||
+               joinType == JoinType.INNER;
+    }
+
+
     /**
      * Do initialization for the join operation. Resets state variables.
      * Initialize both children.
@@ -119,7 +135,7 @@ public abstract class ThetaJoinNode extends PlanNode {
     public void initialize() {
         super.initialize();
 
-        if (joinType != JoinType.LEFT_OUTER && joinType != JoinType.CROSS && joinType != JoinType.INNER) {
+        if (!supportsJoinType(joinType)) {
             throw new UnsupportedOperationException(
                 "We don't support joins of type " + joinType + " yet!");
         }
@@ -130,7 +146,31 @@ public abstract class ThetaJoinNode extends PlanNode {
 
 
     /**
-     * This helper method can be used by the {@link #prepare} method in
+     * Prepares the left and right child-nodes, and then this join node.
+     * Subclasses implement {@link #prepareJoin} rather than overriding this
+     * method.
+     */
+    @Override
+    public void prepare() {
+        leftChild.prepare();
+        rightChild.prepare();
+
+        prepareJoin();
+    }
+
+
+    /**
+     * Computes the schema, statistics and cost of this join node, from those
+     * of the child plans.  The child plans must already be prepared.  The
+     * planner calls this method directly when it tries many different joins
+     * of the same prepared subplans, since preparing a subplan again takes
+     * time proportional to its size.
+     */
+    public abstract void prepareJoin();
+
+
+    /**
+     * This helper method can be used by the {@link #prepareJoin} method in
      * subclasses, to compute the output schema and initial stats of the
      * join operation.  This method is provided because it takes the
      * {@link #schemaSwapped} flag into account when ordering the schema
@@ -0,0 +1,210 @@
+package edu.caltech.nanodb.qeval;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This class collects statistics about how the columns of a table depend on
+ * each other, while the table is being analyzed.  The selectivity of a
+ * conjunction such as <tt>city = 'Pasadena' AND state = 'CA'</tt> is badly
+ * underestimated if the two conjuncts are treated as independent, since the
+ * city determines the state.
+ * <p>
+ * The collector keeps a reservoir sample of whole rows, so that the values of
+ * different columns in the sample line up.  For each pair of columns
+ * (<em>a</em>, <em>b</em>), the <em>dependency degree</em> of <em>b</em> on
+ * <em>a</em> is the fraction of the sampled rows whose value of <em>a</em>
+ * always appears with the same value of <em>b</em>.  Degrees of at least
+ * {@link #MIN_DEPENDENCY_DEGREE} are recorded in the {@link ColumnStats} of
+ * column <em>a</em>; see {@link ColumnStats#getDependencyDegree}.
+ */
+public class ColumnDependencyCollector {
+
+    /** The maximum number of rows kept in the sample. */
+    public static final int SAMPLE_SIZE = 10000;
+
+
+    /**
+     * The smallest dependency degree that is recorded.  Weaker dependencies
+     * don't change selectivity estimates enough to be worth storing.
+     */
+    public static final float MIN_DEPENDENCY_DEGREE = 0.2f;
+
+
+    /** The number of columns in the table being analyzed. */
+    private int numColumns;
+
+
+    /** The number of rows seen so far. */
+    private int numRows;
+
+
+    /**
+     * A uniform random sample of the rows seen, maintained with reservoir
+     * sampling.
+     */
+    private ArrayList<Object[]> sample;
+
+
+    /** The random-number generator used to maintain the sample. */
+    private Random random;
+
+
+    /**
+     * Initializes a new dependency collector for a table with the specified
+     * number of columns.
+     *
+     * @param numColumns the number of columns in the table
+     */
+    public ColumnDependencyCollector(int numColumns) {
+        this.numColumns = numColumns;
+        numRows = 0;
+        sample = new ArrayList<Object[]>();
+        random = new Random();
+    }
+
+
+    /**
+     * Adds another row of the table to this collector.
+     *
+     * @param tuple the row of the table being analyzed
+     */
+    public void addTuple(Tuple tuple) {
+        numRows++;
+
+        int i;
+        if (sample.size() < SAMPLE_SIZE) {
+            i = sample.size();
+            sample.add(null);
+        }
+        else {
+            i = random.nextInt(numRows);
+            if (i >= SAMPLE_SIZE)
+                return;
+        }
+
+        Object[] row = new Object[numColumns];
+        for (int iCol = 0; iCol < numColumns; iCol++)
+            row[iCol] = tuple.getColumnValue(iCol);
+
+        sample.set(i, row);
+    }
+
+
+    /**
+     * Computes the dependency degrees between every pair of columns from the
+     * sample, and records them in the columns' stats.
+     *
+     * @param colStats the stats of the table's columns, in the order of the
+     *        table's columns
+     */
+    public void computeDependencies(List<ColumnStats> colStats) {
+        if (colStats.size() != numColumns) {
+            throw new IllegalArgumentException(String.format(
+                "Expected stats for %d columns; got %d", numColumns,
+                colStats.size()));
+        }
+
+        if (sample.size() < 2)
+            return;
+
+        for (int a = 0; a < numColumns; a++) {
+            if (!canSortBy(a))
+                continue;
+
+            sortSample(a);
+
+            // Find the groups of rows that have the same value of column a,
+            // and count the rows of the groups that also have a single value
+            // of each other column.
+            int[] numConsistent = new int[numColumns];
+            int start = 0;
+            for (int i = 1; i <= sample.size(); i++) {
+                if (i < sample.size() &&
+                    valuesEqual(sample.get(i)[a], sample.get(start)[a])) {
+                    continue;
+                }
+
+                for (int b = 0; b < numColumns; b++) {
+                    if (b == a)
+                        continue;
+
+                    boolean consistent = true;
+                    for (int j = start + 1; j < i && consistent; j++)
+                        consistent = valuesEqual(sample.get(j)[b], sample.get(start)[b]);
+
+                    if (consistent)
+                        numConsistent[b] += i - start;
+                }
+
+                start = i;
+            }
+
+            for (int b = 0; b < numColumns; b++) {
+                if (b == a)
+                    continue;
+
+                float degree = (float) numConsistent[b] / sample.size();
+                if (degree >= MIN_DEPENDENCY_DEGREE)
+                    colStats.get(a).setDependencyDegree(colStats.get(b), degree);
+            }
+        }
+    }
+
+
+    /**
+     * Returns true if the sampled rows can be sorted by the values of the
+     * specified column.
+     */
+    private boolean canSortBy(int iCol) {
+        for (Object[] row : sample) {
+            if (row[iCol] != null)
+                return row[iCol] instanceof Comparable;
+        }
+        return true;
+    }
+
+
+    /**
+     * Sorts the sampled rows by the values of the specified column, with
+     * <tt>NULL</tt>s first.
+     */
+    private void sortSample(final int iCol) {
+        Collections.sort(sample, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] r1, Object[] r2) {
+                Object v1 = r1[iCol];
+                Object v2 = r2[iCol];
+
+                if (v1 == null)
+                    return (v2 == null) ? 0 : -1;
+                else if (v2 == null)
+                    return 1;
+
+                return Histogram.compareValues(v1, v2);
+            }
+        });
+    }
+
+
+    /**
+     * Returns true if two column values are equal.  <tt>NULL</tt>s are
+     * considered equal to each other here, since they group together.
+     */
+    private static boolean valuesEqual(Object v1, Object v2) {
+        if (v1 == null || v2 == null)
+            return v1 == v2;
+
+        if (v1 instanceof Comparable)
+            return Histogram.compareValues(v1, v2) == 0;
+
+        return v1.equals(v2);
+    }
+}
@@ -1,6 +1,9 @@
 package edu.caltech.nanodb.qeval;
 
 
+import java.util.HashMap;
+
+
 /**
  * This class holds some useful statistics for a specific column.  At present
  * this consists of the following:
@@ -10,6 +13,10 @@ package edu.caltech.nanodb.qeval;
  *   <li>the number of <tt>NULL</tt> values in the column</li>
  *   <li>the minimum value for the column</li>
  *   <li>the maximum value for the column</li>
+ *   <li>the most common values of the column, and how often they occur</li>
+ *   <li>an equi-depth histogram of the column's other values</li>
+ *   <li>how strongly the column's value determines the values of other
+ *       columns in the same table</li>
  * </ul>
  * The {@link ColumnStatsCollector} class can be used to easily collect these
  * statistics for a particular column of a table.
@@ -43,6 +50,32 @@ public class ColumnStats {
     private Object maxValue;
 
 
+    /**
+     * The most common values of this column in the table, or <tt>null</tt>
+     * if they are unknown.
+     */
+    private MostCommonValues mostCommonValues;
+
+
+    /**
+     * A histogram of the values of this column in the table that aren't in
+     * the most-common-values list, or <tt>null</tt> if there is no
+     * histogram.
+     */
+    private Histogram histogram;
+
+
+    /**
+     * The degree to which this column's value functionally determines the
+     * value of other columns in the same table, keyed by the other columns'
+     * stats.  The stats objects of a table are passed up through a plan
+     * unchanged, so they identify the columns no matter where they end up in
+     * a plan node's schema.
+     */
+    private HashMap<ColumnStats, Float> dependencies =
+        new HashMap<ColumnStats, Float>();
+
+
     /** Initializes a column-stats object to all "unknown" values. */
     public ColumnStats() {
         numUniqueValues = -1;
@@ -170,6 +203,103 @@ public class ColumnStats {
     }
 
 
+    /**
+     * Returns the most common values of the column, or <tt>null</tt> if they
+     * are unknown.
+     *
+     * @return the most common values of the column, or <tt>null</tt>
+     */
+    public MostCommonValues getMostCommonValues() {
+        return mostCommonValues;
+    }
+
+
+    /**
+     * Sets the most common values of the column.
+     *
+     * @param mostCommonValues the most common values of the column, or
+     *        <tt>null</tt> if unknown
+     */
+    public void setMostCommonValues(MostCommonValues mostCommonValues) {
+        this.mostCommonValues = mostCommonValues;
+    }
+
+
+    /**
+     * Returns the histogram of the column's values, or <tt>null</tt> if
+     * there is no histogram.
+     *
+     * @return the histogram of the column's values, or <tt>null</tt>
+     */
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+
+    /**
+     * Sets the histogram of the column's values.
+     *
+     * @param histogram the histogram of the column's values, or
+     *        <tt>null</tt> if there is no histogram
+     */
+    public void setHistogram(Histogram histogram) {
+        this.histogram = histogram;
+    }
+
+
+    /**
+     * Returns the degree to which this column's value determines the value
+     * of another column in the same table.  A degree of 1 means that each
+     * value of this column always appears with the same value of the other
+     * column; a degree of 0 means that nothing is known about the columns'
+     * relationship, which is also what is returned if no degree was
+     * recorded.
+     *
+     * @param other the stats of the other column
+     *
+     * @return the degree to which this column determines the other, in the
+     *         range [0, 1]
+     */
+    public float getDependencyDegree(ColumnStats other) {
+        Float degree = dependencies.get(other);
+        return (degree != null) ? degree : 0;
+    }
+
+
+    /**
+     * Records the degree to which this column's value determines the value
+     * of another column in the same table.
+     *
+     * @param other the stats of the other column
+     * @param degree the degree to which this column determines the other,
+     *        in the range [0, 1]
+     */
+    public void setDependencyDegree(ColumnStats other, float degree) {
+        if (degree < 0 || degree > 1) {
+            throw new IllegalArgumentException(
+                "Dependency degree must be in the range [0, 1]; got " + degree);
+        }
+
+        if (degree == 0)
+            dependencies.remove(other);
+        else
+            dependencies.put(other, degree);
+    }
+
+
+    /**
+     * Returns <tt>true</tt> if this column-stats object describes how the
+     * column's values are distributed, with a most-common-values list, a
+     * histogram, or both.
+     *
+     * @return <tt>true</tt> if the column has a most-common-values list or a
+     *         histogram
+     */
+    public boolean hasDistribution() {
+        return mostCommonValues != null || histogram != null;
+    }
+
+
     /**
      * Returns <tt>true</tt> if this column-stats object has both minimum and
      * maximum values.
@@ -1,38 +1,58 @@
 package edu.caltech.nanodb.qeval;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
 import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.storage.TableManager;
 
-import java.util.HashSet;
-
 
 /**
  * This class facilitates the collection of statistics for a single column of a
  * table being analyzed by the {@link TableManager#analyzeTable}
  * method.  Instances of the class compute the number of distinct values, the
  * number of non-<tt>NULL</tt> values, and for appropriate data types, the
- * minimum and maximum values for the column.
+ * minimum and maximum values for the column.  They also keep a random sample
+ * of the column's values, from which the column's most common values and a
+ * histogram of its other values are computed.
  * <p>
  * The class also makes it very easy to construct a {@link ColumnStats} object
  * from the result of the analysis.
- *
- * @design (Donnie) This class is limited in its ability to efficiently compute
- *         the number of unique values for very large tables.  An
- *         external-memory approach would have to be used to support extremely
- *         large tables.
+ * <p>
+ * The collector uses a fixed amount of memory no matter how large the table
+ * is:  distinct values are counted with a {@link HyperLogLog} sketch, and the
+ * sample is a reservoir sample of at most {@link #SAMPLE_SIZE} values.  If
+ * the table is analyzed from a sample of its pages, the collector can scale
+ * its counts up to estimates for the whole table.
  */
 public class ColumnStatsCollector {
 
+    /**
+     * The maximum number of non-<tt>NULL</tt> values kept in the sample that
+     * the column's value distribution is computed from.
+     */
+    public static final int SAMPLE_SIZE = 30000;
+
+
+    /** The maximum number of values in a most-common-values list. */
+    public static final int MAX_MOST_COMMON_VALUES = 10;
+
+
+    /** The maximum number of buckets in a column's histogram. */
+    public static final int MAX_HISTOGRAM_BUCKETS = 32;
+
+
     /** The SQL data-type for the column that stats are being collected for. */
     private SQLDataType sqlType;
 
 
-    /**
-     * The set of all values seen in this column.  This set could obviously
-     * occupy a large amount of memory for large tables.
-     */
-    private HashSet<Object> uniqueValues;
+    /** A sketch of the distinct values seen in this column. */
+    private HyperLogLog uniqueValues;
+
 
     /**
      * A count of the number of <tt>NULL</tt> values seen in the column-values.
@@ -40,6 +60,21 @@ public class ColumnStatsCollector {
     private int numNullValues;
 
 
+    /** A count of all values seen in the column, including <tt>NULL</tt>s. */
+    private int numValues;
+
+
+    /**
+     * A uniform random sample of the non-<tt>NULL</tt> values seen in the
+     * column, maintained with reservoir sampling.
+     */
+    private ArrayList<Object> sample;
+
+
+    /** The random-number generator used to maintain the sample. */
+    private Random random;
+
+
     /**
      * The minimum value seen in the column's values, or <tt>null</tt> if the
      * minimum is unknown or won't be computed.
@@ -62,10 +97,13 @@ public class ColumnStatsCollector {
      */
     public ColumnStatsCollector(SQLDataType sqlType) {
         this.sqlType = sqlType;
-        uniqueValues = new HashSet<Object>();
+        uniqueValues = new HyperLogLog();
         numNullValues = 0;
+        numValues = 0;
         minValue = null;
         maxValue = null;
+        sample = new ArrayList<Object>();
+        random = new Random();
     }
 
 
@@ -82,6 +120,8 @@ public class ColumnStatsCollector {
      */
     @SuppressWarnings("unchecked")
     public void addValue(Object value) {
+        numValues++;
+
         if (value == null) {
             numNullValues++;
         }
@@ -100,8 +140,21 @@ public class ColumnStatsCollector {
                     maxValue = comp;
             }
 
-            // Update the set of unique values.
-            uniqueValues.add(value);
+            // Update the sketch of unique values.
+            uniqueValues.addValue(value);
+
+            // Update the sample.  Once the sample is full, the i-th value
+            // replaces a random sample value with probability SAMPLE_SIZE / i,
+            // so every value seen has the same chance of being in the sample.
+            int numNonNull = numValues - numNullValues;
+            if (sample.size() < SAMPLE_SIZE) {
+                sample.add(value);
+            }
+            else {
+                int i = random.nextInt(numNonNull);
+                if (i < SAMPLE_SIZE)
+                    sample.set(i, value);
+            }
         }
     }
 
@@ -118,13 +171,15 @@ public class ColumnStatsCollector {
 
     /**
      * Returns the number of unique (and non-<tt>NULL</tt>) values seen for the
-     * column.
+     * column.  This is an estimate once the column has more than
+     * {@link HyperLogLog#EXACT_LIMIT} distinct values.
      *
      * @return the number of unique (and non-<tt>NULL</tt>) values seen for the
      *         column
      */
     public int getNumUniqueValues() {
-        return uniqueValues.size();
+        return (int) Math.min(uniqueValues.getEstimate(),
+                              numValues - numNullValues);
     }
 
 
@@ -160,7 +215,193 @@ public class ColumnStatsCollector {
      *         collected by this object
      */
     public ColumnStats getColumnStats() {
-        return new ColumnStats(getNumUniqueValues(), numNullValues,
+        return getColumnStats(1.0f);
+    }
+
+
+    /**
+     * This helper method constructs and returns a new column-statistics object
+     * for a table that was only partially read by the analysis.  The counts
+     * of values are scaled up by the specified factor, and the number of
+     * distinct values is estimated from the sample with the Duj1 estimator
+     * of Haas and Stokes, which accounts for the values that appear only
+     * once in the sample.
+     *
+     * @param scale the ratio of the estimated number of rows in the table to
+     *        the number of rows passed to this collector; 1 if every row was
+     *        passed to the collector
+     *
+     * @return a new column-stats object containing estimated stats for the
+     *         whole table
+     */
+    public ColumnStats getColumnStats(float scale) {
+        if (scale < 1)
+            throw new IllegalArgumentException("scale must be >= 1; got " + scale);
+
+        int numNonNull = numValues - numNullValues;
+        int estNumNull = Math.round(numNullValues * scale);
+        int estNumNonNull = Math.round(numNonNull * scale);
+
+        // The sample is sorted so that equal values are next to each other.
+        sortSample();
+        List<Integer> runLengths = getRunLengths();
+
+        int numUnique = getNumUniqueValues();
+        if (scale > 1 && !sample.isEmpty()) {
+            int n = sample.size();
+            int d = runLengths.size();
+            int f1 = 0;
+            for (int len : runLengths) {
+                if (len == 1)
+                    f1++;
+            }
+
+            // Values seen only once in the sample suggest that there are
+            // many values that weren't seen at all.
+            double estimate = (double) n * d /
+                (n - f1 + (double) f1 * n / Math.max(estNumNonNull, n));
+
+            numUnique = (int) Math.max(numUnique,
+                Math.min(Math.round(estimate), estNumNonNull));
+        }
+
+        ColumnStats stats = new ColumnStats(numUnique, estNumNull,
             minValue, maxValue);
+
+        if (!sample.isEmpty())
+            computeDistribution(stats, runLengths, numUnique);
+
+        return stats;
+    }
+
+
+    /**
+     * Sorts the sample of values, if they can be ordered.
+     */
+    private void sortSample() {
+        if (sample.isEmpty() || !(sample.get(0) instanceof Comparable))
+            return;
+
+        Collections.sort(sample, new Comparator<Object>() {
+            @Override
+            public int compare(Object o1, Object o2) {
+                return Histogram.compareValues(o1, o2);
+            }
+        });
+    }
+
+
+    /**
+     * Returns the lengths of the runs of equal values in the sorted sample,
+     * in order.  The number of runs is the number of distinct values in the
+     * sample.
+     *
+     * @return the lengths of the runs of equal values in the sample
+     */
+    private List<Integer> getRunLengths() {
+        ArrayList<Integer> runLengths = new ArrayList<Integer>();
+        if (sample.isEmpty() || !(sample.get(0) instanceof Comparable))
+            return runLengths;
+
+        int start = 0;
+        for (int i = 1; i <= sample.size(); i++) {
+            if (i == sample.size() ||
+                Histogram.compareValues(sample.get(i), sample.get(start)) != 0) {
+                runLengths.add(i - start);
+                start = i;
+            }
+        }
+        return runLengths;
+    }
+
+
+    /**
+     * Computes the most common values of the column and a histogram of its
+     * other values from the sorted sample, and stores them into the column
+     * statistics.  Frequencies are fractions of all of the table's rows,
+     * including those with <tt>NULL</tt> values.
+     *
+     * @param stats the column statistics to store the results into
+     * @param runLengths the lengths of the runs of equal values in the
+     *        sorted sample
+     * @param numUnique the estimated number of distinct values in the column
+     */
+    private void computeDistribution(ColumnStats stats,
+        List<Integer> runLengths, int numUnique) {
+
+        if (runLengths.isEmpty())
+            return;
+
+        int n = sample.size();
+        int d = runLengths.size();
+        float nonNullFraction = (float) (numValues - numNullValues) / numValues;
+
+        // Decide which runs hold most common values.  If the sample seems to
+        // hold every value of the column, and there are few enough of them,
+        // then they are all most common values.  Otherwise, the values that
+        // appear noticeably more often than the average value are chosen.
+        boolean[] isCommon = new boolean[d];
+        if (d <= MAX_MOST_COMMON_VALUES && numUnique <= d) {
+            for (int i = 0; i < d; i++)
+                isCommon[i] = true;
+        }
+        else {
+            ArrayList<Integer> candidates = new ArrayList<Integer>();
+            float minCount = Math.max(2, 1.25f * n / d);
+            for (int i = 0; i < d; i++) {
+                if (runLengths.get(i) >= minCount)
+                    candidates.add(i);
+            }
+
+            final List<Integer> lengths = runLengths;
+            Collections.sort(candidates, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return lengths.get(i2) - lengths.get(i1);
+                }
+            });
+
+            for (int i = 0; i < candidates.size() &&
+                            i < MAX_MOST_COMMON_VALUES; i++) {
+                isCommon[candidates.get(i)] = true;
+            }
+        }
+
+        ArrayList<Object> mcvValues = new ArrayList<Object>();
+        ArrayList<Float> mcvFrequencies = new ArrayList<Float>();
+        ArrayList<Object> others = new ArrayList<Object>();
+
+        int start = 0;
+        for (int i = 0; i < d; i++) {
+            int len = runLengths.get(i);
+            if (isCommon[i]) {
+                mcvValues.add(sample.get(start));
+                mcvFrequencies.add(nonNullFraction * len / n);
+            }
+            else {
+                others.addAll(sample.subList(start, start + len));
+            }
+            start += len;
+        }
+
+        if (!mcvValues.isEmpty()) {
+            stats.setMostCommonValues(
+                new MostCommonValues(mcvValues, mcvFrequencies));
+        }
+
+        // The remaining values go into an equi-depth histogram, where each
+        // bucket boundary is a value at evenly-spaced positions in the
+        // sorted values.
+        int m = others.size();
+        if (m >= 2 && Histogram.compareValues(others.get(0),
+                                              others.get(m - 1)) != 0) {
+            int numBuckets = Math.min(MAX_HISTOGRAM_BUCKETS, m - 1);
+            ArrayList<Object> bounds = new ArrayList<Object>();
+            for (int i = 0; i <= numBuckets; i++)
+                bounds.add(others.get((int) ((long) i * (m - 1) / numBuckets)));
+
+            stats.setHistogram(
+                new Histogram(bounds, nonNullFraction * m / n));
+        }
     }
 }
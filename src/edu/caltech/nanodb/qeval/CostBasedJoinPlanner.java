@@ -16,12 +16,23 @@ import edu.caltech.nanodb.commands.FromClause;
 import edu.caltech.nanodb.commands.SelectClause;
 import edu.caltech.nanodb.commands.SelectValue;
 import edu.caltech.nanodb.expressions.AggregateReplacementProcessor;
+import edu.caltech.nanodb.expressions.ColumnName;
 import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.PredicateUtils;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.indexes.IndexType;
 import edu.caltech.nanodb.plans.FileScanNode;
+import edu.caltech.nanodb.plans.HashJoinNode;
 import edu.caltech.nanodb.plans.HashedGroupAggregateNode;
+import edu.caltech.nanodb.plans.IndexScanNode;
 import edu.caltech.nanodb.plans.LimitNode;
 import edu.caltech.nanodb.plans.NestedLoopsJoinNode;
 import edu.caltech.nanodb.plans.PlanNode;
@@ -30,8 +41,12 @@ import edu.caltech.nanodb.plans.ProjectNode;
 import edu.caltech.nanodb.plans.RenameNode;
 import edu.caltech.nanodb.plans.SelectNode;
 import edu.caltech.nanodb.plans.SimpleFilterNode;
+import edu.caltech.nanodb.plans.SortMergeJoinNode;
 import edu.caltech.nanodb.plans.SortNode;
+import edu.caltech.nanodb.plans.ThetaJoinNode;
 import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnRefs;
+import edu.caltech.nanodb.relations.ColumnType;
 import edu.caltech.nanodb.relations.JoinType;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.TableInfo;
@@ -50,6 +65,66 @@ public class CostBasedJoinPlanner implements Planner {
     private static Logger logger = Logger.getLogger(CostBasedJoinPlanner.class);
 
 
+    /**
+     * The system property that can be used to specify the largest number of
+     * leaves that a join is planned for with dynamic programming.  Joins of
+     * more leaves than this are planned greedily.
+     */
+    public static final String PROP_GREEDY_THRESHOLD =
+        "nanodb.planner.greedyThreshold";
+
+
+    /**
+     * By default, joins of up to 10 leaves are planned with dynamic
+     * programming.  This takes a fraction of a second when the leaves are
+     * joined in a chain or a star, but several seconds when every pair of
+     * leaves is joined by a conjunct.
+     */
+    public static final int DEFAULT_GREEDY_THRESHOLD = 10;
+
+
+    /**
+     * The largest allowed greedy threshold.  Sets of leaves are represented
+     * as bitsets in a <tt>long</tt> during dynamic programming.
+     */
+    public static final int MAX_GREEDY_THRESHOLD = 63;
+
+
+    /**
+     * Returns the largest number of leaves that a join is planned for with
+     * dynamic programming, from the <tt>nanodb.planner.greedyThreshold</tt>
+     * property.
+     *
+     * @return the greedy threshold
+     */
+    public static int getGreedyThreshold() {
+        int threshold = DEFAULT_GREEDY_THRESHOLD;
+
+        String str = System.getProperty(PROP_GREEDY_THRESHOLD);
+        if (str != null) {
+            try {
+                threshold = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse greedy threshold \"%s\"; using " +
+                    "default value of %d", str, DEFAULT_GREEDY_THRESHOLD));
+            }
+
+            if (threshold < 1 || threshold > MAX_GREEDY_THRESHOLD) {
+                logger.error(String.format(
+                    "Greedy threshold %d is not in the range [1, %d]; " +
+                    "using default value of %d", threshold,
+                    MAX_GREEDY_THRESHOLD, DEFAULT_GREEDY_THRESHOLD));
+
+                threshold = DEFAULT_GREEDY_THRESHOLD;
+            }
+        }
+
+        return threshold;
+    }
+
+
     private StorageManager storageManager;
 
 
@@ -66,21 +141,16 @@ public class CostBasedJoinPlanner implements Planner {
      * the <tt>FROM</tt>-clause of the query.  However, the planner will
      * attempt to push conjuncts down the plan as far as possible, so even if
      * a leaf is a base table, the plan may be a bit more complex than just a
-     * single file-scan.
+     * single file-scan.  The leaves that a component joins are tracked by
+     * the {@link JoinEnumerator}, as bitsets.
      */
     private static class JoinComponent {
         /**
-         * This is the join plan itself, that joins together all leaves
-         * specified in the {@link #leavesUsed} field.
+         * This is the join plan itself, that joins together one or more
+         * leaves of the query.
          */
         public PlanNode joinPlan;
 
-        /**
-         * This field specifies the collection of leaf-plans that are joined by
-         * the plan in this join-component.
-         */
-        public HashSet<PlanNode> leavesUsed;
-
         /**
          * This field specifies the collection of all conjuncts use by this join
          * plan.  It allows us to easily determine what join conjuncts still
@@ -88,48 +158,20 @@ public class CostBasedJoinPlanner implements Planner {
          */
         public HashSet<Expression> conjunctsUsed;
 
-        AggregateReplacementProcessor processor = new AggregateReplacementProcessor();
-
         /**
-         * Constructs a new instance for a <em>leaf node</em>.  It should not
-         * be used for join-plans that join together two or more leaves.  This
-         * constructor simply adds the leaf-plan into the {@link #leavesUsed}
-         * collection.
+         * Constructs a new join component.
          *
-         * @param leafPlan the query plan for this leaf of the query.
+         * @param joinPlan the query plan for this component, which is either
+         *        a leaf plan, or joins together two or more leaves
          *
-         * @param conjunctsUsed the set of conjuncts used by the leaf plan.
-         *        This may be an empty set if no conjuncts apply solely to
-         *        this leaf, or it may be nonempty if some conjuncts apply
-         *        solely to this leaf.
+         * @param conjunctsUsed the set of conjuncts used by the plan.  For a
+         *        leaf plan, this may be an empty set if no conjuncts apply
+         *        solely to this leaf.  Obviously, it is expected that all
+         *        conjuncts specified here can actually be evaluated against
+         *        the plan.
          */
-        public JoinComponent(PlanNode leafPlan, HashSet<Expression> conjunctsUsed) {
-            leavesUsed = new HashSet<PlanNode>();
-            leavesUsed.add(leafPlan);
-
-            joinPlan = leafPlan;
-
-            this.conjunctsUsed = conjunctsUsed;
-        }
-
-        /**
-         * Constructs a new instance for a <em>non-leaf node</em>.  It should
-         * not be used for leaf plans!
-         *
-         * @param joinPlan the query plan that joins together all leaves
-         *        specified in the <tt>leavesUsed</tt> argument.
-         *
-         * @param leavesUsed the set of two or more leaf plans that are joined
-         *        together by the join plan.
-         *
-         * @param conjunctsUsed the set of conjuncts used by the join plan.
-         *        Obviously, it is expected that all conjuncts specified here
-         *        can actually be evaluated against the join plan.
-         */
-        public JoinComponent(PlanNode joinPlan, HashSet<PlanNode> leavesUsed,
-                             HashSet<Expression> conjunctsUsed) {
+        public JoinComponent(PlanNode joinPlan, HashSet<Expression> conjunctsUsed) {
             this.joinPlan = joinPlan;
-            this.leavesUsed = leavesUsed;
             this.conjunctsUsed = conjunctsUsed;
         }
     }
@@ -183,7 +225,7 @@ public class CostBasedJoinPlanner implements Planner {
     private PlanNode planOrderByClause(PlanNode child, SelectClause selClause) {
         List<OrderByExpression> orderExpressions = selClause.getOrderByExprs();
         if (!orderExpressions.isEmpty()) {
-            return new SortNode(child, orderExpressions);
+            return new SortNode(child, orderExpressions, storageManager);
         }
         return child;
     }
@@ -191,6 +233,11 @@ public class CostBasedJoinPlanner implements Planner {
     private PlanNode planLimitClause(PlanNode child, SelectClause selClause) {
     	int limit = selClause.getLimit();
     	if (limit != 0) {
+    		// A sort directly below the limit only needs to keep the first
+    		// tuples.
+    		if (child instanceof SortNode)
+    			((SortNode) child).setLimit(limit);
+
     		return new LimitNode(child, limit);
     	}
     	return child;
@@ -240,10 +287,27 @@ public class CostBasedJoinPlanner implements Planner {
             return child;
         }
 
-        HashedGroupAggregateNode hashNode = new HashedGroupAggregateNode(child, groupByExprs, processor.getGroupAggregates());
+        HashedGroupAggregateNode hashNode = new HashedGroupAggregateNode(child,
+            groupByExprs, processor.getGroupAggregates(), storageManager);
         return hashNode;
     }
 
+    /**
+     * Adds exchanges to a join plan so that its costly parts are run on
+     * several worker threads, if parallel execution is enabled.
+     *
+     * @param joinPlan the prepared join plan
+     * @return the (possibly new) top plan-node for the join plan
+     */
+    private PlanNode planParallelism(PlanNode joinPlan) {
+        int parallelism = QueryEvaluator.getParallelism();
+        if (parallelism <= 1)
+            return joinPlan;
+
+        return PlanUtils.addExchanges(joinPlan, parallelism,
+            QueryEvaluator.getParallelMinCost(), storageManager);
+    }
+
     /**
      * Returns the root of a plan tree suitable for executing the specified
      * query.
@@ -306,7 +370,8 @@ public class CostBasedJoinPlanner implements Planner {
         JoinComponent joinComponent = makeJoinPlan(selClause.getFromClause(), conjuncts);
         conjuncts.removeAll(joinComponent.conjunctsUsed);
 
-        res = planGroupingAggregation(joinComponent.joinPlan, selClause, processor);
+        res = planParallelism(joinComponent.joinPlan);
+        res = planGroupingAggregation(res, selClause, processor);
         logger.debug("    Result plan:  " +
                 PlanNode.printNodeTreeToString(res, true));
         
@@ -491,7 +556,7 @@ public class CostBasedJoinPlanner implements Planner {
      * depending on whether the join is left or right outer join, respectively.
      * We find the conjuncts that apply to this schema then pass these to
      * the recursive calls of makeJoinPlan for the left and right clauses. We
-     * then apply a NestedLoopsJoinNode to combine the JoinComponents returned
+     * then apply a join node to combine the JoinComponents returned
      * for the left and right clauses to perform the correct outer join.
      * 
      * For base tables and select subqueries, we apply a rename node if 
@@ -532,10 +597,32 @@ public class CostBasedJoinPlanner implements Planner {
             if (!baseExprs.isEmpty()) 
             	leafConjuncts.addAll(baseExprs);
             Expression expr = PredicateUtils.makePredicate(baseExprs);
-            
-            node = makeSimpleSelect(fromClause.getTableName(), expr, null);
-            if (fromClause.isRenamed())
-            	node = new RenameNode(node, fromClause.getResultName());
+
+            // Use a hash index for the table if the conjuncts look up a
+            // single key value in it; otherwise just scan the table.
+            node = makeIndexScan(fromClause, baseExprs);
+            if (node != null) {
+                // The conjuncts use the table's result name, so they are
+                // applied above the rename.
+                if (fromClause.isRenamed())
+                    node = new RenameNode(node, fromClause.getResultName());
+                if (expr != null)
+                    node = PlanUtils.addPredicateToPlan(node, expr);
+                node.prepare();
+                break;
+            }
+
+            if (fromClause.isRenamed()) {
+                // The conjuncts use the table's result name, so they can't
+                // be evaluated against the table's own schema.
+                node = makeSimpleSelect(fromClause.getTableName(), null, null);
+                node = new RenameNode(node, fromClause.getResultName());
+                if (expr != null)
+                    node = PlanUtils.addPredicateToPlan(node, expr);
+            }
+            else {
+                node = makeSimpleSelect(fromClause.getTableName(), expr, null);
+            }
             break;
         case SELECT_SUBQUERY:
             node = makePlan(fromClause.getSelectClause(), null);
@@ -550,6 +637,9 @@ public class CostBasedJoinPlanner implements Planner {
             HashSet<Expression> extraConjuncts = new HashSet<Expression>();
             schema = null;
             
+            boolean fullOuter = fromClause.hasOuterJoinOnLeft() &&
+                fromClause.hasOuterJoinOnRight();
+
             if (fromClause.hasOuterJoinOnLeft()) 
                 schema = fromLeft.getPreparedSchema();
             else if (fromClause.hasOuterJoinOnRight()) 
@@ -558,8 +648,10 @@ public class CostBasedJoinPlanner implements Planner {
             // Only pass in conjuncts that correspond to the child from-clause
             // that is outer joined (i.e. left or right), per the equivalence
             // rule sigma_theta1(E1 LOJ E2) = sigma_theta1(E1) LOJ E2, where 
-            // theta1 refers only to attributes in E1. 
-            PredicateUtils.findExprsUsingSchemas(conjunctsCopy, true, extraConjuncts, schema);
+            // theta1 refers only to attributes in E1.  No conjuncts can be
+            // pushed below a full outer join.
+            if (!fullOuter)
+                PredicateUtils.findExprsUsingSchemas(conjunctsCopy, true, extraConjuncts, schema);
             JoinComponent left = makeJoinPlan(fromLeft, 
             		fromClause.hasOuterJoinOnLeft() ? extraConjuncts : null);
             JoinComponent right = makeJoinPlan(fromRight, 
@@ -571,15 +663,18 @@ public class CostBasedJoinPlanner implements Planner {
             PlanNode leftNode = left.joinPlan;
             PlanNode rightNode = right.joinPlan;
 
-            // Combine the two JoinComponent objects.
-            node = new NestedLoopsJoinNode(leftNode, rightNode,
-                    JoinType.LEFT_OUTER, fromClause.getPreparedJoinExpr());
-            if (fromClause.hasOuterJoinOnRight()) {
-                // Right outer is not implemented in the NestedLoopsJoinNode, so
-                // just do a left outer and call swap() to swap the left and right
-                // children.
-                NestedLoopsJoinNode joinNode = (NestedLoopsJoinNode) node;
-                joinNode.swap();
+            // Combine the two JoinComponent objects.  Right outer joins
+            // aren't implemented by most of the join nodes, so just do a
+            // left outer join and swap the left and right children.  Full
+            // outer joins can only be done with a sort-merge join.
+            if (fullOuter) {
+                node = makeJoinNode(leftNode, rightNode, JoinType.FULL_OUTER,
+                    fromClause.getPreparedJoinExpr(), false);
+            }
+            else {
+                node = makeJoinNode(leftNode, rightNode, JoinType.LEFT_OUTER,
+                    fromClause.getPreparedJoinExpr(),
+                    fromClause.hasOuterJoinOnRight());
             }
             break;
         default:
@@ -606,14 +701,21 @@ public class CostBasedJoinPlanner implements Planner {
 
 
     /**
-     * This helper method builds up a full join-plan using a dynamic programming
-     * approach.  The implementation maintains a collection of optimal
-     * intermediate plans that join <em>n</em> of the leaf nodes, each with its
-     * own associated cost, and then uses that collection to generate a new
-     * collection of optimal intermediate plans that join <em>n+1</em> of the
-     * leaf nodes.  This process completes when all leaf plans are joined
-     * together; there will be <em>one</em> plan, and it will be the optimal
-     * join plan (as far as our limited estimates can determine, anyway).
+     * This helper method builds up a full join-plan from the leaf plans of
+     * the query.  The leaves and the conjuncts that join them form a <em>join
+     * graph</em>, which is planned with the DPccp dynamic programming
+     * algorithm of Moerkotte and Neumann.  DPccp enumerates each pair of
+     * disjoint, connected sets of leaves that a conjunct joins together
+     * exactly once, so no cross products are considered, and since either
+     * set may hold several leaves, bushy plans are considered as well as
+     * left-deep ones.  The best plans for each set of leaves are memoized in
+     * a {@link JoinMemoEntry}, so that each subplan is only built once.
+     * <p>
+     * If the join graph isn't connected, the plans of its connected parts
+     * are joined together with {@link #generateGreedyJoin}.  Dynamic
+     * programming can take time exponential in the number of leaves, so a
+     * query with more leaves than the {@link #getGreedyThreshold greedy
+     * threshold} is planned greedily from the start.
      *
      * @param leafComponents the collection of leaf join-components, generated
      *        by the {@link #generateLeafJoinComponents} method.
@@ -626,95 +728,824 @@ public class CostBasedJoinPlanner implements Planner {
     private JoinComponent generateOptimalJoin(
         ArrayList<JoinComponent> leafComponents, Set<Expression> conjuncts) {
 
-        // This object maps a collection of leaf-plans (represented as a
-        // hash-set) to the optimal join-plan for that collection of leaf plans.
-        //
-        // This collection starts out only containing the leaf plans themselves,
-        // and on each iteration of the loop below, join-plans are grown by one
-        // leaf.  For example:
-        //   * In the first iteration, all plans joining 2 leaves are created.
-        //   * In the second iteration, all plans joining 3 leaves are created.
-        //   * etc.
-        // At the end, the collection will contain ONE entry, which is the
-        // optimal way to join all N leaves.  Go Go Gadget Dynamic Programming!
+        for (JoinComponent leafComponent: leafComponents) {
+            logger.debug(String.format("Leaf components received: %s", leafComponent.joinPlan));
+        }
 
-        HashMap<HashSet<PlanNode>, JoinComponent> joinPlans =
-            new HashMap<HashSet<PlanNode>, JoinComponent>();
+        if (leafComponents.size() == 1)
+            return leafComponents.get(0);
 
-        // Initially populate joinPlans with just the N leaf plans.
-        for (JoinComponent leaf : leafComponents) {
-            joinPlans.put(leaf.leavesUsed, leaf);
-        }
+        int greedyThreshold = getGreedyThreshold();
+        if (leafComponents.size() > greedyThreshold) {
+            logger.debug(String.format("Query joins %d leaves, more than " +
+                "the greedy threshold of %d; planning greedily",
+                leafComponents.size(), greedyThreshold));
 
-        for (JoinComponent leafComponent: leafComponents) {
-            logger.debug(String.format("Leaf components received: %s", leafComponent.joinPlan));
+            return generateGreedyJoin(leafComponents, conjuncts);
         }
 
+        JoinEnumerator enumerator =
+            new JoinEnumerator(leafComponents, conjuncts);
+        List<JoinComponent> parts = enumerator.enumerate();
+
+        if (parts.size() == 1)
+            return parts.get(0);
+
+        logger.debug("Join graph has " + parts.size() + " connected parts; " +
+            "joining them with cross products");
+        return generateGreedyJoin(parts, conjuncts);
+    }
+
+
+    /**
+     * This helper method builds up a join-plan greedily, by repeatedly
+     * joining the two components whose join produces the fewest rows, so
+     * that the intermediate results stay small.  Pairs of components that a
+     * conjunct joins together are always preferred to cross products.  This
+     * takes time polynomial in the number of components, but may miss the
+     * optimal plan.
+     *
+     * @param components the join components to join together
+     *
+     * @param conjuncts the collection of all conjuncts found in the query
+     *
+     * @return a single {@link JoinComponent} object that joins all of the
+     *         components together
+     */
+    private JoinComponent generateGreedyJoin(List<JoinComponent> components,
+                                             Set<Expression> conjuncts) {
+
+        ArrayList<JoinComponent> remaining =
+            new ArrayList<JoinComponent>(components);
 
-        while (joinPlans.size() > 1) {
-            logger.debug("Current set of join-plans has " + joinPlans.size() +
-                " plans in it.");
+        while (remaining.size() > 1) {
+            JoinComponent bestJoin = null;
+            boolean bestConnected = false;
+            int bestLeft = -1;
+            int bestRight = -1;
 
-            // This is the set of "next plans" we will generate.  Plans only
-            // get stored if they are the first plan that joins together the
-            // specified leaves, or if they are better than the current plan.
-            HashMap<HashSet<PlanNode>, JoinComponent> nextJoinPlans =
-                new HashMap<HashSet<PlanNode>, JoinComponent>();
+            for (int i = 0; i < remaining.size(); i++) {
+                for (int j = i + 1; j < remaining.size(); j++) {
+                    JoinComponent left = remaining.get(i);
+                    JoinComponent right = remaining.get(j);
 
-            for (HashSet<PlanNode> leafSet : joinPlans.keySet()) {
-                JoinComponent jc = joinPlans.get(leafSet);
-                for (JoinComponent leaf : leafComponents) {
-                    if (leafSet.contains(leaf.joinPlan)) {
+                    HashSet<Expression> unusedConjuncts =
+                        new HashSet<Expression>(conjuncts);
+                    unusedConjuncts.removeAll(left.conjunctsUsed);
+                    unusedConjuncts.removeAll(right.conjunctsUsed);
+
+                    HashSet<Expression> exprs = new HashSet<Expression>();
+                    PredicateUtils.findExprsUsingSchemas(unusedConjuncts,
+                        false, exprs, left.joinPlan.getSchema(),
+                        right.joinPlan.getSchema());
+
+                    boolean connected = !exprs.isEmpty();
+                    if (bestConnected && !connected)
                         continue;
+
+                    JoinComponent join = joinComponents(left, right, exprs);
+                    if (bestJoin == null || (connected && !bestConnected) ||
+                        isSmallerJoin(join, bestJoin)) {
+                        bestJoin = join;
+                        bestConnected = connected;
+                        bestLeft = i;
+                        bestRight = j;
                     }
-                    Expression expr = null;
+                }
+            }
 
-                    HashSet<Expression> subplanConjuncts = new HashSet<Expression>(jc.conjunctsUsed);
-                    subplanConjuncts.addAll(new HashSet<Expression>(leaf.conjunctsUsed));
-                    HashSet<Expression> unusedConjuncts = new HashSet<Expression>(conjuncts);
-                    unusedConjuncts.removeAll(subplanConjuncts);
+            // Remove the right component first, since it comes after the
+            // left one in the list.
+            remaining.remove(bestRight);
+            remaining.remove(bestLeft);
+            remaining.add(bestJoin);
+        }
 
-                    // Conjuncts applicable to the join of the two subplans.
-                    HashSet<Expression> exprs = new HashSet<Expression>();
-                    PredicateUtils.findExprsUsingSchemas(unusedConjuncts, false, exprs, jc.joinPlan.getSchema(), leaf.joinPlan.getSchema());
-                    expr = PredicateUtils.makePredicate(exprs);
-
-                    PlanNode newPlan = new NestedLoopsJoinNode(jc.joinPlan, leaf.joinPlan, JoinType.INNER, expr);
-                    newPlan.prepare();
-                    float newCost = newPlan.getCost().cpuCost;
-
-                    HashSet<PlanNode> unionLeafSet = new HashSet<PlanNode>(leafSet);
-                    HashSet<Expression> newConjuncts = new HashSet<Expression>(subplanConjuncts);
-                    newConjuncts.addAll(exprs);
-                    unionLeafSet.add(leaf.joinPlan);
-                    if (nextJoinPlans.containsKey(unionLeafSet)) {
-                        JoinComponent bestJC = nextJoinPlans.get(unionLeafSet);
-                        float bestCost = nextJoinPlans.get(unionLeafSet).joinPlan.getCost().cpuCost;
-                        if (newCost < bestCost) {
-                            logger.debug(String.format("Found better cost: newCost %f, bestCost %f", newCost, bestCost));
-                            newConjuncts.addAll(exprs);
-                            JoinComponent newJC = new JoinComponent(newPlan, newConjuncts);
-                            newJC.leavesUsed = unionLeafSet;
-                            nextJoinPlans.put(unionLeafSet, newJC);
-                        }
-                    } else {
-                        JoinComponent newJC = new JoinComponent(newPlan, newConjuncts);
-                        newJC.leavesUsed = unionLeafSet;
-                        nextJoinPlans.put(unionLeafSet, newJC);
+        return remaining.get(0);
+    }
+
+
+    /**
+     * Returns true if the first join produces fewer rows than the second, or
+     * the same number of rows at a lower CPU cost.
+     */
+    private static boolean isSmallerJoin(JoinComponent join1,
+                                         JoinComponent join2) {
+        PlanCost cost1 = join1.joinPlan.getCost();
+        PlanCost cost2 = join2.joinPlan.getCost();
+
+        if (cost1.numTuples != cost2.numTuples)
+            return cost1.numTuples < cost2.numTuples;
+
+        return cost1.cpuCost < cost2.cpuCost;
+    }
+
+
+    /**
+     * This helper joins two join components with the specified conjuncts,
+     * trying both components as the left child of the join, and returns the
+     * cheaper of the two plans.
+     *
+     * @param left the first component to join
+     *
+     * @param right the second component to join
+     *
+     * @param exprs the conjuncts that join the two components, which may be
+     *        empty for a cross product
+     *
+     * @return a component holding the cheaper join plan
+     */
+    private JoinComponent joinComponents(JoinComponent left,
+        JoinComponent right, Collection<Expression> exprs) {
+
+        JoinComponent join = makeJoinComponent(left, right, exprs);
+        JoinComponent swappedJoin = makeJoinComponent(right, left, exprs);
+
+        if (swappedJoin.joinPlan.getCost().cpuCost <
+            join.joinPlan.getCost().cpuCost) {
+            join = swappedJoin;
+        }
+        return join;
+    }
+
+
+    /**
+     * This helper joins two join components with the specified conjuncts,
+     * with the first component as the left child of the join.
+     *
+     * @param left the component to use as the left child of the join
+     *
+     * @param right the component to use as the right child of the join
+     *
+     * @param exprs the conjuncts that join the two components, which may be
+     *        empty for a cross product
+     *
+     * @return a component holding the join plan
+     */
+    private JoinComponent makeJoinComponent(JoinComponent left,
+        JoinComponent right, Collection<Expression> exprs) {
+
+        PlanNode plan = makeJoinNode(left.joinPlan, right.joinPlan,
+            JoinType.INNER, PredicateUtils.makePredicate(exprs), false);
+
+        HashSet<Expression> conjunctsUsed =
+            new HashSet<Expression>(left.conjunctsUsed);
+        conjunctsUsed.addAll(right.conjunctsUsed);
+        conjunctsUsed.addAll(exprs);
+
+        return new JoinComponent(plan, conjunctsUsed);
+    }
+
+
+    /**
+     * This helper class memoizes the best plans found for one set of leaves
+     * in the dynamic programming algorithm.  Besides the cheapest plan, the
+     * cheapest plan producing each different ordering of its results is
+     * kept, since an ordered plan that costs more may allow a sort-merge join
+     * higher up the plan, making the whole plan cheaper.
+     */
+    private static class JoinMemoEntry {
+        /** The cheapest plan found for the set of leaves. */
+        private JoinComponent best;
+
+        /**
+         * The cheapest plan found for each ordering of the results, keyed on
+         * the string form of the ordering.
+         */
+        private HashMap<String, JoinComponent> ordered =
+            new HashMap<String, JoinComponent>();
+
+        /**
+         * Records a plan for the set of leaves, if it is cheaper than the
+         * plans already recorded.
+         *
+         * @param component the plan to record
+         */
+        public void addPlan(JoinComponent component) {
+            float cost = component.joinPlan.getCost().cpuCost;
+            if (best == null || cost < best.joinPlan.getCost().cpuCost)
+                best = component;
+
+            List<OrderByExpression> order =
+                component.joinPlan.resultsOrderedBy();
+            if (order != null && !order.isEmpty()) {
+                String key = order.toString();
+                JoinComponent current = ordered.get(key);
+                if (current == null ||
+                    cost < current.joinPlan.getCost().cpuCost) {
+                    ordered.put(key, component);
+                }
+            }
+        }
+
+        /** Returns the cheapest plan found for the set of leaves. */
+        public JoinComponent getBest() {
+            return best;
+        }
+
+        /**
+         * Returns the plans that are worth joining with other subplans:  the
+         * cheapest plan, and the cheapest plan for each ordering.
+         */
+        public List<JoinComponent> getCandidates() {
+            ArrayList<JoinComponent> candidates = new ArrayList<JoinComponent>();
+            candidates.add(best);
+            for (JoinComponent component : ordered.values()) {
+                if (component != best)
+                    candidates.add(component);
+            }
+            return candidates;
+        }
+    }
+
+
+    /**
+     * This helper class implements the DPccp join enumeration algorithm over
+     * the leaves of a query.  Sets of leaves are represented as bitsets in a
+     * <tt>long</tt>, where bit <em>i</em> is set if leaf <em>i</em> is in
+     * the set; this is why the {@link #getGreedyThreshold greedy threshold}
+     * can't be more than {@link #MAX_GREEDY_THRESHOLD}.  The leaves are
+     * numbered in breadth-first order over the join graph, as DPccp
+     * requires.
+     */
+    private class JoinEnumerator {
+        /** The leaf components, in breadth-first order over the join graph. */
+        private ArrayList<JoinComponent> leaves;
+
+        /**
+         * The set of leaves that each leaf shares a join conjunct with,
+         * indexed by leaf.
+         */
+        private long[] neighbors;
+
+        /**
+         * The conjuncts that join two or more leaves together, and haven't
+         * been applied within a leaf plan.
+         */
+        private ArrayList<Expression> joinConjuncts;
+
+        /** The set of leaves that each join conjunct refers to. */
+        private long[] conjunctLeaves;
+
+        /**
+         * The pairs of sets of leaves to join, generated by the enumeration
+         * and bucketed by the total number of leaves in the pair.  Each pair
+         * is a two-element array of bitsets.
+         */
+        private ArrayList<ArrayList<long[]>> pairs;
+
+        /** The best plans found for each set of leaves. */
+        private HashMap<Long, JoinMemoEntry> memo;
+
+
+        /**
+         * Builds the join graph of the leaves and the conjuncts.
+         *
+         * @param leafComponents the leaf components to join; there may be at
+         *        most {@link #MAX_GREEDY_THRESHOLD} of them
+         *
+         * @param conjuncts the collection of all conjuncts found in the query
+         */
+        public JoinEnumerator(List<JoinComponent> leafComponents,
+                              Set<Expression> conjuncts) {
+
+            HashSet<Expression> unusedConjuncts =
+                new HashSet<Expression>(conjuncts);
+            for (JoinComponent leaf : leafComponents)
+                unusedConjuncts.removeAll(leaf.conjunctsUsed);
+
+            // Find the leaves that each conjunct refers to.  A conjunct that
+            // refers to columns outside of the leaves, such as a correlated
+            // column of an enclosing query, is left for the caller to apply.
+            joinConjuncts = new ArrayList<Expression>();
+            ArrayList<Long> masks = new ArrayList<Long>();
+            ArrayList<ColumnName> symbols = new ArrayList<ColumnName>();
+            for (Expression conjunct : unusedConjuncts) {
+                symbols.clear();
+                conjunct.getAllSymbols(symbols);
+
+                long mask = 0;
+                boolean complete = true;
+                for (ColumnName colName : symbols) {
+                    long colMask = 0;
+                    for (int i = 0; i < leafComponents.size(); i++) {
+                        Schema schema = leafComponents.get(i).joinPlan.getSchema();
+                        if (schema.getColumnIndex(colName) != -1)
+                            colMask |= 1L << i;
+                    }
+
+                    if (colMask == 0)
+                        complete = false;
+
+                    mask |= colMask;
+                }
+
+                if (complete && Long.bitCount(mask) >= 2) {
+                    joinConjuncts.add(conjunct);
+                    masks.add(mask);
+                }
+            }
+
+            // Number the leaves in breadth-first order, starting a new search
+            // from the first unvisited leaf for each connected part.
+            int numLeaves = leafComponents.size();
+            long[] adjacent = findNeighbors(numLeaves, masks);
+
+            int[] order = new int[numLeaves];
+            int[] newIndexes = new int[numLeaves];
+            long visited = 0;
+            int numOrdered = 0;
+            for (int start = 0; start < numLeaves; start++) {
+                if ((visited & (1L << start)) != 0)
+                    continue;
+
+                visited |= 1L << start;
+                order[numOrdered++] = start;
+                for (int next = numOrdered - 1; next < numOrdered; next++) {
+                    long unvisited = adjacent[order[next]] & ~visited;
+                    while (unvisited != 0) {
+                        int i = Long.numberOfTrailingZeros(unvisited);
+                        unvisited &= unvisited - 1;
+
+                        visited |= 1L << i;
+                        order[numOrdered++] = i;
                     }
                 }
             }
 
-            // Now that we have generated all plans joining N leaves, time to
-            // create all plans joining N + 1 leaves.
-            joinPlans = nextJoinPlans;
+            leaves = new ArrayList<JoinComponent>();
+            for (int i = 0; i < numLeaves; i++) {
+                leaves.add(leafComponents.get(order[i]));
+                newIndexes[order[i]] = i;
+            }
+
+            conjunctLeaves = new long[masks.size()];
+            for (int k = 0; k < masks.size(); k++) {
+                long mask = masks.get(k);
+                long newMask = 0;
+                while (mask != 0) {
+                    int i = Long.numberOfTrailingZeros(mask);
+                    mask &= mask - 1;
+                    newMask |= 1L << newIndexes[i];
+                }
+                conjunctLeaves[k] = newMask;
+            }
+
+            neighbors = findNeighbors(numLeaves, conjunctLeaves);
+        }
+
+
+        /**
+         * Returns the set of leaves that each leaf shares a join conjunct
+         * with.
+         */
+        private long[] findNeighbors(int numLeaves, List<Long> masks) {
+            long[] array = new long[masks.size()];
+            for (int k = 0; k < array.length; k++)
+                array[k] = masks.get(k);
+            return findNeighbors(numLeaves, array);
+        }
+
+
+        /**
+         * Returns the set of leaves that each leaf shares a join conjunct
+         * with.
+         */
+        private long[] findNeighbors(int numLeaves, long[] masks) {
+            long[] result = new long[numLeaves];
+            for (long mask : masks) {
+                long bits = mask;
+                while (bits != 0) {
+                    int i = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    result[i] |= mask & ~(1L << i);
+                }
+            }
+            return result;
+        }
+
+
+        /**
+         * Plans the joins of the leaves.
+         *
+         * @return the best plan for each connected part of the join graph
+         */
+        public List<JoinComponent> enumerate() {
+            int numLeaves = leaves.size();
+
+            memo = new HashMap<Long, JoinMemoEntry>();
+            pairs = new ArrayList<ArrayList<long[]>>();
+            for (int size = 0; size <= numLeaves; size++)
+                pairs.add(new ArrayList<long[]>());
+
+            for (int i = 0; i < numLeaves; i++) {
+                JoinMemoEntry entry = new JoinMemoEntry();
+                entry.addPlan(leaves.get(i));
+                memo.put(1L << i, entry);
+            }
+
+            // Enumerate the connected sets of leaves, and the pairs of sets
+            // that can be joined.
+            for (int i = numLeaves - 1; i >= 0; i--) {
+                long leaf = 1L << i;
+                emitSubgraph(leaf);
+                enumerateSubgraphs(leaf, (leaf << 1) - 1);
+            }
+
+            // Plan the pairs, smallest first, so that the plans for both
+            // sides of a pair are always complete before the pair is joined.
+            for (ArrayList<long[]> bucket : pairs) {
+                for (long[] pair : bucket)
+                    joinPair(pair[0], pair[1]);
+            }
+
+            // Pick out the plans that join each connected part of the graph.
+            ArrayList<JoinComponent> parts = new ArrayList<JoinComponent>();
+            long remaining = (1L << numLeaves) - 1;
+            while (remaining != 0) {
+                long part = connectedPart(remaining & -remaining);
+                parts.add(memo.get(part).getBest());
+                remaining &= ~part;
+            }
+            return parts;
+        }
+
+
+        /** Returns the leaves adjacent to the specified set of leaves. */
+        private long neighborhood(long set) {
+            long result = 0;
+            long bits = set;
+            while (bits != 0) {
+                int i = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                result |= neighbors[i];
+            }
+            return result & ~set;
+        }
+
+
+        /**
+         * Returns the connected part of the join graph that contains the
+         * specified leaves.
+         */
+        private long connectedPart(long set) {
+            long part = set;
+            long next = neighborhood(part);
+            while (next != 0) {
+                part |= next;
+                next = neighborhood(part);
+            }
+            return part;
+        }
+
+
+        /**
+         * Enumerates the connected sets of leaves that grow the specified
+         * set with leaves not in the excluded set.
+         */
+        private void enumerateSubgraphs(long set, long excluded) {
+            long next = neighborhood(set) & ~excluded;
+            for (long sub = next; sub != 0; sub = (sub - 1) & next)
+                emitSubgraph(set | sub);
+
+            for (long sub = next; sub != 0; sub = (sub - 1) & next)
+                enumerateSubgraphs(set | sub, excluded | next);
+        }
+
+
+        /**
+         * Enumerates the connected sets of leaves that can be joined with the
+         * specified connected set, each of them only once.
+         */
+        private void emitSubgraph(long set) {
+            long lowest = set & -set;
+            long excluded = set | ((lowest << 1) - 1);
+            long next = neighborhood(set) & ~excluded;
+
+            for (int i = 63 - Long.numberOfLeadingZeros(next); i >= 0; i--) {
+                long leaf = 1L << i;
+                if ((next & leaf) == 0)
+                    continue;
+
+                addPair(set, leaf);
+                enumerateComplements(set, leaf,
+                    excluded | (next & ((leaf << 1) - 1)));
+            }
+        }
+
+
+        /**
+         * Enumerates the connected sets of leaves that grow the complement
+         * of the specified set with leaves not in the excluded set.
+         */
+        private void enumerateComplements(long set, long complement,
+                                          long excluded) {
+            long next = neighborhood(complement) & ~excluded;
+            for (long sub = next; sub != 0; sub = (sub - 1) & next)
+                addPair(set, complement | sub);
+
+            for (long sub = next; sub != 0; sub = (sub - 1) & next)
+                enumerateComplements(set, complement | sub, excluded | next);
+        }
+
+
+        /** Records a pair of sets of leaves to join. */
+        private void addPair(long set1, long set2) {
+            int size = Long.bitCount(set1 | set2);
+            pairs.get(size).add(new long[] {set1, set2});
+        }
+
+
+        /**
+         * Joins the memoized plans of two sets of leaves, and memoizes the
+         * resulting plans for the union of the sets.
+         */
+        private void joinPair(long set1, long set2) {
+            long union = set1 | set2;
+
+            // Find the conjuncts that join the two sets.
+            ArrayList<Expression> exprs = new ArrayList<Expression>();
+            for (int k = 0; k < conjunctLeaves.length; k++) {
+                long mask = conjunctLeaves[k];
+                if ((mask & ~union) == 0 && (mask & set1) != 0 &&
+                    (mask & set2) != 0) {
+                    exprs.add(joinConjuncts.get(k));
+                }
+            }
+
+            JoinMemoEntry entry = memo.get(union);
+            if (entry == null) {
+                entry = new JoinMemoEntry();
+                memo.put(union, entry);
+            }
+
+            // Both sides of the pair may be the left child of the join, and
+            // every ordering of the results is worth keeping.
+            for (JoinComponent left : memo.get(set1).getCandidates()) {
+                for (JoinComponent right : memo.get(set2).getCandidates()) {
+                    entry.addPlan(makeJoinComponent(left, right, exprs));
+                    entry.addPlan(makeJoinComponent(right, left, exprs));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * This helper chooses how to join two subplans.  A nested-loop join can
+     * evaluate any join predicate, but if the predicate contains equi-join
+     * conditions then a hash join is also considered, and whichever plan has
+     * the lower CPU cost is returned.  If both subplans already produce
+     * their results ordered on the equi-join columns, a sort-merge join is
+     * preferred instead, since it only reads each input once and buffers
+     * very little.  Full outer joins always use a sort-merge join, sorting
+     * the subplans first if necessary.
+     * <p>
+     * The subplans must already be prepared, and are not prepared again, so
+     * that trying many joins of the same subplans stays cheap.
+     *
+     * @param leftChild the prepared left subplan of the join
+     *
+     * @param rightChild the prepared right subplan of the join
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate, or {@code null} if there is none
+     *
+     * @param swap if true, the join's children are swapped after the node is
+     *        created, so that a left-outer join can compute a right-outer
+     *        join
+     *
+     * @return the prepared join node
+     */
+    private ThetaJoinNode makeJoinNode(PlanNode leftChild, PlanNode rightChild,
+        JoinType joinType, Expression predicate, boolean swap) {
+
+        ThetaJoinNode bestPlan = new NestedLoopsJoinNode(leftChild, rightChild,
+            joinType, predicate);
+        if (swap)
+            bestPlan.swap();
+        bestPlan.prepareJoin();
+
+        if (predicate != null) {
+            HashJoinNode hashPlan = new HashJoinNode(leftChild, rightChild,
+                joinType, predicate, storageManager);
+            if (swap)
+                hashPlan.swap();
+            hashPlan.prepareJoin();
+
+            if (hashPlan.hasJoinKeys() &&
+                hashPlan.getCost().cpuCost < bestPlan.getCost().cpuCost) {
+                bestPlan = hashPlan;
+            }
+
+            // A sort-merge join can only be used without sorting if both
+            // subplans produce ordered results.
+            boolean ordered = leftChild.resultsOrderedBy() != null &&
+                rightChild.resultsOrderedBy() != null;
+
+            if (ordered || joinType == JoinType.FULL_OUTER) {
+                SortMergeJoinNode mergePlan = new SortMergeJoinNode(leftChild,
+                    rightChild, joinType, predicate);
+                if (swap)
+                    mergePlan.swap();
+                if (joinType == JoinType.FULL_OUTER) {
+                    // The sorts wrapped around the subplans need preparing too.
+                    mergePlan.sortInputs(storageManager);
+                    mergePlan.prepare();
+                }
+                else {
+                    mergePlan.prepareJoin();
+                }
+
+                if (mergePlan.hasJoinKeys())
+                    bestPlan = mergePlan;
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Chose join plan " + bestPlan + " with cost " +
+                bestPlan.getCost());
         }
 
-        // At this point, the set of join plans should only contain one plan,
-        // and it should be the optimal plan.
+        return bestPlan;
+    }
+
+
+    /**
+     * Looks for a hash index on a base table that can be used to evaluate
+     * the specified conjuncts.  A hash index can only be used for equality
+     * lookups, so every column of the index must be compared for equality
+     * against a non-null literal value by one of the conjuncts.  The
+     * conjuncts are still applied to the results of the index scan, so the
+     * caller doesn't need to know which ones were used.
+     *
+     * @param fromClause the base-table from-clause to plan
+     *
+     * @param conjuncts the conjuncts that apply to the base table
+     *
+     * @return an index-scan node that looks up the key value, or
+     *         {@code null} if no hash index can be used
+     *
+     * @throws IOException if an error occurs when loading index information
+     */
+    private PlanNode makeIndexScan(FromClause fromClause,
+        Collection<Expression> conjuncts) throws IOException {
+
+        if (conjuncts.isEmpty())
+            return null;
+
+        Schema schema = fromClause.getPreparedSchema();
+
+        // Find the literal value that each column is compared to, if any.
+        HashMap<Integer, Object> colValues = new HashMap<Integer, Object>();
+        for (Expression e : conjuncts) {
+            if (!(e instanceof CompareOperator))
+                continue;
+
+            CompareOperator cmp = (CompareOperator) e;
+            if (cmp.getType() != CompareOperator.Type.EQUALS)
+                continue;
+
+            Expression lhs = cmp.getLeftExpression();
+            Expression rhs = cmp.getRightExpression();
+            if (rhs instanceof ColumnValue && lhs instanceof LiteralValue) {
+                Expression tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+            }
+
+            if (!(lhs instanceof ColumnValue && rhs instanceof LiteralValue))
+                continue;
+
+            Object value = ((LiteralValue) rhs).evaluate(null);
+            if (value == null)
+                continue;
+
+            int colIndex =
+                schema.getColumnIndex(((ColumnValue) lhs).getColumnName());
+            if (colIndex == -1)
+                continue;
+
+            // The index compares and hashes the value as the column's type.
+            // If the value can't be represented exactly in that type, the
+            // index can't find the matching rows.
+            value = convertToColumnType(value,
+                schema.getColumnInfo(colIndex).getType());
+            if (value != null)
+                colValues.put(colIndex, value);
+        }
+
+        if (colValues.isEmpty())
+            return null;
+
+        TableInfo tableInfo =
+            storageManager.getTableManager().openTable(fromClause.getTableName());
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        for (String indexName : tableInfo.getSchema().getIndexNames()) {
+            ColumnRefs colRefs = tableInfo.getSchema().getIndex(indexName);
+
+            // Make sure the index covers only columns with a lookup value
+            // before bothering to open it.
+            boolean usable = true;
+            for (int i = 0; i < colRefs.size(); i++) {
+                if (!colValues.containsKey(colRefs.getCol(i))) {
+                    usable = false;
+                    break;
+                }
+            }
+            if (!usable)
+                continue;
+
+            IndexInfo indexInfo = indexManager.openIndex(tableInfo, indexName);
+            if (indexInfo.getIndexType() != IndexType.HASHED_INDEX)
+                continue;
+
+            TupleLiteral key = new TupleLiteral(colRefs.size());
+            for (int i = 0; i < colRefs.size(); i++)
+                key.setColumnValue(i, colValues.get(colRefs.getCol(i)));
+
+            logger.debug("Using hash index " + indexName + " on table " +
+                fromClause.getTableName() + " with key " + key);
+
+            return new IndexScanNode(indexInfo, key);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Converts a value that a column is compared to into the column's type,
+     * so that an index lookup compares and hashes the value the same way as
+     * the column's values.
+     *
+     * @param value the value to convert
+     *
+     * @param colType the type of the column
+     *
+     * @return the converted value, or {@code null} if the value can't be
+     *         represented exactly in the column's type, such as 2.5 for an
+     *         <tt>INTEGER</tt> column
+     */
+    private static Object convertToColumnType(Object value,
+                                              ColumnType colType) {
+        Object converted;
+        try {
+            switch (colType.getBaseType()) {
+            case TINYINT:
+                converted = TypeConverter.getByteValue(value);
+                break;
+
+            case SMALLINT:
+                converted = TypeConverter.getShortValue(value);
+                break;
+
+            case INTEGER:
+                converted = TypeConverter.getIntegerValue(value);
+                break;
+
+            case BIGINT:
+                converted = TypeConverter.getLongValue(value);
+                break;
+
+            case FLOAT:
+                converted = TypeConverter.getFloatValue(value);
+                break;
+
+            case DOUBLE:
+                converted = TypeConverter.getDoubleValue(value);
+                break;
+
+            case CHAR:
+            case VARCHAR:
+            case TEXT:
+                // A string column compared to a number is compared
+                // numerically, which a lookup on the string can't do.
+                if (!(value instanceof String))
+                    return null;
+
+                converted = value;
+                break;
+
+            default:
+                converted = value;
+            }
+
+            // Make sure the conversion didn't truncate or round the value.
+            if (!converted.getClass().equals(value.getClass())) {
+                TypeConverter.Pair pair =
+                    TypeConverter.coerceComparison(converted, value);
+                if (!pair.value1.equals(pair.value2))
+                    return null;
+            }
+        }
+        catch (TypeCastException e) {
+            return null;
+        }
 
-        assert joinPlans.size() == 1 : "There can be only one optimal join plan!";
-        return joinPlans.values().iterator().next();
+        return converted;
     }
 
 
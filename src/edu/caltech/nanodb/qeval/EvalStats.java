@@ -3,8 +3,8 @@ package edu.caltech.nanodb.qeval;
 
 /**
  * This class holds statistics generated from a query evaluation operation,
- * such as the number of rows fetched and the total time to perform the
- * evaluation.
+ * such as the number of rows fetched, the total time to perform the
+ * evaluation, and the time spent planning the query beforehand.
  */
 public class EvalStats {
 
@@ -15,6 +15,13 @@ public class EvalStats {
     /** The total time elapsed for query evaluation, in nanoseconds. */
     private long elapsedTimeNanos;
 
+
+    /**
+     * The time spent planning the query before it was evaluated, in
+     * nanoseconds, or 0 if it wasn't recorded.
+     */
+    private long planningTimeNanos;
+
     
     public EvalStats(int rowsProduced, long elapsedTimeNanos) {
         this.rowsProduced = rowsProduced;
@@ -36,4 +43,19 @@ public class EvalStats {
         // 1 second contains 10^9 nanoseconds
         return (float) elapsedTimeNanos / 1e9f;
     }
+
+
+    public long getPlanningTimeNanos() {
+        return planningTimeNanos;
+    }
+
+
+    public void setPlanningTimeNanos(long planningTimeNanos) {
+        this.planningTimeNanos = planningTimeNanos;
+    }
+
+
+    public float getPlanningTimeSecs() {
+        return (float) planningTimeNanos / 1e9f;
+    }
 }
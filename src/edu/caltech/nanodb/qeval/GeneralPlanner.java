@@ -179,7 +179,8 @@ public class GeneralPlanner implements Planner {
             return child;
         }
 
-        HashedGroupAggregateNode hashNode = new HashedGroupAggregateNode(child, groupByExprs, processor.getGroupAggregates());
+        HashedGroupAggregateNode hashNode = new HashedGroupAggregateNode(child,
+            groupByExprs, processor.getGroupAggregates(), storageManager);
         return hashNode;
     }
 
@@ -221,7 +222,7 @@ public class GeneralPlanner implements Planner {
     private PlanNode planOrderByClause(PlanNode child, SelectClause selClause) {
         List<OrderByExpression> orderExpressions = selClause.getOrderByExprs();
         if (!orderExpressions.isEmpty()) {
-            return new SortNode(child, orderExpressions);
+            return new SortNode(child, orderExpressions, storageManager);
         }
         return child;
     }
@@ -0,0 +1,212 @@
+package edu.caltech.nanodb.qeval;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
+
+
+/**
+ * This class holds an equi-depth histogram of a column's values.  The
+ * histogram is a sorted list of bucket boundaries
+ * <em>b</em><sub>0</sub>, ..., <em>b</em><sub><em>n</em></sub>, where
+ * <em>b</em><sub>0</sub> is the smallest value covered by the histogram,
+ * <em>b</em><sub><em>n</em></sub> is the largest, and each bucket
+ * [<em>b</em><sub><em>i</em></sub>, <em>b</em><sub><em>i</em>+1</sub>]
+ * holds the same number of rows.
+ * <p>
+ * The histogram doesn't cover the column's <tt>NULL</tt> values, or the
+ * values in the column's {@link MostCommonValues} list, since those are
+ * estimated separately.  The fraction of the table's rows that the
+ * histogram does cover is recorded with the histogram, so that its
+ * estimates can be combined with the most-common-values list.
+ */
+public class Histogram {
+
+    /** The bucket boundaries of the histogram, in increasing order. */
+    private ArrayList<Object> bounds;
+
+
+    /** The fraction of the table's rows that the histogram covers. */
+    private float rowFraction;
+
+
+    /**
+     * Creates a new histogram with the specified bucket boundaries.
+     *
+     * @param bounds the bucket boundaries, in increasing order; there must
+     *        be at least two boundaries
+     *
+     * @param rowFraction the fraction of the table's rows that the histogram
+     *        covers, in the range [0, 1]
+     */
+    public Histogram(List<Object> bounds, float rowFraction) {
+        if (bounds == null || bounds.size() < 2) {
+            throw new IllegalArgumentException(
+                "A histogram must have at least two bucket boundaries");
+        }
+
+        if (rowFraction < 0 || rowFraction > 1) {
+            throw new IllegalArgumentException(
+                "rowFraction must be in the range [0, 1]; got " + rowFraction);
+        }
+
+        this.bounds = new ArrayList<Object>(bounds);
+        this.rowFraction = rowFraction;
+    }
+
+
+    /**
+     * Returns the bucket boundaries of the histogram.
+     *
+     * @return the bucket boundaries of the histogram, in increasing order
+     */
+    public List<Object> getBounds() {
+        return bounds;
+    }
+
+
+    /**
+     * Returns the number of buckets in the histogram.
+     *
+     * @return the number of buckets in the histogram
+     */
+    public int getNumBuckets() {
+        return bounds.size() - 1;
+    }
+
+
+    /**
+     * Returns the fraction of the table's rows that the histogram covers.
+     *
+     * @return the fraction of the table's rows that the histogram covers
+     */
+    public float getRowFraction() {
+        return rowFraction;
+    }
+
+
+    /**
+     * Returns true if the value is within the range of values covered by
+     * the histogram.
+     *
+     * @param value the value to check
+     *
+     * @return true if the value is within the range of the histogram
+     */
+    public boolean isInRange(Object value) {
+        return compareValues(value, bounds.get(0)) >= 0 &&
+            compareValues(value, bounds.get(bounds.size() - 1)) <= 0;
+    }
+
+
+    /**
+     * Estimates the fraction of the histogram's rows that are less than the
+     * specified value.  The rows are assumed to be spread evenly across
+     * each bucket, so for numeric values the position of the value within
+     * its bucket is interpolated; for other values, half of the bucket is
+     * counted.
+     *
+     * @param value the value to compare the rows to
+     *
+     * @return the estimated fraction of the histogram's rows less than the
+     *         value, in the range [0, 1]
+     */
+    public float estimateFractionLessThan(Object value) {
+        int numBuckets = getNumBuckets();
+
+        if (compareValues(value, bounds.get(0)) <= 0)
+            return 0;
+
+        if (compareValues(value, bounds.get(numBuckets)) > 0)
+            return 1;
+
+        // Find the bucket holding the value.  Bucket i covers the values
+        // from bounds[i] to bounds[i + 1].
+        int bucket = 0;
+        while (bucket < numBuckets - 1 &&
+               compareValues(value, bounds.get(bucket + 1)) > 0) {
+            bucket++;
+        }
+
+        Object low = bounds.get(bucket);
+        Object high = bounds.get(bucket + 1);
+
+        float withinBucket = 0.5f;
+        if (value instanceof Number && low instanceof Number &&
+            high instanceof Number) {
+            double v = ((Number) value).doubleValue();
+            double lo = ((Number) low).doubleValue();
+            double hi = ((Number) high).doubleValue();
+            if (hi > lo)
+                withinBucket = (float) ((v - lo) / (hi - lo));
+        }
+
+        float fraction = (bucket + withinBucket) / numBuckets;
+        return Math.max(0, Math.min(1, fraction));
+    }
+
+
+    /**
+     * Estimates the fraction of the histogram's rows that are in the range
+     * [<tt>low</tt>, <tt>high</tt>].
+     *
+     * @param low the lowest value of the range
+     * @param high the highest value of the range
+     *
+     * @return the estimated fraction of the histogram's rows in the range,
+     *         in the range [0, 1]
+     */
+    public float estimateFractionBetween(Object low, Object high) {
+        if (compareValues(low, high) > 0)
+            return 0;
+
+        if (compareValues(high, bounds.get(0)) < 0 ||
+            compareValues(low, bounds.get(bounds.size() - 1)) > 0) {
+            return 0;
+        }
+
+        float fraction = estimateFractionLessThan(high) -
+            estimateFractionLessThan(low);
+
+        // The upper end of the range is inclusive, so the rows equal to the
+        // highest value are counted too.
+        if (compareValues(high, bounds.get(bounds.size() - 1)) >= 0)
+            fraction = 1 - estimateFractionLessThan(low);
+
+        return Math.max(0, Math.min(1, fraction));
+    }
+
+
+    /**
+     * Compares two column values, converting them to a common type first
+     * just as the {@link edu.caltech.nanodb.expressions.CompareOperator}
+     * does.
+     *
+     * @param value1 the first value to compare
+     * @param value2 the second value to compare
+     *
+     * @return a negative number, zero, or a positive number as the first
+     *         value is less than, equal to, or greater than the second
+     *
+     * @throws TypeCastException if the values can't be compared
+     */
+    static int compareValues(Object value1, Object value2) {
+        TypeConverter.Pair coerced =
+            TypeConverter.coerceComparison(value1, value2);
+
+        @SuppressWarnings("unchecked")
+        Comparable<Object> comp1 = (Comparable<Object>) coerced.value1;
+
+        return comp1.compareTo(coerced.value2);
+    }
+
+
+    @Override
+    public String toString() {
+        return "Histogram[bounds=" + bounds + ", rowFraction=" +
+            rowFraction + "]";
+    }
+}
@@ -0,0 +1,180 @@
+package edu.caltech.nanodb.qeval;
+
+
+import java.util.HashSet;
+
+
+/**
+ * This class implements the HyperLogLog sketch for estimating the number of
+ * distinct values in a column, in a fixed amount of memory no matter how
+ * many values the column holds.  Each value is hashed to 64 bits; the low
+ * bits of the hash select one of the sketch's registers, and the register
+ * records the longest run of leading zeros seen in the remaining bits.  The
+ * harmonic mean of the registers gives the estimate, with a standard error
+ * of about 1.04 / sqrt(<em>m</em>) for <em>m</em> registers.
+ * <p>
+ * Like the HyperLogLog++ variant of the algorithm, the sketch keeps the
+ * exact set of hash values until it has seen {@link #EXACT_LIMIT} distinct
+ * hashes, so that small columns get exact counts.
+ */
+public class HyperLogLog {
+
+    /** The number of hash bits used to select a register. */
+    public static final int DEFAULT_PRECISION = 12;
+
+
+    /**
+     * The number of distinct hash values that are tracked exactly before
+     * the sketch switches over to its registers.
+     */
+    public static final int EXACT_LIMIT = 4096;
+
+
+    /** The number of hash bits used to select a register. */
+    private int precision;
+
+
+    /** The registers of the sketch. */
+    private byte[] registers;
+
+
+    /**
+     * The set of hash values seen so far, or {@code null} once more than
+     * {@link #EXACT_LIMIT} distinct hash values have been seen.
+     */
+    private HashSet<Long> exactHashes;
+
+
+    /**
+     * Creates a new sketch with 2<sup><tt>precision</tt></sup> registers.
+     *
+     * @param precision the number of hash bits used to select a register,
+     *        in the range [4, 16]
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException(
+                "precision must be in the range [4, 16]; got " + precision);
+        }
+
+        this.precision = precision;
+        registers = new byte[1 << precision];
+        exactHashes = new HashSet<Long>();
+    }
+
+
+    /** Creates a new sketch with the default precision. */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+
+    /**
+     * Adds a value to the sketch.  <tt>NULL</tt> values are ignored.
+     *
+     * @param value the value to add
+     */
+    public void addValue(Object value) {
+        if (value == null)
+            return;
+
+        long hash = hashValue(value);
+
+        if (exactHashes != null) {
+            exactHashes.add(hash);
+            if (exactHashes.size() > EXACT_LIMIT)
+                exactHashes = null;
+        }
+
+        int index = (int) (hash & (registers.length - 1));
+        long rest = hash >>> precision;
+
+        // The rank is the position of the first 1-bit in the remaining
+        // bits, counting from 1.
+        int rank = Long.numberOfTrailingZeros(rest) + 1;
+        if (rank > 64 - precision + 1)
+            rank = 64 - precision + 1;
+
+        if (rank > registers[index])
+            registers[index] = (byte) rank;
+    }
+
+
+    /**
+     * Returns the estimated number of distinct values added to the sketch.
+     *
+     * @return the estimated number of distinct values
+     */
+    public long getEstimate() {
+        if (exactHashes != null)
+            return exactHashes.size();
+
+        int m = registers.length;
+
+        double sum = 0;
+        int numZeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                numZeros++;
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+
+        // Small cardinalities are estimated more accurately by counting
+        // the registers that are still empty.
+        if (estimate <= 2.5 * m && numZeros > 0)
+            estimate = m * Math.log((double) m / numZeros);
+
+        return Math.round(estimate);
+    }
+
+
+    /**
+     * Computes a 64-bit hash of a column value.  Numbers that are equal have
+     * the same hash, even if they are of different types, since columns of
+     * different numeric types can be compared with each other.
+     *
+     * @param value the value to hash
+     *
+     * @return a 64-bit hash of the value
+     */
+    static long hashValue(Object value) {
+        long h;
+
+        if (value instanceof Byte || value instanceof Short ||
+            value instanceof Integer || value instanceof Long) {
+            h = ((Number) value).longValue();
+        }
+        else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d))
+                h = (long) d;
+            else
+                h = Double.doubleToLongBits(d);
+        }
+        else if (value instanceof String) {
+            // 64-bit FNV-1a over the characters of the string.
+            String s = (String) value;
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        else {
+            h = value.hashCode();
+        }
+
+        // Mix the bits with the MurmurHash3 finalizer, since the register
+        // is chosen from the low bits of the hash.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
@@ -0,0 +1,141 @@
+package edu.caltech.nanodb.qeval;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * This class holds the most common values of a column, along with the
+ * fraction of the table's rows that hold each value.  Skewed columns are
+ * poorly described by a distinct-value count or a histogram alone, so the
+ * values that occur most often are recorded separately.
+ */
+public class MostCommonValues {
+
+    /** The most common values of the column. */
+    private ArrayList<Object> values;
+
+
+    /**
+     * The fraction of the table's rows that hold each of the most common
+     * values.
+     */
+    private ArrayList<Float> frequencies;
+
+
+    /**
+     * Creates a new most-common-values list.
+     *
+     * @param values the most common values of the column
+     *
+     * @param frequencies the fraction of the table's rows holding each
+     *        value; there must be one frequency for each value
+     */
+    public MostCommonValues(List<Object> values, List<Float> frequencies) {
+        if (values == null || frequencies == null)
+            throw new IllegalArgumentException("arguments cannot be null");
+
+        if (values.size() != frequencies.size()) {
+            throw new IllegalArgumentException(String.format(
+                "Got %d values but %d frequencies", values.size(),
+                frequencies.size()));
+        }
+
+        this.values = new ArrayList<Object>(values);
+        this.frequencies = new ArrayList<Float>(frequencies);
+    }
+
+
+    /**
+     * Returns the number of values in the list.
+     *
+     * @return the number of values in the list
+     */
+    public int size() {
+        return values.size();
+    }
+
+
+    /**
+     * Returns the value at the specified position in the list.
+     *
+     * @param i the position of the value
+     *
+     * @return the value at the specified position
+     */
+    public Object getValue(int i) {
+        return values.get(i);
+    }
+
+
+    /**
+     * Returns the fraction of the table's rows holding the value at the
+     * specified position in the list.
+     *
+     * @param i the position of the value
+     *
+     * @return the fraction of the table's rows holding the value
+     */
+    public float getFrequency(int i) {
+        return frequencies.get(i);
+    }
+
+
+    /**
+     * Returns the fraction of the table's rows holding the specified value,
+     * or -1 if the value isn't in the list.
+     *
+     * @param value the value to look up
+     *
+     * @return the fraction of the table's rows holding the value, or -1 if
+     *         the value isn't one of the most common values
+     */
+    public float getFrequencyOf(Object value) {
+        for (int i = 0; i < values.size(); i++) {
+            if (Histogram.compareValues(value, values.get(i)) == 0)
+                return frequencies.get(i);
+        }
+        return -1;
+    }
+
+
+    /**
+     * Returns the fraction of the table's rows that hold any of the values
+     * in the list.
+     *
+     * @return the fraction of the table's rows that hold a most common value
+     */
+    public float getTotalFrequency() {
+        float total = 0;
+        for (float f : frequencies)
+            total += f;
+        return total;
+    }
+
+
+    /**
+     * Returns the fraction of the table's rows that hold a most common value
+     * less than the specified value.
+     *
+     * @param value the value to compare the most common values to
+     *
+     * @return the fraction of the table's rows that hold a most common value
+     *         less than the specified value
+     */
+    public float getFrequencyLessThan(Object value) {
+        float total = 0;
+        for (int i = 0; i < values.size(); i++) {
+            if (Histogram.compareValues(values.get(i), value) < 0)
+                total += frequencies.get(i);
+        }
+        return total;
+    }
+
+
+    @Override
+    public String toString() {
+        return "MostCommonValues[values=" + values + ", frequencies=" +
+            frequencies + "]";
+    }
+}
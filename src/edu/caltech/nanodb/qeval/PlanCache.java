@@ -0,0 +1,270 @@
+package edu.caltech.nanodb.qeval;
+
+
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.commands.AnalyzeCommand;
+import edu.caltech.nanodb.commands.Command;
+import edu.caltech.nanodb.commands.QueryCommand;
+import edu.caltech.nanodb.server.CommandEventListener;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class caches the parsed and planned commands of prepared statements,
+ * keyed on the normalized text of the statements, so that a statement that
+ * is executed many times is only parsed and planned once.  The cache is
+ * shared by all sessions, and holds the most recently used commands, up to
+ * the number given by {@link #getCacheSize}.
+ * <p>
+ * A plan holds the state of its evaluation, so a cached command can only be
+ * executed by one session at a time.  A session takes the command out of the
+ * cache with {@link #checkOut} while it executes the command, and puts it
+ * back with {@link #checkIn} afterward.  Another session that executes the
+ * same statement in the meantime misses the cache, and plans its own copy of
+ * the statement.
+ * <p>
+ * Plans depend on the schemas of tables and on their statistics, so the
+ * cache listens for commands, and is cleared after every DDL command and
+ * every <tt>ANALYZE</tt>.  Commands that were checked out before the cache
+ * was cleared are dropped when they are checked in.
+ */
+public class PlanCache implements CommandEventListener {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(PlanCache.class);
+
+
+    /**
+     * This property can be used to specify the largest number of commands
+     * that the plan cache holds.  A size of 0 disables the cache.
+     */
+    public static final String PROP_PLAN_CACHE_SIZE =
+        "nanodb.planCache.size";
+
+
+    /** By default, the plan cache holds up to 100 commands. */
+    public static final int DEFAULT_PLAN_CACHE_SIZE = 100;
+
+
+    /**
+     * Returns the largest number of commands that the plan cache holds, from
+     * the <tt>nanodb.planCache.size</tt> property.
+     *
+     * @return the size of the plan cache
+     */
+    public static int getCacheSize() {
+        int size = DEFAULT_PLAN_CACHE_SIZE;
+
+        String str = System.getProperty(PROP_PLAN_CACHE_SIZE);
+        if (str != null) {
+            try {
+                size = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse plan cache size \"%s\"; using " +
+                    "default value of %d", str, DEFAULT_PLAN_CACHE_SIZE));
+            }
+
+            if (size < 0) {
+                logger.error(String.format(
+                    "Plan cache size %d is negative; using default value " +
+                    "of %d", size, DEFAULT_PLAN_CACHE_SIZE));
+
+                size = DEFAULT_PLAN_CACHE_SIZE;
+            }
+        }
+
+        return size;
+    }
+
+
+    /** The single instance of the plan cache. */
+    private static PlanCache instance = new PlanCache();
+
+
+    public static PlanCache getInstance() {
+        return instance;
+    }
+
+
+    /**
+     * The cached commands, keyed on their normalized text, in order from the
+     * least recently used to the most recently used.
+     */
+    private LinkedHashMap<String, QueryCommand> commands;
+
+
+    /**
+     * The number of times the cache has been cleared.  Commands are only
+     * checked back in if the cache hasn't been cleared since they were
+     * checked out.
+     */
+    private long generation;
+
+
+    private PlanCache() {
+        commands = new LinkedHashMap<String, QueryCommand>(16, 0.75f, true);
+        generation = 0;
+    }
+
+
+    /**
+     * Returns the current generation of the cache, which must be passed to
+     * {@link #checkIn} along with a command.  The generation should be
+     * retrieved before the command is checked out or parsed.
+     *
+     * @return the current generation of the cache
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+
+    /**
+     * Takes the command with the specified normalized text out of the cache,
+     * so that the caller can execute it.
+     *
+     * @param sql the normalized text of the command, from {@link #normalize}
+     *
+     * @return the cached command, or {@code null} if the command isn't in
+     *         the cache
+     */
+    public synchronized QueryCommand checkOut(String sql) {
+        QueryCommand command = commands.remove(sql);
+        if (command != null)
+            PerformanceCounters.inc(PerformanceCounters.PLAN_CACHE_HITS);
+        else
+            PerformanceCounters.inc(PerformanceCounters.PLAN_CACHE_MISSES);
+
+        return command;
+    }
+
+
+    /**
+     * Puts a command into the cache, unless the cache has been cleared since
+     * the specified generation, or another copy of the command is already
+     * cached.  If the cache is full, the least recently used command is
+     * evicted.
+     *
+     * @param sql the normalized text of the command, from {@link #normalize}
+     * @param command the command to cache
+     * @param generation the generation of the cache from before the command
+     *        was checked out or parsed
+     */
+    public synchronized void checkIn(String sql, QueryCommand command,
+                                     long generation) {
+        if (generation != this.generation || commands.containsKey(sql))
+            return;
+
+        int cacheSize = getCacheSize();
+        if (cacheSize == 0)
+            return;
+
+        while (commands.size() >= cacheSize) {
+            String eldest = commands.keySet().iterator().next();
+            commands.remove(eldest);
+        }
+
+        commands.put(sql, command);
+    }
+
+
+    /** Removes all commands from the cache. */
+    public synchronized void clear() {
+        commands.clear();
+        generation++;
+    }
+
+
+    /**
+     * Returns the number of commands in the cache.
+     *
+     * @return the number of commands in the cache
+     */
+    public synchronized int size() {
+        return commands.size();
+    }
+
+
+    @Override
+    public void beforeCommandExecuted(Command cmd) {
+        // Nothing to do before commands.
+    }
+
+
+    /**
+     * Clears the cache after a command that could change the plans of cached
+     * commands.
+     */
+    @Override
+    public void afterCommandExecuted(Command cmd) {
+        if (cmd.getType() == Command.Type.DDL || cmd instanceof AnalyzeCommand) {
+            logger.debug("Clearing the plan cache after command " + cmd);
+            clear();
+            PerformanceCounters.inc(PerformanceCounters.PLAN_CACHE_INVALIDATIONS);
+        }
+    }
+
+
+    /**
+     * Normalizes the text of a SQL statement, so that statements that differ
+     * only in case, whitespace or comments have the same text.  Everything
+     * outside of string literals and quoted identifiers is converted to
+     * upper case, comments are removed, each run of whitespace is replaced
+     * by a single space, and trailing semicolons are removed.
+     *
+     * @param sql the text of a SQL statement
+     *
+     * @return the normalized text of the statement
+     */
+    public static String normalize(String sql) {
+        StringBuilder buf = new StringBuilder(sql.length());
+        boolean space = false;
+
+        int i = 0;
+        while (i < sql.length()) {
+            char ch = sql.charAt(i);
+            if (ch == '-' && sql.startsWith("--", i)) {
+                // Comments run to the end of the line.
+                int end = sql.indexOf('\n', i);
+                i = (end != -1) ? end : sql.length();
+                space = true;
+                continue;
+            }
+            else if (Character.isWhitespace(ch)) {
+                i++;
+                space = true;
+                continue;
+            }
+
+            if (space && buf.length() > 0)
+                buf.append(' ');
+            space = false;
+
+            if (ch == '\'' || ch == '"') {
+                // Copy string literals and quoted identifiers as they are.
+                int end = sql.indexOf(ch, i + 1);
+                end = (end != -1) ? end + 1 : sql.length();
+                buf.append(sql, i, end);
+                i = end;
+            }
+            else {
+                buf.append(Character.toUpperCase(ch));
+                i++;
+            }
+        }
+
+        // Trailing semicolons don't change the statement.
+        int length = buf.length();
+        while (length > 0 && (buf.charAt(length - 1) == ';' ||
+                              buf.charAt(length - 1) == ' ')) {
+            length--;
+        }
+        buf.setLength(length);
+
+        return buf.toString();
+    }
+}
@@ -1,17 +1,204 @@
 package edu.caltech.nanodb.qeval;
 
 
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.log4j.Logger;
+
 import edu.caltech.nanodb.plans.PlanNode;
 
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 
 
 public class QueryEvaluator {
 
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(QueryEvaluator.class);
+
+
     /**
-     * Executes the specified query plan, and feeds the results to the specified
-     * tuple processor.
+     * The system property that can be set to <tt>false</tt> to make queries
+     * always produce their results a tuple at a time, even if their plans
+     * support batch execution.
+     */
+    public static final String PROP_BATCH_EXECUTION = "nanodb.exec.batches";
+
+
+    /**
+     * Returns true if plans that support batch execution should be executed
+     * a batch at a time, from the <tt>nanodb.exec.batches</tt> property.
+     *
+     * @return true if batch execution is enabled
+     */
+    public static boolean isBatchExecutionEnabled() {
+        String str = System.getProperty(PROP_BATCH_EXECUTION, "true");
+        return Boolean.parseBoolean(str.trim());
+    }
+
+
+    /**
+     * The system property that can be set to <tt>false</tt> to make plan
+     * nodes always interpret their predicates and projections, instead of
+     * compiling them with the
+     * {@link edu.caltech.nanodb.expressions.ExpressionCompiler}.
+     */
+    public static final String PROP_COMPILE_EXPRESSIONS =
+        "nanodb.exec.compileExpressions";
+
+
+    /**
+     * Returns true if plan nodes should compile their expressions, from the
+     * <tt>nanodb.exec.compileExpressions</tt> property.
+     *
+     * @return true if expression compilation is enabled
+     */
+    public static boolean isExpressionCompilationEnabled() {
+        String str = System.getProperty(PROP_COMPILE_EXPRESSIONS, "true");
+        return Boolean.parseBoolean(str.trim());
+    }
+
+
+    /**
+     * The system property that can be used to specify how many worker
+     * threads a query may use to scan a table, or to run a fragment of its
+     * plan, in parallel.  A value of 1 disables parallel execution.
+     */
+    public static final String PROP_PARALLELISM = "nanodb.parallelism";
+
+
+    /**
+     * By default, queries are executed on the session's thread alone, so
+     * that their results come out in the same order every time.
+     */
+    public static final int DEFAULT_PARALLELISM = 1;
+
+
+    /**
+     * The pool of worker threads used for parallel execution, or
+     * {@code null} if no query has needed one yet.
+     */
+    private static ForkJoinPool workerPool;
+
+
+    /**
+     * Returns the number of worker threads that a query may use to scan a
+     * table, from the <tt>nanodb.parallelism</tt> property.
+     *
+     * @return the degree of parallelism, which is 1 if parallel execution is
+     *         disabled
+     */
+    public static int getParallelism() {
+        int parallelism = DEFAULT_PARALLELISM;
+
+        String str = System.getProperty(PROP_PARALLELISM);
+        if (str != null) {
+            try {
+                parallelism = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse parallelism value \"%s\"; " +
+                    "using default value of %d", str, DEFAULT_PARALLELISM));
+            }
+
+            if (parallelism < 1) {
+                logger.error(String.format(
+                    "Parallelism %d is not positive; using default " +
+                    "value of %d", parallelism, DEFAULT_PARALLELISM));
+
+                parallelism = DEFAULT_PARALLELISM;
+            }
+        }
+
+        return parallelism;
+    }
+
+
+    /**
+     * The system property that can be used to specify the smallest estimated
+     * CPU cost of a scan or join that the planner will run on several worker
+     * threads, when the <tt>nanodb.parallelism</tt> property allows it.
+     */
+    public static final String PROP_PARALLEL_MIN_COST =
+        "nanodb.exec.parallelMinCost";
+
+
+    /**
+     * By default, a scan or join must process tens of thousands of tuples to
+     * be worth the cost of starting workers and passing batches between
+     * them.
+     */
+    public static final float DEFAULT_PARALLEL_MIN_COST = 20000;
+
+
+    /**
+     * Returns the smallest estimated CPU cost of a plan fragment that the
+     * planner will run on several worker threads, from the
+     * <tt>nanodb.exec.parallelMinCost</tt> property.
+     *
+     * @return the minimum cost of a parallel plan fragment
+     */
+    public static float getParallelMinCost() {
+        float minCost = DEFAULT_PARALLEL_MIN_COST;
+
+        String str = System.getProperty(PROP_PARALLEL_MIN_COST);
+        if (str != null) {
+            try {
+                minCost = Float.parseFloat(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse parallel minimum cost \"%s\"; " +
+                    "using default value of %f", str,
+                    DEFAULT_PARALLEL_MIN_COST));
+            }
+
+            if (minCost < 0) {
+                logger.error(String.format(
+                    "Parallel minimum cost %f is negative; using default " +
+                    "value of %f", minCost, DEFAULT_PARALLEL_MIN_COST));
+
+                minCost = DEFAULT_PARALLEL_MIN_COST;
+            }
+        }
+
+        return minCost;
+    }
+
+
+    /**
+     * Returns the fork-join pool that parallel plan nodes run their workers
+     * in.  The pool is created the first time it is needed, and is replaced
+     * by a larger pool if a query asks for more workers than the pool has
+     * threads.  The pool's threads are daemon threads, so they don't keep
+     * the server running.
+     *
+     * @param parallelism the number of workers the caller will run at once
+     *
+     * @return the worker pool
+     */
+    public static synchronized ForkJoinPool getWorkerPool(int parallelism) {
+        if (workerPool == null || workerPool.getParallelism() < parallelism) {
+            // The old pool isn't shut down, since another session may be
+            // about to start workers in it.  Its threads exit once idle.
+            int numThreads = Math.max(parallelism,
+                Runtime.getRuntime().availableProcessors());
+
+            logger.info("Creating a pool of " + numThreads +
+                " query worker threads");
+            workerPool = new ForkJoinPool(numThreads);
+        }
+
+        return workerPool;
+    }
+
+
+    /**
+     * Executes the specified query plan a tuple at a time, and feeds the
+     * results to the specified tuple processor.
      *
      * @param plan the query plan to execute
      *
@@ -24,6 +211,31 @@ public class QueryEvaluator {
      */
     public static EvalStats executePlan(PlanNode plan, TupleProcessor processor)
         throws Exception {
+        return executePlan(plan, processor, false);
+    }
+
+
+    /**
+     * Executes the specified query plan, and feeds the results to the specified
+     * tuple processor.  If batches are allowed, batch execution is enabled and
+     * the plan supports it, the results are pulled from the plan a batch at
+     * a time, and the processor receives a copy of each selected row.
+     * Processors that need the plan's own tuples, such as those that update
+     * or delete the tuples, must not allow batches.
+     *
+     * @param plan the query plan to execute
+     *
+     * @param processor the tuple-processor to receive the results
+     *
+     * @param allowBatches true if the plan may be executed a batch at a time
+     *
+     * @return An object containing statistics about the plan evaluation.
+     *
+     * @throws Exception if an error occurs during query evaluation or during
+     *         tuple-processing.
+     */
+    public static EvalStats executePlan(PlanNode plan, TupleProcessor processor,
+                                        boolean allowBatches) throws Exception {
 
         // Execute the plan, and record some basic statistics as we go.
 
@@ -34,19 +246,17 @@ public class QueryEvaluator {
 
         plan.initialize();
 
-        int rowsProduced = 0;
-        try {
-        	Tuple tuple;
-            while (true) {
-                // Get the next tuple.  If there aren't anymore, we're done!
-                tuple = plan.getNextTuple();
-                if (tuple == null) 
-                	break;
+        boolean useBatches = allowBatches && isBatchExecutionEnabled() &&
+            plan.supportsBatchExecution();
 
-                rowsProduced++;
-
-                // Do whatever we're supposed to do with the tuple.
-                processor.process(tuple);
+        int rowsProduced;
+        try {
+            if (useBatches) {
+                PerformanceCounters.inc(PerformanceCounters.EXEC_BATCH_PLANS);
+                rowsProduced = processBatches(plan, processor);
+            }
+            else {
+                rowsProduced = processTuples(plan, processor);
             }
         }
         finally {
@@ -60,5 +270,56 @@ public class QueryEvaluator {
         // Return the basic statistics we gathered.
         return new EvalStats(rowsProduced, elapsedTimeNanos);
     }
-}
 
+
+    /**
+     * Pulls all results from a plan a tuple at a time, and feeds each tuple
+     * to the tuple processor.
+     *
+     * @return the number of rows produced
+     */
+    private static int processTuples(PlanNode plan, TupleProcessor processor)
+        throws Exception {
+
+        int rowsProduced = 0;
+        while (true) {
+            // Get the next tuple.  If there aren't anymore, we're done!
+            Tuple tuple = plan.getNextTuple();
+            if (tuple == null)
+                break;
+
+            rowsProduced++;
+
+            // Do whatever we're supposed to do with the tuple.
+            processor.process(tuple);
+        }
+
+        return rowsProduced;
+    }
+
+
+    /**
+     * Pulls all results from a plan a batch at a time, and feeds each
+     * selected row to the tuple processor.
+     *
+     * @return the number of rows produced
+     */
+    private static int processBatches(PlanNode plan, TupleProcessor processor)
+        throws Exception {
+
+        int rowsProduced = 0;
+        while (true) {
+            TupleBatch batch = plan.getNextBatch();
+            if (batch == null)
+                break;
+
+            int numSelected = batch.getNumSelected();
+            for (int i = 0; i < numSelected; i++)
+                processor.process(batch.getTuple(batch.getSelectedRow(i)));
+
+            rowsProduced += numSelected;
+        }
+
+        return rowsProduced;
+    }
+}
@@ -3,6 +3,7 @@ package edu.caltech.nanodb.qeval;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 import edu.caltech.nanodb.expressions.*;
 
@@ -120,10 +121,12 @@ public class SelectivityEstimator {
     /**
      * This function computes a selectivity estimate for a general Boolean
      * expression that may be comprised of one or more components.  The method
-     * treats components as independent, estimating the selectivity of each one
-     * separately, and then combines the results based on whether the Boolean
-     * operation is an <tt>AND</tt>, an <tt>OR</tt>, or a <tt>NOT</tt>
-     * operation.  As one might expect, this method delegates to
+     * mostly treats components as independent, estimating the selectivity of
+     * each one separately, and then combines the results based on whether the
+     * Boolean operation is an <tt>AND</tt>, an <tt>OR</tt>, or a <tt>NOT</tt>
+     * operation.  The terms of an <tt>AND</tt> may be combined using the
+     * dependencies between columns; see
+     * {@link #estimateConjunctionSelectivity}.  As one might expect, this method delegates to
      * {@link #estimateSelectivity} to compute the selectivity of individual
      * terms.
      *
@@ -155,10 +158,8 @@ public class SelectivityEstimator {
 
         switch (bool.getType()) {
         case AND_EXPR:
-            for (Expression e: expressions) {
-                result *= estimateSelectivity(e, exprSchema, stats);
-            }
-            selectivity = result;
+            selectivity = estimateConjunctionSelectivity(expressions,
+                exprSchema, stats);
             break;
 
         case OR_EXPR:
@@ -179,13 +180,140 @@ public class SelectivityEstimator {
             assert false : "Unexpected Boolean operator type:  " + bool.getType();
         }
 
-        logger.debug("Estimated selectivity of Boolean operator \"" + bool +
-            "\" as " + selectivity);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Estimated selectivity of Boolean operator \"" + bool +
+                "\" as " + selectivity);
+        }
+
+        return selectivity;
+    }
+
+
+    /**
+     * This helper function computes a selectivity estimate for the terms of
+     * an <tt>AND</tt> expression.  Terms are generally treated as
+     * independent, but terms that compare columns of the same table to
+     * literal values with <tt>=</tt> are combined using the dependency
+     * degrees between the columns (see {@link ColumnStats#getDependencyDegree}).
+     * If column <em>a</em> determines column <em>b</em> with degree
+     * <em>d</em>, then
+     * <em>P</em>(<em>a</em> = <em>x</em> &and; <em>b</em> = <em>y</em>) =
+     * <em>P</em>(<em>a</em> = <em>x</em>) &middot;
+     * (<em>d</em> + (1 - <em>d</em>) &middot; <em>P</em>(<em>b</em> = <em>y</em>)).
+     * The strongest dependencies are applied first.
+     *
+     * @param terms the terms of the <tt>AND</tt> expression
+     *
+     * @param exprSchema a schema specifying the environment that the expression
+     *        will be evaluated within
+     *
+     * @param stats a collection of column-statistics to use in making
+     *        selectivity estimates
+     *
+     * @return a selectivity estimate in the range [0, 1].
+     */
+    private static float estimateConjunctionSelectivity(
+        List<Expression> terms, Schema exprSchema, ArrayList<ColumnStats> stats) {
+
+        float selectivity = 1.0f;
+
+        // The column indexes and selectivities of the column = value terms.
+        ArrayList<Integer> eqColumns = new ArrayList<Integer>();
+        ArrayList<Float> eqSelectivities = new ArrayList<Float>();
+
+        for (Expression term : terms) {
+            float termSelectivity = estimateSelectivity(term, exprSchema, stats);
+
+            int colIndex = getEqualsValueColumn(term, exprSchema);
+            if (colIndex != -1) {
+                eqColumns.add(colIndex);
+                eqSelectivities.add(termSelectivity);
+            }
+            else {
+                selectivity *= termSelectivity;
+            }
+        }
+
+        while (true) {
+            // Find the strongest dependency between the remaining columns.
+            float bestDegree = 0;
+            int bestDependent = -1;
+            for (int i = 0; i < eqColumns.size(); i++) {
+                for (int j = 0; j < eqColumns.size(); j++) {
+                    int a = eqColumns.get(i);
+                    int b = eqColumns.get(j);
+                    if (a == b || !sameTable(exprSchema, a, b))
+                        continue;
+
+                    float degree =
+                        stats.get(a).getDependencyDegree(stats.get(b));
+                    if (degree > bestDegree) {
+                        bestDegree = degree;
+                        bestDependent = j;
+                    }
+                }
+            }
+
+            if (bestDependent == -1)
+                break;
+
+            // The dependent term mostly holds whenever the determining term
+            // holds.
+            float sel = eqSelectivities.get(bestDependent);
+            selectivity *= bestDegree + (1 - bestDegree) * sel;
+
+            logger.debug(String.format("Applied dependency of degree %.2f " +
+                "to column %s", bestDegree,
+                exprSchema.getColumnInfo(eqColumns.get(bestDependent))));
+
+            eqColumns.remove(bestDependent);
+            eqSelectivities.remove(bestDependent);
+        }
+
+        for (float sel : eqSelectivities)
+            selectivity *= sel;
 
         return selectivity;
     }
 
 
+    /**
+     * If the expression compares a column to a literal value with
+     * <tt>=</tt>, this method returns the index of the column in the schema;
+     * otherwise it returns -1.
+     */
+    private static int getEqualsValueColumn(Expression expr, Schema exprSchema) {
+        if (!(expr instanceof CompareOperator))
+            return -1;
+
+        CompareOperator comp = (CompareOperator) expr;
+        if (comp.getType() != CompareOperator.Type.EQUALS)
+            return -1;
+
+        comp.normalize();
+        if (!(comp.getLeftExpression() instanceof ColumnValue) ||
+            !(comp.getRightExpression() instanceof LiteralValue)) {
+            return -1;
+        }
+
+        ColumnValue colValue = (ColumnValue) comp.getLeftExpression();
+        return exprSchema.getColumnIndex(colValue.getColumnName());
+    }
+
+
+    /**
+     * Returns true if the two columns of the schema come from the same table.
+     * The columns of a table that is joined to itself share the same stats,
+     * so dependencies may only be applied between columns of the same table.
+     */
+    private static boolean sameTable(Schema exprSchema, int col1, int col2) {
+        String table1 = exprSchema.getColumnInfo(col1).getTableName();
+        String table2 = exprSchema.getColumnInfo(col2).getTableName();
+
+        return table1 != null && table1.equals(table2);
+    }
+
+
     /**
      * This function computes a selectivity estimate for a general comparison
      * operation.  The method examines the types of the arguments in the
@@ -224,22 +352,170 @@ public class SelectivityEstimator {
             selectivity = estimateCompareColumnValue(comp.getType(),
                 (ColumnValue) left, (LiteralValue) right, exprSchema, stats);
 
-            logger.debug("Estimated selectivity of cmp-col-val operator \"" +
-                comp + "\" as " + selectivity);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Estimated selectivity of cmp-col-val operator \"" +
+                    comp + "\" as " + selectivity);
+            }
         }
         else if (left instanceof ColumnValue && right instanceof ColumnValue) {
             // Comparison:  column op column
             selectivity = estimateCompareColumnColumn(comp.getType(),
                 (ColumnValue) left, (ColumnValue) right, exprSchema, stats);
 
-            logger.debug("Estimated selectivity of cmp-col-col operator \"" +
-                comp + "\" as " + selectivity);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Estimated selectivity of cmp-col-col operator \"" +
+                    comp + "\" as " + selectivity);
+            }
         }
 
         return selectivity;
     }
 
 
+    /**
+     * Returns the fraction of a column's rows that aren't <tt>NULL</tt>,
+     * according to the column's most-common-values list and histogram.  If
+     * the column has neither, all rows are assumed to be non-<tt>NULL</tt>.
+     *
+     * @param colStats the statistics of the column
+     *
+     * @return the fraction of the column's rows that aren't <tt>NULL</tt>
+     */
+    private static float getNonNullFraction(ColumnStats colStats) {
+        if (!colStats.hasDistribution())
+            return 1.0f;
+
+        float fraction = 0;
+        if (colStats.getMostCommonValues() != null)
+            fraction += colStats.getMostCommonValues().getTotalFrequency();
+        if (colStats.getHistogram() != null)
+            fraction += colStats.getHistogram().getRowFraction();
+
+        return Math.min(1, fraction);
+    }
+
+
+    /**
+     * Estimates the fraction of a column's rows that hold the specified
+     * value, using the column's most-common-values list and histogram.  A
+     * most common value has its recorded frequency; the histogram's rows are
+     * assumed to be spread evenly over the column's other distinct values.
+     *
+     * @param colStats the statistics of the column, which must have a
+     *        most-common-values list or a histogram
+     * @param value the value to estimate the frequency of
+     *
+     * @return the estimated fraction of the column's rows holding the value
+     *
+     * @throws TypeCastException if the value can't be compared to the
+     *         column's values
+     */
+    private static float estimateValueFrequency(ColumnStats colStats,
+                                                Object value) {
+        MostCommonValues mcv = colStats.getMostCommonValues();
+        Histogram histogram = colStats.getHistogram();
+
+        if (mcv != null) {
+            float freq = mcv.getFrequencyOf(value);
+            if (freq >= 0)
+                return freq;
+        }
+
+        if (histogram != null && histogram.isInRange(value)) {
+            return histogram.getRowFraction() /
+                Math.max(1, getNumHistogramValues(colStats));
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * Returns the number of distinct values of a column that are covered by
+     * its histogram, i.e. the values that aren't in its most-common-values
+     * list.
+     */
+    private static int getNumHistogramValues(ColumnStats colStats) {
+        int numValues = colStats.getNumUniqueValues();
+        if (colStats.getMostCommonValues() != null)
+            numValues -= colStats.getMostCommonValues().size();
+
+        return numValues;
+    }
+
+
+    /**
+     * This helper function computes a selectivity estimate for a comparison
+     * between a column and a literal value, using the column's
+     * most-common-values list and histogram.  Values in the
+     * most-common-values list contribute their exact frequencies; other
+     * values are estimated from the histogram, with the histogram's rows
+     * assumed to be spread evenly across the column's remaining distinct
+     * values.
+     *
+     * @param compType the type of the comparison
+     * @param value the value that the column is being compared to
+     * @param colStats the statistics of the column, which must have a
+     *        most-common-values list or a histogram
+     *
+     * @return a selectivity estimate in the range [0, 1].
+     *
+     * @throws TypeCastException if the value can't be compared to the
+     *         column's values
+     */
+    private static float estimateFromDistribution(
+        CompareOperator.Type compType, Object value, ColumnStats colStats) {
+
+        MostCommonValues mcv = colStats.getMostCommonValues();
+        Histogram histogram = colStats.getHistogram();
+
+        // NULLs never satisfy a comparison.
+        float nonNullFraction = getNonNullFraction(colStats);
+        float selEquals = estimateValueFrequency(colStats, value);
+
+        float selLessThan = 0;
+        if (mcv != null)
+            selLessThan += mcv.getFrequencyLessThan(value);
+
+        if (histogram != null) {
+            selLessThan += histogram.estimateFractionLessThan(value) *
+                histogram.getRowFraction();
+        }
+
+        float selectivity;
+        switch (compType) {
+        case EQUALS:
+            selectivity = selEquals;
+            break;
+
+        case NOT_EQUALS:
+            selectivity = nonNullFraction - selEquals;
+            break;
+
+        case LESS_THAN:
+            selectivity = selLessThan;
+            break;
+
+        case LESS_OR_EQUAL:
+            selectivity = selLessThan + selEquals;
+            break;
+
+        case GREATER_THAN:
+            selectivity = nonNullFraction - selLessThan - selEquals;
+            break;
+
+        case GREATER_OR_EQUAL:
+            selectivity = nonNullFraction - selLessThan;
+            break;
+
+        default:
+            selectivity = DEFAULT_SELECTIVITY;
+        }
+
+        return Math.max(0, Math.min(1, selectivity));
+    }
+
+
     /**
      * This helper function computes a selectivity estimate for a comparison
      * between a column and a literal value.  Note that the comparison is always
@@ -272,6 +548,9 @@ public class SelectivityEstimator {
         // Pull out the critical values for making the estimates.
 
         int colIndex = exprSchema.getColumnIndex(columnValue.getColumnName());
+        if (colIndex == -1)
+            return selectivity;
+
         ColumnInfo colInfo = exprSchema.getColumnInfo(colIndex);
         SQLDataType sqlType = colInfo.getType().getBaseType();
         ColumnStats colStats = stats.get(colIndex);
@@ -279,6 +558,19 @@ public class SelectivityEstimator {
 
         Object value = literalValue.evaluate();
 
+        // If ANALYZE recorded how the column's values are distributed, use
+        // that instead of assuming the values are spread uniformly between
+        // the minimum and maximum.
+        if (value != null && colStats.hasDistribution()) {
+            try {
+                return estimateFromDistribution(compType, value, colStats);
+            }
+            catch (TypeCastException e) {
+                logger.debug("Couldn't compare value " + value +
+                    " to the column's distribution", e);
+            }
+        }
+
         Object minObj = colStats.getMinValue();
         Object maxObj = colStats.getMaxValue();
 
@@ -454,7 +746,9 @@ public class SelectivityEstimator {
             assert false : "Unexpected compare-operator type:  " + compType;
         }
 
-        logger.debug(String.format("Calculated selectivity: %f", selectivity));
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Calculated selectivity: %f", selectivity));
+        }
         return selectivity;
     }
 
@@ -489,10 +783,31 @@ public class SelectivityEstimator {
 
         int colOneIndex = exprSchema.getColumnIndex(columnOne.getColumnName());
         int colTwoIndex = exprSchema.getColumnIndex(columnTwo.getColumnName());
+        if (colOneIndex == -1 || colTwoIndex == -1)
+            return selectivity;
 
         ColumnStats colOneStats = stats.get(colOneIndex);
         ColumnStats colTwoStats = stats.get(colTwoIndex);
 
+        // If both columns have distributions, estimate equi-joins from how
+        // the distributions overlap.
+        if ((compType == CompareOperator.Type.EQUALS ||
+             compType == CompareOperator.Type.NOT_EQUALS) &&
+            colOneStats.hasDistribution() && colTwoStats.hasDistribution()) {
+            try {
+                float selEquals = estimateEquiJoin(colOneStats, colTwoStats);
+                if (compType == CompareOperator.Type.EQUALS)
+                    return selEquals;
+
+                return Math.max(0, getNonNullFraction(colOneStats) *
+                    getNonNullFraction(colTwoStats) - selEquals);
+            }
+            catch (TypeCastException e) {
+                logger.debug("Couldn't compare the distributions of " +
+                    columnOne + " and " + columnTwo, e);
+            }
+        }
+
         int colOneNumRows = colOneStats.getNumUniqueValues();
         int colTwoNumRows = colTwoStats.getNumUniqueValues();
 
@@ -523,6 +838,96 @@ public class SelectivityEstimator {
     }
 
 
+    /**
+     * This helper function estimates the selectivity of an equi-join between
+     * two columns from their most-common-values lists and histograms.  It is
+     * the probability that a random pair of rows, one from each column, has
+     * equal values:
+     * <ul>
+     *   <li>Each most common value of either column contributes the product
+     *       of its frequencies in the two columns.</li>
+     *   <li>The histograms contribute for the range of values that they have
+     *       in common.  The rows of each histogram in that range are assumed
+     *       to be spread evenly over its distinct values in the range, and
+     *       every value of the column with fewer distinct values is assumed
+     *       to appear in the other column.</li>
+     * </ul>
+     *
+     * @param colOneStats the statistics of the first column
+     * @param colTwoStats the statistics of the second column
+     *
+     * @return a selectivity estimate in the range [0, 1].
+     *
+     * @throws TypeCastException if the values of the columns can't be
+     *         compared to each other
+     */
+    private static float estimateEquiJoin(ColumnStats colOneStats,
+                                          ColumnStats colTwoStats) {
+        float selectivity = 0;
+
+        MostCommonValues mcvOne = colOneStats.getMostCommonValues();
+        MostCommonValues mcvTwo = colTwoStats.getMostCommonValues();
+
+        if (mcvOne != null) {
+            for (int i = 0; i < mcvOne.size(); i++) {
+                selectivity += mcvOne.getFrequency(i) *
+                    estimateValueFrequency(colTwoStats, mcvOne.getValue(i));
+            }
+        }
+
+        if (mcvTwo != null) {
+            for (int i = 0; i < mcvTwo.size(); i++) {
+                Object value = mcvTwo.getValue(i);
+
+                // Values in both lists were counted above.
+                if (mcvOne != null && mcvOne.getFrequencyOf(value) >= 0)
+                    continue;
+
+                selectivity += mcvTwo.getFrequency(i) *
+                    estimateValueFrequency(colOneStats, value);
+            }
+        }
+
+        Histogram histOne = colOneStats.getHistogram();
+        Histogram histTwo = colTwoStats.getHistogram();
+
+        if (histOne != null && histTwo != null) {
+            List<Object> boundsOne = histOne.getBounds();
+            List<Object> boundsTwo = histTwo.getBounds();
+
+            // The range of values that both histograms cover.
+            Object low = boundsOne.get(0);
+            if (Histogram.compareValues(boundsTwo.get(0), low) > 0)
+                low = boundsTwo.get(0);
+
+            Object high = boundsOne.get(boundsOne.size() - 1);
+            if (Histogram.compareValues(boundsTwo.get(boundsTwo.size() - 1), high) < 0)
+                high = boundsTwo.get(boundsTwo.size() - 1);
+
+            if (Histogram.compareValues(low, high) <= 0) {
+                float overlapOne = histOne.estimateFractionBetween(low, high);
+                float overlapTwo = histTwo.estimateFractionBetween(low, high);
+
+                float rowsOne = histOne.getRowFraction() * overlapOne;
+                float rowsTwo = histTwo.getRowFraction() * overlapTwo;
+
+                float valuesOne = getNumHistogramValues(colOneStats) * overlapOne;
+                float valuesTwo = getNumHistogramValues(colTwoStats) * overlapTwo;
+
+                selectivity += rowsOne * rowsTwo /
+                    Math.max(1, Math.max(valuesOne, valuesTwo));
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Estimated equi-join selectivity from distributions as " +
+                selectivity);
+        }
+
+        return Math.max(0, Math.min(1, selectivity));
+    }
+
+
     /**
      * This method computes the function
      * (<em>high</em><sub>1</sub> - <em>low</em><sub>1</sub>) /
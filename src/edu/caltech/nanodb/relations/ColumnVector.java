@@ -0,0 +1,427 @@
+package edu.caltech.nanodb.relations;
+
+
+import java.util.Arrays;
+
+import edu.caltech.nanodb.storage.PageTuple;
+
+
+/**
+ * This class holds the values of one column for a batch of rows.  Integer,
+ * <tt>BIGINT</tt> and <tt>DOUBLE</tt> values are stored in primitive arrays,
+ * so that operators can process them without boxing each value; values of
+ * all other types are stored as objects.  A separate array records which
+ * rows are <tt>NULL</tt>.
+ * <p>
+ * Values are boxed into the same Java types that {@link Tuple} uses when
+ * they are retrieved with {@link #getValue}; for example, a <tt>SMALLINT</tt>
+ * column stores its values in an <tt>int</tt> array, but produces
+ * {@link Short} objects.
+ *
+ * @see TupleBatch
+ */
+public class ColumnVector {
+
+    /** The kinds of arrays that a column vector can store its values in. */
+    public enum Storage {
+        /** <tt>INTEGER</tt>, <tt>SMALLINT</tt> and <tt>TINYINT</tt> values. */
+        INT,
+
+        /** <tt>BIGINT</tt> values. */
+        LONG,
+
+        /** <tt>DOUBLE</tt> values. */
+        DOUBLE,
+
+        /** Values of any other type. */
+        OBJECT
+    }
+
+
+    /**
+     * The SQL type of the column's values, or {@code null} if the type isn't
+     * known.  Vectors with an unknown type always use object storage.
+     */
+    private SQLDataType baseType;
+
+
+    /** The kind of array the values are stored in. */
+    private Storage storage;
+
+
+    private int[] ints;
+
+    private long[] longs;
+
+    private double[] doubles;
+
+    private Object[] objects;
+
+
+    /** True for each row whose value is <tt>NULL</tt>. */
+    private boolean[] nulls;
+
+
+    /**
+     * Creates a column vector for values of the specified type.
+     *
+     * @param baseType the SQL type of the column's values, or {@code null}
+     *        if the type isn't known
+     *
+     * @param capacity the number of rows that the vector can hold
+     */
+    public ColumnVector(SQLDataType baseType, int capacity) {
+        this.baseType = baseType;
+        storage = getStorage(baseType);
+
+        switch (storage) {
+        case INT:
+            ints = new int[capacity];
+            break;
+
+        case LONG:
+            longs = new long[capacity];
+            break;
+
+        case DOUBLE:
+            doubles = new double[capacity];
+            break;
+
+        default:
+            objects = new Object[capacity];
+        }
+
+        nulls = new boolean[capacity];
+    }
+
+
+    /**
+     * Returns the kind of array that values of the specified type are stored
+     * in.
+     *
+     * @param baseType the SQL type, or {@code null} if the type isn't known
+     *
+     * @return the storage used for the type
+     */
+    public static Storage getStorage(SQLDataType baseType) {
+        if (baseType == null)
+            return Storage.OBJECT;
+
+        switch (baseType) {
+        case INTEGER:
+        case SMALLINT:
+        case TINYINT:
+            return Storage.INT;
+
+        case BIGINT:
+            return Storage.LONG;
+
+        case DOUBLE:
+            return Storage.DOUBLE;
+
+        default:
+            return Storage.OBJECT;
+        }
+    }
+
+
+    public SQLDataType getBaseType() {
+        return baseType;
+    }
+
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+
+    /** Returns the number of rows that the vector can hold. */
+    public int getCapacity() {
+        return nulls.length;
+    }
+
+
+    public boolean isNull(int row) {
+        return nulls[row];
+    }
+
+
+    public void setNull(int row) {
+        nulls[row] = true;
+        if (objects != null)
+            objects[row] = null;
+    }
+
+
+    public int getInt(int row) {
+        return ints[row];
+    }
+
+
+    public void setInt(int row, int value) {
+        ints[row] = value;
+        nulls[row] = false;
+    }
+
+
+    public long getLong(int row) {
+        return longs[row];
+    }
+
+
+    public void setLong(int row, long value) {
+        longs[row] = value;
+        nulls[row] = false;
+    }
+
+
+    public double getDouble(int row) {
+        return doubles[row];
+    }
+
+
+    public void setDouble(int row, double value) {
+        doubles[row] = value;
+        nulls[row] = false;
+    }
+
+
+    /**
+     * Returns the value of a row as a <tt>long</tt>.  The vector must use
+     * {@link Storage#INT} or {@link Storage#LONG} storage, and the row must
+     * not be <tt>NULL</tt>.
+     */
+    public long getAsLong(int row) {
+        return (storage == Storage.INT ? ints[row] : longs[row]);
+    }
+
+
+    /**
+     * Returns the value of a row as a <tt>double</tt>.  The vector must use
+     * primitive storage, and the row must not be <tt>NULL</tt>.
+     */
+    public double getAsDouble(int row) {
+        switch (storage) {
+        case INT:
+            return ints[row];
+
+        case LONG:
+            return longs[row];
+
+        default:
+            return doubles[row];
+        }
+    }
+
+
+    /**
+     * Returns the value of a row as an object, or {@code null} if the row is
+     * <tt>NULL</tt>.
+     *
+     * @param row the row to retrieve the value of
+     *
+     * @return the row's value
+     */
+    public Object getValue(int row) {
+        if (nulls[row])
+            return null;
+
+        switch (storage) {
+        case INT:
+            if (baseType == SQLDataType.SMALLINT)
+                return Short.valueOf((short) ints[row]);
+            else if (baseType == SQLDataType.TINYINT)
+                return Byte.valueOf((byte) ints[row]);
+            else
+                return Integer.valueOf(ints[row]);
+
+        case LONG:
+            return Long.valueOf(longs[row]);
+
+        case DOUBLE:
+            return Double.valueOf(doubles[row]);
+
+        default:
+            return objects[row];
+        }
+    }
+
+
+    /**
+     * Sets the value of a row.  Values stored in primitive arrays must be
+     * {@link Number}s.
+     *
+     * @param row the row to set the value of
+     *
+     * @param value the value to store, or {@code null} for <tt>NULL</tt>
+     */
+    public void setValue(int row, Object value) {
+        if (value == null) {
+            setNull(row);
+            return;
+        }
+
+        switch (storage) {
+        case INT:
+            ints[row] = ((Number) value).intValue();
+            break;
+
+        case LONG:
+            longs[row] = ((Number) value).longValue();
+            break;
+
+        case DOUBLE:
+            doubles[row] = ((Number) value).doubleValue();
+            break;
+
+        default:
+            objects[row] = value;
+        }
+
+        nulls[row] = false;
+    }
+
+
+    /**
+     * Sets the value of a row from a column of a tuple.  Values are read from
+     * {@link PageTuple}s without being boxed, when the vector's storage
+     * allows it.
+     *
+     * @param row the row to set the value of
+     *
+     * @param tuple the tuple to read the value from
+     *
+     * @param colIndex the index of the column in the tuple
+     */
+    public void setValue(int row, Tuple tuple, int colIndex) {
+        if (tuple instanceof PageTuple && storage != Storage.OBJECT) {
+            PageTuple pageTuple = (PageTuple) tuple;
+            if (pageTuple.isNullValue(colIndex)) {
+                setNull(row);
+            }
+            else if (storage == Storage.INT) {
+                setInt(row, pageTuple.getIntColumnValue(colIndex));
+            }
+            else if (storage == Storage.LONG) {
+                setLong(row, pageTuple.getLongColumnValue(colIndex));
+            }
+            else {
+                setDouble(row, pageTuple.getDoubleColumnValue(colIndex));
+            }
+        }
+        else {
+            setValue(row, tuple.getColumnValue(colIndex));
+        }
+    }
+
+
+    /**
+     * Sets the value of a row to the value of a row in another vector.
+     * Values are copied without being boxed if both vectors use the same
+     * primitive storage.
+     *
+     * @param row the row to set the value of
+     *
+     * @param src the vector to copy the value from
+     *
+     * @param srcRow the row of the source vector to copy
+     */
+    public void copyValue(int row, ColumnVector src, int srcRow) {
+        if (src.storage != storage || storage == Storage.OBJECT) {
+            setValue(row, src.getValue(srcRow));
+            return;
+        }
+
+        if (src.nulls[srcRow]) {
+            setNull(row);
+            return;
+        }
+
+        switch (storage) {
+        case INT:
+            ints[row] = src.ints[srcRow];
+            break;
+
+        case LONG:
+            longs[row] = src.longs[srcRow];
+            break;
+
+        default:
+            doubles[row] = src.doubles[srcRow];
+        }
+
+        nulls[row] = false;
+    }
+
+
+    /**
+     * Returns true if a row's value is equal to the specified object, using
+     * the same rules as {@link Object#equals}.  The object must be of the
+     * same Java type that {@link #getValue} would produce for the row.
+     *
+     * @param row the row to compare
+     *
+     * @param value the value to compare against, or {@code null} for
+     *        <tt>NULL</tt>
+     *
+     * @return true if the row's value is equal to the object
+     */
+    public boolean valueEquals(int row, Object value) {
+        if (nulls[row] || value == null)
+            return (nulls[row] && value == null);
+
+        switch (storage) {
+        case INT:
+            return ((Number) value).intValue() == ints[row];
+
+        case LONG:
+            return ((Number) value).longValue() == longs[row];
+
+        case DOUBLE:
+            return Double.valueOf(doubles[row]).equals(value);
+
+        default:
+            return objects[row].equals(value);
+        }
+    }
+
+
+    /**
+     * Returns the hash code of a row's value.  This is the same as the
+     * {@link Object#hashCode} of the object returned by {@link #getValue},
+     * or 0 if the row is <tt>NULL</tt>.
+     *
+     * @param row the row to hash
+     *
+     * @return the hash code of the row's value
+     */
+    public int hashValue(int row) {
+        if (nulls[row])
+            return 0;
+
+        switch (storage) {
+        case INT:
+            // Integer, Short and Byte all hash to their value.
+            return ints[row];
+
+        case LONG:
+            long l = longs[row];
+            return (int) (l ^ (l >>> 32));
+
+        case DOUBLE:
+            long bits = Double.doubleToLongBits(doubles[row]);
+            return (int) (bits ^ (bits >>> 32));
+
+        default:
+            return objects[row].hashCode();
+        }
+    }
+
+
+    /** Sets every row of the vector to <tt>NULL</tt>. */
+    public void clear() {
+        Arrays.fill(nulls, true);
+        if (objects != null)
+            Arrays.fill(objects, null);
+    }
+}
@@ -0,0 +1,397 @@
+package edu.caltech.nanodb.relations;
+
+
+import java.util.Arrays;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.storage.FilePointer;
+
+
+/**
+ * A batch of rows stored column by column, as produced by
+ * {@link edu.caltech.nanodb.plans.PlanNode#getNextBatch}.  Each column's
+ * values are held in a {@link ColumnVector}.
+ * <p>
+ * Rows are filtered out of a batch with a <em>selection vector</em>, rather
+ * than by copying the remaining rows:  the selection vector lists the
+ * indexes of the rows that are still part of the batch, in increasing order.
+ * If a batch has no selection vector then all of its rows are selected.
+ * Operators must only look at the selected rows of a batch.
+ * <p>
+ * Plan nodes may reuse their batches and column vectors, so a batch's
+ * contents are only valid until the next batch is requested from the node
+ * that produced it.
+ * <p>
+ * A batch's columns can also be loaded lazily by a {@link ColumnLoader}, so
+ * that a node such as a file scan only decodes the columns that are actually
+ * used by the nodes above it.  Columns must therefore always be retrieved
+ * with {@link #getColumn}.
+ */
+public class TupleBatch {
+
+    /**
+     * Fills in the values of a batch's column the first time the column is
+     * retrieved.
+     */
+    public interface ColumnLoader {
+        /**
+         * Loads the values of every row of a column into its vector.
+         *
+         * @param batch the batch to load the column of
+         *
+         * @param colIndex the index of the column to load
+         */
+        void loadColumn(TupleBatch batch, int colIndex);
+    }
+
+
+    /** The number of rows that plan nodes put in each batch by default. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+
+    private ColumnVector[] columns;
+
+
+    /** The number of rows stored in the batch, selected or not. */
+    private int numRows;
+
+
+    /**
+     * The indexes of the selected rows, or {@code null} if all rows are
+     * selected.
+     */
+    private int[] selection;
+
+
+    /** The number of selected rows. */
+    private int numSelected;
+
+
+    /** Loads the batch's columns, or {@code null} if they are all loaded. */
+    private ColumnLoader loader;
+
+
+    /** True for each column that has been loaded by {@link #loader}. */
+    private boolean[] loaded;
+
+
+    /**
+     * Creates an empty batch with a column vector for each column in the
+     * schema.
+     *
+     * @param schema the schema of the rows in the batch
+     *
+     * @param capacity the maximum number of rows in the batch
+     */
+    public TupleBatch(Schema schema, int capacity) {
+        columns = new ColumnVector[schema.numColumns()];
+        for (int i = 0; i < columns.length; i++) {
+            SQLDataType baseType =
+                schema.getColumnInfo(i).getType().getBaseType();
+
+            columns[i] = new ColumnVector(baseType, capacity);
+        }
+    }
+
+
+    /**
+     * Creates a batch from existing column vectors.  All rows of the batch
+     * are selected.
+     *
+     * @param columns the columns of the batch
+     *
+     * @param numRows the number of rows stored in the vectors
+     */
+    public TupleBatch(ColumnVector[] columns, int numRows) {
+        this.columns = columns;
+        setNumRows(numRows);
+    }
+
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+
+    /**
+     * Returns the vector holding a column's values, loading the column first
+     * if necessary.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the column's vector
+     */
+    public ColumnVector getColumn(int colIndex) {
+        if (loader != null && !loaded[colIndex]) {
+            loaded[colIndex] = true;
+            loader.loadColumn(this, colIndex);
+        }
+
+        return columns[colIndex];
+    }
+
+
+    public void setColumn(int colIndex, ColumnVector column) {
+        columns[colIndex] = column;
+        if (loaded != null)
+            loaded[colIndex] = true;
+    }
+
+
+    /**
+     * Returns the vector of a column without loading it, so that a
+     * {@link ColumnLoader} can fill it in.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the column's vector
+     */
+    public ColumnVector getUnloadedColumn(int colIndex) {
+        return columns[colIndex];
+    }
+
+
+    /**
+     * Specifies the loader that fills in the batch's columns when they are
+     * first retrieved.  All columns are marked as not loaded.
+     *
+     * @param loader the column loader, or {@code null} if the columns are
+     *        already filled in
+     */
+    public void setColumnLoader(ColumnLoader loader) {
+        this.loader = loader;
+        if (loader == null) {
+            loaded = null;
+        }
+        else {
+            if (loaded == null)
+                loaded = new boolean[columns.length];
+            else
+                Arrays.fill(loaded, false);
+        }
+    }
+
+
+    /**
+     * Returns the number of rows that the batch can hold, which is the
+     * smallest capacity of its column vectors.
+     */
+    public int getCapacity() {
+        int capacity = Integer.MAX_VALUE;
+        for (ColumnVector column : columns)
+            capacity = Math.min(capacity, column.getCapacity());
+
+        return capacity;
+    }
+
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+
+    /**
+     * Sets the number of rows stored in the batch, and selects all of them.
+     *
+     * @param numRows the number of rows stored in the column vectors
+     */
+    public void setNumRows(int numRows) {
+        this.numRows = numRows;
+        selection = null;
+        numSelected = numRows;
+    }
+
+
+    /** Returns the number of selected rows in the batch. */
+    public int getNumSelected() {
+        return numSelected;
+    }
+
+
+    /**
+     * Returns the index of the <em>i</em><sup>th</sup> selected row.
+     *
+     * @param i which selected row to return the index of
+     *
+     * @return the index of the row in the column vectors
+     */
+    public int getSelectedRow(int i) {
+        return (selection == null ? i : selection[i]);
+    }
+
+
+    /**
+     * Returns the selection vector of the batch, or {@code null} if all rows
+     * are selected.
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+
+
+    /**
+     * Sets the selection vector of the batch.
+     *
+     * @param selection the indexes of the selected rows, in increasing order
+     *
+     * @param numSelected the number of entries in the selection vector that
+     *        are used
+     */
+    public void setSelection(int[] selection, int numSelected) {
+        this.selection = selection;
+        this.numSelected = numSelected;
+    }
+
+
+    /**
+     * Copies the selected rows of the batch into a new batch, so that they
+     * remain valid after the node that produced this batch reuses it.  The
+     * new batch's column vectors have the same types as this batch's, and
+     * all of its rows are selected.
+     *
+     * @return a new batch holding a copy of the selected rows
+     */
+    public TupleBatch copySelectedRows() {
+        ColumnVector[] copies = new ColumnVector[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            ColumnVector column = getColumn(i);
+            ColumnVector copy =
+                new ColumnVector(column.getBaseType(), numSelected);
+
+            for (int j = 0; j < numSelected; j++)
+                copy.copyValue(j, column, getSelectedRow(j));
+
+            copies[i] = copy;
+        }
+
+        return new TupleBatch(copies, numSelected);
+    }
+
+
+    /**
+     * Returns a new batch that shares this batch's column vectors and
+     * selection vector.  A batch that several consumers read can be given
+     * to each of them this way, since a consumer may change the selection
+     * of the batch it receives, but not the values in its vectors.
+     *
+     * @return a new batch viewing the same rows
+     */
+    public TupleBatch share() {
+        ColumnVector[] shared = new ColumnVector[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            shared[i] = getColumn(i);
+
+        TupleBatch batch = new TupleBatch(shared, numRows);
+        if (selection != null)
+            batch.setSelection(selection, numSelected);
+
+        return batch;
+    }
+
+
+    /**
+     * Copies the values of a row into a new tuple.
+     *
+     * @param row the index of the row in the column vectors
+     *
+     * @return a tuple containing the row's values
+     */
+    public TupleLiteral getTuple(int row) {
+        TupleLiteral tuple = new TupleLiteral(columns.length);
+        for (int i = 0; i < columns.length; i++)
+            tuple.setColumnValue(i, getColumn(i).getValue(row));
+
+        return tuple;
+    }
+
+
+    /**
+     * Returns a tuple that reads its values from a row of this batch, without
+     * copying them.  The row can be changed with {@link RowTuple#setRow}, so
+     * one object can be used to evaluate expressions against many rows.
+     *
+     * @return a tuple that views the first row of the batch
+     */
+    public RowTuple getRowTuple() {
+        return new RowTuple();
+    }
+
+
+    /** A tuple that reads its values from one row of the batch. */
+    public class RowTuple implements Tuple {
+        private int row;
+
+
+        public void setRow(int row) {
+            this.row = row;
+        }
+
+
+        public int getRow() {
+            return row;
+        }
+
+
+        @Override
+        public boolean isDiskBacked() {
+            return false;
+        }
+
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+
+        @Override
+        public boolean isNullValue(int colIndex) {
+            return getColumn(colIndex).isNull(row);
+        }
+
+
+        @Override
+        public Object getColumnValue(int colIndex) {
+            return getColumn(colIndex).getValue(row);
+        }
+
+
+        @Override
+        public void setColumnValue(int colIndex, Object value) {
+            getColumn(colIndex).setValue(row, value);
+        }
+
+
+        @Override
+        public FilePointer getExternalReference() {
+            throw new UnsupportedOperationException(
+                "Rows of a tuple batch have no external reference");
+        }
+
+
+        /** Rows of a batch are in memory, so pinning is a no-op. */
+        @Override
+        public void pin() {
+            // No-op.
+        }
+
+
+        /** Rows of a batch are in memory, so pinning is a no-op. */
+        @Override
+        public void unpin() {
+            // No-op.
+        }
+
+
+        @Override
+        public int getPinCount() {
+            return 0;
+        }
+
+
+        @Override
+        public boolean isPinned() {
+            return false;
+        }
+    }
+}
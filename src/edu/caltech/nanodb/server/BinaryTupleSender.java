@@ -0,0 +1,143 @@
+package edu.caltech.nanodb.server;
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.qeval.TupleProcessor;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This implementation of the tuple-processor interface sends the schema and
+ * tuples produced by the <tt>SELECT</tt> statement to a client using the
+ * {@link WireProtocol binary protocol}.  Tuples are collected into batches,
+ * and each batch is written and flushed to the client as soon as it is
+ * full, so that the query can't get far ahead of a slow client.
+ */
+public class BinaryTupleSender implements TupleProcessor {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(BinaryTupleSender.class);
+
+
+    /** The largest number of rows that are sent in a single batch. */
+    public static final int MAX_BATCH_ROWS = 1024;
+
+
+    /**
+     * A batch is sent once the approximate size of its values reaches this
+     * many bytes, even if it has fewer than {@link #MAX_BATCH_ROWS} rows.
+     */
+    public static final int MAX_BATCH_BYTES = 32 * 1024;
+
+
+    private DataOutputStream output;
+
+
+    /** True if row batches may be compressed. */
+    private boolean compress;
+
+
+    private int numColumns;
+
+
+    /** The rows of the current batch that haven't been sent yet. */
+    private ArrayList<Object[]> batch = new ArrayList<Object[]>();
+
+
+    /** An estimate of the number of bytes in the current batch. */
+    private int batchBytes;
+
+
+    /**
+     * If sending the last batch of a query's results from {@link #finish}
+     * failed, this is the error, which is reported by {@link #flushRows}.
+     */
+    private IOException finishError;
+
+
+    public BinaryTupleSender(DataOutputStream output, boolean compress) {
+        if (output == null)
+            throw new IllegalArgumentException("output cannot be null");
+
+        this.output = output;
+        this.compress = compress;
+    }
+
+
+    public void setSchema(Schema schema) throws IOException {
+        batch.clear();
+        batchBytes = 0;
+        finishError = null;
+
+        numColumns = schema.numColumns();
+        WireProtocol.writeSchema(output, schema);
+    }
+
+
+    public void process(Tuple tuple) throws IOException {
+        // The tuple may be backed by a page that will be reused, so copy out
+        // its values.
+        Object[] row = new Object[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            Object value = tuple.getColumnValue(i);
+            row[i] = value;
+
+            if (value instanceof String)
+                batchBytes += ((String) value).length() + 4;
+            else
+                batchBytes += 8;
+        }
+
+        batch.add(row);
+        if (batch.size() >= MAX_BATCH_ROWS || batchBytes >= MAX_BATCH_BYTES)
+            sendBatch();
+    }
+
+
+    public void finish() {
+        try {
+            sendBatch();
+        }
+        catch (IOException e) {
+            logger.error("Couldn't send the last batch of rows", e);
+            finishError = e;
+        }
+    }
+
+
+    /**
+     * Sends any rows that haven't been sent yet, and reports any error that
+     * occurred when {@link #finish} tried to send them.
+     *
+     * @throws IOException if the rows couldn't be sent
+     */
+    public void flushRows() throws IOException {
+        if (finishError != null) {
+            IOException e = finishError;
+            finishError = null;
+            throw e;
+        }
+
+        sendBatch();
+    }
+
+
+    private void sendBatch() throws IOException {
+        if (batch.isEmpty())
+            return;
+
+        try {
+            WireProtocol.writeRows(output, batch, numColumns, compress);
+            output.flush();
+        }
+        finally {
+            batch.clear();
+            batchBytes = 0;
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package edu.caltech.nanodb.server;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintStream;
@@ -16,8 +21,10 @@ import edu.caltech.nanodb.client.SessionState;
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.commands.Command;
+import edu.caltech.nanodb.commands.ExecuteCommand;
 import edu.caltech.nanodb.commands.ExitCommand;
 import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.qeval.TupleProcessor;
 
 import edu.caltech.nanodb.sqlparse.NanoSqlLexer;
 import edu.caltech.nanodb.sqlparse.NanoSqlParser;
@@ -25,7 +32,9 @@ import edu.caltech.nanodb.sqlparse.NanoSqlParser;
 
 /**
  * This class handles a connection from a single client to the database
- * server.
+ * server.  Clients may talk to the server with Java serialization, or with
+ * the {@link WireProtocol binary protocol}; the handler tells which one a
+ * client is using from the first bytes that the client sends.
  */
 public class ClientHandler implements Runnable {
     /** A logging object for reporting anything interesting that happens. */
@@ -47,13 +56,27 @@ public class ClientHandler implements Runnable {
     private ObjectOutputStream objectOutput;
 
 
+    /**
+     * The stream used to receive commands, if the client uses the binary
+     * protocol.
+     */
+    private DataInputStream wireInput;
+
+
+    /**
+     * The stream used to send results, if the client uses the binary
+     * protocol.
+     */
+    private DataOutputStream wireOutput;
+
+
     private ForwardingOutputStream commandOutput;
 
 
     private PrintStream printOutput;
 
 
-    private TupleSender tupleSender;
+    private TupleProcessor tupleSender;
 
 
     /**
@@ -81,20 +104,12 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            // Communicate over the socket using Java serialization, since
-            // it's much easier than implementing our own write protocol.
-            objectOutput = new ObjectOutputStream(sock.getOutputStream());
-            objectInput = new ObjectInputStream(sock.getInputStream());
-
-            // This tuple-processor is used to send tuples back to the client
-            // over the ObjectOutputStream that uses the socket.
-            tupleSender = new TupleSender(objectOutput);
+            openStreams();
 
             // Also, set up a PrintStream that queues up text written by
             // the currently executing command, and when the PrintStream
-            // is flushed, forward the string text over the same
-            // ObjectOutputStream that wraps the socket.
-            commandOutput = new ForwardingOutputStream(objectOutput);
+            // is flushed, forward the string text over the same stream
+            // that wraps the socket.
             printOutput = new PrintStream(commandOutput);
             SessionState.get().setOutputStream(printOutput);
 
@@ -104,7 +119,7 @@ public class ClientHandler implements Runnable {
                 String commandText;
                 Command cmd;
                 try {
-                    commandText = (String) objectInput.readObject();
+                    commandText = readCommandText();
                     StringReader sReader = new StringReader(commandText);
                     NanoSqlLexer lexer = new NanoSqlLexer(sReader);
                     NanoSqlParser parser = new NanoSqlParser(lexer);
@@ -120,7 +135,7 @@ public class ClientHandler implements Runnable {
                     logger.error("Parser error", e);
 
                     // Send error back to the client.
-                    objectOutput.writeObject(e);
+                    sendError(e);
                     continue;
                 }
                 catch (TokenStreamException e) {
@@ -128,7 +143,7 @@ public class ClientHandler implements Runnable {
                     logger.error("Input stream error", e);
 
                     // Send error back to the client.
-                    objectOutput.writeObject(e);
+                    sendError(e);
                     continue;
                 }
                 catch (Exception e) {
@@ -149,8 +164,7 @@ public class ClientHandler implements Runnable {
 
                 commandOutput.reset();  // (just in case)
                 doCommand(cmd);
-                objectOutput.writeObject(commandOutput.toString());
-                objectOutput.writeObject(CommandState.COMMAND_COMPLETED);
+                sendCommandCompleted(commandOutput.toString());
                 commandOutput.reset();
             }
         }
@@ -158,6 +172,115 @@ public class ClientHandler implements Runnable {
             logger.error(String.format(
                 "Couldn't establish communication with client %d!%n", id), e);
         }
+        finally {
+            // Close the connection, so the client sees that it was dropped.
+            try {
+                sock.close();
+            }
+            catch (IOException e) {
+                logger.warn(String.format(
+                    "Couldn't close the socket for client %d", id), e);
+            }
+        }
+    }
+
+
+    /**
+     * Works out which protocol the client is using, and sets up the streams
+     * for that protocol.  Clients using Java serialization start with the
+     * header of a serialization stream, so the first few bytes are enough
+     * to tell the protocols apart.
+     *
+     * @throws IOException if the client's protocol can't be determined, or
+     *         the streams can't be set up
+     */
+    private void openStreams() throws IOException {
+        InputStream input = new BufferedInputStream(sock.getInputStream());
+        input.mark(4);
+        int magic = new DataInputStream(input).readInt();
+        input.reset();
+
+        if (magic == WireProtocol.MAGIC) {
+            wireInput = new DataInputStream(input);
+            wireOutput = new DataOutputStream(
+                new BufferedOutputStream(sock.getOutputStream()));
+
+            // Agree to whichever of the client's options we support.
+            byte flags = WireProtocol.readHandshake(wireInput);
+            flags &= WireProtocol.SUPPORTED_FLAGS;
+            WireProtocol.writeHandshake(wireOutput, flags);
+
+            logger.info(String.format("Client %d is using the binary " +
+                "protocol, with flags 0x%02X.", id, flags));
+
+            tupleSender = new BinaryTupleSender(wireOutput,
+                (flags & WireProtocol.FLAG_COMPRESS) != 0);
+            commandOutput = new ForwardingOutputStream(wireOutput);
+        }
+        else if ((magic >>> 16) == (WireProtocol.SERIALIZATION_MAGIC & 0xFFFF)) {
+            // Communicate over the socket using Java serialization.
+            objectOutput = new ObjectOutputStream(sock.getOutputStream());
+            objectInput = new ObjectInputStream(input);
+
+            // This tuple-processor is used to send tuples back to the client
+            // over the ObjectOutputStream that uses the socket.
+            tupleSender = new TupleSender(objectOutput);
+            commandOutput = new ForwardingOutputStream(objectOutput);
+        }
+        else {
+            throw new IOException(String.format(
+                "Client %d is using an unrecognized protocol", id));
+        }
+    }
+
+
+    /**
+     * Receives the text of the next command from the client.
+     *
+     * @return the text of the command
+     *
+     * @throws EOFException if the client has disconnected
+     * @throws IOException if the client sent something other than a command,
+     *         or command text longer than {@link WireProtocol#MAX_STRING_SIZE}
+     * @throws Exception if the command couldn't be received
+     */
+    private String readCommandText() throws Exception {
+        if (wireInput == null)
+            return (String) objectInput.readObject();
+
+        byte msgType = wireInput.readByte();
+        if (msgType != WireProtocol.MSG_COMMAND)
+            throw new IOException("Unexpected message type " + msgType);
+
+        String commandText = WireProtocol.readString(wireInput);
+        if (commandText == null)
+            throw new IOException("Command message has no text");
+
+        return commandText;
+    }
+
+
+    private void sendError(Exception e) throws IOException {
+        if (wireOutput != null)
+            WireProtocol.writeError(wireOutput, e);
+        else
+            objectOutput.writeObject(e);
+    }
+
+
+    /**
+     * Sends the text output by a command to the client, followed by an
+     * indication that the command has been completed.
+     */
+    private void sendCommandCompleted(String text) throws IOException {
+        if (wireOutput != null) {
+            WireProtocol.writeText(wireOutput, text);
+            WireProtocol.writeCommandCompleted(wireOutput);
+        }
+        else {
+            objectOutput.writeObject(text);
+            objectOutput.writeObject(CommandState.COMMAND_COMPLETED);
+        }
     }
 
 
@@ -178,15 +301,38 @@ public class ClientHandler implements Runnable {
             SelectCommand selCmd = (SelectCommand) cmd;
             selCmd.setTupleProcessor(tupleSender);
         }
+        else if (cmd instanceof ExecuteCommand) {
+            // The prepared statement may be a SELECT command.
+            ExecuteCommand execCmd = (ExecuteCommand) cmd;
+            execCmd.setTupleProcessor(tupleSender);
+        }
 
+        EventDispatcher eventDispatch = EventDispatcher.getInstance();
         try {
+            eventDispatch.fireBeforeCommandExecuted(cmd);
             cmd.execute(server.getStorageManager());
+            eventDispatch.fireAfterCommandExecuted(cmd);
         }
         catch (Exception e) {
             logger.error("Encountered error during command execution", e);
-            objectOutput.writeObject(e);
+            flushRows();
+            sendError(e);
         }
 
-        objectOutput.flush();
+        flushRows();
+        if (wireOutput != null)
+            wireOutput.flush();
+        else
+            objectOutput.flush();
+    }
+
+
+    /**
+     * Sends any rows of a query's results that the binary protocol's tuple
+     * sender hasn't sent yet.
+     */
+    private void flushRows() throws IOException {
+        if (tupleSender instanceof BinaryTupleSender)
+            ((BinaryTupleSender) tupleSender).flushRows();
     }
 }
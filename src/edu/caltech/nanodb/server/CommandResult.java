@@ -1,6 +1,7 @@
 package edu.caltech.nanodb.server;
 
 
+import edu.caltech.nanodb.commands.ExecuteCommand;
 import edu.caltech.nanodb.commands.SelectCommand;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.qeval.TupleProcessor;
@@ -91,6 +92,16 @@ public class CommandResult implements Serializable {
     }
 
 
+    /**
+     * Collects the results of an <tt>EXECUTE</tt> command, if the prepared
+     * statement it executes is a <tt>SELECT</tt> statement.
+     */
+    public void collectSelectResults(ExecuteCommand command) {
+        tuples = new ArrayList<TupleLiteral>();
+        command.setTupleProcessor(new ResultCollector());
+    }
+
+
     public void recordFailure(Exception e) {
         if (e == null)
             throw new IllegalArgumentException("t cannot be null");
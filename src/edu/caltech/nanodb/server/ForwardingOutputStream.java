@@ -1,6 +1,7 @@
 package edu.caltech.nanodb.server;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 
@@ -13,15 +14,33 @@ public class ForwardingOutputStream extends ByteArrayOutputStream {
     private ObjectOutputStream objectOutput;
 
 
+    /**
+     * If the client uses the {@link WireProtocol binary protocol}, this is
+     * the stream that text is forwarded to.
+     */
+    private DataOutputStream wireOutput;
+
+
     public ForwardingOutputStream(ObjectOutputStream objectOutput) {
         this.objectOutput = objectOutput;
     }
 
 
+    public ForwardingOutputStream(DataOutputStream wireOutput) {
+        this.wireOutput = wireOutput;
+    }
+
+
     public void flush() throws IOException {
         String contents = toString();
-        objectOutput.writeObject(contents);
-        objectOutput.flush();
+        if (wireOutput != null) {
+            WireProtocol.writeText(wireOutput, contents);
+            wireOutput.flush();
+        }
+        else {
+            objectOutput.writeObject(contents);
+            objectOutput.flush();
+        }
         reset();
     }
 }
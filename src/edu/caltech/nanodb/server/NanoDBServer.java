@@ -6,6 +6,7 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 
+import edu.caltech.nanodb.qeval.PlanCache;
 import edu.caltech.nanodb.qeval.PlannerFactory;
 import edu.caltech.nanodb.server.properties.PropertyRegistry;
 import org.apache.log4j.Logger;
@@ -14,6 +15,7 @@ import antlr.RecognitionException;
 import antlr.TokenStreamException;
 
 import edu.caltech.nanodb.commands.Command;
+import edu.caltech.nanodb.commands.ExecuteCommand;
 import edu.caltech.nanodb.commands.SelectCommand;
 import edu.caltech.nanodb.sqlparse.NanoSqlLexer;
 import edu.caltech.nanodb.sqlparse.NanoSqlParser;
@@ -58,6 +60,11 @@ public class NanoDBServer {
         propReg.registerProperties(
             new PlannerFactory.PlannerFactoryPropertyHandler(),
             PlannerFactory.PROP_PLANNER_CLASS);
+
+        // The plan cache needs to know about commands that change the
+        // schema or the statistics of tables.
+        EventDispatcher.getInstance().addCommandEventListener(
+            PlanCache.getInstance());
     }
 
 
@@ -124,6 +131,8 @@ public class NanoDBServer {
 
         if (includeTuples && command instanceof SelectCommand)
             result.collectSelectResults((SelectCommand) command);
+        else if (includeTuples && command instanceof ExecuteCommand)
+            result.collectSelectResults((ExecuteCommand) command);
 
         EventDispatcher eventDispatch = EventDispatcher.getInstance();
         result.startExecution();
@@ -170,6 +179,10 @@ public class NanoDBServer {
 
         PropertyRegistry.getInstance().unregisterAllProperties();
 
+        PlanCache planCache = PlanCache.getInstance();
+        EventDispatcher.getInstance().removeCommandEventListener(planCache);
+        planCache.clear();
+
         try {
             storageManager.shutdown();
         }
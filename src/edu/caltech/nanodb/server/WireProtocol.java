@@ -0,0 +1,675 @@
+package edu.caltech.nanodb.server;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+
+
+/**
+ * <p>
+ * This class defines the binary protocol that clients and the server can
+ * use to talk to each other, in place of Java serialization.  The protocol
+ * is a sequence of messages, each of which starts with a one-byte message
+ * type.  The client starts the conversation by sending a handshake of the
+ * {@link #MAGIC} number, the protocol {@link #VERSION}, and a byte of
+ * option flags; the server answers with the same three values, with the
+ * flags it agreed to.  The server can tell this handshake apart from the
+ * header of a Java serialization stream, so older clients still work.
+ * </p>
+ * <p>
+ * The client sends {@link #MSG_COMMAND} messages holding the text of each
+ * command.  For each command, the server sends back any number of
+ * {@link #MSG_TEXT}, {@link #MSG_SCHEMA}, {@link #MSG_ROWS} and
+ * {@link #MSG_ERROR} messages, followed by a {@link #MSG_COMMAND_COMPLETED}
+ * message.  The schema of a query's results is sent once, and the rows are
+ * then sent in length-prefixed batches, each of which starts with the type
+ * of every column in the batch, so that the values themselves can be
+ * written without any type information.  Each row starts with a bitmap of
+ * its <tt>NULL</tt> columns.  If the client asked for compression, large
+ * batches are compressed with {@link Deflater}.
+ * </p>
+ * <p>
+ * The server writes and flushes each batch as soon as it is full, so a
+ * client that reads slowly holds up the query producing the rows, instead
+ * of the server buffering the whole result.
+ * </p>
+ */
+public class WireProtocol {
+
+    /** The first four bytes that a client sends, <tt>"NDBP"</tt>. */
+    public static final int MAGIC = 0x4E444250;
+
+
+    /** The version of the protocol defined by this class. */
+    public static final byte VERSION = 1;
+
+
+    /**
+     * The first two bytes of a Java serialization stream, which are sent by
+     * clients that use the older protocol.
+     */
+    public static final short SERIALIZATION_MAGIC = (short) 0xACED;
+
+
+    /** A handshake flag indicating that row batches may be compressed. */
+    public static final byte FLAG_COMPRESS = 0x01;
+
+
+    /** The handshake flags that this implementation supports. */
+    public static final byte SUPPORTED_FLAGS = FLAG_COMPRESS;
+
+
+    /** A message from the client holding the text of a command. */
+    public static final byte MSG_COMMAND = 1;
+
+
+    /** A message holding text output by a command. */
+    public static final byte MSG_TEXT = 2;
+
+
+    /** A message holding the schema of a query's results. */
+    public static final byte MSG_SCHEMA = 3;
+
+
+    /** A message holding a batch of result rows. */
+    public static final byte MSG_ROWS = 4;
+
+
+    /** A message describing an error that occurred in the server. */
+    public static final byte MSG_ERROR = 5;
+
+
+    /** A message indicating that the server has finished a command. */
+    public static final byte MSG_COMMAND_COMPLETED = 6;
+
+
+    /** A row-batch flag indicating that the batch is compressed. */
+    public static final byte BATCH_COMPRESSED = 0x01;
+
+
+    /** A column (or value) that is always <tt>NULL</tt>. */
+    public static final byte VALUE_NULL = 0;
+
+    public static final byte VALUE_BOOLEAN = 1;
+
+    public static final byte VALUE_BYTE = 2;
+
+    public static final byte VALUE_SHORT = 3;
+
+    public static final byte VALUE_INTEGER = 4;
+
+    public static final byte VALUE_LONG = 5;
+
+    public static final byte VALUE_FLOAT = 6;
+
+    public static final byte VALUE_DOUBLE = 7;
+
+    public static final byte VALUE_STRING = 8;
+
+    /**
+     * A value of any other class, which is written with Java serialization.
+     */
+    public static final byte VALUE_OBJECT = 9;
+
+    /**
+     * A column whose values aren't all of the same class, so each value is
+     * preceded by its own value type.
+     */
+    public static final byte VALUE_TAGGED = 10;
+
+
+    /**
+     * Row batches whose encoded size is smaller than this aren't compressed,
+     * since compression wouldn't save enough to be worth the time.
+     */
+    public static final int COMPRESS_THRESHOLD = 1024;
+
+
+    /** The largest row batch that a reader will accept. */
+    public static final int MAX_BATCH_SIZE = 64 * 1024 * 1024;
+
+
+    /**
+     * The largest string, in bytes, that a reader will accept, such as the
+     * text of a command or an error message.
+     */
+    public static final int MAX_STRING_SIZE = 16 * 1024 * 1024;
+
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    /**
+     * Writes the handshake that a client sends when it connects, or that
+     * the server sends back in response.
+     *
+     * @param out the stream to write the handshake to
+     *
+     * @param flags the handshake flags
+     *
+     * @throws IOException if the handshake couldn't be written
+     */
+    public static void writeHandshake(DataOutputStream out, byte flags)
+        throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.flush();
+    }
+
+
+    /**
+     * Reads the handshake sent by the other side of a connection, and
+     * returns its flags.
+     *
+     * @param in the stream to read the handshake from
+     *
+     * @return the handshake flags
+     *
+     * @throws IOException if the handshake couldn't be read, or is for a
+     *         different protocol or version
+     */
+    public static byte readHandshake(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException(String.format(
+                "Unrecognized protocol magic number 0x%08X", magic));
+        }
+
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version +
+                " (expected version " + VERSION + ")");
+        }
+
+        return in.readByte();
+    }
+
+
+    /**
+     * Writes a string, which may be {@code null}, as a length followed by
+     * its UTF-8 bytes.  Unlike {@link DataOutputStream#writeUTF}, this
+     * allows strings longer than 64KB.
+     */
+    public static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        }
+        else {
+            byte[] bytes = s.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     *
+     * @throws IOException if the string is longer than
+     *         {@link #MAX_STRING_SIZE} bytes, or can't be read
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+
+        if (length > MAX_STRING_SIZE)
+            throw new IOException("Invalid string length " + length);
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    /** Writes a {@link #MSG_COMMAND} message. */
+    public static void writeCommand(DataOutputStream out, String commandText)
+        throws IOException {
+        out.writeByte(MSG_COMMAND);
+        writeString(out, commandText);
+        out.flush();
+    }
+
+
+    /** Writes a {@link #MSG_TEXT} message. */
+    public static void writeText(DataOutputStream out, String text)
+        throws IOException {
+        out.writeByte(MSG_TEXT);
+        writeString(out, text);
+    }
+
+
+    /**
+     * Writes a {@link #MSG_ERROR} message describing an exception.  The
+     * exception's stack trace is sent as text, so that the client doesn't
+     * need the exception's class to report it.
+     */
+    public static void writeError(DataOutputStream out, Throwable t)
+        throws IOException {
+        StringWriter trace = new StringWriter();
+        PrintWriter writer = new PrintWriter(trace);
+        t.printStackTrace(writer);
+        writer.flush();
+
+        out.writeByte(MSG_ERROR);
+        writeString(out, trace.toString());
+    }
+
+
+    /** Writes a {@link #MSG_COMMAND_COMPLETED} message. */
+    public static void writeCommandCompleted(DataOutputStream out)
+        throws IOException {
+        out.writeByte(MSG_COMMAND_COMPLETED);
+        out.flush();
+    }
+
+
+    /**
+     * Writes a {@link #MSG_SCHEMA} message.  Only the names and types of the
+     * columns are sent.
+     */
+    public static void writeSchema(DataOutputStream out, Schema schema)
+        throws IOException {
+        out.writeByte(MSG_SCHEMA);
+        out.writeShort(schema.numColumns());
+        for (ColumnInfo colInfo : schema) {
+            writeString(out, colInfo.getTableName());
+            writeString(out, colInfo.getName());
+
+            ColumnType colType = colInfo.getType();
+            SQLDataType baseType = colType.getBaseType();
+            out.writeByte(baseType.getTypeID());
+            if (colType.hasLength()) {
+                out.writeShort(colType.getLength());
+            }
+            else if (baseType == SQLDataType.NUMERIC) {
+                out.writeShort(colType.getPrecision());
+                out.writeShort(colType.getScale());
+            }
+        }
+    }
+
+
+    /**
+     * Reads the body of a {@link #MSG_SCHEMA} message, after its message
+     * type has been read.
+     */
+    public static Schema readSchema(DataInputStream in) throws IOException {
+        Schema schema = new Schema();
+
+        int numColumns = in.readUnsignedShort();
+        for (int i = 0; i < numColumns; i++) {
+            String tableName = readString(in);
+            String name = readString(in);
+
+            byte typeID = in.readByte();
+            SQLDataType baseType = SQLDataType.findType(typeID);
+            if (baseType == null)
+                throw new IOException("Unrecognized column type " + typeID);
+
+            ColumnType colType = new ColumnType(baseType);
+            if (colType.hasLength()) {
+                colType.setLength(in.readUnsignedShort());
+            }
+            else if (baseType == SQLDataType.NUMERIC) {
+                colType.setPrecision(in.readUnsignedShort());
+                colType.setScale(in.readUnsignedShort());
+            }
+
+            schema.addColumnInfo(new ColumnInfo(name, tableName, colType));
+        }
+
+        return schema;
+    }
+
+
+    /**
+     * Writes a {@link #MSG_ROWS} message holding a batch of rows.
+     *
+     * @param out the stream to write the message to
+     *
+     * @param rows the rows in the batch, each of which has a value (possibly
+     *        {@code null}) for every column
+     *
+     * @param numColumns the number of columns in each row
+     *
+     * @param compress true if the batch may be compressed
+     *
+     * @throws IOException if the batch couldn't be written
+     */
+    public static void writeRows(DataOutputStream out, List<Object[]> rows,
+        int numColumns, boolean compress) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encodeRows(new DataOutputStream(bytes), rows, numColumns);
+
+        byte[] payload = bytes.toByteArray();
+        int payloadSize = payload.length;
+        byte flags = 0;
+        int uncompressedSize = payload.length;
+
+        if (compress && payload.length >= COMPRESS_THRESHOLD) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(payload);
+                deflater.finish();
+
+                // Only keep the compressed batch if it is actually smaller.
+                byte[] compressed = new byte[payload.length];
+                int size = deflater.deflate(compressed);
+                if (deflater.finished() && size < payload.length) {
+                    payload = compressed;
+                    payloadSize = size;
+                    flags |= BATCH_COMPRESSED;
+                }
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        out.writeByte(MSG_ROWS);
+        out.writeByte(flags);
+        out.writeInt(payloadSize);
+        if ((flags & BATCH_COMPRESSED) != 0)
+            out.writeInt(uncompressedSize);
+        out.write(payload, 0, payloadSize);
+    }
+
+
+    /**
+     * Reads the body of a {@link #MSG_ROWS} message, after its message type
+     * has been read.
+     *
+     * @param in the stream to read the batch from
+     *
+     * @return the rows in the batch
+     *
+     * @throws IOException if the batch couldn't be read or decoded
+     */
+    public static List<TupleLiteral> readRows(DataInputStream in)
+        throws IOException {
+
+        byte flags = in.readByte();
+        int payloadSize = in.readInt();
+        int uncompressedSize = payloadSize;
+        if ((flags & BATCH_COMPRESSED) != 0)
+            uncompressedSize = in.readInt();
+
+        if (payloadSize < 0 || payloadSize > MAX_BATCH_SIZE ||
+            uncompressedSize < 0 || uncompressedSize > MAX_BATCH_SIZE) {
+            throw new IOException("Invalid row-batch size " + payloadSize);
+        }
+
+        byte[] payload = new byte[payloadSize];
+        in.readFully(payload);
+
+        if ((flags & BATCH_COMPRESSED) != 0) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(payload);
+                byte[] uncompressed = new byte[uncompressedSize];
+                int size = inflater.inflate(uncompressed);
+                if (size != uncompressedSize || !inflater.finished())
+                    throw new IOException("Compressed row batch is truncated");
+
+                payload = uncompressed;
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Compressed row batch is corrupt", e);
+            }
+            finally {
+                inflater.end();
+            }
+        }
+
+        return decodeRows(new DataInputStream(
+            new ByteArrayInputStream(payload)));
+    }
+
+
+    /**
+     * Encodes the rows of a batch:  the number of rows and columns, the
+     * value type of each column, and then each row's <tt>NULL</tt>-bitmap
+     * and non-<tt>NULL</tt> values.
+     */
+    private static void encodeRows(DataOutputStream out, List<Object[]> rows,
+        int numColumns) throws IOException {
+
+        byte[] colTypes = new byte[numColumns];
+        for (int iCol = 0; iCol < numColumns; iCol++) {
+            byte colType = VALUE_NULL;
+            for (Object[] row : rows) {
+                if (row[iCol] == null)
+                    continue;
+
+                byte valueType = getValueType(row[iCol]);
+                if (colType == VALUE_NULL) {
+                    colType = valueType;
+                }
+                else if (colType != valueType) {
+                    colType = VALUE_TAGGED;
+                    break;
+                }
+            }
+
+            // Objects of classes we don't know about may still be of
+            // different classes, so tag them too.
+            if (colType == VALUE_OBJECT)
+                colType = VALUE_TAGGED;
+
+            colTypes[iCol] = colType;
+        }
+
+        out.writeInt(rows.size());
+        out.writeShort(numColumns);
+        out.write(colTypes);
+
+        byte[] nullBitmap = new byte[(numColumns + 7) / 8];
+        for (Object[] row : rows) {
+            for (int i = 0; i < nullBitmap.length; i++)
+                nullBitmap[i] = 0;
+
+            for (int iCol = 0; iCol < numColumns; iCol++) {
+                if (row[iCol] == null)
+                    nullBitmap[iCol / 8] |= (byte) (1 << (iCol % 8));
+            }
+            out.write(nullBitmap);
+
+            for (int iCol = 0; iCol < numColumns; iCol++) {
+                Object value = row[iCol];
+                if (value == null)
+                    continue;
+
+                byte valueType = colTypes[iCol];
+                if (valueType == VALUE_TAGGED) {
+                    valueType = getValueType(value);
+                    out.writeByte(valueType);
+                }
+
+                writeValue(out, valueType, value);
+            }
+        }
+    }
+
+
+    /** Decodes the rows of a batch encoded by {@link #encodeRows}. */
+    private static List<TupleLiteral> decodeRows(DataInputStream in)
+        throws IOException {
+
+        int numRows = in.readInt();
+        int numColumns = in.readUnsignedShort();
+        byte[] colTypes = new byte[numColumns];
+        in.readFully(colTypes);
+
+        ArrayList<TupleLiteral> rows = new ArrayList<TupleLiteral>(numRows);
+        byte[] nullBitmap = new byte[(numColumns + 7) / 8];
+        for (int iRow = 0; iRow < numRows; iRow++) {
+            in.readFully(nullBitmap);
+
+            TupleLiteral tuple = new TupleLiteral();
+            for (int iCol = 0; iCol < numColumns; iCol++) {
+                if ((nullBitmap[iCol / 8] & (1 << (iCol % 8))) != 0) {
+                    tuple.addValue(null);
+                    continue;
+                }
+
+                byte valueType = colTypes[iCol];
+                if (valueType == VALUE_TAGGED)
+                    valueType = in.readByte();
+
+                tuple.addValue(readValue(in, valueType));
+            }
+
+            rows.add(tuple);
+        }
+
+        return rows;
+    }
+
+
+    /** Returns the value type that a non-<tt>NULL</tt> value is written as. */
+    private static byte getValueType(Object value) {
+        if (value instanceof Integer)
+            return VALUE_INTEGER;
+        else if (value instanceof String)
+            return VALUE_STRING;
+        else if (value instanceof Double)
+            return VALUE_DOUBLE;
+        else if (value instanceof Long)
+            return VALUE_LONG;
+        else if (value instanceof Float)
+            return VALUE_FLOAT;
+        else if (value instanceof Short)
+            return VALUE_SHORT;
+        else if (value instanceof Byte)
+            return VALUE_BYTE;
+        else if (value instanceof Boolean)
+            return VALUE_BOOLEAN;
+        else
+            return VALUE_OBJECT;
+    }
+
+
+    private static void writeValue(DataOutputStream out, byte valueType,
+        Object value) throws IOException {
+
+        switch (valueType) {
+        case VALUE_BOOLEAN:
+            out.writeBoolean((Boolean) value);
+            break;
+
+        case VALUE_BYTE:
+            out.writeByte((Byte) value);
+            break;
+
+        case VALUE_SHORT:
+            out.writeShort((Short) value);
+            break;
+
+        case VALUE_INTEGER:
+            out.writeInt((Integer) value);
+            break;
+
+        case VALUE_LONG:
+            out.writeLong((Long) value);
+            break;
+
+        case VALUE_FLOAT:
+            out.writeFloat((Float) value);
+            break;
+
+        case VALUE_DOUBLE:
+            out.writeDouble((Double) value);
+            break;
+
+        case VALUE_STRING:
+            writeString(out, (String) value);
+            break;
+
+        case VALUE_OBJECT:
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+            objectOutput.writeObject(value);
+            objectOutput.close();
+
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            break;
+
+        default:
+            throw new IOException("Unrecognized value type " + valueType);
+        }
+    }
+
+
+    private static Object readValue(DataInputStream in, byte valueType)
+        throws IOException {
+
+        switch (valueType) {
+        case VALUE_BOOLEAN:
+            return in.readBoolean();
+
+        case VALUE_BYTE:
+            return in.readByte();
+
+        case VALUE_SHORT:
+            return in.readShort();
+
+        case VALUE_INTEGER:
+            return in.readInt();
+
+        case VALUE_LONG:
+            return in.readLong();
+
+        case VALUE_FLOAT:
+            return in.readFloat();
+
+        case VALUE_DOUBLE:
+            return in.readDouble();
+
+        case VALUE_STRING:
+            return readString(in);
+
+        case VALUE_OBJECT:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            ObjectInputStream objectInput =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return objectInput.readObject();
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException("Couldn't read a value", e);
+            }
+            finally {
+                objectInput.close();
+            }
+
+        default:
+            throw new IOException("Unrecognized value type " + valueType);
+        }
+    }
+}
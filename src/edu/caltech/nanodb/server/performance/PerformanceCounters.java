@@ -44,6 +44,119 @@ public class PerformanceCounters {
     public static final String STORAGE_BYTES_WRITTEN = "storage.bytesWritten";
 
 
+    public static final String STORAGE_READAHEAD_PAGES =
+        "storage.readAhead.pages";
+
+
+    public static final String STORAGE_READAHEAD_HITS =
+        "storage.readAhead.hits";
+
+
+    public static final String STORAGE_READAHEAD_UNUSED =
+        "storage.readAhead.unused";
+
+
+    public static final String TXN_COMMITS = "txn.commits";
+
+
+    /**
+     * The number of times the write-ahead log was synced to commit
+     * transactions.  Dividing {@link #TXN_COMMITS} by this counter gives the
+     * average number of commits per sync.
+     */
+    public static final String TXN_COMMIT_SYNCS = "txn.commitSyncs";
+
+
+    public static final String TXN_CHECKPOINTS = "txn.checkpoints";
+
+
+    public static final String BUFFER_CACHE_HITS = "buffer.cacheHits";
+
+
+    public static final String BUFFER_CACHE_MISSES = "buffer.cacheMisses";
+
+
+    public static final String BUFFER_PAGES_EVICTED = "buffer.pagesEvicted";
+
+
+    public static final String BUFFER_DIRTY_PAGES_EVICTED =
+        "buffer.dirtyPagesEvicted";
+
+
+    /** The number of partition files that hash joins have spilled to disk. */
+    public static final String JOIN_HASH_PARTITIONS_SPILLED =
+        "join.hashPartitionsSpilled";
+
+
+    /** The number of sorted runs that sorts have written to disk. */
+    public static final String SORT_RUNS_SPILLED = "sort.runsSpilled";
+
+
+    /**
+     * The number of partition files that hashed grouping/aggregate
+     * operations have spilled to disk.
+     */
+    public static final String AGG_PARTITIONS_SPILLED =
+        "aggregate.partitionsSpilled";
+
+
+    /**
+     * The number of partial aggregation tables that parallel workers have
+     * produced for hashed grouping/aggregate operations to merge.
+     */
+    public static final String AGG_PARTIAL_TABLES = "aggregate.partialTables";
+
+
+    /** The number of table scans that have been run by parallel workers. */
+    public static final String EXEC_PARALLEL_SCANS = "exec.parallelScans";
+
+
+    /**
+     * The number of plan fragments that exchange nodes have run on parallel
+     * workers.
+     */
+    public static final String EXEC_PARALLEL_FRAGMENTS =
+        "exec.parallelFragments";
+
+
+    /**
+     * The number of plans, or inputs of hashed grouping/aggregate nodes,
+     * whose results have been pulled a batch at a time.
+     */
+    public static final String EXEC_BATCH_PLANS = "exec.batchPlans";
+
+
+    /**
+     * The number of predicates and projection expressions that plan nodes
+     * have compiled, rather than interpreting them.
+     */
+    public static final String EXEC_COMPILED_EXPRESSIONS =
+        "exec.compiledExpressions";
+
+
+    /**
+     * The number of times a prepared statement was found in the plan cache.
+     * The hit rate of the cache is this counter divided by the sum of this
+     * counter and {@link #PLAN_CACHE_MISSES}.
+     */
+    public static final String PLAN_CACHE_HITS = "planCache.hits";
+
+
+    /**
+     * The number of times a prepared statement wasn't in the plan cache, and
+     * had to be parsed and planned.
+     */
+    public static final String PLAN_CACHE_MISSES = "planCache.misses";
+
+
+    /**
+     * The number of times the plan cache was cleared, because of DDL commands
+     * or <tt>ANALYZE</tt>.
+     */
+    public static final String PLAN_CACHE_INVALIDATIONS =
+        "planCache.invalidations";
+
+
     private static ConcurrentHashMap<String, AtomicInteger> counters =
         new ConcurrentHashMap<String, AtomicInteger>();
 
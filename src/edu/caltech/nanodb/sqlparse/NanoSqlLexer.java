@@ -66,116 +66,120 @@ public NanoSqlLexer(LexerSharedInputState state) {
 	caseSensitiveLiterals = false;
 	setCaseSensitive(true);
 	literals = new Hashtable();
-	literals.put(new ANTLRHashString("type", this), new Integer(82));
-	literals.put(new ANTLRHashString("blob", this), new Integer(98));
+	literals.put(new ANTLRHashString("type", this), new Integer(86));
+	literals.put(new ANTLRHashString("blob", this), new Integer(102));
 	literals.put(new ANTLRHashString("between", this), new Integer(13));
-	literals.put(new ANTLRHashString("time", this), new Integer(110));
-	literals.put(new ANTLRHashString("delete", this), new Integer(23));
-	literals.put(new ANTLRHashString("transaction", this), new Integer(80));
-	literals.put(new ANTLRHashString("format", this), new Integer(36));
-	literals.put(new ANTLRHashString("view", this), new Integer(93));
-	literals.put(new ANTLRHashString("timestamp", this), new Integer(111));
-	literals.put(new ANTLRHashString("limit", this), new Integer(53));
-	literals.put(new ANTLRHashString("insert", this), new Integer(45));
-	literals.put(new ANTLRHashString("distinct", this), new Integer(25));
-	literals.put(new ANTLRHashString("variable", this), new Integer(89));
-	literals.put(new ANTLRHashString("where", this), new Integer(94));
+	literals.put(new ANTLRHashString("time", this), new Integer(114));
+	literals.put(new ANTLRHashString("delete", this), new Integer(25));
+	literals.put(new ANTLRHashString("transaction", this), new Integer(84));
+	literals.put(new ANTLRHashString("format", this), new Integer(39));
+	literals.put(new ANTLRHashString("view", this), new Integer(97));
+	literals.put(new ANTLRHashString("timestamp", this), new Integer(115));
+	literals.put(new ANTLRHashString("limit", this), new Integer(56));
+	literals.put(new ANTLRHashString("insert", this), new Integer(48));
+	literals.put(new ANTLRHashString("distinct", this), new Integer(27));
+	literals.put(new ANTLRHashString("variable", this), new Integer(93));
+	literals.put(new ANTLRHashString("where", this), new Integer(98));
 	literals.put(new ANTLRHashString("alter", this), new Integer(6));
-	literals.put(new ANTLRHashString("integer", this), new Integer(107));
+	literals.put(new ANTLRHashString("integer", this), new Integer(111));
 	literals.put(new ANTLRHashString("analyze", this), new Integer(7));
-	literals.put(new ANTLRHashString("decimal", this), new Integer(103));
-	literals.put(new ANTLRHashString("select", this), new Integer(72));
+	literals.put(new ANTLRHashString("decimal", this), new Integer(107));
+	literals.put(new ANTLRHashString("select", this), new Integer(76));
 	literals.put(new ANTLRHashString("cascade", this), new Integer(15));
-	literals.put(new ANTLRHashString("to", this), new Integer(79));
+	literals.put(new ANTLRHashString("to", this), new Integer(83));
 	literals.put(new ANTLRHashString("and", this), new Integer(8));
-	literals.put(new ANTLRHashString("outer", this), new Integer(63));
-	literals.put(new ANTLRHashString("float", this), new Integer(104));
-	literals.put(new ANTLRHashString("not", this), new Integer(56));
-	literals.put(new ANTLRHashString("constraint", this), new Integer(18));
-	literals.put(new ANTLRHashString("verbose", this), new Integer(91));
-	literals.put(new ANTLRHashString("numeric", this), new Integer(108));
-	literals.put(new ANTLRHashString("date", this), new Integer(101));
-	literals.put(new ANTLRHashString("using", this), new Integer(87));
-	literals.put(new ANTLRHashString("dump", this), new Integer(27));
-	literals.put(new ANTLRHashString("key", this), new Integer(50));
-	literals.put(new ANTLRHashString("offset", this), new Integer(58));
-	literals.put(new ANTLRHashString("from", this), new Integer(37));
-	literals.put(new ANTLRHashString("bigint", this), new Integer(97));
-	literals.put(new ANTLRHashString("null", this), new Integer(57));
-	literals.put(new ANTLRHashString("optimize", this), new Integer(60));
+	literals.put(new ANTLRHashString("outer", this), new Integer(66));
+	literals.put(new ANTLRHashString("float", this), new Integer(108));
+	literals.put(new ANTLRHashString("not", this), new Integer(59));
+	literals.put(new ANTLRHashString("constraint", this), new Integer(19));
+	literals.put(new ANTLRHashString("verbose", this), new Integer(95));
+	literals.put(new ANTLRHashString("deallocate", this), new Integer(23));
+	literals.put(new ANTLRHashString("numeric", this), new Integer(112));
+	literals.put(new ANTLRHashString("date", this), new Integer(105));
+	literals.put(new ANTLRHashString("using", this), new Integer(91));
+	literals.put(new ANTLRHashString("dump", this), new Integer(29));
+	literals.put(new ANTLRHashString("key", this), new Integer(53));
+	literals.put(new ANTLRHashString("offset", this), new Integer(61));
+	literals.put(new ANTLRHashString("from", this), new Integer(40));
+	literals.put(new ANTLRHashString("bigint", this), new Integer(101));
+	literals.put(new ANTLRHashString("null", this), new Integer(60));
+	literals.put(new ANTLRHashString("optimize", this), new Integer(63));
 	literals.put(new ANTLRHashString("add", this), new Integer(4));
-	literals.put(new ANTLRHashString("quit", this), new Integer(66));
-	literals.put(new ANTLRHashString("like", this), new Integer(52));
-	literals.put(new ANTLRHashString("natural", this), new Integer(55));
-	literals.put(new ANTLRHashString("flush", this), new Integer(34));
-	literals.put(new ANTLRHashString("inner", this), new Integer(44));
-	literals.put(new ANTLRHashString("exit", this), new Integer(30));
-	literals.put(new ANTLRHashString("except", this), new Integer(28));
-	literals.put(new ANTLRHashString("text", this), new Integer(109));
-	literals.put(new ANTLRHashString("character", this), new Integer(100));
-	literals.put(new ANTLRHashString("verify", this), new Integer(92));
-	literals.put(new ANTLRHashString("with", this), new Integer(95));
-	literals.put(new ANTLRHashString("set", this), new Integer(73));
-	literals.put(new ANTLRHashString("foreign", this), new Integer(35));
-	literals.put(new ANTLRHashString("intersect", this), new Integer(46));
-	literals.put(new ANTLRHashString("work", this), new Integer(96));
-	literals.put(new ANTLRHashString("similar", this), new Integer(75));
-	literals.put(new ANTLRHashString("join", this), new Integer(49));
-	literals.put(new ANTLRHashString("rollback", this), new Integer(71));
-	literals.put(new ANTLRHashString("commit", this), new Integer(17));
-	literals.put(new ANTLRHashString("is", this), new Integer(48));
-	literals.put(new ANTLRHashString("file", this), new Integer(33));
-	literals.put(new ANTLRHashString("or", this), new Integer(61));
+	literals.put(new ANTLRHashString("quit", this), new Integer(70));
+	literals.put(new ANTLRHashString("like", this), new Integer(55));
+	literals.put(new ANTLRHashString("natural", this), new Integer(58));
+	literals.put(new ANTLRHashString("flush", this), new Integer(37));
+	literals.put(new ANTLRHashString("inner", this), new Integer(47));
+	literals.put(new ANTLRHashString("exit", this), new Integer(33));
+	literals.put(new ANTLRHashString("except", this), new Integer(30));
+	literals.put(new ANTLRHashString("prepare", this), new Integer(67));
+	literals.put(new ANTLRHashString("text", this), new Integer(113));
+	literals.put(new ANTLRHashString("character", this), new Integer(104));
+	literals.put(new ANTLRHashString("verify", this), new Integer(96));
+	literals.put(new ANTLRHashString("with", this), new Integer(99));
+	literals.put(new ANTLRHashString("set", this), new Integer(77));
+	literals.put(new ANTLRHashString("foreign", this), new Integer(38));
+	literals.put(new ANTLRHashString("intersect", this), new Integer(49));
+	literals.put(new ANTLRHashString("work", this), new Integer(100));
+	literals.put(new ANTLRHashString("similar", this), new Integer(79));
+	literals.put(new ANTLRHashString("join", this), new Integer(52));
+	literals.put(new ANTLRHashString("rollback", this), new Integer(75));
+	literals.put(new ANTLRHashString("commit", this), new Integer(18));
+	literals.put(new ANTLRHashString("is", this), new Integer(51));
+	literals.put(new ANTLRHashString("file", this), new Integer(36));
+	literals.put(new ANTLRHashString("or", this), new Integer(64));
 	literals.put(new ANTLRHashString("any", this), new Integer(9));
-	literals.put(new ANTLRHashString("create", this), new Integer(20));
-	literals.put(new ANTLRHashString("crash", this), new Integer(19));
-	literals.put(new ANTLRHashString("if", this), new Integer(41));
-	literals.put(new ANTLRHashString("full", this), new Integer(38));
-	literals.put(new ANTLRHashString("double", this), new Integer(105));
+	literals.put(new ANTLRHashString("create", this), new Integer(21));
+	literals.put(new ANTLRHashString("crash", this), new Integer(20));
+	literals.put(new ANTLRHashString("if", this), new Integer(44));
+	literals.put(new ANTLRHashString("full", this), new Integer(41));
+	literals.put(new ANTLRHashString("double", this), new Integer(109));
 	literals.put(new ANTLRHashString("as", this), new Integer(10));
 	literals.put(new ANTLRHashString("by", this), new Integer(14));
-	literals.put(new ANTLRHashString("minus", this), new Integer(54));
+	literals.put(new ANTLRHashString("minus", this), new Integer(57));
+	literals.put(new ANTLRHashString("checkpoint", this), new Integer(16));
 	literals.put(new ANTLRHashString("all", this), new Integer(5));
-	literals.put(new ANTLRHashString("union", this), new Integer(83));
-	literals.put(new ANTLRHashString("drop", this), new Integer(26));
-	literals.put(new ANTLRHashString("order", this), new Integer(62));
-	literals.put(new ANTLRHashString("primary", this), new Integer(64));
-	literals.put(new ANTLRHashString("some", this), new Integer(76));
-	literals.put(new ANTLRHashString("properties", this), new Integer(65));
-	literals.put(new ANTLRHashString("show", this), new Integer(74));
-	literals.put(new ANTLRHashString("values", this), new Integer(88));
-	literals.put(new ANTLRHashString("start", this), new Integer(77));
-	literals.put(new ANTLRHashString("int", this), new Integer(106));
-	literals.put(new ANTLRHashString("cross", this), new Integer(21));
-	literals.put(new ANTLRHashString("varchar", this), new Integer(112));
-	literals.put(new ANTLRHashString("char", this), new Integer(99));
-	literals.put(new ANTLRHashString("index", this), new Integer(43));
-	literals.put(new ANTLRHashString("default", this), new Integer(22));
-	literals.put(new ANTLRHashString("explain", this), new Integer(31));
-	literals.put(new ANTLRHashString("false", this), new Integer(32));
-	literals.put(new ANTLRHashString("exists", this), new Integer(29));
-	literals.put(new ANTLRHashString("table", this), new Integer(78));
+	literals.put(new ANTLRHashString("union", this), new Integer(87));
+	literals.put(new ANTLRHashString("drop", this), new Integer(28));
+	literals.put(new ANTLRHashString("order", this), new Integer(65));
+	literals.put(new ANTLRHashString("primary", this), new Integer(68));
+	literals.put(new ANTLRHashString("some", this), new Integer(80));
+	literals.put(new ANTLRHashString("show", this), new Integer(78));
+	literals.put(new ANTLRHashString("properties", this), new Integer(69));
+	literals.put(new ANTLRHashString("values", this), new Integer(92));
+	literals.put(new ANTLRHashString("start", this), new Integer(81));
+	literals.put(new ANTLRHashString("int", this), new Integer(110));
+	literals.put(new ANTLRHashString("cross", this), new Integer(22));
+	literals.put(new ANTLRHashString("varchar", this), new Integer(116));
+	literals.put(new ANTLRHashString("char", this), new Integer(103));
+	literals.put(new ANTLRHashString("index", this), new Integer(46));
+	literals.put(new ANTLRHashString("default", this), new Integer(24));
+	literals.put(new ANTLRHashString("explain", this), new Integer(34));
+	literals.put(new ANTLRHashString("false", this), new Integer(35));
+	literals.put(new ANTLRHashString("exists", this), new Integer(32));
+	literals.put(new ANTLRHashString("table", this), new Integer(82));
 	literals.put(new ANTLRHashString("asc", this), new Integer(11));
-	literals.put(new ANTLRHashString("unknown", this), new Integer(85));
-	literals.put(new ANTLRHashString("variables", this), new Integer(90));
-	literals.put(new ANTLRHashString("left", this), new Integer(51));
-	literals.put(new ANTLRHashString("desc", this), new Integer(24));
-	literals.put(new ANTLRHashString("datetime", this), new Integer(102));
-	literals.put(new ANTLRHashString("on", this), new Integer(59));
+	literals.put(new ANTLRHashString("unknown", this), new Integer(89));
+	literals.put(new ANTLRHashString("variables", this), new Integer(94));
+	literals.put(new ANTLRHashString("left", this), new Integer(54));
+	literals.put(new ANTLRHashString("desc", this), new Integer(26));
+	literals.put(new ANTLRHashString("datetime", this), new Integer(106));
+	literals.put(new ANTLRHashString("on", this), new Integer(62));
 	literals.put(new ANTLRHashString("begin", this), new Integer(12));
-	literals.put(new ANTLRHashString("restrict", this), new Integer(69));
-	literals.put(new ANTLRHashString("into", this), new Integer(47));
-	literals.put(new ANTLRHashString("rename", this), new Integer(68));
-	literals.put(new ANTLRHashString("right", this), new Integer(70));
-	literals.put(new ANTLRHashString("in", this), new Integer(42));
-	literals.put(new ANTLRHashString("update", this), new Integer(86));
-	literals.put(new ANTLRHashString("true", this), new Integer(81));
-	literals.put(new ANTLRHashString("group", this), new Integer(39));
-	literals.put(new ANTLRHashString("having", this), new Integer(40));
-	literals.put(new ANTLRHashString("column", this), new Integer(16));
-	literals.put(new ANTLRHashString("unique", this), new Integer(84));
-	literals.put(new ANTLRHashString("references", this), new Integer(67));
-	literals.put(new ANTLRHashString("varying", this), new Integer(113));
+	literals.put(new ANTLRHashString("restrict", this), new Integer(73));
+	literals.put(new ANTLRHashString("into", this), new Integer(50));
+	literals.put(new ANTLRHashString("execute", this), new Integer(31));
+	literals.put(new ANTLRHashString("rename", this), new Integer(72));
+	literals.put(new ANTLRHashString("right", this), new Integer(74));
+	literals.put(new ANTLRHashString("in", this), new Integer(45));
+	literals.put(new ANTLRHashString("update", this), new Integer(90));
+	literals.put(new ANTLRHashString("true", this), new Integer(85));
+	literals.put(new ANTLRHashString("group", this), new Integer(42));
+	literals.put(new ANTLRHashString("having", this), new Integer(43));
+	literals.put(new ANTLRHashString("column", this), new Integer(17));
+	literals.put(new ANTLRHashString("unique", this), new Integer(88));
+	literals.put(new ANTLRHashString("references", this), new Integer(71));
+	literals.put(new ANTLRHashString("varying", this), new Integer(117));
 }
 
 public Token nextToken() throws TokenStreamException {
@@ -236,6 +240,12 @@ tryAgain:
 					theRetToken=_returnToken;
 					break;
 				}
+				case '?':
+				{
+					mQUESTION(true);
+					theRetToken=_returnToken;
+					break;
+				}
 				case '+':
 				{
 					mPLUS(true);
@@ -437,6 +447,19 @@ tryAgain:
 		_returnToken = _token;
 	}
 	
+	public final void mQUESTION(boolean _createToken) throws RecognitionException, CharStreamException, TokenStreamException {
+		int _ttype; Token _token=null; int _begin=text.length();
+		_ttype = QUESTION;
+		int _saveIndex;
+		
+		match('?');
+		if ( _createToken && _token==null && _ttype!=Token.SKIP ) {
+			_token = makeToken(_ttype);
+			_token.setText(new String(text.getBuffer(), _begin, text.length()-_begin));
+		}
+		_returnToken = _token;
+	}
+	
 	public final void mPLUS(boolean _createToken) throws RecognitionException, CharStreamException, TokenStreamException {
 		int _ttype; Token _token=null; int _begin=text.length();
 		_ttype = PLUS;
@@ -502,8 +525,8 @@ tryAgain:
 		int _saveIndex;
 		
 		{
-		int _cnt219=0;
-		_loop219:
+		int _cnt230=0;
+		_loop230:
 		do {
 			switch ( LA(1)) {
 			case ' ':
@@ -518,10 +541,10 @@ tryAgain:
 			}
 			default:
 			{
-				if ( _cnt219>=1 ) { break _loop219; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
+				if ( _cnt230>=1 ) { break _loop230; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
 			}
 			}
-			_cnt219++;
+			_cnt230++;
 		} while (true);
 		}
 		_ttype = Token.SKIP;
@@ -547,15 +570,15 @@ tryAgain:
 		match('-');
 		match('-');
 		{
-		_loop223:
+		_loop234:
 		do {
 			// nongreedy exit test
-			if ((LA(1)=='\n') && (true)) break _loop223;
+			if ((LA(1)=='\n') && (true)) break _loop234;
 			if (((LA(1) >= '\u0000' && LA(1) <= '\u007f')) && ((LA(2) >= '\u0000' && LA(2) <= '\u007f'))) {
 				matchNot(EOF_CHAR);
 			}
 			else {
-				break _loop223;
+				break _loop234;
 			}
 			
 		} while (true);
@@ -694,7 +717,7 @@ tryAgain:
 		}
 		}
 		{
-		_loop233:
+		_loop244:
 		do {
 			switch ( LA(1)) {
 			case 'A':  case 'B':  case 'C':  case 'D':
@@ -733,7 +756,7 @@ tryAgain:
 			}
 			default:
 			{
-				break _loop233;
+				break _loop244;
 			}
 			}
 		} while (true);
@@ -791,7 +814,7 @@ tryAgain:
 		}
 		}
 		{
-		_loop237:
+		_loop248:
 		do {
 			switch ( LA(1)) {
 			case 'A':  case 'B':  case 'C':  case 'D':
@@ -830,7 +853,7 @@ tryAgain:
 			}
 			default:
 			{
-				break _loop237;
+				break _loop248;
 			}
 			}
 		} while (true);
@@ -864,17 +887,17 @@ tryAgain:
 		case '8':  case '9':
 		{
 			{
-			int _cnt240=0;
-			_loop240:
+			int _cnt251=0;
+			_loop251:
 			do {
 				if (((LA(1) >= '0' && LA(1) <= '9'))) {
 					matchRange('0','9');
 				}
 				else {
-					if ( _cnt240>=1 ) { break _loop240; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
+					if ( _cnt251>=1 ) { break _loop251; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
 				}
 				
-				_cnt240++;
+				_cnt251++;
 			} while (true);
 			}
 			_ttype = INT_LITERAL;
@@ -896,13 +919,13 @@ tryAgain:
 				match('.');
 				_ttype = DEC_LITERAL;
 				{
-				_loop245:
+				_loop256:
 				do {
 					if (((LA(1) >= '0' && LA(1) <= '9'))) {
 						matchRange('0','9');
 					}
 					else {
-						break _loop245;
+						break _loop256;
 					}
 					
 				} while (true);
@@ -958,13 +981,13 @@ tryAgain:
 				}
 				_ttype = DEC_LITERAL;
 				{
-				_loop251:
+				_loop262:
 				do {
 					if (((LA(1) >= '0' && LA(1) <= '9'))) {
 						matchRange('0','9');
 					}
 					else {
-						break _loop251;
+						break _loop262;
 					}
 					
 				} while (true);
@@ -1018,6 +1041,11 @@ tryAgain:
 		_returnToken = _token;
 	}
 	
+/**
+ * String literals are enclosed in single quotes.  A single quote inside a
+ * string literal is written as two single quotes, as in standard SQL, and a
+ * string literal may span several lines.
+ */
 	public final void mSTRING_LITERAL(boolean _createToken) throws RecognitionException, CharStreamException, TokenStreamException {
 		int _ttype; Token _token=null; int _begin=text.length();
 		_ttype = STRING_LITERAL;
@@ -1027,17 +1055,64 @@ tryAgain:
 		match('\'');
 		text.setLength(_saveIndex);
 		{
-		_loop257:
+		_loop268:
 		do {
-			if ((_tokenSet_0.member(LA(1)))) {
+			switch ( LA(1)) {
+			case '\u0000':  case '\u0001':  case '\u0002':  case '\u0003':
+			case '\u0004':  case '\u0005':  case '\u0006':  case '\u0007':
+			case '\u0008':  case '\t':  case '\u000b':  case '\u000c':
+			case '\r':  case '\u000e':  case '\u000f':  case '\u0010':
+			case '\u0011':  case '\u0012':  case '\u0013':  case '\u0014':
+			case '\u0015':  case '\u0016':  case '\u0017':  case '\u0018':
+			case '\u0019':  case '\u001a':  case '\u001b':  case '\u001c':
+			case '\u001d':  case '\u001e':  case '\u001f':  case ' ':
+			case '!':  case '"':  case '#':  case '$':
+			case '%':  case '&':  case '(':  case ')':
+			case '*':  case '+':  case ',':  case '-':
+			case '.':  case '/':  case '0':  case '1':
+			case '2':  case '3':  case '4':  case '5':
+			case '6':  case '7':  case '8':  case '9':
+			case ':':  case ';':  case '<':  case '=':
+			case '>':  case '?':  case '@':  case 'A':
+			case 'B':  case 'C':  case 'D':  case 'E':
+			case 'F':  case 'G':  case 'H':  case 'I':
+			case 'J':  case 'K':  case 'L':  case 'M':
+			case 'N':  case 'O':  case 'P':  case 'Q':
+			case 'R':  case 'S':  case 'T':  case 'U':
+			case 'V':  case 'W':  case 'X':  case 'Y':
+			case 'Z':  case '[':  case '\\':  case ']':
+			case '^':  case '_':  case '`':  case 'a':
+			case 'b':  case 'c':  case 'd':  case 'e':
+			case 'f':  case 'g':  case 'h':  case 'i':
+			case 'j':  case 'k':  case 'l':  case 'm':
+			case 'n':  case 'o':  case 'p':  case 'q':
+			case 'r':  case 's':  case 't':  case 'u':
+			case 'v':  case 'w':  case 'x':  case 'y':
+			case 'z':  case '{':  case '|':  case '}':
+			case '~':  case '\u007f':
+			{
 				{
 				match(_tokenSet_0);
 				}
+				break;
 			}
+			case '\n':
+			{
+				match('\n');
+				newline();
+				break;
+			}
+			default:
+				if ((LA(1)=='\'') && (LA(2)=='\'')) {
+					match('\'');
+					_saveIndex=text.length();
+					match('\'');
+					text.setLength(_saveIndex);
+				}
 			else {
-				break _loop257;
+				break _loop268;
+			}
 			}
-			
 		} while (true);
 		}
 		_saveIndex=text.length();
@@ -1052,7 +1127,7 @@ tryAgain:
 	
 	
 	private static final long[] mk_tokenSet_0() {
-		long[] data = { -549755823105L, -1L, 0L, 0L};
+		long[] data = { -549755814913L, -1L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_0 = new BitSet(mk_tokenSet_0());
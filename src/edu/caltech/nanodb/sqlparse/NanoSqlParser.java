@@ -35,6 +35,13 @@ import antlr.collections.impl.BitSet;
  */
 public class NanoSqlParser extends antlr.LLkParser       implements NanoSqlParserTokenTypes
  {
+
+  /**
+   * The <tt>?</tt> parameters of the command currently being parsed, in the
+   * order that they appear in the command.
+   */
+  private ArrayList<ParameterValue> parameters =
+    new ArrayList<ParameterValue>();
 
 protected NanoSqlParser(TokenBuffer tokenBuf, int k) {
   super(tokenBuf,k);
@@ -79,17 +86,21 @@ public NanoSqlParser(ParserSharedInputState state) {
 					switch ( LA(1)) {
 					case ANALYZE:
 					case BEGIN:
+					case CHECKPOINT:
 					case COMMIT:
 					case CRASH:
 					case CREATE:
+					case DEALLOCATE:
 					case DELETE:
 					case DROP:
 					case DUMP:
+					case EXECUTE:
 					case EXIT:
 					case EXPLAIN:
 					case FLUSH:
 					case INSERT:
 					case OPTIMIZE:
+					case PREPARE:
 					case QUIT:
 					case ROLLBACK:
 					case SELECT:
@@ -138,7 +149,10 @@ public NanoSqlParser(ParserSharedInputState state) {
 	public final Command  command() throws RecognitionException, TokenStreamException {
 		Command c;
 		
+		
 		c = null;
+		parameters = new ArrayList<ParameterValue>();
+		
 		
 		try {      // for error handling
 			{
@@ -190,6 +204,21 @@ public NanoSqlParser(ParserSharedInputState state) {
 				c=rollback_txn_stmt();
 				break;
 			}
+			case PREPARE:
+			{
+				c=prepare_stmt();
+				break;
+			}
+			case EXECUTE:
+			{
+				c=execute_stmt();
+				break;
+			}
+			case DEALLOCATE:
+			{
+				c=deallocate_stmt();
+				break;
+			}
 			case ANALYZE:
 			{
 				c=analyze_stmt();
@@ -221,6 +250,11 @@ public NanoSqlParser(ParserSharedInputState state) {
 				c=flush_stmt();
 				break;
 			}
+			case CHECKPOINT:
+			{
+				c=checkpoint_stmt();
+				break;
+			}
 			case VERIFY:
 			{
 				c=verify_stmt();
@@ -247,6 +281,15 @@ public NanoSqlParser(ParserSharedInputState state) {
 			}
 			}
 			}
+			
+			if (!parameters.isEmpty()) {
+			if (!(c instanceof QueryCommand)) {
+			throw new SemanticException("Parameters can only be used in " +
+			"SELECT, INSERT, UPDATE and DELETE statements.");
+			}
+			((QueryCommand) c).setParameters(parameters);
+			}
+			
 		}
 		catch (RecognitionException ex) {
 			reportError(ex);
@@ -409,7 +452,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			e=expression();
 			uc.addValue(name, e);
 			{
-			_loop123:
+			_loop125:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -419,7 +462,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					uc.addValue(name, e);
 				}
 				else {
-					break _loop123;
+					break _loop125;
 				}
 				
 			} while (true);
@@ -613,6 +656,130 @@ public NanoSqlParser(ParserSharedInputState state) {
 		return c;
 	}
 	
+/**
+ * The statement to prepare is given as a string, so that it can be cached
+ * on its text.  The statement may contain <tt>?</tt> parameters, which are
+ * given values by the <tt>USING</tt> clause of <tt>EXECUTE</tt>.  String
+ * literals inside the statement are written with doubled single-quotes, as
+ * in <tt>PREPARE s FROM 'SELECT a FROM t WHERE b = ''x'' AND c = ?'</tt>.
+ */
+	public final PrepareCommand  prepare_stmt() throws RecognitionException, TokenStreamException {
+		PrepareCommand c;
+		
+		Token  s = null;
+		
+		c = null;
+		String name = null;
+		
+		
+		try {      // for error handling
+			match(PREPARE);
+			name=dbobj_ident();
+			match(FROM);
+			s = LT(1);
+			match(STRING_LITERAL);
+			c = new PrepareCommand(name, s.getText());
+		}
+		catch (RecognitionException ex) {
+			reportError(ex);
+			recover(ex,_tokenSet_1);
+		}
+		return c;
+	}
+	
+	public final ExecuteCommand  execute_stmt() throws RecognitionException, TokenStreamException {
+		ExecuteCommand c;
+		
+		
+		c = null;
+		String name = null;
+		Expression e = null;
+		
+		
+		try {      // for error handling
+			match(EXECUTE);
+			name=dbobj_ident();
+			c = new ExecuteCommand(name);
+			{
+			switch ( LA(1)) {
+			case USING:
+			{
+				match(USING);
+				e=expression();
+				c.addParameterValue(e);
+				{
+				_loop140:
+				do {
+					if ((LA(1)==COMMA)) {
+						match(COMMA);
+						e=expression();
+						c.addParameterValue(e);
+					}
+					else {
+						break _loop140;
+					}
+					
+				} while (true);
+				}
+				break;
+			}
+			case EOF:
+			case SEMICOLON:
+			{
+				break;
+			}
+			default:
+			{
+				throw new NoViableAltException(LT(1), getFilename());
+			}
+			}
+			}
+		}
+		catch (RecognitionException ex) {
+			reportError(ex);
+			recover(ex,_tokenSet_1);
+		}
+		return c;
+	}
+	
+	public final DeallocateCommand  deallocate_stmt() throws RecognitionException, TokenStreamException {
+		DeallocateCommand c;
+		
+		
+		c = null;
+		String name = null;
+		
+		
+		try {      // for error handling
+			match(DEALLOCATE);
+			{
+			switch ( LA(1)) {
+			case PREPARE:
+			{
+				match(PREPARE);
+				break;
+			}
+			case IDENT:
+			case QUOTED_IDENT:
+			{
+				break;
+			}
+			default:
+			{
+				throw new NoViableAltException(LT(1), getFilename());
+			}
+			}
+			}
+			name=dbobj_ident();
+			c = new DeallocateCommand(name);
+		}
+		catch (RecognitionException ex) {
+			reportError(ex);
+			recover(ex,_tokenSet_1);
+		}
+		return c;
+	}
+	
 	public final AnalyzeCommand  analyze_stmt() throws RecognitionException, TokenStreamException {
 		AnalyzeCommand c;
 		
@@ -646,7 +813,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			tblName=dbobj_ident();
 			c = new AnalyzeCommand(tblName, verbose);
 			{
-			_loop137:
+			_loop146:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -654,7 +821,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addTable(tblName);
 				}
 				else {
-					break _loop137;
+					break _loop146;
 				}
 				
 			} while (true);
@@ -874,6 +1041,22 @@ public NanoSqlParser(ParserSharedInputState state) {
 		return c;
 	}
 	
+	public final CheckpointCommand  checkpoint_stmt() throws RecognitionException, TokenStreamException {
+		CheckpointCommand c;
+		
+		c = null;
+		
+		try {      // for error handling
+			match(CHECKPOINT);
+			c = new CheckpointCommand();
+		}
+		catch (RecognitionException ex) {
+			reportError(ex);
+			recover(ex,_tokenSet_1);
+		}
+		return c;
+	}
+	
 	public final VerifyCommand  verify_stmt() throws RecognitionException, TokenStreamException {
 		VerifyCommand c;
 		
@@ -887,7 +1070,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			tblName=dbobj_ident();
 			c = new VerifyCommand(tblName);
 			{
-			_loop148:
+			_loop157:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -895,7 +1078,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addTable(tblName);
 				}
 				else {
-					break _loop148;
+					break _loop157;
 				}
 				
 			} while (true);
@@ -921,7 +1104,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			tblName=dbobj_ident();
 			c = new OptimizeCommand(tblName);
 			{
-			_loop151:
+			_loop160:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -929,7 +1112,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addTable(tblName);
 				}
 				else {
-					break _loop151;
+					break _loop160;
 				}
 				
 			} while (true);
@@ -1291,11 +1474,30 @@ public NanoSqlParser(ParserSharedInputState state) {
 			match(ON);
 			tblName=dbobj_ident();
 			c = new CreateIndexCommand(idxName, tblName, unique);
+			{
+			switch ( LA(1)) {
+			case USING:
+			{
+				match(USING);
+				idxType=dbobj_ident();
+				c.setIndexType(idxType);
+				break;
+			}
+			case LPAREN:
+			{
+				break;
+			}
+			default:
+			{
+				throw new NoViableAltException(LT(1), getFilename());
+			}
+			}
+			}
 			match(LPAREN);
 			colName=dbobj_ident();
 			c.addColumn(colName);
 			{
-			_loop57:
+			_loop58:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -1303,7 +1505,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addColumn(colName);
 				}
 				else {
-					break _loop57;
+					break _loop58;
 				}
 				
 			} while (true);
@@ -1311,6 +1513,27 @@ public NanoSqlParser(ParserSharedInputState state) {
 			match(RPAREN);
 			{
 			switch ( LA(1)) {
+			case USING:
+			{
+				match(USING);
+				idxType=dbobj_ident();
+				c.setIndexType(idxType);
+				break;
+			}
+			case EOF:
+			case PROPERTIES:
+			case SEMICOLON:
+			{
+				break;
+			}
+			default:
+			{
+				throw new NoViableAltException(LT(1), getFilename());
+			}
+			}
+			}
+			{
+			switch ( LA(1)) {
 			case PROPERTIES:
 			{
 				p=cmd_properties();
@@ -2165,7 +2388,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				name=dbobj_ident();
 				sc.addWithClause(name, withSC);
 				{
-				_loop69:
+				_loop71:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -2194,7 +2417,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						sc.addWithClause(name, withSC);
 					}
 					else {
-						break _loop69;
+						break _loop71;
 					}
 					
 				} while (true);
@@ -2241,6 +2464,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			case STAR:
 			case STRING_LITERAL:
 			case PLUS:
+			case QUESTION:
 			{
 				break;
 			}
@@ -2253,7 +2477,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			sv=select_value();
 			sc.addSelectValue(sv);
 			{
-			_loop72:
+			_loop74:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -2261,7 +2485,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					sc.addSelectValue(sv);
 				}
 				else {
-					break _loop72;
+					break _loop74;
 				}
 				
 			} while (true);
@@ -2326,7 +2550,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				e=expression();
 				sc.addGroupByExpr(e);
 				{
-				_loop77:
+				_loop79:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -2334,7 +2558,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						sc.addGroupByExpr(e);
 					}
 					else {
-						break _loop77;
+						break _loop79;
 					}
 					
 				} while (true);
@@ -2418,7 +2642,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				}
 				sc.addOrderByExpr(new OrderByExpression(e, ascending));
 				{
-				_loop83:
+				_loop85:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -2455,7 +2679,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						sc.addOrderByExpr(new OrderByExpression(e, ascending));
 					}
 					else {
-						break _loop83;
+						break _loop85;
 					}
 					
 				} while (true);
@@ -2628,6 +2852,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			case LPAREN:
 			case STRING_LITERAL:
 			case PLUS:
+			case QUESTION:
 			{
 				e=expression();
 				{
@@ -2703,7 +2928,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			fc=join_expr();
 			{
-			_loop91:
+			_loop93:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -2711,7 +2936,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					fc = new FromClause(fc, next, JoinType.CROSS);
 				}
 				else {
-					break _loop91;
+					break _loop93;
 				}
 				
 			} while (true);
@@ -2765,7 +2990,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			fc=from_expr();
 			{
-			_loop103:
+			_loop105:
 			do {
 				if ((_tokenSet_13.member(LA(1)))) {
 					{
@@ -2910,7 +3135,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						fc.addUsingName(n);
 						
 						{
-						_loop102:
+						_loop104:
 						do {
 							if ((LA(1)==COMMA)) {
 								match(COMMA);
@@ -2918,7 +3143,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 								fc.addUsingName(n);
 							}
 							else {
-								break _loop102;
+								break _loop104;
 							}
 							
 						} while (true);
@@ -2954,7 +3179,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					}
 				}
 				else {
-					break _loop103;
+					break _loop105;
 				}
 				
 			} while (true);
@@ -3004,11 +3229,12 @@ public NanoSqlParser(ParserSharedInputState state) {
 					case LPAREN:
 					case STRING_LITERAL:
 					case PLUS:
+					case QUESTION:
 					{
 						e=expression();
 						args = new ArrayList<Expression>(); args.add(e);
 						{
-						_loop108:
+						_loop110:
 						do {
 							if ((LA(1)==COMMA)) {
 								match(COMMA);
@@ -3016,7 +3242,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 								args.add(e);
 							}
 							else {
-								break _loop108;
+								break _loop110;
 							}
 							
 						} while (true);
@@ -3185,7 +3411,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				name=dbobj_ident();
 				cols = new ArrayList<String>(); cols.add(name);
 				{
-				_loop117:
+				_loop119:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -3193,7 +3419,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						cols.add(name);
 					}
 					else {
-						break _loop117;
+						break _loop119;
 					}
 					
 				} while (true);
@@ -3235,7 +3461,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			e=expression();
 			exprs.add(e);
 			{
-			_loop120:
+			_loop122:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -3243,7 +3469,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					exprs.add(e);
 				}
 				else {
-					break _loop120;
+					break _loop122;
 				}
 				
 			} while (true);
@@ -3337,7 +3563,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=logical_and_expr();
 			{
-			_loop165:
+			_loop175:
 			do {
 				if ((LA(1)==OR)) {
 					match(OR);
@@ -3357,7 +3583,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					
 				}
 				else {
-					break _loop165;
+					break _loop175;
 				}
 				
 			} while (true);
@@ -3397,11 +3623,12 @@ public NanoSqlParser(ParserSharedInputState state) {
 			case LPAREN:
 			case STRING_LITERAL:
 			case PLUS:
+			case QUESTION:
 			{
 				e=expression();
 				exprs.add(e);
 				{
-				_loop162:
+				_loop172:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -3409,7 +3636,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						exprs.add(e);
 					}
 					else {
-						break _loop162;
+						break _loop172;
 					}
 					
 				} while (true);
@@ -3447,7 +3674,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=logical_not_expr();
 			{
-			_loop168:
+			_loop178:
 			do {
 				if ((LA(1)==AND)) {
 					match(AND);
@@ -3467,7 +3694,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					
 				}
 				else {
-					break _loop168;
+					break _loop178;
 				}
 				
 			} while (true);
@@ -3512,6 +3739,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			case LPAREN:
 			case STRING_LITERAL:
 			case PLUS:
+			case QUESTION:
 			{
 				break;
 			}
@@ -3536,6 +3764,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			case LPAREN:
 			case STRING_LITERAL:
 			case PLUS:
+			case QUESTION:
 			{
 				e=relational_expr();
 				break;
@@ -3864,7 +4093,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=mult_expr();
 			{
-			_loop188:
+			_loop198:
 			do {
 				if ((LA(1)==MINUS||LA(1)==PLUS)) {
 					{
@@ -3891,7 +4120,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					e = new ArithmeticOperator(mathType, e, e2);
 				}
 				else {
-					break _loop188;
+					break _loop198;
 				}
 				
 			} while (true);
@@ -3920,7 +4149,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=unary_op_expr();
 			{
-			_loop192:
+			_loop202:
 			do {
 				if ((LA(1)==STAR||LA(1)==SLASH||LA(1)==PERCENT)) {
 					{
@@ -3953,7 +4182,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					e = new ArithmeticOperator(mathType, e, e2);
 				}
 				else {
-					break _loop192;
+					break _loop202;
 				}
 				
 			} while (true);
@@ -4003,6 +4232,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			case QUOTED_IDENT:
 			case LPAREN:
 			case STRING_LITERAL:
+			case QUESTION:
 			{
 				e=base_expr();
 				break;
@@ -4043,6 +4273,16 @@ public NanoSqlParser(ParserSharedInputState state) {
 				e=literal_expr();
 				break;
 			}
+			case QUESTION:
+			{
+				match(QUESTION);
+				
+				ParameterValue p = new ParameterValue(parameters.size());
+				parameters.add(p);
+				e = p;
+				
+				break;
+			}
 			case LPAREN:
 			{
 				match(LPAREN);
@@ -4063,6 +4303,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				case LPAREN:
 				case STRING_LITERAL:
 				case PLUS:
+				case QUESTION:
 				{
 					e=logical_or_expr();
 					break;
@@ -4144,6 +4385,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			case STAR:
 			case STRING_LITERAL:
 			case PLUS:
+			case QUESTION:
 			{
 				{
 				switch ( LA(1)) {
@@ -4163,6 +4405,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				case LPAREN:
 				case STRING_LITERAL:
 				case PLUS:
+				case QUESTION:
 				{
 					{
 					switch ( LA(1)) {
@@ -4187,6 +4430,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					case LPAREN:
 					case STRING_LITERAL:
 					case PLUS:
+					case QUESTION:
 					{
 						break;
 					}
@@ -4199,7 +4443,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					e=expression();
 					args.add(e);
 					{
-					_loop203:
+					_loop213:
 					do {
 						if ((LA(1)==COMMA)) {
 							match(COMMA);
@@ -4207,7 +4451,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 							args.add(e);
 						}
 						else {
-							break _loop203;
+							break _loop213;
 						}
 						
 					} while (true);
@@ -4280,12 +4524,14 @@ public NanoSqlParser(ParserSharedInputState state) {
 		"\"between\"",
 		"\"by\"",
 		"\"cascade\"",
+		"\"checkpoint\"",
 		"\"column\"",
 		"\"commit\"",
 		"\"constraint\"",
 		"\"crash\"",
 		"\"create\"",
 		"\"cross\"",
+		"\"deallocate\"",
 		"\"default\"",
 		"\"delete\"",
 		"\"desc\"",
@@ -4293,6 +4539,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		"\"drop\"",
 		"\"dump\"",
 		"\"except\"",
+		"\"execute\"",
 		"\"exists\"",
 		"\"exit\"",
 		"\"explain\"",
@@ -4328,6 +4575,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		"\"or\"",
 		"\"order\"",
 		"\"outer\"",
+		"\"prepare\"",
 		"\"primary\"",
 		"\"properties\"",
 		"\"quit\"",
@@ -4401,6 +4649,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		"PLUS",
 		"SLASH",
 		"PERCENT",
+		"QUESTION",
 		"COLON",
 		"NEWLINE",
 		"WS",
@@ -4415,112 +4664,112 @@ public NanoSqlParser(ParserSharedInputState state) {
 	}
 	public static final BitSet _tokenSet_0 = new BitSet(mk_tokenSet_0());
 	private static final long[] mk_tokenSet_1() {
-		long[] data = { 2L, 36028797018963968L, 0L, 0L};
+		long[] data = { 2L, 576460752303423488L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_1 = new BitSet(mk_tokenSet_1());
 	private static final long[] mk_tokenSet_2() {
-		long[] data = { 7924952089843739906L, -306244771414766784L, 510L, 0L, 0L, 0L};
+		long[] data = { 8059384497541491970L, -4899916342636268509L, 8175L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_2 = new BitSet(mk_tokenSet_2());
 	private static final long[] mk_tokenSet_3() {
-		long[] data = { 7348491268820839682L, -900719924400355264L, 510L, 0L, 0L, 0L};
+		long[] data = { 3447697929358290178L, 4035225283303867395L, 8175L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_3 = new BitSet(mk_tokenSet_3());
 	private static final long[] mk_tokenSet_4() {
-		long[] data = { 2L, 36028797018963970L, 0L, 0L};
+		long[] data = { 2L, 576460752303423520L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_4 = new BitSet(mk_tokenSet_4());
 	private static final long[] mk_tokenSet_5() {
-		long[] data = { 72057594038190080L, 1048585L, 0L, 0L};
+		long[] data = { 576460752303947776L, 16777360L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_5 = new BitSet(mk_tokenSet_5());
 	private static final long[] mk_tokenSet_6() {
-		long[] data = { 0L, 3458764513820540928L, 0L, 0L};
+		long[] data = { 0L, 0L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_6 = new BitSet(mk_tokenSet_6());
 	private static final long[] mk_tokenSet_7() {
-		long[] data = { 34360000514L, 108086391062134787L, 0L, 0L};
+		long[] data = { 274878431234L, 1729382256994156592L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_7 = new BitSet(mk_tokenSet_7());
 	private static final long[] mk_tokenSet_8() {
-		long[] data = { 72057594038190080L, 3458764513821589513L, 0L, 0L};
+		long[] data = { 576460752303947776L, 16777360L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_8 = new BitSet(mk_tokenSet_8());
 	private static final long[] mk_tokenSet_9() {
-		long[] data = { 2L, 2341871806232657920L, 0L, 0L};
+		long[] data = { 2L, 576460752303423488L, 2L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_9 = new BitSet(mk_tokenSet_9());
 	private static final long[] mk_tokenSet_10() {
-		long[] data = { 4908924281028608002L, 3494793311913246720L, 0L, 0L};
+		long[] data = { 2377906100809760770L, 576460769483292674L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_10 = new BitSet(mk_tokenSet_10());
 	private static final long[] mk_tokenSet_11() {
-		long[] data = { 4908924143589654530L, 2341871807306399744L, 0L, 0L};
+		long[] data = { 2377905001298132994L, 576460769483292674L, 2L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_11 = new BitSet(mk_tokenSet_11());
 	private static final long[] mk_tokenSet_12() {
-		long[] data = { 4947786794409135106L, 3710966094027030592L, 0L, 0L};
+		long[] data = { 2688806207774264322L, 4035225283303834626L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_12 = new BitSet(mk_tokenSet_12());
 	private static final long[] mk_tokenSet_13() {
-		long[] data = { 38861413852119040L, 64L, 0L, 0L};
+		long[] data = { 310891310804369408L, 1024L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_13 = new BitSet(mk_tokenSet_13());
 	private static final long[] mk_tokenSet_14() {
-		long[] data = { 4908924143589654530L, 3494793311913246720L, 0L, 0L};
+		long[] data = { 2377905001298132994L, 576460769483292674L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_14 = new BitSet(mk_tokenSet_14());
 	private static final long[] mk_tokenSet_15() {
-		long[] data = { 5524246309745197058L, 3494793311921635392L, 0L, 0L};
+		long[] data = { 7300482330529890306L, 576460769617511426L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_15 = new BitSet(mk_tokenSet_15());
 	private static final long[] mk_tokenSet_16() {
-		long[] data = { 0L, 2164261120L, 0L, 0L};
+		long[] data = { 0L, 34628177920L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_16 = new BitSet(mk_tokenSet_16());
 	private static final long[] mk_tokenSet_17() {
-		long[] data = { 7253629803622829314L, 3710966094027030592L, 0L, 0L};
+		long[] data = { 2688806207774264578L, 4035225283303834627L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_17 = new BitSet(mk_tokenSet_17());
 	private static final long[] mk_tokenSet_18() {
-		long[] data = { 7253629803622829058L, 3710966094027030592L, 0L, 0L};
+		long[] data = { 2688806207774264322L, 4035225283303834627L, 3L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_18 = new BitSet(mk_tokenSet_18());
 	private static final long[] mk_tokenSet_19() {
-		long[] data = { 234187185455104000L, 3115365042233671680L, 65L, 0L, 0L, 0L};
+		long[] data = { 1873497483640832000L, -5494391545389907968L, 9234L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_19 = new BitSet(mk_tokenSet_19());
 	private static final long[] mk_tokenSet_20() {
-		long[] data = { 7330476870311357698L, 8322652112454420544L, 62L, 0L, 0L, 0L};
+		long[] data = { 3303582741282434306L, 4035225283303867395L, 999L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_20 = new BitSet(mk_tokenSet_20());
 	private static final long[] mk_tokenSet_21() {
-		long[] data = { 7348491268820839682L, 8322652112454420544L, 126L, 0L, 0L, 0L};
+		long[] data = { 3447697929358290178L, 4035225283303867395L, 2023L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_21 = new BitSet(mk_tokenSet_21());
 	private static final long[] mk_tokenSet_22() {
-		long[] data = { 7348491268820839682L, -882705525890873280L, 510L, 0L, 0L, 0L};
+		long[] data = { 3447697929358290178L, 4323455659455579139L, 8175L, 0L, 0L, 0L};
 		return data;
 	}
 	public static final BitSet _tokenSet_22 = new BitSet(mk_tokenSet_22());
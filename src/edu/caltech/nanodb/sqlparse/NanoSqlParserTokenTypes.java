@@ -28,131 +28,136 @@ public interface NanoSqlParserTokenTypes {
 	int BETWEEN = 13;
 	int BY = 14;
 	int CASCADE = 15;
-	int COLUMN = 16;
-	int COMMIT = 17;
-	int CONSTRAINT = 18;
-	int CRASH = 19;
-	int CREATE = 20;
-	int CROSS = 21;
-	int DEFAULT = 22;
-	int DELETE = 23;
-	int DESC = 24;
-	int DISTINCT = 25;
-	int DROP = 26;
-	int DUMP = 27;
-	int EXCEPT = 28;
-	int EXISTS = 29;
-	int EXIT = 30;
-	int EXPLAIN = 31;
-	int FALSE = 32;
-	int FILE = 33;
-	int FLUSH = 34;
-	int FOREIGN = 35;
-	int FORMAT = 36;
-	int FROM = 37;
-	int FULL = 38;
-	int GROUP = 39;
-	int HAVING = 40;
-	int IF = 41;
-	int IN = 42;
-	int INDEX = 43;
-	int INNER = 44;
-	int INSERT = 45;
-	int INTERSECT = 46;
-	int INTO = 47;
-	int IS = 48;
-	int JOIN = 49;
-	int KEY = 50;
-	int LEFT = 51;
-	int LIKE = 52;
-	int LIMIT = 53;
-	int MINUS = 54;
-	int NATURAL = 55;
-	int NOT = 56;
-	int NULL = 57;
-	int OFFSET = 58;
-	int ON = 59;
-	int OPTIMIZE = 60;
-	int OR = 61;
-	int ORDER = 62;
-	int OUTER = 63;
-	int PRIMARY = 64;
-	int PROPERTIES = 65;
-	int QUIT = 66;
-	int REFERENCES = 67;
-	int RENAME = 68;
-	int RESTRICT = 69;
-	int RIGHT = 70;
-	int ROLLBACK = 71;
-	int SELECT = 72;
-	int SET = 73;
-	int SHOW = 74;
-	int SIMILAR = 75;
-	int SOME = 76;
-	int START = 77;
-	int TABLE = 78;
-	int TO = 79;
-	int TRANSACTION = 80;
-	int TRUE = 81;
-	int TYPE = 82;
-	int UNION = 83;
-	int UNIQUE = 84;
-	int UNKNOWN = 85;
-	int UPDATE = 86;
-	int USING = 87;
-	int VALUES = 88;
-	int VARIABLE = 89;
-	int VARIABLES = 90;
-	int VERBOSE = 91;
-	int VERIFY = 92;
-	int VIEW = 93;
-	int WHERE = 94;
-	int WITH = 95;
-	int WORK = 96;
-	int TYPE_BIGINT = 97;
-	int TYPE_BLOB = 98;
-	int TYPE_CHAR = 99;
-	int TYPE_CHARACTER = 100;
-	int TYPE_DATE = 101;
-	int TYPE_DATETIME = 102;
-	int TYPE_DECIMAL = 103;
-	int TYPE_FLOAT = 104;
-	int TYPE_DOUBLE = 105;
-	int TYPE_INT = 106;
-	int TYPE_INTEGER = 107;
-	int TYPE_NUMERIC = 108;
-	int TYPE_TEXT = 109;
-	int TYPE_TIME = 110;
-	int TYPE_TIMESTAMP = 111;
-	int TYPE_VARCHAR = 112;
-	int TYPE_VARYING = 113;
-	int INT_LITERAL = 114;
-	int LONG_LITERAL = 115;
-	int FLOAT_LITERAL = 116;
-	int DEC_LITERAL = 117;
-	int PERIOD = 118;
-	int SEMICOLON = 119;
-	int IDENT = 120;
-	int QUOTED_IDENT = 121;
-	int TEMPORARY = 122;
-	int LPAREN = 123;
-	int COMMA = 124;
-	int RPAREN = 125;
-	int EQUALS = 126;
-	int STAR = 127;
-	int STRING_LITERAL = 128;
-	int NOT_EQUALS = 129;
-	int GRTR_THAN = 130;
-	int LESS_THAN = 131;
-	int GRTR_EQUAL = 132;
-	int LESS_EQUAL = 133;
-	int PLUS = 134;
-	int SLASH = 135;
-	int PERCENT = 136;
-	int COLON = 137;
-	int NEWLINE = 138;
-	int WS = 139;
-	int COMMENT = 140;
-	int COMPARE_OPERATOR = 141;
-	int NUM_LITERAL_OR_SYMBOL = 142;
+	int CHECKPOINT = 16;
+	int COLUMN = 17;
+	int COMMIT = 18;
+	int CONSTRAINT = 19;
+	int CRASH = 20;
+	int CREATE = 21;
+	int CROSS = 22;
+	int DEALLOCATE = 23;
+	int DEFAULT = 24;
+	int DELETE = 25;
+	int DESC = 26;
+	int DISTINCT = 27;
+	int DROP = 28;
+	int DUMP = 29;
+	int EXCEPT = 30;
+	int EXECUTE = 31;
+	int EXISTS = 32;
+	int EXIT = 33;
+	int EXPLAIN = 34;
+	int FALSE = 35;
+	int FILE = 36;
+	int FLUSH = 37;
+	int FOREIGN = 38;
+	int FORMAT = 39;
+	int FROM = 40;
+	int FULL = 41;
+	int GROUP = 42;
+	int HAVING = 43;
+	int IF = 44;
+	int IN = 45;
+	int INDEX = 46;
+	int INNER = 47;
+	int INSERT = 48;
+	int INTERSECT = 49;
+	int INTO = 50;
+	int IS = 51;
+	int JOIN = 52;
+	int KEY = 53;
+	int LEFT = 54;
+	int LIKE = 55;
+	int LIMIT = 56;
+	int MINUS = 57;
+	int NATURAL = 58;
+	int NOT = 59;
+	int NULL = 60;
+	int OFFSET = 61;
+	int ON = 62;
+	int OPTIMIZE = 63;
+	int OR = 64;
+	int ORDER = 65;
+	int OUTER = 66;
+	int PREPARE = 67;
+	int PRIMARY = 68;
+	int PROPERTIES = 69;
+	int QUIT = 70;
+	int REFERENCES = 71;
+	int RENAME = 72;
+	int RESTRICT = 73;
+	int RIGHT = 74;
+	int ROLLBACK = 75;
+	int SELECT = 76;
+	int SET = 77;
+	int SHOW = 78;
+	int SIMILAR = 79;
+	int SOME = 80;
+	int START = 81;
+	int TABLE = 82;
+	int TO = 83;
+	int TRANSACTION = 84;
+	int TRUE = 85;
+	int TYPE = 86;
+	int UNION = 87;
+	int UNIQUE = 88;
+	int UNKNOWN = 89;
+	int UPDATE = 90;
+	int USING = 91;
+	int VALUES = 92;
+	int VARIABLE = 93;
+	int VARIABLES = 94;
+	int VERBOSE = 95;
+	int VERIFY = 96;
+	int VIEW = 97;
+	int WHERE = 98;
+	int WITH = 99;
+	int WORK = 100;
+	int TYPE_BIGINT = 101;
+	int TYPE_BLOB = 102;
+	int TYPE_CHAR = 103;
+	int TYPE_CHARACTER = 104;
+	int TYPE_DATE = 105;
+	int TYPE_DATETIME = 106;
+	int TYPE_DECIMAL = 107;
+	int TYPE_FLOAT = 108;
+	int TYPE_DOUBLE = 109;
+	int TYPE_INT = 110;
+	int TYPE_INTEGER = 111;
+	int TYPE_NUMERIC = 112;
+	int TYPE_TEXT = 113;
+	int TYPE_TIME = 114;
+	int TYPE_TIMESTAMP = 115;
+	int TYPE_VARCHAR = 116;
+	int TYPE_VARYING = 117;
+	int INT_LITERAL = 118;
+	int LONG_LITERAL = 119;
+	int FLOAT_LITERAL = 120;
+	int DEC_LITERAL = 121;
+	int PERIOD = 122;
+	int SEMICOLON = 123;
+	int IDENT = 124;
+	int QUOTED_IDENT = 125;
+	int TEMPORARY = 126;
+	int LPAREN = 127;
+	int COMMA = 128;
+	int RPAREN = 129;
+	int EQUALS = 130;
+	int STAR = 131;
+	int STRING_LITERAL = 132;
+	int NOT_EQUALS = 133;
+	int GRTR_THAN = 134;
+	int LESS_THAN = 135;
+	int GRTR_EQUAL = 136;
+	int LESS_EQUAL = 137;
+	int PLUS = 138;
+	int SLASH = 139;
+	int PERCENT = 140;
+	int QUESTION = 141;
+	int COLON = 142;
+	int NEWLINE = 143;
+	int WS = 144;
+	int COMMENT = 145;
+	int COMPARE_OPERATOR = 146;
+	int NUM_LITERAL_OR_SYMBOL = 147;
 }
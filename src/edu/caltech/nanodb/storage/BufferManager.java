@@ -3,14 +3,18 @@ package edu.caltech.nanodb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -23,11 +27,31 @@ import edu.caltech.nanodb.server.properties.PropertyRegistry;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
 import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
 
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+import edu.caltech.nanodb.storage.writeahead.DirtyPageEntry;
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
+
 
 /**
  * The buffer manager reduces the number of disk IO operations by managing an
  * in-memory cache of data pages.  It also imposes a limit on the maximum
  * amount of space that can be used for data pages in the database.
+ * <p>
+ * The Buffer Manager may be used concurrently by many sessions.  The page
+ * cache is split into a number of partitions, each holding the pages whose
+ * file and page number hash to it.  Every partition has its own latch (the
+ * partition object's monitor) and its own instance of the replacement
+ * policy, so sessions working with pages in different partitions don't
+ * contend with each other.  No thread ever holds more than one partition
+ * latch at a time, and latches are never held while performing IO.
+ * <p>
+ * Dirty pages are written out without holding any latch, so while a page is
+ * being written it is recorded as such in its partition, and other sessions
+ * that ask for the page wait until the write is finished.  This keeps the
+ * page from being changed while it is written, unless another session
+ * already had it pinned; such pages are left dirty after the write, so
+ * that their changes are written again later.
  *
  * @todo Eventually add integrity checks, e.g. to make sure every cached
  *       page's file appears in the collection of cached files.
@@ -51,10 +75,34 @@ public class BufferManager {
     public static final String PROP_PAGECACHE_POLICY = "nanodb.pagecache.policy";
 
     /** The default page-cache policy is LRU. */
-    public static final String DEFAULT_PAGECACHE_POLICY = "lru";
+    public static final String DEFAULT_PAGECACHE_POLICY =
+        LRUReplacementPolicy.NAME;
+
+
+    /**
+     * The system property that can be used to specify how many partitions the
+     * page cache is split into.  Each partition is latched separately.
+     */
+    public static final String PROP_PAGECACHE_PARTITIONS =
+        "nanodb.pagecache.partitions";
+
+    /** The default number of page-cache partitions is 16. */
+    public static final int DEFAULT_PAGECACHE_PARTITIONS = 16;
+
+
+    /**
+     * The number of times {@link #allocBuffer} will try to make room for a
+     * new buffer before reporting that the page cache is full.
+     */
+    private static final int MAX_ALLOC_ATTEMPTS = 8;
 
 
-    private static class DBPageID {
+    /**
+     * This class identifies a data page by its file and page number.  Unlike
+     * a {@link DBPage}, it remains valid after the page has been evicted, so
+     * replacement policies can also use it to remember evicted pages.
+     */
+    static class DBPageID {
         private File file;
 
         private int pageNo;
@@ -122,6 +170,42 @@ public class BufferManager {
     }
 
 
+    /**
+     * This helper class holds one partition of the page cache.  All access to
+     * a partition's contents must be performed while holding the partition's
+     * monitor.
+     */
+    private static class PagePartition {
+        /** The pages cached in this partition. */
+        public HashMap<CachedPageInfo, DBPage> pages =
+            new HashMap<CachedPageInfo, DBPage>();
+
+        /** The replacement policy for the pages in this partition. */
+        public PageReplacementPolicy policy;
+
+        /**
+         * The pages in this partition that are currently being written to
+         * disk, and the thread writing each one.  Other threads must wait
+         * on the partition's monitor until a page is no longer in this map
+         * before they can pin it.
+         */
+        public IdentityHashMap<DBPage, Thread> pagesBeingWritten =
+            new IdentityHashMap<DBPage, Thread>();
+
+        /**
+         * The number of pages that have been removed from this partition
+         * after being written to disk.  A page whose data was loaded from
+         * disk before such a removal may have been loaded before the write,
+         * so it must be loaded again before it is cached.
+         */
+        public long writtenPagesRemoved;
+
+        public PagePartition(PageReplacementPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+
     /**
      * This helper class records the pin-count of a data page as imposed by a
      * given session, so that we can forcibly release the session's pins after
@@ -141,6 +225,23 @@ public class BufferManager {
     }
 
 
+    /**
+     * This helper class collects the dirty pages that will be written out
+     * together by {@link #writeDirtyPages}.
+     */
+    private static class PageWriteBatch {
+        /** The pages to write. */
+        public ArrayList<DBPage> pages = new ArrayList<DBPage>();
+
+        /**
+         * The pages that other sessions had pinned when they were added to
+         * the batch.  These sessions may change the pages while they are
+         * being written, so the pages stay dirty after they are written.
+         */
+        public HashSet<DBPage> keepDirty = new HashSet<DBPage>();
+    }
+
+
     private class BufferManagerPropertyHandler implements PropertyHandler {
 
         @Override
@@ -151,7 +252,10 @@ public class BufferManager {
                 return maxCacheSize;
             }
             else if (PROP_PAGECACHE_POLICY.equals(propertyName)) {
-                return replacementPolicy;
+                return replacementPolicyName;
+            }
+            else if (PROP_PAGECACHE_PARTITIONS.equals(propertyName)) {
+                return cachePartitions.length;
             }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
@@ -172,6 +276,10 @@ public class BufferManager {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PROP_PAGECACHE_PARTITIONS.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                        " is read-only");
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -194,37 +302,53 @@ public class BufferManager {
      * This collection holds the {@link DBFile} objects corresponding to various
      * opened files the database is currently using.
      */
-    private LinkedHashMap<String, DBFile> cachedFiles;
+    private ConcurrentHashMap<String, DBFile> cachedFiles;
 
 
     /**
-     * This collection holds database pages (not WAL pages) that the database
-     * is currently working with, so that they don't continually need to be
-     * reloaded.
+     * This array holds the partitions of the page cache, which together
+     * hold the database pages (not WAL pages) that the database is currently
+     * working with, so that they don't continually need to be reloaded.
      */
-    private LinkedHashMap<CachedPageInfo, DBPage> cachedPages;
+    private PagePartition[] cachePartitions;
+
+
+    /**
+     * The index of the partition that the next eviction will start with.
+     * Evictions are spread across the partitions in round-robin order.
+     */
+    private AtomicInteger nextVictimPartition;
 
 
     /**
      * This collection maps session IDs to the files and pages that each
      * session has pinned, so that we can forcibly unpin pages used by a
      * given session when the session is done with the current command.
+     * Only a session's own thread adds entries to its map, but invalidating
+     * a page may remove entries from any session's map.
      */
-    private HashMap<Integer, HashMap<DBPageID, SessionPinCount>> sessionPinCounts;
+    private ConcurrentHashMap<Integer, ConcurrentHashMap<DBPageID, SessionPinCount>>
+        sessionPinCounts;
 
 
     /**
-     * This set holds the identity hash-code of every buffer allocated by the
-     * Buffer Manager, so that it can verify that buffers being freed are
-     * actually from this Buffer Manager.
-     *
-     * @see System#identityHashCode
+     * The arena that page data is allocated from.  Page data lives off the
+     * Java heap, so that a large page cache doesn't slow down garbage
+     * collection.
      */
-    private HashSet<Integer> allocatedBuffers;
+    private PageFrameArena frameArena;
+
+
+    /**
+     * This flag records whether pages must keep a copy of their original
+     * data when they become dirty, so that their changes can be written to
+     * the write-ahead log.
+     */
+    private volatile boolean keepOldPageData;
 
 
     /** This field records how many bytes are currently cached, in total. */
-    private long totalBytesCached;
+    private AtomicLong totalBytesCached;
 
 
     /** This field records the maximum allowed cache size. */
@@ -232,10 +356,11 @@ public class BufferManager {
 
 
     /**
-     * A string indicating the buffer manager's page replacement policy.
-     * Currently it can be "lru" or "fifo".
+     * The name of the buffer manager's page replacement policy, which
+     * chooses the pages to evict when space is needed.  Each cache partition
+     * has its own instance of the policy.
      */
-    private String replacementPolicy;
+    private String replacementPolicyName;
 
 
     public BufferManager(FileManager fileManager) {
@@ -245,21 +370,27 @@ public class BufferManager {
 
         configureMaxCacheSize();
 
-        cachedFiles = new LinkedHashMap<String, DBFile>();
+        cachedFiles = new ConcurrentHashMap<String, DBFile>();
 
-        replacementPolicy = configureReplacementPolicy();
-        cachedPages = new LinkedHashMap<CachedPageInfo, DBPage>(16, 0.75f,
-            "lru".equals(replacementPolicy));
+        replacementPolicyName = configureReplacementPolicy();
+        cachePartitions = new PagePartition[configurePartitions()];
+        for (int i = 0; i < cachePartitions.length; i++) {
+            cachePartitions[i] = new PagePartition(
+                createReplacementPolicy(replacementPolicyName));
+        }
+        nextVictimPartition = new AtomicInteger();
 
-        totalBytesCached = 0;
-        allocatedBuffers = new HashSet<Integer>();
+        totalBytesCached = new AtomicLong();
+        frameArena = new PageFrameArena();
 
-        sessionPinCounts = new HashMap<Integer, HashMap<DBPageID, SessionPinCount>>();
+        sessionPinCounts = new ConcurrentHashMap<Integer,
+            ConcurrentHashMap<DBPageID, SessionPinCount>>();
 
         // Register properties that the Buffer Manager exposes.
         PropertyRegistry.getInstance().registerProperties(
             new BufferManagerPropertyHandler(),
-            PROP_PAGECACHE_POLICY, PROP_PAGECACHE_SIZE);
+            PROP_PAGECACHE_POLICY, PROP_PAGECACHE_SIZE,
+            PROP_PAGECACHE_PARTITIONS);
     }
 
 
@@ -311,17 +442,84 @@ public class BufferManager {
 
         str = str.trim().toLowerCase();
 
-        if (!("lru".equals(str) || "fifo".equals(str))) {
+        if (createReplacementPolicy(str) == null) {
             logger.error(String.format(
                 "Unrecognized value \"%s\" for page-cache replacement " +
                 "policy; using default value of LRU.",
                 System.getProperty(PROP_PAGECACHE_POLICY)));
+
+            str = DEFAULT_PAGECACHE_POLICY;
         }
 
+        logger.info("Using page-cache replacement policy " + str);
         return str;
     }
 
 
+    private int configurePartitions() {
+        int partitions = DEFAULT_PAGECACHE_PARTITIONS;
+
+        String str = System.getProperty(PROP_PAGECACHE_PARTITIONS);
+        if (str != null) {
+            try {
+                partitions = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                partitions = -1;
+            }
+
+            if (partitions <= 0) {
+                logger.error(String.format(
+                    "Could not parse page-cache partitions value \"%s\"; " +
+                    "using default value of %d partitions", str,
+                    DEFAULT_PAGECACHE_PARTITIONS));
+
+                partitions = DEFAULT_PAGECACHE_PARTITIONS;
+            }
+        }
+
+        return partitions;
+    }
+
+
+    /**
+     * Returns the page-cache partition that the specified page belongs in.
+     *
+     * @param cpi the file and page number of the page
+     *
+     * @return the partition that holds the page if it is cached
+     */
+    private PagePartition getPartition(CachedPageInfo cpi) {
+        int hash = cpi.hashCode() & Integer.MAX_VALUE;
+        return cachePartitions[hash % cachePartitions.length];
+    }
+
+
+    /**
+     * Creates the page replacement policy with the specified name.
+     *
+     * @param name the name of the replacement policy, which should be one of
+     *        "lru", "fifo", "clock", "2q" or "lru-k"
+     *
+     * @return the replacement policy, or {@code null} if the name is not
+     *         recognized
+     */
+    public static PageReplacementPolicy createReplacementPolicy(String name) {
+        if (LRUReplacementPolicy.NAME.equals(name))
+            return new LRUReplacementPolicy();
+        else if (FIFOReplacementPolicy.NAME.equals(name))
+            return new FIFOReplacementPolicy();
+        else if (ClockReplacementPolicy.NAME.equals(name))
+            return new ClockReplacementPolicy();
+        else if (TwoQueueReplacementPolicy.NAME.equals(name))
+            return new TwoQueueReplacementPolicy();
+        else if (LRUKReplacementPolicy.NAME.equals(name))
+            return new LRUKReplacementPolicy();
+
+        return null;
+    }
+
+
     /**
      * Add another observer to the buffer manager.
      *
@@ -335,51 +533,130 @@ public class BufferManager {
     }
 
 
+    /**
+     * Specifies whether dirty pages must keep a copy of their original data,
+     * which is only needed when page changes are recorded in the write-ahead
+     * log.  When this is turned off, pages don't spend a second buffer on
+     * the copy.
+     *
+     * @param keepOldPageData true if dirty pages must keep their old data
+     */
+    public void setKeepOldPageData(boolean keepOldPageData) {
+        this.keepOldPageData = keepOldPageData;
+    }
+
+
+    /**
+     * Returns true if dirty pages must keep a copy of their original data.
+     *
+     * @return true if dirty pages must keep a copy of their original data
+     *
+     * @see #setKeepOldPageData
+     */
+    public boolean isKeepingOldPageData() {
+        return keepOldPageData;
+    }
+
+
     /**
      * This method attempts to allocate a buffer of the specified size,
-     * possibly evicting some existing buffers in order to make space.
+     * possibly evicting some existing buffers in order to make space.  The
+     * buffer is a frame of off-heap memory from the Buffer Manager's
+     * {@link PageFrameArena}, and is initially filled with zeros.
+     *
+     * @param size the size of the buffer to allocate
+     *
+     * @return a direct byte-buffer of the specified size
+     *
+     * @throws IOException if a dirty page must be evicted from the buffer
+     *         manager, and an IO error occurred while writing the page to
+     *         persistent storage.
+     */
+    public ByteBuffer allocBuffer(int size) throws IOException {
+        return allocBuffer(size, true);
+    }
+
+
+    /**
+     * This method allocates a buffer of the specified size, like
+     * {@link #allocBuffer(int)}, but can be told not to evict any pages to
+     * make room for it.  Read-ahead uses this, since it shouldn't evict pages
+     * that sessions may still need to make room for pages that may never be
+     * used.
      *
      * @param size the size of the buffer to allocate
      *
-     * @return an array of bytes, of the specified size
+     * @param mayEvict true if pages may be evicted to make room for the
+     *        buffer, or false if the buffer should only be allocated if the
+     *        cache has room for it already
+     *
+     * @return a direct byte-buffer of the specified size, or {@code null} if
+     *         {@code mayEvict} is false and the cache has no room for it
      *
      * @throws IOException if a dirty page must be evicted from the buffer
      *         manager, and an IO error occurred while writing the page to
      *         persistent storage.
      */
-    public byte[] allocBuffer(int size) throws IOException {
+    ByteBuffer allocBuffer(int size, boolean mayEvict) throws IOException {
         if (size <= 0)
             throw new IllegalArgumentException("size must be > 0, got " + size);
 
-        ensureSpaceAvailable(size);
-
-        if (totalBytesCached + size > maxCacheSize) {
-            throw new IllegalStateException(
-                "Not enough room to allocate a buffer of " + size + " bytes!");
+        // Another session may claim the space we freed up before we get to
+        // reserve it, so make a few attempts before giving up.
+        int attempts = 0;
+        while (true) {
+            if (mayEvict)
+                ensureSpaceAvailable(size);
+
+            long bytesCached = totalBytesCached.get();
+            if (bytesCached + size <= maxCacheSize) {
+                if (totalBytesCached.compareAndSet(bytesCached,
+                                                   bytesCached + size)) {
+                    break;
+                }
+            }
+            else if (!mayEvict) {
+                return null;
+            }
+            else if (++attempts >= MAX_ALLOC_ATTEMPTS) {
+                throw new IllegalStateException("Not enough room to " +
+                    "allocate a buffer of " + size + " bytes!");
+            }
         }
 
-        // Perform the allocation so that we know the JVM also has space...
-        // Then update the total bytes in use by the buffer manager.
-        byte[] buffer = new byte[size];
-        totalBytesCached += size;
-
-        // Record the identity of the buffer that we allocated, so that
-        // releaseBuffer() can verify that it came from the buffer manager.
-        allocatedBuffers.add(System.identityHashCode(buffer));
-
-        return buffer;
+        // The space was already reserved in the total bytes in use by the
+        // buffer manager, so just take a frame from the arena.
+        try {
+            return frameArena.allocFrame(size);
+        }
+        catch (RuntimeException e) {
+            totalBytesCached.addAndGet(-size);
+            throw e;
+        }
+        catch (OutOfMemoryError e) {
+            // Direct memory is exhausted.
+            totalBytesCached.addAndGet(-size);
+            throw e;
+        }
     }
 
 
-    public void releaseBuffer(byte[] buffer) {
-        // Verify that this was a buffer we allocated?
-        if (!allocatedBuffers.remove(System.identityHashCode(buffer))) {
-            throw new IllegalArgumentException("Received a buffer that " +
-                "wasn't allocated by the Buffer Manager");
-        }
+    /**
+     * Returns a buffer allocated by {@link #allocBuffer} to the Buffer
+     * Manager.  The buffer must not be used after it is released.
+     *
+     * @param buffer the buffer to release
+     *
+     * @throws IllegalArgumentException if the buffer wasn't allocated by the
+     *         Buffer Manager, or has already been released
+     */
+    public void releaseBuffer(ByteBuffer buffer) {
+        // This verifies that the buffer is a frame from our arena that is
+        // still in use.
+        frameArena.releaseFrame(buffer);
 
         // Record that the buffer's space is now available.
-        totalBytesCached -= buffer.length;
+        totalBytesCached.addAndGet(-buffer.capacity());
     }
 
 
@@ -411,17 +688,16 @@ public class BufferManager {
             throw new IllegalArgumentException("dbFile cannot be null");
 
         String filename = dbFile.getDataFile().getName();
-        if (cachedFiles.containsKey(filename)) {
-            throw new IllegalStateException(
-                "File cache already contains file " + filename);
-        }
 
         // NOTE:  If we want to keep a cap on how many files are opened, we
         //        would do that here.
 
         logger.debug(String.format( "Adding file %s to file-cache.", filename));
 
-        cachedFiles.put(filename, dbFile);
+        if (cachedFiles.putIfAbsent(filename, dbFile) != null) {
+            throw new IllegalStateException(
+                "File cache already contains file " + filename);
+        }
     }
 
 
@@ -436,10 +712,10 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
         if (pinnedBySession == null) {
-            pinnedBySession = new HashMap<DBPageID, SessionPinCount>();
+            pinnedBySession = new ConcurrentHashMap<DBPageID, SessionPinCount>();
             sessionPinCounts.put(sessionID, pinnedBySession);
         }
 
@@ -466,7 +742,7 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
         if (pinnedBySession == null) {
             logger.error(String.format("DBPage %d is being unpinned by " +
@@ -500,6 +776,27 @@ public class BufferManager {
     }
 
 
+    /**
+     * Records that the page's pin-count has just dropped to zero, so that it
+     * may be chosen for eviction again.  Since the page may be pinned again
+     * by another session at any time, the eviction code always checks the
+     * pin-count again before actually evicting a page.
+     *
+     * @param dbPage the page that is no longer pinned
+     */
+    void recordPageEvictable(DBPage dbPage) {
+        DBFile dbFile = dbPage.getDBFile();
+        if (dbFile == null)  // The page has already been invalidated.
+            return;
+
+        PagePartition partition =
+            getPartition(new CachedPageInfo(dbFile, dbPage.getPageNo()));
+        synchronized (partition) {
+            partition.policy.pageUnpinned(dbPage);
+        }
+    }
+
+
     /**
      * This method unpins all pages pinned by the current session.  This is
      * generally done at the end of each transaction so that pages aren't
@@ -510,7 +807,7 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
 
         if (pinnedBySession == null) {
@@ -550,12 +847,17 @@ public class BufferManager {
                 "it has a pin-count of %d", pageNo, dbPage.getPinCount()));
         }
 
-        for (int sessionID : sessionPinCounts.keySet()) {
-            HashMap<DBPageID, SessionPinCount> pinnedBySession =
-                sessionPinCounts.get(sessionID);
-
-            SessionPinCount spc = pinnedBySession.remove(pageID);
-            if (spc != null) {
+        for (Map.Entry<Integer, ConcurrentHashMap<DBPageID, SessionPinCount>>
+                 entry : sessionPinCounts.entrySet()) {
+            int sessionID = entry.getKey();
+            ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
+                entry.getValue();
+
+            // A copy of the page that lost a race to be cached has the same
+            // ID as the cached page, so only drop pins on this very object.
+            SessionPinCount spc = pinnedBySession.get(pageID);
+            if (spc != null && spc.dbPage == dbPage) {
+                pinnedBySession.remove(pageID);
                 logger.warn(String.format("DBPage %d is being invalidated, " +
                     "but session %d has pinned it %d times", pageNo, sessionID,
                     spc.pinCount));
@@ -574,61 +876,220 @@ public class BufferManager {
      * @return the requested {@code DBPage}, or {@code null} if not found
      */
     public DBPage getPage(DBFile dbFile, int pageNo) {
-        DBPage dbPage = cachedPages.get(new CachedPageInfo(dbFile, pageNo));
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
+        PagePartition partition = getPartition(cpi);
+
+        DBPage dbPage;
+        synchronized (partition) {
+            dbPage = getUnlessBeingWritten(partition, cpi);
+            if (dbPage != null) {
+                partition.policy.pageAccessed(dbPage);
+
+                // Make sure this page is pinned by the session so that we
+                // don't flush it until the session is done with it.  This
+                // must happen while we hold the partition's latch, so that
+                // the page can't be evicted out from under us.
+                dbPage.pin();
+                partition.policy.pagePinned(dbPage);
+            }
+        }
 
-        logger.debug(String.format(
-            "Requested page [%s,%d] is%s in page-cache.",
-            dbFile, pageNo, (dbPage != null ? "" : " NOT")));
+        // This method is called very frequently, so avoid formatting the
+        // message unless it will actually be logged.
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format(
+                "Requested page [%s,%d] is%s in page-cache.",
+                dbFile, pageNo, (dbPage != null ? "" : " NOT")));
+        }
+
+        PerformanceCounters.inc(dbPage != null ?
+            PerformanceCounters.BUFFER_CACHE_HITS :
+            PerformanceCounters.BUFFER_CACHE_MISSES);
+
+        return dbPage;
+    }
+
+
+    /**
+     * Retrieves a page from a partition of the page cache, first waiting for
+     * any other thread that is writing the page to disk to finish.  The
+     * caller must hold the partition's latch, which is released while
+     * waiting.
+     *
+     * @param partition the partition that the page belongs in
+     * @param cpi the file and page number of the page
+     *
+     * @return the cached page, or {@code null} if the page isn't cached
+     */
+    private DBPage getUnlessBeingWritten(PagePartition partition,
+                                         CachedPageInfo cpi) {
+        boolean interrupted = false;
+        DBPage dbPage = partition.pages.get(cpi);
+        while (dbPage != null) {
+            Thread writer = partition.pagesBeingWritten.get(dbPage);
+            if (writer == null || writer == Thread.currentThread())
+                break;
 
-        if (dbPage != null) {
-            // Make sure this page is pinned by the session so that we don't
-            // flush it until the session is done with it.
-            dbPage.pin();
+            try {
+                partition.wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+
+            // The page may have been evicted once it was written.
+            dbPage = partition.pages.get(cpi);
         }
 
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
         return dbPage;
     }
 
 
+    /**
+     * Returns true if the specified page is currently buffered.  Unlike
+     * {@link #getPage}, the page is not pinned, and the lookup is neither
+     * reported to the replacement policy nor counted as a cache hit or miss.
+     *
+     * @param dbFile the file containing the page to look for
+     * @param pageNo the page number in the {@code DBFile} to look for
+     *
+     * @return true if the page is currently buffered
+     */
+    boolean containsPage(DBFile dbFile, int pageNo) {
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
+        PagePartition partition = getPartition(cpi);
+        synchronized (partition) {
+            return partition.pages.containsKey(cpi);
+        }
+    }
+
+
     /**
      * <p>
      * Adds a new, previously unbuffered {@code DBPage} to the Buffer Manager.
      * The page is pinned during the operation.
      * </p>
      * <p>
-     * It is an error if the page is already in the Buffer Manager when this
-     * method is called.
+     * Since several sessions may miss on the same page at the same time,
+     * another session may have added the same page while this session was
+     * loading it.  In that case the already-cached page is pinned and
+     * returned, and the specified page is invalidated.  Callers must
+     * therefore use the returned page instead of the page they passed in.
+     * </p>
+     * <p>
+     * Another session may also have cached the page, changed it, written it
+     * and evicted it while this session was loading it, so that the data
+     * this session loaded is stale.  Since the page's data must be loaded
+     * after the page is created, pages removed after being written since
+     * then are noticed through the page's {@link DBPage#getLoadStamp load
+     * stamp}, and the page's data is loaded again.
      * </p>
      *
      * @param dbPage the page to add to the Buffer Manager
      *
-     * @throws IllegalStateException if the page already appears in the Buffer
-     *         Manager.
+     * @return the cached page, which is {@code dbPage} unless another session
+     *         cached the same page first
+     *
+     * @throws IllegalStateException if this very page object already appears
+     *         in the Buffer Manager.
      */
-    public void addPage(DBPage dbPage) throws IOException {
+    public DBPage addPage(DBPage dbPage) throws IOException {
+        return addPage(dbPage, true);
+    }
+
+
+    /**
+     * Adds a page to the Buffer Manager, like {@link #addPage(DBPage)}, but
+     * can be told not to evict any pages to make room for it.
+     *
+     * @param dbPage the page to add to the Buffer Manager
+     *
+     * @param mayEvict true if pages may be evicted to keep the cache within
+     *        its size limit, or false if no pages should be evicted
+     *
+     * @return the cached page, which is {@code dbPage} unless another session
+     *         cached the same page first
+     */
+    DBPage addPage(DBPage dbPage, boolean mayEvict) throws IOException {
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage cannot be null");
 
         DBFile dbFile = dbPage.getDBFile();
         int pageNo = dbPage.getPageNo();
 
+        logger.debug(String.format("Adding page [%s,%d] to page-cache.",
+            dbFile, pageNo));
+
+        // This must be done before taking the partition's latch, since it
+        // may need to latch other partitions to evict their pages.
+        if (mayEvict)
+            ensureSpaceAvailable(dbPage.getPageSize());
+
         CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
-        if (cachedPages.containsKey(cpi)) {
-            throw new IllegalStateException(String.format(
-                "Page cache already contains page [%s,%d]", dbFile, pageNo));
+        PagePartition partition = getPartition(cpi);
+
+        DBPage cachedPage;
+        while (true) {
+            long removalStamp;
+            synchronized (partition) {
+                cachedPage = getUnlessBeingWritten(partition, cpi);
+                if (cachedPage == dbPage) {
+                    throw new IllegalStateException(String.format(
+                        "Page cache already contains page [%s,%d]", dbFile,
+                        pageNo));
+                }
+
+                removalStamp = partition.writtenPagesRemoved;
+                if (cachedPage != null ||
+                    dbPage.getLoadStamp() == removalStamp) {
+
+                    if (cachedPage == null) {
+                        partition.pages.put(cpi, dbPage);
+                        partition.policy.pageAdded(dbPage);
+                        cachedPage = dbPage;
+                    }
+                    else {
+                        partition.policy.pageAccessed(cachedPage);
+                    }
+
+                    // Make sure this page is pinned by the session so that we
+                    // don't flush it until the session is done with it.
+                    cachedPage.pin();
+                    partition.policy.pagePinned(cachedPage);
+                    break;
+                }
+            }
+
+            // The page's data may be stale, so load it again.  The page was
+            // already created in the file when it was first loaded.
+            logger.debug(String.format("Page [%s,%d] may have been written " +
+                "while it was loaded; loading it again.", dbFile, pageNo));
+
+            dbPage.setLoadStamp(removalStamp);
+            fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(), true);
         }
 
-        logger.debug(String.format("Adding page [%s,%d] to page-cache.",
-            dbFile, pageNo));
+        if (cachedPage != dbPage) {
+            logger.debug(String.format("Page [%s,%d] was cached by another " +
+                "session; discarding this copy.", dbFile, pageNo));
+            dbPage.invalidate();
+        }
 
-        int pageSize = dbPage.getPageSize();
-        ensureSpaceAvailable(pageSize);
+        return cachedPage;
+    }
 
-        cachedPages.put(cpi, dbPage);
 
-        // Make sure this page is pinned by the session so that we don't flush
-        // it until the session is done with it.
-        dbPage.pin();
+    /**
+     * Returns the next partition that an eviction should be attempted from.
+     *
+     * @return the next partition to evict a page from
+     */
+    private PagePartition nextVictimPartition() {
+        int index = (nextVictimPartition.getAndIncrement() & Integer.MAX_VALUE);
+        return cachePartitions[index % cachePartitions.length];
     }
 
 
@@ -636,6 +1097,11 @@ public class BufferManager {
      * This helper function ensures that the buffer manager has the specified
      * amount of space available.  This is done by removing pages out of the
      * buffer manager's cache
+     * <p>
+     * Pages are evicted from the partitions in round-robin order, holding
+     * only one partition latch at a time.  Dirty pages stay in the page cache
+     * until they have been written out, so that no other session can reload
+     * a stale version of the page from disk in the meantime.
      *
      * @param bytesRequired the amount of space that should be made available
      *        in the cache, in bytes
@@ -645,7 +1111,8 @@ public class BufferManager {
      */
     private void ensureSpaceAvailable(int bytesRequired) throws IOException {
         // If we already have enough space, return without doing anything.
-        if (bytesRequired + totalBytesCached <= maxCacheSize)
+        long bytesToFree = bytesRequired + totalBytesCached.get() - maxCacheSize;
+        if (bytesToFree <= 0)
             return;
 
         // We don't currently have enough space in the cache.  Try to solve
@@ -653,82 +1120,249 @@ public class BufferManager {
         // evict, so that we can update the write-ahead log before flushing
         // the pages.
 
-        ArrayList<DBPage> dirtyPages = new ArrayList<DBPage>();
-
-        if (!cachedPages.isEmpty()) {
-            // The cache will be too large after adding this page.
-
-            Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-                cachedPages.entrySet().iterator();
-
-            while (entries.hasNext() &&
-                bytesRequired + totalBytesCached > maxCacheSize) {
-                Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-                DBPage oldPage = entry.getValue();
-
-                if (oldPage.isPinned())  // Can't flush pages that are in use.
+        PageWriteBatch batch = new PageWriteBatch();
+
+        // Keep going until we have freed up enough space, or until every
+        // partition in a row has failed to produce a victim.
+        int failedPartitions = 0;
+        while (bytesToFree > 0 && failedPartitions < cachePartitions.length) {
+            PagePartition partition = nextVictimPartition();
+            synchronized (partition) {
+                // The replacement policy only offers up unpinned pages, since
+                // we can't flush pages that are in use.
+                DBPage oldPage = partition.policy.chooseVictim();
+                if (oldPage == null) {
+                    failedPartitions++;
                     continue;
+                }
+                failedPartitions = 0;
+
+                // The page may have been pinned again by another session
+                // since it was unpinned, or it may be being written out by
+                // another thread.  If so, let the policy keep tracking it,
+                // and try again.
+                if (oldPage.isPinned() ||
+                    partition.pagesBeingWritten.containsKey(oldPage)) {
+                    partition.policy.victimRestored(oldPage);
+                    continue;
+                }
 
-                logger.debug(String.format(
-                    "    Evicting page [%s,%d] from page-cache to make room.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
-
-                entries.remove();
-                totalBytesCached -= oldPage.getPageSize();
+                bytesToFree -= oldPage.getPageSize();
 
-                // If the page is dirty, we need to write its data to disk before
-                // invalidating it.  Otherwise, just invalidate it.
                 if (oldPage.isDirty()) {
-                    logger.debug("    Evicted page is dirty; must save to disk.");
-                    dirtyPages.add(oldPage);
+                    // The page will be removed from the cache after it is
+                    // written.  Since the policy is no longer tracking it, no
+                    // other eviction will choose it in the meantime, and no
+                    // other session can pin it until it has been written.
+                    logger.debug(String.format("    Evicting dirty page " +
+                        "[%s,%d] from page-cache; must save to disk.",
+                        oldPage.getDBFile(), oldPage.getPageNo()));
+                    addToWriteBatch(partition, oldPage, batch, false);
                 }
                 else {
-                    oldPage.invalidate();
+                    logger.debug(String.format(
+                        "    Evicting page [%s,%d] from page-cache to make room.",
+                        oldPage.getDBFile(), oldPage.getPageNo()));
+
+                    removeEvictedPage(partition, oldPage);
                 }
             }
         }
 
         // If we have any dirty data pages, they need to be flushed to disk.
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
+        // Afterward, they can be removed from the cache, unless some other
+        // session started using them again in the meantime.  If they
+        // couldn't be written, they are still dirty, and the policy must
+        // track them again.
+        try {
+            writeDirtyPages(batch);
+        }
+        finally {
+            for (DBPage oldPage : batch.pages) {
+                PagePartition partition = getPartition(new CachedPageInfo(
+                    oldPage.getDBFile(), oldPage.getPageNo()));
+                synchronized (partition) {
+                    if (oldPage.isPinned() || oldPage.isDirty()) {
+                        partition.policy.victimRestored(oldPage);
+                    }
+                    else {
+                        PerformanceCounters.inc(
+                            PerformanceCounters.BUFFER_DIRTY_PAGES_EVICTED);
+                        removeEvictedPage(partition, oldPage);
+                    }
+                }
+            }
+        }
 
-        if (bytesRequired + totalBytesCached > maxCacheSize)
+        if (bytesRequired + totalBytesCached.get() > maxCacheSize)
             logger.warn("Buffer manager is currently using too much space.");
     }
 
 
     /**
-     * This helper method writes out a list of dirty pages from the buffer
+     * Returns the number of pages that have been removed from the specified
+     * page's partition after being written to disk.  {@link DBPage} records
+     * this when it is created, so that {@link #addPage} can tell if the
+     * page's data may have been loaded before the page was last written.
+     *
+     * @param dbFile the file containing the page
+     * @param pageNo the page number in the {@code DBFile}
+     *
+     * @return the number of written pages removed from the page's partition
+     */
+    long getRemovalStamp(DBFile dbFile, int pageNo) {
+        PagePartition partition =
+            getPartition(new CachedPageInfo(dbFile, pageNo));
+        synchronized (partition) {
+            return partition.writtenPagesRemoved;
+        }
+    }
+
+
+    /**
+     * This helper removes a clean, unpinned page that was chosen for eviction
+     * from its partition of the page cache, and invalidates it.  The caller
+     * must hold the partition's latch.
+     *
+     * @param partition the partition that holds the page
+     * @param oldPage the page to evict
+     */
+    private void removeEvictedPage(PagePartition partition, DBPage oldPage) {
+        partition.pages.remove(
+            new CachedPageInfo(oldPage.getDBFile(), oldPage.getPageNo()));
+        PerformanceCounters.inc(PerformanceCounters.BUFFER_PAGES_EVICTED);
+
+        if (oldPage.isWritten())
+            partition.writtenPagesRemoved++;
+
+        if (oldPage.isPrefetched())
+            PerformanceCounters.inc(PerformanceCounters.STORAGE_READAHEAD_UNUSED);
+
+        // Invalidating the page releases its buffers, which also updates
+        // the total number of bytes cached.
+        oldPage.invalidate();
+    }
+
+
+    /**
+     * Returns true if the specified page is pinned by any session other than
+     * the current one.  The caller must hold the latch of the page's
+     * partition, so that no other session can pin the page in the meantime.
+     *
+     * @param dbPage the page to check
+     *
+     * @return true if another session has the page pinned
+     */
+    private boolean isPinnedByOtherSessions(DBPage dbPage) {
+        int sessionPins = 0;
+
+        ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
+            sessionPinCounts.get(SessionState.get().getSessionID());
+        if (pinnedBySession != null) {
+            SessionPinCount spc = pinnedBySession.get(new DBPageID(dbPage));
+            if (spc != null && spc.dbPage == dbPage)
+                sessionPins = spc.pinCount;
+        }
+
+        return dbPage.getPinCount() > sessionPins;
+    }
+
+
+    /**
+     * This helper adds a dirty page to a batch of pages to write out, and
+     * records in the page's partition that the page is being written, so
+     * that no other session can pin the page until the write is finished.
+     * The caller must hold the partition's latch.
+     * <p>
+     * Pages of the write-ahead log and the transaction-state file aren't
+     * recorded as being written, since the Transaction Manager reads them
+     * while making sure that the write-ahead log is written before other
+     * pages, and it already serializes its own changes to them.
+     *
+     * @param partition the partition that holds the page
+     * @param dbPage the dirty page to write
+     * @param batch the batch to add the page to
+     * @param skipIfPinned if true, the page isn't added to the batch if
+     *        another session has it pinned, since that session may be in the
+     *        middle of changing the page
+     *
+     * @return true if the page was added to the batch, or false if it is
+     *         already being written by another thread, or was skipped
+     *         because it is pinned
+     */
+    private boolean addToWriteBatch(PagePartition partition, DBPage dbPage,
+                                    PageWriteBatch batch, boolean skipIfPinned) {
+        if (partition.pagesBeingWritten.containsKey(dbPage))
+            return false;
+
+        DBFileType type = dbPage.getDBFile().getType();
+        boolean pinnedElsewhere = isPinnedByOtherSessions(dbPage);
+        if (pinnedElsewhere && skipIfPinned)
+            return false;
+
+        if (type != DBFileType.WRITE_AHEAD_LOG_FILE &&
+            type != DBFileType.TXNSTATE_FILE) {
+            partition.pagesBeingWritten.put(dbPage, Thread.currentThread());
+        }
+
+        batch.pages.add(dbPage);
+        if (pinnedElsewhere)
+            batch.keepDirty.add(dbPage);
+
+        return true;
+    }
+
+
+    /**
+     * This helper method writes out a batch of dirty pages from the buffer
      * manager, ensuring that if transactions are enabled, the
-     * write-ahead-logging rule is satisfied.
+     * write-ahead-logging rule is satisfied.  Once the pages have been
+     * written, they are marked clean, unless another session had them pinned
+     * when they were added to the batch, and other sessions may pin them
+     * again.  If an IO error occurs, the pages that weren't written stay
+     * dirty.
      *
-     * @param dirtyPages the list of dirty pages to write
-     * @param invalidate if true then the dirty pages are invalidated so they
-     *        must be reloaded from disk
+     * @param batch the batch of dirty pages to write
      *
      * @throws IOException if an IO error occurs while flushing dirty pages
      */
-    private void writeDirtyPages(List<DBPage> dirtyPages, boolean invalidate)
-        throws IOException {
+    private void writeDirtyPages(PageWriteBatch batch) throws IOException {
+        if (batch.pages.isEmpty())
+            return;
 
-        if (!dirtyPages.isEmpty()) {
+        int numWritten = 0;
+        try {
             // Pass the observers a read-only version of the pages so they
             // can't change things.
             List<DBPage> readOnlyPages =
-                Collections.unmodifiableList(dirtyPages);
+                Collections.unmodifiableList(batch.pages);
 
             for (BufferManagerObserver obs : observers)
                 obs.beforeWriteDirtyPages(readOnlyPages);
 
             // Finally, we can write out each dirty page.
-            for (DBPage dbPage : dirtyPages) {
+            for (DBPage dbPage : batch.pages) {
                 fileManager.savePage(dbPage.getDBFile(), dbPage.getPageNo(),
                                      dbPage.getPageData());
-
-                dbPage.setDirty(false);
-
-                if (invalidate)
-                    dbPage.invalidate();
+                numWritten++;
+            }
+        }
+        finally {
+            for (int i = 0; i < batch.pages.size(); i++) {
+                DBPage dbPage = batch.pages.get(i);
+                PagePartition partition = getPartition(
+                    new CachedPageInfo(dbPage.getDBFile(), dbPage.getPageNo()));
+
+                synchronized (partition) {
+                    if (i < numWritten) {
+                        dbPage.setWritten();
+                        if (!batch.keepDirty.contains(dbPage))
+                            dbPage.setDirty(false);
+                    }
+
+                    partition.pagesBeingWritten.remove(dbPage);
+                    partition.notifyAll();
+                }
             }
         }
     }
@@ -762,32 +1396,36 @@ public class BufferManager {
         logger.info(String.format("Writing all dirty pages for file %s to disk%s.",
             dbFile, (sync ? " (with sync)" : "")));
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
+        PageWriteBatch batch = new PageWriteBatch();
 
-        ArrayList<DBPage> dirtyPages = new ArrayList<DBPage>();
+        for (PagePartition partition : cachePartitions) {
+            synchronized (partition) {
+                for (Map.Entry<CachedPageInfo, DBPage> entry :
+                     partition.pages.entrySet()) {
 
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+                    CachedPageInfo info = entry.getKey();
+                    if (!dbFile.equals(info.dbFile))
+                        continue;
 
-            CachedPageInfo info = entry.getKey();
-            if (dbFile.equals(info.dbFile)) {
-                DBPage oldPage = entry.getValue();
-                if (!oldPage.isDirty())
-                    continue;
+                    DBPage oldPage = entry.getValue();
+                    if (!oldPage.isDirty())
+                        continue;
 
-                int pageNo = oldPage.getPageNo();
-                if (pageNo < minPageNo || pageNo > maxPageNo)
-                    continue;
+                    int pageNo = oldPage.getPageNo();
+                    if (pageNo < minPageNo || pageNo > maxPageNo)
+                        continue;
 
-                logger.debug(String.format("    Saving page [%s,%d] to disk.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
+                    logger.debug(String.format("    Saving page [%s,%d] to disk.",
+                        oldPage.getDBFile(), oldPage.getPageNo()));
 
-                dirtyPages.add(oldPage);
+                    // The caller wants the file's contents on disk, so write
+                    // out pages that other sessions are using too.
+                    addToWriteBatch(partition, oldPage, batch, false);
+                }
             }
         }
 
-        writeDirtyPages(dirtyPages, /* invalidate */ false);
+        writeDirtyPages(batch);
 
         if (sync) {
             logger.debug("Syncing file " + dbFile);
@@ -833,38 +1471,140 @@ public class BufferManager {
     public void writeAll(boolean sync) throws IOException {
         logger.info("Writing ALL dirty pages in the Buffer Manager to disk.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<DBPage>();
+        PageWriteBatch batch = new PageWriteBatch();
         HashSet<DBFile> dirtyFiles = new HashSet<DBFile>();
 
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+        for (PagePartition partition : cachePartitions) {
+            synchronized (partition) {
+                for (DBPage oldPage : partition.pages.values()) {
+                    if (!oldPage.isDirty())
+                        continue;
+
+                    // Pages that other sessions are changing may hold changes
+                    // that aren't in the write-ahead log yet, so leave them
+                    // to be written later.
+                    if (!addToWriteBatch(partition, oldPage, batch, true))
+                        continue;
+
+                    DBFile dbFile = oldPage.getDBFile();
+                    DBFileType type = dbFile.getType();
+                    if (type != DBFileType.WRITE_AHEAD_LOG_FILE &&
+                        type != DBFileType.TXNSTATE_FILE) {
+                        dirtyFiles.add(oldPage.getDBFile());
+                    }
+
+                    logger.debug(String.format("    Saving page [%s,%d] to disk.",
+                        dbFile, oldPage.getPageNo()));
+                }
+            }
+        }
 
-            DBPage oldPage = entry.getValue();
-            if (!oldPage.isDirty())
-                continue;
+        writeDirtyPages(batch);
 
-            DBFile dbFile = oldPage.getDBFile();
-            DBFileType type = dbFile.getType();
-            if (type != DBFileType.WRITE_AHEAD_LOG_FILE &&
-                type != DBFileType.TXNSTATE_FILE) {
-                dirtyFiles.add(oldPage.getDBFile());
+        if (sync) {
+            logger.debug("Synchronizing all files containing dirty pages to disk.");
+            for (DBFile dbFile : dirtyFiles)
+                fileManager.syncDBFile(dbFile);
+        }
+    }
+
+
+    /**
+     * This method writes out the dirty pages whose recovery LSN is before the
+     * specified log sequence number, i.e. the pages that have stayed dirty
+     * since before that point in the write-ahead log.  Checkpoints use this
+     * so that frequently-modified pages don't keep the recovery start point
+     * from advancing.  The files are not synced; see {@link #syncAllFiles}.
+     *
+     * @param lsn dirty pages first changed before this LSN are written out
+     *
+     * @throws IOException if an IO error occurs while updating the write-ahead
+     *         log, or while writing the pages.
+     */
+    public void writeDirtyPagesBefore(LogSequenceNumber lsn)
+        throws IOException {
+
+        PageWriteBatch batch = new PageWriteBatch();
+
+        for (PagePartition partition : cachePartitions) {
+            synchronized (partition) {
+                for (DBPage oldPage : partition.pages.values()) {
+                    if (!oldPage.isDirty())
+                        continue;
+
+                    // Pages that other sessions are using stay in the
+                    // checkpoint's dirty-page table instead.
+                    LogSequenceNumber recLSN = oldPage.getRecLSN();
+                    if (recLSN != null && recLSN.compareTo(lsn) < 0)
+                        addToWriteBatch(partition, oldPage, batch, true);
+                }
             }
+        }
 
-            logger.debug(String.format("    Saving page [%s,%d] to disk.",
-                dbFile, oldPage.getPageNo()));
+        logger.debug(String.format("Writing %d pages first changed before %s.",
+            batch.pages.size(), lsn));
 
-            dirtyPages.add(oldPage);
+        writeDirtyPages(batch);
+    }
+
+
+    /**
+     * Returns the dirty-page table for a checkpoint:  every dirty page in the
+     * cache whose changes have been recorded in the write-ahead log, along
+     * with the page's recovery LSN.
+     *
+     * @return a list of the logged dirty pages in the cache
+     */
+    public List<DirtyPageEntry> getDirtyPageTable() {
+        ArrayList<DirtyPageEntry> entries = new ArrayList<DirtyPageEntry>();
+
+        for (PagePartition partition : cachePartitions) {
+            synchronized (partition) {
+                for (Map.Entry<CachedPageInfo, DBPage> entry :
+                     partition.pages.entrySet()) {
+
+                    DBPage oldPage = entry.getValue();
+                    LogSequenceNumber recLSN = oldPage.getRecLSN();
+                    if (!oldPage.isDirty() || recLSN == null)
+                        continue;
+
+                    CachedPageInfo info = entry.getKey();
+                    entries.add(new DirtyPageEntry(
+                        info.dbFile.getDataFile().getName(), info.pageNo,
+                        recLSN));
+                }
+            }
         }
 
-        writeDirtyPages(dirtyPages, /* invalidate */ false);
+        return entries;
+    }
 
-        if (sync) {
-            logger.debug("Synchronizing all files containing dirty pages to disk.");
-            for (DBFile dbFile : dirtyFiles)
+
+    /**
+     * This method syncs every data file that the buffer manager has open,
+     * except for WAL files and the transaction-state file.  Dirty pages are
+     * usually written without syncing, so a checkpoint must do this before
+     * it can rely on written pages being on disk.
+     *
+     * @throws IOException if an IO error occurs while syncing a file
+     */
+    public void syncAllFiles() throws IOException {
+        for (DBFile dbFile : cachedFiles.values()) {
+            DBFileType type = dbFile.getType();
+            if (type == DBFileType.WRITE_AHEAD_LOG_FILE ||
+                type == DBFileType.TXNSTATE_FILE) {
+                continue;
+            }
+
+            try {
                 fileManager.syncDBFile(dbFile);
+            }
+            catch (IOException e) {
+                // Files are synced when they are closed, so it's only a
+                // problem if the file is still open.
+                if (cachedFiles.get(dbFile.getDataFile().getName()) == dbFile)
+                    throw e;
+            }
         }
     }
 
@@ -886,39 +1626,63 @@ public class BufferManager {
         logger.info("Flushing all pages for file " + dbFile +
             " from the Buffer Manager.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
+        PageWriteBatch batch = new PageWriteBatch();
 
-        ArrayList<DBPage> dirtyPages = new ArrayList<DBPage>();
+        for (PagePartition partition : cachePartitions) {
+            synchronized (partition) {
+                Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
+                    partition.pages.entrySet().iterator();
 
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+                while (entries.hasNext()) {
+                    Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
 
-            CachedPageInfo info = entry.getKey();
-            if (dbFile.equals(info.dbFile)) {
-                DBPage oldPage = entry.getValue();
+                    CachedPageInfo info = entry.getKey();
+                    if (dbFile.equals(info.dbFile)) {
+                        DBPage oldPage = entry.getValue();
+                        if (flushCachedPage(partition, oldPage, batch))
+                            entries.remove();
+                    }
+                }
+            }
+        }
 
-                logger.debug(String.format(
-                    "    Evicting page [%s,%d] from page-cache.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
+        writeDirtyPages(batch);
+        removeFlushedPages(batch.pages);
+    }
 
-                // Remove the page from the cache.
-                entries.remove();
-                totalBytesCached -= oldPage.getPageSize();
 
-                // If the page is dirty, we need to write its data to disk before
-                // invalidating it.  Otherwise, just invalidate it.
-                if (oldPage.isDirty()) {
-                    logger.debug("    Evicted page is dirty; must save to disk.");
-                    dirtyPages.add(oldPage);
-                }
-                else {
-                    oldPage.invalidate();
+    /**
+     * This method removes all cached pages for the specified file from the
+     * buffer manager <em>without</em> writing out dirty pages.  This is only
+     * appropriate for files that are about to be deleted, such as temporary
+     * files.
+     *
+     * @param dbFile the file whose pages should be discarded
+     */
+    public void discardDBFile(DBFile dbFile) {
+        logger.info("Discarding all pages for file " + dbFile +
+            " from the Buffer Manager.");
+
+        for (PagePartition partition : cachePartitions) {
+            synchronized (partition) {
+                Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
+                    partition.pages.entrySet().iterator();
+
+                while (entries.hasNext()) {
+                    Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+
+                    CachedPageInfo info = entry.getKey();
+                    if (dbFile.equals(info.dbFile)) {
+                        DBPage oldPage = entry.getValue();
+                        partition.policy.pageRemoved(oldPage);
+                        entries.remove();
+                        oldPage.invalidate();
+                    }
                 }
             }
         }
 
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
+        cachedFiles.remove(dbFile.getDataFile().getName());
     }
 
 
@@ -938,36 +1702,95 @@ public class BufferManager {
     public void flushAll() throws IOException {
         logger.info("Flushing ALL database pages from the Buffer Manager.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
+        PageWriteBatch batch = new PageWriteBatch();
 
-        ArrayList<DBPage> dirtyPages = new ArrayList<DBPage>();
+        for (PagePartition partition : cachePartitions) {
+            synchronized (partition) {
+                Iterator<DBPage> pages = partition.pages.values().iterator();
+                while (pages.hasNext()) {
+                    if (flushCachedPage(partition, pages.next(), batch))
+                        pages.remove();
+                }
+            }
+        }
 
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+        writeDirtyPages(batch);
+        removeFlushedPages(batch.pages);
+    }
 
-            DBPage oldPage = entry.getValue();
 
-            logger.debug(String.format(
-                "    Evicting page [%s,%d] from page-cache.",
-                oldPage.getDBFile(), oldPage.getPageNo()));
+    /**
+     * This helper is used when flushing pages from the cache.  It removes the
+     * page from the partition's replacement policy, and then invalidates the
+     * page if it is clean, or adds it to the list of dirty pages that must be
+     * written out if it is dirty.  The caller must hold the partition's latch.
+     * <p>
+     * If the page was invalidated, the caller must remove it from the
+     * partition's page-map.  Dirty pages must stay in the page-map until they
+     * have been written, or else another session (or the
+     * {@link ReadAheadManager}) could load a stale copy of the page from the
+     * file in the meantime; {@link #removeFlushedPages} removes them once they
+     * have been written.
+     *
+     * <p>
+     * A page that another thread is already writing is left alone, since
+     * that thread will take care of it.
+     *
+     * @param partition the partition that holds the page
+     * @param oldPage the page being flushed from the cache
+     * @param batch the batch to add the page to if it is dirty
+     *
+     * @return {@code true} if the page was invalidated, or {@code false} if
+     *         it was added to the batch of dirty pages or left alone
+     */
+    private boolean flushCachedPage(PagePartition partition, DBPage oldPage,
+                                    PageWriteBatch batch) {
+        if (partition.pagesBeingWritten.containsKey(oldPage))
+            return false;
 
-            // Remove the page from the cache.
-            entries.remove();
-            totalBytesCached -= oldPage.getPageSize();
+        logger.debug(String.format(
+            "    Evicting page [%s,%d] from page-cache.",
+            oldPage.getDBFile(), oldPage.getPageNo()));
+
+        partition.policy.pageRemoved(oldPage);
+
+        // If the page is dirty, we need to write its data to disk before
+        // invalidating it.  Otherwise, just invalidate it.  The page is
+        // being removed from the cache, so it is written even if other
+        // sessions are using it.
+        if (oldPage.isDirty()) {
+            logger.debug("    Evicted page is dirty; must save to disk.");
+            addToWriteBatch(partition, oldPage, batch, false);
+            return false;
+        }
+        else {
+            oldPage.invalidate();
+            return true;
+        }
+    }
 
-            // If the page is dirty, we need to write its data to disk before
-            // invalidating it.  Otherwise, just invalidate it.
-            if (oldPage.isDirty()) {
-                logger.debug("    Evicted page is dirty; must save to disk.");
-                dirtyPages.add(oldPage);
-            }
-            else {
-                oldPage.invalidate();
+
+    /**
+     * This helper removes pages that were flushed from the cache by
+     * {@link #flushCachedPage}, once they have been written to disk, and then
+     * invalidates them.
+     *
+     * @param flushedPages the pages to remove from the cache
+     */
+    private void removeFlushedPages(List<DBPage> flushedPages) {
+        for (DBPage oldPage : flushedPages) {
+            CachedPageInfo cpi =
+                new CachedPageInfo(oldPage.getDBFile(), oldPage.getPageNo());
+            PagePartition partition = getPartition(cpi);
+            synchronized (partition) {
+                if (partition.pages.get(cpi) == oldPage) {
+                    partition.pages.remove(cpi);
+                    if (oldPage.isWritten())
+                        partition.writtenPagesRemoved++;
+                }
             }
+            oldPage.invalidate();
         }
-
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
     }
 
 
@@ -0,0 +1,199 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * This file manager performs page IO with {@link FileChannel} positional
+ * reads and writes, rather than seeking a shared {@link java.io.RandomAccessFile}
+ * and then reading or writing.  Each page transfer is a single system call
+ * that doesn't touch the file pointer, so concurrent sessions can read and
+ * write pages of the same file without locking each other out.
+ * <p>
+ * Optionally, the file manager can also memory-map table files (heap files
+ * and B<sup>+</sup> tree files), and satisfy page reads by copying directly
+ * out of the mapped region.  This is intended for read-mostly workloads;
+ * writes still go through the file channel, and the mapping of a file is
+ * redone when a page past the end of the current mapping is read.
+ * <p>
+ * All other operations, including the performance-counter bookkeeping, are
+ * inherited from {@link FileManagerImpl}.
+ *
+ * @design The mapping is shared, so pages written through the channel are
+ *         visible through the mapping on platforms with a unified page cache,
+ *         which includes Linux, Mac OS X and Windows.  Java provides no way
+ *         to explicitly unmap a file, so the mapping of a file is released
+ *         when it is garbage-collected after the file is closed.
+ */
+public class ChannelFileManager extends FileManagerImpl {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ChannelFileManager.class);
+
+
+    /** A flag indicating whether table files should be memory-mapped. */
+    private boolean mapTableFiles;
+
+
+    /**
+     * The current memory-mappings of table files, keyed on the file's path.
+     * This is only used when {@link #mapTableFiles} is {@code true}.
+     */
+    private ConcurrentHashMap<File, MappedByteBuffer> mappedFiles =
+        new ConcurrentHashMap<File, MappedByteBuffer>();
+
+
+    /**
+     * Create a file-manager instance that uses the specified base directory.
+     *
+     * @param baseDir the base-directory that the file-manager should use
+     *
+     * @param mapTableFiles if {@code true}, table files will be memory-mapped
+     *        and pages will be read out of the mapping
+     */
+    public ChannelFileManager(File baseDir, boolean mapTableFiles) {
+        super(baseDir);
+        this.mapTableFiles = mapTableFiles;
+    }
+
+
+    /**
+     * Returns {@code true} if table files are memory-mapped by this file
+     * manager.
+     *
+     * @return {@code true} if table files are memory-mapped
+     */
+    public boolean isMappingTableFiles() {
+        return mapTableFiles;
+    }
+
+
+    /**
+     * Returns true if the specified file is a table file that should be
+     * memory-mapped.
+     */
+    private boolean shouldMap(DBFile dbFile) {
+        if (!mapTableFiles)
+            return false;
+
+        DBFileType type = dbFile.getType();
+        return type == DBFileType.HEAP_TUPLE_FILE ||
+               type == DBFileType.BTREE_TUPLE_FILE ||
+               type == DBFileType.HASH_TUPLE_FILE;
+    }
+
+
+    /**
+     * Returns a memory-mapping of the specified file that covers at least
+     * <tt>requiredLength</tt> bytes, remapping the file if the current
+     * mapping is too short.  If the file itself is too short, or too large to
+     * map, {@code null} is returned.
+     *
+     * @param dbFile the file to retrieve the mapping of
+     * @param requiredLength the number of bytes that the mapping must cover
+     *
+     * @return a mapping of the file, or {@code null} if no suitable mapping
+     *         can be made
+     *
+     * @throws IOException if an IO error occurs while mapping the file
+     */
+    private MappedByteBuffer getMapping(DBFile dbFile, long requiredLength)
+        throws IOException {
+
+        File f = dbFile.getDataFile();
+        MappedByteBuffer mapping = mappedFiles.get(f);
+        if (mapping != null && mapping.capacity() >= requiredLength)
+            return mapping;
+
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        long length = channel.size();
+        if (length < requiredLength || length > Integer.MAX_VALUE)
+            return null;
+
+        logger.debug(String.format("Mapping %d bytes of database file %s.",
+            length, f));
+
+        // If several sessions remap the file at the same time, it doesn't
+        // matter whose mapping wins, since they all cover the required range.
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        mappedFiles.put(f, mapping);
+        return mapping;
+    }
+
+
+    @Override
+    protected void readPageData(DBFile dbFile, long pageStart,
+                                ByteBuffer buffer) throws IOException {
+
+        // Work on a duplicate of the buffer, so that the caller's position
+        // doesn't change.
+        ByteBuffer bb = buffer.duplicate();
+        int start = bb.position();
+
+        if (shouldMap(dbFile)) {
+            MappedByteBuffer mapping =
+                getMapping(dbFile, pageStart + bb.remaining());
+
+            if (mapping != null) {
+                // The mapping's position is shared, so read through a
+                // duplicate that has its own position.
+                ByteBuffer view = mapping.duplicate();
+                view.position((int) pageStart);
+                view.limit((int) pageStart + bb.remaining());
+                bb.put(view);
+                return;
+            }
+        }
+
+        // Reading into a direct buffer, such as a page's off-heap frame,
+        // avoids the extra copy the JDK makes for heap buffers.
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        while (bb.hasRemaining()) {
+            int bytesRead = channel.read(bb, pageStart + bb.position() - start);
+            if (bytesRead < 0)
+                throw new EOFException();
+        }
+    }
+
+
+    @Override
+    protected void writePageData(DBFile dbFile, long pageStart,
+                                 ByteBuffer buffer) throws IOException {
+
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        ByteBuffer bb = buffer.duplicate();
+        int start = bb.position();
+        while (bb.hasRemaining())
+            channel.write(bb, pageStart + bb.position() - start);
+    }
+
+
+    @Override
+    public boolean renameDBFile(DBFile dbFile, String newFilename) {
+        mappedFiles.remove(dbFile.getDataFile());
+        return super.renameDBFile(dbFile, newFilename);
+    }
+
+
+    @Override
+    public void closeDBFile(DBFile dbFile) throws IOException {
+        mappedFiles.remove(dbFile.getDataFile());
+        super.closeDBFile(dbFile);
+    }
+
+
+    @Override
+    public void deleteDBFile(File f) throws IOException {
+        mappedFiles.remove(f);
+        super.deleteDBFile(f);
+    }
+}
@@ -0,0 +1,178 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.HashMap;
+
+
+/**
+ * This class implements a clock-sweep page replacement policy, similar to the
+ * one used by PostgreSQL.  Every cached page has a usage count that is
+ * incremented (up to {@link #MAX_USAGE_COUNT}) each time the page is
+ * referenced.  To choose a victim, a "clock hand" sweeps around the cached
+ * pages, skipping pinned pages and decrementing the usage count of each
+ * unpinned page it passes, until it finds an unpinned page whose usage count
+ * is zero.
+ * <p>
+ * Since every step of the sweep either finds a victim or decrements a usage
+ * count, the cost of choosing a victim is amortized constant time.  Pages
+ * that are only touched once by a large scan enter the cache with a usage
+ * count of one, so they are evicted well before pages that are repeatedly
+ * referenced.
+ */
+public class ClockReplacementPolicy implements PageReplacementPolicy {
+
+    /** The name of this policy, as used in the page-cache policy property. */
+    public static final String NAME = "clock";
+
+
+    /** The maximum usage count that a cached page can accumulate. */
+    public static final int MAX_USAGE_COUNT = 5;
+
+
+    /**
+     * Each page in the page cache occupies a frame on the clock.  Frames are
+     * kept in a circular doubly-linked list so that they can be added and
+     * removed in constant time.
+     */
+    private static class Frame {
+        DBPage dbPage;
+
+        int usageCount;
+
+        Frame prev;
+
+        Frame next;
+
+        Frame(DBPage dbPage) {
+            this.dbPage = dbPage;
+            usageCount = 1;
+            prev = this;
+            next = this;
+        }
+    }
+
+
+    /** Maps each page in the page cache to its frame on the clock. */
+    private HashMap<DBPage, Frame> frames = new HashMap<DBPage, Frame>();
+
+
+    /**
+     * The current position of the clock hand, or {@code null} if the cache
+     * is empty.
+     */
+    private Frame hand = null;
+
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        Frame frame = new Frame(dbPage);
+        frames.put(dbPage, frame);
+
+        if (hand == null) {
+            hand = frame;
+        }
+        else {
+            // Insert the new frame just behind the hand, so that it is the
+            // last frame the hand will reach.
+            frame.next = hand;
+            frame.prev = hand.prev;
+            hand.prev.next = frame;
+            hand.prev = frame;
+        }
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        Frame frame = frames.get(dbPage);
+        if (frame != null && frame.usageCount < MAX_USAGE_COUNT)
+            frame.usageCount++;
+    }
+
+
+    @Override
+    public void pagePinned(DBPage dbPage) {
+        // The sweep skips pinned pages, so nothing to do here.
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        // Nothing to do here either.
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        Frame frame = frames.remove(dbPage);
+        if (frame != null)
+            unlinkFrame(frame);
+    }
+
+
+    @Override
+    public DBPage chooseVictim() {
+        if (hand == null)
+            return null;
+
+        // If every page is pinned, or the hand makes it all the way around
+        // enough times to drain every usage count, then give up.
+        int maxSteps = frames.size() * (MAX_USAGE_COUNT + 1);
+        for (int i = 0; i < maxSteps; i++) {
+            Frame frame = hand;
+            hand = hand.next;
+
+            if (frame.dbPage.isPinned())
+                continue;
+
+            if (frame.usageCount > 0) {
+                frame.usageCount--;
+                continue;
+            }
+
+            frames.remove(frame.dbPage);
+            unlinkFrame(frame);
+            return frame.dbPage;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Removes the specified frame from the clock, moving the hand forward if
+     * it is currently on the frame.
+     *
+     * @param frame the frame to remove from the clock
+     */
+    private void unlinkFrame(Frame frame) {
+        if (frame.next == frame) {
+            // This was the only frame on the clock.
+            hand = null;
+        }
+        else {
+            if (hand == frame)
+                hand = frame.next;
+
+            frame.prev.next = frame.next;
+            frame.next.prev = frame.prev;
+        }
+
+        frame.prev = frame;
+        frame.next = frame;
+    }
+
+
+    @Override
+    public void victimRestored(DBPage dbPage) {
+        // The page goes behind the hand with no usage count, as if it had
+        // just been loaded.
+        pageAdded(dbPage);
+    }
+}
@@ -24,6 +24,13 @@ public enum DBFileType {
     BTREE_TUPLE_FILE(2),
 
 
+    /**
+     * Represents a linear-hashing tuple file that keeps tuples in buckets
+     * based on the hash of a key, for equality lookups.
+     */
+    HASH_TUPLE_FILE(3),
+
+
     /**
      * Represents a transaction-state file used for write-ahead logging and
      * recovery.
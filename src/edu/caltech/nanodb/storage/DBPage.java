@@ -3,7 +3,10 @@ package edu.caltech.nanodb.storage;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
@@ -17,9 +20,17 @@ import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
  * (zero-based) index in the file, and whether the page has been changed in
  * memory, are tracked by the object.
  * <p>
- * Database pages do not provide any locking mechanisms to guard against
- * concurrent access.  Locking must be managed at a level above what this class
- * provides.
+ * Database pages do not guard their data against concurrent access by
+ * themselves.  Each page carries a reader/writer latch that the code which
+ * interprets the page's contents (e.g. the B<sup>+</sup> tree file format)
+ * can use to keep sessions from reading the page while another session is
+ * changing it, but the page's own methods never take the latch.  The
+ * page's pin-count may be safely updated by many sessions at once.  A
+ * session must keep a page pinned for as long as it holds the page's latch,
+ * so that the page can't be evicted and reloaded as a different object.
+ * <p>
+ * The page's data is stored off the Java heap, in a frame of memory that the
+ * {@link BufferManager} allocates from its {@link PageFrameArena}.
  * <p>
  * The class provides methods to read and write a wide range of data types.
  * Multibyte values are stored in big-endian format, with the most significant
@@ -65,7 +76,7 @@ public class DBPage implements Pinnable {
      * flushed from the buffer manager since the page is being used by at least
      * one session.
      */
-    private int pinCount;
+    private AtomicInteger pinCount;
 
 
     /** This flag is true if this page has been modified in memory. */
@@ -82,15 +93,61 @@ public class DBPage implements Pinnable {
     private LogSequenceNumber pageLSN;
 
 
-    /** The actual data for the table-page. */
-    private byte[] pageData;
+    /**
+     * For dirty pages, this field is set to the Log Sequence Number of the
+     * first write-ahead log record that changed the page since it was last
+     * written to disk (the page's "recovery LSN").  Recovery never needs to
+     * start earlier than this for the page, so checkpoints use it to decide
+     * how far the recovery start point can be advanced.
+     */
+    private LogSequenceNumber recLSN;
+
+
+    /**
+     * The actual data for the table-page.  This is an off-heap frame from the
+     * Buffer Manager, whose position is always 0 and whose limit is always
+     * the page size.
+     */
+    private ByteBuffer pageData;
 
 
     /**
      * When the page is marked dirty, this gets set to the original version of
      * the page, so that we can properly record changes to the write-ahead log.
+     * The copy is only made if the Buffer Manager reports that old page data
+     * is needed, i.e. when the write-ahead log is in use.
+     */
+    private ByteBuffer oldPageData;
+
+
+    /**
+     * This flag is true if the page was loaded by the {@link ReadAheadManager}
+     * and no session has requested it yet.
+     */
+    private AtomicBoolean prefetched;
+
+
+    /**
+     * A short-term reader/writer latch on the page's contents.  Sessions
+     * that only read the page hold it in shared mode, and sessions that
+     * change the page hold it in exclusive mode.
+     */
+    private ReentrantReadWriteLock latch;
+
+
+    /**
+     * The number of written pages that had been removed from this page's
+     * partition of the Buffer Manager when this page's data was loaded.  The
+     * Buffer Manager uses this to notice when the data may be stale.
      */
-    private byte[] oldPageData;
+    private long loadStamp;
+
+
+    /**
+     * This flag is true if the Buffer Manager has written this page to disk
+     * since the page was loaded.
+     */
+    private boolean written;
 
 
     /**
@@ -107,6 +164,38 @@ public class DBPage implements Pinnable {
      * @throws IllegalArgumentException if <tt>pageNo</tt> is negative
      */
     public DBPage(BufferManager bufferManager, DBFile dbFile, int pageNo) {
+        this(bufferManager, dbFile, pageNo, null);
+
+        // This operation could fail with an IOException, because more
+        // space must be allocated to keep track of the original page data,
+        // that might cause the buffer manager to swap out some other pages
+        // to disk.  Since all the existing code wouldn't compile if an
+        // IOException is thrown, we just wrap it with a RuntimeException.
+        // TODO:  Come up with a better approach?!  Maybe a custom exception??
+        try {
+            pageData = bufferManager.allocBuffer(dbFile.getPageSize());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Constructs a new, empty table-page for the specified table file, using
+     * a buffer that the caller has already allocated from the buffer
+     * manager.  Read-ahead uses this so that it can allocate the buffer
+     * without evicting any pages.
+     *
+     * @param dbFile The database file that this page is contained within.
+     *
+     * @param pageNo The page number within the database file.
+     *
+     * @param pageData The buffer allocated for the page's data, or
+     *        <tt>null</tt> if the caller will allocate it.
+     */
+    DBPage(BufferManager bufferManager, DBFile dbFile, int pageNo,
+           ByteBuffer pageData) {
         if (bufferManager == null)
             throw new IllegalArgumentException("bufferManager cannot be null");
 
@@ -121,23 +210,13 @@ public class DBPage implements Pinnable {
         this.bufferManager = bufferManager;
         this.dbFile = dbFile;
         this.pageNo = pageNo;
-        pinCount = 0;
+        pinCount = new AtomicInteger();
+        prefetched = new AtomicBoolean();
+        latch = new ReentrantReadWriteLock();
+        loadStamp = bufferManager.getRemovalStamp(dbFile, pageNo);
         dirty = false;
         pageLSN = null;
-
-        // This operation could fail with an IOException, because more
-        // space must be allocated to keep track of the original page data,
-        // that might cause the buffer manager to swap out some other pages
-        // to disk.  Since all the existing code wouldn't compile if an
-        // IOException is thrown, we just wrap it with a RuntimeException.
-        // TODO:  Come up with a better approach?!  Maybe a custom exception??
-        try {
-            pageData = bufferManager.allocBuffer(dbFile.getPageSize());
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
+        this.pageData = pageData;
         oldPageData = null;
     }
 
@@ -181,13 +260,13 @@ public class DBPage implements Pinnable {
      * @return the page-size in bytes
      */
     public int getPageSize() {
-        return pageData.length;
+        return pageData.capacity();
     }
 
 
     @Override
     public void pin() {
-        pinCount++;
+        pinCount.incrementAndGet();
 
         // To facilitate debugging of pinned-page leaks!
         bufferManager.recordPagePinned(this);
@@ -204,42 +283,156 @@ public class DBPage implements Pinnable {
         // To facilitate debugging of pinned-page leaks!
         bufferManager.recordPageUnpinned(this);
 
-        pinCount--;
+        // Once the last pin is released, the page may be evicted again.
+        if (pinCount.decrementAndGet() == 0)
+            bufferManager.recordPageEvictable(this);
     }
 
 
     @Override
     public int getPinCount() {
-        return pinCount;
+        return pinCount.get();
     }
 
 
     @Override
     public boolean isPinned() {
-        return (pinCount > 0);
+        return (pinCount.get() > 0);
+    }
+
+
+    /**
+     * Acquires the page's latch in shared mode, blocking until no other
+     * session holds the latch in exclusive mode.
+     */
+    public void latchShared() {
+        latch.readLock().lock();
+    }
+
+
+    /** Releases the page's latch from shared mode. */
+    public void unlatchShared() {
+        latch.readLock().unlock();
+    }
+
+
+    /**
+     * Acquires the page's latch in exclusive mode, blocking until no other
+     * session holds the latch in either mode.  The latch can't be upgraded,
+     * so a session must not already hold it in shared mode.
+     */
+    public void latchExclusive() {
+        latch.writeLock().lock();
+    }
+
+
+    /** Releases the page's latch from exclusive mode. */
+    public void unlatchExclusive() {
+        latch.writeLock().unlock();
     }
 
 
     /**
-     * Returns the byte-array of the page's data.  <b>Note that if any changes
-     * are made to the page's data, the dirty-flag must be updated
+     * Returns the number of written pages that had been removed from this
+     * page's partition of the Buffer Manager when the page's data was
+     * loaded.
+     *
+     * @return the page's load stamp
+     */
+    long getLoadStamp() {
+        return loadStamp;
+    }
+
+
+    /**
+     * Sets the number of written pages that had been removed from this
+     * page's partition of the Buffer Manager when the page's data was
+     * loaded.  This is set when the page is created, and when the Buffer
+     * Manager reloads the page's data.
+     *
+     * @param loadStamp the page's new load stamp
+     */
+    void setLoadStamp(long loadStamp) {
+        this.loadStamp = loadStamp;
+    }
+
+
+    /**
+     * Returns true if the Buffer Manager has written this page to disk since
+     * the page was loaded.
+     *
+     * @return true if the page has been written to disk since it was loaded
+     */
+    boolean isWritten() {
+        return written;
+    }
+
+
+    /** Records that the Buffer Manager has written this page to disk. */
+    void setWritten() {
+        written = true;
+    }
+
+
+    /**
+     * Returns true if the page was loaded by the {@link ReadAheadManager},
+     * and no session has requested it since.
+     *
+     * @return true if the page was read ahead and hasn't been used yet
+     */
+    public boolean isPrefetched() {
+        return prefetched.get();
+    }
+
+
+    /**
+     * Sets the flag recording whether the page was loaded by the
+     * {@link ReadAheadManager} and hasn't been used yet.
+     *
+     * @param prefetched the new value of the flag
+     */
+    void setPrefetched(boolean prefetched) {
+        this.prefetched.set(prefetched);
+    }
+
+
+    /**
+     * Clears the flag recording whether the page was read ahead, and reports
+     * whether it was set.  Only one caller will see {@code true} even if
+     * several sessions request a read-ahead page at the same time.
+     *
+     * @return true if the flag was set before the call
+     */
+    boolean clearPrefetched() {
+        return prefetched.getAndSet(false);
+    }
+
+
+    /**
+     * Returns the off-heap frame holding the page's data.  <b>Note that if
+     * any changes are made to the page's data, the dirty-flag must be updated
      * appropriately or else the data will not be written back to the file.</b>
+     * The frame's position must not be changed; use absolute operations or a
+     * {@link ByteBuffer#duplicate duplicate} of the frame.
      *
-     * @return a byte-array containing the page's data
+     * @return a byte-buffer containing the page's data
      */
-    public byte[] getPageData() {
+    public ByteBuffer getPageData() {
         return pageData;
     }
 
 
     /**
-     * Returns the byte-array of the page's data at the last point when the page
-     * became dirty, or <tt>null</tt> if the page is currently clean.
+     * Returns the page's data at the last point when the page became dirty,
+     * or <tt>null</tt> if the page is currently clean, or if the Buffer
+     * Manager isn't keeping old page data.
      *
-     * @return a byte-array containing the last "clean" version of the page's
+     * @return a byte-buffer containing the last "clean" version of the page's
      *         data
+     *
+     * @see BufferManager#setKeepOldPageData
      */
-    public byte[] getOldPageData() {
+    public ByteBuffer getOldPageData() {
         return oldPageData;
     }
 
@@ -256,7 +449,7 @@ public class DBPage implements Pinnable {
         if (oldPageData == null)
             throw new IllegalStateException("No old page data to sync");
 
-        System.arraycopy(pageData, 0, oldPageData, 0, pageData.length);
+        oldPageData.duplicate().put(pageData.duplicate());
     }
 
 
@@ -278,9 +471,11 @@ public class DBPage implements Pinnable {
      *        otherwise
      */
     public void setDirty(boolean dirty) {
-        if (!this.dirty && dirty) {
+        if (!this.dirty && dirty && bufferManager.isKeepingOldPageData()) {
             // Page is being changed from clean to dirty.  Duplicate the current
-            // data so that we have it when updating the write-ahead log.
+            // data so that we have it when updating the write-ahead log.  This
+            // is done on the first write to the page, so clean pages never
+            // need a second frame.
 
             // This operation could fail with an IOException, because more
             // space must be allocated to keep track of the original page data,
@@ -289,8 +484,8 @@ public class DBPage implements Pinnable {
             // IOException is thrown, we just wrap it with a RuntimeException.
             // TODO:  Come up with a better approach?!  Maybe a custom exception??
             try {
-                oldPageData = bufferManager.allocBuffer(pageData.length);
-                System.arraycopy(pageData, 0, oldPageData, 0, pageData.length);
+                oldPageData = bufferManager.allocBuffer(getPageSize());
+                oldPageData.duplicate().put(pageData.duplicate());
             }
             catch (IOException e) {
                 throw new RuntimeException(e);
@@ -299,11 +494,14 @@ public class DBPage implements Pinnable {
         else if (this.dirty && !dirty) {
             // Page is being changed from dirty to clean.  Clear out the old
             // page data since we don't need it anymore.
-            bufferManager.releaseBuffer(oldPageData);
-            oldPageData = null;
+            if (oldPageData != null) {
+                bufferManager.releaseBuffer(oldPageData);
+                oldPageData = null;
+            }
 
-            // Clear out the page-LSN value as well.
+            // Clear out the page-LSN and recovery-LSN values as well.
             pageLSN = null;
+            recLSN = null;
         }
 
         this.dirty = dirty;
@@ -317,6 +515,22 @@ public class DBPage implements Pinnable {
 
     public void setPageLSN(LogSequenceNumber lsn) {
         pageLSN = lsn;
+
+        // The first LSN recorded against a dirty page is its recovery LSN.
+        if (recLSN == null)
+            recLSN = lsn;
+    }
+
+
+    /**
+     * Returns the Log Sequence Number of the first write-ahead log record
+     * that changed this page since it was last written to disk, or
+     * {@code null} if no logged changes have been made.
+     *
+     * @return the page's recovery LSN
+     */
+    public LogSequenceNumber getRecLSN() {
+        return recLSN;
     }
 
 
@@ -362,7 +576,10 @@ public class DBPage implements Pinnable {
      * @param len the number of bytes to transfer to the destination buffer
      */
     public void read(int position, byte[] b, int off, int len) {
-        System.arraycopy(pageData, position, b, off, len);
+        // Use a duplicate, so that the frame's position doesn't change.
+        ByteBuffer dup = pageData.duplicate();
+        dup.position(position);
+        dup.get(b, off, len);
     }
 
 
@@ -394,7 +611,11 @@ public class DBPage implements Pinnable {
      */
     public void write(int position, byte[] b, int off, int len) {
         setDirty(true);
-        System.arraycopy(b, off, pageData, position, len);
+
+        // Use a duplicate, so that the frame's position doesn't change.
+        ByteBuffer dup = pageData.duplicate();
+        dup.position(position);
+        dup.put(b, off, len);
     }
 
 
@@ -421,7 +642,14 @@ public class DBPage implements Pinnable {
      */
     public void moveDataRange(int srcPosition, int dstPosition, int length) {
         setDirty(true);
-        System.arraycopy(pageData, srcPosition, pageData, dstPosition, length);
+
+        // The source and destination ranges may overlap, so copy the data
+        // out before writing it back.
+        byte[] data = new byte[length];
+        read(srcPosition, data);
+        ByteBuffer dup = pageData.duplicate();
+        dup.position(dstPosition);
+        dup.put(data);
     }
 
 
@@ -435,11 +663,27 @@ public class DBPage implements Pinnable {
     public void setDataRange(int position, int length, byte value) {
         setDirty(true);
         for (int i = 0; i < length; i++)
-            pageData[position + i] = value;
+            pageData.put(position + i, value);
     }
 
 
 
+    /**
+     * Reads the specified number of bytes from the page into a new array.
+     *
+     * @param position the starting index within the page to start reading data
+     *
+     * @param len the number of bytes to read
+     *
+     * @return an array holding the data that was read
+     */
+    private byte[] readBytes(int position, int len) {
+        byte[] bytes = new byte[len];
+        read(position, bytes);
+        return bytes;
+    }
+
+
     /**
      * Reads and returns a Boolean value from the specified position.  The
      * Boolean value is encoded as a single byte; a zero value is interpreted
@@ -451,7 +695,7 @@ public class DBPage implements Pinnable {
      * @return the Boolean value
      */
     public boolean readBoolean(int position) {
-        return (pageData[position] != 0);
+        return (pageData.get(position) != 0);
     }
 
     /**
@@ -465,7 +709,7 @@ public class DBPage implements Pinnable {
      */
     public void writeBoolean(int position, boolean value) {
         setDirty(true);
-        pageData[position] = (byte) (value ? 1 : 0);
+        pageData.put(position, (byte) (value ? 1 : 0));
     }
 
 
@@ -477,7 +721,7 @@ public class DBPage implements Pinnable {
      * @return the signed byte value
      */
     public byte readByte(int position) {
-        return pageData[position];
+        return pageData.get(position);
     }
 
     /**
@@ -492,7 +736,7 @@ public class DBPage implements Pinnable {
      */
     public void writeByte(int position, int value) {
         setDirty(true);
-        pageData[position] = (byte) value;
+        pageData.put(position, (byte) value);
     }
 
 
@@ -506,7 +750,7 @@ public class DBPage implements Pinnable {
      * @return the unsigned byte value, as an integer
      */
     public int readUnsignedByte(int position) {
-        return pageData[position] & 0xFF;
+        return pageData.get(position) & 0xFF;
     }
 
 
@@ -520,10 +764,7 @@ public class DBPage implements Pinnable {
      * @return the unsigned short value, as an integer
      */
     public int readUnsignedShort(int position) {
-        int value = ((pageData[position++] & 0xFF) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getShort(position) & 0xFFFF;
     }
 
     /**
@@ -535,13 +776,9 @@ public class DBPage implements Pinnable {
      * @return the signed short value
      */
     public short readShort(int position) {
-        // Don't chop off high-order bits.  When byte is cast to int, the sign
-        // will be extended, so if original byte is negative, the resulting
-        // int will be too.
-        int value = ((pageData[position++]       ) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return (short) value;
+        // Byte-buffers are big-endian by default, which matches the page
+        // format.
+        return pageData.getShort(position);
     }
 
     /**
@@ -556,9 +793,7 @@ public class DBPage implements Pinnable {
      */
     public void writeShort(int position, int value) {
         setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        pageData.putShort(position, (short) value);
     }
 
 
@@ -571,15 +806,8 @@ public class DBPage implements Pinnable {
      */
     public char readChar(int position)
     {
-        // NOTE:  Exactly like readShort(), but result is cast to a different
-        // type.
-
-        // Don't chop off high-order bits.  When byte is cast to int, the sign will
-        // be extended, so if original byte is negative, so will resulting int.
-        int value = ((pageData[position++]       ) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return (char) value;
+        // NOTE:  Exactly like readShort(), but result is a different type.
+        return pageData.getChar(position);
     }
 
     /**
@@ -607,12 +835,7 @@ public class DBPage implements Pinnable {
      * @return the unsigned integer value, as a long
      */
     public long readUnsignedInt(int position) {
-        long value = ((pageData[position++] & 0xFF) << 24)
-                   | ((pageData[position++] & 0xFF) << 16)
-                   | ((pageData[position++] & 0xFF) <<  8)
-                   | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getInt(position) & 0xFFFFFFFFL;
     }
 
 
@@ -624,12 +847,7 @@ public class DBPage implements Pinnable {
      * @return the signed int value
      */
     public int readInt(int position) {
-        int value = ((pageData[position++] & 0xFF) << 24)
-                  | ((pageData[position++] & 0xFF) << 16)
-                  | ((pageData[position++] & 0xFF) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getInt(position);
     }
 
     /**
@@ -641,11 +859,7 @@ public class DBPage implements Pinnable {
      */
     public void writeInt(int position, int value) {
         setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 24));
-        pageData[position++] = (byte) (0xFF & (value >> 16));
-        pageData[position++] = (byte) (0xFF & (value >>  8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        pageData.putInt(position, value);
     }
 
 
@@ -658,16 +872,7 @@ public class DBPage implements Pinnable {
      * @return the signed long value
      */
     public long readLong(int position) {
-        long value = ((long) (pageData[position++] & 0xFF) << 56)
-                   | ((long) (pageData[position++] & 0xFF) << 48)
-                   | ((long) (pageData[position++] & 0xFF) << 40)
-                   | ((long) (pageData[position++] & 0xFF) << 32)
-                   | ((long) (pageData[position++] & 0xFF) << 24)
-                   | ((long) (pageData[position++] & 0xFF) << 16)
-                   | ((long) (pageData[position++] & 0xFF) <<  8)
-                   | ((long) (pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getLong(position);
     }
 
     /**
@@ -679,15 +884,7 @@ public class DBPage implements Pinnable {
      */
     public void writeLong(int position, long value) {
         setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 56));
-        pageData[position++] = (byte) (0xFF & (value >> 48));
-        pageData[position++] = (byte) (0xFF & (value >> 40));
-        pageData[position++] = (byte) (0xFF & (value >> 32));
-        pageData[position++] = (byte) (0xFF & (value >> 24));
-        pageData[position++] = (byte) (0xFF & (value >> 16));
-        pageData[position++] = (byte) (0xFF & (value >>  8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        pageData.putLong(position, value);
     }
 
 
@@ -731,7 +928,7 @@ public class DBPage implements Pinnable {
         String str = null;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = new String(readBytes(position, len), "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -805,7 +1002,7 @@ public class DBPage implements Pinnable {
         String str = null;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = new String(readBytes(position, len), "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -886,11 +1083,11 @@ public class DBPage implements Pinnable {
 
         // Fixed-size strings are padded with 0-bytes, so trim these off the
         // end of the string value.
-        while (len > 0 && pageData[position + len - 1] == 0)
+        while (len > 0 && pageData.get(position + len - 1) == 0)
             len--;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = new String(readBytes(position, len), "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -948,7 +1145,8 @@ public class DBPage implements Pinnable {
         write(position, bytes);
 
         // Zero out the rest of the fixed-size string value.
-        Arrays.fill(pageData, position + bytes.length, position + len, (byte) 0);
+        for (int i = position + bytes.length; i < position + len; i++)
+            pageData.put(i, (byte) 0);
     }
 
 
@@ -1149,7 +1347,7 @@ public class DBPage implements Pinnable {
             if (i % 32 == 0)
                 buf.append("\n                ");
 
-            buf.append(String.format(" %02X", pageData[i]));
+            buf.append(String.format(" %02X", pageData.get(i)));
         }
 
         if (oldPageData != null) {
@@ -1158,7 +1356,7 @@ public class DBPage implements Pinnable {
                 if (i % 32 == 0)
                     buf.append("\n                ");
 
-                buf.append(String.format(" %02x", oldPageData[i]));
+                buf.append(String.format(" %02x", oldPageData.get(i)));
             }
         }
 
@@ -1185,6 +1383,9 @@ public class DBPage implements Pinnable {
         if (!dirty)
             throw new IllegalStateException("Page is not dirty");
 
+        if (oldPageData == null)
+            throw new IllegalStateException("Page has no old page data");
+
         StringBuilder buf = new StringBuilder();
 
         int i = 0;
@@ -1192,7 +1393,7 @@ public class DBPage implements Pinnable {
         while (i < pageSize) {
             boolean same = true;
             for (int j = 0; j < 32; j++) {
-                if (oldPageData[i + j] != pageData[i + j]) {
+                if (oldPageData.get(i + j) != pageData.get(i + j)) {
                     same = false;
                     break;
                 }
@@ -1201,13 +1402,13 @@ public class DBPage implements Pinnable {
             if (!same) {
                 buf.append(String.format("0x%04X OLD: ", i));
                 for (int j = 0; j < 32; j++)
-                    buf.append(String.format(" %02X", oldPageData[i + j]));
+                    buf.append(String.format(" %02X", oldPageData.get(i + j)));
                 buf.append('\n');
 
                 buf.append(String.format("0x%04X NEW: ", i));
                 for (int j = 0; j < 32; j++) {
-                    if (pageData[i + j] != oldPageData[i + j])
-                        buf.append(String.format(" %02X", pageData[i + j]));
+                    if (pageData.get(i + j) != oldPageData.get(i + j))
+                        buf.append(String.format(" %02X", pageData.get(i + j)));
                     else
                         buf.append(" ..");
                 }
@@ -0,0 +1,430 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+
+
+/**
+ * This class sorts tuples that may not fit in memory, for the
+ * {@link edu.caltech.nanodb.plans.SortNode sort plan-node} and the
+ * {@link edu.caltech.nanodb.storage.btreefile.BTreeBulkLoader B<sup>+</sup>
+ * tree bulk loader}.
+ * <p>
+ * Tuples are collected in memory until their storage size exceeds the
+ * memory budget.  The collected tuples are then sorted and written to a
+ * temporary file as a sorted run.  Runs are written with
+ * {@link HeapTupleFile#appendTuple}, so that scanning a run file returns its
+ * tuples in the order they were written.  Once all tuples have been added,
+ * the runs and the tuples still in memory are merged with a loser tree.  If
+ * there are more runs than can be merged at once, intermediate merge passes
+ * combine them into longer runs first.
+ * <p>
+ * Typical usage is to call {@link #addTuple} for each tuple, then
+ * {@link #finish}, then {@link #getNextTuple} until it returns
+ * {@code null}, and finally {@link #close} to delete any run files that are
+ * left over.
+ */
+public class ExternalSorter {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ExternalSorter.class);
+
+
+    /**
+     * Returns the number of runs that can be merged in one pass with the
+     * specified memory budget.  Each run being merged keeps one page of its
+     * file in memory.
+     *
+     * @param memoryBudget the sort memory budget in bytes
+     *
+     * @return the merge fan-in, which is always at least 2
+     */
+    public static int getMergeFanIn(long memoryBudget) {
+        long pages = memoryBudget / StorageManager.getCurrentPageSize();
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE, pages - 1));
+    }
+
+
+    /**
+     * The storage manager used to create the run files, or {@code null} if
+     * the sort must be performed entirely in memory.
+     */
+    private StorageManager storageManager;
+
+
+    /** The schema of the tuples being sorted. */
+    private Schema schema;
+
+
+    /** The ordering that the tuples are sorted into. */
+    private Comparator<Tuple> comparator;
+
+
+    /** The number of bytes of tuple data kept in memory before spilling. */
+    private long memoryBudget;
+
+
+    /** The tuples that have been added but not yet written to a run. */
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+
+
+    /** The number of bytes of tuple data in {@link #buffer}. */
+    private long bufferSize;
+
+
+    /** The run files that haven't been deleted yet. */
+    private ArrayList<HeapTupleFile> runFiles = new ArrayList<HeapTupleFile>();
+
+
+    /**
+     * The loser tree that merges the sorted runs, or {@code null} if
+     * {@link #finish} hasn't been called yet.
+     */
+    private LoserTree merger;
+
+
+    /**
+     * Creates a sorter for tuples with the specified schema.
+     *
+     * @param storageManager the storage manager to create run files with, or
+     *        {@code null} if the sort must be done in memory
+     *
+     * @param schema the schema of the tuples to sort
+     *
+     * @param comparator the ordering to sort the tuples into
+     *
+     * @param memoryBudget the number of bytes of tuple data that may be kept
+     *        in memory before a sorted run is written
+     */
+    public ExternalSorter(StorageManager storageManager, Schema schema,
+                          Comparator<Tuple> comparator, long memoryBudget) {
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (comparator == null)
+            throw new IllegalArgumentException("comparator cannot be null");
+
+        this.storageManager = storageManager;
+        this.schema = schema;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+    }
+
+
+    /**
+     * Adds a tuple to be sorted.  The tuple is kept as it is until it is
+     * written to a run, so the caller must copy tuples that may change or be
+     * reused.
+     *
+     * @param tuple the tuple to add
+     *
+     * @throws IOException if a sorted run could not be written
+     */
+    public void addTuple(Tuple tuple) throws IOException {
+        if (merger != null)
+            throw new IllegalStateException("The sort is already finished");
+
+        buffer.add(tuple);
+
+        if (storageManager != null) {
+            bufferSize += PageTuple.getTupleStorageSize(schema, tuple);
+            if (bufferSize > memoryBudget)
+                writeRun();
+        }
+    }
+
+
+    /**
+     * Sorts the tuples that are still in memory, and prepares to merge them
+     * with the sorted runs.  No more tuples may be added afterwards.
+     *
+     * @throws IOException if an intermediate merge pass fails
+     */
+    public void finish() throws IOException {
+        if (merger != null)
+            throw new IllegalStateException("The sort is already finished");
+
+        Collections.sort(buffer, comparator);
+
+        if (!runFiles.isEmpty()) {
+            int fanIn = getMergeFanIn(memoryBudget);
+            logger.debug(String.format("Sort wrote %d runs; merging with a " +
+                "fan-in of %d", runFiles.size(), fanIn));
+
+            // The last run is still in memory, and doesn't need to be
+            // written out.  Merge the files down until they can all be
+            // merged at once, along with the in-memory run.
+            while (runFiles.size() + 1 > fanIn) {
+                ArrayList<RunSource> sources = new ArrayList<RunSource>();
+                for (HeapTupleFile runFile : runFiles.subList(0, fanIn))
+                    sources.add(new FileRunSource(runFile));
+
+                LoserTree tree = new LoserTree(sources);
+                HeapTupleFile mergedRun = createRunFile();
+                while (true) {
+                    Tuple tup = tree.next();
+                    if (tup == null)
+                        break;
+
+                    PageTuple.unpinPage(mergedRun.appendTuple(tup));
+                }
+            }
+        }
+
+        ArrayList<RunSource> sources = new ArrayList<RunSource>();
+        for (HeapTupleFile runFile : runFiles)
+            sources.add(new FileRunSource(runFile));
+        sources.add(new ListRunSource(buffer));
+
+        merger = new LoserTree(sources);
+    }
+
+
+    /**
+     * Returns the next tuple in sorted order, or {@code null} once all of the
+     * tuples have been returned.
+     *
+     * @return the next tuple in sorted order, or {@code null} if there are
+     *         no more tuples
+     *
+     * @throws IOException if a sorted run could not be read
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (merger == null)
+            throw new IllegalStateException("The sort isn't finished yet");
+
+        return merger.next();
+    }
+
+
+    /**
+     * Deletes any run files that are still around, for example if the sorted
+     * tuples were not all read, and releases the tuples held in memory.
+     *
+     * @throws IOException if a run file could not be deleted
+     */
+    public void close() throws IOException {
+        buffer = new ArrayList<Tuple>();
+        bufferSize = 0;
+        merger = null;
+
+        try {
+            for (HeapTupleFile runFile : runFiles)
+                storageManager.deleteTempTupleFile(runFile);
+        }
+        finally {
+            runFiles.clear();
+        }
+    }
+
+
+    /** Sorts the buffered tuples, and writes them to a new run file. */
+    private void writeRun() throws IOException {
+        Collections.sort(buffer, comparator);
+
+        HeapTupleFile runFile = createRunFile();
+        for (Tuple tup : buffer)
+            PageTuple.unpinPage(runFile.appendTuple(tup));
+
+        logger.debug(String.format("Wrote sorted run %d of %d tuples",
+            runFiles.size(), buffer.size()));
+
+        buffer.clear();
+        bufferSize = 0;
+    }
+
+
+    /** Creates a new, empty run file at the end of {@link #runFiles}. */
+    private HeapTupleFile createRunFile() throws IOException {
+        HeapTupleFile runFile = storageManager.createTempTupleFile(schema);
+        runFiles.add(runFile);
+        PerformanceCounters.inc(PerformanceCounters.SORT_RUNS_SPILLED);
+
+        return runFile;
+    }
+
+
+    /** A sorted run that is being merged. */
+    private static abstract class RunSource {
+        /**
+         * The current tuple of the run, or {@code null} if the run is
+         * exhausted.
+         */
+        Tuple head;
+
+
+        /** Advances {@link #head} to the next tuple of the run. */
+        abstract void advance() throws IOException;
+    }
+
+
+    /**
+     * A sorted run that was written to a temporary file.  The file is
+     * deleted as soon as the run is exhausted.
+     */
+    private class FileRunSource extends RunSource {
+        private HeapTupleFile runFile;
+
+        /** The last tuple read from the file. */
+        private Tuple fileTuple;
+
+        /** True once the end of the run has been reached. */
+        private boolean done;
+
+
+        FileRunSource(HeapTupleFile runFile) {
+            this.runFile = runFile;
+        }
+
+
+        void advance() throws IOException {
+            if (done)
+                return;
+
+            Tuple prevTuple = fileTuple;
+            if (prevTuple == null) {
+                fileTuple = runFile.getFirstTuple();
+            }
+            else {
+                fileTuple = runFile.getNextTuple(prevTuple);
+                PageTuple.unpinPage(prevTuple);
+            }
+
+            if (fileTuple != null) {
+                head = new TupleLiteral(fileTuple);
+            }
+            else {
+                // The run is finished, so its file can be deleted now.
+                head = null;
+                done = true;
+                runFiles.remove(runFile);
+                storageManager.deleteTempTupleFile(runFile);
+            }
+        }
+    }
+
+
+    /** A sorted run that is still in memory. */
+    private static class ListRunSource extends RunSource {
+        private List<Tuple> tuples;
+
+        private int index;
+
+
+        ListRunSource(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+
+        void advance() {
+            head = (index < tuples.size() ? tuples.get(index++) : null);
+        }
+    }
+
+
+    /**
+     * A loser tree merges <em>k</em> sorted runs with about log<sub>2</sub>
+     * <em>k</em> comparisons per tuple.  The sources are the leaves of a
+     * complete binary tree; each internal node records the source that lost
+     * the comparison at that node, and the overall winner is kept separately.
+     * When the winner advances, only the path from its leaf to the root needs
+     * to be replayed.  Ties go to the earlier source, so the merge is stable.
+     */
+    private class LoserTree {
+        private RunSource[] sources;
+
+        /**
+         * Element 0 is the index of the winning source; elements 1 to
+         * <em>k</em> - 1 are the losers at each internal node.  Leaf
+         * <em>i</em> is node <em>k</em> + <em>i</em>.
+         */
+        private int[] tree;
+
+        /** True once the winner's tuple has been returned. */
+        private boolean advanceWinner;
+
+
+        LoserTree(List<RunSource> sources) throws IOException {
+            this.sources = sources.toArray(new RunSource[sources.size()]);
+            for (RunSource source : this.sources)
+                source.advance();
+
+            tree = new int[this.sources.length];
+            tree[0] = build(1);
+        }
+
+
+        /**
+         * Plays the matches in the subtree rooted at the specified node, and
+         * returns the winner of the subtree.
+         */
+        private int build(int node) {
+            int k = sources.length;
+            if (node >= k)
+                return node - k;
+
+            int left = build(2 * node);
+            int right = build(2 * node + 1);
+            if (beats(left, right)) {
+                tree[node] = right;
+                return left;
+            }
+            else {
+                tree[node] = left;
+                return right;
+            }
+        }
+
+
+        /** Returns true if source {@code a}'s tuple sorts before {@code b}'s. */
+        private boolean beats(int a, int b) {
+            Tuple tupA = sources[a].head;
+            Tuple tupB = sources[b].head;
+
+            // Exhausted sources lose to everything.
+            if (tupA == null)
+                return false;
+            if (tupB == null)
+                return true;
+
+            int cmp = comparator.compare(tupA, tupB);
+            return cmp < 0 || (cmp == 0 && a < b);
+        }
+
+
+        /**
+         * Returns the next tuple of the merged results, or {@code null} if
+         * all runs are exhausted.
+         */
+        Tuple next() throws IOException {
+            if (advanceWinner) {
+                int k = sources.length;
+                int winner = tree[0];
+                sources[winner].advance();
+
+                for (int node = (winner + k) / 2; node > 0; node /= 2) {
+                    if (beats(tree[node], winner)) {
+                        int loser = winner;
+                        winner = tree[node];
+                        tree[node] = loser;
+                    }
+                }
+                tree[0] = winner;
+            }
+
+            advanceWinner = true;
+            return sources[tree[0]].head;
+        }
+    }
+}
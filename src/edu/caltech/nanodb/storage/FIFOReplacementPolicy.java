@@ -0,0 +1,99 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * This class implements a first-in, first-out page replacement policy.  The
+ * victim is the unpinned page that was loaded into the page cache the
+ * longest time ago, regardless of how often it has been used since.  Since
+ * pages can be pinned and unpinned in any order, the unpinned pages are kept
+ * in a tree ordered by load sequence, so choosing a victim is logarithmic
+ * rather than constant-time.
+ */
+public class FIFOReplacementPolicy implements PageReplacementPolicy {
+
+    /** The name of this policy, as used in the page-cache policy property. */
+    public static final String NAME = "fifo";
+
+
+    /** The sequence number to assign to the next page that is loaded. */
+    private long nextLoadSeq = 0;
+
+
+    /** Maps each page in the page cache to the sequence it was loaded at. */
+    private HashMap<DBPage, Long> loadSeqs = new HashMap<DBPage, Long>();
+
+
+    /** The unpinned pages in the page cache, ordered by load sequence. */
+    private TreeMap<Long, DBPage> evictablePages = new TreeMap<Long, DBPage>();
+
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        long loadSeq = nextLoadSeq++;
+        loadSeqs.put(dbPage, loadSeq);
+        if (!dbPage.isPinned())
+            evictablePages.put(loadSeq, dbPage);
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        // FIFO ignores accesses.
+    }
+
+
+    @Override
+    public void pagePinned(DBPage dbPage) {
+        Long loadSeq = loadSeqs.get(dbPage);
+        if (loadSeq != null)
+            evictablePages.remove(loadSeq);
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        Long loadSeq = loadSeqs.get(dbPage);
+        if (loadSeq != null)
+            evictablePages.put(loadSeq, dbPage);
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        Long loadSeq = loadSeqs.remove(dbPage);
+        if (loadSeq != null)
+            evictablePages.remove(loadSeq);
+    }
+
+
+    @Override
+    public DBPage chooseVictim() {
+        Map.Entry<Long, DBPage> entry = evictablePages.pollFirstEntry();
+        if (entry == null)
+            return null;
+
+        DBPage victim = entry.getValue();
+        loadSeqs.remove(victim);
+
+        return victim;
+    }
+
+
+    @Override
+    public void victimRestored(DBPage dbPage) {
+        // The page's original load sequence is gone, so it goes to the back
+        // of the queue as if it had just been loaded.
+        pageAdded(dbPage);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -131,6 +132,69 @@ public interface FileManager {
     void savePage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException;
 
+    /**
+     * Loads a page from the underlying data file into a byte-buffer, such as
+     * the off-heap frame of a {@link DBPage}.  This behaves exactly like
+     * {@link #loadPage(DBFile, int, byte[], boolean)}.  The data is stored
+     * starting at the buffer's position, but the buffer's position is not
+     * changed.
+     *
+     * @param dbFile the database file to load the page from
+     * @param pageNo the number of the page to load
+     * @param buffer the buffer to load the page's data into
+     * @param create a flag specifying whether the page should be created if it
+     *        doesn't already exist
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         the buffer's remaining space is not the same as the file's
+     *         page-size.
+     *
+     * @throws java.io.EOFException if the requested page is not in the data file,
+     *         and the <tt>create</tt> flag is set to <tt>false</tt>.
+     */
+    void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer,
+                  boolean create) throws IOException;
+
+    /**
+     * Loads a page from the underlying data file into a byte-buffer.  This
+     * method always reports an {@link java.io.EOFException} if the specified
+     * page is past the end of the database file.
+     * <p>
+     * (This method is simply a wrapper of
+     * {@link #loadPage(DBFile, int, ByteBuffer, boolean)}, passing
+     * {@code false} for {@code create}.)
+     *
+     * @param dbFile the database file to load the page from
+     * @param pageNo the number of the page to load
+     * @param buffer the buffer to load the page's data into
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         the buffer's remaining space is not the same as the file's
+     *         page-size.
+     *
+     * @throws java.io.EOFException if the requested page is not in the data file.
+     */
+    void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer)
+        throws IOException;
+
+    /**
+     * Saves a page from a byte-buffer to the DB file.  This behaves exactly
+     * like {@link #savePage(DBFile, int, byte[])}.  The data is taken from
+     * the buffer's position onward, but the buffer's position is not changed.
+     *
+     * @param dbFile the data file to write to
+     * @param pageNo the page number to write the buffer to
+     * @param buffer the data to write back to the page
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         the buffer's remaining data is not the same as the file's
+     *         page-size.
+     *
+     * @throws IOException if an error occurs while writing the page to disk
+     */
+    void savePage(DBFile dbFile, int pageNo, ByteBuffer buffer)
+        throws IOException;
+
     /**
      * This method ensures that all file-writes on the specified DB-file have
      * actually been synchronized to the disk.  Note that even after a call to
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import edu.caltech.nanodb.server.performance.PerformanceCounters;
 
@@ -24,10 +25,16 @@ import edu.caltech.nanodb.server.performance.PerformanceCounters;
  *         provide higher-level operations on the Storage Manager so that we
  *         can provide global buffering capabilities in one place.
  *
- * @design This class includes no multithreading support.  It maintains no
- *         internal state, so there isn't anything that needs to be guarded,
- *         but still, other classes using this class need to be careful to
- *         maintain proper multithreading.
+ * @design This class includes very little multithreading support.  It
+ *         maintains no internal state other than some performance-counter
+ *         bookkeeping, so there isn't much that needs to be guarded.  Each
+ *         page read or write holds the file's {@link RandomAccessFile} lock
+ *         between the seek and the data transfer, so that concurrent sessions
+ *         don't move the file pointer out from under each other.  Still, other
+ *         classes using this class need to be careful to maintain proper
+ *         multithreading.
+ *
+ * @see ChannelFileManager
  */
 public class FileManagerImpl implements FileManager {
 
@@ -213,26 +220,32 @@ public class FileManagerImpl implements FileManager {
     @Override
     public void loadPage(DBFile dbFile, int pageNo, byte[] buffer,
                          boolean create) throws IOException {
+        loadPage(dbFile, pageNo, ByteBuffer.wrap(buffer), create);
+    }
+
+
+    @Override
+    public void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer,
+                         boolean create) throws IOException {
 
         if (pageNo < 0) {
             throw new IllegalArgumentException("pageNo must be >= 0, got " +
                 pageNo);
         }
 
-        if (buffer.length != dbFile.getPageSize()) {
+        if (buffer.remaining() != dbFile.getPageSize()) {
             throw new IllegalArgumentException("Buffer has a different size" +
                 " from the specified DBFile page-size");
         }
 
         // Update our file-IO performance counters
-        updateFileIOPerfStats(dbFile, pageNo, /* read */ true, buffer.length);
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ true,
+            buffer.remaining());
 
         long pageStart = getPageStart(dbFile, pageNo);
 
-        RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
         try {
-            fileContents.readFully(buffer);
+            readPageData(dbFile, pageStart, buffer);
         }
         catch (EOFException e) {
             if (create) {
@@ -251,6 +264,7 @@ public class FileManagerImpl implements FileManager {
                 // This check is just for safety.  It would be highly irregular
                 // to get an EOF exception and then have the file actually be
                 // longer than we expect.  But, if it happens, we'll scream.
+                RandomAccessFile fileContents = dbFile.getFileContents();
                 long oldLength = fileContents.length();
                 if (oldLength < newLength) {
                     fileContents.setLength(newLength);
@@ -275,6 +289,13 @@ public class FileManagerImpl implements FileManager {
 
     @Override
     public void loadPage(DBFile dbFile, int pageNo, byte[] buffer)
+        throws IOException {
+        loadPage(dbFile, pageNo, ByteBuffer.wrap(buffer), false);
+    }
+
+
+    @Override
+    public void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer)
         throws IOException {
         loadPage(dbFile, pageNo, buffer, false);
     }
@@ -283,25 +304,111 @@ public class FileManagerImpl implements FileManager {
     @Override
     public void savePage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException {
+        savePage(dbFile, pageNo, ByteBuffer.wrap(buffer));
+    }
+
+
+    @Override
+    public void savePage(DBFile dbFile, int pageNo, ByteBuffer buffer)
+        throws IOException {
 
         if (pageNo < 0) {
             throw new IllegalArgumentException("pageNo must be >= 0, got " +
                 pageNo);
         }
 
-        if (buffer.length != dbFile.getPageSize()) {
+        if (buffer.remaining() != dbFile.getPageSize()) {
             throw new IllegalArgumentException("Buffer has a different size" +
                 " from the specified DBFile page-size");
         }
 
         // Update our file-IO performance counters
-        updateFileIOPerfStats(dbFile, pageNo, /* read */ false, buffer.length);
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ false,
+            buffer.remaining());
 
         long pageStart = getPageStart(dbFile, pageNo);
+        writePageData(dbFile, pageStart, buffer);
+    }
+
+
+    /**
+     * This helper performs the actual read of a page's data from the
+     * specified file.  The file's {@link RandomAccessFile} is locked between
+     * the seek and the read, so that concurrent sessions don't move the file
+     * pointer out from under each other.  Subclasses may override this
+     * method (along with {@link #writePageData}) to use a different kind of
+     * file IO.
+     * <p>
+     * A {@link RandomAccessFile} can only read into byte-arrays, so the data
+     * for buffers that aren't backed by an array, such as the off-heap frames
+     * of {@link DBPage}s, is read into a temporary array and then copied.
+     *
+     * @param dbFile the database file to read from
+     * @param pageStart the file-position of the start of the page
+     * @param buffer the buffer to fill with the page's data, from its
+     *        position to its limit; the buffer's position is not changed
+     *
+     * @throws EOFException if the page extends past the end of the file
+     * @throws IOException if any other IO error occurs
+     */
+    protected void readPageData(DBFile dbFile, long pageStart,
+                                ByteBuffer buffer) throws IOException {
+
+        byte[] array;
+        int offset;
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        }
+        else {
+            array = new byte[buffer.remaining()];
+            offset = 0;
+        }
 
         RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
-        fileContents.write(buffer);
+        synchronized (fileContents) {
+            fileContents.seek(pageStart);
+            fileContents.readFully(array, offset, buffer.remaining());
+        }
+
+        if (!buffer.hasArray())
+            buffer.duplicate().put(array);
+    }
+
+
+    /**
+     * This helper performs the actual write of a page's data to the
+     * specified file.  The file's {@link RandomAccessFile} is locked between
+     * the seek and the write, for the same reasons as in
+     * {@link #readPageData}.
+     *
+     * @param dbFile the database file to write to
+     * @param pageStart the file-position of the start of the page
+     * @param buffer the page's data, from its position to its limit; the
+     *        buffer's position is not changed
+     *
+     * @throws IOException if an IO error occurs
+     */
+    protected void writePageData(DBFile dbFile, long pageStart,
+                                 ByteBuffer buffer) throws IOException {
+
+        byte[] array;
+        int offset;
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        }
+        else {
+            array = new byte[buffer.remaining()];
+            offset = 0;
+            buffer.duplicate().get(array);
+        }
+
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        synchronized (fileContents) {
+            fileContents.seek(pageStart);
+            fileContents.write(array, offset, buffer.remaining());
+        }
     }
 
 
@@ -61,7 +61,8 @@ public class IndexedTableManager implements TableManager {
 
     // Inherit interface docs.
     @Override
-    public TableInfo createTable(String tableName, TableSchema schema,
+    public synchronized TableInfo createTable(String tableName,
+                                              TableSchema schema,
         CommandProperties properties) throws IOException {
 
         int pageSize = StorageManager.getCurrentPageSize();
@@ -126,7 +127,8 @@ public class IndexedTableManager implements TableManager {
 
     // Inherit interface docs.
     @Override
-    public TableInfo openTable(String tableName) throws IOException {
+    public synchronized TableInfo openTable(String tableName)
+        throws IOException {
         TableInfo tableInfo;
 
         // If the table is already open, just return the cached information.
@@ -160,12 +162,16 @@ public class IndexedTableManager implements TableManager {
 
     // Inherit interface docs.
     @Override
-    public void closeTable(TableInfo tableInfo) throws IOException {
+    public synchronized void closeTable(TableInfo tableInfo)
+        throws IOException {
         // Remove this table from the cache since it's about to be closed.
         openTables.remove(tableInfo.getTableName());
 
         DBFile dbFile = tableInfo.getTupleFile().getDBFile();
 
+        // Make sure no more pages of the table are read in the background.
+        storageManager.getReadAheadManager().cancelReadAhead(dbFile);
+
         // Flush all open pages for the table.
         storageManager.getBufferManager().flushDBFile(dbFile);
         storageManager.getFileManager().closeDBFile(dbFile);
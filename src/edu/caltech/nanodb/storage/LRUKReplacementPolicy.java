@@ -0,0 +1,203 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+
+/**
+ * This class implements the LRU-K page replacement policy described by
+ * O'Neil, O'Neil and Weikum, with <em>K</em> = {@link #K}.  Each page's last
+ * <em>K</em> references are recorded, and the victim is the unpinned page
+ * whose <em>K</em>-th most recent reference is the oldest.  Pages with fewer
+ * than <em>K</em> references are considered to have an infinite backward
+ * distance, and are evicted first in LRU order.  A page touched once by a
+ * scan therefore never displaces a page that has been referenced repeatedly.
+ * <p>
+ * Reference histories are retained for a while after a page is evicted, so
+ * that a page which is evicted and then quickly reloaded is not mistaken for
+ * a page that has only been referenced once.
+ * <p>
+ * Unlike the other policies, the ordering of candidates can't be maintained
+ * with a simple list, because a page's position depends on its
+ * <em>K</em>-th reference rather than its latest one.  The unpinned pages are
+ * kept in a tree, so choosing a victim takes logarithmic time.
+ */
+public class LRUKReplacementPolicy implements PageReplacementPolicy {
+
+    /** The name of this policy, as used in the page-cache policy property. */
+    public static final String NAME = "lru-k";
+
+
+    /** The number of references tracked for each page. */
+    public static final int K = 2;
+
+
+    /**
+     * The minimum number of evicted pages whose reference history is
+     * retained.
+     */
+    public static final int MIN_RETAINED_HISTORIES = 64;
+
+
+    /** The reference history of a page in the page cache. */
+    private static class Entry implements Comparable<Entry> {
+        DBPage dbPage;
+
+        /**
+         * The times of the page's last <em>K</em> references, most recent
+         * first.  A value of 0 indicates that there was no such reference.
+         */
+        long[] history;
+
+        Entry(DBPage dbPage, long[] history) {
+            this.dbPage = dbPage;
+            this.history = history;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            // Oldest K-th reference first; break ties by oldest reference.
+            // Since every reference has a unique time, this is a total order.
+            int result = Long.compare(history[K - 1], other.history[K - 1]);
+            if (result == 0)
+                result = Long.compare(history[0], other.history[0]);
+
+            return result;
+        }
+    }
+
+
+    /** The logical clock used to timestamp references. */
+    private long currentTime = 0;
+
+
+    /** The reference history of every page in the page cache. */
+    private HashMap<DBPage, Entry> residentPages = new HashMap<DBPage, Entry>();
+
+
+    /** The unpinned pages in the cache, ordered by eviction priority. */
+    private TreeSet<Entry> evictablePages = new TreeSet<Entry>();
+
+
+    /**
+     * The reference histories of pages that have been evicted, from least to
+     * most recently evicted.
+     */
+    private LinkedHashMap<BufferManager.DBPageID, long[]> retainedHistories =
+        new LinkedHashMap<BufferManager.DBPageID, long[]>();
+
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        long[] history =
+            retainedHistories.remove(new BufferManager.DBPageID(dbPage));
+        if (history == null)
+            history = new long[K];
+
+        Entry entry = new Entry(dbPage, history);
+        recordReference(entry);
+
+        residentPages.put(dbPage, entry);
+        if (!dbPage.isPinned())
+            evictablePages.add(entry);
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        Entry entry = residentPages.get(dbPage);
+        if (entry == null)
+            return;
+
+        // The entry's position in the tree depends on its history, so it
+        // must be removed before the history is updated.
+        boolean evictable = evictablePages.remove(entry);
+        recordReference(entry);
+        if (evictable)
+            evictablePages.add(entry);
+    }
+
+
+    @Override
+    public void pagePinned(DBPage dbPage) {
+        Entry entry = residentPages.get(dbPage);
+        if (entry != null)
+            evictablePages.remove(entry);
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        Entry entry = residentPages.get(dbPage);
+        if (entry != null)
+            evictablePages.add(entry);
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        Entry entry = residentPages.remove(dbPage);
+        if (entry != null)
+            evictablePages.remove(entry);
+    }
+
+
+    @Override
+    public void victimRestored(DBPage dbPage) {
+        // The victim's history was just retained, so take it back without
+        // recording a reference, which would make the page look like it had
+        // been used twice.
+        long[] history =
+            retainedHistories.remove(new BufferManager.DBPageID(dbPage));
+        if (history == null) {
+            pageAdded(dbPage);
+            return;
+        }
+
+        Entry entry = new Entry(dbPage, history);
+        residentPages.put(dbPage, entry);
+        if (!dbPage.isPinned())
+            evictablePages.add(entry);
+    }
+
+
+    @Override
+    public DBPage chooseVictim() {
+        Entry entry = evictablePages.pollFirst();
+        if (entry == null)
+            return null;
+
+        residentPages.remove(entry.dbPage);
+
+        // Remember the victim's history in case it is reloaded soon.
+        retainedHistories.put(new BufferManager.DBPageID(entry.dbPage),
+            entry.history);
+
+        int maxRetained =
+            Math.max(MIN_RETAINED_HISTORIES, residentPages.size());
+        Iterator<BufferManager.DBPageID> iter =
+            retainedHistories.keySet().iterator();
+        while (retainedHistories.size() > maxRetained) {
+            iter.next();
+            iter.remove();
+        }
+
+        return entry.dbPage;
+    }
+
+
+    private void recordReference(Entry entry) {
+        currentTime++;
+        System.arraycopy(entry.history, 0, entry.history, 1, K - 1);
+        entry.history[0] = currentTime;
+    }
+}
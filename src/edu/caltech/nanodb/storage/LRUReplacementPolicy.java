@@ -0,0 +1,94 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+
+/**
+ * This class implements a least-recently-used page replacement policy.  Only
+ * unpinned pages are kept in the eviction order, so a page's recency is
+ * updated when it is accessed while unpinned, or when its last pin is
+ * released.  The victim is always the head of the eviction order.
+ */
+public class LRUReplacementPolicy implements PageReplacementPolicy {
+
+    /** The name of this policy, as used in the page-cache policy property. */
+    public static final String NAME = "lru";
+
+
+    /** The set of all pages currently in the page cache. */
+    private HashSet<DBPage> residentPages = new HashSet<DBPage>();
+
+
+    /**
+     * The unpinned pages in the page cache, ordered from least recently used
+     * to most recently used.
+     */
+    private LinkedHashSet<DBPage> evictablePages = new LinkedHashSet<DBPage>();
+
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        residentPages.add(dbPage);
+        if (!dbPage.isPinned())
+            evictablePages.add(dbPage);
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        // Move the page to the most-recently-used end of the order.
+        if (evictablePages.remove(dbPage))
+            evictablePages.add(dbPage);
+    }
+
+
+    @Override
+    public void pagePinned(DBPage dbPage) {
+        evictablePages.remove(dbPage);
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        if (residentPages.contains(dbPage))
+            evictablePages.add(dbPage);
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        residentPages.remove(dbPage);
+        evictablePages.remove(dbPage);
+    }
+
+
+    @Override
+    public DBPage chooseVictim() {
+        Iterator<DBPage> iter = evictablePages.iterator();
+        if (!iter.hasNext())
+            return null;
+
+        DBPage victim = iter.next();
+        iter.remove();
+        residentPages.remove(victim);
+
+        return victim;
+    }
+
+
+    @Override
+    public void victimRestored(DBPage dbPage) {
+        // The victim was the least recently used page, and it has usually
+        // just been pinned again, so it goes to the most-recently-used end.
+        pageAdded(dbPage);
+    }
+}
@@ -0,0 +1,206 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * This class manages the off-heap memory that holds the data of cached
+ * {@link DBPage}s.  Memory is allocated from the operating system in large
+ * direct {@link ByteBuffer} chunks, and each chunk is carved into page-size
+ * frames.  Frames are handed out from a free list, and returned to it when
+ * the page using them goes away, so that page data never lives on the Java
+ * heap and doesn't add to garbage-collection work.
+ * <p>
+ * Since database files may use different page sizes, the arena keeps a
+ * separate free list for each page size.  Chunks are only allocated when a
+ * free list runs dry, so the arena grows on demand; the
+ * {@link BufferManager} is responsible for capping the total number of bytes
+ * in use.  Freed frames are only reused for later pages of the same size,
+ * and the arena's memory is never returned to the operating system, so a
+ * workload that switches between page sizes leaves the memory of the frames
+ * it no longer uses sitting idle in the arena until the JVM exits.
+ * <p>
+ * The arena keeps track of the frames it has handed out, so that releasing
+ * a frame twice, or releasing a buffer the arena didn't allocate, is caught
+ * instead of corrupting the free lists.
+ * <p>
+ * Every frame has a position of 0 and a limit equal to the page size.  Users
+ * of a frame must only use absolute get/put operations on it, or work on a
+ * {@link ByteBuffer#duplicate duplicate} of it, so that the frame's position
+ * never changes.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @design Direct buffers are allocated outside of the Java heap, so a large
+ *         page cache may require raising the JVM's
+ *         <tt>-XX:MaxDirectMemorySize</tt> limit, which defaults to the
+ *         maximum heap size.
+ */
+class PageFrameArena {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(PageFrameArena.class);
+
+
+    /**
+     * The size of the chunks that are allocated from the operating system.
+     * Pages larger than this get a chunk of their own.
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+
+    /** An array of zeros, used to clear frames before they are reused. */
+    private static final byte[] ZEROS = new byte[DBFile.MAX_PAGESIZE];
+
+
+    /** The free frames of the arena, keyed on their size. */
+    private ConcurrentHashMap<Integer, ConcurrentLinkedDeque<ByteBuffer>>
+        freeFrames =
+        new ConcurrentHashMap<Integer, ConcurrentLinkedDeque<ByteBuffer>>();
+
+
+    /**
+     * The frames that are currently allocated.  Byte-buffers compare by
+     * their contents, so frames must be tracked by identity.
+     */
+    private Map<ByteBuffer, Boolean> framesInUse =
+        Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+
+    /** The total number of bytes allocated from the operating system. */
+    private long bytesAllocated = 0;
+
+
+    private ConcurrentLinkedDeque<ByteBuffer> getFreeList(int size) {
+        ConcurrentLinkedDeque<ByteBuffer> freeList = freeFrames.get(size);
+        if (freeList == null) {
+            freeList = new ConcurrentLinkedDeque<ByteBuffer>();
+            ConcurrentLinkedDeque<ByteBuffer> existing =
+                freeFrames.putIfAbsent(size, freeList);
+            if (existing != null)
+                freeList = existing;
+        }
+        return freeList;
+    }
+
+
+    /**
+     * Allocates a frame of the specified size from the arena.  The frame's
+     * contents are all zeros.
+     *
+     * @param size the size of the frame to allocate
+     *
+     * @return a direct byte-buffer of the requested size
+     *
+     * @throws IllegalArgumentException if the size is not positive, or is
+     *         larger than the maximum page size
+     */
+    public ByteBuffer allocFrame(int size) {
+        if (size <= 0 || size > DBFile.MAX_PAGESIZE) {
+            throw new IllegalArgumentException(
+                "Invalid frame size " + size + " requested");
+        }
+
+        ConcurrentLinkedDeque<ByteBuffer> freeList = getFreeList(size);
+
+        // The free lists are used as stacks, so that the most recently freed
+        // frame (which is the most likely to still be in the CPU caches) is
+        // reused first.
+        ByteBuffer frame = freeList.pollFirst();
+        if (frame == null) {
+            synchronized (this) {
+                // Another thread may have refilled the free list while we
+                // were waiting.
+                frame = freeList.pollFirst();
+                if (frame == null)
+                    frame = allocChunk(size, freeList);
+            }
+        }
+
+        // Frames are recycled, so make sure the new page starts out empty,
+        // just like a newly-allocated byte-array would.
+        ByteBuffer dup = frame.duplicate();
+        dup.put(ZEROS, 0, size);
+
+        framesInUse.put(frame, Boolean.TRUE);
+        return frame;
+    }
+
+
+    /**
+     * Allocates a new chunk of memory and carves it into frames of the
+     * specified size.  All frames but one are added to the free list, and
+     * the remaining frame is returned.  The caller must hold the arena's
+     * monitor.
+     */
+    private ByteBuffer allocChunk(int size,
+                                  ConcurrentLinkedDeque<ByteBuffer> freeList) {
+        int numFrames = Math.max(1, CHUNK_SIZE / size);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(numFrames * size);
+        bytesAllocated += chunk.capacity();
+
+        logger.debug(String.format("Allocated a chunk of %d frames of %d " +
+            "bytes; arena is now %d bytes.", numFrames, size, bytesAllocated));
+
+        ByteBuffer first = null;
+        for (int i = 0; i < numFrames; i++) {
+            chunk.limit((i + 1) * size);
+            chunk.position(i * size);
+            ByteBuffer frame = chunk.slice();
+
+            if (first == null)
+                first = frame;
+            else
+                freeList.add(frame);
+        }
+
+        return first;
+    }
+
+
+    /**
+     * Returns a frame to the arena so that it can be reused.  The frame must
+     * not be used after it has been released.
+     *
+     * @param frame the frame to release
+     *
+     * @throws IllegalArgumentException if the buffer wasn't allocated by
+     *         this arena, or has already been released
+     */
+    public void releaseFrame(ByteBuffer frame) {
+        if (framesInUse.remove(frame) == null) {
+            throw new IllegalArgumentException("Received a buffer that " +
+                "wasn't allocated by the page-frame arena, or that was " +
+                "already released");
+        }
+
+        if (frame.position() != 0 || frame.limit() != frame.capacity()) {
+            // Put the frame back to how it was handed out, so that the next
+            // page to use it sees the whole frame.
+            logger.warn("A page frame's position or limit was changed; " +
+                "resetting it.");
+            frame.clear();
+        }
+
+        getFreeList(frame.capacity()).addFirst(frame);
+    }
+
+
+    /**
+     * Returns the total number of bytes that the arena has allocated from the
+     * operating system.
+     *
+     * @return the total number of bytes allocated by the arena
+     */
+    public synchronized long getBytesAllocated() {
+        return bytesAllocated;
+    }
+}
@@ -257,6 +257,7 @@ public class PageReader {
 
         case INTEGER:
         case FLOAT:
+        case FILE_POINTER:
             position += 4;
             break;
 
@@ -0,0 +1,107 @@
+package edu.caltech.nanodb.storage;
+
+
+/**
+ * This interface specifies the operations that a page-replacement policy must
+ * provide to the {@link BufferManager}.  The Buffer Manager reports every
+ * page that enters or leaves the page cache, every cache hit, every time a
+ * session pins a page through the cache, and every time a page's pin-count
+ * drops to zero.  When the Buffer Manager needs space, it asks the policy for
+ * a victim to evict.
+ * <p>
+ * Policies are expected to keep pinned pages out of their eviction
+ * candidates, so that choosing a victim doesn't involve walking past pages
+ * that are currently in use.
+ * <p>
+ * The Buffer Manager splits its page cache into partitions, and gives each
+ * partition its own policy instance.  All calls to a policy are made while
+ * holding the latch of the partition it belongs to, so policies do not need
+ * to be thread-safe themselves.
+ *
+ * @see BufferManager#PROP_PAGECACHE_POLICY
+ */
+public interface PageReplacementPolicy {
+
+    /**
+     * Returns the name of this replacement policy, as it would be specified
+     * in the {@link BufferManager#PROP_PAGECACHE_POLICY} property.
+     *
+     * @return the name of this replacement policy
+     */
+    String getName();
+
+
+    /**
+     * Records that a page was just loaded into the page cache.  This counts
+     * as a reference to the page.
+     *
+     * @param dbPage the page that was added to the cache
+     */
+    void pageAdded(DBPage dbPage);
+
+
+    /**
+     * Records that a page already in the page cache was requested again,
+     * i.e. that a cache-hit occurred on the page.
+     *
+     * @param dbPage the page that was accessed
+     */
+    void pageAccessed(DBPage dbPage);
+
+
+    /**
+     * Records that a cached page has been pinned by a session, so that the
+     * page may not be evicted until it is unpinned.  This may be called on a
+     * page that was already pinned.
+     *
+     * @param dbPage the page that was pinned
+     */
+    void pagePinned(DBPage dbPage);
+
+
+    /**
+     * Records that a cached page's pin-count has dropped to zero, so that the
+     * page may now be chosen for eviction.  Since unpinning doesn't latch the
+     * partition, another session may pin the page again before this is
+     * reported; the Buffer Manager checks the pin-count of every victim, and
+     * reports such a page to {@link #victimRestored} so that it is tracked
+     * again.
+     *
+     * @param dbPage the page that was unpinned
+     */
+    void pageUnpinned(DBPage dbPage);
+
+
+    /**
+     * Records that a page was removed from the page cache by some means other
+     * than {@link #chooseVictim}, e.g. because its file is being flushed.
+     * This method is called before the page is invalidated.
+     *
+     * @param dbPage the page that is being removed from the cache
+     */
+    void pageRemoved(DBPage dbPage);
+
+
+    /**
+     * Chooses an unpinned page to evict from the page cache, and stops
+     * tracking it.  The caller is responsible for actually removing the page
+     * from the cache and writing it out if it is dirty.
+     *
+     * @return the page to evict, or {@code null} if every page currently
+     *         tracked by the policy is pinned
+     */
+    DBPage chooseVictim();
+
+
+    /**
+     * Records that a page returned by {@link #chooseVictim} was not evicted
+     * after all, e.g. because it was pinned again or couldn't be written
+     * out, so the policy must track it again.  This is not a reference to
+     * the page, so the policy should put the page back where it was tracked
+     * before it was chosen, rather than treating it as a newly-loaded page.
+     *
+     * @param dbPage the page that was chosen as a victim but is still in the
+     *        page cache
+     */
+    void victimRestored(DBPage dbPage);
+}
@@ -171,6 +171,21 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Releases the pin that a page tuple took on its data page when it was
+     * created.  {@link #unpin} doesn't currently release the tuple's page, so
+     * code that reads or writes many tuples in a file uses this method to
+     * keep the file's pages evictable.  Tuples that aren't page tuples are
+     * ignored.
+     *
+     * @param tuple the tuple whose page should be unpinned
+     */
+    public static void unpinPage(Tuple tuple) {
+        if (tuple instanceof PageTuple)
+            ((PageTuple) tuple).getDBPage().unpin();
+    }
+
+
     @Override
     public int getPinCount() {
         return pinCount;
@@ -464,6 +479,91 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Returns the value of an <tt>INTEGER</tt>, <tt>SMALLINT</tt> or
+     * <tt>TINYINT</tt> column as an <tt>int</tt>, without boxing it.  The
+     * column must not be <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column to retrieve the value for
+     *
+     * @return the value of the column
+     */
+    public int getIntColumnValue(int colIndex) {
+        checkColumnIndex(colIndex);
+
+        int offset = valueOffsets[colIndex];
+        if (offset == NULL_OFFSET)
+            throw new IllegalStateException("Column " + colIndex + " is NULL");
+
+        SQLDataType baseType = schema.getColumnInfo(colIndex).getType().getBaseType();
+        switch (baseType) {
+
+        case INTEGER:
+            return dbPage.readInt(offset);
+
+        case SMALLINT:
+            return dbPage.readShort(offset);
+
+        case TINYINT:
+            return dbPage.readByte(offset);
+
+        default:
+            throw new IllegalArgumentException(
+                "Column " + colIndex + " is not an integer column:  " + baseType);
+        }
+    }
+
+
+    /**
+     * Returns the value of a <tt>BIGINT</tt> column as a <tt>long</tt>,
+     * without boxing it.  The column must not be <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column to retrieve the value for
+     *
+     * @return the value of the column
+     */
+    public long getLongColumnValue(int colIndex) {
+        checkColumnIndex(colIndex);
+
+        int offset = valueOffsets[colIndex];
+        if (offset == NULL_OFFSET)
+            throw new IllegalStateException("Column " + colIndex + " is NULL");
+
+        SQLDataType baseType = schema.getColumnInfo(colIndex).getType().getBaseType();
+        if (baseType != SQLDataType.BIGINT) {
+            throw new IllegalArgumentException(
+                "Column " + colIndex + " is not a BIGINT column:  " + baseType);
+        }
+
+        return dbPage.readLong(offset);
+    }
+
+
+    /**
+     * Returns the value of a <tt>DOUBLE</tt> column as a <tt>double</tt>,
+     * without boxing it.  The column must not be <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column to retrieve the value for
+     *
+     * @return the value of the column
+     */
+    public double getDoubleColumnValue(int colIndex) {
+        checkColumnIndex(colIndex);
+
+        int offset = valueOffsets[colIndex];
+        if (offset == NULL_OFFSET)
+            throw new IllegalStateException("Column " + colIndex + " is NULL");
+
+        SQLDataType baseType = schema.getColumnInfo(colIndex).getType().getBaseType();
+        if (baseType != SQLDataType.DOUBLE) {
+            throw new IllegalArgumentException(
+                "Column " + colIndex + " is not a DOUBLE column:  " + baseType);
+        }
+
+        return dbPage.readDouble(offset);
+    }
+
+
     /**
      * Sets the column to the specified value, or <tt>NULL</tt> if the value is
      * the Java <tt>null</tt> value.
@@ -0,0 +1,437 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TypeCastException;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.server.properties.PropertyHandler;
+import edu.caltech.nanodb.server.properties.PropertyRegistry;
+import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
+import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+
+
+/**
+ * The read-ahead manager detects sequential scans of heap files, and loads
+ * the pages that the scan will need next into the {@link BufferManager} in
+ * the background, so that the scan finds them already cached instead of
+ * waiting for a disk IO on every page.
+ * <p>
+ * Like the large-seek accounting in {@link FileManagerImpl}, detection is
+ * based on the page that was accessed last, but it is tracked separately for
+ * each file so that sessions scanning different tables don't disturb each
+ * other.  Once a file has been read sequentially for
+ * {@link #SEQUENTIAL_THRESHOLD} pages in a row, the next
+ * <tt>nanodb.readahead.pages</tt> pages are requested from a small pool of
+ * background threads.  More pages are requested when the scan has consumed
+ * half of the pages read ahead of it, so that the scan never catches up with
+ * the read-ahead as long as the disk can keep up.
+ * <p>
+ * Pages loaded in the background are flagged, so that the Storage Manager
+ * can report how many of them were actually used through the
+ * {@link PerformanceCounters#STORAGE_READAHEAD_HITS} counter.  Pages that
+ * are evicted before they are used are reported through the
+ * {@link PerformanceCounters#STORAGE_READAHEAD_UNUSED} counter.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @design Read-ahead is only performed for heap files, since the pages of
+ *         the other file types aren't scanned in page-number order.
+ */
+public class ReadAheadManager {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ReadAheadManager.class);
+
+
+    /**
+     * The system property that can be used to specify how many pages are
+     * read ahead of a sequential scan.  A value of 0 disables read-ahead.
+     */
+    public static final String PROP_READAHEAD_PAGES = "nanodb.readahead.pages";
+
+
+    /** The default number of pages to read ahead is 8. */
+    public static final int DEFAULT_READAHEAD_PAGES = 8;
+
+
+    /**
+     * The number of consecutive pages that must be read from a file before
+     * the access is considered to be a sequential scan.
+     */
+    public static final int SEQUENTIAL_THRESHOLD = 2;
+
+
+    /** The number of background threads that load pages. */
+    private static final int NUM_THREADS = 2;
+
+
+    private class ReadAheadPropertyHandler implements PropertyHandler {
+
+        @Override
+        public Object getPropertyValue(String propertyName)
+            throws UnrecognizedPropertyException {
+
+            if (PROP_READAHEAD_PAGES.equals(propertyName)) {
+                return readAheadPages;
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+
+        @Override
+        public void setPropertyValue(String propertyName, Object value)
+            throws UnrecognizedPropertyException, ReadOnlyPropertyException,
+                   TypeCastException {
+
+            if (PROP_READAHEAD_PAGES.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                    " is read-only");
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+    }
+
+
+    /**
+     * This class records the access pattern of a single file, and how far
+     * ahead of the current position pages have been requested.
+     */
+    private static class FileReadAhead {
+        /** The file whose accesses are being tracked. */
+        DBFile dbFile;
+
+        /** The page number of the page that was accessed most recently. */
+        int lastPageNo = -1;
+
+        /** The number of consecutive pages that have been read in order. */
+        int runLength = 0;
+
+        /** The highest page number that has been requested for read-ahead. */
+        int readAheadPageNo = -1;
+
+        /**
+         * This lock is held while a page of the file is loaded in the
+         * background, so that cancelling read-ahead on the file can wait for
+         * any load that is currently in progress.
+         */
+        final Object loadLock = new Object();
+
+        /**
+         * Set when the file is about to be closed; no more pages may be
+         * loaded in the background after this flag is set.  Only accessed
+         * while holding {@link #loadLock}.
+         */
+        boolean cancelled = false;
+
+        FileReadAhead(DBFile dbFile) {
+            this.dbFile = dbFile;
+        }
+    }
+
+
+    private FileManager fileManager;
+
+
+    private BufferManager bufferManager;
+
+
+    /** The number of pages to read ahead of a sequential scan. */
+    private int readAheadPages;
+
+
+    /** The access-tracking state of each file that is being read. */
+    private ConcurrentHashMap<DBFile, FileReadAhead> files =
+        new ConcurrentHashMap<DBFile, FileReadAhead>();
+
+
+    /**
+     * The background threads that load pages, or {@code null} if read-ahead
+     * is disabled.
+     */
+    private ExecutorService executor;
+
+
+    public ReadAheadManager(FileManager fileManager,
+                            BufferManager bufferManager) {
+        this.fileManager = fileManager;
+        this.bufferManager = bufferManager;
+
+        readAheadPages = configureReadAheadPages();
+        if (readAheadPages > 0) {
+            logger.info("Reading ahead " + readAheadPages +
+                " pages of sequential scans");
+
+            executor = Executors.newFixedThreadPool(NUM_THREADS,
+                new ThreadFactory() {
+                    private AtomicInteger threadNo = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        // The threads must not keep the server running.
+                        Thread t = new Thread(r, "ReadAhead-" +
+                            threadNo.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        else {
+            logger.info("Read-ahead is disabled.");
+        }
+
+        PropertyRegistry.getInstance().registerProperties(
+            new ReadAheadPropertyHandler(), PROP_READAHEAD_PAGES);
+    }
+
+
+    private int configureReadAheadPages() {
+        int pages = DEFAULT_READAHEAD_PAGES;
+
+        String str = System.getProperty(PROP_READAHEAD_PAGES);
+        if (str != null) {
+            try {
+                pages = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse read-ahead pages value \"%s\"; " +
+                    "using default value of %d", str, DEFAULT_READAHEAD_PAGES));
+            }
+
+            if (pages < 0) {
+                logger.error(String.format(
+                    "Read-ahead pages value %d is negative; " +
+                    "using default value of %d", pages, DEFAULT_READAHEAD_PAGES));
+
+                pages = DEFAULT_READAHEAD_PAGES;
+            }
+        }
+
+        return pages;
+    }
+
+
+    /**
+     * Returns the number of pages that are read ahead of a sequential scan,
+     * or 0 if read-ahead is disabled.
+     *
+     * @return the number of pages that are read ahead of a sequential scan
+     */
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
+
+    /**
+     * Records that a session has requested the specified page, and if the
+     * file is being read sequentially, requests the pages following it to be
+     * loaded in the background.  This method is called by the Storage
+     * Manager every time a page is loaded.
+     *
+     * @param dbFile the file the page was requested from
+     * @param pageNo the number of the page that was requested
+     */
+    public void pageRequested(DBFile dbFile, int pageNo) {
+        if (executor == null || dbFile.getType() != DBFileType.HEAP_TUPLE_FILE)
+            return;
+
+        FileReadAhead fra = files.get(dbFile);
+        if (fra == null) {
+            fra = new FileReadAhead(dbFile);
+            FileReadAhead existing = files.putIfAbsent(dbFile, fra);
+            if (existing != null)
+                fra = existing;
+        }
+
+        int startPageNo;
+        int endPageNo;
+        synchronized (fra) {
+            // Scans load the same page once per tuple, so repeated requests
+            // for the same page don't change anything.
+            if (pageNo == fra.lastPageNo)
+                return;
+
+            if (pageNo == fra.lastPageNo + 1) {
+                fra.runLength++;
+            }
+            else {
+                fra.runLength = 0;
+                fra.readAheadPageNo = pageNo;
+            }
+            fra.lastPageNo = pageNo;
+
+            if (fra.runLength < SEQUENTIAL_THRESHOLD)
+                return;
+
+            // Only request more pages once the scan has used up half of the
+            // pages that were read ahead of it, so that pages are requested
+            // in batches instead of one at a time.
+            if (fra.readAheadPageNo - pageNo > readAheadPages / 2)
+                return;
+
+            startPageNo = Math.max(fra.readAheadPageNo + 1, pageNo + 1);
+            endPageNo = pageNo + readAheadPages;
+            fra.readAheadPageNo = endPageNo;
+        }
+
+        final FileReadAhead task = fra;
+        final int start = startPageNo;
+        final int end = endPageNo;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    readAhead(task, start, end);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // The read-ahead manager is being shut down.
+        }
+    }
+
+
+    /**
+     * Loads the specified range of pages into the Buffer Manager, stopping
+     * early if the end of the file is reached, the read-ahead is cancelled,
+     * or the page cache has no free space.  This method runs on one of the
+     * background threads, so a failed read-ahead is logged and abandoned
+     * rather than being allowed to escape.
+     */
+    private void readAhead(FileReadAhead fra, int startPageNo, int endPageNo) {
+        DBFile dbFile = fra.dbFile;
+
+        for (int pageNo = startPageNo; pageNo <= endPageNo; pageNo++) {
+            synchronized (fra.loadLock) {
+                if (fra.cancelled)
+                    return;
+
+                try {
+                    if (pageNo >= dbFile.getNumPages())
+                        return;
+
+                    if (!loadPage(dbFile, pageNo)) {
+                        logger.debug(String.format("Page cache is full; " +
+                            "stopping read-ahead at page [%s,%d]", dbFile,
+                            pageNo));
+                        return;
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    logger.warn(String.format("Couldn't read ahead page " +
+                        "[%s,%d]", dbFile, pageNo), e);
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Loads the specified page into the Buffer Manager, unless it is already
+     * cached.  The page is left unpinned, so it can be evicted again if the
+     * scan doesn't get to it in time.
+     * <p>
+     * No pages are ever evicted to make room for a prefetched page:  the
+     * pages in the cache may still be needed by the sessions using them,
+     * and evicting a dirty page would mean forcing the write-ahead log from
+     * a background thread.
+     *
+     * @return true if the page is now cached, or false if the page cache
+     *         had no free space for it
+     */
+    private boolean loadPage(DBFile dbFile, int pageNo) throws IOException {
+        if (bufferManager.containsPage(dbFile, pageNo))
+            return true;
+
+        ByteBuffer pageData =
+            bufferManager.allocBuffer(dbFile.getPageSize(), false);
+        if (pageData == null)
+            return false;
+
+        DBPage dbPage = new DBPage(bufferManager, dbFile, pageNo, pageData);
+        DBPage cachedPage;
+        try {
+            fileManager.loadPage(dbFile, pageNo, pageData);
+            cachedPage = bufferManager.addPage(dbPage, false);
+        }
+        catch (IOException | RuntimeException e) {
+            dbPage.invalidate();
+            throw e;
+        }
+
+        // If a session loaded the page while we were reading it, the read
+        // ahead was too late to help.
+        if (cachedPage == dbPage) {
+            dbPage.setPrefetched(true);
+            PerformanceCounters.inc(
+                PerformanceCounters.STORAGE_READAHEAD_PAGES);
+        }
+
+        cachedPage.unpin();
+        return true;
+    }
+
+
+    /**
+     * Stops all read-ahead on the specified file, waiting for any page that
+     * is currently being loaded from the file to be finished.  This must be
+     * called before the file is closed, so that no pages of the file are
+     * added to the Buffer Manager after it has been flushed.
+     *
+     * @param dbFile the file to stop reading ahead
+     */
+    public void cancelReadAhead(DBFile dbFile) {
+        FileReadAhead fra = files.remove(dbFile);
+        if (fra != null) {
+            synchronized (fra.loadLock) {
+                fra.cancelled = true;
+            }
+        }
+    }
+
+
+    /**
+     * Stops all read-ahead, and waits for the background threads to finish.
+     * This is called by the Storage Manager during shutdown.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            // The background threads must not be interrupted, since
+            // interrupting a thread that is using a FileChannel closes the
+            // channel.  Cancel each file instead.
+            executor.shutdown();
+            for (DBFile dbFile : files.keySet())
+                cancelReadAhead(dbFile);
+
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+                    logger.warn("Read-ahead threads didn't stop in time.");
+            }
+            catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for read-ahead " +
+                    "threads to stop.");
+            }
+        }
+
+        PropertyRegistry.getInstance().unregisterProperties(
+            PROP_READAHEAD_PAGES);
+    }
+}
@@ -2,12 +2,18 @@ package edu.caltech.nanodb.storage;
 
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TypeConverter;
 import edu.caltech.nanodb.qeval.ColumnStats;
+import edu.caltech.nanodb.qeval.Histogram;
+import edu.caltech.nanodb.qeval.MostCommonValues;
 import edu.caltech.nanodb.qeval.TableStats;
 import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Schema;
 
 
@@ -47,6 +53,20 @@ public class StatsWriter {
     private static final int COLSTAT_NULLMASK_MAX_VALUE = 0x01;
 
 
+    /**
+     * A bit-mask used for storing column-stats, to record whether or not the
+     * column has a most-common-values list.
+     */
+    private static final int COLSTAT_HAS_MOST_COMMON_VALUES = 0x01;
+
+
+    /**
+     * A bit-mask used for storing column-stats, to record whether or not the
+     * column has a histogram.
+     */
+    private static final int COLSTAT_HAS_HISTOGRAM = 0x02;
+
+
     public void writeTableStats(Schema schema, TableStats stats, PageWriter pgWriter) {
         logger.debug("Writing table-statistics:  " + stats);
 
@@ -105,6 +125,9 @@ public class StatsWriter {
                 pgWriter.writeObject(colInfo.getType(), maxVal);
         }
 
+        writeDistributions(schema, colStats, pgWriter);
+        writeDependencies(colStats, pgWriter);
+
         if (logger.isDebugEnabled()) {
             int size = pgWriter.getPosition() - startPosition;
             logger.debug("Table statistics occupy " + size + " bytes.");
@@ -149,6 +172,220 @@ public class StatsWriter {
             colStats.add(c);
         }
 
+        readDistributions(pgReader, schema, colStats);
+        readDependencies(pgReader, colStats);
+
         return new TableStats(numDataPages, numTuples, avgTupleSize, colStats);
     }
+
+
+    /**
+     * Writes the most-common-values lists and histograms of the columns,
+     * after the rest of the column-stats.  Each column gets a byte of flags
+     * recording which of the two it has, followed by the values of each.
+     * The header page has limited space, so a column's distribution is only
+     * stored if it fits in the rest of the page; otherwise it is dropped.
+     */
+    private void writeDistributions(Schema schema,
+        ArrayList<ColumnStats> colStats, PageWriter pgWriter) {
+
+        int pageSize = pgWriter.getDBPage().getPageSize();
+
+        for (int i = 0; i < colStats.size(); i++) {
+            ColumnStats c = colStats.get(i);
+            ColumnType colType = schema.getColumnInfo(i).getType();
+
+            MostCommonValues mcv = c.getMostCommonValues();
+            Histogram histogram = c.getHistogram();
+
+            // Leave room for the flags of the remaining columns, and for the
+            // count of column dependencies.
+            int available = pageSize - pgWriter.getPosition() -
+                (colStats.size() - i) - 1;
+
+            int size = getDistributionSize(colType, mcv, histogram);
+            if (size < 0 || size > available) {
+                if (c.hasDistribution()) {
+                    logger.debug(String.format("Not enough space to store " +
+                        "the distribution of column %d", i));
+                }
+                pgWriter.writeByte(0);
+                continue;
+            }
+
+            int flags = 0;
+            if (mcv != null)
+                flags |= COLSTAT_HAS_MOST_COMMON_VALUES;
+            if (histogram != null)
+                flags |= COLSTAT_HAS_HISTOGRAM;
+
+            pgWriter.writeByte(flags);
+
+            if (mcv != null) {
+                pgWriter.writeByte(mcv.size());
+                for (int j = 0; j < mcv.size(); j++) {
+                    pgWriter.writeObject(colType, mcv.getValue(j));
+                    pgWriter.writeFloat(mcv.getFrequency(j));
+                }
+            }
+
+            if (histogram != null) {
+                pgWriter.writeFloat(histogram.getRowFraction());
+                List<Object> bounds = histogram.getBounds();
+                pgWriter.writeByte(bounds.size());
+                for (Object bound : bounds)
+                    pgWriter.writeObject(colType, bound);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes needed to store a column's distribution,
+     * not including its flags, or -1 if the column's values can't be
+     * stored.
+     */
+    private int getDistributionSize(ColumnType colType, MostCommonValues mcv,
+                                    Histogram histogram) {
+        int size = 0;
+
+        try {
+            if (mcv != null) {
+                if (mcv.size() > 255)
+                    return -1;
+
+                size += 1;
+                for (int j = 0; j < mcv.size(); j++)
+                    size += getValueSize(colType, mcv.getValue(j)) + 4;
+            }
+
+            if (histogram != null) {
+                List<Object> bounds = histogram.getBounds();
+                if (bounds.size() > 255)
+                    return -1;
+
+                size += 5;
+                for (Object bound : bounds)
+                    size += getValueSize(colType, bound);
+            }
+        }
+        catch (UnsupportedOperationException e) {
+            // This type of value can't be stored.
+            return -1;
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Writes the dependency degrees between pairs of columns, after the
+     * column distributions.  The count of dependencies is followed by the
+     * index of the determining column, the index of the dependent column, and
+     * the degree of each one.  Dependencies that don't fit in the rest of the
+     * page are dropped.
+     */
+    private void writeDependencies(ArrayList<ColumnStats> colStats,
+                                   PageWriter pgWriter) {
+
+        int available = pgWriter.getDBPage().getPageSize() -
+            pgWriter.getPosition() - 1;
+        int maxDependencies = Math.min(255, available / 6);
+
+        ArrayList<int[]> pairs = new ArrayList<int[]>();
+        for (int a = 0; a < colStats.size(); a++) {
+            for (int b = 0; b < colStats.size(); b++) {
+                if (a != b &&
+                    colStats.get(a).getDependencyDegree(colStats.get(b)) > 0) {
+                    pairs.add(new int[] {a, b});
+                }
+            }
+        }
+
+        if (pairs.size() > maxDependencies) {
+            logger.debug(String.format("Only storing %d of %d column " +
+                "dependencies", maxDependencies, pairs.size()));
+        }
+
+        int numDependencies = Math.min(pairs.size(), maxDependencies);
+        pgWriter.writeByte(numDependencies);
+        for (int i = 0; i < numDependencies; i++) {
+            int a = pairs.get(i)[0];
+            int b = pairs.get(i)[1];
+            pgWriter.writeByte(a);
+            pgWriter.writeByte(b);
+            pgWriter.writeFloat(
+                colStats.get(a).getDependencyDegree(colStats.get(b)));
+        }
+    }
+
+
+    /**
+     * Reads the dependency degrees between pairs of columns, as written by
+     * {@link #writeDependencies}.
+     */
+    private void readDependencies(PageReader pgReader,
+                                  ArrayList<ColumnStats> colStats) {
+
+        int numDependencies = pgReader.readUnsignedByte();
+        for (int i = 0; i < numDependencies; i++) {
+            int a = pgReader.readUnsignedByte();
+            int b = pgReader.readUnsignedByte();
+            float degree = pgReader.readFloat();
+
+            colStats.get(a).setDependencyDegree(colStats.get(b), degree);
+        }
+
+        logger.debug("Read " + numDependencies + " column dependencies");
+    }
+
+
+    /** Returns the number of bytes needed to store a column value. */
+    private int getValueSize(ColumnType colType, Object value) {
+        int dataLength = 0;
+        if (colType.getBaseType() == SQLDataType.VARCHAR)
+            dataLength = TypeConverter.getStringValue(value).length();
+
+        return PageTuple.getStorageSize(colType, dataLength);
+    }
+
+
+    /**
+     * Reads the most-common-values lists and histograms of the columns, as
+     * written by {@link #writeDistributions}.
+     */
+    private void readDistributions(PageReader pgReader, Schema schema,
+                                   ArrayList<ColumnStats> colStats) {
+
+        for (int i = 0; i < colStats.size(); i++) {
+            ColumnStats c = colStats.get(i);
+            ColumnType colType = schema.getColumnInfo(i).getType();
+
+            int flags = pgReader.readUnsignedByte();
+
+            if ((flags & COLSTAT_HAS_MOST_COMMON_VALUES) != 0) {
+                int numValues = pgReader.readUnsignedByte();
+                ArrayList<Object> values = new ArrayList<Object>();
+                ArrayList<Float> frequencies = new ArrayList<Float>();
+                for (int j = 0; j < numValues; j++) {
+                    values.add(pgReader.readObject(colType));
+                    frequencies.add(pgReader.readFloat());
+                }
+                c.setMostCommonValues(new MostCommonValues(values, frequencies));
+            }
+
+            if ((flags & COLSTAT_HAS_HISTOGRAM) != 0) {
+                float rowFraction = pgReader.readFloat();
+                int numBounds = pgReader.readUnsignedByte();
+                ArrayList<Object> bounds = new ArrayList<Object>();
+                for (int j = 0; j < numBounds; j++)
+                    bounds.add(pgReader.readObject(colType));
+                c.setHistogram(new Histogram(bounds, rowFraction));
+            }
+
+            logger.debug(String.format("Read column-stat distribution:  " +
+                "flags=0x%X, mcv=%s, histogram=%s", flags,
+                c.getMostCommonValues(), c.getHistogram()));
+        }
+    }
 }
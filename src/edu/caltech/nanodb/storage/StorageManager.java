@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -14,13 +15,19 @@ import edu.caltech.nanodb.indexes.BasicIndexManager;
 import edu.caltech.nanodb.indexes.IndexManager;
 
 import edu.caltech.nanodb.indexes.IndexUpdater;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.server.EventDispatcher;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.server.properties.PropertyHandler;
 import edu.caltech.nanodb.server.properties.PropertyRegistry;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
 import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
 
 import edu.caltech.nanodb.storage.btreefile.BTreeTupleFileManager;
+import edu.caltech.nanodb.storage.hashfile.LinearHashTupleFileManager;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 import edu.caltech.nanodb.storage.heapfile.HeapTupleFileManager;
 import edu.caltech.nanodb.transactions.TransactionManager;
 
@@ -61,6 +68,27 @@ public class StorageManager {
     public static final String PROP_PAGESIZE = "nanodb.pagesize";
 
 
+    /**
+     * The system property that can be used to specify how the file manager
+     * performs page IO.  The recognized values are:
+     * <ul>
+     *   <li><tt>raf</tt> - seek and read/write a {@link java.io.RandomAccessFile}
+     *       (the default)</li>
+     *   <li><tt>channel</tt> - positional {@link java.nio.channels.FileChannel}
+     *       reads and writes</li>
+     *   <li><tt>mmap</tt> - like <tt>channel</tt>, but table files are also
+     *       memory-mapped, and pages are read out of the mapping</li>
+     * </ul>
+     *
+     * @see ChannelFileManager
+     */
+    public static final String PROP_FILEIO = "nanodb.fileio";
+
+
+    /** The default file IO mode is "raf". */
+    public static final String DEFAULT_FILEIO = "raf";
+
+
     /**
      * The default base-directory path used by the storage manager.  This
      * value is set to "<tt>./datafiles</tt>" (or "<tt>.\datafiles</tt>"
@@ -70,6 +98,26 @@ public class StorageManager {
         "." + File.separator + "datafiles";
 
 
+    /**
+     * Temporary files, such as the partitions that a hash join spills to
+     * disk, are given names ending with this suffix.
+     */
+    public static final String TEMP_FILE_SUFFIX = ".tmp";
+
+
+    /**
+     * Returns true if the specified filename is the name of a temporary file
+     * created by {@link #createTempTupleFile}.
+     *
+     * @param filename the filename to check
+     *
+     * @return true if the filename is the name of a temporary file
+     */
+    public static boolean isTempFile(String filename) {
+        return filename.endsWith(TEMP_FILE_SUFFIX);
+    }
+
+
     /**
      * Returns the current page size to use for new database files.  If the
      * <tt>nanodb.pagesize</tt> system property is a valid page size then this
@@ -104,6 +152,50 @@ public class StorageManager {
     }
 
 
+    /**
+     * Creates a file manager for the specified base directory, that performs
+     * the specified kind of file IO.
+     *
+     * @param baseDir the base-directory that the file-manager should use
+     *
+     * @param fileIO one of the file IO modes described for
+     *        {@link #PROP_FILEIO}
+     *
+     * @return a file manager that performs the requested kind of IO
+     */
+    public static FileManager createFileManager(File baseDir, String fileIO) {
+        if ("channel".equals(fileIO))
+            return new ChannelFileManager(baseDir, false);
+        else if ("mmap".equals(fileIO))
+            return new ChannelFileManager(baseDir, true);
+        else
+            return new FileManagerImpl(baseDir);
+    }
+
+
+    /**
+     * Returns the file IO mode specified by the <tt>nanodb.fileio</tt>
+     * system property, or {@link #DEFAULT_FILEIO} if the property is unset
+     * or unrecognized.
+     *
+     * @return the file IO mode to use
+     */
+    public static String getCurrentFileIO() {
+        String fileIO = System.getProperty(PROP_FILEIO, DEFAULT_FILEIO);
+        fileIO = fileIO.trim().toLowerCase();
+
+        if (!"raf".equals(fileIO) && !"channel".equals(fileIO) &&
+            !"mmap".equals(fileIO)) {
+            logger.warn("Current value of " + PROP_FILEIO +
+                " property is not a valid file IO mode:  \"" + fileIO + "\"");
+
+            fileIO = DEFAULT_FILEIO;
+        }
+
+        return fileIO;
+    }
+
+
     private class StoragePropertyHandler implements PropertyHandler {
 
         @Override
@@ -116,6 +208,9 @@ public class StorageManager {
             else if (PROP_BASEDIR.equals(propertyName)) {
                 return getBaseDir().toString();
             }
+            else if (PROP_FILEIO.equals(propertyName)) {
+                return fileIO;
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                     propertyName);
@@ -135,6 +230,10 @@ public class StorageManager {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PROP_FILEIO.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                        " is read-only");
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                     propertyName);
@@ -170,6 +269,17 @@ public class StorageManager {
     private FileManager fileManager;
 
 
+    /**
+     * The read-ahead manager loads the next pages of sequential scans into
+     * the buffer manager in the background.
+     */
+    private ReadAheadManager readAheadManager;
+
+
+    /** The file IO mode that the file manager was created with. */
+    private String fileIO;
+
+
     /**
      * If transactions are enabled, this will be the singleton transaction
      * manager instance; otherwise, it will be {@code null}.
@@ -183,6 +293,24 @@ public class StorageManager {
     private IndexManager indexManager;
 
 
+    /**
+     * The event-handler that updates indexes when tables change, or
+     * {@code null} if indexes are disabled.
+     */
+    private IndexUpdater indexUpdater;
+
+
+    /**
+     * This lock is used to ensure that a data file is only opened once, even
+     * when several sessions open it at the same time.
+     */
+    private final Object openFileLock = new Object();
+
+
+    /** This counter is used to generate unique names for temporary files. */
+    private AtomicInteger nextTempFileID = new AtomicInteger();
+
+
     /**
      * This mapping is used to keep track of the tuple-file managers for all
      * the kinds of tuple-files we support.
@@ -229,12 +357,18 @@ public class StorageManager {
         logger.info("Using base directory " + baseDir);
         this.baseDir = baseDir;
 
+        deleteTempFiles();
+
         // Register properties that the Storage Manager exposes.
         PropertyRegistry.getInstance().registerProperties(
-            new StoragePropertyHandler(), PROP_PAGESIZE, PROP_BASEDIR);
+            new StoragePropertyHandler(), PROP_PAGESIZE, PROP_BASEDIR,
+            PROP_FILEIO);
 
-        fileManager = new FileManagerImpl(baseDir);
+        fileIO = getCurrentFileIO();
+        logger.info("Using file IO mode " + fileIO);
+        fileManager = createFileManager(baseDir, fileIO);
         bufferManager = new BufferManager(fileManager);
+        readAheadManager = new ReadAheadManager(fileManager, bufferManager);
 
         tupleFileManagers.put(DBFileType.HEAP_TUPLE_FILE,
             new HeapTupleFileManager(this));
@@ -242,6 +376,9 @@ public class StorageManager {
         tupleFileManagers.put(DBFileType.BTREE_TUPLE_FILE,
             new BTreeTupleFileManager(this));
 
+        tupleFileManagers.put(DBFileType.HASH_TUPLE_FILE,
+            new LinearHashTupleFileManager(this));
+
         if (TransactionManager.isEnabled()) {
             logger.info("Initializing transaction manager.");
             transactionManager = new TransactionManager(this, bufferManager);
@@ -264,7 +401,8 @@ public class StorageManager {
             // eventDispatcher.addRowEventListener(new DatabaseConstraintEnforcer(this));
 
             // Register the event-handler that updates indexes when tables change.
-            eventDispatcher.addRowEventListener(new IndexUpdater(this));
+            indexUpdater = new IndexUpdater(this);
+            eventDispatcher.addRowEventListener(indexUpdater);
         }
 
         initialized = true;
@@ -286,8 +424,17 @@ public class StorageManager {
                 "Storage manager is not initialized.");
         }
 
+        if (indexUpdater != null) {
+            EventDispatcher.getInstance().removeRowEventListener(indexUpdater);
+            indexUpdater = null;
+        }
+
         if (transactionManager != null)
-            transactionManager.forceWAL();
+            transactionManager.shutdown();
+
+        // Stop reading ahead before the files are flushed and closed, so
+        // that no pages are added to the buffer manager after this point.
+        readAheadManager.shutdown();
 
         List<DBFile> dbFiles = bufferManager.removeAll();
         for (DBFile dbFile : dbFiles)
@@ -295,7 +442,7 @@ public class StorageManager {
 
         // Register properties that the Storage Manager exposes.
         PropertyRegistry.getInstance().unregisterProperties(
-            PROP_PAGESIZE, PROP_BASEDIR);
+            PROP_PAGESIZE, PROP_BASEDIR, PROP_FILEIO);
 
         initialized = false;
     }
@@ -321,6 +468,11 @@ public class StorageManager {
     }
 
 
+    public ReadAheadManager getReadAheadManager() {
+        return readAheadManager;
+    }
+
+
     public TransactionManager getTransactionManager() {
         return transactionManager;
     }
@@ -346,8 +498,15 @@ public class StorageManager {
     public DBFile openDBFile(String filename) throws IOException {
         DBFile dbFile = bufferManager.getFile(filename);
         if (dbFile == null) {
-            dbFile = fileManager.openDBFile(filename);
-            bufferManager.addFile(dbFile);
+            // Several sessions may try to open the same file at once, so
+            // check again once we have the lock.
+            synchronized (openFileLock) {
+                dbFile = bufferManager.getFile(filename);
+                if (dbFile == null) {
+                    dbFile = fileManager.openDBFile(filename);
+                    bufferManager.addFile(dbFile);
+                }
+            }
         }
 
         return dbFile;
@@ -368,7 +527,90 @@ public class StorageManager {
     }
 
 
+    /**
+     * Creates a heap tuple file for holding intermediate results, such as the
+     * partitions that a hash join spills to disk.  Changes to temporary files
+     * are not recorded in the write-ahead log, since their contents never
+     * need to be recovered; the file should be removed with
+     * {@link #deleteTempTupleFile} once it is no longer needed, and any
+     * temporary files left over from a crash are deleted at startup.
+     *
+     * @param schema the schema of the tuples that will be stored in the file.
+     *        Only the column types are used; the columns are given generated
+     *        names in the file itself.
+     *
+     * @return the new temporary tuple file
+     *
+     * @throws IOException if the file cannot be created
+     */
+    public HeapTupleFile createTempTupleFile(Schema schema) throws IOException {
+        String filename = "temp" + nextTempFileID.getAndIncrement() +
+            TEMP_FILE_SUFFIX;
+
+        // Intermediate results may have unnamed or duplicate columns, so
+        // give the file's columns simple generated names.
+        TableSchema tempSchema = new TableSchema();
+        for (int i = 0; i < schema.numColumns(); i++) {
+            ColumnInfo colInfo = schema.getColumnInfo(i);
+            tempSchema.addColumnInfo(
+                new ColumnInfo("c" + i, filename, colInfo.getType()));
+        }
+
+        DBFile dbFile = createDBFile(filename, DBFileType.HEAP_TUPLE_FILE);
+        TupleFileManager tfManager =
+            getTupleFileManager(DBFileType.HEAP_TUPLE_FILE);
+
+        return (HeapTupleFile) tfManager.createTupleFile(dbFile, tempSchema);
+    }
+
+
+    /**
+     * Deletes a temporary tuple file created by {@link #createTempTupleFile}.
+     * The file's pages are dropped from the Buffer Manager without being
+     * written back to disk.
+     *
+     * @param tupleFile the temporary tuple file to delete
+     *
+     * @throws IllegalArgumentException if the tuple file is not a temporary
+     *         file
+     *
+     * @throws IOException if the file cannot be deleted
+     */
+    public void deleteTempTupleFile(TupleFile tupleFile) throws IOException {
+        DBFile dbFile = tupleFile.getDBFile();
+        if (!isTempFile(dbFile.getDataFile().getName())) {
+            throw new IllegalArgumentException(dbFile +
+                " is not a temporary file");
+        }
+
+        readAheadManager.cancelReadAhead(dbFile);
+        bufferManager.discardDBFile(dbFile);
+        fileManager.closeDBFile(dbFile);
+        fileManager.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Deletes any temporary files in the base directory, which can only be
+     * left over from a previous run that didn't shut down cleanly.
+     */
+    private void deleteTempFiles() throws IOException {
+        File[] files = baseDir.listFiles();
+        if (files == null)
+            return;
+
+        for (File f : files) {
+            if (isTempFile(f.getName())) {
+                logger.info("Deleting leftover temporary file " + f);
+                if (!f.delete())
+                    throw new IOException("Couldn't delete temporary file " + f);
+            }
+        }
+    }
+
+
     private void closeDBFile(DBFile dbFile) throws IOException {
+        readAheadManager.cancelReadAhead(dbFile);
         bufferManager.removeDBFile(dbFile);
         fileManager.closeDBFile(dbFile);
     }
@@ -436,15 +678,21 @@ public class StorageManager {
     public DBPage loadDBPage(DBFile dbFile, int pageNo, boolean create)
         throws IOException {
 
+        readAheadManager.pageRequested(dbFile, pageNo);
+
         // Try to retrieve from the buffer manager.
         DBPage dbPage = bufferManager.getPage(dbFile, pageNo);
-        if (dbPage == null) {
+        if (dbPage != null) {
+            // If the page was read ahead, record that it was actually used.
+            if (dbPage.clearPrefetched())
+                PerformanceCounters.inc(PerformanceCounters.STORAGE_READAHEAD_HITS);
+        }
+        else {
             // Buffer manager didn't have it.  Read the page directly from
             // the file, then add it to the buffer manager.
             dbPage = new DBPage(bufferManager, dbFile, pageNo);
             try {
                 fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(), create);
-                bufferManager.addPage(dbPage);
             }
             catch (IOException e) {
                 // Make sure to release the DBPage's buffer, or else we will
@@ -452,6 +700,14 @@ public class StorageManager {
                 dbPage.invalidate();
                 throw e;
             }
+
+            // Another session may have loaded the same page concurrently, in
+            // which case the Buffer Manager hands back that page instead.
+            dbPage = bufferManager.addPage(dbPage);
+
+            // The page we were loading may have lost to a read-ahead of the
+            // same page, which therefore didn't save us any IO.
+            dbPage.clearPrefetched();
         }
 
         return dbPage;
@@ -492,15 +748,43 @@ public class StorageManager {
      * been logged, the {@link DBPage#syncOldPageData} method is called on
      * the page, since the page's changes have been recorded in the WAL.
      *
+     * <p>
+     * Changes to temporary files are not logged.
+     *
      * @param dbPage the page to record changes for
      */
     public void logDBPageWrite(DBPage dbPage) throws IOException {
+        // Temporary files are never recovered, so they aren't logged.
+        if (isTempFile(dbPage.getDBFile().getDataFile().getName()))
+            return;
+
         // If the page is dirty, record its changes to the write-ahead log.
         if (transactionManager != null)
             transactionManager.recordPageUpdate(dbPage);
     }
 
 
+    /**
+     * This method records the entire contents of the specified page to the
+     * write-ahead log as a redo-only update, for pages that were written from
+     * scratch and don't need to be rolled back.  See
+     * {@link TransactionManager#recordPageImage} for details.
+     *
+     * <p>
+     * Changes to temporary files are not logged.
+     *
+     * @param dbPage the page to record the contents of
+     */
+    public void logDBPageImage(DBPage dbPage) throws IOException {
+        // Temporary files are never recovered, so they aren't logged.
+        if (isTempFile(dbPage.getDBFile().getDataFile().getName()))
+            return;
+
+        if (transactionManager != null)
+            transactionManager.recordPageImage(dbPage);
+    }
+
+
     /**
      * This method allows all data to be flushed from the Buffer Manager.  It
      * should not be used in practice, but it is useful to remove buffering to
@@ -0,0 +1,215 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+
+/**
+ * This class implements the "full" 2Q page replacement policy described by
+ * Johnson and Shasha.  Pages referenced for the first time go into the
+ * <tt>A1in</tt> FIFO queue.  When a page is evicted from <tt>A1in</tt>, its
+ * identity is remembered in the <tt>A1out</tt> ghost queue; if the page is
+ * loaded again while it is still remembered there, it goes into the
+ * <tt>Am</tt> LRU queue instead.  Victims are taken from <tt>A1in</tt> while
+ * it holds more than its share of the cache, and from <tt>Am</tt> otherwise.
+ * <p>
+ * A large scan therefore only cycles pages through <tt>A1in</tt>, and cannot
+ * flush the frequently-used pages held in <tt>Am</tt>.  Repeated hits on a
+ * page while it is in <tt>A1in</tt> are treated as correlated references and
+ * do not promote the page.
+ * <p>
+ * Rather than using fixed queue sizes, the <tt>A1in</tt> target and the
+ * <tt>A1out</tt> capacity are computed as fractions of the number of pages
+ * currently in the cache, since the Buffer Manager's capacity is specified
+ * in bytes rather than pages.
+ */
+public class TwoQueueReplacementPolicy implements PageReplacementPolicy {
+
+    /** The name of this policy, as used in the page-cache policy property. */
+    public static final String NAME = "2q";
+
+
+    /**
+     * The fraction of the cached pages that <tt>A1in</tt> may hold before
+     * victims are taken from it in preference to <tt>Am</tt>.
+     */
+    public static final float A1IN_FRACTION = 0.25f;
+
+
+    /**
+     * The number of page identities remembered in <tt>A1out</tt>, as a
+     * fraction of the number of cached pages.
+     */
+    public static final float A1OUT_FRACTION = 0.5f;
+
+
+    /** The two queues that a cached page can be in. */
+    private enum Queue {
+        A1IN,
+        AM
+    }
+
+
+    /** Records which queue every page in the page cache is in. */
+    private HashMap<DBPage, Queue> residentPages = new HashMap<DBPage, Queue>();
+
+
+    /** The number of cached pages in <tt>A1in</tt>, pinned or not. */
+    private int a1inSize = 0;
+
+
+    /** The unpinned pages in <tt>A1in</tt>, in FIFO order. */
+    private LinkedHashSet<DBPage> a1in = new LinkedHashSet<DBPage>();
+
+
+    /**
+     * The unpinned pages in <tt>Am</tt>, from least recently used to most
+     * recently used.
+     */
+    private LinkedHashSet<DBPage> am = new LinkedHashSet<DBPage>();
+
+
+    /** The identities of pages recently evicted from <tt>A1in</tt>. */
+    private LinkedHashSet<BufferManager.DBPageID> a1out =
+        new LinkedHashSet<BufferManager.DBPageID>();
+
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        Queue queue;
+        if (a1out.remove(new BufferManager.DBPageID(dbPage))) {
+            queue = Queue.AM;
+        }
+        else {
+            queue = Queue.A1IN;
+            a1inSize++;
+        }
+
+        residentPages.put(dbPage, queue);
+        if (!dbPage.isPinned())
+            getQueue(queue).add(dbPage);
+
+        // The Buffer Manager evicts pages before it adds the page it is
+        // making room for, so A1out is trimmed only after it is consulted.
+        // Otherwise the page being added might be forgotten just before we
+        // look for it.
+        int a1outMax = Math.max(1, (int) (residentPages.size() * A1OUT_FRACTION));
+        Iterator<BufferManager.DBPageID> iter = a1out.iterator();
+        while (a1out.size() > a1outMax) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        // Only pages in Am are reordered; hits in A1in are considered to be
+        // correlated with the reference that loaded the page.
+        if (residentPages.get(dbPage) == Queue.AM && am.remove(dbPage))
+            am.add(dbPage);
+    }
+
+
+    @Override
+    public void pagePinned(DBPage dbPage) {
+        Queue queue = residentPages.get(dbPage);
+        if (queue != null)
+            getQueue(queue).remove(dbPage);
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        Queue queue = residentPages.get(dbPage);
+        if (queue != null)
+            getQueue(queue).add(dbPage);
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        Queue queue = residentPages.remove(dbPage);
+        if (queue != null) {
+            getQueue(queue).remove(dbPage);
+            if (queue == Queue.A1IN)
+                a1inSize--;
+        }
+    }
+
+
+    @Override
+    public DBPage chooseVictim() {
+        int a1inTarget = Math.max(1, (int) (residentPages.size() * A1IN_FRACTION));
+
+        DBPage victim;
+        if (a1inSize > a1inTarget && !a1in.isEmpty())
+            victim = evictA1in();
+        else if (!am.isEmpty())
+            victim = removeHead(am);
+        else if (!a1in.isEmpty())
+            victim = evictA1in();
+        else
+            return null;
+
+        residentPages.remove(victim);
+        return victim;
+    }
+
+
+    @Override
+    public void victimRestored(DBPage dbPage) {
+        // A page that came from A1in was just remembered in A1out, and must
+        // not be promoted to Am for it, so that scans stay in A1in.  A page
+        // that came from Am was never in A1out.
+        Queue queue;
+        if (a1out.remove(new BufferManager.DBPageID(dbPage))) {
+            queue = Queue.A1IN;
+            a1inSize++;
+        }
+        else {
+            queue = Queue.AM;
+        }
+
+        residentPages.put(dbPage, queue);
+        if (!dbPage.isPinned())
+            getQueue(queue).add(dbPage);
+    }
+
+
+    /**
+     * Evicts the oldest unpinned page from <tt>A1in</tt>, remembering its
+     * identity in <tt>A1out</tt>.
+     *
+     * @return the page evicted from <tt>A1in</tt>
+     */
+    private DBPage evictA1in() {
+        DBPage victim = removeHead(a1in);
+        a1inSize--;
+
+        a1out.add(new BufferManager.DBPageID(victim));
+
+        return victim;
+    }
+
+
+    private LinkedHashSet<DBPage> getQueue(Queue queue) {
+        return (queue == Queue.A1IN) ? a1in : am;
+    }
+
+
+    private static DBPage removeHead(LinkedHashSet<DBPage> queue) {
+        Iterator<DBPage> iter = queue.iterator();
+        DBPage head = iter.next();
+        iter.remove();
+        return head;
+    }
+}
@@ -0,0 +1,556 @@
+package edu.caltech.nanodb.storage.btreefile;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.ExternalSorter;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * <p>
+ * This class builds a B<sup>+</sup> tree tuple file from a large number of
+ * tuples in one pass, which is much faster than adding the tuples one at a
+ * time with {@link BTreeTupleFile#addTuple}.  The tuples may be added in any
+ * order; they are sorted with an {@link ExternalSorter}, which writes sorted
+ * runs to temporary files and merges them if the tuples don't fit in the
+ * loader's memory budget.
+ * </p>
+ * <p>
+ * The sorted tuples are written to leaf pages from left to right, filling
+ * each leaf up to the fill factor.  The first tuple of each leaf is kept as
+ * the separator key for the leaf, and once all leaves are written, the inner
+ * pages are built from these keys one level at a time, from the bottom of
+ * the tree up to the root.  Leaving some space free in each page means that
+ * the tree doesn't have to split its pages as soon as more tuples are added
+ * to it.
+ * </p>
+ * <p>
+ * If the file uses key compression, the leaves are written with prefix
+ * compression, and the separator keys are truncated, just as the
+ * {@link LeafPage} and {@link InnerPage} classes store them.
+ * </p>
+ * <p>
+ * Each page is written to the write-ahead log as a single redo-only image
+ * once it is complete, rather than recording every change to the page.
+ * Since these records can't be rolled back, the loader may only be used on
+ * an empty file that no other transaction can see, such as the file of a
+ * new index.
+ * </p>
+ */
+public class BTreeBulkLoader {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(BTreeBulkLoader.class);
+
+
+    /**
+     * The system property that can be used to specify the fraction of each
+     * page that the bulk loader fills with tuples.
+     */
+    public static final String PROP_FILL_FACTOR = "nanodb.btree.fillFactor";
+
+
+    /** The default fill factor leaves 10% of each page free. */
+    public static final float DEFAULT_FILL_FACTOR = 0.9f;
+
+
+    /**
+     * Returns the fraction of each page that the bulk loader fills with
+     * tuples, from the <tt>nanodb.btree.fillFactor</tt> property.
+     *
+     * @return the fill factor, greater than 0 and at most 1
+     */
+    public static float getFillFactor() {
+        float fillFactor = DEFAULT_FILL_FACTOR;
+
+        String str = System.getProperty(PROP_FILL_FACTOR);
+        if (str != null) {
+            try {
+                fillFactor = Float.parseFloat(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse fill factor value \"%s\"; " +
+                    "using default value of %f", str, DEFAULT_FILL_FACTOR));
+            }
+
+            if (!(fillFactor > 0 && fillFactor <= 1)) {
+                logger.error(String.format(
+                    "Fill factor %f is not between 0 and 1; using default " +
+                    "value of %f", fillFactor, DEFAULT_FILL_FACTOR));
+
+                fillFactor = DEFAULT_FILL_FACTOR;
+            }
+        }
+
+        return fillFactor;
+    }
+
+
+    /** Orders tuples by all of their columns, as the leaf pages do. */
+    private static final Comparator<Tuple> TUPLE_ORDER =
+        new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple t1, Tuple t2) {
+                return TupleComparator.compareTuples(t1, t2);
+            }
+        };
+
+
+    private StorageManager storageManager;
+
+
+    /** The file that the tree is built in. */
+    private DBFile dbFile;
+
+
+    /** Used to allocate pages in the tree file. */
+    private FileOperations fileOps;
+
+
+    /** The schema of the tuples in the tree. */
+    private Schema schema;
+
+
+    /** True if the tree's pages use key compression. */
+    private boolean keyCompressed;
+
+
+    /** The number of bytes of each page that the loader fills. */
+    private int pageFillSize;
+
+
+    /**
+     * If positive, the number of leading columns whose values must be unique
+     * across all of the tuples.
+     */
+    private int numUniqueColumns;
+
+
+    /** Sorts the tuples that are added to the tree. */
+    private ExternalSorter sorter;
+
+
+    /** True once {@link #finish} has been called. */
+    private boolean finished;
+
+
+    /** The leaf that tuples are currently being written into. */
+    private DBPage curLeaf;
+
+
+    /** The offset in {@link #curLeaf} where the next tuple goes. */
+    private int curLeafEnd;
+
+
+    /** The number of tuples in {@link #curLeaf}. */
+    private int curLeafTuples;
+
+
+    /**
+     * The leaf before {@link #curLeaf}.  It stays pinned until the current
+     * leaf is complete, so that tuples can be moved into a last leaf that
+     * would otherwise be nearly empty.
+     */
+    private DBPage prevLeaf;
+
+
+    /** The page numbers of the pages on the level being built. */
+    private ArrayList<Integer> levelPages = new ArrayList<Integer>();
+
+
+    /**
+     * The separator key in front of each page on the level being built, or
+     * {@code null} for the first page on the level.
+     */
+    private ArrayList<TupleLiteral> levelKeys = new ArrayList<TupleLiteral>();
+
+
+    /** The last tuple written to the tree, for the uniqueness check. */
+    private TupleLiteral lastKey;
+
+
+    /**
+     * The last tuple written to the tree, if the tree uses key compression.
+     * The next tuple in the same leaf is stored relative to this tuple.
+     */
+    private TupleLiteral lastTuple;
+
+
+    /**
+     * Creates a bulk loader for an empty B<sup>+</sup> tree tuple file.  Use
+     * {@link BTreeTupleFile#createBulkLoader} to create a loader.
+     */
+    BTreeBulkLoader(StorageManager storageManager, DBFile dbFile,
+                    FileOperations fileOps, Schema schema,
+                    boolean keyCompressed, long memoryBudget) {
+        this.storageManager = storageManager;
+        this.dbFile = dbFile;
+        this.fileOps = fileOps;
+        this.schema = schema;
+        this.keyCompressed = keyCompressed;
+
+        sorter = new ExternalSorter(storageManager, schema, TUPLE_ORDER,
+                                    memoryBudget);
+
+        int pageSize = dbFile.getPageSize();
+        pageFillSize = Math.min(pageSize,
+            Math.max(LeafPage.OFFSET_FIRST_TUPLE + 1,
+                     (int) (pageSize * getFillFactor())));
+    }
+
+
+    /**
+     * Makes the loader check that the tuples' values in the specified number
+     * of leading columns are unique, as for the tuples of a unique index.
+     * {@link #finish} throws an {@code IllegalStateException} if two tuples
+     * have the same values in these columns.
+     *
+     * @param numUniqueColumns the number of leading columns that must be
+     *        unique, or 0 for no check
+     */
+    public void setUniqueColumns(int numUniqueColumns) {
+        if (numUniqueColumns < 0 || numUniqueColumns > schema.numColumns()) {
+            throw new IllegalArgumentException(
+                "numUniqueColumns must be between 0 and the number of columns");
+        }
+
+        this.numUniqueColumns = numUniqueColumns;
+    }
+
+
+    /**
+     * Adds a tuple to be loaded into the tree.  The tuple is copied, so the
+     * caller may reuse or unpin it.
+     *
+     * @param tuple the tuple to add
+     *
+     * @throws IOException if a sorted run could not be written
+     */
+    public void addTuple(Tuple tuple) throws IOException {
+        if (finished)
+            throw new IllegalStateException("The load is already finished");
+
+        sorter.addTuple(new TupleLiteral(tuple));
+    }
+
+
+    /**
+     * Writes all of the tuples that were added to the tree, and then builds
+     * the inner pages of the tree and records its root in the header page.
+     *
+     * @throws IOException if an IO error occurs while building the tree
+     *
+     * @throws IllegalStateException if the tree file isn't empty, or if a
+     *         uniqueness check was requested and two tuples have the same
+     *         values in the unique columns
+     */
+    public void finish() throws IOException {
+        if (finished)
+            throw new IllegalStateException("The load is already finished");
+
+        finished = true;
+
+        DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+        try {
+            if (HeaderPage.getRootPageNo(dbpHeader) != 0) {
+                throw new IllegalStateException(
+                    "A tree can only be bulk-loaded into an empty file");
+            }
+
+            try {
+                writeLeaves();
+            }
+            finally {
+                sorter.close();
+            }
+
+            if (levelPages.isEmpty())
+                return;  // No tuples were added.
+
+            HeaderPage.setFirstLeafPageNo(dbpHeader, levelPages.get(0));
+
+            while (levelPages.size() > 1)
+                writeInnerLevel();
+
+            HeaderPage.setRootPageNo(dbpHeader, levelPages.get(0));
+            storageManager.logDBPageImage(dbpHeader);
+        }
+        finally {
+            dbpHeader.unpin();
+        }
+    }
+
+
+    /**
+     * Writes the sorted tuples to the leaves of the tree, from left to right.
+     * Afterwards, {@link #levelPages} and {@link #levelKeys} describe the
+     * leaves.
+     */
+    private void writeLeaves() throws IOException {
+        sorter.finish();
+        while (true) {
+            Tuple tup = sorter.getNextTuple();
+            if (tup == null)
+                break;
+
+            writeLeafTuple(tup);
+        }
+
+        if (curLeaf != null)
+            finishLastLeaves();
+    }
+
+
+    /**
+     * Writes the next tuple in sorted order to the current leaf, starting a
+     * new leaf if the current one is full.
+     */
+    private void writeLeafTuple(Tuple tuple) throws IOException {
+        checkUnique(tuple);
+
+        int size = LeafPage.getMaxTupleStorageSize(schema, tuple, keyCompressed);
+        if (LeafPage.OFFSET_FIRST_TUPLE + size > dbFile.getPageSize()) {
+            throw new IllegalArgumentException(String.format(
+                "Tuple of %d bytes is too large for a %d-byte page", size,
+                dbFile.getPageSize()));
+        }
+
+        if (keyCompressed && curLeafTuples > 0)
+            size = LeafPage.getCompressedStorageSize(schema, lastTuple, tuple);
+
+        if (curLeaf == null || (curLeafTuples > 0 &&
+                                curLeafEnd + size > pageFillSize)) {
+            startLeaf(tuple);
+        }
+
+        if (keyCompressed) {
+            Tuple prevTuple = (curLeafTuples > 0) ? lastTuple : null;
+            curLeafEnd = LeafPage.storeCompressedTuple(curLeaf, curLeafEnd,
+                schema, prevTuple, tuple);
+            lastTuple = new TupleLiteral(tuple);
+        }
+        else {
+            curLeafEnd = PageTuple.storeTuple(curLeaf, curLeafEnd, schema, tuple);
+        }
+        curLeafTuples++;
+    }
+
+
+    /**
+     * Checks that a tuple's unique columns don't have the same values as the
+     * previous tuple's.  Since the tuples arrive in sorted order, this finds
+     * every duplicate.
+     */
+    private void checkUnique(Tuple tuple) {
+        if (numUniqueColumns == 0)
+            return;
+
+        TupleLiteral key = new TupleLiteral(numUniqueColumns);
+        for (int i = 0; i < numUniqueColumns; i++)
+            key.setColumnValue(i, tuple.getColumnValue(i));
+
+        if (lastKey != null && TupleComparator.compareTuples(lastKey, key) == 0) {
+            throw new IllegalStateException("Unique index " +
+                "already contains a tuple with this value.");
+        }
+
+        lastKey = key;
+    }
+
+
+    /**
+     * Completes the current leaf, if there is one, and starts a new leaf
+     * whose first tuple will be the specified tuple.
+     */
+    private void startLeaf(Tuple firstTuple) throws IOException {
+        DBPage newLeaf = fileOps.getNewDataPage();
+        LeafPage.init(newLeaf, schema, keyCompressed);
+
+        if (curLeaf != null) {
+            completeLeaf();
+            curLeaf.writeShort(LeafPage.OFFSET_NEXT_PAGE_NO,
+                newLeaf.getPageNo());
+
+            if (prevLeaf != null) {
+                storageManager.logDBPageImage(prevLeaf);
+                prevLeaf.unpin();
+            }
+            prevLeaf = curLeaf;
+
+            if (keyCompressed) {
+                levelKeys.add(InnerPage.getSeparatorKey(schema, lastTuple,
+                                                        firstTuple));
+            }
+            else {
+                levelKeys.add(new TupleLiteral(firstTuple));
+            }
+        }
+        else {
+            levelKeys.add(null);
+        }
+        levelPages.add(newLeaf.getPageNo());
+
+        curLeaf = newLeaf;
+        curLeafEnd = LeafPage.OFFSET_FIRST_TUPLE;
+        curLeafTuples = 0;
+    }
+
+
+    /** Records the number of tuples written to the current leaf. */
+    private void completeLeaf() {
+        curLeaf.writeShort(LeafPage.OFFSET_NUM_TUPLES, curLeafTuples);
+    }
+
+
+    /**
+     * Completes the last leaf.  If the last leaf is less than half full, some
+     * tuples are moved into it from the leaf before it, as the tree's leaves
+     * are expected to be at least half full.
+     */
+    private void finishLastLeaves() throws IOException {
+        completeLeaf();
+
+        if (prevLeaf != null) {
+            LeafPage left = new LeafPage(prevLeaf, schema, keyCompressed);
+            LeafPage right = new LeafPage(curLeaf, schema, keyCompressed);
+
+            if (right.getUsedSpace() < right.getTotalSpace() / 2) {
+                int leftUsed = left.getUsedSpace();
+                int rightUsed = right.getUsedSpace();
+
+                int count = 0;
+                int index = left.getNumTuples() - 1;
+                while (index > 0) {
+                    int size = left.getTupleSize(index);
+                    if (rightUsed + size > leftUsed - size)
+                        break;
+
+                    leftUsed -= size;
+                    rightUsed += size;
+                    count++;
+                    index--;
+                }
+
+                if (count > 0) {
+                    left.moveTuplesRight(right, count);
+
+                    TupleLiteral key;
+                    if (keyCompressed) {
+                        key = InnerPage.getSeparatorKey(schema,
+                            left.getTuple(left.getNumTuples() - 1),
+                            right.getTuple(0));
+                    }
+                    else {
+                        key = new TupleLiteral(right.getTuple(0));
+                    }
+                    levelKeys.set(levelKeys.size() - 1, key);
+                }
+            }
+
+            storageManager.logDBPageImage(prevLeaf);
+            prevLeaf.unpin();
+            prevLeaf = null;
+        }
+
+        storageManager.logDBPageImage(curLeaf);
+        curLeaf.unpin();
+        curLeaf = null;
+    }
+
+
+    /**
+     * Writes the inner pages that point to the pages on the level being
+     * built, and then makes these inner pages the level being built.
+     */
+    private void writeInnerLevel() throws IOException {
+        int numChildren = levelPages.size();
+        int pageSize = dbFile.getPageSize();
+
+        // Work out which children go in each inner page.  An inner page
+        // with n children holds n - 1 keys; the key in front of its first
+        // child goes into the next level up instead.
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        int used = 0;
+        int count = 0;
+        for (int i = 0; i < numChildren; i++) {
+            int size = 2;
+            if (count > 0)
+                size += PageTuple.getTupleStorageSize(schema, levelKeys.get(i));
+
+            if (count >= 2 && used + size > pageFillSize) {
+                count = 0;
+                size = 2;
+            }
+
+            if (count == 0) {
+                starts.add(i);
+                used = InnerPage.OFFSET_FIRST_POINTER;
+            }
+
+            if (used + size > pageSize) {
+                throw new IllegalArgumentException(String.format(
+                    "Keys are too large to fit two in a %d-byte page",
+                    pageSize));
+            }
+
+            used += size;
+            count++;
+        }
+
+        // Don't leave the last page with a single child, if the page before
+        // it has one to spare.
+        int numPages = starts.size();
+        if (numPages >= 2 && starts.get(numPages - 1) == numChildren - 1 &&
+            starts.get(numPages - 1) - starts.get(numPages - 2) >= 3) {
+            starts.set(numPages - 1, numChildren - 2);
+        }
+
+        ArrayList<Integer> parentPages = new ArrayList<Integer>(numPages);
+        ArrayList<TupleLiteral> parentKeys =
+            new ArrayList<TupleLiteral>(numPages);
+
+        for (int iPage = 0; iPage < numPages; iPage++) {
+            int start = starts.get(iPage);
+            int end = (iPage + 1 < numPages) ? starts.get(iPage + 1) :
+                numChildren;
+
+            DBPage dbPage = fileOps.getNewDataPage();
+            InnerPage.init(dbPage, schema);
+
+            int offset = InnerPage.OFFSET_FIRST_POINTER;
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    offset = PageTuple.storeTuple(dbPage, offset, schema,
+                        levelKeys.get(i));
+                }
+                dbPage.writeShort(offset, levelPages.get(i));
+                offset += 2;
+            }
+            dbPage.writeShort(InnerPage.OFFSET_NUM_POINTERS, end - start);
+
+            storageManager.logDBPageImage(dbPage);
+            dbPage.unpin();
+
+            parentPages.add(dbPage.getPageNo());
+            parentKeys.add(levelKeys.get(start));
+        }
+
+        logger.debug(String.format("Wrote %d inner pages over %d children",
+            numPages, numChildren));
+
+        levelPages = parentPages;
+        levelKeys = parentKeys;
+    }
+}
@@ -2,6 +2,7 @@ package edu.caltech.nanodb.storage.btreefile;
 
 
 import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.PageTuple;
 
@@ -12,12 +13,42 @@ import edu.caltech.nanodb.storage.PageTuple;
  * extension, which is to allow the tuple to remember its index within the
  * leaf page it is from; this makes it easy to move to the next tuple within
  * the page very easily.
+ * <p>
+ * In files that use key compression, a leaf tuple is preceded by a header
+ * that says how much of its value it shares with the previous tuple in the
+ * page (see {@link LeafPage} for the format).  The shared values are taken
+ * from the previous tuple when the page is loaded.  The offset and size of
+ * such a tuple include its header.
+ * </p>
  */
 public class BTreeFilePageTuple extends PageTuple {
 
     private int tupleIndex;
 
 
+    /**
+     * The number of bytes stored in front of the tuple's data; this is 0 if
+     * the tuple isn't prefix compressed.
+     */
+    private int headerSize;
+
+
+    /**
+     * The values of the leading columns that this tuple shares with the
+     * previous tuple in the page, or {@code null} if the tuple isn't prefix
+     * compressed.
+     */
+    private Object[] prefixValues;
+
+
+    /**
+     * If the column after the shared columns is a string that starts with
+     * some of the previous tuple's characters, these are the shared
+     * characters; only the rest of the string is stored in the tuple.
+     */
+    private String sharedChars;
+
+
     public BTreeFilePageTuple(Schema schema, DBPage dbPage, int pageOffset,
                               int tupleIndex) {
         super(dbPage, pageOffset, schema);
@@ -31,11 +62,132 @@ public class BTreeFilePageTuple extends PageTuple {
     }
 
 
+    /**
+     * Creates a tuple for a prefix-compressed record in a leaf page.
+     *
+     * @param schema the schema of the tuple
+     * @param dbPage the page that holds the tuple
+     * @param pageOffset the offset of the record's header
+     * @param tupleIndex the index of the tuple within the page
+     * @param prevTuple the previous tuple in the page, or {@code null} if
+     *        this is the first tuple in the page
+     *
+     * @throws IllegalStateException if the record shares columns with a
+     *         previous tuple, but there is no previous tuple
+     */
+    public BTreeFilePageTuple(Schema schema, DBPage dbPage, int pageOffset,
+                              int tupleIndex, Tuple prevTuple) {
+        this(schema, dbPage,
+             pageOffset + LeafPage.getCompressedHeaderSize(dbPage, pageOffset),
+             tupleIndex);
+
+        headerSize = LeafPage.getCompressedHeaderSize(dbPage, pageOffset);
+
+        int header = dbPage.readUnsignedByte(pageOffset);
+        int prefixLen = header & ~LeafPage.SHARED_CHARS_FLAG;
+        int numChars = 0;
+        if ((header & LeafPage.SHARED_CHARS_FLAG) != 0)
+            numChars = dbPage.readUnsignedByte(pageOffset + 1);
+
+        if ((prefixLen > 0 || numChars > 0) && prevTuple == null) {
+            throw new IllegalStateException(String.format(
+                "Tuple at offset %d in page %d shares values with a " +
+                "previous tuple, but it is the first tuple in the page",
+                pageOffset, dbPage.getPageNo()));
+        }
+
+        prefixValues = new Object[prefixLen];
+        for (int i = 0; i < prefixLen; i++)
+            prefixValues[i] = prevTuple.getColumnValue(i);
+
+        if (numChars > 0) {
+            String prevValue = (String) prevTuple.getColumnValue(prefixLen);
+            sharedChars = prevValue.substring(0, numChars);
+        }
+    }
+
+
     public int getTupleIndex() {
         return tupleIndex;
     }
 
 
+    private boolean isPrefixColumn(int colIndex) {
+        return prefixValues != null && colIndex >= 0 &&
+            colIndex < prefixValues.length;
+    }
+
+
+    @Override
+    public int getOffset() {
+        return super.getOffset() - headerSize;
+    }
+
+
+    @Override
+    public int getSize() {
+        return super.getSize() + headerSize;
+    }
+
+
+    @Override
+    public boolean isNullValue(int colIndex) {
+        if (isPrefixColumn(colIndex))
+            return prefixValues[colIndex] == null;
+
+        return super.isNullValue(colIndex);
+    }
+
+
+    @Override
+    public Object getColumnValue(int colIndex) {
+        if (isPrefixColumn(colIndex))
+            return prefixValues[colIndex];
+
+        Object value = super.getColumnValue(colIndex);
+        if (sharedChars != null && colIndex == prefixValues.length)
+            value = sharedChars + value;
+
+        return value;
+    }
+
+
+    @Override
+    public int getIntColumnValue(int colIndex) {
+        if (isPrefixColumn(colIndex))
+            return ((Number) getPrefixValue(colIndex)).intValue();
+
+        return super.getIntColumnValue(colIndex);
+    }
+
+
+    @Override
+    public long getLongColumnValue(int colIndex) {
+        if (isPrefixColumn(colIndex))
+            return ((Number) getPrefixValue(colIndex)).longValue();
+
+        return super.getLongColumnValue(colIndex);
+    }
+
+
+    @Override
+    public double getDoubleColumnValue(int colIndex) {
+        if (isPrefixColumn(colIndex))
+            return ((Number) getPrefixValue(colIndex)).doubleValue();
+
+        return super.getDoubleColumnValue(colIndex);
+    }
+
+
+    private Object getPrefixValue(int colIndex) {
+        Object value = prefixValues[colIndex];
+        if (value == null)
+            throw new IllegalStateException("Column " + colIndex + " is NULL");
+
+        return value;
+    }
+
+
     @Override
     protected void insertTupleDataRange(int off, int len) {
         throw new UnsupportedOperationException(
@@ -330,7 +330,8 @@ public class BTreeFileVerifier {
         case BTREE_LEAF_PAGE:
         {
             logger.trace("It's a leaf page.");
-            LeafPage leaf = new LeafPage(dbPage, tupleFile.getSchema());
+            LeafPage leaf = new LeafPage(dbPage, tupleFile.getSchema(),
+                tupleFile.isKeyCompressed());
 
             // Make sure the keys are in the proper order in the page.
 
@@ -423,7 +424,8 @@ public class BTreeFileVerifier {
                 throw new ScanAbortedException();
             }
 
-            LeafPage leafPage = new LeafPage(dbPage, tupleFile.getSchema());
+            LeafPage leafPage = new LeafPage(dbPage, tupleFile.getSchema(),
+                tupleFile.isKeyCompressed());
 
             for (int k = 0; k < leafPage.getNumTuples(); k++) {
                 Tuple key = leafPage.getTuple(k);
@@ -6,13 +6,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ColumnValue;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.qeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.relations.Tuple;
@@ -59,6 +62,25 @@ import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
  *     an unsigned short stored at index 1 (after the page-type value in index
  *     0).  The final empty page stores 0 as its next-page pointer value.</li>
  * </ul>
+ * <p>
+ * Several sessions may use the same B<sup>+</sup> tree file at once.  Lookups
+ * descend from the root to a leaf by latch crabbing:  each page is latched
+ * in shared mode before its parent's latch is released, so a session never
+ * follows a pointer out of a page that is being changed.  Adding or deleting
+ * a tuple descends the same way, but latches the leaf in exclusive mode, and
+ * if the change fits within the leaf (no split, relocation or coalescing is
+ * needed) it is made right there.  Otherwise the session gives up its
+ * latches, acquires the file's tree latch in exclusive mode, and navigates
+ * to the leaf again to perform the structural change.  All other operations
+ * hold the tree latch in shared mode, so structural changes see a quiescent
+ * tree, while lookups and in-leaf changes on different leaves don't block
+ * each other at all.
+ * </p>
+ * <p>
+ * Latches only protect the tree for the duration of each call.  The tuples
+ * that are returned refer directly to leaf pages, so keeping other sessions
+ * from changing them afterward is the job of higher-level locking.
+ * </p>
  */
 public class BTreeTupleFile implements SequentialTupleFile {
     /** A logging object for reporting anything interesting that happens. */
@@ -101,6 +123,14 @@ public class BTreeTupleFile implements SequentialTupleFile {
     private DBFile dbFile;
 
 
+    /**
+     * True if the file's leaf pages use prefix compression, and separator
+     * keys are truncated when they are promoted into inner pages.  This is
+     * recorded in the file's header page when the file is created.
+     */
+    private boolean keyCompressed;
+
+
     /**
      * A helper class that manages file-level operations on the B+ tree file.
      */
@@ -121,12 +151,38 @@ public class BTreeTupleFile implements SequentialTupleFile {
     private InnerPageOperations innerPageOps;
 
 
+    /**
+     * Operations that change the structure of the tree (splitting, merging
+     * or redistributing pages, or changing the root) hold this latch in
+     * exclusive mode.  All other operations hold it in shared mode, and
+     * latch individual pages as they go.
+     */
+    private ReentrantReadWriteLock treeLatch;
+
+
+    /** How {@link #navigateToLeafPage} latches the pages it visits. */
+    private enum LatchMode {
+        /** No pages are latched, since the tree latch is held exclusively. */
+        NONE,
+
+        /** Pages are latched in shared mode, including the leaf. */
+        SHARED,
+
+        /**
+         * Inner pages are latched in shared mode, and the leaf is latched in
+         * exclusive mode.
+         */
+        EXCLUSIVE_LEAF
+    }
+
+
     // private IndexInfo idxFileInfo;
 
 
     public BTreeTupleFile(StorageManager storageManager,
                           BTreeTupleFileManager btreeFileManager, DBFile dbFile,
-                          TableSchema schema, TableStats stats) {
+                          TableSchema schema, TableStats stats,
+                          boolean keyCompressed) {
         if (storageManager == null)
             throw new IllegalArgumentException("storageManager cannot be null");
 
@@ -146,6 +202,9 @@ public class BTreeTupleFile implements SequentialTupleFile {
         this.dbFile = dbFile;
         this.schema = schema;
         this.stats = stats;
+        this.keyCompressed = keyCompressed;
+
+        treeLatch = new ReentrantReadWriteLock();
 
         fileOps = new FileOperations(storageManager, dbFile);
         innerPageOps = new InnerPageOperations(storageManager, this, fileOps);
@@ -176,9 +235,31 @@ public class BTreeTupleFile implements SequentialTupleFile {
     }
 
 
+    /**
+     * Returns true if this file's pages use key compression.
+     *
+     * @return true if this file's pages use key compression
+     */
+    public boolean isKeyCompressed() {
+        return keyCompressed;
+    }
+
+
+    /**
+     * The tuples in a B<sup>+</sup> tree tuple file are ordered on all of
+     * their columns, in the order the columns appear in the schema, with
+     * <tt>NULL</tt> values first.
+     */
     @Override
     public List<OrderByExpression> getOrderSpec() {
-        throw new UnsupportedOperationException("NYI");
+        ArrayList<OrderByExpression> orderSpec =
+            new ArrayList<OrderByExpression>();
+
+        for (ColumnInfo colInfo : schema)
+            orderSpec.add(new OrderByExpression(
+                new ColumnValue(colInfo.getColumnName())));
+
+        return orderSpec;
     }
 
 
@@ -190,10 +271,22 @@ public class BTreeTupleFile implements SequentialTupleFile {
         // navigateToLeafPage() method to choose the leftmost leaf page.
 
         TupleLiteral noTup = new TupleLiteral();
-        LeafPage leaf = navigateToLeafPage(noTup, false, null);
 
-        if (leaf != null && leaf.getNumTuples() > 0)
-            tup = leaf.getTuple(0);
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf =
+                navigateToLeafPage(noTup, false, null, LatchMode.SHARED);
+
+            if (leaf != null) {
+                if (leaf.getNumTuples() > 0)
+                    tup = leaf.getTuple(0);
+
+                leaf.getDBPage().unlatchShared();
+            }
+        }
+        finally {
+            treeLatch.readLock().unlock();
+        }
 
         return tup;
     }
@@ -203,38 +296,62 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public Tuple getNextTuple(Tuple tup) throws IOException {
         BTreeFilePageTuple tuple = (BTreeFilePageTuple) tup;
 
-        // Get the page that holds the current entry, and see where it falls
-        // within the page.
-        DBPage dbPage = tuple.getDBPage();
-        LeafPage leaf = new LeafPage(dbPage, schema);
-
-        // Use the offset of the passed-in entry to find the next entry.
-
         BTreeFilePageTuple nextTuple = null;
 
-        int nextIndex = tuple.getTupleIndex() + 1;
-        if (nextIndex < leaf.getNumTuples()) {
-            // Still more entries in this leaf.
-            nextTuple = leaf.getTuple(nextIndex);
-        }
-        else {
-            // No more entries in this leaf.  Must go to the next leaf.
-            int nextPageNo = leaf.getNextPageNo();
+        treeLatch.readLock().lock();
+        try {
+            // Get the page that holds the current entry, and see where it
+            // falls within the page.
+            DBPage dbPage = tuple.getDBPage();
+            int nextPageNo = 0;
+
+            dbPage.latchShared();
+            try {
+                LeafPage leaf = new LeafPage(dbPage, schema, keyCompressed);
+
+                // Use the index of the passed-in entry to find the next
+                // entry.
+                int nextIndex = tuple.getTupleIndex() + 1;
+                if (nextIndex < leaf.getNumTuples()) {
+                    // Still more entries in this leaf.
+                    nextTuple = leaf.getTuple(nextIndex);
+                }
+                else {
+                    // No more entries in this leaf.  Must go to the next
+                    // leaf.
+                    nextPageNo = leaf.getNextPageNo();
+                }
+            }
+            finally {
+                dbPage.unlatchShared();
+            }
+
+            // Only one leaf is latched at a time, so that scans never hold
+            // a latch while they wait for another one.
             if (nextPageNo != 0) {
                 dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
 
-                leaf = new LeafPage(dbPage, schema);
-                if (leaf.getNumTuples() > 0) {
-                    nextTuple = leaf.getTuple(0);
+                dbPage.latchShared();
+                try {
+                    LeafPage leaf = new LeafPage(dbPage, schema, keyCompressed);
+                    if (leaf.getNumTuples() > 0) {
+                        nextTuple = leaf.getTuple(0);
+                    }
+                    else {
+                        // This would be *highly* unusual.  Leaves are
+                        // supposed to be at least 1/2 full, always!
+                        logger.error(String.format(
+                            "Next leaf node %d has no entries?!", nextPageNo));
+                    }
                 }
-                else {
-                    // This would be *highly* unusual.  Leaves are supposed
-                    // to be at least 1/2 full, always!
-                    logger.error(String.format(
-                        "Next leaf node %d has no entries?!", nextPageNo));
+                finally {
+                    dbPage.unlatchShared();
                 }
             }
         }
+        finally {
+            treeLatch.readLock().unlock();
+        }
 
         return nextTuple;
     }
@@ -253,18 +370,30 @@ public class BTreeTupleFile implements SequentialTupleFile {
         }
 
         // In the B+ tree file format, the file-pointer points to the actual
-        // tuple itself.
+        // tuple itself.  (With key compression, this is just past the
+        // tuple's prefix-length byte.)
 
         int fpOffset = fptr.getOffset();
-        LeafPage leaf = new LeafPage(dbPage, schema);
-        for (int i = 0; i < leaf.getNumTuples(); i++) {
-            BTreeFilePageTuple tup = leaf.getTuple(i);
-            if (tup.getOffset() == fpOffset)
-                return tup;
-
-            // Tuple offsets within a page will be monotonically increasing.
-            if (tup.getOffset() > fpOffset)
-                break;
+
+        treeLatch.readLock().lock();
+        dbPage.latchShared();
+        try {
+            LeafPage leaf = new LeafPage(dbPage, schema, keyCompressed);
+            for (int i = 0; i < leaf.getNumTuples(); i++) {
+                BTreeFilePageTuple tup = leaf.getTuple(i);
+                int tupOffset = tup.getExternalReference().getOffset();
+                if (tupOffset == fpOffset)
+                    return tup;
+
+                // Tuple offsets within a page will be monotonically
+                // increasing.
+                if (tupOffset > fpOffset)
+                    break;
+            }
+        }
+        finally {
+            dbPage.unlatchShared();
+            treeLatch.readLock().unlock();
         }
 
         throw new InvalidFilePointerException("No tuple at offset " + fptr);
@@ -276,13 +405,41 @@ public class BTreeTupleFile implements SequentialTupleFile {
         logger.debug("Finding first tuple that equals " + searchKey +
             " in BTree file " + dbFile);
 
-        LeafPage leaf = navigateToLeafPage(searchKey, false, null);
-        if (leaf == null) {
-            logger.debug("BTree file is empty!");
-            return null;
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf =
+                navigateToLeafPage(searchKey, false, null, LatchMode.SHARED);
+            if (leaf == null) {
+                logger.debug("BTree file is empty!");
+                return null;
+            }
+
+            try {
+                logger.debug("Navigated to leaf page " + leaf.getPageNo());
+                return findFirstTupleEquals(leaf, searchKey);
+            }
+            finally {
+                leaf.getDBPage().unlatchShared();
+            }
         }
+        finally {
+            treeLatch.readLock().unlock();
+        }
+    }
 
-        logger.debug("Navigated to leaf page " + leaf.getPageNo());
+
+    /**
+     * Scans a leaf page for the first tuple that equals the search key.
+     *
+     * @param leaf the leaf page that the search key would appear in
+     *
+     * @param searchKey the search key to look for
+     *
+     * @return the first tuple in the leaf that equals the search key, or
+     *         {@code null} if the leaf doesn't hold such a tuple
+     */
+    private BTreeFilePageTuple findFirstTupleEquals(LeafPage leaf,
+                                                    Tuple searchKey) {
         if (leaf.getNumTuples() > 0) {
             // We have at least one tuple to look at, so scan through to find
             // the first tuple that equals what we are looking for.
@@ -310,18 +467,31 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
     @Override
     public PageTuple findFirstTupleGreaterThan(Tuple searchKey) throws IOException {
-        LeafPage leaf = navigateToLeafPage(searchKey, false, null);
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf =
+                navigateToLeafPage(searchKey, false, null, LatchMode.SHARED);
+            if (leaf == null)
+                return null;
 
-        if (leaf != null && leaf.getNumTuples() > 0) {
-            // We have at least one tuple to look at, so scan through to find
-            // the first tuple that equals what we are looking for.
-            for (int i = 0; i < leaf.getNumTuples(); i++) {
-                BTreeFilePageTuple tup = leaf.getTuple(i);
-                int cmp = TupleComparator.comparePartialTuples(tup, searchKey);
-                if (cmp > 0)
-                    return tup;  // Found it!
+            try {
+                // Scan through the leaf to find the first tuple that is
+                // greater than what we are looking for.
+                for (int i = 0; i < leaf.getNumTuples(); i++) {
+                    BTreeFilePageTuple tup = leaf.getTuple(i);
+                    int cmp =
+                        TupleComparator.comparePartialTuples(tup, searchKey);
+                    if (cmp > 0)
+                        return tup;  // Found it!
+                }
+            }
+            finally {
+                leaf.getDBPage().unlatchShared();
             }
         }
+        finally {
+            treeLatch.readLock().unlock();
+        }
 
         return null;
     }
@@ -331,20 +501,67 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public Tuple addTuple(Tuple tup) throws IOException {
         logger.debug("Adding tuple " + tup + " to BTree file " + dbFile);
 
-        // Navigate to the leaf-page, creating one if the BTree file is
-        // currently empty.
-        ArrayList<Integer> pagePath = new ArrayList<Integer>();
-        LeafPage leaf = navigateToLeafPage(tup, true, pagePath);
-
         // TODO:  This is definitely not ideal, but should get us going.
         TupleLiteral tupLit;
         if (tup instanceof TupleLiteral)
             tupLit = (TupleLiteral) tup;
         else
             tupLit = new TupleLiteral(tup);
-        tupLit.setStorageSize(PageTuple.getTupleStorageSize(schema, tupLit));
+        tupLit.setStorageSize(
+            LeafPage.getMaxTupleStorageSize(schema, tupLit, keyCompressed));
 
-        return leafPageOps.addTuple(leaf, tupLit, pagePath);
+        // Usually there is room for the tuple in its leaf, and only the leaf
+        // needs to be latched exclusively.
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf = navigateToLeafPage(tupLit, false, null,
+                                               LatchMode.EXCLUSIVE_LEAF);
+            if (leaf != null) {
+                try {
+                    if (leaf.getFreeSpace() >= tupLit.getStorageSize())
+                        return leaf.addTuple(tupLit);
+                }
+                finally {
+                    leaf.getDBPage().unlatchExclusive();
+                }
+            }
+        }
+        finally {
+            treeLatch.readLock().unlock();
+        }
+
+        // The file is empty, or the leaf must be split or have tuples moved
+        // out of it.  Other sessions may have changed the tree since the
+        // latches were released, so navigate to the leaf-page again,
+        // creating one if the BTree file is currently empty.
+        treeLatch.writeLock().lock();
+        try {
+            ArrayList<Integer> pagePath = new ArrayList<Integer>();
+            LeafPage leaf =
+                navigateToLeafPage(tupLit, true, pagePath, LatchMode.NONE);
+
+            return leafPageOps.addTuple(leaf, tupLit, pagePath);
+        }
+        finally {
+            treeLatch.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Creates a loader that builds this tuple file from a large number of
+     * tuples in one pass, instead of adding them one at a time.  The file
+     * must be empty, and the loaded pages can't be rolled back, so this is
+     * only suitable for files that are being created, such as new indexes.
+     *
+     * @param memoryBudget the number of bytes of tuple data that the loader
+     *        may sort in memory before it writes sorted runs to disk
+     *
+     * @return a bulk loader for this file
+     */
+    public BTreeBulkLoader createBulkLoader(long memoryBudget) {
+        return new BTreeBulkLoader(storageManager, dbFile, fileOps, schema,
+                                   keyCompressed, memoryBudget);
     }
 
 
@@ -358,12 +575,45 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
     @Override
     public void deleteTuple(Tuple tup) throws IOException {
-        ArrayList<Integer> pagePath = new ArrayList<Integer>();
-        LeafPage leaf = navigateToLeafPage(tup, false, pagePath);
-
         logger.debug("Deleting tuple " + tup + " from file " + dbFile);
 
-        leafPageOps.deleteTuple(leaf, tup, pagePath);
+        // If the leaf will still be at least half full afterward, the tuple
+        // can be deleted with only the leaf latched exclusively.  (With key
+        // compression the tuple after the deleted one may grow, so this
+        // estimate errs on the safe side.)
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf =
+                navigateToLeafPage(tup, false, null, LatchMode.EXCLUSIVE_LEAF);
+            if (leaf != null) {
+                try {
+                    int index = leaf.getTupleIndex(tup);
+                    if (index != -1 && leaf.getUsedSpace() -
+                        leaf.getTupleSize(index) >= leaf.getTotalSpace() / 2) {
+                        leaf.deleteTuple(tup);
+                        return;
+                    }
+                }
+                finally {
+                    leaf.getDBPage().unlatchExclusive();
+                }
+            }
+        }
+        finally {
+            treeLatch.readLock().unlock();
+        }
+
+        treeLatch.writeLock().lock();
+        try {
+            ArrayList<Integer> pagePath = new ArrayList<Integer>();
+            LeafPage leaf =
+                navigateToLeafPage(tup, false, pagePath, LatchMode.NONE);
+
+            leafPageOps.deleteTuple(leaf, tup, pagePath);
+        }
+        finally {
+            treeLatch.writeLock().unlock();
+        }
     }
 
 
@@ -388,6 +638,13 @@ public class BTreeTupleFile implements SequentialTupleFile {
      *        from root to leaf.  If {@code null} is passed then nothing is
      *        stored as the method traverses the B<sup>+</sup> tree structure.
      *
+     * @param latchMode how the pages are latched on the way down.  Unless
+     *        this is {@link LatchMode#NONE}, the caller must hold the tree
+     *        latch in shared mode, and must release the latch on the
+     *        returned leaf page.  {@code createIfNeeded} may only be used
+     *        with {@link LatchMode#NONE}, when the caller holds the tree
+     *        latch in exclusive mode.
+     *
      * @return the leaf-page where the search-key would appear, or
      *         {@code null} if the B<sup>+</sup> tree file is currently empty
      *         and {@code createIfNeeded} is {@code false}.
@@ -396,10 +653,20 @@ public class BTreeTupleFile implements SequentialTupleFile {
      *         B<sup>+</sup> tree file's structure
      */
     private LeafPage navigateToLeafPage(Tuple searchKey,
-        boolean createIfNeeded, List<Integer> pagePath) throws IOException {
+        boolean createIfNeeded, List<Integer> pagePath, LatchMode latchMode)
+        throws IOException {
+
+        if (createIfNeeded && latchMode != LatchMode.NONE) {
+            throw new IllegalArgumentException(
+                "Can only create a root page under the exclusive tree latch");
+        }
+
+        boolean latching = (latchMode != LatchMode.NONE);
 
         // The header page tells us where the root page starts.
         DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+        if (latching)
+            dbpHeader.latchShared();
 
         // Get the root page of the BTree file.
         int rootPageNo = HeaderPage.getRootPageNo(dbpHeader);
@@ -408,8 +675,12 @@ public class BTreeTupleFile implements SequentialTupleFile {
             // The file doesn't have any data-pages at all yet.  Create one if
             // the caller wants it.
 
-            if (!createIfNeeded)
+            if (!createIfNeeded) {
+                if (latching)
+                    dbpHeader.unlatchShared();
+
                 return null;
+            }
 
             // We need to create a brand new leaf page and make it the root.
 
@@ -423,7 +694,7 @@ public class BTreeTupleFile implements SequentialTupleFile {
             HeaderPage.setFirstLeafPageNo(dbpHeader, rootPageNo);
 
             dbpRoot.writeByte(0, BTREE_LEAF_PAGE);
-            LeafPage.init(dbpRoot, schema);
+            LeafPage.init(dbpRoot, schema, keyCompressed);
 
             logger.debug("New root pageNo is " + rootPageNo);
         }
@@ -435,42 +706,78 @@ public class BTreeTupleFile implements SequentialTupleFile {
         }
 
         // Next, descend down the file's structure until we find the proper
-        // leaf-page based on the key value(s).
+        // leaf-page based on the key value(s).  When latching, each page is
+        // latched before the latch on its parent is released.
 
         DBPage dbPage = dbpRoot;
-        int pageType = dbPage.readByte(0);
-        if (pageType != BTREE_INNER_PAGE && pageType != BTREE_LEAF_PAGE)
-            throw new IOException("Invalid page type encountered:  " + pageType);
-
-        if (pagePath != null)
-            pagePath.add(rootPageNo);
-
-        // Traverse until we find a leaf node.
-        while (pageType == BTREE_INNER_PAGE) {
-            InnerPage innerPage = new InnerPage(dbPage, schema);
-            int i;
-            for (i = 0; i < innerPage.getNumKeys(); i++) {
-                Tuple tup = innerPage.getKey(i);
-                int cmp = TupleComparator.comparePartialTuples(searchKey, tup);
-                if (cmp < 0) {
-                    // Found the subtree.
-                    break;
+        if (latching) {
+            dbPage.latchShared();
+            dbpHeader.unlatchShared();
+        }
+
+        try {
+            int pageType = dbPage.readByte(0);
+            if (pageType != BTREE_INNER_PAGE && pageType != BTREE_LEAF_PAGE)
+                throw new IOException("Invalid page type encountered:  " + pageType);
+
+            if (pagePath != null)
+                pagePath.add(rootPageNo);
+
+            // Traverse until we find a leaf node.
+            while (pageType == BTREE_INNER_PAGE) {
+                InnerPage innerPage = new InnerPage(dbPage, schema);
+                int i;
+                for (i = 0; i < innerPage.getNumKeys(); i++) {
+                    Tuple tup = innerPage.getKey(i);
+                    int cmp = TupleComparator.comparePartialTuples(searchKey, tup);
+                    if (cmp < 0) {
+                        // Found the subtree.
+                        break;
+                    }
+                }
+                // If no break was encountered in the above loop, then i = innerPage.getNumKeys(); i.e.
+                // the last page pointer is used for traversal.
+                int pageNo = innerPage.getPointer(i);
+                DBPage dbpChild = storageManager.loadDBPage(dbFile, pageNo);
+                if (latching) {
+                    dbpChild.latchShared();
+                    dbPage.unlatchShared();
                 }
+                dbPage = dbpChild;
+
+                pageType = dbPage.readByte(0);
+                // TODO: verify that we should add the last page to pagePath
+                if (pagePath != null)
+                    pagePath.add(pageNo);
+            }
+
+            if (pageType != BTREE_LEAF_PAGE) {
+                throw new IOException("Didn't find a leaf page after traversal. Found:  " + pageType);
             }
-            // If no break was encountered in the above loop, then i = innerPage.getNumKeys(); i.e.
-            // the last page pointer is used for traversal.
-            int pageNo = innerPage.getPointer(i);
-            dbPage = storageManager.loadDBPage(dbFile, pageNo);
-            pageType = dbPage.readByte(0);
-            // TODO: verify that we should add the last page to pagePath
-            if (pagePath != null)
-                pagePath.add(pageNo);
         }
+        catch (IOException e) {
+            if (latching)
+                dbPage.unlatchShared();
 
-        if (pageType != BTREE_LEAF_PAGE) {
-            throw new IOException("Didn't find a leaf page after traversal. Found:  " + pageType);
+            throw e;
         }
-        LeafPage leaf = new LeafPage(dbPage, schema);
+        catch (RuntimeException e) {
+            if (latching)
+                dbPage.unlatchShared();
+
+            throw e;
+        }
+
+        if (latchMode == LatchMode.EXCLUSIVE_LEAF) {
+            // Latches can't be upgraded, so the shared latch is released
+            // before the exclusive one is acquired.  The page remains the
+            // leaf for the search-key in the meantime, since that can only
+            // change while the tree latch is held in exclusive mode.
+            dbPage.unlatchShared();
+            dbPage.latchExclusive();
+        }
+
+        LeafPage leaf = new LeafPage(dbPage, schema, keyCompressed);
         return leaf;
     }
 
@@ -486,7 +793,15 @@ public class BTreeTupleFile implements SequentialTupleFile {
         BTreeFileVerifier verifier =
             new BTreeFileVerifier(storageManager, this);
 
-        return verifier.verify();
+        // The verifier walks the entire file without latching pages, so
+        // other sessions must not change the file in the meantime.
+        treeLatch.writeLock().lock();
+        try {
+            return verifier.verify();
+        }
+        finally {
+            treeLatch.writeLock().unlock();
+        }
     }
 
 
@@ -26,6 +26,27 @@ public class BTreeTupleFileManager implements TupleFileManager {
     private static Logger logger = Logger.getLogger(BTreeTupleFileManager.class);
 
 
+    /**
+     * The system property that can be set to <tt>true</tt> to make new
+     * B<sup>+</sup> tree tuple files use key compression.  Existing files
+     * keep the format they were created with.
+     */
+    public static final String PROP_KEY_COMPRESSION =
+        "nanodb.btree.keyCompression";
+
+
+    /**
+     * Returns true if new B<sup>+</sup> tree tuple files should use key
+     * compression, from the <tt>nanodb.btree.keyCompression</tt> property.
+     *
+     * @return true if key compression is enabled for new files
+     */
+    public static boolean isKeyCompressionEnabled() {
+        String str = System.getProperty(PROP_KEY_COMPRESSION, "false");
+        return Boolean.parseBoolean(str.trim());
+    }
+
+
     /** A reference to the storage manager. */
     private StorageManager storageManager;
 
@@ -49,6 +70,7 @@ public class BTreeTupleFileManager implements TupleFileManager {
         // Table schema is stored into the header page, so get it and prepare
         // to write out the schema information.
         DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+
         PageWriter hpWriter = new PageWriter(headerPage);
         // Skip past the page-size value.
         hpWriter.setPosition(HeaderPage.OFFSET_SCHEMA_START);
@@ -70,7 +92,18 @@ public class BTreeTupleFileManager implements TupleFileManager {
         int statsSize = hpWriter.getPosition() - schemaEndPos;
         HeaderPage.setStatsSize(headerPage, statsSize);
 
-        return new BTreeTupleFile(storageManager, this, dbFile,  schema, stats);
+        // The format flags are in the last byte of the header page, after
+        // the schema and statistics.
+        if (hpWriter.getPosition() > HeaderPage.getFlagsOffset(headerPage)) {
+            throw new IOException(
+                "Schema and statistics are too large for the header page");
+        }
+
+        boolean keyCompressed = isKeyCompressionEnabled();
+        HeaderPage.setKeyCompressed(headerPage, keyCompressed);
+
+        return new BTreeTupleFile(storageManager, this, dbFile, schema, stats,
+                                  keyCompressed);
     }
 
 
@@ -82,6 +115,8 @@ public class BTreeTupleFileManager implements TupleFileManager {
         // Table schema is stored into the header page, so get it and prepare
         // to write out the schema information.
         DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        boolean keyCompressed = HeaderPage.isKeyCompressed(headerPage);
+
         PageReader hpReader = new PageReader(headerPage);
         // Skip past the page-size value.
         hpReader.setPosition(HeaderPage.OFFSET_SCHEMA_START);
@@ -94,7 +129,8 @@ public class BTreeTupleFileManager implements TupleFileManager {
         StatsWriter statsWriter = new StatsWriter();
         TableStats stats = statsWriter.readTableStats(hpReader, schema);
 
-        return new BTreeTupleFile(storageManager, this, dbFile, schema, stats);
+        return new BTreeTupleFile(storageManager, this, dbFile, schema, stats,
+                                  keyCompressed);
     }
 
 
@@ -16,8 +16,14 @@ import org.apache.log4j.Logger;
  *       size is <i>P</i> = 2<sup>p</sup></li>
  *
  *   <li>Byte 2-M:  Specification of index key-columns and column ordering.</li>
- *   <li>Byte P-2 to P-1:  the page of the file that is the root of the index</li>
+ *   <li>Byte P-1:  flags describing the format of the file's pages, such as
+ *       {@link #FLAG_KEY_COMPRESSION}</li>
  * </ul>
+ * <p>
+ * The flags byte was added after B<sup>+</sup> tree files were first
+ * written.  Files from before then have a zero in the last byte of the
+ * header page, so the flags are only used if their upper bits hold
+ * {@link #FLAGS_SIGNATURE}; otherwise the file is read with no flags set.
  */
 public class HeaderPage {
     /** A logging object for reporting anything interesting that happens. */
@@ -61,6 +67,25 @@ public class HeaderPage {
     public static final int OFFSET_STATS_SIZE = 10;
 
 
+    /**
+     * This flag is set when the file's leaf pages store their tuples with
+     * prefix compression, and the separator keys in its inner pages are
+     * truncated.  See {@link LeafPage} for details of the format.
+     */
+    public static final int FLAG_KEY_COMPRESSION = 0x01;
+
+
+    /**
+     * The upper four bits of the flags byte hold this value, so that the
+     * flags can be told apart from the zero in the same byte of older files.
+     */
+    public static final int FLAGS_SIGNATURE = 0xB0;
+
+
+    /** The bits of the flags byte that hold {@link #FLAGS_SIGNATURE}. */
+    private static final int FLAGS_SIGNATURE_MASK = 0xF0;
+
+
     /**
      * The offset in the header page where the table schema starts.  This
      * value is an unsigned short.
@@ -190,6 +215,66 @@ public class HeaderPage {
     }
 
 
+    /**
+     * Returns the offset in the header page where the file's format flags
+     * are stored, which is the last byte of the page.  The schema and
+     * statistics must end before this offset.
+     *
+     * @param dbPage the header page of the index file
+     * @return the offset of the flags byte
+     */
+    public static int getFlagsOffset(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.getPageSize() - 1;
+    }
+
+
+    /**
+     * Returns the file's format flags, or 0 if the header page doesn't have
+     * a flags byte because the file was written before flags were added.
+     */
+    private static int getFlags(DBPage dbPage) {
+        int flags = dbPage.readUnsignedByte(getFlagsOffset(dbPage));
+        if ((flags & FLAGS_SIGNATURE_MASK) != FLAGS_SIGNATURE)
+            return 0;
+
+        return flags & ~FLAGS_SIGNATURE_MASK;
+    }
+
+
+    /**
+     * Returns true if the index file's pages use key compression.
+     *
+     * @param dbPage the header page of the index file
+     * @return true if the file's {@link #FLAG_KEY_COMPRESSION} flag is set
+     */
+    public static boolean isKeyCompressed(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return (getFlags(dbPage) & FLAG_KEY_COMPRESSION) != 0;
+    }
+
+
+    /**
+     * Sets or clears the flag that specifies whether the index file's pages
+     * use key compression.  This may only be changed while the file is
+     * empty, since existing pages are not converted to the new format.
+     *
+     * @param dbPage the header page of the index file
+     * @param keyCompressed true if the file's pages use key compression
+     */
+    public static void setKeyCompressed(DBPage dbPage, boolean keyCompressed) {
+        verifyIsHeaderPage(dbPage);
+
+        int flags = getFlags(dbPage);
+        if (keyCompressed)
+            flags |= FLAG_KEY_COMPRESSION;
+        else
+            flags &= ~FLAG_KEY_COMPRESSION;
+
+        dbPage.writeByte(getFlagsOffset(dbPage), FLAGS_SIGNATURE | flags);
+    }
+
+
     /**
      * Returns the number of bytes that the table's schema occupies for storage
      * in the header page.
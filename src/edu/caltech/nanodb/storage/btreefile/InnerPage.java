@@ -8,7 +8,9 @@ import java.util.List;
 import edu.caltech.nanodb.relations.Schema;
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.PageTuple;
@@ -28,6 +30,13 @@ import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
  * leaves and/or inner pages of the B<sup>+</sup> tree structure, are provided
  * by the {@link LeafPageOperations} and {@link InnerPageOperations} classes.
  * </p>
+ * <p>
+ * In files that use key compression, the keys that separate two leaves are
+ * truncated to the shortest key that is still greater than every tuple in
+ * the left leaf; see {@link #getSeparatorKey}.  The truncated columns are
+ * stored as <tt>NULL</tt>, which sorts before every other value, so the
+ * keys in inner pages have the same format either way.
+ * </p>
  */
 public class InnerPage implements DataPage {
     /** A logging object for reporting anything interesting that happens. */
@@ -100,6 +109,76 @@ public class InnerPage implements DataPage {
     }
 
 
+    /**
+     * Returns the shortest key that can separate two adjacent leaves, given
+     * the last tuple of the left leaf and the first tuple of the right leaf.
+     * The key is the right leaf's first tuple, with every column after the
+     * first one that differs from the left leaf's last tuple set to
+     * <tt>NULL</tt>.  If the differing column is a <tt>VARCHAR</tt>, its
+     * value is also cut down to the shortest prefix that is greater than the
+     * left tuple's value.  The resulting key is greater than the left tuple
+     * and no greater than the right tuple, so searches still reach the
+     * correct leaf.
+     *
+     * @param schema the schema of the tuples in the file
+     *
+     * @param lastLeft the last tuple in the left leaf
+     *
+     * @param firstRight the first tuple in the right leaf
+     *
+     * @return the key to store between the two leaves in their parent
+     */
+    public static TupleLiteral getSeparatorKey(Schema schema, Tuple lastLeft,
+                                               Tuple firstRight) {
+        TupleLiteral key = new TupleLiteral(firstRight);
+        int numCols = key.getColumnCount();
+
+        // Find the first column where the two tuples differ, by dropping
+        // the columns after it until the key is still greater than the left
+        // tuple.
+        int diffCol = 0;
+        while (diffCol < numCols - 1) {
+            TupleLiteral candidate = new TupleLiteral(firstRight);
+            for (int i = diffCol + 1; i < numCols; i++)
+                candidate.setColumnValue(i, null);
+
+            if (TupleComparator.compareTuples(lastLeft, candidate) < 0) {
+                key = candidate;
+                break;
+            }
+
+            diffCol++;
+        }
+
+        Object leftValue = lastLeft.getColumnValue(diffCol);
+        Object rightValue = key.getColumnValue(diffCol);
+        if (schema.getColumnInfo(diffCol).getType().getBaseType() ==
+                SQLDataType.VARCHAR &&
+            leftValue instanceof String && rightValue instanceof String) {
+
+            String leftStr = (String) leftValue;
+            String rightStr = (String) rightValue;
+
+            int common = 0;
+            while (common < leftStr.length() && common < rightStr.length() &&
+                   leftStr.charAt(common) == rightStr.charAt(common)) {
+                common++;
+            }
+
+            if (common + 1 < rightStr.length()) {
+                TupleLiteral shorter = new TupleLiteral(key);
+                shorter.setColumnValue(diffCol,
+                    rightStr.substring(0, common + 1));
+
+                if (TupleComparator.compareTuples(lastLeft, shorter) < 0)
+                    key = shorter;
+            }
+        }
+
+        return key;
+    }
+
+
     /**
      * This static helper function initializes a {@link DBPage} object's
      * contents with the type and detail values that will allow a new
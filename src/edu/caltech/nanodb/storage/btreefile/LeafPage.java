@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
 import org.apache.log4j.Logger;
@@ -31,6 +32,19 @@ import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
  * are provided by the {@link LeafPageOperations} and
  * {@link InnerPageOperations} classes.
  * </p>
+ * <p>
+ * If the tuple file uses key compression, each tuple in a leaf page is
+ * stored after a header byte holding the number of leading columns that the
+ * tuple shares with the tuple before it.  These shared columns are stored as
+ * <tt>NULL</tt>, so they take no space in the tuple's data.  If the next
+ * column is a <tt>VARCHAR</tt> that starts with some of the same characters
+ * as the previous tuple's value, the header byte's
+ * {@link #SHARED_CHARS_FLAG} bit is set and a second byte holds the number
+ * of shared characters; only the rest of the string is stored.  The first
+ * tuple in a leaf never shares anything, so that each leaf can be read on
+ * its own.  Whenever a tuple is added to or removed from the leaf, the tuple
+ * after it is stored again relative to its new predecessor.
+ * </p>
  */
 public class LeafPage implements DataPage {
     /** A logging object for reporting anything interesting that happens. */
@@ -55,6 +69,24 @@ public class LeafPage implements DataPage {
     public static final int OFFSET_FIRST_TUPLE = 5;
 
 
+    /**
+     * This bit is set in a prefix-compressed tuple's header byte if the
+     * tuple also shares some characters of the column after its shared
+     * columns.
+     */
+    public static final int SHARED_CHARS_FLAG = 0x80;
+
+
+    /**
+     * The largest number of leading columns or characters that a
+     * prefix-compressed tuple can share with the tuple before it.
+     */
+    private static final int MAX_SHARED_COLUMNS = 0x7F;
+
+
+    private static final int MAX_SHARED_CHARS = 0xFF;
+
+
     /** The actual data page that holds the B<sup>+</sup> tree leaf node. */
     private DBPage dbPage;
 
@@ -63,6 +95,10 @@ public class LeafPage implements DataPage {
     private Schema schema;
 
 
+    /** True if the tuples in the leaf page are prefix compressed. */
+    private boolean compressed;
+
+
     /** The number of tuples stored within this leaf page. */
     private int numTuples;
 
@@ -86,8 +122,9 @@ public class LeafPage implements DataPage {
      *
      * @param dbPage the data page from the B<sup>+</sup> Tree file to wrap
      * @param schema the schema of tuples stored in the data page
+     * @param compressed true if the tuples in the page are prefix compressed
      */
-    public LeafPage(DBPage dbPage, Schema schema) {
+    public LeafPage(DBPage dbPage, Schema schema, boolean compressed) {
         if (dbPage.readUnsignedByte(0) != BTREE_LEAF_PAGE) {
             throw new IllegalArgumentException("Specified DBPage " +
                 dbPage.getPageNo() + " is not marked as a leaf page.");
@@ -95,6 +132,7 @@ public class LeafPage implements DataPage {
 
         this.dbPage = dbPage;
         this.schema = schema;
+        this.compressed = compressed;
 
         loadPageContents();
     }
@@ -110,14 +148,210 @@ public class LeafPage implements DataPage {
      *
      * @param schema the schema of the tuples in the leaf page
      *
+     * @param compressed true if the tuples in the page are prefix compressed
+     *
      * @return a newly initialized {@code LeafPage} object wrapping the page
      */
-    public static LeafPage init(DBPage dbPage, Schema schema) {
+    public static LeafPage init(DBPage dbPage, Schema schema,
+                                boolean compressed) {
         dbPage.writeByte(OFFSET_PAGE_TYPE, BTREE_LEAF_PAGE);
         dbPage.writeShort(OFFSET_NUM_TUPLES, 0);
         dbPage.writeShort(OFFSET_NEXT_PAGE_NO, 0);
 
-        return new LeafPage(dbPage, schema);
+        return new LeafPage(dbPage, schema, compressed);
+    }
+
+
+    /**
+     * Returns the largest number of bytes that adding the specified tuple
+     * can take from a leaf page.  A prefix-compressed tuple may need one
+     * more byte than the tuple's data (a tuple with a two-byte header always
+     * shares at least one character), and storing the tuple never makes the
+     * tuple after it any larger.
+     *
+     * @param schema the schema of the tuples in the leaf page
+     * @param tuple the tuple that will be added
+     * @param compressed true if the tuples in the page are prefix compressed
+     *
+     * @return the largest number of bytes that the tuple can take
+     */
+    public static int getMaxTupleStorageSize(Schema schema, Tuple tuple,
+                                             boolean compressed) {
+        int size = PageTuple.getTupleStorageSize(schema, tuple);
+        if (compressed)
+            size++;
+
+        return size;
+    }
+
+
+    /**
+     * Returns the number of leading columns that a tuple shares with the
+     * tuple before it.  At least one column is never shared, and no more
+     * than 127 columns are shared, since the count is stored in 7 bits.
+     *
+     * @param prevTuple the previous tuple, or {@code null} if there is none
+     * @param tuple the tuple to compute the shared prefix of
+     *
+     * @return the number of leading columns that the tuples share
+     */
+    public static int getPrefixLength(Tuple prevTuple, Tuple tuple) {
+        if (prevTuple == null)
+            return 0;
+
+        int maxLength = Math.min(MAX_SHARED_COLUMNS, tuple.getColumnCount() - 1);
+
+        int i = 0;
+        while (i < maxLength) {
+            Object prevValue = prevTuple.getColumnValue(i);
+            Object value = tuple.getColumnValue(i);
+
+            if (prevValue == null) {
+                if (value != null)
+                    break;
+            }
+            else if (!prevValue.equals(value)) {
+                break;
+            }
+
+            i++;
+        }
+
+        return i;
+    }
+
+
+    /**
+     * Returns the number of leading characters that a tuple shares with the
+     * tuple before it, in the first column that isn't shared.  This is only
+     * nonzero if the column is a <tt>VARCHAR</tt>.
+     *
+     * @param schema the schema of the tuples in the leaf page
+     * @param prevTuple the previous tuple, or {@code null} if there is none
+     * @param tuple the tuple to compute the shared prefix of
+     * @param prefixLength the number of leading columns that the tuples
+     *        share
+     *
+     * @return the number of leading characters that the tuples share
+     */
+    public static int getSharedChars(Schema schema, Tuple prevTuple,
+                                     Tuple tuple, int prefixLength) {
+        if (prevTuple == null || prefixLength >= tuple.getColumnCount() ||
+            schema.getColumnInfo(prefixLength).getType().getBaseType() !=
+                SQLDataType.VARCHAR) {
+            return 0;
+        }
+
+        Object prevValue = prevTuple.getColumnValue(prefixLength);
+        Object value = tuple.getColumnValue(prefixLength);
+        if (!(prevValue instanceof String) || !(value instanceof String))
+            return 0;
+
+        String prevStr = (String) prevValue;
+        String str = (String) value;
+        int maxChars = Math.min(MAX_SHARED_CHARS,
+            Math.min(prevStr.length(), str.length()));
+
+        int i = 0;
+        while (i < maxChars && prevStr.charAt(i) == str.charAt(i))
+            i++;
+
+        return i;
+    }
+
+
+    /**
+     * Returns the size of a prefix-compressed tuple's header, given the
+     * offset of the tuple in the page.
+     *
+     * @param dbPage the page that holds the tuple
+     * @param pageOffset the offset of the tuple's header
+     *
+     * @return the number of bytes in the tuple's header
+     */
+    public static int getCompressedHeaderSize(DBPage dbPage, int pageOffset) {
+        int header = dbPage.readUnsignedByte(pageOffset);
+        return ((header & SHARED_CHARS_FLAG) != 0) ? 2 : 1;
+    }
+
+
+    /**
+     * Returns the tuple whose data is stored for a prefix-compressed tuple,
+     * with the shared leading columns set to <tt>NULL</tt>, and the shared
+     * characters removed from the next column.
+     */
+    private static Tuple getStoredSuffix(Tuple tuple, int prefixLength,
+                                         int sharedChars) {
+        if (prefixLength == 0 && sharedChars == 0)
+            return tuple;
+
+        TupleLiteral suffix = new TupleLiteral(tuple);
+        for (int i = 0; i < prefixLength; i++)
+            suffix.setColumnValue(i, null);
+
+        if (sharedChars > 0) {
+            String value = (String) tuple.getColumnValue(prefixLength);
+            suffix.setColumnValue(prefixLength, value.substring(sharedChars));
+        }
+
+        return suffix;
+    }
+
+
+    /**
+     * Returns the number of bytes needed to store a tuple in a
+     * prefix-compressed leaf page, after the specified tuple.
+     *
+     * @param schema the schema of the tuples in the leaf page
+     * @param prevTuple the tuple that will be before this tuple in the page,
+     *        or {@code null} if this will be the first tuple in the page
+     * @param tuple the tuple to store
+     *
+     * @return the number of bytes needed to store the tuple
+     */
+    public static int getCompressedStorageSize(Schema schema, Tuple prevTuple,
+                                               Tuple tuple) {
+        int prefixLength = getPrefixLength(prevTuple, tuple);
+        int sharedChars = getSharedChars(schema, prevTuple, tuple, prefixLength);
+        int headerSize = (sharedChars > 0) ? 2 : 1;
+
+        return headerSize + PageTuple.getTupleStorageSize(schema,
+            getStoredSuffix(tuple, prefixLength, sharedChars));
+    }
+
+
+    /**
+     * Stores a tuple into a prefix-compressed leaf page at the specified
+     * offset, sharing as many leading columns as possible with the tuple
+     * that will be before it.
+     *
+     * @param dbPage the page to store the tuple in
+     * @param pageOffset the offset to store the tuple at
+     * @param schema the schema of the tuples in the leaf page
+     * @param prevTuple the tuple that will be before this tuple in the page,
+     *        or {@code null} if this will be the first tuple in the page
+     * @param tuple the tuple to store
+     *
+     * @return the offset just past the stored tuple
+     */
+    public static int storeCompressedTuple(DBPage dbPage, int pageOffset,
+        Schema schema, Tuple prevTuple, Tuple tuple) {
+
+        int prefixLength = getPrefixLength(prevTuple, tuple);
+        int sharedChars = getSharedChars(schema, prevTuple, tuple, prefixLength);
+
+        if (sharedChars > 0) {
+            dbPage.writeByte(pageOffset, prefixLength | SHARED_CHARS_FLAG);
+            dbPage.writeByte(pageOffset + 1, sharedChars);
+            pageOffset += 2;
+        }
+        else {
+            dbPage.writeByte(pageOffset, prefixLength);
+            pageOffset++;
+        }
+
+        return PageTuple.storeTuple(dbPage, pageOffset, schema,
+            getStoredSuffix(tuple, prefixLength, sharedChars));
     }
 
 
@@ -130,7 +364,19 @@ public class LeafPage implements DataPage {
         numTuples = dbPage.readUnsignedShort(OFFSET_NUM_TUPLES);
         tuples = new ArrayList<BTreeFilePageTuple>(numTuples);
 
-        if (numTuples > 0) {
+        if (compressed) {
+            // Each tuple's shared columns come from the tuple before it.
+            BTreeFilePageTuple tuple = null;
+            int offset = OFFSET_FIRST_TUPLE;
+            for (int i = 0; i < numTuples; i++) {
+                tuple = new BTreeFilePageTuple(schema, dbPage, offset, i, tuple);
+                tuples.add(tuple);
+                offset = tuple.getEndOffset();
+            }
+
+            endOffset = offset;
+        }
+        else if (numTuples > 0) {
             // Handle first tuple separately since we know its offset.
 
             BTreeFilePageTuple tuple =
@@ -290,6 +536,103 @@ public class LeafPage implements DataPage {
     }
 
 
+    /**
+     * Returns the number of bytes that the tuple at the specified index
+     * would grow by if it became the first tuple in a leaf page, because it
+     * could no longer share any columns with a previous tuple.  This is
+     * always 0 if the page isn't prefix compressed.
+     *
+     * @param index the index of the tuple
+     *
+     * @return the number of bytes the tuple would grow by
+     */
+    public int getFirstTupleGrowth(int index) {
+        if (!compressed)
+            return 0;
+
+        BTreeFilePageTuple tuple = getTuple(index);
+        return 1 + PageTuple.getTupleStorageSize(schema, tuple) -
+            getTupleSize(index);
+    }
+
+
+    /**
+     * Returns copies of the tuples in the specified range of this page.
+     */
+    private List<Tuple> copyTuples(int startIndex, int endIndex) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>(endIndex - startIndex);
+        for (int i = startIndex; i < endIndex; i++)
+            result.add(new TupleLiteral(tuples.get(i)));
+
+        return result;
+    }
+
+
+    /**
+     * This private helper replaces the tuples in the range
+     * [{@code startIndex}, {@code endIndex}) of a prefix-compressed page
+     * with the specified tuples, which are stored relative to the tuple
+     * before the range.  Since tuples after the range are stored relative
+     * to their predecessors, the range must include the tuple after any
+     * tuple being added or removed, and the new tuples must not be backed by
+     * this page.
+     *
+     * @param startIndex the index of the first tuple to replace
+     * @param endIndex the index just past the last tuple to replace
+     * @param newTuples the tuples to store in place of the range
+     *
+     * @throws IllegalArgumentException if the new tuples don't fit in the
+     *         page
+     */
+    private void replaceTuples(int startIndex, int endIndex,
+                               List<Tuple> newTuples) {
+        assert compressed;
+
+        // Work out how much space the new tuples need before moving any
+        // data, since the existing tuples read their values from the page.
+        Tuple prevTuple = (startIndex > 0) ? tuples.get(startIndex - 1) : null;
+        int newLen = 0;
+        Tuple prev = prevTuple;
+        for (Tuple tuple : newTuples) {
+            newLen += getCompressedStorageSize(schema, prev, tuple);
+            prev = tuple;
+        }
+
+        int startOffset = (startIndex < numTuples) ?
+            tuples.get(startIndex).getOffset() : endOffset;
+        int oldEndOffset = (endIndex < numTuples) ?
+            tuples.get(endIndex).getOffset() : endOffset;
+
+        int newEndOffset = endOffset + newLen - (oldEndOffset - startOffset);
+        if (newEndOffset > dbPage.getPageSize()) {
+            throw new IllegalArgumentException(String.format(
+                "Not enough space in leaf page %d to store the tuples " +
+                "(%d bytes free; %d bytes required)", getPageNo(),
+                getFreeSpace(), newEndOffset - endOffset));
+        }
+
+        if (endOffset > oldEndOffset) {
+            dbPage.moveDataRange(oldEndOffset, startOffset + newLen,
+                                 endOffset - oldEndOffset);
+        }
+
+        int offset = startOffset;
+        prev = prevTuple;
+        for (Tuple tuple : newTuples) {
+            offset = storeCompressedTuple(dbPage, offset, schema, prev, tuple);
+            prev = tuple;
+        }
+
+        if (BTreeTupleFile.CLEAR_OLD_DATA && newEndOffset < endOffset)
+            dbPage.setDataRange(newEndOffset, endOffset - newEndOffset, (byte) 0);
+
+        dbPage.writeShort(OFFSET_NUM_TUPLES,
+            numTuples - (endIndex - startIndex) + newTuples.size());
+
+        loadPageContents();
+    }
+
+
     /**
      * Given a leaf page in the B<sup>+</sup> tree file, returns the page
      * number of the left sibling, or -1 if there is no left sibling to this
@@ -345,14 +688,19 @@ public class LeafPage implements DataPage {
     /**
      * Given a leaf page in the B<sup>+</sup> tree file, returns the page
      * number of the right sibling, or -1 if there is no right sibling to
-     * this node.
+     * this node.  Like the left sibling, the right sibling must have the
+     * same parent as this leaf, so the next leaf in the file is not
+     * reported if this leaf is the last child of its parent.
      *
      * @param pagePath the page path from root to this leaf page
+     * @param innerOps the inner page ops that allows this method to
+     *        load inner pages and navigate the tree
      *
      * @return the page number of the right sibling leaf-node, or -1 if there
      *         is no right sibling
      */
-    public int getRightSibling(List<Integer> pagePath) throws IOException {
+    public int getRightSibling(List<Integer> pagePath,
+        InnerPageOperations innerOps) throws IOException {
 
         // Verify that the last node in the page path is in fact this page.
         if (pagePath.get(pagePath.size() - 1) != getPageNo()) {
@@ -360,9 +708,26 @@ public class LeafPage implements DataPage {
                 "The page path provided does not terminate on this leaf page.");
         }
 
-        int rightSiblingPageNo = getNextPageNo();
-        if (rightSiblingPageNo == 0)
-            rightSiblingPageNo = -1;
+        // If this leaf doesn't have a parent, we already know it doesn't
+        // have a sibling.
+        if (pagePath.size() <= 1)
+            return -1;
+
+        int parentPageNo = pagePath.get(pagePath.size() - 2);
+        InnerPage inner = innerOps.loadPage(parentPageNo);
+
+        int pageIndex = inner.getIndexOfPointer(getPageNo());
+        if (pageIndex == -1) {
+            throw new IllegalStateException(String.format(
+                    "Leaf node %d doesn't appear in parent inner node %d!",
+                    getPageNo(), parentPageNo));
+        }
+
+        int rightSiblingIndex = pageIndex + 1;
+        int rightSiblingPageNo = -1;
+
+        if (rightSiblingIndex < inner.getNumPointers())
+            rightSiblingPageNo = inner.getPointer(rightSiblingIndex);
 
         return rightSiblingPageNo;
     }
@@ -417,6 +782,14 @@ public class LeafPage implements DataPage {
                 " does not appear in leaf page " + getPageNo());
         }
 
+        if (compressed) {
+            // The tuple after the deleted one must be stored relative to
+            // its new predecessor.
+            int endIndex = Math.min(index + 2, numTuples);
+            replaceTuples(index, endIndex, copyTuples(index + 1, endIndex));
+            return;
+        }
+
         int tupleOffset = getTuple(index).getOffset();
         int len = getTupleSize(index);
 
@@ -531,6 +904,16 @@ public class LeafPage implements DataPage {
 
         logger.debug("New tuple's storage size is " + len + " bytes");
 
+        if (compressed) {
+            // The tuple that the new tuple is inserted in front of must be
+            // stored relative to the new tuple.
+            int endIndex = Math.min(index + 1, numTuples);
+            List<Tuple> newTuples = copyTuples(index, endIndex);
+            newTuples.add(0, newTuple);
+            replaceTuples(index, endIndex, newTuples);
+            return getTuple(index);
+        }
+
         int tupleOffset;
         if (index < numTuples) {
             // Need to slide tuples after this index over, to make space.
@@ -608,14 +991,30 @@ public class LeafPage implements DataPage {
                 numTuples + "), got " + count);
         }
 
+        if (compressed) {
+            // The moved tuples are stored relative to the left sibling's
+            // last tuple, and this page's new first tuple must be stored in
+            // full.
+            int endIndex = Math.min(count + 1, numTuples);
+            List<Tuple> movedTuples = copyTuples(0, count);
+            List<Tuple> remaining = copyTuples(count, endIndex);
+
+            leftSibling.replaceTuples(leftSibling.numTuples,
+                leftSibling.numTuples, movedTuples);
+            replaceTuples(0, endIndex, remaining);
+            return;
+        }
+
         int moveEndOffset = getTuple(count - 1).getEndOffset(); //getTuple(count).getOffset()
         int len = moveEndOffset - OFFSET_FIRST_TUPLE;
 
         // Copy the range of tuple-data to the destination page.  Then update
         // the count of tuples in the destination page.
         // Don't need to move any data in the left sibling; we are appending!
-        leftSibling.dbPage.write(leftSibling.endOffset, dbPage.getPageData(),
-            OFFSET_FIRST_TUPLE, len);          // Copy the tuple-data across
+        byte[] tupleData = new byte[len];
+        dbPage.read(OFFSET_FIRST_TUPLE, tupleData);
+        leftSibling.dbPage.write(leftSibling.endOffset,
+            tupleData);                        // Copy the tuple-data across
         leftSibling.dbPage.writeShort(OFFSET_NUM_TUPLES,
             leftSibling.numTuples + count);    // Update the tuple-count
 
@@ -661,6 +1060,19 @@ public class LeafPage implements DataPage {
                 numTuples + "), got " + count);
         }
 
+        if (compressed) {
+            // The first moved tuple must be stored in full, and the right
+            // sibling's old first tuple is stored relative to the last moved
+            // tuple.
+            int rightEndIndex = Math.min(1, rightSibling.numTuples);
+            List<Tuple> movedTuples = copyTuples(numTuples - count, numTuples);
+            movedTuples.addAll(rightSibling.copyTuples(0, rightEndIndex));
+
+            rightSibling.replaceTuples(0, rightEndIndex, movedTuples);
+            replaceTuples(numTuples - count, numTuples, new ArrayList<Tuple>());
+            return;
+        }
+
         int startOffset = getTuple(numTuples - count).getOffset();
         int len = endOffset - startOffset;
 
@@ -673,8 +1085,9 @@ public class LeafPage implements DataPage {
             rightSibling.endOffset - OFFSET_FIRST_TUPLE);
 
         // Copy the tuple-data across
-        rightSibling.dbPage.write(OFFSET_FIRST_TUPLE, dbPage.getPageData(),
-            startOffset, len);
+        byte[] tupleData = new byte[len];
+        dbPage.read(startOffset, tupleData);
+        rightSibling.dbPage.write(OFFSET_FIRST_TUPLE, tupleData);
 
         // Update the tuple-count
         rightSibling.dbPage.writeShort(OFFSET_NUM_TUPLES,
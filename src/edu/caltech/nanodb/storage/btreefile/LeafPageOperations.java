@@ -70,7 +70,32 @@ public class LeafPageOperations {
 
         DBFile dbFile = tupleFile.getDBFile();
         DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
-        return new LeafPage(dbPage, tupleFile.getSchema());
+        return new LeafPage(dbPage, tupleFile.getSchema(),
+                            tupleFile.isKeyCompressed());
+    }
+
+
+    /**
+     * This helper function returns the key that should be stored in the
+     * parent page between two adjacent leaves.  This is the first tuple of
+     * the right leaf, unless the file uses key compression, in which case
+     * the key is truncated as much as the last tuple of the left leaf
+     * allows.
+     *
+     * @param leftLeaf the left leaf of the pair
+     *
+     * @param rightLeaf the right leaf of the pair
+     *
+     * @return the key to store between the two leaves
+     */
+    private Tuple getSeparatorKey(LeafPage leftLeaf, LeafPage rightLeaf) {
+        Tuple firstRightTuple = rightLeaf.getTuple(0);
+        if (!tupleFile.isKeyCompressed())
+            return firstRightTuple;
+
+        Tuple lastLeftTuple = leftLeaf.getTuple(leftLeaf.getNumTuples() - 1);
+        return InnerPage.getSeparatorKey(tupleFile.getSchema(),
+            lastLeftTuple, firstRightTuple);
     }
 
 
@@ -128,10 +153,8 @@ public class LeafPageOperations {
 
         int leafPageNo = leaf.getPageNo();
 
-        // Leaf pages know their right sibling, so that's why finding the
-        // right page doesn't require the innerPageOps object.
         int leftPageNo = leaf.getLeftSibling(pagePath, innerPageOps);
-        int rightPageNo = leaf.getRightSibling(pagePath);
+        int rightPageNo = leaf.getRightSibling(pagePath, innerPageOps);
 
         logger.debug(String.format("Leaf page %d is too empty.  Left " +
             "sibling is %d, right sibling is %d.", leafPageNo, leftPageNo,
@@ -204,7 +227,9 @@ public class LeafPageOperations {
                  rightSibling.getUsedSpace() + leaf.getSpaceUsedByTuples() <
                  rightSibling.getTotalSpace()) {
 
-            // Coalesce the current node into the right sibling.
+            // Coalesce the right sibling into the current node.  (The
+            // leaf that points to this one may have a different parent, so
+            // it's easier to keep this leaf and remove the right sibling.)
             logger.debug("Delete from leaf " + leaf.getPageNo() +
                 ":  coalescing with right sibling leaf.");
 
@@ -212,27 +237,26 @@ public class LeafPageOperations {
                 "tuples and right sibling has %d tuples.",
                 leaf.getNumTuples(), rightSibling.getNumTuples()));
 
-            leaf.moveTuplesRight(rightSibling, leaf.getNumTuples());
-            leftSibling.setNextPageNo(rightPageNo);
+            rightSibling.moveTuplesLeft(leaf, rightSibling.getNumTuples());
+            leaf.setNextPageNo(rightSibling.getNextPageNo());
 
             logger.debug(String.format("After coalesce-right, page has %d " +
                 "tuples and right sibling has %d tuples.",
                 leaf.getNumTuples(), rightSibling.getNumTuples()));
 
-            // Free up the leaf page since it's empty now
-            fileOps.releaseDataPage(leaf.getDBPage());
+            // Free up the right sibling since it's empty now
+            fileOps.releaseDataPage(rightSibling.getDBPage());
 
-            // Since the leaf page has been removed from the index structure,
-            // we need to remove it from the parent page.  Also, since the
-            // page was coalesced into its right sibling, we need to remove
-            // the tuple to the right of the pointer being removed.
+            // Since the right sibling has been removed from the index
+            // structure, we need to remove it from the parent page, along
+            // with the tuple to the left of the pointer being removed.
 
             InnerPage parent =
                 innerPageOps.loadPage(pagePath.get(pagePath.size() - 2));
 
             List<Integer> parentPagePath = pagePath.subList(0, pagePath.size() - 1);
-            innerPageOps.deletePointer(parent, parentPagePath, leafPageNo,
-                /* remove right tuple */ true);
+            innerPageOps.deletePointer(parent, parentPagePath, rightPageNo,
+                /* remove right tuple */ false);
         }
         else {
             // Can't coalesce the leaf node into either sibling.  Redistribute
@@ -342,8 +366,7 @@ public class LeafPageOperations {
         // Figure out where the new tuple-value goes in the leaf page.
 
         int newTupleSize = newTuple.getStorageSize();
-        // TODO: undo this
-        if (leaf.getFreeSpace() < newTupleSize || leaf.getNumTuples() >= 4) {
+        if (leaf.getFreeSpace() < newTupleSize) {
             // Try to relocate tuples from this leaf to either sibling,
             // or if that can't happen, split the leaf page into two.
             result = relocateTuplesAndAddTuple(leaf, pagePath, newTuple);
@@ -448,10 +471,10 @@ public class LeafPageOperations {
                     // Since we relocated tuples between two nodes, update
                     // the parent page to reflect the tuple that is now at
                     // the start of the right page.
-                    BTreeFilePageTuple firstRightTuple = page.getTuple(0);
+                    Tuple separatorKey = getSeparatorKey(prevPage, page);
                     pagePath.remove(pathSize - 1);
                     innerPageOps.replaceTuple(parentPage, pagePath,
-                        prevPage.getPageNo(), firstRightTuple, page.getPageNo());
+                        prevPage.getPageNo(), separatorKey, page.getPageNo());
 
                     return result;
                 }
@@ -499,10 +522,10 @@ public class LeafPageOperations {
                     // Since we relocated tuples between two nodes, update
                     // the parent page to reflect the tuple that is now at
                     // the start of the right page.
-                    BTreeFilePageTuple firstRightTuple = nextPage.getTuple(0);
+                    Tuple separatorKey = getSeparatorKey(page, nextPage);
                     pagePath.remove(pathSize - 1);
                     innerPageOps.replaceTuple(parentPage, pagePath,
-                        page.getPageNo(), firstRightTuple, nextPage.getPageNo());
+                        page.getPageNo(), separatorKey, nextPage.getPageNo());
 
                     return result;
                 }
@@ -610,8 +633,18 @@ public class LeafPageOperations {
 
             logger.debug("Tuple " + index + " is " + tupleSize + " bytes");
 
+            // With key compression, the tuple that ends up first in its leaf
+            // must be stored in full.  When moving right, that is the last
+            // tuple we move; when moving left, it is the tuple after it.
+            int leafGrowth = 0;
+            int adjGrowth = 0;
+            if (movingRight)
+                adjGrowth = leaf.getFirstTupleGrowth(index);
+            else if (index + 1 < numTuples)
+                leafGrowth = leaf.getFirstTupleGrowth(index + 1);
+
             // Did we run out of space to move tuples before we hit our goal?
-            if (adjBytesFree < tupleSize) {
+            if (adjBytesFree < tupleSize + adjGrowth) {
                 numRelocated = 0;
                 break;
             }
@@ -623,8 +656,8 @@ public class LeafPageOperations {
 
             // Since we don't yet know which leaf the new tuple will go into,
             // stop when we can put the tuple in either leaf.
-            if (leafBytesFree >= bytesRequired &&
-                adjBytesFree >= bytesRequired) {
+            if (leafBytesFree - leafGrowth >= bytesRequired &&
+                adjBytesFree - adjGrowth >= bytesRequired) {
                 break;
             }
         }
@@ -674,7 +707,8 @@ public class LeafPageOperations {
         // leaf-page we were handed.
 
         DBPage newDBPage = fileOps.getNewDataPage();
-        LeafPage newLeaf = LeafPage.init(newDBPage, tupleFile.getSchema());
+        LeafPage newLeaf = LeafPage.init(newDBPage, tupleFile.getSchema(),
+                                         tupleFile.isKeyCompressed());
 
 
 
@@ -700,7 +734,7 @@ public class LeafPageOperations {
         BTreeFilePageTuple res = addTupleToLeafPair(leaf, newLeaf, tuple);
 
         assert (newLeaf.getNumTuples() > 0);
-        Tuple newParentKey = newLeaf.getTuple(0);
+        Tuple newParentKey = getSeparatorKey(leaf, newLeaf);
 
         // If the current node doesn't have a parent, it's because it's
         // currently the root.
@@ -796,9 +830,16 @@ public class LeafPageOperations {
 
             logger.debug("Tuple " + index + " is " + tupleSize + " bytes");
 
+            // When moving right, the last tuple moved becomes the first
+            // tuple of this node, and must be stored in full if the tuples
+            // are prefix compressed.
+            int growth = 0;
+            if (movingRight)
+                growth = adjLeaf.getFirstTupleGrowth(index);
+
             // If we don't have room to move the adjacent node's tuple into
             // this node (unlikely), just stop there.
-            if (leafBytesFree < tupleSize)
+            if (leafBytesFree < tupleSize + growth)
                 break;
 
             // If the adjacent leaf would become too empty, stop relocating.
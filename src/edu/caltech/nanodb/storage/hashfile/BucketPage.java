@@ -0,0 +1,71 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.heapfile.DataPage;
+
+
+/**
+ * This class provides the operations for manipulating the pages that hold a
+ * hash file's buckets.  Bucket pages use the same slotted-page structure as
+ * the data pages of heap files, so the slots and tuple data are managed with
+ * the {@link DataPage} class.  The last two bytes of the page, which heap
+ * files use for their free list, hold the page number of the bucket's next
+ * overflow page, or 0 if the page is the last page of its bucket.
+ * <p>
+ * Pages in the hash file's list of empty pages are also bucket pages with
+ * no tuples, and are linked through the same field.
+ */
+public class BucketPage {
+
+    /**
+     * Initialize a newly allocated bucket page, so that it holds no tuples
+     * and has no overflow page.
+     *
+     * @param dbPage the bucket page to initialize
+     */
+    public static void initNewPage(DBPage dbPage) {
+        DataPage.initNewPage(dbPage);
+    }
+
+
+    /**
+     * Returns the page number of the overflow page that follows this page
+     * in its bucket, or 0 if this is the last page of the bucket.
+     *
+     * @param dbPage the bucket page to examine
+     * @return the page number of the next page in the bucket, or 0
+     */
+    public static int getOverflowPageNo(DBPage dbPage) {
+        return dbPage.readUnsignedShort(DataPage.getTupleDataEnd(dbPage));
+    }
+
+
+    /**
+     * Sets the page number of the overflow page that follows this page in
+     * its bucket.
+     *
+     * @param dbPage the bucket page to update
+     * @param pageNo the page number of the next page in the bucket, or 0 if
+     *        this is the last page of the bucket
+     */
+    public static void setOverflowPageNo(DBPage dbPage, int pageNo) {
+        if (pageNo < 0) {
+            throw new IllegalArgumentException(
+                "pageNo must be >= 0; got " + pageNo);
+        }
+
+        dbPage.writeShort(DataPage.getTupleDataEnd(dbPage), pageNo);
+    }
+
+
+    /**
+     * Returns true if the bucket page holds no tuples.
+     *
+     * @param dbPage the bucket page to examine
+     * @return true if the page holds no tuples, false otherwise
+     */
+    public static boolean isEmpty(DBPage dbPage) {
+        return DataPage.getNumSlots(dbPage) == 0;
+    }
+}
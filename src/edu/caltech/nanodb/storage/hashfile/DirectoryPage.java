@@ -0,0 +1,111 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import edu.caltech.nanodb.storage.DBPage;
+
+
+/**
+ * This class provides the operations for manipulating the pages of a hash
+ * file's bucket directory, which maps each bucket number to the page number
+ * of the bucket's first page.  Buckets are created as the file grows, and
+ * their pages are allocated wherever there is room in the file, so the
+ * mapping has to be stored explicitly.
+ * <p>
+ * The directory is a chain of pages.  Each directory page starts with the
+ * page number of the next directory page (unsigned short, 0 for the last
+ * page), followed by the page numbers of as many consecutive buckets as
+ * will fit (unsigned shorts).
+ */
+public class DirectoryPage {
+
+    /**
+     * The offset in a directory page where the page number of the next
+     * directory page is stored.
+     */
+    public static final int OFFSET_NEXT_PAGE_NO = 0;
+
+
+    /** The offset in a directory page where the bucket entries start. */
+    public static final int OFFSET_ENTRIES = 2;
+
+
+    /**
+     * Initialize a newly allocated directory page, so that it has no next
+     * page and all of its entries are 0.
+     *
+     * @param dbPage the directory page to initialize
+     */
+    public static void initNewPage(DBPage dbPage) {
+        dbPage.setDataRange(0, dbPage.getPageSize(), (byte) 0);
+    }
+
+
+    /**
+     * Returns the number of bucket entries that each directory page holds.
+     *
+     * @param pageSize the page size of the hash file
+     * @return the number of bucket entries per directory page
+     */
+    public static int getEntriesPerPage(int pageSize) {
+        return (pageSize - OFFSET_ENTRIES) / 2;
+    }
+
+
+    /**
+     * Returns the page number of the next directory page, or 0 if this is
+     * the last page of the directory.
+     *
+     * @param dbPage the directory page to examine
+     * @return the page number of the next directory page, or 0
+     */
+    public static int getNextPageNo(DBPage dbPage) {
+        return dbPage.readUnsignedShort(OFFSET_NEXT_PAGE_NO);
+    }
+
+
+    /**
+     * Sets the page number of the next directory page.
+     *
+     * @param dbPage the directory page to update
+     * @param pageNo the page number of the next directory page, or 0
+     */
+    public static void setNextPageNo(DBPage dbPage, int pageNo) {
+        dbPage.writeShort(OFFSET_NEXT_PAGE_NO, pageNo);
+    }
+
+
+    /**
+     * Returns the page number of the first page of a bucket.
+     *
+     * @param dbPage the directory page that holds the bucket's entry
+     * @param index the index of the bucket's entry within this page
+     *
+     * @return the page number of the bucket's first page
+     */
+    public static int getBucketPageNo(DBPage dbPage, int index) {
+        checkIndex(dbPage, index);
+        return dbPage.readUnsignedShort(OFFSET_ENTRIES + 2 * index);
+    }
+
+
+    /**
+     * Sets the page number of the first page of a bucket.
+     *
+     * @param dbPage the directory page that holds the bucket's entry
+     * @param index the index of the bucket's entry within this page
+     * @param pageNo the page number of the bucket's first page
+     */
+    public static void setBucketPageNo(DBPage dbPage, int index, int pageNo) {
+        checkIndex(dbPage, index);
+        dbPage.writeShort(OFFSET_ENTRIES + 2 * index, pageNo);
+    }
+
+
+    private static void checkIndex(DBPage dbPage, int index) {
+        int numEntries = getEntriesPerPage(dbPage.getPageSize());
+        if (index < 0 || index >= numEntries) {
+            throw new IllegalArgumentException("Valid entries are in range " +
+                "[0," + numEntries + ").  Got " + index);
+        }
+    }
+}
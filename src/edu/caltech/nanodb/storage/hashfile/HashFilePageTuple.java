@@ -0,0 +1,82 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.heapfile.DataPage;
+
+
+/**
+ * This class represents a tuple stored in a bucket page of a linear-hashing
+ * tuple file.  Bucket pages are slotted pages, so the tuple is identified by
+ * its page and slot.
+ */
+public class HashFilePageTuple extends PageTuple {
+    /** The slot that this tuple corresponds to. */
+    private int slot;
+
+
+    /**
+     * Construct a new tuple object that is backed by the data in the bucket
+     * page.
+     *
+     * @param schema the schema of the tuple file the page is a part of
+     *
+     * @param dbPage the bucket page that holds the tuple
+     *
+     * @param slot the slot number of the tuple
+     *
+     * @param pageOffset the offset of the tuple's actual data in the page
+     */
+    public HashFilePageTuple(Schema schema, DBPage dbPage, int slot,
+                             int pageOffset) {
+        super(dbPage, pageOffset, schema);
+
+        if (slot < 0) {
+            throw new IllegalArgumentException(
+                "slot must be nonnegative; got " + slot);
+        }
+
+        this.slot = slot;
+    }
+
+
+    /**
+     * This method returns an external reference to the tuple, which references
+     * the page number and slot-offset of the tuple.
+     *
+     * @return a file-pointer that can be used to look up this tuple
+     */
+    public FilePointer getExternalReference() {
+        return new FilePointer(getDBPage().getPageNo(),
+                               DataPage.getSlotOffset(slot));
+    }
+
+
+    protected void insertTupleDataRange(int off, int len) {
+        DataPage.insertTupleDataRange(this.getDBPage(), off, len);
+    }
+
+
+    protected void deleteTupleDataRange(int off, int len) {
+        DataPage.deleteTupleDataRange(this.getDBPage(), off, len);
+    }
+
+
+    public int getSlot() {
+        return slot;
+    }
+
+
+    public static HashFilePageTuple storeNewTuple(Schema schema,
+        DBPage dbPage, int slot, int pageOffset, Tuple tuple) {
+
+        PageTuple.storeTuple(dbPage, pageOffset, schema, tuple);
+
+        return new HashFilePageTuple(schema, dbPage, slot, pageOffset);
+    }
+}
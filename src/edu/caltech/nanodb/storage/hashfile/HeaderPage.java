@@ -0,0 +1,355 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+
+
+/**
+ * This class manipulates the header page for a linear-hashing tuple file.
+ * The header page has the following structure:
+ *
+ * <ul>
+ *   <li><u>Byte 0:</u>  {@link DBFileType#HASH_TUPLE_FILE} (unsigned byte)</li>
+ *   <li><u>Byte 1:</u>  page size  <i>p</i> (unsigned byte) - file's page
+ *       size is <i>P</i> = 2<sup>p</sup></li>
+ *   <li><u>Byte 2:</u>  the current level of the hash file (unsigned
+ *       byte)</li>
+ *   <li><u>Byte 4-7:</u>  the next bucket to be split (int)</li>
+ *   <li><u>Byte 8-9:</u>  the first page of the bucket directory (unsigned
+ *       short)</li>
+ *   <li><u>Byte 10-11:</u>  the first page in the list of empty pages
+ *       (unsigned short)</li>
+ *   <li><u>Byte 12-15:</u>  the number of tuples in the file (int)</li>
+ *   <li><u>Byte 16-19:</u>  the number of bytes of tuple data in the file,
+ *       including slots (int)</li>
+ *   <li><u>Byte 20-23:</u>  the sizes of the schema and the statistics
+ *       (unsigned shorts)</li>
+ *   <li>Byte 24-M:  the file's schema, followed by its statistics</li>
+ * </ul>
+ */
+public class HeaderPage {
+
+    /**
+     * The offset in the header page where the file's level is stored.  At
+     * level <i>L</i>, the file has between <i>N</i>&times;2<sup>L</sup> and
+     * <i>N</i>&times;2<sup>L+1</sup> buckets, where <i>N</i> is the initial
+     * number of buckets.  This value is an unsigned byte.
+     */
+    public static final int OFFSET_LEVEL = 2;
+
+
+    /**
+     * The offset in the header page where the number of the next bucket to
+     * be split is stored.  This value is an int.
+     */
+    public static final int OFFSET_SPLIT_BUCKET = 4;
+
+
+    /**
+     * The offset in the header page where the page number of the first page
+     * of the bucket directory is stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_FIRST_DIRECTORY_PAGE = 8;
+
+
+    /**
+     * The offset in the header page where the page number of the first empty
+     * page in the free list is stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_FIRST_EMPTY_PAGE = 10;
+
+
+    /**
+     * The offset in the header page where the number of tuples in the file
+     * is stored.  This value is an int.
+     */
+    public static final int OFFSET_NUM_TUPLES = 12;
+
+
+    /**
+     * The offset in the header page where the total size of the tuples in
+     * the file is stored.  This value is an int, and is used to decide when
+     * the next bucket should be split.
+     */
+    public static final int OFFSET_DATA_SIZE = 16;
+
+
+    /**
+     * The offset in the header page where the length of the file's schema is
+     * stored.  The statistics follow immediately after the schema.
+     */
+    public static final int OFFSET_SCHEMA_SIZE = 20;
+
+
+    /**
+     * The offset in the header page where the size of the table statistics
+     * is stored.
+     */
+    public static final int OFFSET_STATS_SIZE = 22;
+
+
+    /**
+     * The offset in the header page where the file's schema is stored.
+     */
+    public static final int OFFSET_SCHEMA_START = 24;
+
+
+    /**
+     * This helper method simply verifies that the data page provided to the
+     * <tt>HeaderPage</tt> class is in fact a header-page (i.e. page 0 in the
+     * data file).
+     *
+     * @param dbPage the page to check
+     *
+     * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
+     *         if it's not actually page 0 in the table file
+     */
+    private static void verifyIsHeaderPage(DBPage dbPage) {
+        if (dbPage == null)
+            throw new IllegalArgumentException("dbPage cannot be null");
+
+        if (dbPage.getPageNo() != 0) {
+            throw new IllegalArgumentException(
+                "Page 0 is the header page in this storage format; was given page " +
+                    dbPage.getPageNo());
+        }
+    }
+
+
+    /**
+     * Returns the current level of the hash file.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the current level of the hash file
+     */
+    public static int getLevel(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedByte(OFFSET_LEVEL);
+    }
+
+
+    /**
+     * Sets the current level of the hash file.
+     *
+     * @param dbPage the header page of the hash file
+     * @param level the new level of the hash file
+     */
+    public static void setLevel(DBPage dbPage, int level) {
+        verifyIsHeaderPage(dbPage);
+
+        if (level < 0 || level > 255) {
+            throw new IllegalArgumentException(
+                "level must be in the range [0, 255]; got " + level);
+        }
+
+        dbPage.writeByte(OFFSET_LEVEL, level);
+    }
+
+
+    /**
+     * Returns the number of the bucket that will be split next.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the number of the bucket that will be split next
+     */
+    public static int getSplitBucket(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_SPLIT_BUCKET);
+    }
+
+
+    /**
+     * Sets the number of the bucket that will be split next.
+     *
+     * @param dbPage the header page of the hash file
+     * @param bucket the number of the bucket that will be split next
+     */
+    public static void setSplitBucket(DBPage dbPage, int bucket) {
+        verifyIsHeaderPage(dbPage);
+
+        if (bucket < 0) {
+            throw new IllegalArgumentException(
+                "bucket must be >= 0; got " + bucket);
+        }
+
+        dbPage.writeInt(OFFSET_SPLIT_BUCKET, bucket);
+    }
+
+
+    /**
+     * Returns the page-number of the first page of the bucket directory.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the page-number of the first directory page
+     */
+    public static int getFirstDirectoryPageNo(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_FIRST_DIRECTORY_PAGE);
+    }
+
+
+    /**
+     * Sets the page-number of the first page of the bucket directory.
+     *
+     * @param dbPage the header page of the hash file
+     * @param pageNo the page-number of the first directory page
+     */
+    public static void setFirstDirectoryPageNo(DBPage dbPage, int pageNo) {
+        verifyIsHeaderPage(dbPage);
+
+        if (pageNo <= 0) {
+            throw new IllegalArgumentException(
+                "pageNo must be > 0; got " + pageNo);
+        }
+
+        dbPage.writeShort(OFFSET_FIRST_DIRECTORY_PAGE, pageNo);
+    }
+
+
+    /**
+     * Returns the page-number of the first empty page in the file's free
+     * list.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the page-number of the first empty page, or 0 if there are no
+     *         empty pages
+     */
+    public static int getFirstEmptyPageNo(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_FIRST_EMPTY_PAGE);
+    }
+
+
+    /**
+     * Sets the page-number of the first empty page in the file's free list.
+     *
+     * @param dbPage the header page of the hash file
+     * @param pageNo the page-number of the first empty page, or 0 if there
+     *        are no empty pages
+     */
+    public static void setFirstEmptyPageNo(DBPage dbPage, int pageNo) {
+        verifyIsHeaderPage(dbPage);
+
+        if (pageNo < 0) {
+            throw new IllegalArgumentException(
+                "pageNo must be >= 0; got " + pageNo);
+        }
+
+        dbPage.writeShort(OFFSET_FIRST_EMPTY_PAGE, pageNo);
+    }
+
+
+    /**
+     * Returns the number of tuples in the hash file.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the number of tuples in the hash file
+     */
+    public static int getNumTuples(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_NUM_TUPLES);
+    }
+
+
+    /**
+     * Sets the number of tuples in the hash file.
+     *
+     * @param dbPage the header page of the hash file
+     * @param numTuples the number of tuples in the hash file
+     */
+    public static void setNumTuples(DBPage dbPage, int numTuples) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_NUM_TUPLES, numTuples);
+    }
+
+
+    /**
+     * Returns the number of bytes that the tuples in the hash file occupy,
+     * including their slots.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the number of bytes that the tuples in the hash file occupy
+     */
+    public static int getDataSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_DATA_SIZE);
+    }
+
+
+    /**
+     * Sets the number of bytes that the tuples in the hash file occupy,
+     * including their slots.
+     *
+     * @param dbPage the header page of the hash file
+     * @param numBytes the number of bytes that the tuples occupy
+     */
+    public static void setDataSize(DBPage dbPage, int numBytes) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_DATA_SIZE, numBytes);
+    }
+
+
+    /**
+     * Returns the number of bytes that the table's schema occupies for storage
+     * in the header page.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the number of bytes that the table's schema occupies
+     */
+    public static int getSchemaSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_SCHEMA_SIZE);
+    }
+
+
+    /**
+     * Sets the number of bytes that the table's schema occupies for storage
+     * in the header page.
+     *
+     * @param dbPage the header page of the hash file
+     * @param numBytes the number of bytes that the table's schema occupies
+     */
+    public static void setSchemaSize(DBPage dbPage, int numBytes) {
+        verifyIsHeaderPage(dbPage);
+
+        if (numBytes < 0) {
+            throw new IllegalArgumentException(
+                "numBytes must be >= 0; got " + numBytes);
+        }
+
+        dbPage.writeShort(OFFSET_SCHEMA_SIZE, numBytes);
+    }
+
+
+    /**
+     * Returns the number of bytes that the table's statistics occupy for
+     * storage in the header page.
+     *
+     * @param dbPage the header page of the hash file
+     * @return the number of bytes that the table's statistics occupy
+     */
+    public static int getStatsSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_STATS_SIZE);
+    }
+
+
+    /**
+     * Sets the number of bytes that the table's statistics occupy for storage
+     * in the header page.
+     *
+     * @param dbPage the header page of the hash file
+     * @param numBytes the number of bytes that the table's statistics occupy
+     */
+    public static void setStatsSize(DBPage dbPage, int numBytes) {
+        verifyIsHeaderPage(dbPage);
+
+        if (numBytes < 0) {
+            throw new IllegalArgumentException(
+                "numBytes must be >= 0; got " + numBytes);
+        }
+
+        dbPage.writeShort(OFFSET_STATS_SIZE, numBytes);
+    }
+}
@@ -0,0 +1,1151 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.qeval.ColumnDependencyCollector;
+import edu.caltech.nanodb.qeval.ColumnStats;
+import edu.caltech.nanodb.qeval.ColumnStatsCollector;
+import edu.caltech.nanodb.qeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.HashedTupleFile;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.heapfile.DataPage;
+
+
+/**
+ * <p>
+ * This class implements the {@link HashedTupleFile} interface with linear
+ * hashing.  Tuples are stored in buckets based on the hash of their key
+ * columns; each bucket is a chain of {@link BucketPage bucket pages}, the
+ * first of which is found through the file's {@link DirectoryPage bucket
+ * directory}.  When a bucket's pages fill up, overflow pages are added to
+ * the end of its chain.
+ * </p>
+ * <p>
+ * The file starts out with {@link #INITIAL_BUCKETS} buckets.  At level
+ * <i>L</i>, a tuple whose key hashes to <i>h</i> is stored in bucket
+ * <i>h</i> mod <i>N</i>&times;2<sup>L</sup>, unless that bucket has already
+ * been split in this level, in which case it is stored in bucket <i>h</i>
+ * mod <i>N</i>&times;2<sup>L+1</sup>.  Whenever the tuples in the file would
+ * fill more than {@link #MAX_LOAD_FACTOR} of the buckets' primary pages, the
+ * next bucket is split:  a new bucket is added at the end of the directory,
+ * and the tuples of the split bucket are divided between the two.  Buckets
+ * are split in order, so the file grows one bucket at a time instead of
+ * doubling in size all at once.  Buckets are never merged again, but
+ * overflow pages that become empty are returned to the file's list of empty
+ * pages.
+ * </p>
+ * <p>
+ * If the last column of the file's schema is a file-pointer, as it is in
+ * indexes, the key is every column except that one; otherwise, the key is
+ * every column of the tuple.  Key values are converted to the types of the
+ * key columns before they are hashed, so that (for example) an
+ * <tt>INTEGER</tt> search key finds the same bucket as a <tt>BIGINT</tt>
+ * column value.
+ * </p>
+ * <p>
+ * Operations that change the file hold its latch exclusively, and lookups
+ * and scans hold it in shared mode, so that several sessions may use the
+ * same file.
+ * </p>
+ */
+public class LinearHashTupleFile implements HashedTupleFile {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(LinearHashTupleFile.class);
+
+
+    /** The number of buckets that a new hash file starts out with. */
+    public static final int INITIAL_BUCKETS = 4;
+
+
+    /**
+     * The fraction of the space in the buckets' primary pages that the
+     * tuples may use before the next bucket is split.
+     */
+    public static final float MAX_LOAD_FACTOR = 0.75f;
+
+
+    /**
+     * The storage manager to use for reading and writing file pages, pinning
+     * and unpinning pages, write-ahead logging, and so forth.
+     */
+    private StorageManager storageManager;
+
+
+    /** The manager for hash tuple files, which saves the file's metadata. */
+    private LinearHashTupleFileManager hashFileManager;
+
+
+    /** The schema of tuples in this tuple file. */
+    private TableSchema schema;
+
+
+    /** Statistics for this tuple file. */
+    private TableStats stats;
+
+
+    /** The file that stores the tuples. */
+    private DBFile dbFile;
+
+
+    /** The number of columns at the start of each tuple that are hashed. */
+    private int keySize;
+
+
+    /** The columns that make up the hash key. */
+    private List<Expression> keySpec;
+
+
+    /**
+     * This latch is held exclusively by operations that change the file, and
+     * in shared mode by lookups and scans.
+     */
+    private ReentrantReadWriteLock fileLatch = new ReentrantReadWriteLock();
+
+
+    public LinearHashTupleFile(StorageManager storageManager,
+                               LinearHashTupleFileManager hashFileManager,
+                               DBFile dbFile, TableSchema schema,
+                               TableStats stats) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (hashFileManager == null)
+            throw new IllegalArgumentException("hashFileManager cannot be null");
+
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (stats == null)
+            throw new IllegalArgumentException("stats cannot be null");
+
+        this.storageManager = storageManager;
+        this.hashFileManager = hashFileManager;
+        this.dbFile = dbFile;
+        this.schema = schema;
+        this.stats = stats;
+
+        // Indexes end with a file-pointer to the table's tuple, which isn't
+        // part of the key.
+        keySize = schema.numColumns();
+        if (keySize > 1 && schema.getColumnInfo(keySize - 1).getType()
+            .getBaseType() == SQLDataType.FILE_POINTER) {
+            keySize--;
+        }
+
+        keySpec = new ArrayList<Expression>();
+        for (int i = 0; i < keySize; i++) {
+            ColumnInfo colInfo = schema.getColumnInfo(i);
+            keySpec.add(new ColumnValue(colInfo.getColumnName()));
+        }
+    }
+
+
+    @Override
+    public TupleFileManager getManager() {
+        return hashFileManager;
+    }
+
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+
+    @Override
+    public TableStats getStats() {
+        return stats;
+    }
+
+
+    @Override
+    public DBFile getDBFile() {
+        return dbFile;
+    }
+
+
+    @Override
+    public List<Expression> getKeySpec() {
+        return keySpec;
+    }
+
+
+    /**
+     * Returns the number of columns at the start of each tuple that make up
+     * the hash key.
+     *
+     * @return the number of key columns
+     */
+    public int getKeySize() {
+        return keySize;
+    }
+
+
+    /**
+     * Converts a key value to the type of its column, so that values that
+     * compare as equal also produce the same hash code.
+     *
+     * @param value the value to convert
+     * @param colType the type of the key column
+     *
+     * @return the converted value
+     */
+    private static Object normalizeKeyValue(Object value, ColumnType colType) {
+        if (value == null)
+            return null;
+
+        switch (colType.getBaseType()) {
+        case TINYINT:
+        case SMALLINT:
+        case INTEGER:
+        case BIGINT:
+            // All integer types are hashed as longs, since columns of
+            // different integer types can be compared with each other.
+            return TypeConverter.getLongValue(value);
+
+        case FLOAT:
+        case DOUBLE:
+            return TypeConverter.getDoubleValue(value);
+
+        case CHAR:
+        case VARCHAR:
+        case TEXT:
+            return TypeConverter.getStringValue(value);
+
+        default:
+            return value;
+        }
+    }
+
+
+    /**
+     * Computes the hash code of a tuple's key columns.
+     *
+     * @param tuple the tuple to hash.  It must have at least
+     *        {@link #keySize} columns; any other columns are ignored.
+     *
+     * @return the hash code of the tuple's key
+     */
+    private int hashKey(Tuple tuple) {
+        if (tuple.getColumnCount() < keySize) {
+            throw new IllegalArgumentException(String.format(
+                "Hash key must have at least %d columns; got %d", keySize,
+                tuple.getColumnCount()));
+        }
+
+        int hash = 0;
+        for (int i = 0; i < keySize; i++) {
+            Object value = normalizeKeyValue(tuple.getColumnValue(i),
+                schema.getColumnInfo(i).getType());
+            hash = 31 * hash + (value != null ? value.hashCode() : 0);
+        }
+
+        // Mix the bits, since the bucket is chosen from the low bits of the
+        // hash code.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash & 0x7fffffff;
+    }
+
+
+    /**
+     * Returns the number of buckets in the file.
+     *
+     * @param dbpHeader the header page of the file
+     * @return the number of buckets in the file
+     */
+    private int getNumBuckets(DBPage dbpHeader) {
+        return (INITIAL_BUCKETS << HeaderPage.getLevel(dbpHeader)) +
+            HeaderPage.getSplitBucket(dbpHeader);
+    }
+
+
+    /**
+     * Returns the bucket that a hash code maps to, based on the file's
+     * current level and split bucket.
+     *
+     * @param dbpHeader the header page of the file
+     * @param hash the hash code to map to a bucket
+     *
+     * @return the bucket that the hash code maps to
+     */
+    private int getBucket(DBPage dbpHeader, int hash) {
+        int level = HeaderPage.getLevel(dbpHeader);
+        int bucket = hash % (INITIAL_BUCKETS << level);
+        if (bucket < HeaderPage.getSplitBucket(dbpHeader))
+            bucket = hash % (INITIAL_BUCKETS << (level + 1));
+
+        return bucket;
+    }
+
+
+    /**
+     * Loads the directory page that holds a bucket's entry, optionally
+     * adding directory pages if the directory is too short.  The returned
+     * page is pinned.
+     */
+    private DBPage loadDirectoryPage(DBPage dbpHeader, int bucket,
+                                     boolean create) throws IOException {
+        int entriesPerPage = DirectoryPage.getEntriesPerPage(
+            dbFile.getPageSize());
+
+        DBPage dirPage = storageManager.loadDBPage(dbFile,
+            HeaderPage.getFirstDirectoryPageNo(dbpHeader));
+
+        for (int i = 0; i < bucket / entriesPerPage; i++) {
+            int nextPageNo = DirectoryPage.getNextPageNo(dirPage);
+            if (nextPageNo == 0) {
+                if (!create) {
+                    dirPage.unpin();
+                    throw new IllegalStateException(
+                        "Bucket directory has no entry for bucket " + bucket);
+                }
+
+                DBPage newPage = getNewPage(dbpHeader);
+                DirectoryPage.initNewPage(newPage);
+                storageManager.logDBPageWrite(newPage);
+
+                DirectoryPage.setNextPageNo(dirPage, newPage.getPageNo());
+                storageManager.logDBPageWrite(dirPage);
+
+                dirPage.unpin();
+                dirPage = newPage;
+            }
+            else {
+                dirPage.unpin();
+                dirPage = storageManager.loadDBPage(dbFile, nextPageNo);
+            }
+        }
+
+        return dirPage;
+    }
+
+
+    /**
+     * Returns the page number of the first page of a bucket.
+     *
+     * @param dbpHeader the header page of the file
+     * @param bucket the bucket to look up
+     *
+     * @return the page number of the bucket's first page
+     *
+     * @throws IOException if the bucket directory can't be read
+     */
+    private int getBucketPageNo(DBPage dbpHeader, int bucket)
+        throws IOException {
+
+        DBPage dirPage = loadDirectoryPage(dbpHeader, bucket, false);
+        int entriesPerPage = DirectoryPage.getEntriesPerPage(
+            dbFile.getPageSize());
+        int pageNo =
+            DirectoryPage.getBucketPageNo(dirPage, bucket % entriesPerPage);
+        dirPage.unpin();
+
+        return pageNo;
+    }
+
+
+    /**
+     * Records the page number of the first page of a bucket in the bucket
+     * directory, adding directory pages if necessary.
+     */
+    private void setBucketPageNo(DBPage dbpHeader, int bucket, int pageNo)
+        throws IOException {
+
+        DBPage dirPage = loadDirectoryPage(dbpHeader, bucket, true);
+        int entriesPerPage = DirectoryPage.getEntriesPerPage(
+            dbFile.getPageSize());
+        DirectoryPage.setBucketPageNo(dirPage, bucket % entriesPerPage,
+            pageNo);
+        storageManager.logDBPageWrite(dirPage);
+        dirPage.unpin();
+    }
+
+
+    /**
+     * Returns a page that the file can use for a new bucket, overflow page
+     * or directory page, either by taking it from the list of empty pages,
+     * or by extending the file.  The caller must initialize the page.
+     *
+     * @param dbpHeader the header page of the file
+     *
+     * @return an unused page, which is pinned
+     *
+     * @throws IOException if the file can't be extended, or if it already
+     *         has as many pages as page numbers can refer to
+     */
+    private DBPage getNewPage(DBPage dbpHeader) throws IOException {
+        DBPage newPage;
+
+        int pageNo = HeaderPage.getFirstEmptyPageNo(dbpHeader);
+        if (pageNo == 0) {
+            int numPages = dbFile.getNumPages();
+            if (numPages > 0xFFFF) {
+                throw new IOException("Hash file " + dbFile +
+                    " has reached its maximum size of " + numPages + " pages");
+            }
+
+            logger.debug("No empty pages.  Extending hash file " + dbFile +
+                " by one page.");
+            newPage = storageManager.loadDBPage(dbFile, numPages, true);
+        }
+        else {
+            newPage = storageManager.loadDBPage(dbFile, pageNo);
+            HeaderPage.setFirstEmptyPageNo(dbpHeader,
+                BucketPage.getOverflowPageNo(newPage));
+        }
+
+        return newPage;
+    }
+
+
+    /**
+     * Adds an overflow page that is no longer used to the file's list of
+     * empty pages.
+     */
+    private void releasePage(DBPage dbpHeader, DBPage dbPage)
+        throws IOException {
+
+        BucketPage.initNewPage(dbPage);
+        BucketPage.setOverflowPageNo(dbPage,
+            HeaderPage.getFirstEmptyPageNo(dbpHeader));
+        HeaderPage.setFirstEmptyPageNo(dbpHeader, dbPage.getPageNo());
+        storageManager.logDBPageWrite(dbPage);
+    }
+
+
+    /**
+     * Returns the first tuple in a chain of bucket pages, starting from the
+     * specified slot on the specified page, that matches the search key; or
+     * {@code null} if there is no such tuple.  The starting page must be
+     * pinned by the caller, and is unpinned by this method.
+     *
+     * @param dbPage the bucket page to start searching on
+     * @param startSlot the slot on the first page to start searching at
+     * @param searchKey the values that the tuple's first columns must
+     *        match, or {@code null} to return the first tuple
+     *
+     * @return the first matching tuple, or {@code null}
+     *
+     * @throws IOException if a bucket page can't be read
+     */
+    private HashFilePageTuple findTupleInChain(DBPage dbPage, int startSlot,
+        Tuple searchKey) throws IOException {
+
+        int slot = startSlot;
+        while (true) {
+            int numSlots = DataPage.getNumSlots(dbPage);
+            for (; slot < numSlots; slot++) {
+                int offset = DataPage.getSlotValue(dbPage, slot);
+                if (offset == DataPage.EMPTY_SLOT)
+                    continue;
+
+                HashFilePageTuple tup =
+                    new HashFilePageTuple(schema, dbPage, slot, offset);
+                if (searchKey == null ||
+                    TupleComparator.comparePartialTuples(tup, searchKey) == 0) {
+                    dbPage.unpin();
+                    return tup;
+                }
+
+                // PageTuple.unpin() doesn't release the page, so release
+                // the tuple's pin on the page directly.
+                tup.getDBPage().unpin();
+            }
+
+            int nextPageNo = BucketPage.getOverflowPageNo(dbPage);
+            dbPage.unpin();
+            if (nextPageNo == 0)
+                return null;
+
+            dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+            slot = 0;
+        }
+    }
+
+
+    /**
+     * Returns the first tuple in the buckets from <tt>startBucket</tt> to
+     * the end of the file, or {@code null} if those buckets are empty.
+     */
+    private Tuple getFirstTupleFromBucket(DBPage dbpHeader, int startBucket)
+        throws IOException {
+
+        int numBuckets = getNumBuckets(dbpHeader);
+        for (int bucket = startBucket; bucket < numBuckets; bucket++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile,
+                getBucketPageNo(dbpHeader, bucket));
+
+            HashFilePageTuple tup = findTupleInChain(dbPage, 0, null);
+            if (tup != null)
+                return tup;
+        }
+
+        return null;
+    }
+
+
+    @Override
+    public Tuple getFirstTuple() throws IOException {
+        fileLatch.readLock().lock();
+        try {
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            try {
+                return getFirstTupleFromBucket(dbpHeader, 0);
+            }
+            finally {
+                dbpHeader.unpin();
+            }
+        }
+        finally {
+            fileLatch.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public Tuple getNextTuple(Tuple tup) throws IOException {
+        if (!(tup instanceof HashFilePageTuple)) {
+            throw new IllegalArgumentException(
+                "Tuple must be of type HashFilePageTuple; got " + tup.getClass());
+        }
+        HashFilePageTuple ptup = (HashFilePageTuple) tup;
+
+        fileLatch.readLock().lock();
+        try {
+            // Finish the current bucket first.
+            DBPage dbPage = ptup.getDBPage();
+            dbPage.pin();
+            HashFilePageTuple nextTup =
+                findTupleInChain(dbPage, ptup.getSlot() + 1, null);
+            if (nextTup != null)
+                return nextTup;
+
+            // Then go on to the following buckets.
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            try {
+                int bucket = getBucket(dbpHeader, hashKey(ptup));
+                return getFirstTupleFromBucket(dbpHeader, bucket + 1);
+            }
+            finally {
+                dbpHeader.unpin();
+            }
+        }
+        finally {
+            fileLatch.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public Tuple getTuple(FilePointer fptr)
+        throws InvalidFilePointerException, IOException {
+
+        if (fptr.getPageNo() == 0) {
+            throw new InvalidFilePointerException(
+                "Page 0 is the header page of hash file " + dbFile);
+        }
+
+        DBPage dbPage;
+        try {
+            // This could throw EOFException if the page doesn't actually exist.
+            dbPage = storageManager.loadDBPage(dbFile, fptr.getPageNo());
+        }
+        catch (EOFException eofe) {
+            throw new InvalidFilePointerException("Specified page " +
+                fptr.getPageNo() + " doesn't exist in file " +
+                dbFile.getDataFile().getName(), eofe);
+        }
+
+        try {
+            int slot;
+            try {
+                slot = DataPage.getSlotIndexFromOffset(dbPage, fptr.getOffset());
+            }
+            catch (IllegalArgumentException iae) {
+                throw new InvalidFilePointerException(iae);
+            }
+
+            int offset = DataPage.getSlotValue(dbPage, slot);
+            if (offset == DataPage.EMPTY_SLOT) {
+                throw new InvalidFilePointerException("Slot " + slot +
+                    " on page " + fptr.getPageNo() + " is empty.");
+            }
+
+            return new HashFilePageTuple(schema, dbPage, slot, offset);
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    @Override
+    public Tuple findFirstTupleEquals(Tuple hashKey) throws IOException {
+        fileLatch.readLock().lock();
+        try {
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            int pageNo;
+            try {
+                int bucket = getBucket(dbpHeader, hashKey(hashKey));
+                pageNo = getBucketPageNo(dbpHeader, bucket);
+            }
+            finally {
+                dbpHeader.unpin();
+            }
+
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            return findTupleInChain(dbPage, 0, hashKey);
+        }
+        finally {
+            fileLatch.readLock().unlock();
+        }
+    }
+
+
+    @Override
+    public Tuple findNextTupleEquals(Tuple prevTuple) throws IOException {
+        if (!(prevTuple instanceof HashFilePageTuple)) {
+            throw new IllegalArgumentException("Tuple must be of type " +
+                "HashFilePageTuple; got " + prevTuple.getClass());
+        }
+        HashFilePageTuple ptup = (HashFilePageTuple) prevTuple;
+
+        // Tuples with the same key are always in the same bucket, so only
+        // the rest of this bucket needs to be searched.
+        TupleLiteral key = new TupleLiteral();
+        for (int i = 0; i < keySize; i++)
+            key.addValue(ptup.getColumnValue(i));
+
+        fileLatch.readLock().lock();
+        try {
+            DBPage dbPage = ptup.getDBPage();
+            dbPage.pin();
+            return findTupleInChain(dbPage, ptup.getSlot() + 1, key);
+        }
+        finally {
+            fileLatch.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Stores a tuple into the bucket that its key maps to, adding an
+     * overflow page to the bucket if none of its pages have room.  The
+     * file's tuple count and data size are not updated.
+     */
+    private HashFilePageTuple storeTuple(DBPage dbpHeader, Tuple tup,
+                                         int tupSize) throws IOException {
+
+        int bucket = getBucket(dbpHeader, hashKey(tup));
+        DBPage dbPage = storageManager.loadDBPage(dbFile,
+            getBucketPageNo(dbpHeader, bucket));
+
+        // The "+ 2" is for the case where we need a new slot entry as well.
+        while (DataPage.getFreeSpaceInPage(dbPage) < tupSize + 2) {
+            int nextPageNo = BucketPage.getOverflowPageNo(dbPage);
+            if (nextPageNo == 0) {
+                DBPage newPage = getNewPage(dbpHeader);
+                BucketPage.initNewPage(newPage);
+                storageManager.logDBPageWrite(newPage);
+
+                logger.debug(String.format(
+                    "Adding overflow page %d to bucket %d after page %d",
+                    newPage.getPageNo(), bucket, dbPage.getPageNo()));
+
+                BucketPage.setOverflowPageNo(dbPage, newPage.getPageNo());
+                storageManager.logDBPageWrite(dbPage);
+
+                dbPage.unpin();
+                dbPage = newPage;
+            }
+            else {
+                dbPage.unpin();
+                dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+            }
+        }
+
+        int slot = DataPage.allocNewTuple(dbPage, tupSize);
+        int tupOffset = DataPage.getSlotValue(dbPage, slot);
+
+        HashFilePageTuple pageTup = HashFilePageTuple.storeNewTuple(schema,
+            dbPage, slot, tupOffset, tup);
+
+        storageManager.logDBPageWrite(dbPage);
+        dbPage.unpin();
+
+        return pageTup;
+    }
+
+
+    /**
+     * Splits the next bucket of the file, moving the tuples of that bucket
+     * whose keys now map to the new bucket into the new bucket, and advances
+     * the file's split bucket and level.
+     */
+    private void splitBucket(DBPage dbpHeader) throws IOException {
+        int level = HeaderPage.getLevel(dbpHeader);
+        int splitBucket = HeaderPage.getSplitBucket(dbpHeader);
+        int newBucket = getNumBuckets(dbpHeader);
+
+        logger.debug(String.format("Splitting bucket %d of hash file %s " +
+            "into new bucket %d", splitBucket, dbFile, newBucket));
+
+        // Pull all tuples out of the bucket being split, and release its
+        // overflow pages.
+        ArrayList<TupleLiteral> tuples = new ArrayList<TupleLiteral>();
+
+        int firstPageNo = getBucketPageNo(dbpHeader, splitBucket);
+        int pageNo = firstPageNo;
+        while (pageNo != 0) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+
+            int numSlots = DataPage.getNumSlots(dbPage);
+            for (int slot = 0; slot < numSlots; slot++) {
+                int offset = DataPage.getSlotValue(dbPage, slot);
+                if (offset == DataPage.EMPTY_SLOT)
+                    continue;
+
+                HashFilePageTuple tup =
+                    new HashFilePageTuple(schema, dbPage, slot, offset);
+                tuples.add(new TupleLiteral(tup));
+                tup.getDBPage().unpin();
+            }
+
+            pageNo = BucketPage.getOverflowPageNo(dbPage);
+            if (dbPage.getPageNo() == firstPageNo) {
+                BucketPage.initNewPage(dbPage);
+                storageManager.logDBPageWrite(dbPage);
+            }
+            else {
+                releasePage(dbpHeader, dbPage);
+            }
+            dbPage.unpin();
+        }
+
+        // Add the new bucket, and move on to the next bucket to split.
+        DBPage newPage = getNewPage(dbpHeader);
+        BucketPage.initNewPage(newPage);
+        storageManager.logDBPageWrite(newPage);
+        setBucketPageNo(dbpHeader, newBucket, newPage.getPageNo());
+        newPage.unpin();
+
+        splitBucket++;
+        if (splitBucket == (INITIAL_BUCKETS << level)) {
+            HeaderPage.setLevel(dbpHeader, level + 1);
+            splitBucket = 0;
+        }
+        HeaderPage.setSplitBucket(dbpHeader, splitBucket);
+
+        // Now the tuples can be stored into whichever of the two buckets
+        // their keys map to.
+        for (TupleLiteral tup : tuples)
+            storeTuple(dbpHeader, tup, PageTuple.getTupleStorageSize(schema, tup));
+    }
+
+
+    /**
+     * Returns the number of bytes in a bucket page that are available for
+     * tuples and their slots.  Bucket pages start with the number of slots,
+     * and end with the page number of the next overflow page.
+     */
+    private int getBucketPageSpace() {
+        return dbFile.getPageSize() - 4;
+    }
+
+
+    @Override
+    public Tuple addTuple(Tuple tup) throws IOException {
+        int tupSize = PageTuple.getTupleStorageSize(schema, tup);
+        logger.debug("Adding new tuple of size " + tupSize + " bytes.");
+
+        // Sanity check:  Make sure that the tuple would actually fit in an
+        // empty bucket page in the first place!
+        int bucketSpace = getBucketPageSpace();
+        if (tupSize + 2 > bucketSpace) {
+            throw new IOException("Tuple size " + tupSize +
+                " is larger than page size " + dbFile.getPageSize() + ".");
+        }
+
+        fileLatch.writeLock().lock();
+        try {
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            try {
+                // Split the next bucket before adding the tuple, if the file
+                // will be too full afterward.  (Otherwise the tuple might
+                // move before we even return it.)
+                int dataSize = HeaderPage.getDataSize(dbpHeader) + tupSize + 2;
+                if (dataSize > MAX_LOAD_FACTOR * bucketSpace *
+                               getNumBuckets(dbpHeader)) {
+                    splitBucket(dbpHeader);
+                }
+
+                HashFilePageTuple pageTup =
+                    storeTuple(dbpHeader, tup, tupSize);
+
+                HeaderPage.setNumTuples(dbpHeader,
+                    HeaderPage.getNumTuples(dbpHeader) + 1);
+                HeaderPage.setDataSize(dbpHeader, dataSize);
+                storageManager.logDBPageWrite(dbpHeader);
+
+                return pageTup;
+            }
+            finally {
+                dbpHeader.unpin();
+            }
+        }
+        finally {
+            fileLatch.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Hash files don't support updating tuples in place, since changing a
+     * key column would usually move the tuple to another bucket.  Index
+     * entries are changed by deleting the old entry and adding the new one.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void updateTuple(Tuple tup, Map<String, Object> newValues)
+        throws IOException {
+
+        throw new UnsupportedOperationException("Hash files don't support " +
+            "updating tuples; delete the tuple and add the new version");
+    }
+
+
+    /**
+     * Deletes a tuple from the hash file.  The tuple may either be a tuple
+     * from this file, or a tuple with the same values as the tuple to
+     * delete, in which case the first tuple in the file with those values
+     * is deleted.  If the tuple's page is an overflow page and becomes empty,
+     * it is removed from its bucket and added to the file's list of empty
+     * pages.
+     *
+     * @param tup the tuple to delete
+     *
+     * @throws IllegalArgumentException if the tuple is not in the file
+     *
+     * @throws IOException if the file's pages can't be read or written
+     */
+    @Override
+    public void deleteTuple(Tuple tup) throws IOException {
+        logger.debug("Deleting tuple " + tup + " from file " + dbFile);
+
+        fileLatch.writeLock().lock();
+        try {
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            try {
+                int bucket = getBucket(dbpHeader, hashKey(tup));
+                int firstPageNo = getBucketPageNo(dbpHeader, bucket);
+
+                // Find the tuple in the file, unless we were given it.  Either
+                // way, we keep our own pin on the tuple's page until we are
+                // done with it.
+                HashFilePageTuple ptup;
+                if (tup instanceof HashFilePageTuple &&
+                    ((HashFilePageTuple) tup).getDBPage().getDBFile() == dbFile) {
+                    ptup = (HashFilePageTuple) tup;
+                    ptup.getDBPage().pin();
+                }
+                else {
+                    DBPage dbPage =
+                        storageManager.loadDBPage(dbFile, firstPageNo);
+                    ptup = findTupleInChain(dbPage, 0, tup);
+                    if (ptup == null) {
+                        throw new IllegalArgumentException("Tuple " + tup +
+                            " doesn't appear in hash file " + dbFile);
+                    }
+                }
+
+                DBPage dbPage = ptup.getDBPage();
+                int tupSize = DataPage.getTupleLength(dbPage, ptup.getSlot());
+                DataPage.deleteTuple(dbPage, ptup.getSlot());
+                storageManager.logDBPageWrite(dbPage);
+
+                HeaderPage.setNumTuples(dbpHeader,
+                    HeaderPage.getNumTuples(dbpHeader) - 1);
+                HeaderPage.setDataSize(dbpHeader,
+                    HeaderPage.getDataSize(dbpHeader) - tupSize - 2);
+
+                if (BucketPage.isEmpty(dbPage) &&
+                    dbPage.getPageNo() != firstPageNo) {
+                    removeOverflowPage(dbpHeader, firstPageNo, dbPage);
+                }
+                dbPage.unpin();
+
+                storageManager.logDBPageWrite(dbpHeader);
+            }
+            finally {
+                dbpHeader.unpin();
+            }
+        }
+        finally {
+            fileLatch.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Unlinks an empty overflow page from its bucket's chain of pages, and
+     * adds it to the list of empty pages.
+     */
+    private void removeOverflowPage(DBPage dbpHeader, int firstPageNo,
+                                    DBPage dbPage) throws IOException {
+
+        DBPage prevPage = storageManager.loadDBPage(dbFile, firstPageNo);
+        while (BucketPage.getOverflowPageNo(prevPage) != dbPage.getPageNo()) {
+            int nextPageNo = BucketPage.getOverflowPageNo(prevPage);
+            prevPage.unpin();
+            if (nextPageNo == 0) {
+                throw new IllegalStateException("Page " +
+                    dbPage.getPageNo() + " isn't in the bucket starting " +
+                    "at page " + firstPageNo);
+            }
+            prevPage = storageManager.loadDBPage(dbFile, nextPageNo);
+        }
+
+        logger.debug(String.format("Removing empty overflow page %d " +
+            "after page %d", dbPage.getPageNo(), prevPage.getPageNo()));
+
+        BucketPage.setOverflowPageNo(prevPage,
+            BucketPage.getOverflowPageNo(dbPage));
+        storageManager.logDBPageWrite(prevPage);
+        prevPage.unpin();
+
+        releasePage(dbpHeader, dbPage);
+    }
+
+
+    /**
+     * Computes statistics for the file by reading every tuple in its
+     * buckets, and saves them in the header page.  The page count in the
+     * statistics is the number of bucket pages, including overflow pages.
+     *
+     * @throws IOException if the file's pages can't be read or written
+     */
+    @Override
+    public void analyze() throws IOException {
+        int numColumns = schema.numColumns();
+        int numPages = 0;
+        int numTuples = 0;
+        long sumTupSize = 0;
+
+        ArrayList<ColumnStatsCollector> colStatCollectors =
+            new ArrayList<ColumnStatsCollector>();
+        for (int i = 0; i < numColumns; i++) {
+            colStatCollectors.add(new ColumnStatsCollector(
+                schema.getColumnInfo(i).getType().getBaseType()));
+        }
+        ColumnDependencyCollector dependencyCollector =
+            new ColumnDependencyCollector(numColumns);
+
+        fileLatch.writeLock().lock();
+        try {
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            try {
+                int numBuckets = getNumBuckets(dbpHeader);
+                for (int bucket = 0; bucket < numBuckets; bucket++) {
+                    int pageNo = getBucketPageNo(dbpHeader, bucket);
+                    while (pageNo != 0) {
+                        DBPage dbPage =
+                            storageManager.loadDBPage(dbFile, pageNo);
+                        numPages++;
+
+                        int numSlots = DataPage.getNumSlots(dbPage);
+                        for (int slot = 0; slot < numSlots; slot++) {
+                            int offset = DataPage.getSlotValue(dbPage, slot);
+                            if (offset == DataPage.EMPTY_SLOT)
+                                continue;
+
+                            HashFilePageTuple tup = new HashFilePageTuple(
+                                schema, dbPage, slot, offset);
+
+                            numTuples++;
+                            sumTupSize += tup.getSize();
+                            for (int i = 0; i < numColumns; i++) {
+                                colStatCollectors.get(i).addValue(
+                                    tup.getColumnValue(i));
+                            }
+                            dependencyCollector.addTuple(tup);
+
+                            tup.getDBPage().unpin();
+                        }
+
+                        pageNo = BucketPage.getOverflowPageNo(dbPage);
+                        dbPage.unpin();
+                    }
+                }
+            }
+            finally {
+                dbpHeader.unpin();
+            }
+
+            ArrayList<ColumnStats> colStats = new ArrayList<ColumnStats>();
+            for (int i = 0; i < numColumns; i++)
+                colStats.add(colStatCollectors.get(i).getColumnStats());
+            dependencyCollector.computeDependencies(colStats);
+
+            float avgTupleSize = 0;
+            if (numTuples > 0)
+                avgTupleSize = sumTupSize / ((float) numTuples);
+
+            stats = new TableStats(numPages, numTuples, avgTupleSize,
+                colStats);
+            hashFileManager.saveMetadata(this);
+        }
+        finally {
+            fileLatch.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Checks that every tuple is in the bucket that its key maps to, that
+     * no page belongs to more than one bucket or to both a bucket and the
+     * list of empty pages, and that the tuple count and data size in the
+     * header page match the tuples in the buckets.
+     *
+     * @return a list of the problems that were found
+     *
+     * @throws IOException if the file's pages can't be read
+     */
+    @Override
+    public List<String> verify() throws IOException {
+        ArrayList<String> errors = new ArrayList<String>();
+        HashSet<Integer> pagesSeen = new HashSet<Integer>();
+
+        fileLatch.writeLock().lock();
+        try {
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            try {
+                int numBuckets = getNumBuckets(dbpHeader);
+                int numTuples = 0;
+                int dataSize = 0;
+
+                for (int bucket = 0; bucket < numBuckets; bucket++) {
+                    int pageNo = getBucketPageNo(dbpHeader, bucket);
+                    while (pageNo != 0) {
+                        if (!pagesSeen.add(pageNo)) {
+                            errors.add(String.format("Bucket %d includes " +
+                                "page %d, which was already seen", bucket,
+                                pageNo));
+                            break;
+                        }
+
+                        DBPage dbPage =
+                            storageManager.loadDBPage(dbFile, pageNo);
+                        int numSlots = DataPage.getNumSlots(dbPage);
+                        for (int slot = 0; slot < numSlots; slot++) {
+                            int offset = DataPage.getSlotValue(dbPage, slot);
+                            if (offset == DataPage.EMPTY_SLOT)
+                                continue;
+
+                            HashFilePageTuple tup = new HashFilePageTuple(
+                                schema, dbPage, slot, offset);
+                            int tupBucket = getBucket(dbpHeader, hashKey(tup));
+                            if (tupBucket != bucket) {
+                                errors.add(String.format("Tuple %s on page " +
+                                    "%d is in bucket %d, but its key maps " +
+                                    "to bucket %d", tup, pageNo, bucket,
+                                    tupBucket));
+                            }
+                            tup.getDBPage().unpin();
+
+                            numTuples++;
+                            dataSize +=
+                                DataPage.getTupleLength(dbPage, slot) + 2;
+                        }
+
+                        pageNo = BucketPage.getOverflowPageNo(dbPage);
+                        dbPage.unpin();
+                    }
+                }
+
+                if (numTuples != HeaderPage.getNumTuples(dbpHeader)) {
+                    errors.add(String.format("Header page says the file " +
+                        "has %d tuples, but the buckets hold %d tuples",
+                        HeaderPage.getNumTuples(dbpHeader), numTuples));
+                }
+
+                if (dataSize != HeaderPage.getDataSize(dbpHeader)) {
+                    errors.add(String.format("Header page says the file " +
+                        "has %d bytes of tuple data, but the buckets hold " +
+                        "%d bytes", HeaderPage.getDataSize(dbpHeader),
+                        dataSize));
+                }
+
+                int pageNo = HeaderPage.getFirstEmptyPageNo(dbpHeader);
+                while (pageNo != 0) {
+                    if (!pagesSeen.add(pageNo)) {
+                        errors.add(String.format("Empty page %d is also " +
+                            "in a bucket, or is in the empty list twice",
+                            pageNo));
+                        break;
+                    }
+
+                    DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+                    if (!BucketPage.isEmpty(dbPage)) {
+                        errors.add(String.format("Page %d is in the list of " +
+                            "empty pages, but holds tuples", pageNo));
+                    }
+                    pageNo = BucketPage.getOverflowPageNo(dbPage);
+                    dbPage.unpin();
+                }
+            }
+            finally {
+                dbpHeader.unpin();
+            }
+        }
+        finally {
+            fileLatch.writeLock().unlock();
+        }
+
+        return errors;
+    }
+
+
+    /**
+     * Does nothing, since linear hashing splits buckets one at a time as the
+     * file grows, and overflow pages that become empty are already returned
+     * to the list of empty pages when tuples are deleted.
+     */
+    @Override
+    public void optimize() throws IOException {
+        // Nothing to do.
+    }
+}
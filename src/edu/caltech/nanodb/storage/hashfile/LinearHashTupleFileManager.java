@@ -0,0 +1,181 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.qeval.TableStats;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.PageReader;
+import edu.caltech.nanodb.storage.PageWriter;
+import edu.caltech.nanodb.storage.SchemaWriter;
+import edu.caltech.nanodb.storage.StatsWriter;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.TupleFileManager;
+
+
+/**
+ * This class provides high-level operations on linear-hashing tuple files.
+ */
+public class LinearHashTupleFileManager implements TupleFileManager {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger =
+        Logger.getLogger(LinearHashTupleFileManager.class);
+
+
+    /** A reference to the storage manager. */
+    private StorageManager storageManager;
+
+
+    public LinearHashTupleFileManager(StorageManager storageManager) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        this.storageManager = storageManager;
+    }
+
+
+    @Override
+    public TupleFile createTupleFile(DBFile dbFile, TableSchema schema)
+        throws IOException {
+
+        logger.info(String.format(
+            "Initializing new hash tuple file %s with %d columns",
+            dbFile, schema.numColumns()));
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        HeaderPage.setLevel(headerPage, 0);
+        HeaderPage.setSplitBucket(headerPage, 0);
+        HeaderPage.setFirstEmptyPageNo(headerPage, 0);
+        HeaderPage.setNumTuples(headerPage, 0);
+        HeaderPage.setDataSize(headerPage, 0);
+
+        // Page 1 is the first page of the bucket directory, and the initial
+        // buckets follow it.
+        DBPage dirPage = storageManager.loadDBPage(dbFile, 1, true);
+        DirectoryPage.initNewPage(dirPage);
+        HeaderPage.setFirstDirectoryPageNo(headerPage, 1);
+
+        for (int i = 0; i < LinearHashTupleFile.INITIAL_BUCKETS; i++) {
+            DBPage bucketPage = storageManager.loadDBPage(dbFile, 2 + i, true);
+            BucketPage.initNewPage(bucketPage);
+            storageManager.logDBPageWrite(bucketPage);
+            bucketPage.unpin();
+
+            DirectoryPage.setBucketPageNo(dirPage, i, 2 + i);
+        }
+        storageManager.logDBPageWrite(dirPage);
+        dirPage.unpin();
+        headerPage.unpin();
+
+        TableStats stats = new TableStats(schema.numColumns());
+        LinearHashTupleFile tupleFile = new LinearHashTupleFile(storageManager,
+            this, dbFile, schema, stats);
+        saveMetadata(tupleFile);
+        return tupleFile;
+    }
+
+
+    @Override
+    public TupleFile openTupleFile(DBFile dbFile) throws IOException {
+
+        logger.info("Opening existing hash tuple file " + dbFile);
+
+        // Table schema is stored into the header page, so get it and prepare
+        // to write out the schema information.
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        PageReader hpReader = new PageReader(headerPage);
+        hpReader.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+
+        // Read in the schema details.
+        SchemaWriter schemaWriter = new SchemaWriter();
+        TableSchema schema = schemaWriter.readTableSchema(hpReader);
+
+        // Read in the statistics.
+        StatsWriter statsWriter = new StatsWriter();
+        TableStats stats = statsWriter.readTableStats(hpReader, schema);
+
+        headerPage.unpin();
+
+        return new LinearHashTupleFile(storageManager, this, dbFile, schema,
+                                       stats);
+    }
+
+
+    @Override
+    public void saveMetadata(TupleFile tupleFile) throws IOException {
+
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        if (!(tupleFile instanceof LinearHashTupleFile)) {
+            throw new IllegalArgumentException(
+                "tupleFile must be an instance of LinearHashTupleFile");
+        }
+
+        DBFile dbFile = tupleFile.getDBFile();
+
+        TableSchema schema = tupleFile.getSchema();
+        TableStats stats = tupleFile.getStats();
+
+        // Table schema is stored into the header page, so get it and prepare
+        // to write out the schema information.
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        PageWriter hpWriter = new PageWriter(headerPage);
+        hpWriter.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+
+        // Write out the schema details now.
+        SchemaWriter schemaWriter = new SchemaWriter();
+        schemaWriter.writeTableSchema(schema, hpWriter);
+
+        // Compute and store the schema's size.
+        int schemaEndPos = hpWriter.getPosition();
+        int schemaSize = schemaEndPos - HeaderPage.OFFSET_SCHEMA_START;
+        HeaderPage.setSchemaSize(headerPage, schemaSize);
+
+        // Write out the statistics after the schema.
+        StatsWriter statsWriter = new StatsWriter();
+        statsWriter.writeTableStats(schema, stats, hpWriter);
+        int statsSize = hpWriter.getPosition() - schemaEndPos;
+        HeaderPage.setStatsSize(headerPage, statsSize);
+
+        storageManager.logDBPageWrite(headerPage);
+        headerPage.unpin();
+    }
+
+
+    /**
+     * Deletes a hash tuple file.  The file's pages are discarded from the
+     * buffer manager without being written, since the file is going away,
+     * and then the file is closed and deleted.
+     *
+     * @param tupleFile the hash tuple file to delete
+     *
+     * @throws IOException if the file couldn't be closed or deleted
+     */
+    @Override
+    public void deleteTupleFile(TupleFile tupleFile) throws IOException {
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        if (!(tupleFile instanceof LinearHashTupleFile)) {
+            throw new IllegalArgumentException(
+                "tupleFile must be an instance of LinearHashTupleFile");
+        }
+
+        DBFile dbFile = tupleFile.getDBFile();
+        logger.info("Deleting hash tuple file " + dbFile);
+
+        storageManager.getReadAheadManager().cancelReadAhead(dbFile);
+        storageManager.getBufferManager().discardDBFile(dbFile);
+
+        FileManager fileManager = storageManager.getFileManager();
+        fileManager.closeDBFile(dbFile);
+        fileManager.deleteDBFile(dbFile);
+    }
+}
@@ -6,9 +6,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.qeval.ColumnDependencyCollector;
 import edu.caltech.nanodb.qeval.ColumnStats;
 import edu.caltech.nanodb.qeval.ColumnStatsCollector;
 import edu.caltech.nanodb.qeval.TableStats;
@@ -34,6 +36,28 @@ public class HeapTupleFile implements TupleFile {
     private static Logger logger = Logger.getLogger(HeapTupleFile.class);
 
 
+    /**
+     * The system property that can be used to specify the fraction of a heap
+     * file's data pages that <tt>ANALYZE</tt> reads.  Large tables can be
+     * analyzed much faster from a random sample of their pages, at the cost
+     * of less accurate statistics.
+     */
+    public static final String PROP_ANALYZE_SAMPLE_RATE =
+        "nanodb.analyze.sampleRate";
+
+
+    /** By default, <tt>ANALYZE</tt> reads every page of the file. */
+    public static final float DEFAULT_ANALYZE_SAMPLE_RATE = 1.0f;
+
+
+    /**
+     * The minimum number of pages that <tt>ANALYZE</tt> reads when sampling
+     * a file, so that small tables are still analyzed from a reasonable
+     * number of tuples.
+     */
+    public static final int MIN_ANALYZE_SAMPLE_PAGES = 10;
+
+
     /**
      * The storage manager to use for reading and writing file pages, pinning
      * and unpinning pages, write-ahead logging, and so forth.
@@ -115,14 +139,41 @@ public class HeapTupleFile implements TupleFile {
      */
     @Override
     public Tuple getFirstTuple() throws IOException {
-        try {
-            // Scan through the data pages until we hit the end of the table
-            // file.  It may be that the first run of data pages is empty,
-            // so just keep looking until we hit the end of the file.
+        // Header page is page 0, so first data page is page 1.
+        return getFirstTupleInRange(1, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Returns the first tuple on the data pages from <tt>startPageNo</tt> up
+     * to, but not including, <tt>endPageNo</tt>, or <tt>null</tt> if there
+     * are no tuples on those pages.  Together with
+     * {@link #getNextTupleInRange}, this allows a file to be scanned in
+     * separate ranges of pages, for example by several threads at once.
+     *
+     * @param startPageNo the first data page to scan, which must be at
+     *        least 1
+     *
+     * @param endPageNo the page after the last page to scan
+     *
+     * @return the first tuple in the range of pages, or <tt>null</tt>
+     *
+     * @throws IOException if the file's pages can't be read
+     */
+    public Tuple getFirstTupleInRange(int startPageNo, int endPageNo)
+        throws IOException {
 
-            // Header page is page 0, so first data page is page 1.
+        if (startPageNo < 1) {
+            throw new IllegalArgumentException(
+                "startPageNo must be at least 1; got " + startPageNo);
+        }
 
-            for (int iPage = 1; /* nothing */ ; iPage++) {
+        try {
+            // Scan through the data pages until we hit the end of the range
+            // or the end of the table file.  It may be that the first run of
+            // data pages is empty, so just keep looking until we hit the end.
+
+            for (int iPage = startPageNo; iPage < endPageNo; iPage++) {
                 // Look for data on this page...
 
                 DBPage dbPage = storageManager.loadDBPage(dbFile, iPage);
@@ -134,7 +185,7 @@ public class HeapTupleFile implements TupleFile {
                     if (offset == DataPage.EMPTY_SLOT)
                         continue;
 
-                    // This is the first tuple in the file.  Build up the
+                    // This is the first tuple in the range.  Build up the
                     // HeapFilePageTuple object and return it.
                     return new HeapFilePageTuple(schema, dbPage, iSlot, offset);
                 }
@@ -144,9 +195,9 @@ public class HeapTupleFile implements TupleFile {
             }
         }
         catch (EOFException e) {
-            // We ran out of pages.  No tuples in the file!
+            // We ran out of pages.  No tuples in the range!
             logger.debug("No tuples in table-file " + dbFile +
-                         ".  Returning null.");
+                         " from page " + startPageNo + ".  Returning null.");
         }
 
         return null;
@@ -206,6 +257,25 @@ public class HeapTupleFile implements TupleFile {
      **/
     @Override
     public Tuple getNextTuple(Tuple tup) throws IOException {
+        return getNextTupleInRange(tup, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Returns the tuple that follows the specified tuple, or <tt>null</tt>
+     * if there are no more tuples before page <tt>endPageNo</tt>.  This is
+     * used with {@link #getFirstTupleInRange} to scan a range of pages.
+     *
+     * @param tup the tuple to continue the scan from
+     *
+     * @param endPageNo the page after the last page to scan
+     *
+     * @return the next tuple in the range of pages, or <tt>null</tt>
+     *
+     * @throws IOException if the file's pages can't be read
+     */
+    public Tuple getNextTupleInRange(Tuple tup, int endPageNo)
+        throws IOException {
 
         /* Procedure:
          *   1)  Get slot index of current tuple.
@@ -243,6 +313,12 @@ public class HeapTupleFile implements TupleFile {
             // tuples.  Go on to the next data-page, and start with the first
             // tuple in that page.
 
+            if (dbPage.getPageNo() + 1 >= endPageNo) {
+                // Hit the end of the range with no more tuples.
+                dbPage.unpin();
+                return null;
+            }
+
             try {
                 DBPage nextDBPage =
                     storageManager.loadDBPage(dbFile, dbPage.getPageNo() + 1);
@@ -364,6 +440,63 @@ public class HeapTupleFile implements TupleFile {
     }
 
 
+    /**
+     * Adds a tuple to the end of this file.  Unlike {@link #addTuple}, which
+     * stores the tuple in the first page on the free list with enough space,
+     * this method only stores the tuple in the last page of the file, or in a
+     * new page after it.  A scan of the file therefore returns the tuples in
+     * the order they were appended, which the sorted runs of an external sort
+     * rely on.  Pages added by this method are not put on the free list.
+     *
+     * @param tup the tuple to append to the file
+     *
+     * @return the tuple as stored in the file
+     *
+     * @throws IOException if the tuple is too large for a page, or if an IO
+     *         error occurs while the tuple is stored
+     */
+    public Tuple appendTuple(Tuple tup) throws IOException {
+        int tupSize = PageTuple.getTupleStorageSize(schema, tup);
+
+        // The "+ 2" is for the new slot entry.
+        if (tupSize + 2 > dbFile.getPageSize()) {
+            throw new IOException("Tuple size " + tupSize +
+                " is larger than page size " + dbFile.getPageSize() + ".");
+        }
+
+        DBPage dbPage = null;
+        int pageNo = dbFile.getNumPages() - 1;
+        if (pageNo > 0) {
+            dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            if (DataPage.getFreeSpaceInPage(dbPage) < tupSize + 2) {
+                dbPage.unpin();
+                dbPage = null;
+            }
+        }
+
+        if (dbPage == null) {
+            pageNo = dbFile.getNumPages();
+            logger.debug("Creating new page " + pageNo + " to append tuple.");
+            dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
+            DataPage.initNewPage(dbPage);
+        }
+
+        int slot = DataPage.allocNewTuple(dbPage, tupSize);
+        int tupOffset = DataPage.getSlotValue(dbPage, slot);
+
+        HeapFilePageTuple pageTup =
+            HeapFilePageTuple.storeNewTuple(schema, dbPage, slot, tupOffset, tup);
+
+        DataPage.sanityCheck(dbPage);
+
+        storageManager.logDBPageWrite(dbPage);
+
+        dbPage.unpin();
+
+        return pageTup;
+    }
+
+
     // Inherit interface-method documentation.
     /**
      *
@@ -464,9 +597,8 @@ public class HeapTupleFile implements TupleFile {
     public void analyze() throws IOException {
         int numColumns = schema.numColumns();
         int numTuples = 0;
-        int sumTupSize = 0;
-        int numDataPages = 0;
-        
+        long sumTupSize = 0;
+
         // Initialize the ColumnStatsCollectors
         List<ColumnStatsCollector> colStatCollectors = 
                 new ArrayList<ColumnStatsCollector>(); 
@@ -474,13 +606,19 @@ public class HeapTupleFile implements TupleFile {
             colStatCollectors.add(new ColumnStatsCollector(
                     schema.getColumnInfo(i).getType().getBaseType()));
         }
-        
-        int pageNo = 1;
-        DBPage dbPage = storageManager.loadDBPage(dbFile, 1);
-        try {
-            while (dbPage != null) {
-                numDataPages++;
+        ColumnDependencyCollector dependencyCollector =
+            new ColumnDependencyCollector(numColumns);
+
+        // Page 0 is the header page, so the data pages are all the others.
+        int numDataPages = Math.max(0, dbFile.getNumPages() - 1);
+        int[] pageNos = chooseSamplePages(numDataPages, getAnalyzeSampleRate());
+
+        logger.debug(String.format("Analyzing %d of the %d data pages of %s",
+            pageNos.length, numDataPages, dbFile));
 
+        for (int pageNo : pageNos) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            try {
                 int numSlots = DataPage.getNumSlots(dbPage);
                 for (int iSlot = 0; iSlot < numSlots; iSlot++) {
                     // Get the offset of the tuple in the page.  If it's 0 then
@@ -498,30 +636,110 @@ public class HeapTupleFile implements TupleFile {
                     for (int i = 0; i < numColumns; i++) {
                         colStatCollectors.get(i).addValue(ptup.getColumnValue(i));
                     }
+                    dependencyCollector.addTuple(ptup);
+
+                    // Release the tuple's pin on the page.
+                    dbPage.unpin();
                 }
-                dbPage = storageManager.loadDBPage(dbFile, ++pageNo);
+            }
+            finally {
+                dbPage.unpin();
             }
         }
-        catch (EOFException e) {
-            // We ran out of pages.  No tuples in the file!
-            logger.debug("Analyze function reached last page.");
-        }
-        
+
+        // If only some of the pages were read, the other pages are assumed
+        // to hold tuples like the ones that were read.
+        float scale = 1.0f;
+        if (pageNos.length > 0)
+            scale = (float) numDataPages / pageNos.length;
+
         // Generate the ColumnStats for each column statistic collector
         ArrayList<ColumnStats> colStats = new ArrayList<ColumnStats>();
         for (int i = 0; i < numColumns; i++) {
-            colStats.add(colStatCollectors.get(i).getColumnStats());
+            colStats.add(colStatCollectors.get(i).getColumnStats(scale));
         }
+        dependencyCollector.computeDependencies(colStats);
         
         // Store the calculated statistics
-        float avgTupleSize = sumTupSize / ((float) numTuples);
-        TableStats tStats = new TableStats(numDataPages, numTuples, 
-                avgTupleSize, colStats);
+        float avgTupleSize = 0;
+        if (numTuples > 0)
+            avgTupleSize = sumTupSize / ((float) numTuples);
+
+        TableStats tStats = new TableStats(numDataPages,
+                Math.round(numTuples * scale), avgTupleSize, colStats);
         stats = tStats;
         
         heapFileManager.saveMetadata(this);
     }
 
+
+    /**
+     * Returns the fraction of a heap file's data pages that <tt>ANALYZE</tt>
+     * reads, from the <tt>nanodb.analyze.sampleRate</tt> property.
+     *
+     * @return the fraction of pages to read, greater than 0 and at most 1
+     */
+    public static float getAnalyzeSampleRate() {
+        float sampleRate = DEFAULT_ANALYZE_SAMPLE_RATE;
+
+        String str = System.getProperty(PROP_ANALYZE_SAMPLE_RATE);
+        if (str != null) {
+            try {
+                sampleRate = Float.parseFloat(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse analyze sample rate \"%s\"; " +
+                    "using default value of %f", str,
+                    DEFAULT_ANALYZE_SAMPLE_RATE));
+            }
+
+            if (!(sampleRate > 0 && sampleRate <= 1)) {
+                logger.error(String.format(
+                    "Analyze sample rate %f is not between 0 and 1; using " +
+                    "default value of %f", sampleRate,
+                    DEFAULT_ANALYZE_SAMPLE_RATE));
+
+                sampleRate = DEFAULT_ANALYZE_SAMPLE_RATE;
+            }
+        }
+
+        return sampleRate;
+    }
+
+
+    /**
+     * Chooses a random sample of the data pages to analyze, with each page
+     * equally likely to be chosen.  The page numbers are returned in
+     * increasing order, so that the pages are read in file order.
+     *
+     * @param numDataPages the number of data pages in the file
+     *
+     * @param sampleRate the fraction of the pages to choose
+     *
+     * @return the numbers of the chosen pages, in increasing order
+     */
+    private int[] chooseSamplePages(int numDataPages, float sampleRate) {
+        int numToChoose = (int) Math.ceil(numDataPages * (double) sampleRate);
+        numToChoose = Math.max(Math.min(numToChoose, numDataPages),
+            Math.min(numDataPages, MIN_ANALYZE_SAMPLE_PAGES));
+
+        // This is Knuth's selection sampling technique (Algorithm S), which
+        // considers each page in turn, and chooses it with the probability
+        // (pages still needed) / (pages still to consider).
+        Random random = new Random();
+        int[] pageNos = new int[numToChoose];
+        int numChosen = 0;
+        for (int i = 0; i < numDataPages && numChosen < numToChoose; i++) {
+            if (random.nextInt(numDataPages - i) < numToChoose - numChosen) {
+                pageNos[numChosen] = i + 1;
+                numChosen++;
+            }
+        }
+
+        return pageNos;
+    }
+
     @Override
     public List<String> verify() throws IOException {
         // TODO!
@@ -0,0 +1,33 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+/**
+ * This class records one entry of the dirty-page table that is stored in a
+ * {@link WALRecordType#CHECKPOINT} record:  a page that was dirty in the
+ * Buffer Manager when the checkpoint was taken, along with the LSN of the
+ * first write-ahead log record that changed the page since it was last
+ * written to disk.
+ */
+public class DirtyPageEntry {
+    /** The name of the data file that the page is from. */
+    public String filename;
+
+
+    /** The page number of the dirty page. */
+    public int pageNo;
+
+
+    /**
+     * The recovery LSN of the page; redo processing must start no later than
+     * this log sequence number for the page's changes to be recovered.
+     */
+    public LogSequenceNumber recLSN;
+
+
+    public DirtyPageEntry(String filename, int pageNo,
+                          LogSequenceNumber recLSN) {
+        this.filename = filename;
+        this.pageNo = pageNo;
+        this.recLSN = recLSN;
+    }
+}
@@ -0,0 +1,332 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class is the append-only buffer that write-ahead log records are
+ * written into.  Log records don't go through the
+ * {@link edu.caltech.nanodb.storage.BufferManager}, since they are only ever
+ * appended to the end of the log, and would otherwise compete with table and
+ * index pages for space in the page cache.
+ * <p>
+ * The buffer is a ring of direct byte-buffers.  The byte at offset <i>n</i>
+ * of the current WAL file is stored in segment
+ * (<i>n</i> / {@link #SEGMENT_SIZE}) mod {@link #NUM_SEGMENTS}, so the single
+ * append position is simply the file-offset of the next log sequence number.
+ * Buffered data is written out with positional writes on the WAL file's
+ * {@link FileChannel} when the ring fills up, and when the log is forced.
+ * <p>
+ * The files themselves have the same format as before:  the WAL file type
+ * and the encoded page size in the first two bytes, the end offset of the
+ * previous WAL file at {@link WALManager#OFFSET_PREV_FILE_END}, and the log
+ * records starting at {@link WALManager#OFFSET_FIRST_RECORD}.
+ * <p>
+ * The {@link WALManager} owns the WAL buffer.  The buffer's methods are
+ * synchronized, but the WAL manager also calls them while holding its own
+ * monitor.
+ */
+public class WALBuffer {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(WALBuffer.class);
+
+
+    /** The size of each segment of the ring buffer. */
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+
+    /** The number of segments in the ring buffer. */
+    public static final int NUM_SEGMENTS = 8;
+
+
+    /** The total number of bytes that the ring buffer can hold. */
+    public static final int CAPACITY = SEGMENT_SIZE * NUM_SEGMENTS;
+
+
+    /** The directory that the WAL files are stored in. */
+    private File baseDir;
+
+
+    /** The segments of the ring buffer. */
+    private ByteBuffer[] segments;
+
+
+    /**
+     * The number of the WAL file that is currently being appended to, or -1
+     * if no WAL file is open yet.
+     */
+    private int fileNo = -1;
+
+
+    /** The WAL file that is currently being appended to. */
+    private RandomAccessFile walFile;
+
+
+    /** The channel of the WAL file that is currently being appended to. */
+    private FileChannel channel;
+
+
+    /** The file-offset that the next log record will be appended at. */
+    private int appendOffset;
+
+
+    /**
+     * The file-offset up to which the buffered data has been written to the
+     * WAL file.  Data between this offset and {@link #appendOffset} is only
+     * in the ring buffer.
+     */
+    private int writtenOffset;
+
+
+    /** Set to true if data has been written to the file since the last sync. */
+    private boolean needsSync = false;
+
+
+    public WALBuffer(File baseDir) {
+        this.baseDir = baseDir;
+
+        segments = new ByteBuffer[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++)
+            segments[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+    }
+
+
+    /**
+     * Returns the {@code File} object for the specified WAL file.
+     *
+     * @param fileNo the number of the WAL file
+     *
+     * @return the {@code File} object for the WAL file
+     */
+    public File getWALFile(int fileNo) {
+        return new File(baseDir, WALManager.getWALFileName(fileNo));
+    }
+
+
+    /**
+     * Appends a log record at the specified log sequence number.  The record
+     * is only copied into the ring buffer; it won't reach the WAL file until
+     * the buffer fills up, or {@link #force} is called.
+     *
+     * @param lsn the log sequence number to append the record at.  This must
+     *        be the position just past the previous record, or the start of
+     *        a new WAL file.
+     *
+     * @param data the bytes of the log record
+     *
+     * @param len the number of bytes in the log record
+     *
+     * @throws IOException if the WAL file couldn't be opened or written
+     */
+    public synchronized void append(LogSequenceNumber lsn, byte[] data,
+                                    int len) throws IOException {
+
+        if (lsn.getLogFileNo() != fileNo)
+            openForAppend(lsn);
+
+        if (lsn.getFileOffset() != appendOffset) {
+            throw new IllegalArgumentException(String.format(
+                "Can't append a record at LSN %s; the append position is " +
+                "offset %d of WAL file %d", lsn, appendOffset, fileNo));
+        }
+
+        if (len > CAPACITY - (appendOffset - writtenOffset))
+            writeBuffered();
+
+        if (len > CAPACITY) {
+            // The record won't fit in the ring buffer, so just write it.
+            writeFully(ByteBuffer.wrap(data, 0, len), appendOffset);
+            appendOffset += len;
+            writtenOffset = appendOffset;
+            return;
+        }
+
+        int off = 0;
+        while (off < len) {
+            int segOffset = appendOffset % SEGMENT_SIZE;
+            int size = Math.min(SEGMENT_SIZE - segOffset, len - off);
+
+            ByteBuffer buf = getSegment(appendOffset);
+            buf.position(segOffset);
+            buf.put(data, off, size);
+
+            appendOffset += size;
+            off += size;
+        }
+    }
+
+
+    /**
+     * Writes all buffered log records to the WAL file, without syncing the
+     * file.  This must be done before the WAL file is read, since records
+     * may otherwise still be in the ring buffer.
+     *
+     * @throws IOException if the WAL file couldn't be written
+     */
+    public synchronized void writeBuffered() throws IOException {
+        while (writtenOffset < appendOffset) {
+            int segOffset = writtenOffset % SEGMENT_SIZE;
+            int size = Math.min(SEGMENT_SIZE - segOffset,
+                appendOffset - writtenOffset);
+
+            ByteBuffer buf = getSegment(writtenOffset);
+            buf.limit(segOffset + size);
+            buf.position(segOffset);
+
+            writeFully(buf, writtenOffset);
+            writtenOffset += size;
+        }
+    }
+
+
+    /**
+     * Writes all buffered log records to the WAL file, and then syncs the
+     * file to disk.  WAL files before the current one are synced when the
+     * log moves on to the next file, so this forces the entire log.
+     *
+     * @throws IOException if the WAL file couldn't be written or synced
+     */
+    public synchronized void force() throws IOException {
+        if (channel == null)
+            return;
+
+        writeBuffered();
+        if (needsSync) {
+            channel.force(false);
+            needsSync = false;
+        }
+    }
+
+
+    /**
+     * Forces the log to disk, and closes the current WAL file.  The next
+     * append will reopen the WAL file.
+     *
+     * @throws IOException if the WAL file couldn't be written, synced or
+     *         closed
+     */
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+
+        force();
+        walFile.close();
+
+        walFile = null;
+        channel = null;
+        fileNo = -1;
+    }
+
+
+    /**
+     * Returns a reader positioned at the specified log sequence number.  Any
+     * buffered log records are written out first, so that the reader sees
+     * everything that has been appended to the log.
+     *
+     * @param lsn the log sequence number to start reading at
+     *
+     * @return a reader for the WAL file, positioned at the LSN's file-offset
+     *
+     * @throws FileNotFoundException if the WAL file doesn't exist
+     * @throws IOException if the WAL file couldn't be opened
+     */
+    public synchronized WALReader getReader(LogSequenceNumber lsn)
+        throws IOException {
+
+        if (lsn.getLogFileNo() == fileNo)
+            writeBuffered();
+
+        File f = getWALFile(lsn.getLogFileNo());
+        if (!f.isFile())
+            throw new FileNotFoundException("WAL file " + f + " doesn't exist.");
+
+        WALReader reader = new WALReader(f);
+        reader.setPosition(lsn.getFileOffset());
+        return reader;
+    }
+
+
+    /**
+     * Opens the WAL file for the specified log sequence number, creating it
+     * if it doesn't exist, and moves the append position to the LSN's
+     * file-offset.  If another WAL file is open, it is forced and closed
+     * first.
+     */
+    private void openForAppend(LogSequenceNumber lsn) throws IOException {
+        int prevFileNo = fileNo;
+        int prevFileEnd = appendOffset;
+
+        close();
+
+        int newFileNo = lsn.getLogFileNo();
+        File f = getWALFile(newFileNo);
+        boolean created = !f.exists();
+
+        if (created) {
+            // If the log is moving from the previous file into this one,
+            // record where the previous file ended so that the log can be
+            // traversed backward into it.
+            int expectedFileNo = prevFileNo + 1;
+            if (expectedFileNo > WALManager.MAX_WAL_FILE_NUMBER)
+                expectedFileNo = 0;
+
+            if (prevFileNo == -1 || newFileNo != expectedFileNo)
+                prevFileEnd = 0;
+
+            logger.debug("Creating WAL file " + f);
+        }
+        else {
+            logger.debug("Opening WAL file " + f);
+        }
+
+        walFile = new RandomAccessFile(f, "rw");
+        channel = walFile.getChannel();
+        fileNo = newFileNo;
+
+        if (created) {
+            ByteBuffer header =
+                ByteBuffer.allocate(WALManager.OFFSET_FIRST_RECORD);
+            header.put((byte) DBFileType.WRITE_AHEAD_LOG_FILE.getID());
+            header.put((byte) DBFile.encodePageSize(
+                StorageManager.getCurrentPageSize()));
+            header.putInt(prevFileEnd);
+            header.flip();
+            writeFully(header, 0);
+        }
+
+        appendOffset = lsn.getFileOffset();
+        writtenOffset = appendOffset;
+    }
+
+
+    /**
+     * Returns the ring-buffer segment holding the specified file-offset,
+     * with its limit cleared so that it can be filled.
+     */
+    private ByteBuffer getSegment(int fileOffset) {
+        ByteBuffer buf = segments[(fileOffset / SEGMENT_SIZE) % NUM_SEGMENTS];
+        buf.clear();
+        return buf;
+    }
+
+
+    /** Writes all of the buffer's remaining bytes at the specified offset. */
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+
+        needsSync = true;
+    }
+}
@@ -3,8 +3,11 @@ package edu.caltech.nanodb.storage.writeahead;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
 
 import edu.caltech.nanodb.transactions.TransactionManager;
 import org.apache.log4j.Logger;
@@ -12,9 +15,6 @@ import org.apache.log4j.Logger;
 import edu.caltech.nanodb.client.SessionState;
 import edu.caltech.nanodb.storage.BufferManager;
 import edu.caltech.nanodb.storage.DBFile;
-import edu.caltech.nanodb.storage.DBFileReader;
-import edu.caltech.nanodb.storage.DBFileType;
-import edu.caltech.nanodb.storage.DBFileWriter;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.transactions.TransactionState;
@@ -40,6 +40,18 @@ import edu.caltech.nanodb.util.ArrayUtil;
  * needed during recovery processing, when transaction state is dictated by the
  * log file, not what is in thread-local storage.
  * </p>
+ * <p>
+ * Many sessions may write records to the log at the same time, so records are
+ * appended while holding the WAL manager's monitor.  The
+ * {@link edu.caltech.nanodb.transactions.TransactionManager} also holds the
+ * monitor while it forces the log to disk.
+ * </p>
+ * <p>
+ * Log records don't go through the Buffer Manager.  Each record is encoded
+ * in memory and then appended to a {@link WALBuffer}, which writes the WAL
+ * files directly; recovery and rollback read the files with a
+ * {@link WALReader}.
+ * </p>
  */
 public class WALManager {
 
@@ -98,6 +110,17 @@ public class WALManager {
     private BufferManager bufferManager;
 
 
+    /** The append buffer that log records are written into. */
+    private WALBuffer walBuffer;
+
+
+    /**
+     * This stream is used to encode each log record before it is appended to
+     * the log.  Only used while holding the WAL manager's monitor.
+     */
+    private ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+
     /**
      * This object holds the log sequence number of the first write-ahead log
      * record where recovery would need to start from.
@@ -116,64 +139,53 @@ public class WALManager {
                       BufferManager bufferManager) {
         this.storageManager = storageManager;
         this.bufferManager = bufferManager;
+
+        walBuffer = new WALBuffer(storageManager.getBaseDir());
     }
 
 
-    /**
-     * This helper method creates a brand new write-ahead log file using the
-     * Storage Manager, generating a suitable filename and passing the
-     * appropriate arguments to the Storage Manager.
-     * 
-     * @param fileNo the number of the WAL file to create
-     *
-     * @return a {@link DBFile} for the newly created and opened WAL file
-     *
-     * @throws IOException if the file cannot be created for some reason
-     */
-    public DBFile createWALFile(int fileNo) throws IOException {
-        String filename = getWALFileName(fileNo);
-        logger.debug("Creating WAL file " + filename);
-        return storageManager.createDBFile(filename, DBFileType.WRITE_AHEAD_LOG_FILE);
+    public synchronized LogSequenceNumber getFirstLSN() {
+        return firstLSN;
+    }
+
+
+    public synchronized LogSequenceNumber getNextLSN() {
+        return nextLSN;
     }
 
 
     /**
-     * This helper method opens an existing write-ahead log file using the
-     * Storage Manager, generating a suitable filename and passing the
-     * appropriate arguments to the Storage Manager.  Of course, if the file has
-     * already been opened, the Storage Manager will return the {@code DBFile}
-     * from its cache.
-     *
-     * @param fileNo the number of the WAL file to open
-     *
-     * @return a {@link DBFile} for the opened WAL file
+     * Sets the log sequence number where recovery would need to start from.
+     * This is used by the Transaction Manager to advance the recovery start
+     * point when a checkpoint is taken.
      *
-     * @throws IOException if the file cannot be opened for some reason, such
-     *         as if the file doesn't exist, or if permissions are incorrect
+     * @param firstLSN the new log sequence number to start recovery from
      */
-    public DBFile openWALFile(int fileNo) throws IOException {
-        String filename = getWALFileName(fileNo);
-        logger.debug("Opening WAL file " + filename);
-
-        DBFile dbFile = storageManager.openDBFile(filename);
-        DBFileType type = dbFile.getType();
-
-        if (type != DBFileType.WRITE_AHEAD_LOG_FILE) {
-            throw new IOException(String.format(
-                "File %s is not of WAL-file type.", filename));
-        }
-
-        return dbFile;
+    public synchronized void setFirstLSN(LogSequenceNumber firstLSN) {
+        this.firstLSN = firstLSN;
     }
 
 
-    public LogSequenceNumber getFirstLSN() {
-        return firstLSN;
+    /**
+     * Writes out all log records that have been appended so far, and syncs
+     * the write-ahead log to disk.  This is used by the Transaction Manager
+     * to force the WAL.
+     *
+     * @throws IOException if the WAL couldn't be written or synced
+     */
+    public synchronized void force() throws IOException {
+        walBuffer.force();
     }
 
 
-    public LogSequenceNumber getNextLSN() {
-        return nextLSN;
+    /**
+     * Forces the write-ahead log to disk and closes the current WAL file.
+     * This is called when the Transaction Manager shuts down.
+     *
+     * @throws IOException if the WAL couldn't be written, synced or closed
+     */
+    public synchronized void close() throws IOException {
+        walBuffer.close();
     }
 
 
@@ -234,11 +246,15 @@ public class WALManager {
         logger.debug("Starting redo processing at LSN " + currLSN);
 
         LogSequenceNumber oldLSN = null;
-        DBFileReader walReader = null;
+        WALReader walReader = null;
 
         while (currLSN.compareTo(recoveryInfo.nextLSN) < 0) {
-            if (oldLSN == null || oldLSN.getLogFileNo() != currLSN.getLogFileNo())
+            if (oldLSN == null || oldLSN.getLogFileNo() != currLSN.getLogFileNo()) {
+                if (walReader != null)
+                    walReader.close();
+
                 walReader = getWALFileReader(currLSN);
+            }
 
             // Read the parts of the log record that are always the same.
             byte typeID = walReader.readByte();
@@ -344,6 +360,32 @@ public class WALManager {
                 recoveryInfo.recordTxnCompleted(transactionID);
                 logger.debug(String.format("prevLSN: %s", prevLSN));
             	break;
+            case CHECKPOINT:
+                logger.debug("Detected CHECKPOINT record");
+                // Recovery already starts early enough to see every record
+                // that the checkpoint describes, so the active-transaction
+                // and dirty-page tables are just skipped over.
+                int numTxns = walReader.readInt();
+                for (int i = 0; i < numTxns; i++) {
+                    walReader.readInt();
+                    walReader.readUnsignedShort();
+                    walReader.readInt();
+                }
+
+                int numPages = walReader.readInt();
+                for (int i = 0; i < numPages; i++) {
+                    walReader.readVarString255();
+                    walReader.readUnsignedShort();
+                    walReader.readUnsignedShort();
+                    walReader.readInt();
+                }
+
+                // Read remaining 4 byte file offset
+                walReader.readInt();
+
+                logger.debug(String.format("numTxns: %d, numPages: %d",
+                    numTxns, numPages));
+                break;
             default:
             	throw new WALFileException(
             			"Encountered unrecognized WAL record type " + type +
@@ -355,6 +397,9 @@ public class WALManager {
             currLSN = computeNextLSN(currLSN.getLogFileNo(), walReader.getPosition());
         }
 
+        if (walReader != null)
+            walReader.close();
+
         if (currLSN.compareTo(recoveryInfo.nextLSN) != 0) {
             throw new WALFileException("Traversing WAL file didn't yield " +
                 " the same ending LSN as in the transaction-state file.  WAL " +
@@ -371,7 +416,7 @@ public class WALManager {
         logger.debug("Starting undo processing at " + currLSN);
 
         LogSequenceNumber oldLSN = null;
-        DBFileReader walReader = null;
+        WALReader walReader = null;
         while (recoveryInfo.hasIncompleteTxns()) {
             // Compute LSN of previous WAL record.  Start by getting the last
             // byte of the previous WAL record.
@@ -384,6 +429,9 @@ public class WALManager {
             if (fileOffset == OFFSET_FIRST_RECORD) {
                 // Need to read the "previous WAL file's last offset" value
                 // from the current WAL file.
+                if (walReader != null)
+                    walReader.close();
+
                 walReader = getWALFileReader(currLSN);
                 walReader.setPosition(OFFSET_PREV_FILE_END);
                 int prevFileEndOffset = walReader.readInt();
@@ -411,10 +459,15 @@ public class WALManager {
             if (currLSN.compareTo(recoveryInfo.firstLSN) <= 0)
                 break;
 
-            if (oldLSN == null || oldLSN.getLogFileNo() != logFileNo)
+            if (oldLSN == null || oldLSN.getLogFileNo() != logFileNo) {
+                if (walReader != null)
+                    walReader.close();
+
                 walReader = getWALFileReader(currLSN);
-            else
+            }
+            else {
                 walReader.setPosition(currLSN.getFileOffset());
+            }
 
             // Move backward one byte in the WAL file to read the previous
             // record's type ID.
@@ -440,6 +493,7 @@ public class WALManager {
 
             case UPDATE_PAGE:
             case UPDATE_PAGE_REDO_ONLY:
+            case CHECKPOINT:
                 // For these records, the WAL record's start offset is stored
                 // immediately before the last type-byte.  We go back 5 bytes
                 // because reading the type ID moves the position forward by
@@ -536,6 +590,9 @@ public class WALManager {
             oldLSN = currLSN;
         }
 
+        if (walReader != null)
+            walReader.close();
+
         logger.debug("Undo processing is complete.");
     }
 
@@ -570,76 +627,95 @@ public class WALManager {
 
 
     /**
-     * This method opens the WAL file specified in the passed-in Log Sequence
-     * Number, wraps it with a {@link DBFileWriter} so that it can be read and
-     * written, and then seeks to the specified file offset.
+     * This method returns a {@link WALReader} for the WAL file specified in
+     * the passed-in Log Sequence Number, positioned at the specified file
+     * offset.  Any log records still in the append buffer are written out
+     * first, so the reader sees the entire log.  The reader should be closed
+     * when it is no longer needed.
      *
-     * Because we are writing, the file may not yet exist.  In that case, this
-     * method will also create a new WAL file for the specified file number,
-     * initializing it with the proper values, and then seeking to the location
-     * where the first WAL record may be written.
+     * Since we are reading, the expectation is that the file already
+     * exists, so a {@link java.io.FileNotFoundException} will be thrown if it
+     * does not exist.
      *
      * @param lsn The log sequence number specifying the WAL file and the offset
      *            in the WAL file to go to.
      *
-     * @return the WAL file, with the file position moved to the specified
-     *         offset.
+     * @return a reader for the WAL file, with the file position moved to the
+     *         specified offset.
      *
-     * @throws IOException if the corresponding WAL file cannot be opened, or
-     *         if some other IO error occurs.
+     * @throws IOException if an IO error occurs while opening the WAL file,
+     *         such as the required file not actually existing.
      */
-    private DBFileWriter getWALFileWriter(LogSequenceNumber lsn)
+    private WALReader getWALFileReader(LogSequenceNumber lsn)
         throws IOException {
 
-        int fileNo = lsn.getLogFileNo();
-        int offset = lsn.getFileOffset();
-
-        DBFile walFile;
-        try {
-            walFile = openWALFile(fileNo);
-        }
-        catch (FileNotFoundException e) {
-            logger.debug("WAL file doesn't exist!  WAL is expanding into a new file.");
-            walFile = createWALFile(fileNo);
-            // TODO:  Write the previous WAL file's last file-offset into the new WAL file's start.
-        }
+        return walBuffer.getReader(lsn);
+    }
 
-        DBFileWriter writer = new DBFileWriter(walFile, storageManager);
-        writer.setPosition(offset);
 
-        return writer;
+    /**
+     * This helper method clears {@link #recordBytes}, and returns a stream
+     * that the next log record can be encoded into.
+     *
+     * @return a stream for encoding the next log record
+     */
+    private DataOutputStream startRecord() {
+        recordBytes.reset();
+        return new DataOutputStream(recordBytes);
     }
 
 
     /**
-     * This method opens the WAL file specified in the passed-in Log Sequence
-     * Number, wraps it with a {@link DBFileReader} so that it can be read from,
-     * and then seeks to the specified file offset.
+     * This helper method appends the log record encoded in
+     * {@link #recordBytes} to the write-ahead log at the specified LSN, sets
+     * the LSN's record size, and advances {@link #nextLSN} past the record.
      *
-     * Since we are reading, the expectation is that the file already
-     * exists, so a {@link java.io.FileNotFoundException} will be thrown if it
-     * does not exist.
+     * @param lsn the log sequence number of the record, which must be the
+     *        current value of {@link #nextLSN}
      *
-     * @param lsn The log sequence number specifying the WAL file and the offset
-     *            in the WAL file to go to.
+     * @throws IOException if the record couldn't be appended to the log
+     */
+    private void appendRecord(LogSequenceNumber lsn) throws IOException {
+        byte[] data = recordBytes.toByteArray();
+        walBuffer.append(lsn, data, data.length);
+
+        lsn.setRecordSize(data.length);
+        nextLSN = computeNextLSN(lsn.getLogFileNo(),
+            lsn.getFileOffset() + data.length);
+    }
+
+
+    /**
+     * This helper method writes a string of up to 255 characters, in the
+     * same format as {@link edu.caltech.nanodb.storage.DBFileWriter#writeVarString255}.
      *
-     * @return the WAL file, with the file position moved to the specified
-     *         offset.
+     * @param dos the stream to write the string to
      *
-     * @throws IOException if an IO error occurs while opening the WAL file,
-     *         such as the required file not actually existing.
+     * @param value the string to write
+     *
+     * @throws IOException if the string couldn't be written
      */
-    private DBFileReader getWALFileReader(LogSequenceNumber lsn)
+    private static void writeVarString255(DataOutputStream dos, String value)
         throws IOException {
 
-        int fileNo = lsn.getLogFileNo();
-        int offset = lsn.getFileOffset();
+        byte[] strBytes;
+
+        try {
+            strBytes = value.getBytes("US-ASCII");
+        }
+        catch (UnsupportedEncodingException e) {
+            // According to the Java docs, the US-ASCII character-encoding is
+            // required to be supported by all JVMs.  So, this is not supposed
+            // to happen.
+            logger.error("The unthinkable has happened!", e);
+            throw new RuntimeException("The unthinkable has happened!", e);
+        }
 
-        DBFile walFile = openWALFile(fileNo);
-        DBFileReader reader = new DBFileReader(walFile, storageManager);
-        reader.setPosition(offset);
+        if (strBytes.length > 255)
+            throw new IllegalArgumentException("value must be 255 bytes or less");
 
-        return reader;
+        dos.writeByte(strBytes.length);
+        dos.write(strBytes);
     }
 
 
@@ -671,7 +747,7 @@ public class WALManager {
      *         it isn't one of the values {@link WALRecordType#START_TXN},
      *         {@link WALRecordType#COMMIT_TXN}, or {@link WALRecordType#ABORT_TXN}.
      */
-    public LogSequenceNumber writeTxnRecord(WALRecordType type,
+    public synchronized LogSequenceNumber writeTxnRecord(WALRecordType type,
         int transactionID, LogSequenceNumber prevLSN) throws IOException {
 
         if (type != WALRecordType.START_TXN &&
@@ -692,29 +768,25 @@ public class WALManager {
         logger.debug("Writing a " + type + " record for transaction " +
             transactionID + " at LSN " + lsn);
 
-        // Record the WAL record.  First thing to do:  figure out where it goes.
+        // Encode the WAL record, and then append it to the log.
 
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        DataOutputStream walWriter = startRecord();
 
         walWriter.writeByte(type.getID());
         walWriter.writeInt(transactionID);
 
         if (type == WALRecordType.START_TXN) {
-            walWriter.writeByte(type.getID());
-
             // TypeID (1B) + TransactionID (4B) + TypeID (1B)
-            lsn.setRecordSize(6);
+            walWriter.writeByte(type.getID());
         }
         else {
+            // TypeID (1B) + TransactionID (4B) + PrevLSN (6B) + TypeID (1B)
             walWriter.writeShort(prevLSN.getLogFileNo());
             walWriter.writeInt(prevLSN.getFileOffset());
             walWriter.writeByte(type.getID());
-
-            // TypeID (1B) + TransactionID (4B) + PrevLSN (6B) + TypeID (1B)
-            lsn.setRecordSize(12);
         }
 
-        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
+        appendRecord(lsn);
         logger.debug("Next-LSN value is now " + nextLSN);
 
         return lsn;
@@ -774,8 +846,8 @@ public class WALManager {
      * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
      *         if it shows no updates.
      */
-    public LogSequenceNumber writeUpdatePageRecord(DBPage dbPage)
-        throws IOException {
+    public synchronized LogSequenceNumber writeUpdatePageRecord(
+        DBPage dbPage) throws IOException {
 
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage must be specified");
@@ -795,9 +867,9 @@ public class WALManager {
         logger.debug(String.format("Writing an %s record for transaction %d at LSN %s",
             WALRecordType.UPDATE_PAGE, txnState.getTransactionID(), lsn));
 
-        // Record the WAL record.  First thing to do:  figure out where it goes.
+        // Encode the WAL record, and then append it to the log.
 
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        DataOutputStream walWriter = startRecord();
 
         walWriter.writeByte(WALRecordType.UPDATE_PAGE.getID());
         walWriter.writeInt(txnState.getTransactionID());
@@ -808,18 +880,23 @@ public class WALManager {
         walWriter.writeInt(prevLSN.getFileOffset());
 
         // Store the filename and page number that is being updated.
-        walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
+        writeVarString255(walWriter,
+            dbPage.getDBFile().getDataFile().getName());
         walWriter.writeShort(dbPage.getPageNo());
 
-        // This offset is where we will store the number of data segments we
-        // need to record.  We don't know the value until later, so remember
-        // the position and fill it in later.
-        int segCountOffset = walWriter.getPosition();
-        walWriter.writeShort(-1);
-        
-        byte[] oldData = dbPage.getOldPageData();
-        byte[] newData = dbPage.getPageData();
+        // The number of data segments comes before the segments, but we
+        // don't know the value until later, so the segments are encoded
+        // separately first.
+        ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+        DataOutputStream segWriter = new DataOutputStream(segmentBytes);
+
+        // The page's data is held off-heap, so copy out the old and new
+        // versions of the page to compare them.
         int pageSize = dbPage.getPageSize();
+        byte[] oldData = new byte[pageSize];
+        byte[] newData = new byte[pageSize];
+        dbPage.getOldPageData().duplicate().get(oldData);
+        dbPage.getPageData().duplicate().get(newData);
 
         // DEBUG:  Show changes from old version of page to new version of page.
         // logger.debug("DBPage changes:\n" + dbPage.getChangesAsString());
@@ -863,12 +940,12 @@ public class WALManager {
 
             // Write the starting index within the page, and the amount of
             // data that will be recorded at that index.
-            walWriter.writeShort(index);
-            walWriter.writeShort(size);
+            segWriter.writeShort(index);
+            segWriter.writeShort(size);
 
             // Write the old data (undo), and then the new data (redo).
-            walWriter.write(oldData, index, size);
-            walWriter.write(newData, index, size);
+            segWriter.write(oldData, index, size);
+            segWriter.write(newData, index, size);
 
             numSegments++;
 
@@ -877,11 +954,9 @@ public class WALManager {
         assert index == pageSize;
 
         // Now that we know how many segments were recorded, store that value
-        // at the appropriate location.
-        int currOffset = walWriter.getPosition();
-        walWriter.setPosition(segCountOffset);
+        // followed by the segments themselves.
         walWriter.writeShort(numSegments);
-        walWriter.setPosition(currOffset);
+        segmentBytes.writeTo(walWriter);
 
         // Write the start of the update record at the end so that we can get
         // back to the record's start when scanning the log backwards.
@@ -889,8 +964,9 @@ public class WALManager {
         walWriter.writeInt(lsn.getFileOffset());
         walWriter.writeByte(WALRecordType.UPDATE_PAGE.getID());
 
+        appendRecord(lsn);
+
         // Store the LSN of the change on the page.
-        lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
         dbPage.setPageLSN(lsn);
         dbPage.syncOldPageData();
 
@@ -898,12 +974,111 @@ public class WALManager {
         // transaction, update the "last LSN" value for the transaction.
         txnState.setLastLSN(lsn);
 
-        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
+        return lsn;
+    }
+
+
+    /**
+     * This method writes a checkpoint record to the write-ahead log, holding
+     * the active-transaction table and the dirty-page table of a fuzzy
+     * checkpoint.  Checkpoint records don't belong to any transaction.
+     *
+     * @param activeTxns a map from the ID of each transaction that has
+     *        written to the log and not yet completed, to the LSN of the
+     *        transaction's start record
+     *
+     * @param dirtyPages the dirty-page table from the Buffer Manager
+     *
+     * @return the Log Sequence Number of the WAL record that was written
+     *
+     * @throws IOException if the write-ahead log cannot be updated for some
+     *         reason.
+     */
+    public synchronized LogSequenceNumber writeCheckpointRecord(
+        Map<Integer, LogSequenceNumber> activeTxns,
+        List<DirtyPageEntry> dirtyPages) throws IOException {
+
+        LogSequenceNumber lsn = nextLSN;
+
+        logger.debug(String.format("Writing a %s record with %d active " +
+            "transactions and %d dirty pages at LSN %s",
+            WALRecordType.CHECKPOINT, activeTxns.size(), dirtyPages.size(),
+            lsn));
+
+        DataOutputStream walWriter = startRecord();
+
+        walWriter.writeByte(WALRecordType.CHECKPOINT.getID());
+        walWriter.writeInt(TransactionState.NO_TRANSACTION);
+
+        walWriter.writeInt(activeTxns.size());
+        for (Map.Entry<Integer, LogSequenceNumber> entry :
+             activeTxns.entrySet()) {
+            walWriter.writeInt(entry.getKey());
+            walWriter.writeShort(entry.getValue().getLogFileNo());
+            walWriter.writeInt(entry.getValue().getFileOffset());
+        }
+
+        walWriter.writeInt(dirtyPages.size());
+        for (DirtyPageEntry entry : dirtyPages) {
+            writeVarString255(walWriter, entry.filename);
+            walWriter.writeShort(entry.pageNo);
+            walWriter.writeShort(entry.recLSN.getLogFileNo());
+            walWriter.writeInt(entry.recLSN.getFileOffset());
+        }
+
+        // Write the start of the checkpoint record at the end so that we can
+        // get back to the record's start when scanning the log backwards.
+
+        walWriter.writeInt(lsn.getFileOffset());
+        walWriter.writeByte(WALRecordType.CHECKPOINT.getID());
+
+        appendRecord(lsn);
 
         return lsn;
     }
 
 
+    /**
+     * Deletes the WAL files that come entirely before the specified log
+     * sequence number.  Files are deleted going backward from the file just
+     * before the LSN's file, until a file is found not to exist.  This must
+     * only be called once the transaction-state file records a "first LSN"
+     * at or after the specified LSN, since recovery will no longer read the
+     * deleted files.
+     *
+     * @param lsn WAL files before the file containing this LSN are deleted
+     *
+     * @return the number of WAL files that were deleted
+     */
+    public synchronized int deleteWALFilesBefore(LogSequenceNumber lsn) {
+        int deleted = 0;
+
+        int fileNo = lsn.getLogFileNo();
+        while (true) {
+            fileNo--;
+            if (fileNo < 0)  // Wrap around?
+                fileNo = MAX_WAL_FILE_NUMBER;
+
+            if (fileNo == lsn.getLogFileNo())
+                break;
+
+            File f = walBuffer.getWALFile(fileNo);
+            if (!f.exists())
+                break;
+
+            logger.debug("Deleting old WAL file " + f);
+            if (!f.delete()) {
+                logger.warn("Couldn't delete old WAL file " + f);
+                break;
+            }
+
+            deleted++;
+        }
+
+        return deleted;
+    }
+
+
     /**
      * This helper function writes a sequence of redo-segments from an
      * {@link WALRecordType#UPDATE_PAGE} or
@@ -925,7 +1100,7 @@ public class WALManager {
      *        this value is expected to already be unpacked from the log record
      * @throws IOException
      */
-    private void applyRedo(WALRecordType type, DBFileReader walReader,
+    private void applyRedo(WALRecordType type, WALReader walReader,
                            DBPage dbPage, int numSegments) throws IOException {
 
         if (type != WALRecordType.UPDATE_PAGE &&
@@ -972,7 +1147,7 @@ public class WALManager {
      * @throws IOException if an IO error occurs while applying the undo
      *         operation
      */
-    private byte[] applyUndoAndGenRedoOnlyData(DBFileReader walReader,
+    private byte[] applyUndoAndGenRedoOnlyData(WALReader walReader,
         DBPage dbPage, int numSegments) throws IOException {
 
         ByteArrayOutputStream redoOnlyBAOS = new ByteArrayOutputStream();
@@ -1031,9 +1206,9 @@ public class WALManager {
      * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
      *         if <tt>changes</tt> is <tt>null</tt>.
      */
-    public LogSequenceNumber writeRedoOnlyUpdatePageRecord(int transactionID,
-        LogSequenceNumber prevLSN, DBPage dbPage, int numSegments,
-        byte[] changes) throws IOException {
+    public synchronized LogSequenceNumber writeRedoOnlyUpdatePageRecord(
+        int transactionID, LogSequenceNumber prevLSN, DBPage dbPage,
+        int numSegments, byte[] changes) throws IOException {
 
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage must be specified");
@@ -1048,7 +1223,7 @@ public class WALManager {
         logger.debug(String.format("Writing redo-only update record for " +
             "transaction %d at LSN %s.  PrevLSN = %s", transactionID, lsn, prevLSN));
 
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        DataOutputStream walWriter = startRecord();
 
         walWriter.writeByte(WALRecordType.UPDATE_PAGE_REDO_ONLY.getID());
         walWriter.writeInt(transactionID);
@@ -1057,7 +1232,8 @@ public class WALManager {
         walWriter.writeShort(prevLSN.getLogFileNo());
         walWriter.writeInt(prevLSN.getFileOffset());
 
-        walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
+        writeVarString255(walWriter,
+            dbPage.getDBFile().getDataFile().getName());
         walWriter.writeShort(dbPage.getPageNo());
 
         // Write the redo-only data.
@@ -1070,13 +1246,12 @@ public class WALManager {
         walWriter.writeInt(lsn.getFileOffset());
         walWriter.writeByte(WALRecordType.UPDATE_PAGE_REDO_ONLY.getID());
 
+        appendRecord(lsn);
+
         // Store the LSN of the change on the page.
-        lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
         dbPage.setPageLSN(lsn);
         dbPage.syncOldPageData();
 
-        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
-
         return lsn;
     }
 
@@ -1151,9 +1326,20 @@ public class WALManager {
         // Scan backward through the log records for this transaction to roll
         // it back.
         LogSequenceNumber prevLSN;
-        
+        WALReader walReader = null;
+        int readerFileNo = -1;
+
         while (true) {
-            DBFileReader walReader = getWALFileReader(lsn);
+            if (walReader == null || readerFileNo != lsn.getLogFileNo()) {
+                if (walReader != null)
+                    walReader.close();
+
+                walReader = getWALFileReader(lsn);
+                readerFileNo = lsn.getLogFileNo();
+            }
+            else {
+                walReader.setPosition(lsn.getFileOffset());
+            }
 
             WALRecordType type = WALRecordType.valueOf(walReader.readByte());
             int recordTxnID = walReader.readInt();
@@ -1211,6 +1397,9 @@ public class WALManager {
 
         }
 
+        if (walReader != null)
+            walReader.close();
+
         // All done rolling back the transaction!  Record that it was aborted
         // in the WAL.
         writeTxnRecord(WALRecordType.ABORT_TXN);
@@ -0,0 +1,243 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * This class reads a write-ahead log file as a single sequential file, for
+ * recovery processing and transaction rollback.  Like the {@link WALBuffer},
+ * it doesn't use the {@link edu.caltech.nanodb.storage.BufferManager};
+ * instead, it reads a window of the file at a time with positional reads.
+ * The reading methods follow those of
+ * {@link edu.caltech.nanodb.storage.DBFileReader}, so values are read in
+ * big-endian byte order.
+ * <p>
+ * Readers are obtained from {@link WALBuffer#getReader}, and should be
+ * closed when they are no longer needed.
+ */
+public class WALReader {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(WALReader.class);
+
+
+    /** The number of bytes of the WAL file that are read at a time. */
+    public static final int WINDOW_SIZE = 8192;
+
+
+    /** The WAL file being read. */
+    private RandomAccessFile walFile;
+
+
+    /** The channel of the WAL file being read. */
+    private FileChannel channel;
+
+
+    /** This buffer holds the window of the file that was last read. */
+    private ByteBuffer window;
+
+
+    /** The file-offset of the start of the window. */
+    private int windowStart;
+
+
+    /** The current position in the file where reads will occur from. */
+    private int position;
+
+
+    /** This temporary buffer is used to read primitive values. */
+    private byte[] tmpBuf = new byte[4];
+
+
+    public WALReader(File f) throws IOException {
+        walFile = new RandomAccessFile(f, "r");
+        channel = walFile.getChannel();
+
+        window = ByteBuffer.allocate(WINDOW_SIZE);
+        window.limit(0);
+        windowStart = 0;
+    }
+
+
+    /** Closes the WAL file being read. */
+    public void close() throws IOException {
+        walFile.close();
+    }
+
+
+    /**
+     * Returns the current location in the file where the next read will
+     * start from.
+     *
+     * @return the current location in the file
+     */
+    public int getPosition() {
+        return position;
+    }
+
+
+    /**
+     * Sets the location in the file where the next read will start from.
+     *
+     * @param position the new location in the file
+     */
+    public void setPosition(int position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must be >= 0, got " +
+                position);
+        }
+
+        this.position = position;
+    }
+
+
+    /**
+     * Move the current position by <tt>n</tt> bytes.  A negative value of
+     * <tt>n</tt> will move the position backward.
+     *
+     * @param n the delta to apply to the current position
+     */
+    public void movePosition(int n) {
+        if (position + n < 0)
+            throw new IllegalArgumentException("can't move position before file start");
+
+        position += n;
+    }
+
+
+    /**
+     * Reads the window of the file starting at the current position.
+     *
+     * @throws EOFException if the current position is at or past the end of
+     *         the file
+     */
+    private void readWindow() throws IOException {
+        window.clear();
+        windowStart = position;
+
+        while (window.hasRemaining()) {
+            int n = channel.read(window, windowStart + window.position());
+            if (n == -1)
+                break;
+        }
+        window.flip();
+
+        if (!window.hasRemaining()) {
+            throw new EOFException("Reached the end of the WAL file at " +
+                "position " + position);
+        }
+    }
+
+
+    /**
+     * Read a sequence of bytes into the provided byte-array, starting with
+     * the specified offset, and reading the specified number of bytes.
+     *
+     * @param b the byte-array to read bytes into
+     *
+     * @param off the offset to read the bytes into the array
+     *
+     * @param len the number of bytes to read into the array
+     */
+    public void read(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int windowOffset = position - windowStart;
+            if (windowOffset < 0 || windowOffset >= window.limit()) {
+                readWindow();
+                windowOffset = 0;
+            }
+
+            int size = Math.min(window.limit() - windowOffset, len);
+            window.position(windowOffset);
+            window.get(b, off, size);
+
+            position += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+
+    /**
+     * Read a sequence of bytes into the provided byte-array.  The entire
+     * array is filled from start to end.
+     *
+     * @param b the byte-array to read bytes into
+     */
+    public void read(byte[] b) throws IOException {
+        read(b, 0, b.length);
+    }
+
+
+    /** Reads and returns a signed byte from the current position. */
+    public byte readByte() throws IOException {
+        read(tmpBuf, 0, 1);
+        return tmpBuf[0];
+    }
+
+
+    /**
+     * Reads and returns an unsigned byte from the current position.  The value
+     * is returned as an <tt>int</tt> whose value will be between 0 and 255,
+     * inclusive.
+     */
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+
+    /**
+     * Reads and returns an unsigned short from the current position.  The value
+     * is returned as an <tt>int</tt> whose value will be between 0 and 65535,
+     * inclusive.
+     */
+    public int readUnsignedShort() throws IOException {
+        read(tmpBuf, 0, 2);
+        return ((tmpBuf[0] & 0xFF) << 8) | (tmpBuf[1] & 0xFF);
+    }
+
+
+    /** Reads and returns a signed int from the current position. */
+    public int readInt() throws IOException {
+        read(tmpBuf, 0, 4);
+        return ((tmpBuf[0] & 0xFF) << 24) | ((tmpBuf[1] & 0xFF) << 16) |
+               ((tmpBuf[2] & 0xFF) <<  8) | ((tmpBuf[3] & 0xFF)      );
+    }
+
+
+    /**
+     * This method reads and returns a variable-length string whose maximum
+     * length is 255 bytes.  The string is expected to be in US-ASCII
+     * encoding, so multibyte characters are not supported.
+     * <p>
+     * The string's data format is expected to be a single unsigned byte
+     * <em>b</em> specifying the string's length, followed by <em>b</em> more
+     * bytes consisting of the string value itself.
+     */
+    public String readVarString255() throws IOException {
+        int len = readUnsignedByte();
+        byte[] strBytes = new byte[len];
+        read(strBytes);
+
+        String str = null;
+        try {
+            str = new String(strBytes, 0, len, "US-ASCII");
+        }
+        catch (UnsupportedEncodingException e) {
+            // According to the Java docs, the US-ASCII character-encoding is
+            // required to be supported by all JVMs.  So, this is not supposed
+            // to happen.
+            logger.error("The unthinkable has happened:  " + e);
+        }
+
+        return str;
+    }
+}
@@ -35,7 +35,13 @@ public enum WALRecordType {
      * The record represents a "&lt;<i>T<sub>i</sub></i>:  abort
      * transaction&gt;" record.
      */
-    ABORT_TXN(11);
+    ABORT_TXN(11),
+
+    /**
+     * The record represents a "&lt;checkpoint&gt;" record, holding the
+     * active-transaction table and dirty-page table of a fuzzy checkpoint.
+     */
+    CHECKPOINT(20);
 
 
     private int id;
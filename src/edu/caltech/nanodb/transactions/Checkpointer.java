@@ -0,0 +1,135 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * This class takes checkpoints periodically for the
+ * {@link TransactionManager}, so that the recovery start point keeps
+ * advancing and old WAL files can be deleted, even if the database is never
+ * shut down cleanly.  A checkpoint is skipped if nothing has been written to
+ * the write-ahead log since the previous one.
+ */
+class Checkpointer implements Runnable {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(Checkpointer.class);
+
+
+    private TransactionManager transactionManager;
+
+
+    /** The number of seconds to wait between checkpoints. */
+    private long interval;
+
+
+    /** The checkpointer thread, or {@code null} if it isn't running. */
+    private Thread thread;
+
+
+    /** Set when the checkpointer is being shut down. */
+    private boolean shuttingDown = false;
+
+
+    public Checkpointer(TransactionManager transactionManager, long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+
+        this.transactionManager = transactionManager;
+        this.interval = interval;
+    }
+
+
+    /** Starts the checkpointer thread. */
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("Checkpointer already started");
+
+        shuttingDown = false;
+        thread = new Thread(this, "Checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Stops the checkpointer thread, waiting for a checkpoint to finish if
+     * one is being taken.
+     */
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            shuttingDown = true;
+            notifyAll();
+        }
+
+        if (t != null) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for the checkpointer " +
+                    "to stop.");
+            }
+        }
+
+        synchronized (this) {
+            thread = null;
+        }
+    }
+
+
+    /**
+     * Waits until the next checkpoint is due, and returns {@code true}, or
+     * returns {@code false} if the checkpointer should stop.
+     */
+    private synchronized boolean waitForNextCheckpoint()
+        throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + interval * 1000;
+        long remaining = interval * 1000;
+        while (remaining > 0 && !shuttingDown) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        return !shuttingDown;
+    }
+
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (!waitForNextCheckpoint())
+                    break;
+            }
+            catch (InterruptedException e) {
+                logger.warn("Checkpointer was interrupted.");
+                continue;
+            }
+
+            if (!transactionManager.hasLoggedSinceCheckpoint()) {
+                logger.debug("Nothing logged since the last checkpoint; " +
+                    "skipping checkpoint.");
+                continue;
+            }
+
+            try {
+                transactionManager.checkpoint();
+            }
+            catch (IOException e) {
+                logger.error("Couldn't take a checkpoint", e);
+            }
+            catch (RuntimeException e) {
+                // Don't let the checkpointer die; the next checkpoint may
+                // still succeed.
+                logger.error("Couldn't take a checkpoint", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
+
+
+/**
+ * This class implements group commit for the {@link TransactionManager}.
+ * Rather than every committing transaction forcing the write-ahead log to
+ * disk itself, each commit enqueues the LSN of its commit record and waits.
+ * A single flusher thread takes all of the commits that are waiting, forces
+ * the WAL once up to the largest of their LSNs, and then wakes them all up.
+ * When many small transactions commit at the same time, this replaces one
+ * WAL sync and one transaction-state update per commit with one per batch.
+ * <p>
+ * The flusher can optionally wait for a short delay after the first commit
+ * of a batch arrives, so that more commits can join the batch.  Even with no
+ * delay, commits that arrive while a batch is being forced are grouped into
+ * the next batch.
+ */
+class GroupCommitter implements Runnable {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(GroupCommitter.class);
+
+
+    /** This class records a single commit that is waiting to be forced. */
+    private static class CommitRequest {
+        /** The LSN of the transaction's commit record. */
+        LogSequenceNumber lsn;
+
+        /** Set to true once the WAL has been forced past the commit record. */
+        boolean done = false;
+
+        /** If forcing the WAL failed, this is the reason why. */
+        IOException error = null;
+
+        CommitRequest(LogSequenceNumber lsn) {
+            this.lsn = lsn;
+        }
+    }
+
+
+    private TransactionManager transactionManager;
+
+
+    /**
+     * The number of microseconds that the flusher waits for more commits to
+     * arrive, after the first commit of a batch arrives.
+     */
+    private long maxDelay;
+
+
+    /**
+     * The commits that are waiting for the next batch.  Only accessed while
+     * holding this object's monitor.
+     */
+    private ArrayList<CommitRequest> pending = new ArrayList<CommitRequest>();
+
+
+    /** The flusher thread, or {@code null} if it isn't running. */
+    private Thread flusher;
+
+
+    /** Set when the group committer is being shut down. */
+    private boolean shuttingDown = false;
+
+
+    public GroupCommitter(TransactionManager transactionManager,
+                          long maxDelay) {
+        this.transactionManager = transactionManager;
+        this.maxDelay = maxDelay;
+    }
+
+
+    /** Starts the flusher thread. */
+    public synchronized void start() {
+        if (flusher != null)
+            throw new IllegalStateException("Group committer already started");
+
+        shuttingDown = false;
+        flusher = new Thread(this, "GroupCommitFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+
+    /**
+     * Stops the flusher thread, after it has forced any commits that are
+     * still waiting.  Commits made after this call force the WAL themselves.
+     */
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            t = flusher;
+            shuttingDown = true;
+            notifyAll();
+        }
+
+        if (t != null) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for the group-commit " +
+                    "flusher to stop.");
+            }
+        }
+
+        synchronized (this) {
+            flusher = null;
+        }
+    }
+
+
+    /**
+     * Waits until the write-ahead log has been forced to disk past the
+     * specified commit record.
+     *
+     * @param lsn the LSN of the transaction's commit record
+     *
+     * @throws IOException if the WAL couldn't be forced to disk
+     */
+    public void waitForCommit(LogSequenceNumber lsn) throws IOException {
+        CommitRequest request = new CommitRequest(lsn);
+        boolean interrupted = false;
+
+        synchronized (this) {
+            if (flusher == null || shuttingDown) {
+                // There's no flusher to do it for us.
+                request = null;
+            }
+            else {
+                pending.add(request);
+                notifyAll();
+
+                // The commit can't be abandoned halfway, so keep waiting
+                // even if we are interrupted.
+                while (!request.done) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (request == null) {
+            transactionManager.forceWAL(lsn);
+            PerformanceCounters.inc(PerformanceCounters.TXN_COMMIT_SYNCS);
+            PerformanceCounters.inc(PerformanceCounters.TXN_COMMITS);
+        }
+        else if (request.error != null) {
+            throw request.error;
+        }
+    }
+
+
+    /**
+     * Waits for commits to arrive, and returns the next batch of commits to
+     * force, or {@code null} if the flusher should stop.
+     */
+    private synchronized List<CommitRequest> nextBatch()
+        throws InterruptedException {
+
+        while (pending.isEmpty() && !shuttingDown)
+            wait();
+
+        if (pending.isEmpty())
+            return null;
+
+        if (maxDelay > 0 && !shuttingDown) {
+            // Give other commits a chance to join the batch.
+            long deadline = System.nanoTime() + maxDelay * 1000;
+            long remaining = maxDelay * 1000;
+            while (remaining > 0 && !shuttingDown) {
+                wait(remaining / 1000000, (int) (remaining % 1000000));
+                remaining = deadline - System.nanoTime();
+            }
+        }
+
+        ArrayList<CommitRequest> batch = new ArrayList<CommitRequest>(pending);
+        pending.clear();
+        return batch;
+    }
+
+
+    @Override
+    public void run() {
+        while (true) {
+            List<CommitRequest> batch;
+            try {
+                batch = nextBatch();
+            }
+            catch (InterruptedException e) {
+                logger.warn("Group-commit flusher was interrupted.");
+                continue;
+            }
+
+            if (batch == null)
+                break;
+
+            LogSequenceNumber maxLSN = batch.get(0).lsn;
+            for (CommitRequest request : batch) {
+                if (request.lsn.compareTo(maxLSN) > 0)
+                    maxLSN = request.lsn;
+            }
+
+            logger.debug(String.format("Forcing WAL to %s for %d commits",
+                maxLSN, batch.size()));
+
+            IOException error = null;
+            try {
+                transactionManager.forceWAL(maxLSN);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            catch (RuntimeException e) {
+                // Don't let the flusher die, or the waiting sessions would
+                // never wake up.
+                error = new IOException("Couldn't force the WAL", e);
+            }
+
+            if (error != null) {
+                logger.error("Couldn't force the WAL for " + batch.size() +
+                    " commits", error);
+            }
+            else {
+                PerformanceCounters.inc(PerformanceCounters.TXN_COMMIT_SYNCS);
+                PerformanceCounters.add(PerformanceCounters.TXN_COMMITS,
+                    batch.size());
+            }
+
+            synchronized (this) {
+                for (CommitRequest request : batch) {
+                    request.done = true;
+                    request.error = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package edu.caltech.nanodb.transactions;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -12,6 +16,7 @@ import org.apache.log4j.Logger;
 import edu.caltech.nanodb.client.SessionState;
 import edu.caltech.nanodb.expressions.TypeCastException;
 import edu.caltech.nanodb.server.EventDispatcher;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.server.properties.PropertyHandler;
 import edu.caltech.nanodb.server.properties.PropertyRegistry;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
@@ -22,6 +27,7 @@ import edu.caltech.nanodb.storage.DBFile;
 import edu.caltech.nanodb.storage.DBFileType;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.writeahead.DirtyPageEntry;
 import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
 import edu.caltech.nanodb.storage.writeahead.RecoveryInfo;
 import edu.caltech.nanodb.storage.writeahead.WALManager;
@@ -41,6 +47,44 @@ public class TransactionManager implements BufferManagerObserver {
     public static final String PROP_TXNS = "nanodb.txns";
 
 
+    /**
+     * The system property that can be used to specify how many microseconds
+     * the group-commit flusher waits for more commits to arrive, before it
+     * forces the write-ahead log for a batch of commits.
+     */
+    public static final String PROP_GROUPCOMMIT_DELAY =
+        "nanodb.groupcommit.delay";
+
+
+    /**
+     * The default group-commit delay is 0, so the WAL is forced as soon as
+     * a commit arrives.  Commits that arrive while the WAL is being forced
+     * are still grouped together.
+     */
+    public static final long DEFAULT_GROUPCOMMIT_DELAY = 0;
+
+
+    /**
+     * The system property that can be used to specify how many seconds the
+     * background checkpointer waits between checkpoints.  A value of 0
+     * disables periodic checkpoints.
+     */
+    public static final String PROP_CHECKPOINT_INTERVAL =
+        "nanodb.checkpoint.interval";
+
+
+    /** The default checkpoint interval is 5 minutes. */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 300;
+
+
+    /**
+     * The largest segment that a page image is split into by
+     * {@link #recordPageImage}, since segment sizes are stored as unsigned
+     * shorts in the write-ahead log.
+     */
+    private static final int MAX_PAGE_IMAGE_SEGMENT = 32768;
+
+
     /**
      * This is the name of the file that the Transaction Manager uses to keep
      * track of overall transaction state.
@@ -62,6 +106,75 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    /**
+     * Returns the number of microseconds that the group-commit flusher waits
+     * for more commits to arrive, from the <tt>nanodb.groupcommit.delay</tt>
+     * property.
+     *
+     * @return the group-commit delay in microseconds
+     */
+    public static long getGroupCommitDelay() {
+        long delay = DEFAULT_GROUPCOMMIT_DELAY;
+
+        String str = System.getProperty(PROP_GROUPCOMMIT_DELAY);
+        if (str != null) {
+            try {
+                delay = Long.parseLong(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse group-commit delay value \"%s\"; " +
+                    "using default value of %d", str, DEFAULT_GROUPCOMMIT_DELAY));
+            }
+
+            if (delay < 0) {
+                logger.error(String.format(
+                    "Group-commit delay %d is negative; using default " +
+                    "value of %d", delay, DEFAULT_GROUPCOMMIT_DELAY));
+
+                delay = DEFAULT_GROUPCOMMIT_DELAY;
+            }
+        }
+
+        return delay;
+    }
+
+
+    /**
+     * Returns the number of seconds between periodic checkpoints, from the
+     * <tt>nanodb.checkpoint.interval</tt> property.  A value of 0 means that
+     * periodic checkpoints are disabled.
+     *
+     * @return the checkpoint interval in seconds
+     */
+    public static long getCheckpointInterval() {
+        long interval = DEFAULT_CHECKPOINT_INTERVAL;
+
+        String str = System.getProperty(PROP_CHECKPOINT_INTERVAL);
+        if (str != null) {
+            try {
+                interval = Long.parseLong(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse checkpoint interval value \"%s\"; " +
+                    "using default value of %d", str,
+                    DEFAULT_CHECKPOINT_INTERVAL));
+            }
+
+            if (interval < 0) {
+                logger.error(String.format(
+                    "Checkpoint interval %d is negative; using default " +
+                    "value of %d", interval, DEFAULT_CHECKPOINT_INTERVAL));
+
+                interval = DEFAULT_CHECKPOINT_INTERVAL;
+            }
+        }
+
+        return interval;
+    }
+
+
     private static class TransactionPropertyHandler implements PropertyHandler {
 
         @Override
@@ -71,6 +184,12 @@ public class TransactionManager implements BufferManagerObserver {
             if (PROP_TXNS.equals(propertyName)) {
                 return isEnabled();
             }
+            else if (PROP_GROUPCOMMIT_DELAY.equals(propertyName)) {
+                return getGroupCommitDelay();
+            }
+            else if (PROP_CHECKPOINT_INTERVAL.equals(propertyName)) {
+                return getCheckpointInterval();
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -86,6 +205,14 @@ public class TransactionManager implements BufferManagerObserver {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PROP_GROUPCOMMIT_DELAY.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                        " is read-only");
+            }
+            else if (PROP_CHECKPOINT_INTERVAL.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                        " is read-only");
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -97,7 +224,8 @@ public class TransactionManager implements BufferManagerObserver {
     static {
         // Register properties that the Transaction Manager exposes.
         PropertyRegistry.getInstance().registerProperties(
-                new TransactionPropertyHandler(), PROP_TXNS);
+                new TransactionPropertyHandler(), PROP_TXNS,
+                PROP_GROUPCOMMIT_DELAY, PROP_CHECKPOINT_INTERVAL);
     }
 
     private StorageManager storageManager;
@@ -106,6 +234,50 @@ public class TransactionManager implements BufferManagerObserver {
     private WALManager walManager;
 
 
+    /**
+     * Committing transactions hand their commit records to the group
+     * committer, which forces the WAL for many commits at once.
+     */
+    private GroupCommitter groupCommitter;
+
+
+    /** This takes checkpoints periodically, if they are enabled. */
+    private Checkpointer checkpointer;
+
+
+    /**
+     * The active-transaction table.  This maps the ID of each transaction
+     * that has written a start record to the WAL, and not yet completed, to
+     * the LSN of its start record.  Entries are added while holding the WAL
+     * manager's monitor, so that a checkpoint sees a consistent view of the
+     * table and the log.
+     */
+    private ConcurrentHashMap<Integer, LogSequenceNumber> activeTxns =
+        new ConcurrentHashMap<Integer, LogSequenceNumber>();
+
+
+    /**
+     * The WAL position when the last checkpoint was started, or {@code null}
+     * if no checkpoint has been taken yet.  Only accessed by
+     * {@link #checkpoint}.
+     */
+    private LogSequenceNumber lastCheckpointBeginLSN;
+
+
+    /**
+     * The WAL position just past the last checkpoint record, or {@code null}
+     * if no checkpoint has been taken yet.
+     */
+    private volatile LogSequenceNumber lastCheckpointEndLSN;
+
+
+    /**
+     * This listener starts and commits transactions around commands that
+     * aren't part of a user-started transaction.
+     */
+    private TransactionStateUpdater txnStateUpdater;
+
+
     /**
      * This variable keeps track of the next transaction ID that should be used
      * for a transaction.  It is initialized when the transaction manager is
@@ -129,6 +301,10 @@ public class TransactionManager implements BufferManagerObserver {
         // can enforce the write-ahead logging rule for evicted pages.
         storageManager.getBufferManager().addObserver(this);
 
+        // Dirty pages must remember their original contents, so that their
+        // changes can be written to the write-ahead log.
+        storageManager.getBufferManager().setKeepOldPageData(true);
+
         this.nextTxnID = new AtomicInteger();
 
         walManager = new WALManager(storageManager, bufferManager);
@@ -201,6 +377,10 @@ public class TransactionManager implements BufferManagerObserver {
         txnState.setNextLSN(txnStateNextLSN);
 
         storageManager.getBufferManager().writeDBFile(dbfTxnState, /* sync */ true);
+
+        // This is called from the group-commit flusher as well as from
+        // sessions, so don't leave the page pinned.
+        dbpTxnState.unpin();
     }
 
 
@@ -247,8 +427,50 @@ public class TransactionManager implements BufferManagerObserver {
         storeTxnStateToFile();
 
         // Register the component that manages indexes when tables are modified.
-        EventDispatcher.getInstance().addCommandEventListener(
-            new TransactionStateUpdater(this, storageManager.getBufferManager()));
+        txnStateUpdater =
+            new TransactionStateUpdater(this, storageManager.getBufferManager());
+        EventDispatcher.getInstance().addCommandEventListener(txnStateUpdater);
+
+        long groupCommitDelay = getGroupCommitDelay();
+        logger.info("Using a group-commit delay of " + groupCommitDelay +
+            " microseconds");
+        groupCommitter = new GroupCommitter(this, groupCommitDelay);
+        groupCommitter.start();
+
+        long checkpointInterval = getCheckpointInterval();
+        if (checkpointInterval > 0) {
+            logger.info("Taking a checkpoint every " + checkpointInterval +
+                " seconds");
+            checkpointer = new Checkpointer(this, checkpointInterval);
+            checkpointer.start();
+        }
+        else {
+            logger.info("Periodic checkpoints are disabled");
+        }
+    }
+
+
+    /**
+     * Stops the checkpointer and the group-commit flusher, forces the entire
+     * write-ahead log to disk, and closes the WAL file.  This is called by the Storage Manager during shutdown.
+     *
+     * @throws IOException if an IO error occurs while attempting to force the
+     *         WAL file to disk.
+     */
+    public void shutdown() throws IOException {
+        if (txnStateUpdater != null) {
+            EventDispatcher.getInstance().removeCommandEventListener(
+                txnStateUpdater);
+        }
+
+        if (checkpointer != null)
+            checkpointer.shutdown();
+
+        if (groupCommitter != null)
+            groupCommitter.shutdown();
+
+        forceWAL();
+        walManager.close();
     }
 
 
@@ -307,7 +529,11 @@ public class TransactionManager implements BufferManagerObserver {
 
         TransactionState txnState = SessionState.get().getTxnState();
         if (!txnState.hasLoggedTxnStart()) {
-            walManager.writeTxnRecord(WALRecordType.START_TXN);
+            synchronized (walManager) {
+                LogSequenceNumber startLSN =
+                    walManager.writeTxnRecord(WALRecordType.START_TXN);
+                activeTxns.put(txnState.getTransactionID(), startLSN);
+            }
             txnState.setLoggedTxnStart(true);
         }
 
@@ -316,6 +542,56 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    /**
+     * Records the entire contents of a page to the write-ahead log as a
+     * redo-only update.  This is much cheaper than {@link #recordPageUpdate}
+     * for pages that were written from scratch, since no undo data is kept;
+     * the page's changes therefore cannot be rolled back, so this must only
+     * be used for pages that nothing else can see until the transaction
+     * commits, such as the pages of a newly built index.
+     *
+     * @param dbPage the page to record the contents of
+     *
+     * @throws IOException if the write-ahead log cannot be updated
+     */
+    public void recordPageImage(DBPage dbPage) throws IOException {
+        logger.debug("Recording page-image for page " + dbPage.getPageNo() +
+            " of file " + dbPage.getDBFile());
+
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.hasLoggedTxnStart()) {
+            synchronized (walManager) {
+                LogSequenceNumber startLSN =
+                    walManager.writeTxnRecord(WALRecordType.START_TXN);
+                activeTxns.put(txnState.getTransactionID(), startLSN);
+            }
+            txnState.setLoggedTxnStart(true);
+        }
+
+        // Segment sizes are stored as unsigned shorts, so a large page must
+        // be split into several segments.
+        int pageSize = dbPage.getPageSize();
+        byte[] segment = new byte[Math.min(MAX_PAGE_IMAGE_SEGMENT, pageSize)];
+        int numSegments = 0;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int index = 0; index < pageSize; index += segment.length) {
+            int size = Math.min(segment.length, pageSize - index);
+            dbPage.read(index, segment, 0, size);
+
+            dos.writeShort(index);
+            dos.writeShort(size);
+            dos.write(segment, 0, size);
+            numSegments++;
+        }
+        dos.flush();
+
+        walManager.writeRedoOnlyUpdatePageRecord(dbPage, numSegments,
+            baos.toByteArray());
+    }
+
+
     public void commitTransaction() throws TransactionException {
         SessionState state = SessionState.get();
         TransactionState txnState = state.getTxnState();
@@ -333,10 +609,13 @@ public class TransactionManager implements BufferManagerObserver {
 
         if (txnState.hasLoggedTxnStart()) {
             // Must record the transaction as committed to the write-ahead log.
-            // Then, we must force the WAL to include this commit record.
+            // Then, we must force the WAL to include this commit record.  The
+            // group committer forces the WAL for many commits at once.
             try {
-                walManager.writeTxnRecord(WALRecordType.COMMIT_TXN);
-                forceWAL(walManager.getNextLSN());
+                LogSequenceNumber commitLSN =
+                    walManager.writeTxnRecord(WALRecordType.COMMIT_TXN);
+                activeTxns.remove(txnID);
+                groupCommitter.waitForCommit(commitLSN);
             }
             catch (IOException e) {
                 throw new TransactionException("Couldn't commit transaction " +
@@ -374,6 +653,7 @@ public class TransactionManager implements BufferManagerObserver {
             // Must rollback the transaction using the write-ahead log.
             try {
                 walManager.rollbackTransaction();
+                activeTxns.remove(txnID);
             }
             catch (IOException e) {
                 throw new TransactionException(
@@ -478,6 +758,21 @@ public class TransactionManager implements BufferManagerObserver {
      *         going to be broken.
      */
     public void forceWAL(LogSequenceNumber lsn) throws IOException {
+        // The WAL manager's monitor keeps other sessions from appending to
+        // the WAL pages while they are being written, which could otherwise
+        // lose the pages' dirty state.  It also serializes concurrent forces,
+        // so that the later one finds its records already forced.
+        synchronized (walManager) {
+            forceWALUnlocked(lsn);
+        }
+    }
+
+
+    /**
+     * This helper implements {@link #forceWAL(LogSequenceNumber)}.  The
+     * caller must hold the WAL manager's monitor.
+     */
+    private void forceWALUnlocked(LogSequenceNumber lsn) throws IOException {
     	/* The function provides durability because once the function completes,
     	 * it ensures that the WAL records are written to disk, and therefore 
     	 * will remain so (up to at least this lsn), even in the event of some
@@ -491,8 +786,8 @@ public class TransactionManager implements BufferManagerObserver {
     	 * called at all.
     	 */
 
-    	loadTxnStateFile();
-    	
+    	// The last LSN that was forced is tracked in memory, so there is no
+    	// need to reload the transaction-state file first.
     	if (txnStateNextLSN.compareTo(lsn) > 0) {
     		logger.debug(String.format(
     				"forceWAL No-Op: txnStateNextLSN %s, lsn: %s", txnStateNextLSN, lsn));
@@ -501,36 +796,9 @@ public class TransactionManager implements BufferManagerObserver {
     	
     	logger.debug(String.format("Entered forceWAL(%s)", lsn.toString()));
     	
-    	int startLogNo = txnStateNextLSN.getLogFileNo();
-    	int endLogNo = lsn.getLogFileNo();
-    	
-    	BufferManager bufferManager = storageManager.getBufferManager();
-    	int endPage;
-    	DBFile walFile;
-    	
-    	for (int logNo = startLogNo; logNo <= endLogNo; logNo++) {
-    		try {
-    			// Try to open the file if it exists
-    			walFile = walManager.openWALFile(logNo);
-    		}
-    		catch (IOException e) {
-    			continue;	
-    		}
-    		
-    		// Default startPage and endPage to be all pages in file.
-    		// Modify them for the first and last log files, to only write what
-    		// is necessary.
-    		int startPage = 0;
-    		endPage = Integer.MAX_VALUE;
-    		if (logNo == startLogNo) 
-    			startPage = txnStateNextLSN.getFileOffset() / walFile.getPageSize();
-    		if (logNo == endLogNo) {
-    			endPage = (lsn.getFileOffset() + lsn.getRecordSize()) / walFile.getPageSize();
-    		}
-    		
-    		// Write to disk, and sync.
-    		bufferManager.writeDBFile(walFile, startPage, endPage, true);
-    	}
+    	// Write out the WAL records in the append buffer, and sync.  This
+    	// forces everything appended so far, which includes the LSN.
+    	walManager.force();
 
     	// Compute the nextLSN value based on the value after LSN. Factor in
     	// LSN's record size to compute.
@@ -556,4 +824,107 @@ public class TransactionManager implements BufferManagerObserver {
     public void forceWAL() throws IOException {
         forceWAL(walManager.getNextLSN());
     }
+
+
+    /**
+     * This method takes a fuzzy checkpoint.  Sessions may keep running while
+     * the checkpoint is taken, since no pages are locked and only the pages
+     * that have stayed dirty since the previous checkpoint are written out.
+     * A {@link WALRecordType#CHECKPOINT} record is written to the log with
+     * the active-transaction table and the dirty-page table, and then the
+     * "first LSN" where recovery starts is advanced to the earliest of:
+     * <ul>
+     *   <li>the position of the log when the checkpoint began,</li>
+     *   <li>the oldest recovery LSN of any page that is still dirty, and</li>
+     *   <li>the start record of the oldest transaction still in progress.</li>
+     * </ul>
+     * WAL files that come entirely before the new first LSN are deleted.
+     *
+     * @return the Log Sequence Number of the checkpoint record
+     *
+     * @throws IOException if an IO error occurs while writing pages or
+     *         updating the write-ahead log.
+     */
+    public synchronized LogSequenceNumber checkpoint() throws IOException {
+        BufferManager bufferManager = storageManager.getBufferManager();
+
+        // Note where the checkpoint begins, along with the transactions that
+        // are in progress at that point.  Holding the WAL manager's monitor
+        // keeps transactions from starting in between.
+        LogSequenceNumber beginLSN;
+        HashMap<Integer, LogSequenceNumber> txns;
+        synchronized (walManager) {
+            beginLSN = walManager.getNextLSN();
+            txns = new HashMap<Integer, LogSequenceNumber>(activeTxns);
+        }
+
+        logger.info("Starting checkpoint at LSN " + beginLSN);
+
+        // Pages that have been dirty since the previous checkpoint began
+        // would otherwise hold the recovery start point back indefinitely.
+        if (lastCheckpointBeginLSN != null)
+            bufferManager.writeDirtyPagesBefore(lastCheckpointBeginLSN);
+
+        // Every page that has been written out must be on disk before
+        // recovery can skip its log records.
+        List<DirtyPageEntry> dirtyPages = bufferManager.getDirtyPageTable();
+        bufferManager.syncAllFiles();
+
+        LogSequenceNumber newFirstLSN = beginLSN;
+        for (LogSequenceNumber startLSN : txns.values()) {
+            if (startLSN.compareTo(newFirstLSN) < 0)
+                newFirstLSN = startLSN;
+        }
+        for (DirtyPageEntry entry : dirtyPages) {
+            if (entry.recLSN.compareTo(newFirstLSN) < 0)
+                newFirstLSN = entry.recLSN;
+        }
+
+        LogSequenceNumber checkpointLSN =
+            walManager.writeCheckpointRecord(txns, dirtyPages);
+
+        synchronized (walManager) {
+            // The first LSN never moves backward.
+            if (newFirstLSN.compareTo(walManager.getFirstLSN()) > 0)
+                walManager.setFirstLSN(newFirstLSN);
+            else
+                newFirstLSN = walManager.getFirstLSN();
+
+            // Force the checkpoint record, and record the new first LSN in
+            // the transaction-state file.  If another session has already
+            // forced the WAL past the checkpoint, only the file is updated.
+            if (txnStateNextLSN.compareTo(checkpointLSN) > 0)
+                storeTxnStateToFile();
+            else
+                forceWALUnlocked(checkpointLSN);
+
+            lastCheckpointEndLSN = WALManager.computeNextLSN(
+                checkpointLSN.getLogFileNo(),
+                checkpointLSN.getFileOffset() + checkpointLSN.getRecordSize());
+        }
+
+        lastCheckpointBeginLSN = beginLSN;
+
+        int deleted = walManager.deleteWALFilesBefore(newFirstLSN);
+
+        PerformanceCounters.inc(PerformanceCounters.TXN_CHECKPOINTS);
+        logger.info(String.format("Checkpoint complete:  %d active " +
+            "transactions, %d dirty pages.  Recovery now starts at %s; " +
+            "deleted %d old WAL files.", txns.size(), dirtyPages.size(),
+            newFirstLSN, deleted));
+
+        return checkpointLSN;
+    }
+
+
+    /**
+     * Returns true if anything has been written to the write-ahead log since
+     * the last checkpoint, so that the background checkpointer can skip
+     * checkpoints when the database is idle.
+     *
+     * @return true if a checkpoint would record anything new
+     */
+    boolean hasLoggedSinceCheckpoint() {
+        return !walManager.getNextLSN().equals(lastCheckpointEndLSN);
+    }
 }
@@ -0,0 +1,283 @@
+package edu.caltech.test.nanodb.indexes;
+
+
+import java.io.File;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.indexes.IndexType;
+import edu.caltech.nanodb.indexes.IndexUtils;
+import edu.caltech.nanodb.qeval.TableStats;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.hashfile.LinearHashTupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises hash indexes, which are stored in linear-hashing
+ * tuple files.
+ */
+@Test
+public class TestHashIndex extends SqlTestCase {
+
+    public TestHashIndex() {
+        super("setup_testIndexBulkLoad");
+    }
+
+
+    private IndexInfo openIndex(String indexName) throws Exception {
+        StorageManager storageManager = server.getStorageManager();
+        TableManager tableManager = storageManager.getTableManager();
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        TableInfo tableInfo = tableManager.openTable("TEST_BULK_LOAD");
+        return indexManager.openIndex(tableInfo, indexName);
+    }
+
+
+    private TupleLiteral makeKey(int value) {
+        TupleLiteral key = new TupleLiteral(1);
+        key.setColumnValue(0, value);
+        return key;
+    }
+
+
+    /**
+     * Checks that an index's hash file is well-formed, and that it refers to
+     * every row of the table exactly once.
+     */
+    private void checkIndex(IndexInfo indexInfo) throws Exception {
+        TupleFile tableFile = indexInfo.getTableInfo().getTupleFile();
+        TupleFile indexFile = indexInfo.getTupleFile();
+        assert indexFile instanceof LinearHashTupleFile;
+
+        List<String> errors = indexFile.verify();
+        assert errors.isEmpty() : errors;
+
+        errors = IndexUtils.verifyIndex(tableFile, indexFile);
+        assert errors.isEmpty() : errors;
+    }
+
+
+    /**
+     * Counts the index entries for a key value.
+     */
+    private int countMatches(LinearHashTupleFile indexFile, int value)
+        throws Exception {
+
+        int count = 0;
+        Tuple tup = indexFile.findFirstTupleEquals(makeKey(value));
+        while (tup != null) {
+            assert Integer.valueOf(value).equals(tup.getColumnValue(0));
+            count++;
+            tup = indexFile.findNextTupleEquals(tup);
+        }
+        return count;
+    }
+
+
+    /**
+     * This test builds a hash index on a column with duplicate values, so
+     * that the file must split its buckets many times as it grows, and then
+     * looks up values in it.
+     */
+    public void testCreateHashIndex() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_hash_v ON test_bulk_load USING HASH (v)", false);
+        assert !result.failed();
+
+        IndexInfo indexInfo = openIndex("IDX_HASH_V");
+        assert indexInfo.getIndexType() == IndexType.HASHED_INDEX;
+        checkIndex(indexInfo);
+
+        // Every value of v appears 10 times.
+        LinearHashTupleFile indexFile =
+            (LinearHashTupleFile) indexInfo.getTupleFile();
+        for (int v = 0; v < 1000; v += 37)
+            assert countMatches(indexFile, v) == 10 : "wrong count for " + v;
+
+        assert countMatches(indexFile, 1000) == 0;
+    }
+
+
+    /**
+     * This test checks that the index is maintained as rows are added to and
+     * removed from the table.
+     */
+    public void testModifyHashIndex() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_hash_id ON test_bulk_load (id) USING HASH", false);
+        assert !result.failed();
+
+        for (int i = 0; i < 20; i++) {
+            server.doCommand("INSERT INTO test_bulk_load VALUES (" +
+                (20000 + i) + ", 1, 'extra')", false);
+        }
+        server.doCommand("DELETE FROM test_bulk_load WHERE id >= 20010", false);
+        server.doCommand("DELETE FROM test_bulk_load WHERE id = 10000", false);
+
+        IndexInfo indexInfo = openIndex("IDX_HASH_ID");
+        checkIndex(indexInfo);
+
+        LinearHashTupleFile indexFile =
+            (LinearHashTupleFile) indexInfo.getTupleFile();
+        assert countMatches(indexFile, 20005) == 1;
+        assert countMatches(indexFile, 20015) == 0;
+        assert countMatches(indexFile, 10000) == 0;
+        assert countMatches(indexFile, 5000) == 1;
+    }
+
+
+    /**
+     * This test checks that queries with equality predicates on the indexed
+     * column produce the right results.
+     */
+    public void testSelectWithHashIndex() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_hash_sel ON test_bulk_load USING HASH (id)",
+            false);
+        assert !result.failed();
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(1234, 638, "row")
+        };
+        result = server.doCommand(
+            "SELECT * FROM test_bulk_load WHERE id = 1234", true);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT * FROM test_bulk_load t WHERE 1234 = t.id AND v > 0",
+            true);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT * FROM test_bulk_load WHERE id = 1234 AND v = 0", true);
+        assert checkUnorderedResults(new TupleLiteral[0], result);
+    }
+
+
+    /**
+     * This test checks that a hash index on an <tt>INTEGER</tt> column finds
+     * the right rows when the column is compared to a value of another type,
+     * and isn't used when the value has no exact <tt>INTEGER</tt> equivalent.
+     */
+    public void testSelectWithOtherLiteralTypes() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_hash_conv ON test_bulk_load USING HASH (v)",
+            false);
+        assert !result.failed();
+
+        TupleLiteral[] expected = new TupleLiteral[10];
+        int count = 0;
+        for (int id = 0; id < 10000; id++) {
+            if (id * 7 % 1000 == 638)
+                expected[count++] = new TupleLiteral(id, 638, "row");
+        }
+        assert count == expected.length;
+
+        String[] matching = { "638", "638.0", "'638'" };
+        for (String value : matching) {
+            result = server.doCommand(
+                "SELECT * FROM test_bulk_load WHERE v = " + value, true);
+            assert checkUnorderedResults(expected, result) : value;
+        }
+
+        String[] notMatching = { "638.5", "637.999" };
+        for (String value : notMatching) {
+            result = server.doCommand(
+                "SELECT * FROM test_bulk_load WHERE v = " + value, true);
+            assert checkUnorderedResults(new TupleLiteral[0], result) : value;
+        }
+    }
+
+
+    /**
+     * This test analyzes a hash index file, and checks that the statistics
+     * are computed and saved in the file.
+     */
+    public void testAnalyzeHashFile() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_hash_stats ON test_bulk_load USING HASH (v)",
+            false);
+        assert !result.failed();
+
+        // Other tests may have added rows to the table.
+        result = server.doCommand("SELECT COUNT(*) FROM test_bulk_load", true);
+        int numRows = ((Number) result.getTuples().get(0).getColumnValue(0))
+            .intValue();
+
+        IndexInfo indexInfo = openIndex("IDX_HASH_STATS");
+        TupleFile indexFile = indexInfo.getTupleFile();
+        indexFile.analyze();
+
+        // Open the file again, so that the statistics are read back in.
+        StorageManager storageManager = server.getStorageManager();
+        TupleFile reopened = storageManager.getTupleFileManager(
+            DBFileType.HASH_TUPLE_FILE).openTupleFile(indexFile.getDBFile());
+
+        for (TableStats stats : new TableStats[] { indexFile.getStats(),
+                                                   reopened.getStats() }) {
+            assert stats.numTuples == numRows : stats;
+            assert stats.numDataPages > 0 : stats;
+            assert stats.avgTupleSize > 0 : stats;
+            assert stats.getColumnStats(0).getNumUniqueValues() == 1000 : stats;
+        }
+    }
+
+
+    /**
+     * This test deletes a hash tuple file, and checks that the file is gone.
+     */
+    public void testDeleteHashFile() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_hash_del ON test_bulk_load USING HASH (id)",
+            false);
+        assert !result.failed();
+
+        StorageManager storageManager = server.getStorageManager();
+        TupleFileManager hashManager =
+            storageManager.getTupleFileManager(DBFileType.HASH_TUPLE_FILE);
+
+        DBFile dbFile = storageManager.createDBFile("test_hash_delete.idx",
+            DBFileType.HASH_TUPLE_FILE);
+        TupleFile hashFile = hashManager.createTupleFile(dbFile,
+            openIndex("IDX_HASH_DEL").getTupleFile().getSchema());
+        for (int i = 0; i < 100; i++) {
+            TupleLiteral tup = new TupleLiteral(i, new FilePointer(1, i));
+            PageTuple.unpinPage(hashFile.addTuple(tup));
+        }
+
+        File dataFile = dbFile.getDataFile();
+        assert dataFile.exists();
+
+        hashManager.deleteTupleFile(hashFile);
+        assert !dataFile.exists();
+        assert storageManager.getBufferManager().getFile(
+            dataFile.getName()) == null;
+    }
+
+
+    /**
+     * This test checks that unrecognized index types are rejected.
+     */
+    public void testBadIndexType() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_bad ON test_bulk_load USING BITMAP (id)", false);
+        assert result.failed();
+    }
+}
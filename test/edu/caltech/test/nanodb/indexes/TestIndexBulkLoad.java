@@ -0,0 +1,211 @@
+package edu.caltech.test.nanodb.indexes;
+
+
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.indexes.IndexUtils;
+import edu.caltech.nanodb.plans.SortNode;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.btreefile.BTreeBulkLoader;
+import edu.caltech.nanodb.storage.btreefile.BTreeTupleFile;
+import edu.caltech.nanodb.storage.btreefile.HeaderPage;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class checks that indexes created on tables that already hold many
+ * rows are bulk-loaded into well-formed B<sup>+</sup> trees.
+ */
+@Test
+public class TestIndexBulkLoad extends SqlTestCase {
+
+    public TestIndexBulkLoad() {
+        super("setup_testIndexBulkLoad");
+    }
+
+
+    private IndexInfo openIndex(String indexName) throws Exception {
+        return openIndex("TEST_BULK_LOAD", indexName);
+    }
+
+
+    private IndexInfo openIndex(String tableName, String indexName)
+        throws Exception {
+
+        StorageManager storageManager = server.getStorageManager();
+        TableManager tableManager = storageManager.getTableManager();
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        TableInfo tableInfo = tableManager.openTable(tableName);
+        return indexManager.openIndex(tableInfo, indexName);
+    }
+
+
+    private TupleLiteral makeKey(int value) {
+        TupleLiteral key = new TupleLiteral(1);
+        key.setColumnValue(0, value);
+        return key;
+    }
+
+
+    /**
+     * Checks that an index's B<sup>+</sup> tree is well-formed, that it
+     * refers to every row of the table exactly once, and that its tuples are
+     * in order.
+     */
+    private void checkIndex(IndexInfo indexInfo) throws Exception {
+        checkIndex(indexInfo, 10001);
+    }
+
+
+    private void checkIndex(IndexInfo indexInfo, int numRows)
+        throws Exception {
+
+        TupleFile tableFile = indexInfo.getTableInfo().getTupleFile();
+        TupleFile indexFile = indexInfo.getTupleFile();
+        assert indexFile instanceof BTreeTupleFile;
+
+        List<String> errors = indexFile.verify();
+        assert errors.isEmpty() : errors;
+
+        errors = IndexUtils.verifyIndex(tableFile, indexFile);
+        assert errors.isEmpty() : errors;
+
+        int count = 0;
+        TupleLiteral prev = null;
+        Tuple tup = indexFile.getFirstTuple();
+        while (tup != null) {
+            TupleLiteral cur = new TupleLiteral(tup);
+            if (prev != null)
+                assert TupleComparator.compareTuples(prev, cur) < 0;
+
+            prev = cur;
+            count++;
+            tup = indexFile.getNextTuple(tup);
+        }
+        assert count == numRows : "index has " + count + " tuples";
+    }
+
+
+    /**
+     * This test builds an index with a small fill factor and a small sort
+     * memory, so that the sort spills to disk and the tree has several
+     * levels of inner pages.
+     */
+    public void testBulkLoadSpilledIndex() throws Throwable {
+        System.setProperty(BTreeBulkLoader.PROP_FILL_FACTOR, "0.05");
+        System.setProperty(SortNode.PROP_SORT_MEMORY, "20000");
+        try {
+            CommandResult result = server.doCommand(
+                "CREATE INDEX idx_bulk_v ON test_bulk_load (v)", false);
+            assert !result.failed();
+        }
+        finally {
+            System.clearProperty(BTreeBulkLoader.PROP_FILL_FACTOR);
+            System.clearProperty(SortNode.PROP_SORT_MEMORY);
+        }
+
+        IndexInfo indexInfo = openIndex("IDX_BULK_V");
+        checkIndex(indexInfo);
+
+        // The tree must have inner pages above its leaves.
+        BTreeTupleFile indexFile = (BTreeTupleFile) indexInfo.getTupleFile();
+        DBPage dbpHeader = server.getStorageManager().loadDBPage(
+            indexFile.getDBFile(), 0);
+        assert HeaderPage.getRootPageNo(dbpHeader) !=
+            HeaderPage.getFirstLeafPageNo(dbpHeader);
+        dbpHeader.unpin();
+
+        // Every value of v appears 10 times.
+        for (int v = 0; v < 1000; v += 37) {
+            Tuple tup = indexFile.findFirstTupleEquals(makeKey(v));
+            assert tup != null : "no index entry for " + v;
+            assert Integer.valueOf(v).equals(tup.getColumnValue(0));
+        }
+        assert indexFile.findFirstTupleEquals(makeKey(1000)) == null;
+    }
+
+
+    /**
+     * This test checks that rows can still be added to and removed from a
+     * table after its index has been bulk-loaded.
+     */
+    public void testModifyAfterBulkLoad() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_bulk_name ON test_bulk_load (name, id)", false);
+        assert !result.failed();
+
+        server.doCommand(
+            "INSERT INTO test_bulk_load VALUES (10001, 1, 'extra')", false);
+        server.doCommand("DELETE FROM test_bulk_load WHERE id = 10001", false);
+
+        checkIndex(openIndex("IDX_BULK_NAME"));
+    }
+
+
+    /**
+     * This test checks that a unique index can only be bulk-loaded from
+     * unique values.
+     */
+    public void testBulkLoadUniqueIndex() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE UNIQUE INDEX idx_bulk_id ON test_bulk_load (id)", false);
+        assert !result.failed();
+        checkIndex(openIndex("IDX_BULK_ID"));
+
+        result = server.doCommand(
+            "CREATE UNIQUE INDEX idx_bulk_dup ON test_bulk_load (v)", false);
+        assert result.failed();
+    }
+
+
+    /**
+     * This test builds a unique index on variable-length keys with a small
+     * sort memory, so that each sorted run spans several pages and short
+     * keys written after a run's first page fills up would fit on that page.
+     * The runs must still be merged in order.
+     */
+    public void testBulkLoadVariableLengthKeys() throws Throwable {
+        server.doCommand(
+            "CREATE TABLE test_bulk_var (id INTEGER, s VARCHAR(200))", false);
+
+        Random random = new Random(29);
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder buf = new StringBuilder();
+            int length = random.nextInt(150);
+            for (int j = 0; j < length; j++)
+                buf.append((char) ('a' + random.nextInt(26)));
+
+            CommandResult result = server.doCommand(
+                "INSERT INTO test_bulk_var VALUES (" + i + ", '" + buf +
+                "-" + i + "')", false);
+            assert !result.failed();
+        }
+
+        System.setProperty(SortNode.PROP_SORT_MEMORY, "20000");
+        try {
+            CommandResult result = server.doCommand(
+                "CREATE UNIQUE INDEX idx_bulk_var ON test_bulk_var (s)", false);
+            assert !result.failed();
+        }
+        finally {
+            System.clearProperty(SortNode.PROP_SORT_MEMORY);
+        }
+
+        checkIndex(openIndex("TEST_BULK_VAR", "IDX_BULK_VAR"), 3000);
+    }
+}
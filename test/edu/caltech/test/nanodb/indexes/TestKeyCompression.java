@@ -0,0 +1,215 @@
+package edu.caltech.test.nanodb.indexes;
+
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.indexes.IndexUtils;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.btreefile.BTreeTupleFile;
+import edu.caltech.nanodb.storage.btreefile.BTreeTupleFileManager;
+import edu.caltech.nanodb.storage.btreefile.HeaderPage;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class checks that B<sup>+</sup> tree indexes whose keys are stored
+ * with prefix compression stay well-formed, and that they take fewer pages
+ * than the same indexes stored without compression.
+ */
+@Test
+public class TestKeyCompression extends SqlTestCase {
+
+    public TestKeyCompression() {
+        super("setup_testIndexBulkLoad");
+    }
+
+
+    private IndexInfo openIndex(String indexName) throws Exception {
+        StorageManager storageManager = server.getStorageManager();
+        TableManager tableManager = storageManager.getTableManager();
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        TableInfo tableInfo = tableManager.openTable("TEST_BULK_LOAD");
+        return indexManager.openIndex(tableInfo, indexName);
+    }
+
+
+    private void createIndex(String sql, boolean compressed) throws Exception {
+        System.setProperty(BTreeTupleFileManager.PROP_KEY_COMPRESSION,
+            Boolean.toString(compressed));
+        try {
+            CommandResult result = server.doCommand(sql, false);
+            assert !result.failed();
+        }
+        finally {
+            System.clearProperty(BTreeTupleFileManager.PROP_KEY_COMPRESSION);
+        }
+    }
+
+
+    /**
+     * Checks that an index's B<sup>+</sup> tree is well-formed, that it
+     * refers to every row of the table exactly once, and that its tuples are
+     * in order.
+     */
+    private void checkIndex(IndexInfo indexInfo, int expectedCount)
+        throws Exception {
+
+        TupleFile tableFile = indexInfo.getTableInfo().getTupleFile();
+        TupleFile indexFile = indexInfo.getTupleFile();
+
+        List<String> errors = indexFile.verify();
+        assert errors.isEmpty() : errors;
+
+        errors = IndexUtils.verifyIndex(tableFile, indexFile);
+        assert errors.isEmpty() : errors;
+
+        int count = 0;
+        TupleLiteral prev = null;
+        Tuple tup = indexFile.getFirstTuple();
+        while (tup != null) {
+            TupleLiteral cur = new TupleLiteral(tup);
+            if (prev != null)
+                assert TupleComparator.compareTuples(prev, cur) < 0;
+
+            prev = cur;
+            count++;
+            tup = indexFile.getNextTuple(tup);
+        }
+        assert count == expectedCount : "index has " + count + " tuples";
+    }
+
+
+    private boolean isKeyCompressed(BTreeTupleFile indexFile)
+        throws Exception {
+
+        DBPage dbpHeader = server.getStorageManager().loadDBPage(
+            indexFile.getDBFile(), 0);
+        boolean compressed = HeaderPage.isKeyCompressed(dbpHeader);
+        dbpHeader.unpin();
+
+        assert compressed == indexFile.isKeyCompressed();
+        return compressed;
+    }
+
+
+    /**
+     * This test bulk-loads the same index with and without compression, and
+     * checks that the compressed index is correct and smaller.
+     */
+    public void testCompressedBulkLoad() throws Throwable {
+        createIndex(
+            "CREATE INDEX idx_kc_plain ON test_bulk_load (name, v)", false);
+        createIndex(
+            "CREATE INDEX idx_kc_packed ON test_bulk_load (name, v)", true);
+
+        IndexInfo plainInfo = openIndex("IDX_KC_PLAIN");
+        IndexInfo packedInfo = openIndex("IDX_KC_PACKED");
+        checkIndex(plainInfo, 10001);
+        checkIndex(packedInfo, 10001);
+
+        BTreeTupleFile plainFile = (BTreeTupleFile) plainInfo.getTupleFile();
+        BTreeTupleFile packedFile = (BTreeTupleFile) packedInfo.getTupleFile();
+        assert !isKeyCompressed(plainFile);
+        assert isKeyCompressed(packedFile);
+
+        int plainPages = plainFile.getDBFile().getNumPages();
+        int packedPages = packedFile.getDBFile().getNumPages();
+        assert packedPages < plainPages :
+            "compressed index has " + packedPages + " pages, uncompressed " +
+            "index has " + plainPages + " pages";
+
+        // Lookups must see the values that are shared with earlier keys.
+        TupleLiteral key = new TupleLiteral(2);
+        key.setColumnValue(0, "row");
+        for (int v = 0; v < 1000; v += 37) {
+            key.setColumnValue(1, v);
+            Tuple tup = packedFile.findFirstTupleEquals(key);
+            assert tup != null : "no index entry for " + v;
+            assert "row".equals(tup.getColumnValue(0));
+            assert Integer.valueOf(v).equals(tup.getColumnValue(1));
+        }
+    }
+
+
+    /**
+     * This test adds rows to and removes rows from a table with a compressed
+     * index, so that tuples are inserted, deleted and moved between leaves
+     * one at a time.
+     */
+    public void testModifyCompressedIndex() throws Throwable {
+        createIndex(
+            "CREATE INDEX idx_kc_mod ON test_bulk_load (name, id)", true);
+
+        CommandResult result = server.doCommand(
+            "INSERT INTO test_bulk_load " +
+            "SELECT id + 20000, v, 'rox' FROM test_bulk_load " +
+            "WHERE id < 600", false);
+        assert !result.failed();
+
+        result = server.doCommand(
+            "DELETE FROM test_bulk_load WHERE id % 3 = 1", false);
+        assert !result.failed();
+
+        IndexInfo indexInfo = openIndex("IDX_KC_MOD");
+        assert isKeyCompressed((BTreeTupleFile) indexInfo.getTupleFile());
+
+        // 10001 + 600 rows, less the 3334 + 200 rows with id % 3 = 1.
+        checkIndex(indexInfo, 10001 + 600 - 3334 - 200);
+    }
+
+
+    /**
+     * This test checks that a B<sup>+</sup> tree file written before the
+     * header page had a flags byte, which has its schema at byte 12 and a
+     * zero in the last byte of the header page, can still be opened, and is
+     * read as an uncompressed file.
+     */
+    public void testOpenFileWithoutFlags() throws Throwable {
+        createIndex(
+            "CREATE INDEX idx_kc_old ON test_bulk_load (name, v)", false);
+
+        IndexInfo indexInfo = openIndex("IDX_KC_OLD");
+        BTreeTupleFile indexFile = (BTreeTupleFile) indexInfo.getTupleFile();
+
+        StorageManager storageManager = server.getStorageManager();
+        DBPage dbpHeader =
+            storageManager.loadDBPage(indexFile.getDBFile(), 0);
+        int flagsOffset = HeaderPage.getFlagsOffset(dbpHeader);
+        int flags = dbpHeader.readUnsignedByte(flagsOffset);
+        assert flagsOffset == dbpHeader.getPageSize() - 1;
+        assert HeaderPage.OFFSET_SCHEMA_START == 12;
+
+        // Make the header page look like one from before the flags byte.
+        dbpHeader.writeByte(flagsOffset, 0);
+        try {
+            TupleFile oldFile = storageManager.getTupleFileManager(
+                DBFileType.BTREE_TUPLE_FILE).openTupleFile(
+                indexFile.getDBFile());
+
+            assert !((BTreeTupleFile) oldFile).isKeyCompressed();
+            assert oldFile.getSchema().numColumns() ==
+                indexFile.getSchema().numColumns();
+        }
+        finally {
+            dbpHeader.writeByte(flagsOffset, flags);
+            dbpHeader.unpin();
+        }
+
+        checkIndex(indexInfo, 10001);
+    }
+}
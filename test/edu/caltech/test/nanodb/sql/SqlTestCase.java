@@ -22,6 +22,7 @@ import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.server.properties.PropertyRegistry;
 import edu.caltech.nanodb.storage.StorageManager;
 
@@ -159,6 +160,90 @@ public class SqlTestCase {
     }
 
 
+    /**
+     * This helper function runs a command with a system property set to the
+     * specified value, and returns the result tuples.  The property's
+     * previous value is restored afterwards.
+     *
+     * @param command the command to run
+     * @param propName the name of the system property to set
+     * @param propValue the value to set the property to, or <tt>null</tt>
+     *        to clear the property
+     *
+     * @return the tuples produced by the command
+     *
+     * @throws Exception if an error occurred during command execution
+     */
+    public List<TupleLiteral> getResultTuples(String command, String propName,
+        String propValue) throws Exception {
+
+        String oldValue = System.getProperty(propName);
+        setOrClearProperty(propName, propValue);
+        try {
+            return getResultTuples(command);
+        }
+        finally {
+            setOrClearProperty(propName, oldValue);
+        }
+    }
+
+
+    private void setOrClearProperty(String propName, String propValue) {
+        if (propValue != null)
+            System.setProperty(propName, propValue);
+        else
+            System.clearProperty(propName);
+    }
+
+
+    /**
+     * This helper function checks that a query produces the same results as
+     * it does with a system property set to a baseline value, regardless of
+     * order.  This is used to compare an optimized way of running queries
+     * against the plain way that the property selects.  If a performance
+     * counter is specified, the query must also increment the counter when
+     * it runs without the baseline value, which shows that the optimized
+     * code was actually used.
+     *
+     * @param query the query to run
+     * @param propName the name of the system property that selects the
+     *        baseline behavior
+     * @param baselineValue the value of the property for the baseline run,
+     *        or <tt>null</tt> if the property is cleared for the baseline run
+     * @param counterName the name of a performance counter that the
+     *        optimized run must increment, or <tt>null</tt> if none
+     *
+     * @return true if the query produced the same results both times, and
+     *         incremented the counter if one was specified
+     *
+     * @throws Exception if an error occurred during command execution
+     */
+    public boolean sameResultsAsBaseline(String query, String propName,
+        String baselineValue, String counterName) throws Exception {
+
+        List<TupleLiteral> expected =
+            getResultTuples(query, propName, baselineValue);
+
+        int count = 0;
+        if (counterName != null)
+            count = PerformanceCounters.get(counterName);
+
+        CommandResult result = server.doCommand(query, true);
+        if (result.failed())
+            throw result.getFailure();
+
+        if (counterName != null &&
+            PerformanceCounters.get(counterName) == count) {
+            System.out.println("Query didn't increment counter " +
+                counterName + ":  " + query);
+            return false;
+        }
+
+        return checkUnorderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result);
+    }
+
+
     /**
      * This helper function examines two collections of tuples, the expected
      * tuples and the actual tuples, and returns <tt>true</tt> if they are the
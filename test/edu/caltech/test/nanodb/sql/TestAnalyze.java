@@ -0,0 +1,188 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.qeval.ColumnStats;
+import edu.caltech.nanodb.qeval.Histogram;
+import edu.caltech.nanodb.qeval.MostCommonValues;
+import edu.caltech.nanodb.qeval.SelectivityEstimator;
+import edu.caltech.nanodb.qeval.TableStats;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+
+
+/**
+ * This class tests the statistics collected by the <tt>ANALYZE</tt>
+ * command:  distinct-value counts, most-common-values lists, histograms,
+ * and the estimates made when only a sample of the table's pages is read.
+ */
+@Test
+public class TestAnalyze extends SqlTestCase {
+
+    public TestAnalyze() {
+        super("setup_testAnalyze");
+    }
+
+
+    private TupleFile getTupleFile() throws Exception {
+        TableInfo tableInfo = server.getStorageManager().getTableManager()
+            .openTable("TEST_ANALYZE");
+        return tableInfo.getTupleFile();
+    }
+
+
+    private float estimate(CompareOperator.Type type, String colName,
+                           Object value) throws Exception {
+        TupleFile tupleFile = getTupleFile();
+
+        CompareOperator comp = new CompareOperator(type,
+            new ColumnValue(new ColumnName(colName)), new LiteralValue(value));
+
+        return SelectivityEstimator.estimateSelectivity(comp,
+            tupleFile.getSchema(), tupleFile.getStats().getAllColumnStats());
+    }
+
+
+    /**
+     * This test checks the table-level statistics and the distinct-value
+     * counts of the columns.
+     */
+    public void testDistinctCounts() throws Throwable {
+        TableStats stats = getTupleFile().getStats();
+        assert stats.numTuples == 10000 : "Got " + stats.numTuples;
+
+        // Column a has more distinct values than are counted exactly.
+        int numA = stats.getColumnStats(0).getNumUniqueValues();
+        assert Math.abs(numA - 10000) < 500 : "Got " + numA;
+
+        assert stats.getColumnStats(1).getNumUniqueValues() == 51;
+        assert stats.getColumnStats(2).getNumUniqueValues() == 1;
+    }
+
+
+    /**
+     * This test checks that the skewed column gets a most-common-values list
+     * holding its common value, and a histogram of the rest of its values.
+     */
+    public void testDistributions() throws Throwable {
+        TableStats stats = getTupleFile().getStats();
+
+        ColumnStats colB = stats.getColumnStats(1);
+        MostCommonValues mcv = colB.getMostCommonValues();
+        assert mcv != null;
+        assert Math.abs(mcv.getFrequencyOf(0) - 0.5f) < 0.001f;
+        assert mcv.getFrequencyOf(1) == -1;
+
+        Histogram histogram = colB.getHistogram();
+        assert histogram != null;
+        assert Math.abs(histogram.getRowFraction() - 0.5f) < 0.001f;
+        assert histogram.isInRange(1) && histogram.isInRange(99);
+        assert !histogram.isInRange(100);
+
+        // The unique column has no common values.
+        ColumnStats colA = stats.getColumnStats(0);
+        assert colA.getMostCommonValues() == null;
+        assert colA.getHistogram() != null;
+
+        // Every value of the string column is a common value.
+        ColumnStats colS = stats.getColumnStats(2);
+        assert colS.getMostCommonValues() != null;
+        assert colS.getMostCommonValues().getFrequencyOf("analyze") == 1.0f;
+        assert colS.getHistogram() == null;
+    }
+
+
+    /**
+     * This test checks that the distributions are saved into the table's
+     * header page along with the rest of the statistics.
+     */
+    public void testDistributionsSaved() throws Throwable {
+        TupleFile tupleFile = getTupleFile();
+        TupleFile reopened =
+            tupleFile.getManager().openTupleFile(tupleFile.getDBFile());
+
+        ColumnStats expected = tupleFile.getStats().getColumnStats(1);
+        ColumnStats actual = reopened.getStats().getColumnStats(1);
+
+        assert actual.getMostCommonValues() != null;
+        assert actual.getMostCommonValues().toString().equals(
+            expected.getMostCommonValues().toString());
+
+        assert actual.getHistogram() != null;
+        assert actual.getHistogram().toString().equals(
+            expected.getHistogram().toString());
+
+        assert reopened.getStats().getColumnStats(2).getMostCommonValues()
+            .getFrequencyOf("analyze") == 1.0f;
+    }
+
+
+    /**
+     * This test checks that selectivity estimates follow the skew recorded
+     * in the column's distribution, rather than assuming that values are
+     * spread uniformly between the column's minimum and maximum.
+     */
+    public void testSelectivityEstimates() throws Throwable {
+        float sel;
+
+        sel = estimate(CompareOperator.Type.EQUALS, "B", 0);
+        assert Math.abs(sel - 0.5f) < 0.01f : "Got " + sel;
+
+        sel = estimate(CompareOperator.Type.EQUALS, "B", 51);
+        assert Math.abs(sel - 0.01f) < 0.005f : "Got " + sel;
+
+        sel = estimate(CompareOperator.Type.NOT_EQUALS, "B", 0);
+        assert Math.abs(sel - 0.5f) < 0.01f : "Got " + sel;
+
+        sel = estimate(CompareOperator.Type.GREATER_THAN, "B", 0);
+        assert Math.abs(sel - 0.5f) < 0.01f : "Got " + sel;
+
+        sel = estimate(CompareOperator.Type.LESS_OR_EQUAL, "B", 49);
+        assert Math.abs(sel - 0.75f) < 0.05f : "Got " + sel;
+
+        sel = estimate(CompareOperator.Type.LESS_THAN, "A", 2500);
+        assert Math.abs(sel - 0.25f) < 0.05f : "Got " + sel;
+
+        sel = estimate(CompareOperator.Type.EQUALS, "B", 1000);
+        assert sel == 0 : "Got " + sel;
+    }
+
+
+    /**
+     * This test analyzes the table from a sample of its pages, and checks
+     * that the statistics are scaled up to the size of the whole table.
+     */
+    public void testSampledAnalyze() throws Throwable {
+        try {
+            System.setProperty(HeapTupleFile.PROP_ANALYZE_SAMPLE_RATE, "0.2");
+
+            CommandResult result = server.doCommand("ANALYZE test_analyze",
+                false);
+            assert !result.failed();
+
+            TableStats stats = getTupleFile().getStats();
+            assert Math.abs(stats.numTuples - 10000) < 1500 :
+                "Got " + stats.numTuples;
+
+            int numA = stats.getColumnStats(0).getNumUniqueValues();
+            assert Math.abs(numA - 10000) < 2500 : "Got " + numA;
+
+            int numB = stats.getColumnStats(1).getNumUniqueValues();
+            assert numB >= 45 && numB <= 60 : "Got " + numB;
+
+            ColumnStats colB = stats.getColumnStats(1);
+            assert colB.getMostCommonValues().getFrequencyOf(0) > 0.4f;
+        }
+        finally {
+            System.clearProperty(HeapTupleFile.PROP_ANALYZE_SAMPLE_RATE);
+            server.doCommand("ANALYZE test_analyze", false);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class tests that queries executed a batch at a time produce the same
+ * results as when they are executed a tuple at a time.  The test table has
+ * <tt>NULL</tt>s in every column, and columns of each type that the batch
+ * operators store in primitive arrays.
+ */
+@Test
+public class TestBatchExecution extends SqlTestCase {
+
+    public TestBatchExecution() {
+        super("setup_testBatchExecution");
+    }
+
+
+    /**
+     * Checks that a query produces the same results with and without batch
+     * execution, in any order, and that some of it ran a batch at a time.
+     */
+    private boolean sameBatchResults(String query) throws Exception {
+        return sameResultsAsBaseline(query,
+            QueryEvaluator.PROP_BATCH_EXECUTION, "false",
+            PerformanceCounters.EXEC_BATCH_PLANS);
+    }
+
+
+    public void testFilters() throws Throwable {
+        assert sameBatchResults("SELECT * FROM test_batch");
+        assert sameBatchResults(
+            "SELECT * FROM test_batch WHERE id > 5 AND d < 9.0");
+        assert sameBatchResults(
+            "SELECT * FROM test_batch WHERE b > 1500000 OR g = 'g1'");
+        assert sameBatchResults(
+            "SELECT * FROM test_batch WHERE d IS NULL OR id <= 2");
+        assert sameBatchResults("SELECT * FROM test_batch WHERE id > 100");
+    }
+
+
+    public void testProjections() throws Throwable {
+        assert sameBatchResults(
+            "SELECT id, b + id, d * 2, id / 4, b / d FROM test_batch");
+        assert sameBatchResults(
+            "SELECT g, id - 3 AS x, d FROM test_batch WHERE d > 2");
+    }
+
+
+    public void testAggregates() throws Throwable {
+        assert sameBatchResults("SELECT g, COUNT(*), COUNT(b), SUM(b), " +
+            "AVG(d), MIN(d), MAX(id), SUM(id), AVG(id) FROM test_batch GROUP BY g");
+        assert sameBatchResults("SELECT g, MIN(b), MAX(b), SUM(d), " +
+            "MIN(id * 2) FROM test_batch WHERE id > 2 GROUP BY g");
+        assert sameBatchResults("SELECT g, SUM(id + 1) FROM test_batch " +
+            "WHERE d IS NOT NULL GROUP BY g HAVING SUM(id) > 10");
+
+        // The sum 10 + 11 + ... + 23.
+        TupleLiteral[] expected = {
+            new TupleLiteral(14, 231)
+        };
+        CommandResult result = server.doCommand(
+            "SELECT COUNT(*), SUM(id) FROM test_batch WHERE id >= 10", true);
+        assert checkOrderedResults(expected, result);
+    }
+
+
+    public void testLimit() throws Throwable {
+        TupleLiteral[] expected = {
+            createTupleFromNum(0),
+            createTupleFromNum(2),
+            createTupleFromNum(4)
+        };
+        CommandResult result = server.doCommand(
+            "SELECT id FROM test_batch WHERE id % 2 = 0 LIMIT 3", true);
+        assert checkOrderedResults(expected, result);
+
+        assert sameBatchResults(
+            "SELECT id, d FROM test_batch WHERE id > 4 LIMIT 7");
+    }
+}
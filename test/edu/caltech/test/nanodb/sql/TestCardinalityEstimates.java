@@ -0,0 +1,162 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.commands.SelectClause;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.PlanNode;
+import edu.caltech.nanodb.qeval.PlannerFactory;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class compares the planner's estimates of how many rows queries
+ * produce against the actual number of rows, on the <tt>schemas/stores</tt>
+ * database.  Each estimate must be within a factor of the actual count;
+ * the factors are a regression guard on the quality of the selectivity
+ * estimates, not a statement of how accurate they should ideally be.
+ */
+@Test
+public class TestCardinalityEstimates extends SqlTestCase {
+
+    private static Logger logger =
+        Logger.getLogger(TestCardinalityEstimates.class);
+
+
+    @BeforeClass
+    public void loadStoresDatabase() throws Exception {
+        String sql =
+            FileUtils.readFileToString(new File("schemas/stores/make-stores.sql")) +
+            FileUtils.readFileToString(new File("schemas/stores/stores-10K.sql")) +
+            "ANALYZE states, cities, stores, employees;";
+
+        List<CommandResult> results = server.doCommands(sql, false);
+        for (CommandResult result : results) {
+            if (result.failed()) {
+                throw new Exception("Couldn't load the stores database",
+                    result.getFailure());
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of rows that the planner estimates the query will
+     * produce.
+     */
+    private float getEstimatedRows(String query) throws Exception {
+        SelectCommand command = (SelectCommand) server.parseCommand(query);
+        SelectClause selClause = command.getSelectClause();
+
+        StorageManager storageManager = server.getStorageManager();
+        selClause.computeSchema(storageManager.getTableManager());
+
+        PlanNode plan =
+            PlannerFactory.getPlanner(storageManager).makePlan(selClause, null);
+        return plan.getCost().numTuples;
+    }
+
+
+    /**
+     * Checks that the estimated number of rows produced by the query is
+     * within the specified factor of the actual number of rows.
+     */
+    private void checkEstimate(String query, float maxError) throws Exception {
+        float estimated = getEstimatedRows(query);
+        int actual = getResultTuples(query).size();
+
+        // A query that produces no rows is estimated as if it produced one.
+        float error = Math.max(estimated, 1) / Math.max(actual, 1);
+        if (error < 1)
+            error = 1 / error;
+
+        logger.info(String.format("Estimated %.1f rows, got %d rows " +
+            "(error %.2f) for query:  %s", estimated, actual, error, query));
+
+        assert error <= maxError : String.format("Estimated %.1f rows but " +
+            "got %d rows for query:  %s", estimated, actual, query);
+    }
+
+
+    private int getInt(String query) throws Exception {
+        List<TupleLiteral> tuples = getResultTuples(query);
+        return (Integer) tuples.get(0).getColumnValue(0);
+    }
+
+
+    public void testScans() throws Throwable {
+        checkEstimate("SELECT * FROM employees", 1.01f);
+        checkEstimate("SELECT * FROM cities", 1.01f);
+    }
+
+
+    public void testRangePredicates() throws Throwable {
+        checkEstimate("SELECT * FROM employees WHERE salary > 70000", 1.2f);
+        checkEstimate("SELECT * FROM employees WHERE salary <= 40000", 1.2f);
+        checkEstimate("SELECT * FROM cities WHERE population > 1000000", 1.5f);
+        checkEstimate("SELECT * FROM cities WHERE population < 200000", 1.5f);
+        checkEstimate("SELECT * FROM stores WHERE property_costs >= 500000", 1.5f);
+    }
+
+
+    public void testEqualityPredicates() throws Throwable {
+        // Cities are spread very unevenly over the states.
+        checkEstimate("SELECT * FROM cities WHERE state_id = 5", 1.5f);
+        checkEstimate("SELECT * FROM cities WHERE state_id = 44", 1.5f);
+        checkEstimate("SELECT * FROM cities WHERE state_id <> 5", 1.2f);
+        checkEstimate("SELECT * FROM employees WHERE salary = 50000", 1.5f);
+    }
+
+
+    /**
+     * A city determines its state, so a predicate on both is no more
+     * selective than a predicate on the city alone.
+     */
+    public void testCorrelatedPredicates() throws Throwable {
+        int stateID = getInt("SELECT state_id FROM cities WHERE city_id = 10");
+        String query = "SELECT * FROM cities WHERE city_id = 10 AND " +
+            "state_id = " + stateID;
+        checkEstimate(query, 1.5f);
+
+        // Treating the conjuncts as independent would estimate a fraction
+        // of a row, which the check above rounds up to 1.
+        float estimated = getEstimatedRows(query);
+        assert estimated > 0.5f : "Estimated " + estimated + " rows";
+    }
+
+
+    public void testEquiJoins() throws Throwable {
+        checkEstimate("SELECT * FROM cities c JOIN states s " +
+            "ON c.state_id = s.state_id", 1.5f);
+        checkEstimate("SELECT * FROM stores s JOIN cities c " +
+            "ON s.city_id = c.city_id", 1.5f);
+        checkEstimate("SELECT * FROM employees e JOIN cities c " +
+            "ON e.home_loc_id = c.city_id", 1.5f);
+        checkEstimate("SELECT * FROM employees e JOIN stores s " +
+            "ON e.work_loc_id = s.city_id", 2.5f);
+        checkEstimate("SELECT * FROM employees e JOIN cities c " +
+            "ON e.work_loc_id = c.city_id JOIN states s " +
+            "ON c.state_id = s.state_id", 1.5f);
+    }
+
+
+    public void testFilteredJoins() throws Throwable {
+        checkEstimate("SELECT * FROM employees e JOIN cities c " +
+            "ON e.home_loc_id = c.city_id WHERE c.population > 1000000", 2.0f);
+        checkEstimate("SELECT * FROM stores s JOIN cities c " +
+            "ON s.city_id = c.city_id WHERE s.property_costs < 300000", 2.0f);
+
+        int cityID = getInt("SELECT work_loc_id FROM employees WHERE emp_id = 1");
+        checkEstimate("SELECT * FROM employees e JOIN cities c " +
+            "ON e.work_loc_id = c.city_id WHERE c.city_id = " + cityID, 2.0f);
+    }
+}
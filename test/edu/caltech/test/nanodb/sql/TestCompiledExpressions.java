@@ -0,0 +1,116 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class tests that compiled predicates and projections produce the same
+ * results as interpreted ones.  Batch execution is disabled so that the
+ * queries are evaluated a tuple at a time by the select and project nodes.
+ */
+@Test
+public class TestCompiledExpressions extends SqlTestCase {
+
+    public TestCompiledExpressions() {
+        super("setup_testCompiledExpressions");
+    }
+
+
+    @BeforeClass
+    public void disableBatches() {
+        System.setProperty(QueryEvaluator.PROP_BATCH_EXECUTION, "false");
+    }
+
+
+    @AfterClass
+    public void enableBatches() {
+        System.clearProperty(QueryEvaluator.PROP_BATCH_EXECUTION);
+    }
+
+
+    /**
+     * Checks that a query produces the same results with and without
+     * expression compilation, in any order, and that it compiled at least
+     * one expression.
+     */
+    private boolean sameCompiledResults(String query) throws Exception {
+        return sameResultsAsBaseline(query,
+            QueryEvaluator.PROP_COMPILE_EXPRESSIONS, "false",
+            PerformanceCounters.EXEC_COMPILED_EXPRESSIONS);
+    }
+
+
+    public void testPredicates() throws Throwable {
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE id > 3 AND d < 6.5");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE b >= 40 OR c = 'bb'");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE NOT (d > 1.0)");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE NOT (id > 3 OR c <> 'aa')");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE d IS NULL OR id IS NULL");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE b IS NOT NULL AND c >= 'b'");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE id * 10 = b");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE b / id > 9.5 AND id % 2 = 0");
+        assert sameCompiledResults(
+            "SELECT * FROM test_compiled WHERE d <= id - 1");
+
+        // Predicates that can't be compiled are still interpreted.
+        assert sameResultsAsBaseline(
+            "SELECT * FROM test_compiled WHERE c LIKE 'a%' AND id > 1",
+            QueryEvaluator.PROP_COMPILE_EXPRESSIONS, "false", null);
+
+        TupleLiteral[] expected = {
+            createTupleFromNum(4),
+            createTupleFromNum(8)
+        };
+        CommandResult result = server.doCommand(
+            "SELECT id FROM test_compiled WHERE c = 'aa' AND b > 10", true);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testProjections() throws Throwable {
+        assert sameCompiledResults(
+            "SELECT id, b + id, d * 2, id / 4, b / d, b % 7 FROM test_compiled");
+        assert sameCompiledResults(
+            "SELECT c, id - 3 AS x, 5, 'lit', 2.5 * 2 FROM test_compiled");
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, 11L, 0.25),
+            new TupleLiteral(2, null, 0.5),
+            new TupleLiteral(3, 33L, 0.75),
+        };
+        CommandResult result = server.doCommand(
+            "SELECT id, b + id, id / 4 FROM test_compiled WHERE id < 4", true);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testJoinsAndAggregates() throws Throwable {
+        assert sameCompiledResults("SELECT t1.id, t2.v, t1.b - t2.id " +
+            "FROM test_compiled t1, test_compiled2 t2 WHERE t1.id = t2.id");
+        assert sameCompiledResults("SELECT * FROM test_compiled t1 " +
+            "LEFT OUTER JOIN test_compiled2 t2 ON t1.id = t2.id");
+
+        // AVG() of an INTEGER column produces doubles, so the compiled
+        // HAVING predicate must fall back to interpreting the expression.
+        assert sameCompiledResults("SELECT c, AVG(id) AS a FROM test_compiled " +
+            "GROUP BY c HAVING AVG(id) > 4");
+        assert sameCompiledResults("SELECT c, a + 1 FROM (SELECT c, AVG(id) " +
+            "AS a FROM test_compiled GROUP BY c) t WHERE a * 2 > 5");
+    }
+}
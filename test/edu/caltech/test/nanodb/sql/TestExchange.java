@@ -0,0 +1,139 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.HashJoinNode;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class tests that plans whose fragments are run in parallel, with
+ * exchanges between them, produce the same results as when they run on the
+ * session's thread alone.
+ */
+@Test
+public class TestExchange extends SqlTestCase {
+
+    /** The number of copies of each parallel fragment. */
+    private static final String PARALLELISM = "4";
+
+
+    public TestExchange() {
+        super("setup_testExchange");
+    }
+
+
+    @BeforeClass
+    public void enableParallelism() {
+        System.setProperty(QueryEvaluator.PROP_PARALLELISM, PARALLELISM);
+        System.setProperty(QueryEvaluator.PROP_PARALLEL_MIN_COST, "0");
+    }
+
+
+    @AfterClass
+    public void disableParallelism() {
+        System.clearProperty(QueryEvaluator.PROP_PARALLELISM);
+        System.clearProperty(QueryEvaluator.PROP_PARALLEL_MIN_COST);
+    }
+
+
+    /**
+     * Checks that a query produces the same results in parallel as it does
+     * serially, in any order, and that it ran a parallel fragment.
+     */
+    private boolean sameParallelResults(String query) throws Exception {
+        return sameResultsAsBaseline(query, QueryEvaluator.PROP_PARALLELISM,
+            null, PerformanceCounters.EXEC_PARALLEL_FRAGMENTS);
+    }
+
+
+    /**
+     * This test runs joins whose smaller input is small enough to be
+     * broadcast to every copy of the join.
+     */
+    public void testBroadcastJoin() throws Throwable {
+        assert sameParallelResults("SELECT id, amount, region " +
+            "FROM test_xorders, test_xcustomers WHERE cust = cid");
+        assert sameParallelResults("SELECT id, cid " +
+            "FROM test_xorders, test_xcustomers " +
+            "WHERE cust = cid AND region = 3 AND amount < 50");
+        assert sameParallelResults("SELECT id, region " +
+            "FROM test_xorders LEFT OUTER JOIN test_xcustomers " +
+            "ON cust = cid");
+    }
+
+
+    /**
+     * This test runs joins with a small hash-join memory budget, so that both
+     * inputs of each join are repartitioned on the join keys.
+     */
+    public void testRepartitionJoin() throws Throwable {
+        System.setProperty(HashJoinNode.PROP_HASHJOIN_MEMORY, "50000");
+        try {
+            assert sameParallelResults("SELECT id, qty " +
+                "FROM test_xorders, test_xitems WHERE id = oid");
+            assert sameParallelResults("SELECT id, qty, region " +
+                "FROM test_xorders, test_xitems, test_xcustomers " +
+                "WHERE id = oid AND cust = cid");
+            assert sameParallelResults("SELECT id, oid " +
+                "FROM test_xorders LEFT OUTER JOIN test_xitems " +
+                "ON id = oid AND qty > 5");
+        }
+        finally {
+            System.clearProperty(HashJoinNode.PROP_HASHJOIN_MEMORY);
+        }
+    }
+
+
+    public void testAggregateOverParallelJoin() throws Throwable {
+        assert sameParallelResults("SELECT region, COUNT(*), " +
+            "SUM(amount), MIN(id), MAX(id) " +
+            "FROM test_xorders, test_xcustomers " +
+            "WHERE cust = cid GROUP BY region");
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(8104, 401280)
+        };
+        CommandResult result = server.doCommand(
+            "SELECT COUNT(*), SUM(amount) " +
+            "FROM test_xorders, test_xcustomers WHERE cust = cid", true);
+        assert checkOrderedResults(expected, result);
+    }
+
+
+    /**
+     * This test verifies that a query which stops reading a parallel
+     * fragment early stops the fragment's workers, and that the tables can
+     * be read again afterwards.
+     */
+    public void testParallelJoinWithLimit() throws Throwable {
+        CommandResult result = server.doCommand("SELECT id, region " +
+            "FROM test_xorders, test_xcustomers WHERE cust = cid LIMIT 10",
+            true);
+        assert result.getTuples().size() == 10;
+
+        System.setProperty(HashJoinNode.PROP_HASHJOIN_MEMORY, "50000");
+        try {
+            result = server.doCommand("SELECT id, qty " +
+                "FROM test_xorders, test_xitems WHERE id = oid LIMIT 3",
+                true);
+            assert result.getTuples().size() == 3;
+        }
+        finally {
+            System.clearProperty(HashJoinNode.PROP_HASHJOIN_MEMORY);
+        }
+
+        TupleLiteral[] expected = {
+            createTupleFromNum(8104)
+        };
+        result = server.doCommand("SELECT COUNT(*) " +
+            "FROM test_xorders, test_xcustomers WHERE cust = cid", true);
+        assert checkOrderedResults(expected, result);
+    }
+}
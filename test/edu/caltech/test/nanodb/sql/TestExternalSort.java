@@ -0,0 +1,191 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.SortNode;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class tests ORDER BY queries with a memory budget small enough that
+ * the {@link SortNode} must write sorted runs to disk and merge them, both
+ * for full sorts and for top-N sorts under a LIMIT.
+ */
+@Test
+public class TestExternalSort extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 60;
+
+
+    /**
+     * A memory budget small enough that every run holds only a few tuples,
+     * and multiple merge passes are required.
+     */
+    private static final String TINY_MEMORY_BUDGET = "64";
+
+
+    /** The number of rows in the table of variable-width rows. */
+    private static final int NUM_WIDE_ROWS = 1500;
+
+
+    /**
+     * A memory budget that makes each run of variable-width rows span
+     * several pages.
+     */
+    private static final String SMALL_MEMORY_BUDGET = "20000";
+
+
+    public TestExternalSort() {
+        super("setup_testExternalSort");
+    }
+
+
+    /**
+     * Returns the rows of the test table, sorted on <tt>a</tt> ascending
+     * and then on <tt>b</tt> descending.
+     */
+    private List<TupleLiteral> getSortedRows() {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        for (int i = 0; i < NUM_ROWS; i++)
+            rows.add(new int[] { (i * 7) % 10, (i * 13) % NUM_ROWS });
+
+        Collections.sort(rows, new Comparator<int[]>() {
+            public int compare(int[] r1, int[] r2) {
+                if (r1[0] != r2[0])
+                    return r1[0] - r2[0];
+
+                return r2[1] - r1[1];
+            }
+        });
+
+        ArrayList<TupleLiteral> results = new ArrayList<TupleLiteral>();
+        for (int[] row : rows)
+            results.add(new TupleLiteral(row[0], row[1]));
+
+        return results;
+    }
+
+
+    private void checkSort(int limit) throws Throwable {
+        List<TupleLiteral> expected = getSortedRows();
+        String query = "SELECT * FROM test_sort ORDER BY a, b DESC";
+        if (limit > 0) {
+            expected = expected.subList(0, Math.min(limit, NUM_ROWS));
+            query += " LIMIT " + limit;
+        }
+
+        CommandResult result = server.doCommand(query, true);
+        assert checkOrderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result);
+    }
+
+
+    public void testInMemorySort() throws Throwable {
+        int spilled =
+            PerformanceCounters.get(PerformanceCounters.SORT_RUNS_SPILLED);
+
+        checkSort(0);
+        checkSort(5);
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.SORT_RUNS_SPILLED) == spilled;
+    }
+
+
+    public void testExternalSort() throws Throwable {
+        int spilled =
+            PerformanceCounters.get(PerformanceCounters.SORT_RUNS_SPILLED);
+
+        System.setProperty(SortNode.PROP_SORT_MEMORY, TINY_MEMORY_BUDGET);
+        try {
+            checkSort(0);
+        }
+        finally {
+            System.clearProperty(SortNode.PROP_SORT_MEMORY);
+        }
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.SORT_RUNS_SPILLED) > spilled;
+    }
+
+
+    /**
+     * This test verifies that a top-N sort whose heap outgrows the memory
+     * budget falls back to an external sort, and still produces the right
+     * results.
+     */
+    public void testTopNSort() throws Throwable {
+        System.setProperty(SortNode.PROP_SORT_MEMORY, TINY_MEMORY_BUDGET);
+        try {
+            for (int limit : Arrays.asList(1, 3, 25, NUM_ROWS, NUM_ROWS + 5))
+                checkSort(limit);
+        }
+        finally {
+            System.clearProperty(SortNode.PROP_SORT_MEMORY);
+        }
+    }
+
+
+    /**
+     * This test sorts variable-width rows with runs that span several pages,
+     * so that short rows written after a run's first page fills up would fit
+     * in the space left on that page.  The runs must still be read back in
+     * the order they were written.
+     */
+    public void testMultiPageRuns() throws Throwable {
+        tryDoCommand("CREATE TABLE test_sort_wide (id INTEGER, s VARCHAR(200));");
+
+        Random random = new Random(17);
+        ArrayList<TupleLiteral> expected = new ArrayList<TupleLiteral>();
+        for (int i = 0; i < NUM_WIDE_ROWS; i++) {
+            StringBuilder buf = new StringBuilder();
+            int length = 1 + random.nextInt(150);
+            for (int j = 0; j < length; j++)
+                buf.append((char) ('a' + random.nextInt(26)));
+
+            tryDoCommand("INSERT INTO test_sort_wide VALUES (" + i + ", '" +
+                buf + "');");
+            expected.add(new TupleLiteral(buf.toString(), i));
+        }
+
+        Collections.sort(expected, new Comparator<TupleLiteral>() {
+            public int compare(TupleLiteral t1, TupleLiteral t2) {
+                int cmp = ((String) t1.getColumnValue(0)).compareTo(
+                    (String) t2.getColumnValue(0));
+                if (cmp != 0)
+                    return cmp;
+
+                return (Integer) t1.getColumnValue(1) -
+                    (Integer) t2.getColumnValue(1);
+            }
+        });
+
+        int spilled =
+            PerformanceCounters.get(PerformanceCounters.SORT_RUNS_SPILLED);
+
+        System.setProperty(SortNode.PROP_SORT_MEMORY, SMALL_MEMORY_BUDGET);
+        try {
+            CommandResult result = server.doCommand(
+                "SELECT s, id FROM test_sort_wide ORDER BY s, id", true);
+            assert checkOrderedResults(
+                expected.toArray(new TupleLiteral[expected.size()]), result);
+        }
+        finally {
+            System.clearProperty(SortNode.PROP_SORT_MEMORY);
+        }
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.SORT_RUNS_SPILLED) > spilled + 2;
+    }
+}
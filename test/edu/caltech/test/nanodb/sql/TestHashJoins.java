@@ -0,0 +1,212 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.HashJoinNode;
+import edu.caltech.nanodb.plans.PlanNode;
+import edu.caltech.nanodb.qeval.CostBasedJoinPlanner;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class tests equijoins that the planner evaluates with a
+ * {@link HashJoinNode}, both in memory and when the join has to spill
+ * partitions to disk.  The join columns are INTEGER and BIGINT, so the join
+ * keys must be hashed consistently across the two types.
+ */
+@Test
+public class TestHashJoins extends SqlTestCase {
+
+    /** A memory budget small enough that every join spills partitions. */
+    private static final String TINY_MEMORY_BUDGET = "16";
+
+
+    private static final TupleLiteral[] INNER_RESULTS = {
+        new TupleLiteral(1, 10, 10L, 100),
+        new TupleLiteral(2, 20, 20L, 200),
+        new TupleLiteral(2, 20, 20L, 201),
+        new TupleLiteral(3, 20, 20L, 200),
+        new TupleLiteral(3, 20, 20L, 201),
+        new TupleLiteral(4, 30, 30L, 300)
+    };
+
+
+    private static final TupleLiteral[] LEFT_OUTER_RESULTS = {
+        new TupleLiteral(1, 10, 10L, 100),
+        new TupleLiteral(2, 20, 20L, 200),
+        new TupleLiteral(2, 20, 20L, 201),
+        new TupleLiteral(3, 20, 20L, 200),
+        new TupleLiteral(3, 20, 20L, 201),
+        new TupleLiteral(4, 30, 30L, 300),
+        new TupleLiteral(5, null, null, null),
+        new TupleLiteral(6, 50, null, null)
+    };
+
+
+    private static final TupleLiteral[] RIGHT_OUTER_RESULTS = {
+        new TupleLiteral(1, 10, 10L, 100),
+        new TupleLiteral(2, 20, 20L, 200),
+        new TupleLiteral(2, 20, 20L, 201),
+        new TupleLiteral(3, 20, 20L, 200),
+        new TupleLiteral(3, 20, 20L, 201),
+        new TupleLiteral(4, 30, 30L, 300),
+        new TupleLiteral(null, null, 40L, 400),
+        new TupleLiteral(null, null, null, 999)
+    };
+
+
+    private static final TupleLiteral[] SEMIJOIN_RESULTS = {
+        new TupleLiteral(1, 10),
+        new TupleLiteral(2, 20),
+        new TupleLiteral(3, 20),
+        new TupleLiteral(4, 30)
+    };
+
+
+    private static final TupleLiteral[] ANTIJOIN_RESULTS = {
+        new TupleLiteral(5, null),
+        new TupleLiteral(6, 50)
+    };
+
+
+    public TestHashJoins() {
+        super("setup_testHashJoins");
+    }
+
+
+    public void testInnerJoin() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_hj_1 t1 JOIN test_hj_2 t2 ON t1.b = t2.b",
+            true);
+        assert checkUnorderedResults(INNER_RESULTS, result);
+    }
+
+
+    /**
+     * This test verifies that conditions besides the equijoin are still
+     * applied to the matching tuples.
+     */
+    public void testInnerJoinExtraCondition() throws Throwable {
+        TupleLiteral[] expected = {
+            new TupleLiteral(2, 20, 20L, 201),
+            new TupleLiteral(3, 20, 20L, 201)
+        };
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_hj_1 t1 JOIN test_hj_2 t2 " +
+            "ON t1.b = t2.b AND t2.c - t1.b * 10 > 0", true);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testLeftOuterJoin() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_hj_1 t1 LEFT JOIN test_hj_2 t2 " +
+            "ON t1.b = t2.b", true);
+        assert checkUnorderedResults(LEFT_OUTER_RESULTS, result);
+    }
+
+
+    public void testRightOuterJoin() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_hj_1 t1 RIGHT JOIN test_hj_2 t2 " +
+            "ON t1.b = t2.b", true);
+        assert checkUnorderedResults(RIGHT_OUTER_RESULTS, result);
+    }
+
+
+    /**
+     * This test runs the joins with a tiny memory budget, so that the hash
+     * join must partition its inputs into temporary files.
+     */
+    public void testSpilledJoins() throws Throwable {
+        int spilled = PerformanceCounters.get(
+            PerformanceCounters.JOIN_HASH_PARTITIONS_SPILLED);
+
+        System.setProperty(HashJoinNode.PROP_HASHJOIN_MEMORY,
+            TINY_MEMORY_BUDGET);
+        try {
+            testInnerJoin();
+            testInnerJoinExtraCondition();
+            testLeftOuterJoin();
+            testRightOuterJoin();
+        }
+        finally {
+            System.clearProperty(HashJoinNode.PROP_HASHJOIN_MEMORY);
+        }
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.JOIN_HASH_PARTITIONS_SPILLED) > spilled;
+    }
+
+
+    /**
+     * Builds and runs a hash semijoin or antijoin of the two test tables
+     * directly, since the planner doesn't produce these join types from SQL
+     * yet.
+     */
+    private List<TupleLiteral> runJoin(JoinType joinType) throws Exception {
+        StorageManager storageManager = server.getStorageManager();
+
+        CostBasedJoinPlanner planner = new CostBasedJoinPlanner();
+        planner.setStorageManager(storageManager);
+
+        Expression predicate = new CompareOperator(
+            CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName("TEST_HJ_1", "B")),
+            new ColumnValue(new ColumnName("TEST_HJ_2", "B")));
+
+        PlanNode plan = new HashJoinNode(
+            planner.makeSimpleSelect("TEST_HJ_1", null, null),
+            planner.makeSimpleSelect("TEST_HJ_2", null, null),
+            joinType, predicate, storageManager);
+
+        plan.prepare();
+        plan.initialize();
+
+        ArrayList<TupleLiteral> results = new ArrayList<TupleLiteral>();
+        while (true) {
+            Tuple tuple = plan.getNextTuple();
+            if (tuple == null)
+                break;
+
+            results.add(new TupleLiteral(tuple));
+        }
+        plan.cleanUp();
+
+        return results;
+    }
+
+
+    public void testSemijoinAntijoin() throws Exception {
+        assert sameResultsUnordered(SEMIJOIN_RESULTS,
+            runJoin(JoinType.SEMIJOIN));
+        assert sameResultsUnordered(ANTIJOIN_RESULTS,
+            runJoin(JoinType.ANTIJOIN));
+
+        System.setProperty(HashJoinNode.PROP_HASHJOIN_MEMORY,
+            TINY_MEMORY_BUDGET);
+        try {
+            assert sameResultsUnordered(SEMIJOIN_RESULTS,
+                runJoin(JoinType.SEMIJOIN));
+            assert sameResultsUnordered(ANTIJOIN_RESULTS,
+                runJoin(JoinType.ANTIJOIN));
+        }
+        finally {
+            System.clearProperty(HashJoinNode.PROP_HASHJOIN_MEMORY);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectClause;
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.PlanNode;
+import edu.caltech.nanodb.qeval.CostBasedJoinPlanner;
+import edu.caltech.nanodb.qeval.PlannerFactory;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class exercises the join enumeration of the cost-based planner:
+ * bushy plans, join graphs that aren't connected, and the greedy planning
+ * used for joins of many leaves.
+ */
+@Test
+public class TestJoinEnumeration extends SqlTestCase {
+
+    public TestJoinEnumeration() {
+        super("setup_testJoinEnumeration");
+    }
+
+
+    private PlanNode makePlan(String query) throws Exception {
+        SelectCommand command = (SelectCommand) server.parseCommand(query);
+        SelectClause selClause = command.getSelectClause();
+
+        StorageManager storageManager = server.getStorageManager();
+        selClause.computeSchema(storageManager.getTableManager());
+
+        return PlannerFactory.getPlanner(storageManager).makePlan(selClause, null);
+    }
+
+
+    /**
+     * Runs a query with joins of more than the specified number of leaves
+     * planned greedily, and returns the results.
+     */
+    private List<TupleLiteral> getGreedyResults(String query, int threshold)
+        throws Exception {
+        System.setProperty(CostBasedJoinPlanner.PROP_GREEDY_THRESHOLD,
+            Integer.toString(threshold));
+        try {
+            return getResultTuples(query);
+        }
+        finally {
+            System.clearProperty(CostBasedJoinPlanner.PROP_GREEDY_THRESHOLD);
+        }
+    }
+
+
+    /**
+     * Checks that a query produces the same results whether its joins are
+     * planned with dynamic programming or greedily, and returns the number
+     * of rows produced.
+     */
+    private int checkSameResults(String query) throws Exception {
+        List<TupleLiteral> expected = getGreedyResults(query, 1);
+        CommandResult result = server.doCommand(query, true);
+        assert checkUnorderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result);
+
+        return expected.size();
+    }
+
+
+    /**
+     * The two filtered tables each join one other table on a unique key, so
+     * the cheapest plan joins those pairs first and then joins the two
+     * small results together.  A left-deep plan would have to join one of
+     * the pairs to a whole table on the column with few values.
+     */
+    public void testBushyPlan() throws Throwable {
+        String query = "SELECT * FROM test_je_a a " +
+            "JOIN test_je_b b ON a.id = b.id " +
+            "JOIN test_je_c c ON b.x = c.x " +
+            "JOIN test_je_d d ON c.id = d.id " +
+            "WHERE a.f = 1 AND d.f = 2";
+
+        String plan = PlanNode.printNodeTreeToString(makePlan(query), true);
+
+        // Find the topmost join, and check that both of its children are
+        // joins too.
+        String[] lines = plan.split("\n");
+        int top = 0;
+        while (!lines[top].contains("Join["))
+            top++;
+
+        String childIndent = getIndent(lines[top]) + "    ";
+        ArrayList<String> children = new ArrayList<String>();
+        for (int i = top + 1; i < lines.length; i++) {
+            if (getIndent(lines[i]).equals(childIndent))
+                children.add(lines[i]);
+        }
+
+        assert children.size() == 2 : plan;
+        assert children.get(0).contains("Join[") : plan;
+        assert children.get(1).contains("Join[") : plan;
+
+        assert checkSameResults(query) == 10;
+    }
+
+
+    private static String getIndent(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) == ' ')
+            i++;
+        return line.substring(0, i);
+    }
+
+
+    /**
+     * Two pairs of tables that aren't joined to each other by any conjunct
+     * are combined with a cross product.
+     */
+    public void testDisconnectedJoinGraph() throws Throwable {
+        int rows = checkSameResults("SELECT * FROM test_je_a a, test_je_b b, " +
+            "test_je_c c, test_je_d d WHERE a.id = b.id AND c.id = d.id " +
+            "AND a.f = 3 AND c.f = 4");
+        assert rows == 100 : "Got " + rows;
+    }
+
+
+    /**
+     * A chain of joins over ten leaves, which uses each table several times.
+     */
+    public void testLongChain() throws Throwable {
+        String query = "SELECT a1.id, d3.id FROM test_je_a a1 " +
+            "JOIN test_je_b b1 ON a1.id = b1.id " +
+            "JOIN test_je_c c1 ON b1.id = c1.id " +
+            "JOIN test_je_d d1 ON c1.id = d1.id " +
+            "JOIN test_je_a a2 ON d1.id = a2.id " +
+            "JOIN test_je_b b2 ON a2.id = b2.id " +
+            "JOIN test_je_c c2 ON b2.id = c2.id " +
+            "JOIN test_je_d d2 ON c2.id = d2.id " +
+            "JOIN test_je_a a3 ON d2.id = a3.id " +
+            "JOIN test_je_d d3 ON a3.x = d3.x " +
+            "WHERE a1.f = 5 AND d3.f = 6";
+
+        int rows = checkSameResults(query);
+        assert rows == 10 : "Got " + rows;
+
+        // The same query is also planned with a threshold that plans the
+        // whole query greedily.
+        assert getGreedyResults(query, 5).size() == 10;
+    }
+
+
+    /**
+     * Queries that join every pair of leaves together, so that the join
+     * graph is a clique.
+     */
+    public void testCliqueJoin() throws Throwable {
+        int rows = checkSameResults("SELECT * FROM test_je_a a, test_je_b b, " +
+            "test_je_c c, test_je_d d WHERE a.id = b.id AND a.id = c.id AND " +
+            "a.id = d.id AND b.id = c.id AND b.id = d.id AND c.id = d.id " +
+            "AND b.f < 3");
+        assert rows == 30 : "Got " + rows;
+    }
+}
@@ -0,0 +1,124 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class tests that table scans and hashed aggregation running on
+ * several worker threads produce the same results as when they run on the
+ * session's thread alone.
+ */
+@Test
+public class TestParallelScan extends SqlTestCase {
+
+    /** The number of workers used for the parallel queries. */
+    private static final String PARALLELISM = "4";
+
+
+    public TestParallelScan() {
+        super("setup_testParallelScan");
+    }
+
+
+    @BeforeClass
+    public void enableParallelism() {
+        System.setProperty(QueryEvaluator.PROP_PARALLELISM, PARALLELISM);
+    }
+
+
+    @AfterClass
+    public void disableParallelism() {
+        System.clearProperty(QueryEvaluator.PROP_PARALLELISM);
+    }
+
+
+    /**
+     * Checks that a query produces the same results in parallel as it does
+     * serially, in any order, and that it scanned a table in parallel.
+     */
+    private boolean sameParallelResults(String query) throws Exception {
+        return sameResultsAsBaseline(query, QueryEvaluator.PROP_PARALLELISM,
+            null, PerformanceCounters.EXEC_PARALLEL_SCANS);
+    }
+
+
+    public void testParallelScan() throws Throwable {
+        assert sameParallelResults("SELECT * FROM test_parallel");
+        assert sameParallelResults(
+            "SELECT id, v FROM test_parallel WHERE v > 900 AND g < 10");
+        assert sameParallelResults(
+            "SELECT s, id * 2 FROM test_parallel WHERE id IS NULL OR id > 9990");
+        assert sameParallelResults(
+            "SELECT * FROM test_parallel WHERE s = 'null value' OR g IS NULL");
+
+        TupleLiteral[] expected = {
+            createTupleFromNum(0),
+            createTupleFromNum(1000),
+            createTupleFromNum(2000),
+            createTupleFromNum(3000),
+            createTupleFromNum(4000),
+        };
+        CommandResult result = server.doCommand(
+            "SELECT id FROM test_parallel WHERE v = 0 AND id < 5000", true);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testParallelAggregation() throws Throwable {
+        int partials = PerformanceCounters.get(
+            PerformanceCounters.AGG_PARTIAL_TABLES);
+
+        assert sameParallelResults("SELECT g, COUNT(*), COUNT(v), SUM(v), " +
+            "MIN(v), MAX(v), AVG(v) FROM test_parallel GROUP BY g");
+        assert sameParallelResults("SELECT g, v, MIN(s), MAX(id * 0.5) " +
+            "FROM test_parallel WHERE id > 100 GROUP BY g, v");
+        assert sameParallelResults("SELECT COUNT(*), COUNT(id), SUM(id), " +
+            "MIN(id), MAX(s) FROM test_parallel WHERE v < 500");
+        assert sameParallelResults("SELECT g, SUM(v) FROM test_parallel " +
+            "GROUP BY g HAVING SUM(v) > 14000");
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.AGG_PARTIAL_TABLES) > partials;
+
+        // Aggregates whose state can't be merged still use a parallel scan.
+        assert sameParallelResults("SELECT g, COUNT(DISTINCT v % 5) " +
+            "FROM test_parallel GROUP BY g");
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(10003, 10002, 50015001)
+        };
+        CommandResult result = server.doCommand(
+            "SELECT COUNT(*), COUNT(id), SUM(id) FROM test_parallel", true);
+        assert checkOrderedResults(expected, result);
+    }
+
+
+    /**
+     * This test verifies that a query which stops reading a parallel scan
+     * early stops the scan's workers, and that the table can be scanned
+     * again afterwards.
+     */
+    public void testParallelScanWithLimit() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT id FROM test_parallel LIMIT 10", true);
+        assert result.getTuples().size() == 10;
+
+        result = server.doCommand(
+            "SELECT id FROM test_parallel WHERE v > 990 LIMIT 3", true);
+        assert result.getTuples().size() == 3;
+
+        TupleLiteral[] expected = {
+            createTupleFromNum(10003)
+        };
+        result = server.doCommand("SELECT COUNT(*) FROM test_parallel", true);
+        assert checkOrderedResults(expected, result);
+    }
+}
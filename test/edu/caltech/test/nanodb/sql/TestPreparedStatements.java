@@ -0,0 +1,177 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.qeval.PlanCache;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class exercises prepared statements, and the plan cache that they
+ * are executed from.
+ */
+@Test
+public class TestPreparedStatements extends SqlTestCase {
+
+    public TestPreparedStatements() {
+        super("setup_testPreparedStatements");
+    }
+
+
+    public void testPrepareSelect() throws Throwable {
+        tryDoCommand("PREPARE sel_a FROM 'SELECT b FROM test_ps WHERE a = ?';");
+
+        CommandResult result = server.doCommand("EXECUTE sel_a USING 2;", true);
+        assert checkUnorderedResults(
+            new TupleLiteral[] { new TupleLiteral("two") }, result);
+
+        // The second execution binds a different value to the same plan.
+        int hits = PerformanceCounters.get(PerformanceCounters.PLAN_CACHE_HITS);
+        result = server.doCommand("EXECUTE sel_a USING 1 + 2;", true);
+        assert checkUnorderedResults(
+            new TupleLiteral[] { new TupleLiteral("three") }, result);
+        assert PerformanceCounters.get(PerformanceCounters.PLAN_CACHE_HITS) ==
+            hits + 1;
+
+        tryDoCommand("PREPARE sel_range FROM " +
+            "'SELECT a FROM test_ps WHERE a > ? AND b <> ?';");
+        result = server.doCommand("EXECUTE sel_range USING 1, 'three';", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            createTupleFromNum(2), createTupleFromNum(4) }, result);
+
+        tryDoCommand("DEALLOCATE PREPARE sel_a;");
+        tryDoCommand("DEALLOCATE sel_range;");
+        assert server.doCommand("EXECUTE sel_a USING 1;", false).failed();
+    }
+
+
+    /**
+     * Prepared statements can contain string literals, written with doubled
+     * single-quotes, and can span several lines.
+     */
+    public void testPrepareWithStringLiterals() throws Throwable {
+        tryDoCommand("PREPARE sel_two FROM " +
+            "'SELECT a FROM test_ps WHERE b = ''two'' OR a = ?';");
+        CommandResult result = server.doCommand("EXECUTE sel_two USING 4;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            createTupleFromNum(2), createTupleFromNum(4) }, result);
+
+        tryDoCommand("PREPARE sel_lines FROM 'SELECT a\n" +
+            "  FROM test_ps\n" +
+            "  WHERE b <> ''it''''s'' AND a < ?';");
+        result = server.doCommand("EXECUTE sel_lines USING 3;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            createTupleFromNum(1), createTupleFromNum(2) }, result);
+
+        // Statements that differ only inside a string literal don't share a
+        // plan.
+        tryDoCommand("PREPARE sel_three FROM " +
+            "'SELECT a FROM test_ps WHERE b = ''three'' OR a = ?';");
+        result = server.doCommand("EXECUTE sel_three USING 4;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            createTupleFromNum(3), createTupleFromNum(4) }, result);
+    }
+
+
+    public void testPrepareModifications() throws Throwable {
+        tryDoCommand("CREATE TABLE test_ps_mod (a INTEGER, b VARCHAR(20));");
+
+        tryDoCommand("PREPARE ins FROM 'INSERT INTO test_ps_mod VALUES (?, ?)';");
+        for (int i = 1; i <= 5; i++)
+            tryDoCommand("EXECUTE ins USING " + i + ", 'row" + i + "';");
+
+        tryDoCommand("PREPARE upd FROM " +
+            "'UPDATE test_ps_mod SET b = ? WHERE a = ?';");
+        tryDoCommand("EXECUTE upd USING 'updated', 3;");
+
+        tryDoCommand("PREPARE del FROM 'DELETE FROM test_ps_mod WHERE a >= ?';");
+        tryDoCommand("EXECUTE del USING 5;");
+
+        CommandResult result =
+            server.doCommand("SELECT * FROM test_ps_mod;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(1, "row1"),
+            new TupleLiteral(2, "row2"),
+            new TupleLiteral(3, "updated"),
+            new TupleLiteral(4, "row4")
+        }, result);
+    }
+
+
+    /**
+     * DDL commands and <tt>ANALYZE</tt> clear the plan cache, but prepared
+     * statements still work afterward, by being planned again.
+     */
+    public void testInvalidation() throws Throwable {
+        tryDoCommand("PREPARE cnt FROM 'SELECT COUNT(*) FROM test_ps WHERE a < ?';");
+        tryDoCommand("EXECUTE cnt USING 3;");
+        assert PlanCache.getInstance().size() > 0;
+
+        int invalidations =
+            PerformanceCounters.get(PerformanceCounters.PLAN_CACHE_INVALIDATIONS);
+        tryDoCommand("ANALYZE test_ps;");
+        assert PlanCache.getInstance().size() == 0;
+
+        int misses = PerformanceCounters.get(PerformanceCounters.PLAN_CACHE_MISSES);
+        CommandResult result = server.doCommand("EXECUTE cnt USING 4;", true);
+        assert checkUnorderedResults(
+            new TupleLiteral[] { createTupleFromNum(3) }, result);
+        assert PerformanceCounters.get(PerformanceCounters.PLAN_CACHE_MISSES) ==
+            misses + 1;
+
+        tryDoCommand("CREATE TABLE test_ps_ddl (a INTEGER);");
+        assert PlanCache.getInstance().size() == 0;
+        assert PerformanceCounters.get(
+            PerformanceCounters.PLAN_CACHE_INVALIDATIONS) == invalidations + 2;
+    }
+
+
+    /**
+     * Statements that differ only in case, whitespace and comments share a
+     * plan.
+     */
+    public void testNormalization() throws Throwable {
+        assert PlanCache.normalize("select  *\n  from test_ps -- all rows\n" +
+            "where b = 'One';").equals(
+            PlanCache.normalize("SELECT * FROM TEST_PS WHERE B = 'One'"));
+        assert !PlanCache.normalize("SELECT * FROM test_ps WHERE b = 'One'").equals(
+            PlanCache.normalize("SELECT * FROM test_ps WHERE b = 'one'"));
+
+        tryDoCommand("PREPARE p1 FROM 'select a from test_ps where a = ?';");
+        int hits = PerformanceCounters.get(PerformanceCounters.PLAN_CACHE_HITS);
+        tryDoCommand("PREPARE p2 FROM 'SELECT a\t FROM  test_ps WHERE a = ?;';");
+        assert PerformanceCounters.get(PerformanceCounters.PLAN_CACHE_HITS) ==
+            hits + 1;
+    }
+
+
+    public void testErrors() throws Throwable {
+        // Parameters are only allowed in prepared statements.
+        assert server.doCommand("SELECT * FROM test_ps WHERE a = ?;",
+            false).failed();
+
+        tryDoCommand("PREPARE two_params FROM " +
+            "'SELECT * FROM test_ps WHERE a = ? OR a = ?';");
+        assert server.doCommand("EXECUTE two_params USING 1;", false).failed();
+        assert server.doCommand("EXECUTE two_params;", false).failed();
+        assert server.doCommand("EXECUTE no_such_statement;", false).failed();
+        assert server.doCommand("DEALLOCATE no_such_statement;", false).failed();
+
+        // Only a single query can be prepared.
+        assert server.doCommand("PREPARE bad FROM 'CREATE TABLE t (a INTEGER)';",
+            false).failed();
+        assert server.doCommand("PREPARE bad FROM " +
+            "'SELECT * FROM test_ps; SELECT * FROM test_ps';", false).failed();
+        assert server.doCommand("PREPARE bad FROM 'SELECT * FROM';",
+            false).failed();
+
+        // The statement still works after a failed execution.
+        CommandResult result =
+            server.doCommand("EXECUTE two_params USING 1, 4;", true);
+        assert checkUnorderedResults(new TupleLiteral[] {
+            new TupleLiteral(1, "one"), new TupleLiteral(4, "four") }, result);
+    }
+}
@@ -0,0 +1,201 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.PlanNode;
+import edu.caltech.nanodb.plans.SortMergeJoinNode;
+import edu.caltech.nanodb.qeval.CostBasedJoinPlanner;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class tests joins evaluated with a {@link SortMergeJoinNode}.  The
+ * first two test tables are B<sup>+</sup> tree files, so their scans are
+ * already ordered on the join column; the third is a heap file, so it must
+ * be sorted before it can be merge-joined.
+ */
+@Test
+public class TestSortMergeJoins extends SqlTestCase {
+
+    private static final TupleLiteral[] INNER_RESULTS = {
+        new TupleLiteral(2, 20, 2, 200),
+        new TupleLiteral(2, 20, 2, 201),
+        new TupleLiteral(2, 21, 2, 200),
+        new TupleLiteral(2, 21, 2, 201),
+        new TupleLiteral(4, 40, 4, 400)
+    };
+
+
+    private static final TupleLiteral[] LEFT_OUTER_RESULTS = {
+        new TupleLiteral(null, 0, null, null),
+        new TupleLiteral(1, 10, null, null),
+        new TupleLiteral(2, 20, 2, 200),
+        new TupleLiteral(2, 20, 2, 201),
+        new TupleLiteral(2, 21, 2, 200),
+        new TupleLiteral(2, 21, 2, 201),
+        new TupleLiteral(4, 40, 4, 400)
+    };
+
+
+    private static final TupleLiteral[] RIGHT_OUTER_RESULTS = {
+        new TupleLiteral(null, null, null, 999),
+        new TupleLiteral(2, 20, 2, 200),
+        new TupleLiteral(2, 20, 2, 201),
+        new TupleLiteral(2, 21, 2, 200),
+        new TupleLiteral(2, 21, 2, 201),
+        new TupleLiteral(null, null, 3, 300),
+        new TupleLiteral(4, 40, 4, 400)
+    };
+
+
+    private static final TupleLiteral[] FULL_OUTER_RESULTS = {
+        new TupleLiteral(null, 0, null, null),
+        new TupleLiteral(null, null, null, 999),
+        new TupleLiteral(1, 10, null, null),
+        new TupleLiteral(2, 20, 2, 200),
+        new TupleLiteral(2, 20, 2, 201),
+        new TupleLiteral(2, 21, 2, 200),
+        new TupleLiteral(2, 21, 2, 201),
+        new TupleLiteral(null, null, 3, 300),
+        new TupleLiteral(4, 40, 4, 400)
+    };
+
+
+    public TestSortMergeJoins() {
+        super("setup_testSortMergeJoins");
+    }
+
+
+    public void testInnerJoin() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_smj_1 t1 JOIN test_smj_2 t2 ON t1.a = t2.a",
+            true);
+        assert checkUnorderedResults(INNER_RESULTS, result);
+    }
+
+
+    /**
+     * This test verifies that conditions besides the equijoin are still
+     * applied to the tuples in each run of equal keys.
+     */
+    public void testInnerJoinExtraCondition() throws Throwable {
+        TupleLiteral[] expected = {
+            new TupleLiteral(2, 20, 2, 201),
+            new TupleLiteral(2, 21, 2, 201)
+        };
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_smj_1 t1 JOIN test_smj_2 t2 " +
+            "ON t1.a = t2.a AND t2.c - t1.a * 100 > 0", true);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testLeftOuterJoin() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_smj_1 t1 LEFT JOIN test_smj_2 t2 " +
+            "ON t1.a = t2.a", true);
+        assert checkUnorderedResults(LEFT_OUTER_RESULTS, result);
+    }
+
+
+    public void testRightOuterJoin() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_smj_1 t1 RIGHT JOIN test_smj_2 t2 " +
+            "ON t1.a = t2.a", true);
+        assert checkUnorderedResults(RIGHT_OUTER_RESULTS, result);
+    }
+
+
+    public void testFullOuterJoin() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_smj_1 t1 FULL JOIN test_smj_2 t2 " +
+            "ON t1.a = t2.a", true);
+        assert checkUnorderedResults(FULL_OUTER_RESULTS, result);
+    }
+
+
+    /**
+     * This test verifies that a full outer join with an unordered input
+     * sorts its inputs before merging them.
+     */
+    public void testFullOuterJoinUnsorted() throws Throwable {
+        TupleLiteral[] expected = {
+            new TupleLiteral(null, 0, null, null),
+            new TupleLiteral(1, 10, null, null),
+            new TupleLiteral(2, 20, 2, 3),
+            new TupleLiteral(2, 21, 2, 3),
+            new TupleLiteral(4, 40, 4, 1),
+            new TupleLiteral(null, null, 5, 2)
+        };
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_smj_1 t1 FULL JOIN test_smj_3 t3 " +
+            "ON t1.a = t3.a", true);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    private SortMergeJoinNode makeJoin(String leftTable, String rightTable)
+        throws Exception {
+
+        CostBasedJoinPlanner planner = new CostBasedJoinPlanner();
+        planner.setStorageManager(server.getStorageManager());
+
+        Expression predicate = new CompareOperator(
+            CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName(leftTable, "A")),
+            new ColumnValue(new ColumnName(rightTable, "A")));
+
+        SortMergeJoinNode plan = new SortMergeJoinNode(
+            planner.makeSimpleSelect(leftTable, null, null),
+            planner.makeSimpleSelect(rightTable, null, null),
+            JoinType.INNER, predicate);
+
+        plan.prepare();
+        return plan;
+    }
+
+
+    private List<TupleLiteral> runPlan(PlanNode plan) throws Exception {
+        plan.initialize();
+
+        ArrayList<TupleLiteral> results = new ArrayList<TupleLiteral>();
+        while (true) {
+            Tuple tuple = plan.getNextTuple();
+            if (tuple == null)
+                break;
+
+            results.add(new TupleLiteral(tuple));
+        }
+        plan.cleanUp();
+
+        return results;
+    }
+
+
+    /**
+     * This test verifies that the merge join only finds join keys when both
+     * inputs are ordered on the join columns, and that the ordered inputs
+     * are joined without needing to be sorted.
+     */
+    public void testJoinKeys() throws Exception {
+        SortMergeJoinNode plan = makeJoin("TEST_SMJ_1", "TEST_SMJ_2");
+        assert plan.hasJoinKeys();
+        assert sameResultsUnordered(INNER_RESULTS, runPlan(plan));
+
+        plan = makeJoin("TEST_SMJ_1", "TEST_SMJ_3");
+        assert !plan.hasJoinKeys();
+    }
+}
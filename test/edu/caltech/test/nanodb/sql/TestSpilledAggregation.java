@@ -0,0 +1,227 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plans.HashedGroupAggregateNode;
+import edu.caltech.nanodb.qeval.QueryEvaluator;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class tests grouping and aggregation with a memory budget small
+ * enough that the {@link HashedGroupAggregateNode} must spill partitions of
+ * its input to disk and re-aggregate them.  The results must be the same as
+ * when all groups fit in memory.
+ */
+@Test
+public class TestSpilledAggregation extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 60;
+
+
+    /** The number of rows in the test table with a non-<tt>NULL</tt> group. */
+    private static final int NUM_GROUPED_ROWS = 56;
+
+
+    /** The number of non-<tt>NULL</tt> groups in the test table. */
+    private static final int NUM_GROUPS = 20;
+
+
+    /**
+     * A memory budget small enough that only a couple of groups fit in
+     * memory, so that partitions are repartitioned several times.
+     */
+    private static final String TINY_MEMORY_BUDGET = "64";
+
+
+    private static final String GROUPED_QUERY =
+        "SELECT g, COUNT(*), COUNT(v), SUM(v), MIN(v), MAX(v), AVG(v), " +
+        "COUNT(DISTINCT v % 3) FROM test_agg GROUP BY g";
+
+
+    public TestSpilledAggregation() {
+        super("setup_testSpilledAggregation");
+    }
+
+
+    private static Integer getGroup(int i) {
+        return (i < NUM_GROUPED_ROWS ? Integer.valueOf((i * 7) % NUM_GROUPS) : null);
+    }
+
+
+    private static Integer getValue(int i) {
+        return (i % 9 == 0 ? null : Integer.valueOf(i));
+    }
+
+
+    /**
+     * Computes the expected results of {@link #GROUPED_QUERY} from the same
+     * formulas that generated the test table.
+     */
+    private TupleLiteral[] getGroupedResults() {
+        ArrayList<Integer> groups = new ArrayList<Integer>();
+        for (int g = 0; g < NUM_GROUPS; g++)
+            groups.add(g);
+        groups.add(null);
+
+        ArrayList<TupleLiteral> results = new ArrayList<TupleLiteral>();
+        for (Integer g : groups) {
+            int countStar = 0;
+            int count = 0;
+            int sum = 0;
+            Integer min = null;
+            Integer max = null;
+            HashSet<Integer> distinct = new HashSet<Integer>();
+
+            for (int i = 0; i < NUM_ROWS; i++) {
+                Integer rowGroup = getGroup(i);
+                if (g == null ? rowGroup != null : !g.equals(rowGroup))
+                    continue;
+
+                countStar++;
+
+                Integer v = getValue(i);
+                if (v == null)
+                    continue;
+
+                count++;
+                sum += v;
+                if (min == null || v < min)
+                    min = v;
+                if (max == null || v > max)
+                    max = v;
+                distinct.add(v % 3);
+            }
+
+            results.add(new TupleLiteral(g, countStar, count, sum, min, max,
+                (double) sum / count, distinct.size()));
+        }
+
+        return results.toArray(new TupleLiteral[results.size()]);
+    }
+
+
+    public void testInMemoryAggregation() throws Throwable {
+        int spilled =
+            PerformanceCounters.get(PerformanceCounters.AGG_PARTITIONS_SPILLED);
+
+        CommandResult result = server.doCommand(GROUPED_QUERY, true);
+        assert checkUnorderedResults(getGroupedResults(), result);
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.AGG_PARTITIONS_SPILLED) == spilled;
+    }
+
+
+    public void testSpilledAggregation() throws Throwable {
+        int spilled =
+            PerformanceCounters.get(PerformanceCounters.AGG_PARTITIONS_SPILLED);
+
+        System.setProperty(HashedGroupAggregateNode.PROP_AGGREGATE_MEMORY,
+            TINY_MEMORY_BUDGET);
+        try {
+            CommandResult result = server.doCommand(GROUPED_QUERY, true);
+            assert checkUnorderedResults(getGroupedResults(), result);
+        }
+        finally {
+            System.clearProperty(HashedGroupAggregateNode.PROP_AGGREGATE_MEMORY);
+        }
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.AGG_PARTITIONS_SPILLED) > spilled;
+    }
+
+
+    /**
+     * This test verifies that <tt>COUNT</tt> of a column is 0, and not
+     * <tt>NULL</tt>, for a group whose values are all <tt>NULL</tt>, with
+     * and without batches, and with and without spilling.
+     */
+    public void testAllNullGroups() throws Throwable {
+        HashMap<Integer, Integer> nullCounts = new HashMap<Integer, Integer>();
+        int numNulls = 0;
+        for (int i = 0; i < NUM_ROWS; i++) {
+            if (getValue(i) != null)
+                continue;
+
+            Integer g = getGroup(i);
+            Integer count = nullCounts.get(g);
+            nullCounts.put(g, (count == null ? 1 : count + 1));
+            numNulls++;
+        }
+
+        ArrayList<TupleLiteral> grouped = new ArrayList<TupleLiteral>();
+        for (Integer g : nullCounts.keySet())
+            grouped.add(new TupleLiteral(g, 0, nullCounts.get(g), null));
+
+        TupleLiteral[] expectedGrouped =
+            grouped.toArray(new TupleLiteral[grouped.size()]);
+        TupleLiteral[] expectedUngrouped = {
+            new TupleLiteral(0, numNulls)
+        };
+
+        String[] budgets = { null, TINY_MEMORY_BUDGET };
+        String[] batches = { "true", "false" };
+        for (String budget : budgets) {
+            for (String batch : batches) {
+                if (budget != null) {
+                    System.setProperty(
+                        HashedGroupAggregateNode.PROP_AGGREGATE_MEMORY, budget);
+                }
+                System.setProperty(QueryEvaluator.PROP_BATCH_EXECUTION, batch);
+                try {
+                    CommandResult result = server.doCommand(
+                        "SELECT g, COUNT(v), COUNT(*), SUM(v) FROM test_agg " +
+                        "WHERE v IS NULL GROUP BY g", true);
+                    assert checkUnorderedResults(expectedGrouped, result);
+
+                    result = server.doCommand("SELECT COUNT(v), COUNT(*) " +
+                        "FROM test_agg WHERE v IS NULL", true);
+                    assert checkOrderedResults(expectedUngrouped, result);
+                }
+                finally {
+                    System.clearProperty(
+                        HashedGroupAggregateNode.PROP_AGGREGATE_MEMORY);
+                    System.clearProperty(QueryEvaluator.PROP_BATCH_EXECUTION);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * This test verifies that an aggregate without a <tt>GROUP BY</tt>
+     * clause produces a single row, even when the memory budget is tiny.
+     */
+    public void testUngroupedAggregation() throws Throwable {
+        int sum = 0;
+        for (int i = 0; i < NUM_ROWS; i++) {
+            Integer v = getValue(i);
+            if (v != null)
+                sum += v;
+        }
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(NUM_ROWS, sum)
+        };
+
+        System.setProperty(HashedGroupAggregateNode.PROP_AGGREGATE_MEMORY,
+            TINY_MEMORY_BUDGET);
+        try {
+            CommandResult result = server.doCommand(
+                "SELECT COUNT(*), SUM(v) FROM test_agg", true);
+            assert checkOrderedResults(expected, result);
+        }
+        finally {
+            System.clearProperty(HashedGroupAggregateNode.PROP_AGGREGATE_MEMORY);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.ClientHandler;
+import edu.caltech.nanodb.server.CommandState;
+import edu.caltech.nanodb.server.WireProtocol;
+
+
+/**
+ * This class exercises the binary protocol that clients use to talk to the
+ * server, and checks that clients using Java serialization still work.
+ */
+@Test
+public class TestWireProtocol extends SqlTestCase {
+
+    /** This query produces enough rows to be sent in several batches. */
+    private static final String LARGE_QUERY = "SELECT t1.a, t2.b, t3.c " +
+        "FROM test_wire t1, test_wire t2, test_wire t3, test_wire t4, " +
+        "test_wire t5, test_wire t6;";
+
+
+    public TestWireProtocol() {
+        super("setup_testWireProtocol");
+    }
+
+
+    /**
+     * Row batches hold columns whose values are of several classes, or are
+     * all <tt>NULL</tt>, and are the same after being compressed.
+     */
+    public void testRowBatches() throws Throwable {
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        TupleLiteral[] expected = new TupleLiteral[2000];
+        for (int i = 0; i < expected.length; i++) {
+            Object mixed;
+            if (i % 3 == 0)
+                mixed = i;
+            else if (i % 3 == 1)
+                mixed = "row" + i;
+            else
+                mixed = (long) i * 1000000000L;
+
+            Object[] row = { i, mixed, null, (i % 2 == 0) ? 0.5 * i : null,
+                SQLDataType.INTEGER };
+            rows.add(row);
+            expected[i] = new TupleLiteral(row);
+        }
+
+        for (boolean compress : new boolean[] { false, true }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            WireProtocol.writeRows(new DataOutputStream(bytes), rows, 5,
+                compress);
+
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+            byte msgType = in.readByte();
+            assert msgType == WireProtocol.MSG_ROWS;
+            boolean compressed =
+                (in.readByte() & WireProtocol.BATCH_COMPRESSED) != 0;
+            assert compressed == compress;
+
+            in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+            in.readByte();
+            assert sameResultsOrdered(expected, WireProtocol.readRows(in));
+        }
+    }
+
+
+    public void testBinaryProtocol() throws Throwable {
+        for (boolean compress : new boolean[] { false, true }) {
+            Socket sock = connect();
+            try {
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(sock.getOutputStream()));
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(sock.getInputStream()));
+
+                byte flags = compress ? WireProtocol.FLAG_COMPRESS : 0;
+                WireProtocol.writeHandshake(out, flags);
+                byte agreedFlags = WireProtocol.readHandshake(in);
+                assert agreedFlags == flags;
+
+                StringBuilder text = new StringBuilder();
+                List<TupleLiteral> tuples = runCommand(in, out,
+                    "SELECT * FROM test_wire;", text, null);
+                assert sameResultsUnordered(new TupleLiteral[] {
+                    new TupleLiteral(1, "one", 1.5),
+                    new TupleLiteral(2, null, 2.5),
+                    new TupleLiteral(3, "three", null),
+                    new TupleLiteral(null, "four", 4.5)
+                }, tuples);
+                assert text.toString().contains("4 rows");
+
+                // The rows of a large result are sent in several batches.
+                List<TupleLiteral> expected =
+                    server.doCommand(LARGE_QUERY, true).getTuples();
+                tuples = runCommand(in, out, LARGE_QUERY, text, null);
+                assert sameResultsOrdered(
+                    expected.toArray(new TupleLiteral[expected.size()]), tuples);
+
+                // Errors are reported, and the connection is still usable.
+                StringBuilder error = new StringBuilder();
+                runCommand(in, out, "SELECT * FROM no_such_table;", text, error);
+                assert error.length() > 0;
+
+                tuples = runCommand(in, out,
+                    "SELECT b FROM test_wire WHERE a = 1;", text, null);
+                assert sameResultsUnordered(
+                    new TupleLiteral[] { new TupleLiteral("one") }, tuples);
+            }
+            finally {
+                sock.close();
+            }
+        }
+    }
+
+
+    /** Strings longer than the limit are rejected before being read. */
+    public void testStringTooLong() throws Throwable {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(WireProtocol.MAX_STRING_SIZE + 1);
+        out.writeBytes("abc");
+
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            WireProtocol.readString(in);
+            assert false : "readString() accepted an oversized string";
+        }
+        catch (EOFException e) {
+            assert false : "readString() tried to read an oversized string";
+        }
+        catch (IOException e) {
+            // Success.
+        }
+    }
+
+
+    /**
+     * The server disconnects a client that sends command text longer than
+     * the limit, without trying to read it all.
+     */
+    public void testCommandTooLong() throws Throwable {
+        Socket sock = connect();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(sock.getOutputStream()));
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(sock.getInputStream()));
+
+            WireProtocol.writeHandshake(out, (byte) 0);
+            byte agreedFlags = WireProtocol.readHandshake(in);
+            assert agreedFlags == 0;
+
+            out.writeByte(WireProtocol.MSG_COMMAND);
+            out.writeInt(WireProtocol.MAX_STRING_SIZE + 1);
+            out.flush();
+
+            // A server that tried to read the text would wait for it until
+            // the read timed out.
+            sock.setSoTimeout(10000);
+            int b = in.read();
+            assert b == -1 : "server sent a response instead of disconnecting";
+        }
+        finally {
+            sock.close();
+        }
+    }
+
+
+    /** Clients that use Java serialization still work. */
+    public void testSerializedProtocol() throws Throwable {
+        Socket sock = connect();
+        try {
+            ObjectOutputStream out =
+                new ObjectOutputStream(sock.getOutputStream());
+            ObjectInputStream in = new ObjectInputStream(sock.getInputStream());
+
+            out.writeObject("SELECT a, c FROM test_wire WHERE b = 'one';");
+            out.flush();
+
+            ArrayList<TupleLiteral> tuples = new ArrayList<TupleLiteral>();
+            boolean sawSchema = false;
+            while (true) {
+                Object obj = in.readObject();
+                if (obj == CommandState.COMMAND_COMPLETED)
+                    break;
+
+                if (obj instanceof Schema)
+                    sawSchema = true;
+                else if (obj instanceof Tuple)
+                    tuples.add(new TupleLiteral((Tuple) obj));
+            }
+
+            assert sawSchema;
+            assert sameResultsUnordered(
+                new TupleLiteral[] { new TupleLiteral(1, 1.5) }, tuples);
+        }
+        finally {
+            sock.close();
+        }
+    }
+
+
+    /**
+     * Opens a connection to a new client handler for the test server.  The
+     * handler exits when the connection is closed.
+     */
+    private Socket connect() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            Socket sock = new Socket("localhost", serverSocket.getLocalPort());
+            Thread t = new Thread(
+                new ClientHandler(server, 1, serverSocket.accept()));
+            t.setDaemon(true);
+            t.start();
+            return sock;
+        }
+        finally {
+            serverSocket.close();
+        }
+    }
+
+
+    /**
+     * Sends a command over the binary protocol, and collects the results
+     * until the server reports that the command is completed.
+     */
+    private List<TupleLiteral> runCommand(DataInputStream in,
+        DataOutputStream out, String command, StringBuilder text,
+        StringBuilder error) throws IOException {
+
+        WireProtocol.writeCommand(out, command);
+
+        ArrayList<TupleLiteral> tuples = new ArrayList<TupleLiteral>();
+        text.setLength(0);
+        while (true) {
+            byte msgType = in.readByte();
+            if (msgType == WireProtocol.MSG_COMMAND_COMPLETED)
+                break;
+
+            switch (msgType) {
+            case WireProtocol.MSG_TEXT:
+                text.append(WireProtocol.readString(in));
+                break;
+
+            case WireProtocol.MSG_SCHEMA:
+                WireProtocol.readSchema(in);
+                break;
+
+            case WireProtocol.MSG_ROWS:
+                tuples.addAll(WireProtocol.readRows(in));
+                break;
+
+            case WireProtocol.MSG_ERROR:
+                String trace = WireProtocol.readString(in);
+                if (error == null)
+                    throw new IOException("Command failed:  " + trace);
+
+                error.append(trace);
+                break;
+
+            default:
+                throw new IOException("Unexpected message type " + msgType);
+            }
+        }
+
+        return tuples;
+    }
+}
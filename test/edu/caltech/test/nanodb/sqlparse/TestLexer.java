@@ -130,6 +130,18 @@ public class TestLexer extends SqlParseTestCase {
         checkLexSingleToken("'\" double \" quotes \"'",
             NanoSqlParserTokenTypes.STRING_LITERAL, "\" double \" quotes \"");
         checkLexSingleToken("''", NanoSqlParserTokenTypes.STRING_LITERAL, "");
+
+        // Two single-quotes in a row stand for one single-quote.
+        checkLexSingleToken("'it''s'", NanoSqlParserTokenTypes.STRING_LITERAL, "it's");
+        checkLexSingleToken("''''", NanoSqlParserTokenTypes.STRING_LITERAL, "'");
+        checkLexSingleToken("'b = ''two'''",
+            NanoSqlParserTokenTypes.STRING_LITERAL, "b = 'two'");
+
+        // String literals may span lines.
+        checkLexSingleToken("'two\nlines'",
+            NanoSqlParserTokenTypes.STRING_LITERAL, "two\nlines");
+        checkLexSingleToken("'two\r\nlines'",
+            NanoSqlParserTokenTypes.STRING_LITERAL, "two\r\nlines");
     }
 
     /** Tests the detection of identifiers. */
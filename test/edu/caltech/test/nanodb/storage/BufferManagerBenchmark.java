@@ -0,0 +1,155 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.properties.PropertyRegistry;
+
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+
+
+/**
+ * This is a simple throughput benchmark for the {@link BufferManager}.  It
+ * is not a test case; run it directly after running "<tt>ant
+ * compiletests</tt>", e.g.:
+ *
+ * <pre>
+ *   java -cp build/tests:build/classes:lib/log4j-1.2.13.jar \
+ *       edu.caltech.test.nanodb.storage.BufferManagerBenchmark
+ * </pre>
+ *
+ * Every page of the benchmark file fits in the page cache, so after warming
+ * up the cache this measures the cache-hit path (pin, access, unpin) with
+ * 1, 2, 4 and 8 threads, for a single cache partition and for the default
+ * number of partitions.
+ */
+public class BufferManagerBenchmark {
+
+    private static final String TEST_FILE_NAME = "BufferManagerBenchmark_TestFile";
+
+    private static final int FILE_PAGES = 256;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+    private static final int[] PARTITION_COUNTS = { 1, 16 };
+
+    /** How long each configuration is run for, in milliseconds. */
+    private static final long RUN_MILLIS = 2000;
+
+
+    private static DBPage loadPage(BufferManager bufMgr, FileManager fileMgr,
+                                   DBFile dbFile, int pageNo)
+        throws IOException {
+
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null) {
+            dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            fileMgr.loadPage(dbFile, pageNo, dbPage.getPageData());
+            dbPage = bufMgr.addPage(dbPage);
+        }
+        return dbPage;
+    }
+
+
+    private static long runThreads(final BufferManager bufMgr,
+        final FileManager fileMgr, final DBFile dbFile, int numThreads)
+        throws InterruptedException {
+
+        final long[] counts = new long[numThreads];
+        final long endTime = System.currentTimeMillis() + RUN_MILLIS;
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadNo = i;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(threadNo);
+                    long count = 0;
+                    try {
+                        while (true) {
+                            // Only check the clock every so often.
+                            if ((count & 0x3ff) == 0 &&
+                                System.currentTimeMillis() >= endTime) {
+                                break;
+                            }
+
+                            DBPage dbPage = loadPage(bufMgr, fileMgr, dbFile,
+                                random.nextInt(FILE_PAGES));
+                            dbPage.readInt(0);
+                            dbPage.unpin();
+                            count++;
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    counts[threadNo] = count;
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        long total = 0;
+        for (long count : counts)
+            total += count;
+
+        return total;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        File baseDir = new File("test_datafiles");
+        if (!baseDir.exists())
+            baseDir.mkdirs();
+
+        FileManager fileMgr = new FileManagerImpl(baseDir);
+        DBFile dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+
+        try {
+            byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+            for (int pageNo = 0; pageNo < FILE_PAGES; pageNo++)
+                fileMgr.loadPage(dbFile, pageNo, buffer, true);
+
+            for (int partitions : PARTITION_COUNTS) {
+                PropertyRegistry.getInstance().unregisterAllProperties();
+                System.setProperty(BufferManager.PROP_PAGECACHE_PARTITIONS,
+                    Integer.toString(partitions));
+                BufferManager bufMgr = new BufferManager(fileMgr);
+
+                // Warm up both the page cache and the JIT.
+                runThreads(bufMgr, fileMgr, dbFile, 1);
+
+                for (int numThreads : THREAD_COUNTS) {
+                    long total = runThreads(bufMgr, fileMgr, dbFile, numThreads);
+                    System.out.printf("%2d partition(s), %d thread(s):  " +
+                        "%,d page accesses/sec%n", partitions, numThreads,
+                        total * 1000 / RUN_MILLIS);
+                }
+
+                bufMgr.flushAll();
+            }
+        }
+        finally {
+            System.clearProperty(BufferManager.PROP_PAGECACHE_PARTITIONS);
+            fileMgr.deleteDBFile(dbFile);
+        }
+    }
+}
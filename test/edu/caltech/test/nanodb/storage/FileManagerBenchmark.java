@@ -0,0 +1,157 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This is a page-read benchmark for the different file IO modes that the
+ * {@link FileManager} implementations support.  It is not a test case; run
+ * it directly after running "<tt>ant compiletests</tt>", e.g.:
+ *
+ * <pre>
+ *   java -cp build/tests:build/classes:lib/* \
+ *       edu.caltech.test.nanodb.storage.FileManagerBenchmark \
+ *       schemas/stores/stores-28K.sql
+ * </pre>
+ *
+ * The benchmark loads the <tt>schemas/stores</tt> database into a scratch
+ * directory, and then reads every page of every table file several times
+ * with each file IO mode, from 1 and from 4 threads.
+ */
+public class FileManagerBenchmark {
+
+    private static final String[] FILE_IO_MODES = { "raf", "channel", "mmap" };
+
+    private static final int[] THREAD_COUNTS = { 1, 4 };
+
+    /** How many times each thread reads every page of every table. */
+    private static final int ROUNDS = 50;
+
+
+    private static void loadDatabase(File baseDir, String dataFile)
+        throws Exception {
+
+        System.setProperty(StorageManager.PROP_BASEDIR,
+            baseDir.getAbsolutePath());
+
+        NanoDBServer server = new NanoDBServer();
+        server.startup();
+
+        String sql =
+            FileUtils.readFileToString(new File("schemas/stores/make-stores.sql")) +
+            FileUtils.readFileToString(new File(dataFile));
+
+        List<CommandResult> results = server.doCommands(sql, false);
+        for (CommandResult result : results) {
+            if (result.failed()) {
+                throw new Exception("Couldn't load the stores database",
+                    result.getFailure());
+            }
+        }
+
+        server.shutdown();
+    }
+
+
+    private static long readAllPages(final FileManager fileMgr,
+        final List<DBFile> dbFiles, int numThreads) throws Exception {
+
+        final long[] pageCounts = new long[numThreads];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadNo = i;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            for (DBFile dbFile : dbFiles) {
+                                byte[] buffer = new byte[dbFile.getPageSize()];
+                                int numPages = dbFile.getNumPages();
+                                for (int pageNo = 0; pageNo < numPages; pageNo++)
+                                    fileMgr.loadPage(dbFile, pageNo, buffer);
+
+                                pageCounts[threadNo] += numPages;
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        long total = 0;
+        for (long count : pageCounts)
+            total += count;
+
+        return total;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        String dataFile = "schemas/stores/stores-10K.sql";
+        if (args.length > 0)
+            dataFile = args[0];
+
+        File baseDir = new File("test_datafiles", "FileManagerBenchmark");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+
+        try {
+            loadDatabase(baseDir, dataFile);
+
+            for (String fileIO : FILE_IO_MODES) {
+                FileManager fileMgr =
+                    StorageManager.createFileManager(baseDir, fileIO);
+
+                ArrayList<DBFile> dbFiles = new ArrayList<DBFile>();
+                for (String filename : baseDir.list()) {
+                    if (filename.endsWith(".tbl"))
+                        dbFiles.add(fileMgr.openDBFile(filename));
+                }
+
+                // Warm up the OS file cache and the JIT.
+                readAllPages(fileMgr, dbFiles, 1);
+
+                for (int numThreads : THREAD_COUNTS) {
+                    long start = System.nanoTime();
+                    long pages = readAllPages(fileMgr, dbFiles, numThreads);
+                    long elapsed = System.nanoTime() - start;
+
+                    System.out.printf("%-8s %d thread(s):  %,d pages/sec%n",
+                        fileIO, numThreads, pages * 1000000000L / elapsed);
+                }
+
+                for (DBFile dbFile : dbFiles)
+                    fileMgr.closeDBFile(dbFile);
+            }
+        }
+        finally {
+            System.clearProperty(StorageManager.PROP_BASEDIR);
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.properties.PropertyRegistry;
+
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+
+
+/**
+ * This test class hammers a small {@link BufferManager} from several threads
+ * at once, so that pages are constantly being loaded, evicted and reloaded
+ * while other threads are using the cache.
+ */
+@Test
+public class TestBufferManagerConcurrency extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private final String TEST_FILE_NAME = "TestBufferManagerConcurrency_TestFile";
+
+
+    /** The number of pages in the test file. */
+    private final int FILE_PAGES = 64;
+
+
+    /** The number of pages that the page cache can hold. */
+    private final int CACHE_PAGES = 16;
+
+
+    /** The offset in each page where the page's own page-number is stored. */
+    private final int STAMP_OFFSET = 16;
+
+
+    private final int NUM_THREADS = 8;
+
+
+    private final int ACCESSES_PER_THREAD = 5000;
+
+
+    private FileManager fileMgr;
+
+
+    private DBFile dbFile;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+
+        // Stamp every page with its page number, so that the threads can
+        // tell if they ever get handed the wrong page.
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        for (int pageNo = 0; pageNo < FILE_PAGES; pageNo++) {
+            fileMgr.loadPage(dbFile, pageNo, buffer, true);
+            buffer[STAMP_OFFSET] = (byte) pageNo;
+            fileMgr.savePage(dbFile, pageNo, buffer);
+        }
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        fileMgr.deleteDBFile(dbFile);
+        PropertyRegistry.getInstance().unregisterAllProperties();
+    }
+
+
+    /**
+     * Creates a Buffer Manager with a small page cache, using the specified
+     * replacement policy and number of cache partitions.
+     */
+    private BufferManager createBufferManager(String policyName,
+                                              int partitions) {
+        PropertyRegistry.getInstance().unregisterAllProperties();
+
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Integer.toString(CACHE_PAGES * DBFile.DEFAULT_PAGESIZE));
+        System.setProperty(BufferManager.PROP_PAGECACHE_POLICY, policyName);
+        System.setProperty(BufferManager.PROP_PAGECACHE_PARTITIONS,
+            Integer.toString(partitions));
+
+        try {
+            return new BufferManager(fileMgr);
+        }
+        finally {
+            System.clearProperty(BufferManager.PROP_PAGECACHE_SIZE);
+            System.clearProperty(BufferManager.PROP_PAGECACHE_POLICY);
+            System.clearProperty(BufferManager.PROP_PAGECACHE_PARTITIONS);
+        }
+    }
+
+
+    /**
+     * This is the same logic that the Storage Manager uses to load a page
+     * through the Buffer Manager.
+     */
+    private DBPage loadPage(BufferManager bufMgr, int pageNo)
+        throws IOException {
+
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null) {
+            dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            fileMgr.loadPage(dbFile, pageNo, dbPage.getPageData());
+            dbPage = bufMgr.addPage(dbPage);
+        }
+        return dbPage;
+    }
+
+
+    /**
+     * Runs {@link #NUM_THREADS} threads that each load random pages through
+     * the Buffer Manager, check the page contents, and unpin the page again.
+     * Returns the first error that any thread encountered, or {@code null}
+     * if all threads completed successfully.
+     */
+    private Throwable runWorkload(final BufferManager bufMgr)
+        throws InterruptedException {
+
+        final Throwable[] errors = new Throwable[NUM_THREADS];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int threadNo = i;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(threadNo);
+                    try {
+                        for (int j = 0; j < ACCESSES_PER_THREAD; j++) {
+                            int pageNo = random.nextInt(FILE_PAGES);
+                            DBPage dbPage = loadPage(bufMgr, pageNo);
+
+                            assert dbPage.getPageNo() == pageNo;
+                            assert dbPage.isPinned();
+                            assert dbPage.readByte(STAMP_OFFSET) == (byte) pageNo;
+
+                            dbPage.unpin();
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors[threadNo] = e;
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        for (Throwable e : errors) {
+            if (e != null)
+                return e;
+        }
+        return null;
+    }
+
+
+    private void checkPolicy(String policyName, int partitions)
+        throws Exception {
+
+        BufferManager bufMgr = createBufferManager(policyName, partitions);
+
+        Throwable error = runWorkload(bufMgr);
+        assert error == null : "Concurrent access failed under policy " +
+            policyName + ":  " + error;
+
+        // Every page was unpinned, so the entire cache can be flushed.
+        bufMgr.flushAll();
+        for (int pageNo = 0; pageNo < FILE_PAGES; pageNo++)
+            assert bufMgr.getPage(dbFile, pageNo) == null;
+    }
+
+
+    /**
+     * Runs threads that each keep incrementing their own counter in random
+     * pages, while another thread keeps writing all dirty pages to disk, and
+     * the small cache keeps evicting pages.  Pages are changed while they
+     * are being written, so if a write ever marked such a page clean, an
+     * increment would be lost.
+     */
+    public void testNoLostUpdates() throws Exception {
+        final BufferManager bufMgr = createBufferManager("lru", 4);
+
+        final int numWriters = 4;
+        final int counterOffset = 32;
+        final Throwable[] errors = new Throwable[numWriters + 1];
+        final boolean[] done = { false };
+
+        // The counters in each page start at zero.
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        for (int pageNo = 0; pageNo < FILE_PAGES; pageNo++) {
+            fileMgr.loadPage(dbFile, pageNo, buffer);
+            for (int i = 0; i < numWriters * 4; i++)
+                buffer[counterOffset + i] = 0;
+            fileMgr.savePage(dbFile, pageNo, buffer);
+        }
+
+        ArrayList<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < numWriters; i++) {
+            final int threadNo = i;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(threadNo);
+                    int offset = counterOffset + 4 * threadNo;
+                    try {
+                        for (int j = 0; j < ACCESSES_PER_THREAD; j++) {
+                            DBPage dbPage =
+                                loadPage(bufMgr, random.nextInt(FILE_PAGES));
+                            dbPage.writeInt(offset, dbPage.readInt(offset) + 1);
+                            dbPage.unpin();
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors[threadNo] = e;
+                    }
+                }
+            });
+            writers.add(t);
+            t.start();
+        }
+
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        synchronized (done) {
+                            if (done[0])
+                                break;
+                        }
+                        bufMgr.writeAll(false);
+                    }
+                }
+                catch (Throwable e) {
+                    errors[numWriters] = e;
+                }
+            }
+        });
+        flusher.start();
+
+        for (Thread t : writers)
+            t.join();
+
+        synchronized (done) {
+            done[0] = true;
+        }
+        flusher.join();
+
+        for (Throwable e : errors)
+            assert e == null : "Concurrent update failed:  " + e;
+
+        // Every increment must have made it to disk.
+        bufMgr.flushAll();
+        int[] totals = new int[numWriters];
+        for (int pageNo = 0; pageNo < FILE_PAGES; pageNo++) {
+            DBPage dbPage = loadPage(bufMgr, pageNo);
+            for (int i = 0; i < numWriters; i++)
+                totals[i] += dbPage.readInt(counterOffset + 4 * i);
+            dbPage.unpin();
+        }
+
+        for (int i = 0; i < numWriters; i++) {
+            assert totals[i] == ACCESSES_PER_THREAD : "Writer " + i +
+                " made " + ACCESSES_PER_THREAD + " increments, but only " +
+                totals[i] + " were saved";
+        }
+        bufMgr.flushAll();
+    }
+
+
+    public void testConcurrentAccessLRU() throws Exception {
+        checkPolicy("lru", 4);
+    }
+
+
+    public void testConcurrentAccessClock() throws Exception {
+        checkPolicy("clock", 4);
+    }
+
+
+    public void testConcurrentAccess2Q() throws Exception {
+        checkPolicy("2q", 4);
+    }
+
+
+    public void testConcurrentAccessSinglePartition() throws Exception {
+        checkPolicy("lru", 1);
+    }
+}
@@ -0,0 +1,101 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.ChannelFileManager;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.FileManager;
+
+
+/**
+ * This test class exercises the {@link ChannelFileManager}, both with and
+ * without memory-mapping of table files.
+ */
+@Test
+public class TestChannelFileManager extends StorageTestCase {
+
+    private DBFile createFile(FileManager fileMgr, String filename)
+        throws IOException {
+
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        return fileMgr.createDBFile(filename, DBFileType.HEAP_TUPLE_FILE,
+            DBFile.DEFAULT_PAGESIZE);
+    }
+
+
+    /**
+     * Writes several pages to a file, then reads them back, checking that the
+     * page's contents survived, that reads past the end of the file report
+     * EOF, and that pages written after a read are visible to later reads.
+     */
+    private void checkReadWritePages(boolean mapTableFiles)
+        throws IOException {
+
+        FileManager fileMgr = new ChannelFileManager(testBaseDir, mapTableFiles);
+        DBFile dbf = createFile(fileMgr,
+            "TestChannelFileManager_" + (mapTableFiles ? "mmap" : "channel"));
+
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        for (int pageNo = 1; pageNo <= 3; pageNo++) {
+            fileMgr.loadPage(dbf, pageNo, buffer, true);
+            buffer[100] = (byte) pageNo;
+            buffer[buffer.length - 1] = (byte) (pageNo * 2);
+            fileMgr.savePage(dbf, pageNo, buffer);
+        }
+        assert dbf.getDataFile().length() == 4 * DBFile.DEFAULT_PAGESIZE;
+
+        for (int pageNo = 3; pageNo >= 0; pageNo--) {
+            fileMgr.loadPage(dbf, pageNo, buffer);
+            if (pageNo == 0) {
+                assert buffer[0] == DBFileType.HEAP_TUPLE_FILE.getID();
+            }
+            else {
+                assert buffer[100] == (byte) pageNo;
+                assert buffer[buffer.length - 1] == (byte) (pageNo * 2);
+            }
+        }
+
+        try {
+            fileMgr.loadPage(dbf, 4, buffer);
+            assert false : "Shouldn't be able to read past the end of the file.";
+        }
+        catch (EOFException e) {
+            // Success.
+        }
+
+        // Overwrite an existing page, and extend the file, after the file
+        // has been read (and possibly mapped).
+        buffer[100] = 42;
+        fileMgr.savePage(dbf, 2, buffer);
+        buffer[100] = 43;
+        fileMgr.savePage(dbf, 4, buffer);
+
+        fileMgr.loadPage(dbf, 2, buffer);
+        assert buffer[100] == 42;
+        fileMgr.loadPage(dbf, 4, buffer);
+        assert buffer[100] == 43;
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+        assert !dbf.getDataFile().exists();
+    }
+
+
+    public void testChannelReadWritePages() throws IOException {
+        checkReadWritePages(false);
+    }
+
+
+    public void testMappedReadWritePages() throws IOException {
+        checkReadWritePages(true);
+    }
+}
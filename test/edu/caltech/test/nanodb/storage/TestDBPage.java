@@ -1,6 +1,7 @@
 package edu.caltech.test.nanodb.storage;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.testng.annotations.Test;
 import org.testng.annotations.BeforeClass;
@@ -433,4 +434,90 @@ public class TestDBPage extends StorageTestCase {
 		assert (dbPage.readByte(position2) == (byte) canary2);
 	}
 
+
+	/**
+	 * Verifies that page data lives in a direct (off-heap) frame, and that
+	 * frames are cleared before they are reused for another page.
+	 */
+	public void testRecycledFramesAreCleared() {
+		DBPage page = new DBPage(bufMgr, dbFile, 1);
+		assert page.getPageData().isDirect();
+		assert page.getPageSize() == DBFile.DEFAULT_PAGESIZE;
+
+		page.writeLong(0, -1L);
+		page.writeInt(DBFile.DEFAULT_PAGESIZE - 4, 0x12345678);
+		page.invalidate();
+
+		// The freed frame is the next one handed out for this page size.
+		page = new DBPage(bufMgr, dbFile, 1);
+		assert page.readLong(0) == 0L;
+		assert page.readInt(DBFile.DEFAULT_PAGESIZE - 4) == 0;
+		page.invalidate();
+	}
+
+
+	/**
+	 * Verifies that a page frame can only be released once, and that buffers
+	 * the Buffer Manager didn't allocate are rejected.
+	 */
+	public void testFrameReleaseChecks() throws IOException {
+		ByteBuffer frame = bufMgr.allocBuffer(DBFile.DEFAULT_PAGESIZE);
+		bufMgr.releaseBuffer(frame);
+
+		try {
+			bufMgr.releaseBuffer(frame);
+			assert false : "A frame was released twice";
+		}
+		catch (IllegalArgumentException e) {
+			// success
+		}
+
+		try {
+			bufMgr.releaseBuffer(
+				ByteBuffer.allocateDirect(DBFile.DEFAULT_PAGESIZE));
+			assert false : "A foreign buffer was released";
+		}
+		catch (IllegalArgumentException e) {
+			// success
+		}
+
+		// The rejected releases mustn't have disturbed the free list.
+		DBPage page1 = new DBPage(bufMgr, dbFile, 1);
+		DBPage page2 = new DBPage(bufMgr, dbFile, 2);
+		assert page1.getPageData() != page2.getPageData();
+		page1.invalidate();
+		page2.invalidate();
+	}
+
+
+	/**
+	 * Verifies that dirty pages only keep a copy of their original data when
+	 * the Buffer Manager asks for it, and that the copy is taken before the
+	 * first change to the page.
+	 */
+	public void testOldPageData() {
+		DBPage page = new DBPage(bufMgr, dbFile, 2);
+		page.writeInt(0, 1);
+		assert page.isDirty();
+		assert page.getOldPageData() == null;
+		page.setDirty(false);
+
+		bufMgr.setKeepOldPageData(true);
+		try {
+			page.writeInt(0, 2);
+			assert page.getOldPageData() != null;
+			assert page.getOldPageData().getInt(0) == 1;
+			assert page.readInt(0) == 2;
+
+			page.syncOldPageData();
+			assert page.getOldPageData().getInt(0) == 2;
+
+			page.setDirty(false);
+			assert page.getOldPageData() == null;
+		}
+		finally {
+			bufMgr.setKeepOldPageData(false);
+			page.invalidate();
+		}
+	}
 }
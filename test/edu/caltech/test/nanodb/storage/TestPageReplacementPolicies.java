@@ -0,0 +1,249 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.properties.PropertyRegistry;
+
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.ClockReplacementPolicy;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+import edu.caltech.nanodb.storage.LRUKReplacementPolicy;
+import edu.caltech.nanodb.storage.PageReplacementPolicy;
+import edu.caltech.nanodb.storage.TwoQueueReplacementPolicy;
+
+
+/**
+ * This test class exercises the page replacement policies that the
+ * {@link BufferManager} can use, by simulating a small page cache on top of
+ * each policy.
+ */
+@Test
+public class TestPageReplacementPolicies extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private final String TEST_FILE_NAME = "TestPageReplacementPolicies_TestFile";
+
+
+    /** The number of pages that the simulated page cache can hold. */
+    private final int CACHE_PAGES = 8;
+
+
+    /** The page numbers of the "hot" pages in the simulated workload. */
+    private final int[] HOT_PAGES = { 0, 1, 2, 3 };
+
+
+    private FileManager fileMgr;
+
+
+    private BufferManager bufMgr;
+
+
+    private DBFile dbFile;
+
+
+    /**
+     * This class simulates a page cache of {@link #CACHE_PAGES} pages that
+     * uses a specific replacement policy.
+     */
+    private class SimulatedCache {
+        PageReplacementPolicy policy;
+
+        HashMap<Integer, DBPage> residentPages = new HashMap<Integer, DBPage>();
+
+        /**
+         * If true, every victim is handed back to the policy once before a
+         * victim is actually evicted, as the Buffer Manager does when the
+         * victim has been pinned again in the meantime.
+         */
+        boolean restoreVictims = false;
+
+        SimulatedCache(String policyName) {
+            policy = BufferManager.createReplacementPolicy(policyName);
+            assert policy != null;
+            assert policyName.equals(policy.getName());
+        }
+
+        DBPage access(int pageNo) {
+            DBPage dbPage = residentPages.get(pageNo);
+            if (dbPage != null) {
+                policy.pageAccessed(dbPage);
+            }
+            else {
+                if (residentPages.size() == CACHE_PAGES) {
+                    DBPage victim = policy.chooseVictim();
+                    if (restoreVictims) {
+                        assert victim != null;
+                        policy.victimRestored(victim);
+                        victim = policy.chooseVictim();
+                    }
+                    assert victim != null;
+                    assert !victim.isPinned();
+
+                    residentPages.remove(victim.getPageNo());
+                    victim.invalidate();
+                }
+
+                dbPage = new DBPage(bufMgr, dbFile, pageNo);
+                residentPages.put(pageNo, dbPage);
+                policy.pageAdded(dbPage);
+            }
+            return dbPage;
+        }
+
+        void pin(DBPage dbPage) {
+            dbPage.pin();
+            policy.pagePinned(dbPage);
+        }
+
+        void unpin(DBPage dbPage) {
+            dbPage.unpin();
+            policy.pageUnpinned(dbPage);
+        }
+
+        boolean isResident(int pageNo) {
+            return residentPages.containsKey(pageNo);
+        }
+    }
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        PropertyRegistry.getInstance().unregisterAllProperties();
+
+        fileMgr = new FileManagerImpl(testBaseDir);
+        bufMgr = new BufferManager(fileMgr);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Runs a workload where the hot pages are used several times in each
+     * round, interleaved with some one-time accesses to other pages, and then a scan over
+     * <tt>scanPages</tt> pages that are never used again.
+     */
+    private SimulatedCache runScanWorkload(String policyName, int scanPages) {
+        return runScanWorkload(policyName, scanPages, false);
+    }
+
+
+    private SimulatedCache runScanWorkload(String policyName, int scanPages,
+                                           boolean restoreScanVictims) {
+        SimulatedCache cache = new SimulatedCache(policyName);
+
+        int nextColdPage = 100;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 3; i++) {
+                for (int pageNo : HOT_PAGES)
+                    cache.access(pageNo);
+            }
+
+            for (int i = 0; i < CACHE_PAGES / 2; i++)
+                cache.access(nextColdPage++);
+        }
+
+        for (int pageNo : HOT_PAGES)
+            cache.access(pageNo);
+
+        cache.restoreVictims = restoreScanVictims;
+        for (int i = 0; i < scanPages; i++)
+            cache.access(nextColdPage++);
+
+        return cache;
+    }
+
+
+    private void checkHotPagesResident(SimulatedCache cache) {
+        for (int pageNo : HOT_PAGES) {
+            assert cache.isResident(pageNo) : "Hot page " + pageNo +
+                " was evicted under policy " + cache.policy.getName();
+        }
+    }
+
+
+    public void testLRUIsNotScanResistant() {
+        SimulatedCache cache = runScanWorkload("lru", CACHE_PAGES);
+        for (int pageNo : HOT_PAGES)
+            assert !cache.isResident(pageNo);
+    }
+
+
+    public void testClockScanResistance() {
+        checkHotPagesResident(runScanWorkload(ClockReplacementPolicy.NAME,
+            CACHE_PAGES));
+    }
+
+
+    public void testTwoQueueScanResistance() {
+        checkHotPagesResident(runScanWorkload(TwoQueueReplacementPolicy.NAME,
+            100 * CACHE_PAGES));
+    }
+
+
+    public void testLRUKScanResistance() {
+        checkHotPagesResident(runScanWorkload(LRUKReplacementPolicy.NAME,
+            100 * CACHE_PAGES));
+    }
+
+
+    /**
+     * A victim that the Buffer Manager hands back to the policy, because it
+     * was pinned again before it could be evicted, must not count as another
+     * reference to the page; otherwise every scan page that is restored
+     * looks like a hot page.
+     */
+    public void testRestoredVictimsKeepScanResistance() {
+        checkHotPagesResident(runScanWorkload(TwoQueueReplacementPolicy.NAME,
+            100 * CACHE_PAGES, true));
+        checkHotPagesResident(runScanWorkload(LRUKReplacementPolicy.NAME,
+            100 * CACHE_PAGES, true));
+    }
+
+
+    /**
+     * Verifies that no policy chooses a pinned page as a victim, and that
+     * each policy reports when every page is pinned.
+     */
+    public void testPinnedPagesNotEvicted() {
+        String[] policyNames = { "lru", "fifo", "clock", "2q", "lru-k" };
+        for (String policyName : policyNames) {
+            SimulatedCache cache = new SimulatedCache(policyName);
+
+            DBPage[] pages = new DBPage[CACHE_PAGES];
+            for (int i = 0; i < CACHE_PAGES; i++) {
+                pages[i] = cache.access(i);
+                cache.pin(pages[i]);
+            }
+
+            assert cache.policy.chooseVictim() == null : policyName;
+
+            // Unpin a page in the middle; it must be the only victim.
+            cache.unpin(pages[5]);
+            assert cache.policy.chooseVictim() == pages[5] : policyName;
+            assert cache.policy.chooseVictim() == null : policyName;
+
+            for (int i = 0; i < CACHE_PAGES; i++) {
+                if (i != 5)
+                    cache.unpin(pages[i]);
+                pages[i].invalidate();
+            }
+        }
+    }
+}
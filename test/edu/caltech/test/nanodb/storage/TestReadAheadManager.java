@@ -0,0 +1,254 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.server.properties.PropertyRegistry;
+
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+import edu.caltech.nanodb.storage.ReadAheadManager;
+
+
+/**
+ * This test class exercises the {@link ReadAheadManager}'s detection of
+ * sequential access, and the pages that it loads in the background.
+ */
+@Test
+public class TestReadAheadManager extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private final String TEST_FILE_NAME = "TestReadAheadManager_TestFile";
+
+
+    /** The number of pages in the test file. */
+    private final int FILE_PAGES = 32;
+
+
+    /** The number of pages to read ahead. */
+    private final int READAHEAD_PAGES = 8;
+
+
+    private FileManager fileMgr;
+
+
+    private DBFile dbFile;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        for (int pageNo = 1; pageNo < FILE_PAGES; pageNo++) {
+            fileMgr.loadPage(dbFile, pageNo, buffer, true);
+            buffer[100] = (byte) pageNo;
+            fileMgr.savePage(dbFile, pageNo, buffer);
+        }
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        fileMgr.deleteDBFile(dbFile);
+        PropertyRegistry.getInstance().unregisterAllProperties();
+    }
+
+
+    private BufferManager bufMgr;
+
+
+    private ReadAheadManager createReadAheadManager(int readAheadPages) {
+        PropertyRegistry.getInstance().unregisterAllProperties();
+
+        bufMgr = new BufferManager(fileMgr);
+        return createReadAheadManager(bufMgr, readAheadPages);
+    }
+
+
+    private ReadAheadManager createReadAheadManager(BufferManager bufMgr,
+                                                    int readAheadPages) {
+
+        System.setProperty(ReadAheadManager.PROP_READAHEAD_PAGES,
+            Integer.toString(readAheadPages));
+        try {
+            return new ReadAheadManager(fileMgr, bufMgr);
+        }
+        finally {
+            System.clearProperty(ReadAheadManager.PROP_READAHEAD_PAGES);
+        }
+    }
+
+
+    /**
+     * Returns true if the specified page is in the Buffer Manager, and
+     * checks that it holds the right data if it is.
+     */
+    private boolean isCached(int pageNo) {
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null)
+            return false;
+
+        assert dbPage.isPrefetched();
+        assert dbPage.readByte(100) == (byte) pageNo;
+        dbPage.unpin();
+        return true;
+    }
+
+
+    /**
+     * Waits for the specified page to be read ahead into the Buffer Manager,
+     * returning true if it showed up within a few seconds.
+     */
+    private boolean waitForPage(int pageNo) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            if (isCached(pageNo))
+                return true;
+
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+
+    /**
+     * Once a file is read sequentially, the next pages should be loaded in
+     * the background, but no further than the read-ahead window.
+     */
+    public void testSequentialReadAhead() throws Exception {
+        ReadAheadManager readAheadMgr =
+            createReadAheadManager(READAHEAD_PAGES);
+        assert readAheadMgr.getReadAheadPages() == READAHEAD_PAGES;
+
+        int prefetched =
+            PerformanceCounters.get(PerformanceCounters.STORAGE_READAHEAD_PAGES);
+
+        readAheadMgr.pageRequested(dbFile, 1);
+        readAheadMgr.pageRequested(dbFile, 1);
+        readAheadMgr.pageRequested(dbFile, 2);
+        readAheadMgr.pageRequested(dbFile, 3);
+
+        for (int pageNo = 4; pageNo <= 3 + READAHEAD_PAGES; pageNo++)
+            assert waitForPage(pageNo) : "Page " + pageNo + " wasn't read ahead";
+
+        // Shutting down waits for any background loads to complete.
+        readAheadMgr.shutdown();
+
+        assert !isCached(4 + READAHEAD_PAGES);
+        assert PerformanceCounters.get(PerformanceCounters.STORAGE_READAHEAD_PAGES) ==
+            prefetched + READAHEAD_PAGES;
+
+        bufMgr.flushAll();
+    }
+
+
+    /** Read-ahead must stop at the end of the file. */
+    public void testReadAheadStopsAtEOF() throws Exception {
+        ReadAheadManager readAheadMgr =
+            createReadAheadManager(READAHEAD_PAGES);
+
+        for (int pageNo = FILE_PAGES - 4; pageNo < FILE_PAGES; pageNo++)
+            readAheadMgr.pageRequested(dbFile, pageNo);
+
+        assert waitForPage(FILE_PAGES - 1);
+        readAheadMgr.shutdown();
+
+        assert bufMgr.getPage(dbFile, FILE_PAGES) == null;
+
+        bufMgr.flushAll();
+    }
+
+
+    /**
+     * Read-ahead must only use free space in the page cache, and must stop
+     * rather than evict pages when the cache is full.
+     */
+    public void testReadAheadNeverEvicts() throws Exception {
+        PropertyRegistry.getInstance().unregisterAllProperties();
+
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Integer.toString(4 * DBFile.DEFAULT_PAGESIZE));
+        try {
+            bufMgr = new BufferManager(fileMgr);
+        }
+        finally {
+            System.clearProperty(BufferManager.PROP_PAGECACHE_SIZE);
+        }
+
+        // Fill half the cache with unpinned pages that could be evicted.
+        for (int pageNo = 20; pageNo <= 21; pageNo++) {
+            DBPage dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            fileMgr.loadPage(dbFile, pageNo, dbPage.getPageData());
+            bufMgr.addPage(dbPage).unpin();
+        }
+
+        ReadAheadManager readAheadMgr =
+            createReadAheadManager(bufMgr, READAHEAD_PAGES);
+
+        int prefetched =
+            PerformanceCounters.get(PerformanceCounters.STORAGE_READAHEAD_PAGES);
+
+        readAheadMgr.pageRequested(dbFile, 1);
+        readAheadMgr.pageRequested(dbFile, 2);
+        readAheadMgr.pageRequested(dbFile, 3);
+
+        // Only the two free slots are used, and the other pages stay.
+        assert waitForPage(5);
+        readAheadMgr.shutdown();
+
+        assert PerformanceCounters.get(PerformanceCounters.STORAGE_READAHEAD_PAGES) ==
+            prefetched + 2;
+
+        for (int pageNo = 20; pageNo <= 21; pageNo++) {
+            DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+            assert dbPage != null : "Page " + pageNo + " was evicted";
+            dbPage.unpin();
+        }
+
+        assert isCached(4);
+        assert isCached(5);
+        assert !isCached(6);
+
+        bufMgr.flushAll();
+    }
+
+
+    /** Random access, and cancelled files, must not be read ahead. */
+    public void testNoReadAhead() throws IOException {
+        ReadAheadManager readAheadMgr =
+            createReadAheadManager(READAHEAD_PAGES);
+
+        readAheadMgr.pageRequested(dbFile, 10);
+        readAheadMgr.pageRequested(dbFile, 3);
+        readAheadMgr.pageRequested(dbFile, 20);
+        readAheadMgr.pageRequested(dbFile, 7);
+
+        readAheadMgr.cancelReadAhead(dbFile);
+        readAheadMgr.shutdown();
+
+        for (int pageNo = 0; pageNo < FILE_PAGES; pageNo++)
+            assert !isCached(pageNo) : "Page " + pageNo + " was read ahead";
+
+        // With read-ahead disabled, even sequential access isn't read ahead.
+        readAheadMgr = createReadAheadManager(0);
+        for (int pageNo = 1; pageNo < 10; pageNo++)
+            readAheadMgr.pageRequested(dbFile, pageNo);
+
+        readAheadMgr.shutdown();
+
+        for (int pageNo = 0; pageNo < FILE_PAGES; pageNo++)
+            assert !isCached(pageNo) : "Page " + pageNo + " was read ahead";
+    }
+}
@@ -0,0 +1,167 @@
+package edu.caltech.test.nanodb.storage.btreefile;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.btreefile.BTreeTupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This test class adds, deletes and looks up tuples in a single
+ * B<sup>+</sup> tree file from several threads at once, and then verifies
+ * that the tree is still well-formed and holds exactly the expected tuples.
+ */
+@Test
+public class TestBTreeConcurrency extends SqlTestCase {
+
+    private final int NUM_THREADS = 4;
+
+
+    private final int ROWS_PER_THREAD = 2000;
+
+
+    /** Every this many inserts, each thread deletes one of its tuples. */
+    private final int DELETE_INTERVAL = 4;
+
+
+    /**
+     * Creates the tuple for a key.  The second column is long enough that
+     * the tree needs many leaves, so that leaves are constantly being split,
+     * coalesced and redistributed while the threads run.
+     */
+    private TupleLiteral makeTuple(int key) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("value-").append(key);
+        while (buf.length() < 20 + key % 20)
+            buf.append((char) ('A' + key % 26));
+
+        return new TupleLiteral(key, buf.toString());
+    }
+
+
+    /**
+     * Runs {@link #NUM_THREADS} threads against the tuple file.  Each thread
+     * adds its own keys in a random order, deletes some of them again, and
+     * checks that the keys it has added and not deleted can always be found.
+     * The keys of all threads are interleaved, so the threads are constantly
+     * working on the same leaves.  Returns the first error that any thread
+     * encountered, or {@code null} if all threads completed successfully.
+     */
+    private Throwable runWorkload(final BTreeTupleFile tupleFile,
+        final List<List<Integer>> remainingKeys) throws InterruptedException {
+
+        final Throwable[] errors = new Throwable[NUM_THREADS];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int threadNo = i;
+            final List<Integer> keys = new ArrayList<Integer>();
+            remainingKeys.add(keys);
+
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(threadNo);
+
+                    ArrayList<Integer> toInsert = new ArrayList<Integer>();
+                    for (int j = 0; j < ROWS_PER_THREAD; j++)
+                        toInsert.add(j * NUM_THREADS + threadNo);
+                    Collections.shuffle(toInsert, random);
+
+                    try {
+                        for (int key : toInsert) {
+                            tupleFile.addTuple(makeTuple(key));
+                            keys.add(key);
+
+                            if (keys.size() % DELETE_INTERVAL == 0) {
+                                int delKey = keys.remove(
+                                    random.nextInt(keys.size()));
+                                tupleFile.deleteTuple(makeTuple(delKey));
+                            }
+
+                            TupleLiteral lookupKey = new TupleLiteral(1);
+                            lookupKey.setColumnValue(0,
+                                keys.get(random.nextInt(keys.size())));
+                            Tuple tup =
+                                tupleFile.findFirstTupleEquals(lookupKey);
+                            assert tup != null :
+                                "Couldn't find key " + lookupKey;
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors[threadNo] = e;
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        for (Throwable e : errors) {
+            if (e != null)
+                return e;
+        }
+        return null;
+    }
+
+
+    public void testConcurrentInsertDelete() throws Throwable {
+        tryDoCommand("CREATE TABLE btree_concurrent (a INTEGER, " +
+            "b VARCHAR(50)) PROPERTIES (storage = 'btree');", false);
+
+        TableInfo tableInfo = server.getStorageManager().getTableManager()
+            .openTable("BTREE_CONCURRENT");
+        TupleFile tupleFile = tableInfo.getTupleFile();
+        assert tupleFile instanceof BTreeTupleFile;
+        BTreeTupleFile btreeFile = (BTreeTupleFile) tupleFile;
+
+        List<List<Integer>> remainingKeys = new ArrayList<List<Integer>>();
+        Throwable error = runWorkload(btreeFile, remainingKeys);
+        if (error != null)
+            throw error;
+
+        List<String> errors = tupleFile.verify();
+        assert errors.isEmpty() : errors;
+
+        // The file must hold exactly the tuples that weren't deleted, in
+        // order.
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (List<Integer> keys : remainingKeys)
+            expected.addAll(keys);
+        Collections.sort(expected);
+
+        int count = 0;
+        TupleLiteral prev = null;
+        Tuple tup = tupleFile.getFirstTuple();
+        while (tup != null) {
+            TupleLiteral cur = new TupleLiteral(tup);
+            if (prev != null)
+                assert TupleComparator.compareTuples(prev, cur) < 0;
+
+            assert count < expected.size() : "File has too many tuples";
+            assert TupleComparator.compareTuples(cur,
+                makeTuple(expected.get(count))) == 0 :
+                "Expected key " + expected.get(count) + ", found " + cur;
+
+            prev = cur;
+            count++;
+            tup = tupleFile.getNextTuple(tup);
+        }
+        assert count == expected.size() :
+            "File has " + count + " tuples, expected " + expected.size();
+    }
+}
@@ -0,0 +1,161 @@
+package edu.caltech.test.nanodb.storage.writeahead;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
+import edu.caltech.nanodb.storage.writeahead.WALBuffer;
+import edu.caltech.nanodb.storage.writeahead.WALManager;
+import edu.caltech.nanodb.storage.writeahead.WALReader;
+
+import edu.caltech.test.nanodb.storage.StorageTestCase;
+
+
+/**
+ * This test class exercises the {@link WALBuffer} that write-ahead log
+ * records are appended to, and the {@link WALReader} used to read them back.
+ */
+@Test
+public class TestWALBuffer extends StorageTestCase {
+
+    private File walDir;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        walDir = new File(testBaseDir, "TestWALBuffer");
+        if (walDir.exists())
+            FileUtils.deleteDirectory(walDir);
+        walDir.mkdirs();
+    }
+
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        FileUtils.deleteDirectory(walDir);
+    }
+
+
+    /** Generates a record of the specified size, with recognizable data. */
+    private byte[] makeRecord(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (seed * 31 + i);
+
+        return data;
+    }
+
+
+    /**
+     * Records must read back correctly whether they are still in the ring
+     * buffer, have been written out because the ring filled up, or were too
+     * large for the ring buffer.
+     */
+    public void testAppendAndRead() throws IOException {
+        WALBuffer walBuffer = new WALBuffer(walDir);
+
+        int[] sizes = { 6, 12, 300, WALBuffer.SEGMENT_SIZE + 17, 5000,
+            WALBuffer.CAPACITY / 2, WALBuffer.CAPACITY + 1000, 12, 6, 40000 };
+
+        ArrayList<LogSequenceNumber> lsns = new ArrayList<LogSequenceNumber>();
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+
+        int offset = WALManager.OFFSET_FIRST_RECORD;
+        for (int i = 0; i < sizes.length; i++) {
+            LogSequenceNumber lsn = new LogSequenceNumber(0, offset);
+            byte[] data = makeRecord(sizes[i], i);
+            walBuffer.append(lsn, data, data.length);
+
+            lsns.add(lsn);
+            records.add(data);
+            offset += data.length;
+        }
+
+        // Read the records back before forcing the log.
+        for (int i = 0; i < records.size(); i++) {
+            WALReader reader = walBuffer.getReader(lsns.get(i));
+            byte[] data = new byte[records.get(i).length];
+            reader.read(data);
+            reader.close();
+
+            assert Arrays.equals(data, records.get(i)) : "Record " + i +
+                " didn't read back correctly";
+        }
+
+        walBuffer.close();
+
+        File walFile = walBuffer.getWALFile(0);
+        assert walFile.length() == offset;
+
+        // The file header should be in the same format as other data files.
+        WALReader reader = walBuffer.getReader(
+            new LogSequenceNumber(0, 0));
+        assert reader.readByte() == DBFileType.WRITE_AHEAD_LOG_FILE.getID();
+        assert reader.readUnsignedByte() ==
+            DBFile.encodePageSize(StorageManager.getCurrentPageSize());
+        assert reader.readInt() == 0;
+        assert reader.getPosition() == WALManager.OFFSET_FIRST_RECORD;
+        reader.close();
+
+        // Appending must be able to continue from an existing WAL file.
+        walBuffer = new WALBuffer(walDir);
+        byte[] data = makeRecord(100, 42);
+        walBuffer.append(new LogSequenceNumber(0, offset), data, data.length);
+        walBuffer.force();
+        assert walFile.length() == offset + data.length;
+        walBuffer.close();
+    }
+
+
+    /**
+     * When the log moves on to the next WAL file, the new file must record
+     * where the previous file ended.
+     */
+    public void testNextWALFile() throws IOException {
+        WALBuffer walBuffer = new WALBuffer(walDir);
+
+        byte[] data = makeRecord(1000, 1);
+        walBuffer.append(new LogSequenceNumber(0,
+            WALManager.OFFSET_FIRST_RECORD), data, data.length);
+        int prevFileEnd = WALManager.OFFSET_FIRST_RECORD + data.length;
+
+        LogSequenceNumber lsn =
+            new LogSequenceNumber(1, WALManager.OFFSET_FIRST_RECORD);
+        walBuffer.append(lsn, data, data.length);
+
+        // The previous WAL file is forced when the log moves on.
+        assert walBuffer.getWALFile(0).length() == prevFileEnd;
+
+        WALReader reader = walBuffer.getReader(lsn);
+        reader.setPosition(WALManager.OFFSET_PREV_FILE_END);
+        assert reader.readInt() == prevFileEnd;
+
+        byte[] readData = new byte[data.length];
+        reader.read(readData);
+        assert Arrays.equals(readData, data);
+        reader.close();
+
+        // Appending anywhere but the end of the log is an error.
+        try {
+            walBuffer.append(new LogSequenceNumber(1, 10), data, data.length);
+            assert false : "Appending in the middle of the log should fail";
+        }
+        catch (IllegalArgumentException e) {
+            // Success!
+        }
+
+        walBuffer.close();
+    }
+}
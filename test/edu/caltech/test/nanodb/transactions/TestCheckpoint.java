@@ -0,0 +1,172 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.server.properties.PropertyRegistry;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.writeahead.WALManager;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This test class verifies that checkpoints taken by the
+ * {@link TransactionManager} advance the recovery start point, so that old
+ * WAL files are deleted, and that recovery still works afterward.
+ */
+@Test
+public class TestCheckpoint {
+
+    private static final String TEST_FILENAME = "TestCheckpoint";
+
+
+    private File testBaseDir;
+
+
+    private StorageManager storageManager;
+
+
+    @BeforeClass
+    public void beforeClass() throws Exception {
+        testBaseDir = new File("test_datafiles", "TestCheckpoint");
+        if (testBaseDir.exists())
+            FileUtils.deleteDirectory(testBaseDir);
+        testBaseDir.mkdirs();
+
+        startup();
+    }
+
+
+    @AfterClass
+    public void afterClass() throws Exception {
+        shutdown();
+        FileUtils.deleteDirectory(testBaseDir);
+    }
+
+
+    /**
+     * Starts up a storage manager on the test directory, with transactions
+     * enabled and no periodic checkpoints.
+     */
+    private void startup() throws Exception {
+        PropertyRegistry.getInstance().unregisterAllProperties();
+
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        System.setProperty(TransactionManager.PROP_CHECKPOINT_INTERVAL, "0");
+        try {
+            storageManager = new StorageManager();
+            storageManager.initialize(testBaseDir);
+        }
+        finally {
+            System.clearProperty(TransactionManager.PROP_TXNS);
+            System.clearProperty(TransactionManager.PROP_CHECKPOINT_INTERVAL);
+        }
+    }
+
+
+    private void shutdown() throws Exception {
+        storageManager.shutdown();
+        PropertyRegistry.getInstance().unregisterAllProperties();
+    }
+
+
+    private File getWALFile(int fileNo) {
+        return new File(testBaseDir, WALManager.getWALFileName(fileNo));
+    }
+
+
+    /**
+     * Overwrites the entire page with data generated from the value, and
+     * logs the write.
+     */
+    private void writePage(DBFile dbFile, int pageNo, int value)
+        throws Exception {
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
+        for (int i = 0; i < dbPage.getPageSize(); i += 4)
+            dbPage.writeInt(i, value + i);
+
+        storageManager.logDBPageWrite(dbPage);
+        dbPage.unpin();
+    }
+
+
+    private boolean checkPage(DBFile dbFile, int pageNo, int value)
+        throws Exception {
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+        try {
+            for (int i = 0; i < dbPage.getPageSize(); i += 4) {
+                if (dbPage.readInt(i) != value + i)
+                    return false;
+            }
+            return true;
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    public void testCheckpointDeletesOldWALFiles() throws Exception {
+        TransactionManager txnMgr = storageManager.getTransactionManager();
+        assert txnMgr != null;
+
+        DBFile dbFile = storageManager.createDBFile(TEST_FILENAME,
+            DBFileType.HEAP_TUPLE_FILE);
+
+        // Commit transactions until the log moves on to a second WAL file.
+        int value = 0;
+        while (!getWALFile(1).exists()) {
+            value++;
+
+            txnMgr.startTransaction(false);
+            writePage(dbFile, 1, value);
+            writePage(dbFile, 2, -value);
+            txnMgr.commitTransaction();
+        }
+
+        int checkpoints =
+            PerformanceCounters.get(PerformanceCounters.TXN_CHECKPOINTS);
+
+        // The pages have been dirty since the start of the log, so the first
+        // checkpoint can't let go of the first WAL file.
+        txnMgr.checkpoint();
+        assert getWALFile(0).exists();
+
+        // The second checkpoint writes out the pages that have stayed dirty
+        // since the first checkpoint, and then the first WAL file can go.
+        txnMgr.checkpoint();
+        assert !getWALFile(0).exists();
+        assert getWALFile(1).exists();
+
+        assert PerformanceCounters.get(PerformanceCounters.TXN_CHECKPOINTS) ==
+            checkpoints + 2;
+
+        // Leave one transaction incomplete; recovery must roll it back,
+        // without needing the deleted WAL file.
+        txnMgr.startTransaction(false);
+        writePage(dbFile, 1, 1000000);
+        writePage(dbFile, 2, 1000000);
+
+        shutdown();
+        SessionState.get().getTxnState().clear();
+        startup();
+
+        dbFile = storageManager.openDBFile(TEST_FILENAME);
+        assert checkPage(dbFile, 1, value);
+        assert checkPage(dbFile, 2, -value);
+    }
+}
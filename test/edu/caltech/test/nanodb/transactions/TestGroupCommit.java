@@ -0,0 +1,137 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.apache.commons.io.FileUtils;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.server.properties.PropertyRegistry;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This test class commits many small transactions from several threads at
+ * once, and verifies that the {@link TransactionManager} groups their
+ * commits into fewer syncs of the write-ahead log.
+ */
+@Test
+public class TestGroupCommit {
+
+    private final int NUM_THREADS = 4;
+
+
+    private final int TXNS_PER_THREAD = 25;
+
+
+    /** The group-commit delay to use, in microseconds. */
+    private final String GROUPCOMMIT_DELAY = "5000";
+
+
+    private File testBaseDir;
+
+
+    private StorageManager storageManager;
+
+
+    @BeforeClass
+    public void beforeClass() throws Exception {
+        PropertyRegistry.getInstance().unregisterAllProperties();
+
+        testBaseDir = new File("test_datafiles", "TestGroupCommit");
+        if (testBaseDir.exists())
+            FileUtils.deleteDirectory(testBaseDir);
+        testBaseDir.mkdirs();
+
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        System.setProperty(TransactionManager.PROP_GROUPCOMMIT_DELAY,
+            GROUPCOMMIT_DELAY);
+        try {
+            storageManager = new StorageManager();
+            storageManager.initialize(testBaseDir);
+        }
+        finally {
+            System.clearProperty(TransactionManager.PROP_TXNS);
+            System.clearProperty(TransactionManager.PROP_GROUPCOMMIT_DELAY);
+        }
+    }
+
+
+    @AfterClass
+    public void afterClass() throws Exception {
+        storageManager.shutdown();
+        PropertyRegistry.getInstance().unregisterAllProperties();
+        FileUtils.deleteDirectory(testBaseDir);
+    }
+
+
+    /**
+     * Each thread updates a page of its own file, and commits, over and
+     * over.  Every transaction writes a WAL record, so every commit must be
+     * forced to disk.
+     */
+    public void testConcurrentCommits() throws Exception {
+        final TransactionManager txnMgr = storageManager.getTransactionManager();
+        assert txnMgr != null;
+
+        int commits = PerformanceCounters.get(PerformanceCounters.TXN_COMMITS);
+        int syncs = PerformanceCounters.get(PerformanceCounters.TXN_COMMIT_SYNCS);
+
+        final Throwable[] errors = new Throwable[NUM_THREADS];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int threadNo = i;
+            final DBFile dbFile = storageManager.createDBFile(
+                "TestGroupCommit_" + i, DBFileType.HEAP_TUPLE_FILE);
+
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < TXNS_PER_THREAD; j++) {
+                            txnMgr.startTransaction(false);
+
+                            DBPage dbPage =
+                                storageManager.loadDBPage(dbFile, 1, true);
+                            dbPage.writeInt(100, j);
+                            storageManager.logDBPageWrite(dbPage);
+                            dbPage.unpin();
+
+                            txnMgr.commitTransaction();
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors[threadNo] = e;
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        for (Throwable e : errors)
+            assert e == null : "Commit failed:  " + e;
+
+        commits = PerformanceCounters.get(PerformanceCounters.TXN_COMMITS) -
+            commits;
+        syncs = PerformanceCounters.get(PerformanceCounters.TXN_COMMIT_SYNCS) -
+            syncs;
+
+        assert commits == NUM_THREADS * TXNS_PER_THREAD;
+        assert syncs > 0;
+        assert syncs < commits : "Expected commits to be grouped, but got " +
+            syncs + " syncs for " + commits + " commits";
+    }
+}